@@ -988,31 +988,7 @@ public class Agent extends DBObject implements Favorite
         fullShowTest = sbCache;
       }
       if (!titleOnly)
-      {
-        fullShowTest.append('|'); fullShowTest.append(s.getEpisodeName());
-        fullShowTest.append('|'); fullShowTest.append(s.getDesc());
-        fullShowTest.append('|'); fullShowTest.append(s.getYear());
-        for (int i = 0; i < s.people.length; i++)
-        {
-          fullShowTest.append('|'); fullShowTest.append(s.people[i].name);
-        }
-        fullShowTest.append('|'); fullShowTest.append(s.getCategory());
-        fullShowTest.append('|'); fullShowTest.append(s.getSubCategory());
-        for (int i = 2; i < s.categories.length; i++)
-        {
-          fullShowTest.append('|');
-          fullShowTest.append(s.categories[i].name);
-        }
-        fullShowTest.append('|'); s.appendBonusesString(fullShowTest);
-        fullShowTest.append('|'); s.appendExpandedRatingsString(fullShowTest);
-        fullShowTest.append('|'); fullShowTest.append(s.getLanguage());
-        fullShowTest.append('|'); fullShowTest.append(channel != null ? channel.name : air.getChannelName());
-        // This is a small point of contention because it uses the String resolver. If someone has
-        // many threads running and many keyword favorites, this will collide a lot more than you
-        // want on Part_Of_Parts.
-        fullShowTest.append('|'); air.appendMiscInfo(fullShowTest);
-        fullShowTest.append('|'); fullShowTest.append(s.getExternalID());
-      }
+        appendKeywordFields(fullShowTest, air, s, channel);
       synchronized (this)
       {
         if (!currKeyword.equals(cachedKeywordForMats))
@@ -1116,6 +1092,37 @@ public class Agent extends DBObject implements Favorite
     return true;
   }
 
+  /**
+   * Appends everything other than the title that a keyword is matched against, each field is preceded by a '|'.
+   * The channel may be null if it hasn't been looked up yet.
+   */
+  static void appendKeywordFields(StringBuilder sb, Airing air, Show s, Channel channel)
+  {
+    sb.append('|'); sb.append(s.getEpisodeName());
+    sb.append('|'); sb.append(s.getDesc());
+    sb.append('|'); sb.append(s.getYear());
+    for (int i = 0; i < s.people.length; i++)
+    {
+      sb.append('|'); sb.append(s.people[i].name);
+    }
+    sb.append('|'); sb.append(s.getCategory());
+    sb.append('|'); sb.append(s.getSubCategory());
+    for (int i = 2; i < s.categories.length; i++)
+    {
+      sb.append('|');
+      sb.append(s.categories[i].name);
+    }
+    sb.append('|'); s.appendBonusesString(sb);
+    sb.append('|'); s.appendExpandedRatingsString(sb);
+    sb.append('|'); sb.append(s.getLanguage());
+    sb.append('|'); sb.append(channel != null ? channel.name : air.getChannelName());
+    // This is a small point of contention because it uses the String resolver. If someone has
+    // many threads running and many keyword favorites, this will collide a lot more than you
+    // want on Part_Of_Parts.
+    sb.append('|'); air.appendMiscInfo(sb);
+    sb.append('|'); sb.append(s.getExternalID());
+  }
+
   // Returns false if it's an agent that shouldn't exist
   boolean calcWatchProb(boolean controlCPUUsage, Airing[] watchAirs, Airing[] wastedAirs,
                         boolean aggressiveNegativeProfiling, Carny.CarnyCache cache)
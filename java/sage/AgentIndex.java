@@ -0,0 +1,305 @@
+/*
+ * Copyright 2015 The SageTV Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inverted indexes from the properties of a Show/Airing to the Agents that could match it, so an Airing only needs
+ * to be tested against the Agents that have a chance of following it instead of all of them. Each Agent is put under
+ * the one key that is the most selective for it (title, person, category, channel name, network and then a whole
+ * word from its keyword); an Airing then looks up each of its own values for those and the Agents that were found
+ * are tested with followsTrend. Agents without any of those go on a list that's always tested.
+ * <p>
+ * The index is a snapshot of the Agents it was created with, the candidates and matches are always returned in the
+ * same order as those Agents were in.
+ */
+final class AgentIndex
+{
+  AgentIndex(Agent[] agents)
+  {
+    this.agents = agents;
+    alwaysCheck = new IntBuffer(16);
+    for (int i = 0; i < agents.length; i++)
+    {
+      Agent bond = agents[i];
+      if (bond == null)
+        continue;
+      if (bond.title != null)
+        addToIndex(titleIndex, foldCase(bond.title.name), i);
+      else if (bond.person != null)
+        addToIndex(personIndex, foldCase(bond.person.name), i);
+      // Main and sub categories can match each other, so they share an index
+      else if (bond.category != null)
+        addToIndex(categoryIndex, bond.category.name, i);
+      else if (bond.subCategory != null)
+        addToIndex(categoryIndex, bond.subCategory.name, i);
+      else if (bond.chanName.length() > 0 && bond.chanNames != null && bond.chanNames.length > 0)
+      {
+        for (int j = 0; j < bond.chanNames.length; j++)
+          addToIndex(channelIndex, bond.chanNames[j], i);
+      }
+      else if (bond.network != null)
+        addToIndex(networkIndex, bond.network.name, i);
+      else
+      {
+        String term = getKeywordTerm(bond.keyword);
+        if (term != null)
+          addToIndex(keywordIndex, term, i);
+        else
+          alwaysCheck.add(i);
+      }
+    }
+  }
+
+  int size()
+  {
+    return agents.length;
+  }
+
+  /**
+   * Returns the Agents that could follow this Airing; all of the Agents that do follow it are in here.
+   */
+  Agent[] getCandidates(Airing air, StringBuilder sbCache)
+  {
+    Show s = (air == null) ? null : air.getShow();
+    if (s == null)
+      return Pooler.EMPTY_AGENT_ARRAY;
+    IntBuffer found = new IntBuffer(alwaysCheck.size + 16);
+    found.addAll(alwaysCheck);
+    if (s.title != null)
+      found.addAll(titleIndex.get(foldCase(s.title.name)));
+    for (int i = 0; i < s.people.length; i++)
+      found.addAll(personIndex.get(foldCase(s.people[i].name)));
+    for (int i = 0; i < s.categories.length && i < 2; i++)
+      found.addAll(categoryIndex.get(s.categories[i].name));
+    if (!channelIndex.isEmpty() || !networkIndex.isEmpty())
+    {
+      Channel c = air.getChannel();
+      if (c != null)
+      {
+        found.addAll(channelIndex.get(c.name));
+        if (c.network != null)
+          found.addAll(networkIndex.get(c.network.name));
+      }
+    }
+    if (!keywordIndex.isEmpty())
+    {
+      StringBuilder sb = (sbCache == null) ? new StringBuilder() : sbCache;
+      sb.setLength(0);
+      sb.append(s.getTitle());
+      Agent.appendKeywordFields(sb, air, s, null);
+      Set<String> terms = new HashSet<String>();
+      addTerms(sb, terms);
+      for (String term : terms)
+        found.addAll(keywordIndex.get(term));
+    }
+    // They need to be in the same order as the Agents are in, and an Agent can be found more than once
+    int[] ids = Arrays.copyOf(found.data, found.size);
+    Arrays.sort(ids);
+    Agent[] rv = new Agent[ids.length];
+    int numAgents = 0;
+    for (int i = 0; i < ids.length; i++)
+    {
+      if (i == 0 || ids[i] != ids[i - 1])
+        rv[numAgents++] = agents[ids[i]];
+    }
+    return (numAgents == rv.length) ? rv : Arrays.copyOf(rv, numAgents);
+  }
+
+  /**
+   * Returns all of the Agents that follow this Airing, the arguments are the same as they are for followsTrend.
+   */
+  List<Agent> getMatches(Airing air, boolean mustBeViewable, StringBuilder sbCache, boolean skipKeyword,
+      boolean ignoreDisabledFlag)
+  {
+    Agent[] candidates = getCandidates(air, sbCache);
+    List<Agent> rv = new ArrayList<Agent>(Math.min(candidates.length, 8));
+    for (int i = 0; i < candidates.length; i++)
+    {
+      if (candidates[i].followsTrend(air, mustBeViewable, sbCache, skipKeyword, ignoreDisabledFlag))
+        rv.add(candidates[i]);
+    }
+    return rv;
+  }
+
+  /**
+   * Returns the first Agent that follows this Airing, or null if none of them do.
+   */
+  Agent getFirstMatch(Airing air, boolean mustBeViewable, StringBuilder sbCache)
+  {
+    Agent[] candidates = getCandidates(air, sbCache);
+    for (int i = 0; i < candidates.length; i++)
+    {
+      if (candidates[i].followsTrend(air, mustBeViewable, sbCache))
+        return candidates[i];
+    }
+    return null;
+  }
+
+  /**
+   * Returns a key that's the same for two Strings iff they're equal when ignoring case, the same way
+   * String.equalsIgnoreCase compares characters.
+   */
+  static String foldCase(String str)
+  {
+    char[] chars = null;
+    for (int i = 0; i < str.length(); i++)
+    {
+      char c = str.charAt(i);
+      char fold = Character.toLowerCase(Character.toUpperCase(c));
+      if (fold != c)
+      {
+        if (chars == null)
+          chars = str.toCharArray();
+        chars[i] = fold;
+      }
+    }
+    return (chars == null) ? str : new String(chars);
+  }
+
+  /**
+   * Returns a lower case word that's in every match of this keyword, or null if there isn't one that can be found
+   * that way. The keyword is broken up the same way followsTrend does it; only the parts that are just letters,
+   * digits and spaces are plain whole word searches, anything else could be a wildcard or a regular expression. The
+   * longest word is used since it's most likely to be the rarest one.
+   */
+  static String getKeywordTerm(String keyword)
+  {
+    if (keyword == null)
+      return null;
+    if (keyword.startsWith("TITLE:"))
+      keyword = keyword.substring("TITLE:".length()).trim();
+    List<String> subPats = new ArrayList<String>();
+    StringBuilder currPat = new StringBuilder();
+    boolean inQuote = false;
+    for (int i = 0; i < keyword.length(); i++)
+    {
+      char c = keyword.charAt(i);
+      if (c == '"' || (c == ' ' && !inQuote))
+      {
+        if (c == '"')
+          inQuote = !inQuote;
+        if (currPat.length() > 0)
+        {
+          subPats.add(currPat.toString());
+          currPat.setLength(0);
+        }
+      }
+      else
+        currPat.append(c);
+    }
+    if (currPat.length() > 0)
+      subPats.add(currPat.toString());
+    String rv = null;
+    for (String subPat : subPats)
+    {
+      boolean plain = true;
+      for (int i = 0; i < subPat.length() && plain; i++)
+        plain = subPat.charAt(i) == ' ' || isTermChar(subPat.charAt(i));
+      if (!plain)
+        continue;
+      String[] words = subPat.split(" ");
+      for (int i = 0; i < words.length; i++)
+      {
+        if (rv == null || words[i].length() > rv.length())
+          rv = words[i];
+      }
+    }
+    return (rv == null || rv.length() == 0) ? null : rv.toLowerCase();
+  }
+
+  /**
+   * Adds all of the lower case words in the text to the set. Words are runs of ASCII letters and digits, which are
+   * split at least as finely as whole word matching splits them.
+   */
+  static void addTerms(CharSequence text, Set<String> terms)
+  {
+    int start = -1;
+    for (int i = 0; i <= text.length(); i++)
+    {
+      if (i < text.length() && isTermChar(text.charAt(i)))
+      {
+        if (start < 0)
+          start = i;
+      }
+      else if (start >= 0)
+      {
+        terms.add(text.subSequence(start, i).toString().toLowerCase());
+        start = -1;
+      }
+    }
+  }
+
+  private static boolean isTermChar(char c)
+  {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+  }
+
+  private static void addToIndex(Map<String, IntBuffer> index, String key, int agentIdx)
+  {
+    IntBuffer ids = index.get(key);
+    if (ids == null)
+      index.put(key, ids = new IntBuffer(1));
+    // An Agent can be on more than one channel with the same name
+    else if (ids.data[ids.size - 1] == agentIdx)
+      return;
+    ids.add(agentIdx);
+  }
+
+  private static class IntBuffer
+  {
+    IntBuffer(int size)
+    {
+      data = new int[Math.max(1, size)];
+    }
+
+    void add(int x)
+    {
+      if (size == data.length)
+        data = Arrays.copyOf(data, data.length * 2);
+      data[size++] = x;
+    }
+
+    void addAll(IntBuffer x)
+    {
+      if (x == null)
+        return;
+      if (size + x.size > data.length)
+        data = Arrays.copyOf(data, Math.max(data.length * 2, size + x.size));
+      System.arraycopy(x.data, 0, data, size, x.size);
+      size += x.size;
+    }
+
+    int[] data;
+    int size;
+  }
+
+  private final Agent[] agents;
+  private final IntBuffer alwaysCheck;
+  private final Map<String, IntBuffer> titleIndex = new HashMap<String, IntBuffer>();
+  private final Map<String, IntBuffer> personIndex = new HashMap<String, IntBuffer>();
+  private final Map<String, IntBuffer> categoryIndex = new HashMap<String, IntBuffer>();
+  private final Map<String, IntBuffer> channelIndex = new HashMap<String, IntBuffer>();
+  private final Map<String, IntBuffer> networkIndex = new HashMap<String, IntBuffer>();
+  private final Map<String, IntBuffer> keywordIndex = new HashMap<String, IntBuffer>();
+}
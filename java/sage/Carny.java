@@ -40,6 +40,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class Carny implements Runnable
 {
@@ -57,6 +58,13 @@ public final class Carny implements Runnable
   // very moderate performance loss.
   private static final String MAP_DENSITY = "carny_map_density";
   static final String CARNY_KEY = "carny";
+  // Changes to Airings, Agents and watches are applied to the profile incrementally instead of redoing all of it
+  private static final String INCREMENTAL_PROFILING = "carny_incremental_profiling";
+  // If more Airings or Agents than these changed then the whole profile is redone instead
+  private static final String INCREMENTAL_MAX_AIRINGS = "carny_incremental_max_airings";
+  private static final String INCREMENTAL_MAX_AGENTS = "carny_incremental_max_agents";
+  // The whole profile is still redone at least this often
+  private static final String FULL_PROFILE_INTERVAL = "carny_full_profile_interval";
 
   private static final long LOOKAHEAD = 14*24*60*60*1000L;
   /*
@@ -76,6 +84,7 @@ public final class Carny implements Runnable
   public static final Object LOVE_JOB = new Object();
   public static final Object LOVE_CLEAR_JOB = new Object();
   public static final Object WASTED_JOB = new Object();
+  public static final Object DELTA_JOB = new Object();
 
   private static String getJobName(Object jobby)
   {
@@ -95,6 +104,8 @@ public final class Carny implements Runnable
       return "Req";
     else if (jobby == WASTED_JOB)
       return "Wasted";
+    else if (jobby == DELTA_JOB)
+      return "Delta";
     else return "Unknown";
   }
 
@@ -130,6 +141,8 @@ public final class Carny implements Runnable
     mustSeeSet = Collections.synchronizedSet(new HashSet<Airing>());
     loveAirSet = Collections.synchronizedSet(new HashSet<Airing>());
     swapMap = new HashMap<Airing, Airing>();
+    // The queue can have the same object more than once
+    maxProfileDeltas = 4 * Sage.getInt(INCREMENTAL_MAX_AIRINGS, 10000);
     agentWorkQueue = new ConcurrentLinkedQueue<>();
     agentWorkers = Executors.newCachedThreadPool(new ThreadFactory()
     {
@@ -178,21 +191,7 @@ public final class Carny implements Runnable
             continue;
           }
         }
-        while (!jobs.isEmpty())
-        {
-          Object[] currJob = jobs.remove(0);
-          if (Sage.DBG) System.out.println("Carny got a " + getJobName(currJob[0]) + " job of " + currJob[1]);
-          if (currJob[0] == WATCH_MARK_JOB ||
-              currJob[0] == WATCH_REAL_JOB)
-          {
-            applyWatchData((Airing) currJob[1]);
-          }
-          else if (currJob[0] == WASTED_JOB)
-            applyWasteData((Airing) currJob[1]);
-          synchronized (jobs) { jobs.notifyAll(); }
-        }
-        stdProcessing();
-
+        processJobs();
       }catch(Throwable t)
       {
         System.out.println("CARNY ERROR:" + t);
@@ -201,6 +200,54 @@ public final class Carny implements Runnable
     }
   }
 
+  // Handles all of the submitted jobs and then updates the profile; returns true if it was done incrementally
+  private boolean processJobs()
+  {
+    while (!jobs.isEmpty())
+    {
+      Object[] currJob = jobs.remove(0);
+      if (Sage.DBG) System.out.println("Carny got a " + getJobName(currJob[0]) + " job of " + currJob[1]);
+      if (currJob[0] == WATCH_MARK_JOB ||
+          currJob[0] == WATCH_REAL_JOB)
+      {
+        applyWatchData((Airing) currJob[1]);
+        watchDeltas.add((Airing) currJob[1]);
+      }
+      else if (currJob[0] == WASTED_JOB)
+      {
+        applyWasteData((Airing) currJob[1]);
+        watchDeltas.add((Airing) currJob[1]);
+      }
+      else if (currJob[0] == WATCH_CLEAR_JOB)
+      {
+        if (currJob[1] instanceof Airing)
+          watchDeltas.add((Airing) currJob[1]);
+      }
+      else if (currJob[0] != DELTA_JOB && currJob[0] != LOVE_JOB)
+        fullProfileNeeded = true;
+      synchronized (jobs) { jobs.notifyAll(); }
+    }
+    if (!fullProfileNeeded && deltaProcessing())
+      return true;
+    stdProcessing();
+    return false;
+  }
+
+  // Redoes the whole profile on the calling thread instead of the Carny thread; for tests
+  void processFullProfileNow()
+  {
+    doneInit = true;
+    jobs.clear();
+    stdProcessing();
+  }
+
+  // Handles the submitted jobs on the calling thread instead of the Carny thread; for tests
+  boolean processJobsNow()
+  {
+    doneInit = true;
+    return processJobs();
+  }
+
   void goodbye()
   {
     alive = false;
@@ -221,7 +268,7 @@ public final class Carny implements Runnable
     synchronized (jobs)
     {
       for (int i = 0; i < jobs.size(); i++)
-        if (jobs.elementAt(i)[0] != STD_JOB)
+        if (jobs.elementAt(i)[0] != STD_JOB && jobs.elementAt(i)[0] != DELTA_JOB)
         {
           if (underTimeLimit || jobs.elementAt(i)[0] == LOVE_JOB)
             return false;
@@ -810,6 +857,33 @@ public final class Carny implements Runnable
       jobs.notifyAll();
     }
   }
+  // Applies the database changes since the last profile; the whole profile is only redone if it needs to be
+  void kickDelta()
+  {
+    synchronized (jobs)
+    {
+      jobs.addElement(new Object[] { DELTA_JOB, null });
+      jobs.notifyAll();
+    }
+  }
+
+  /**
+   * Called by the Wizard when an Airing, Agent or Channel is added, updated or removed, or a Show is updated, so the
+   * profile can be updated incrementally. This is done while the table is locked so all it does is queue it.
+   */
+  void notifyProfileChange(DBObject changed)
+  {
+    if (profileDeltasOverflow || !alive)
+      return;
+    if (numProfileDeltas.incrementAndGet() > maxProfileDeltas)
+    {
+      // Too much has changed; so it'll redo the whole profile anyways
+      profileDeltasOverflow = true;
+      profileDeltas.clear();
+    }
+    else
+      profileDeltas.add(changed);
+  }
 
   private void applyWatchData(Airing watchAir)
   {
@@ -1110,6 +1184,12 @@ public final class Carny implements Runnable
   private void stdProcessing()
   {
     String lastMessage = null;
+    // Everything that changed up until now will be in this profile
+    profileDeltas.clear();
+    numProfileDeltas.set(0);
+    profileDeltasOverflow = false;
+    watchDeltas.clear();
+    boolean completeProfile = doneInit || !Sage.getBoolean(LIMITED_CARNY_INIT, true);
     if (!doneInit)
     {
       lastMessage = Sage.rez("Module_Init_Progress", new Object[] { Sage.rez("Profiler"), new Double(0)});
@@ -1557,6 +1637,11 @@ public final class Carny implements Runnable
         SchedulerSelector.getInstance().kick(false);
       // This must be set or Scheduler and Seeker will not function.
       prepped = true;
+      if (completeProfile)
+      {
+        fullProfileNeeded = false;
+        lastFullProfileTime = Sage.eventTime();
+      }
       return;
     }
 
@@ -1608,9 +1693,7 @@ public final class Carny implements Runnable
       Airing badAir = blackBalled.get(i);
       newWPMap.remove(badAir);
       newCauseMap.remove(badAir);
-      // Replaced with binary removals.
-      //newMustSeeSet.remove(badAir);
-      firstCallback.removeNewMustSeeSet(badAir);
+      newMustSeeSet.remove(badAir);
       //airSet.remove(badAir);
       firstCallback.removeAirSet(badAir);
     }
@@ -1620,9 +1703,7 @@ public final class Carny implements Runnable
       Airing badAir = stoners[i].getAiring();
       newWPMap.remove(badAir);
       newCauseMap.remove(badAir);
-      // Replaced with binary removals.
-      //newMustSeeSet.remove(badAir);
-      firstCallback.removeNewMustSeeSet(badAir);
+      newMustSeeSet.remove(badAir);
       //airSet.remove(badAir);
       firstCallback.removeAirSet(badAir);
     }
@@ -1668,6 +1749,11 @@ public final class Carny implements Runnable
 
     prepped = true;
     lastCycleCompleteTime = Sage.eventTime();
+    if (completeProfile)
+    {
+      fullProfileNeeded = false;
+      lastFullProfileTime = lastCycleCompleteTime;
+    }
 
     long timeSpan = lastCycleCompleteTime - cycleStartTime;
     if (timeSpan < Sage.MILLIS_PER_MIN * 2)
@@ -1692,8 +1778,412 @@ public final class Carny implements Runnable
     System.exit(0);*/
   }
 
+  /*
+   * Applies the changes to Airings, Agents and watches since the last profile without redoing the whole thing. All
+   * the Agents are checked against the Airings that changed, and the Agents that changed are checked against all the
+   * Airings, so only the Airings whose profile could have changed are evaluated again. The results for them are the
+   * same as what a full profile would have. Returns false if the whole profile needs to be done instead.
+   */
+  private boolean deltaProcessing()
+  {
+    if (!Sage.getBoolean(INCREMENTAL_PROFILING, true) || profileDeltasOverflow ||
+        Sage.eventTime() - lastFullProfileTime > Sage.getLong(FULL_PROFILE_INTERVAL, 6 * Sage.MILLIS_PER_HR))
+      return false;
+    long startTime = Sage.eventTime();
+    Set<Airing> changedAirs = new HashSet<Airing>();
+    Set<Agent> changedAgents = new HashSet<Agent>();
+    Set<Show> changedShows = new HashSet<Show>();
+    boolean channelChanged = false;
+    DBObject delta;
+    while ((delta = profileDeltas.poll()) != null)
+    {
+      numProfileDeltas.decrementAndGet();
+      if (delta instanceof Airing)
+        changedAirs.add((Airing) delta);
+      else if (delta instanceof Agent)
+        changedAgents.add((Agent) delta);
+      else if (delta instanceof Show)
+        changedShows.add((Show) delta);
+      else if (delta instanceof Channel)
+        channelChanged = true;
+    }
+    // Agents match on the names and networks of Channels, which could change what any of them match
+    if (channelChanged)
+    {
+      if (Sage.DBG) System.out.println("CARNY needs a full profile because a channel changed");
+      return false;
+    }
+    // A Show change can change which Agents match any of its Airings. If one of them was watched or wasted then the
+    // watch probability of the Agents that matched it before it changed is affected too; and we can't know which
+    // those are anymore.
+    for (Show changedShow : changedShows)
+    {
+      Airing[] showAirs = wiz.getAirings(changedShow, 0);
+      for (int i = 0; i < showAirs.length; i++)
+      {
+        if (wiz.getWatch(showAirs[i]) != null || wiz.getWastedForAiring(showAirs[i]) != null)
+        {
+          if (Sage.DBG) System.out.println("CARNY needs a full profile because a watched show changed " + changedShow);
+          return false;
+        }
+        changedAirs.add(showAirs[i]);
+      }
+    }
+    DBObject[] rawAgents = wiz.getRawAccess(Wizard.AGENT_CODE, Wizard.AGENTS_BY_CARNY_CODE);
+    StringBuilder sbCache = new StringBuilder();
+    // Watching an Airing changes its own WP and the watch probability of all of the Agents that it follows
+    if (!watchDeltas.isEmpty())
+    {
+      Agent[] allAgents = new Agent[rawAgents.length];
+      for (int i = 0; i < rawAgents.length; i++)
+        allAgents[i] = (Agent) rawAgents[i];
+      AgentIndex allAgentIndex = new AgentIndex(allAgents);
+      for (Airing watchAir : watchDeltas)
+      {
+        changedAirs.add(watchAir);
+        changedAgents.addAll(allAgentIndex.getMatches(watchAir, false, sbCache, false, true));
+      }
+    }
+    watchDeltas.clear();
+    if (changedAirs.isEmpty() && changedAgents.isEmpty())
+      return true;
+    if (changedAirs.size() > Sage.getInt(INCREMENTAL_MAX_AIRINGS, 10000) ||
+        changedAgents.size() > Sage.getInt(INCREMENTAL_MAX_AGENTS, 50))
+    {
+      if (Sage.DBG) System.out.println("CARNY has too many changes for an incremental profile airs=" +
+          changedAirs.size() + " agents=" + changedAgents.size());
+      return false;
+    }
+    synchronized (this)
+    {
+      swapMap.clear();
+    }
+
+    List<Agent> activeAgents = new ArrayList<Agent>(rawAgents.length);
+    for (int i = 0; i < rawAgents.length; i++)
+    {
+      Agent currAgent = (Agent) rawAgents[i];
+      if (currAgent != null && !currAgent.testAgentFlag(Agent.DISABLED_FLAG))
+        activeAgents.add(currAgent);
+    }
+    // The watch probability of the Agents that changed needs to be calculated again, the rest are the same as they
+    // were in the last profile
+    List<Agent> traitors = new ArrayList<Agent>();
+    if (!changedAgents.isEmpty())
+    {
+      CarnyCache cache = new CarnyCache(null, null, null, null);
+      cache.airWorkCache = new CacheList(1000);
+      boolean aggressiveNegativeProfiling = Sage.getBoolean("aggressive_negative_profiling", false);
+      for (Agent currAgent : activeAgents)
+      {
+        if (changedAgents.contains(currAgent) &&
+            !currAgent.calcWatchProb(false, null, null, aggressiveNegativeProfiling, cache))
+          traitors.add(currAgent);
+      }
+      activeAgents.removeAll(traitors);
+    }
+
+    // These are split up the same way the full profile does it
+    long currTime = Sage.time();
+    long currLookahead = Sage.getLong("scheduling_lookahead", LOOKAHEAD);
+    Set<Airing> fileAirs = new HashSet<Airing>();
+    MediaFile[] mfs = wiz.getFiles();
+    for (int i = 0; i < mfs.length; i++)
+    {
+      if (mfs[i] != null && !mfs[i].isArchiveFile() && mfs[i].isTV())
+        fileAirs.add(mfs[i].getContentAiring());
+    }
+
+    // Find all of the Airings whose profile can be different now
+    Set<Airing> affectedAirs = new HashSet<Airing>(changedAirs);
+    if (!changedAgents.isEmpty())
+    {
+      boolean favoriteChanged = false;
+      synchronized (this)
+      {
+        for (Map.Entry<Airing, Agent> ent : causeMap.entrySet())
+        {
+          if (changedAgents.contains(ent.getValue()))
+            affectedAirs.add(ent.getKey());
+        }
+      }
+      for (Agent currAgent : changedAgents)
+        favoriteChanged |= currAgent.isFavorite();
+      // We don't know which of the loves came from a Favorite so they all need to be checked again
+      if (favoriteChanged)
+      {
+        synchronized (loveAirSet)
+        {
+          affectedAirs.addAll(loveAirSet);
+        }
+      }
+      // This includes the Agents that were removed or disabled; removing a Favorite already took its Airings out
+      // of the loves and the cause map, so this is the only way to find them
+      List<Agent> searchAgents = new ArrayList<Agent>(changedAgents);
+      searchAgents.removeAll(traitors);
+      if (!searchAgents.isEmpty())
+      {
+        DBObject[] rawAirs = wiz.getRawAccess(Wizard.AIRING_CODE, Wizard.AIRINGS_BY_CT_CODE);
+        List<Airing> searchAirs = new ArrayList<Airing>(rawAirs.length + fileAirs.size());
+        for (int i = 0; i < rawAirs.length; i++)
+        {
+          if (rawAirs[i] != null)
+            searchAirs.add((Airing) rawAirs[i]);
+        }
+        searchAirs.addAll(fileAirs);
+        for (Airing a : searchAirs)
+        {
+          if (affectedAirs.contains(a) || !a.hasMediaMaskAny(DBObject.MEDIA_MASK_TV))
+            continue;
+          boolean inWindow = fileAirs.contains(a) || isProfileWindowAir(a, currTime, currLookahead);
+          for (Agent currAgent : searchAgents)
+          {
+            if ((inWindow || currAgent.isFavorite()) && currAgent.followsTrend(a, true, sbCache, false, true))
+            {
+              affectedAirs.add(a);
+              break;
+            }
+          }
+        }
+      }
+    }
+
+    List<Airing> allAirs = new ArrayList<Airing>();
+    List<Airing> remAirs = new ArrayList<Airing>();
+    for (Airing a : affectedAirs)
+    {
+      // Anything that was removed from the DB just gets dropped from the profile
+      if (!a.hasMediaMaskAny(DBObject.MEDIA_MASK_TV) || !wiz.ok(a))
+        continue;
+      if (fileAirs.contains(a) || isProfileWindowAir(a, currTime, currLookahead))
+        allAirs.add(a);
+      else
+        remAirs.add(a);
+    }
+
+    // This is the same as what the agent workers do, but only for the affected Airings
+    String paidProgRez = Sage.rez("Paid_Programming").toLowerCase();
+    Map<Airing, WPCauseValue> newCauses = new HashMap<Airing, WPCauseValue>();
+    Set<Airing> newLoves = new HashSet<Airing>();
+    Set<Airing> blackBalled = new HashSet<Airing>();
+    Set<Airing> newAirSet = new HashSet<Airing>();
+    Set<Airing> watchedPotsToClear = new HashSet<Airing>();
+    Set<Airing> newMustSees = new HashSet<Airing>();
+    // Each Airing is only tested against the Agents the index says can follow it. They come back in the same order
+    // as the active Agents are in, so the causes come out the same as they would going through the Agents one at a
+    // time.
+    AgentIndex agentIndex = new AgentIndex(activeAgents.toArray(Pooler.EMPTY_AGENT_ARRAY));
+    Map<Agent, Boolean> dontScheduleAgents = new HashMap<Agent, Boolean>();
+    for (int i = 0; i < allAirs.size(); i++)
+    {
+      Airing agentPot = allAirs.get(i);
+      Agent[] candidates = agentIndex.getCandidates(agentPot, sbCache);
+      for (int j = 0; j < candidates.length; j++)
+      {
+        Agent currAgent = candidates[j];
+        if (!currAgent.followsTrend(agentPot, true, sbCache, false, true))
+          continue;
+        boolean isFavorite = currAgent.isFavorite();
+        boolean negator = currAgent.isNegativeNelly();
+        if (isFavorite)
+          newLoves.add(agentPot);
+        if (negator)
+        {
+          blackBalled.add(agentPot);
+          continue;
+        }
+        Show show = agentPot.getShow();
+        if ((show != null && show.title != null && show.title.equalsIgnoreCase(paidProgRez)) ||
+            wiz.isNoShow(agentPot.showID))
+          continue;
+        newAirSet.add(agentPot);
+        boolean isWatchedForSchedulingPurposes = agentPot.isWatchedForSchedulingPurpose();
+        WPCauseValue causeValue = newCauses.get(agentPot);
+        if (causeValue == null)
+        {
+          newCauses.put(agentPot, new WPCauseValue(currAgent, agentPot));
+          if (isWatchedForSchedulingPurposes)
+            watchedPotsToClear.add(agentPot);
+        }
+        else if (causeValue.compareAndReplace(currAgent, true) && isWatchedForSchedulingPurposes)
+          watchedPotsToClear.add(agentPot);
+        if (isWatchedForSchedulingPurposes)
+          continue;
+        if (isFavorite && currAgent.testAgentFlag(Agent.DONT_AUTODELETE_FLAG) &&
+            currAgent.getAgentFlag(Agent.KEEP_AT_MOST_MASK) > 0)
+        {
+          Boolean dontScheduleThisAgent = dontScheduleAgents.get(currAgent);
+          if (dontScheduleThisAgent == null)
+            dontScheduleAgents.put(currAgent, dontScheduleThisAgent = isKeepAtMostReached(currAgent, sbCache));
+          if (dontScheduleThisAgent)
+          {
+            MediaFile mf = wiz.getFileForAiring(agentPot);
+            if (mf == null || !mf.isCompleteRecording())
+            {
+              watchedPotsToClear.add(agentPot);
+              continue;
+            }
+          }
+        }
+        if (isFavorite)
+          newMustSees.add(agentPot);
+      }
+    }
+    for (int i = 0; i < remAirs.size(); i++)
+    {
+      Airing remAir = remAirs.get(i);
+      Agent[] candidates = agentIndex.getCandidates(remAir, sbCache);
+      for (int j = 0; j < candidates.length; j++)
+      {
+        if (candidates[j].isFavorite() && candidates[j].followsTrend(remAir, true, sbCache, false, true))
+        {
+          newLoves.add(remAir);
+          break;
+        }
+      }
+    }
+    // Remove any blackballs that are favorites now and then all of the negative energy
+    blackBalled.removeAll(newMustSees);
+    Wasted[] stoners = wiz.getWasted();
+    for (int i = 0; i < stoners.length; i++)
+    {
+      Airing badAir = stoners[i].getAiring();
+      if (affectedAirs.contains(badAir))
+        blackBalled.add(badAir);
+    }
+    for (Airing badAir : blackBalled)
+    {
+      newCauses.remove(badAir);
+      newMustSees.remove(badAir);
+      newAirSet.remove(badAir);
+    }
+
+    synchronized (this)
+    {
+      Map<Airing, Float> newWPMap = new HashMap<Airing, Float>(wpMap);
+      Map<Airing, Agent> newCauseMap = new HashMap<Airing, Agent>(causeMap);
+      Set<Airing> newLoveAirSet;
+      synchronized (loveAirSet)
+      {
+        newLoveAirSet = new HashSet<Airing>(loveAirSet);
+      }
+      Set<Airing> newMustSeeSet = new HashSet<Airing>(mustSeeSet);
+      Set<Airing> newPots = new HashSet<Airing>(Arrays.asList(pots));
+      newWPMap.keySet().removeAll(affectedAirs);
+      newCauseMap.keySet().removeAll(affectedAirs);
+      newLoveAirSet.removeAll(affectedAirs);
+      newMustSeeSet.removeAll(affectedAirs);
+      newPots.removeAll(affectedAirs);
+      for (WPCauseValue value : newCauses.values())
+      {
+        newCauseMap.put(value.airing, value.agent);
+        if (!watchedPotsToClear.contains(value.airing))
+          newWPMap.put(value.airing, value.wp);
+      }
+      newLoveAirSet.addAll(newLoves);
+      newMustSeeSet.addAll(newMustSees);
+      newPots.addAll(newAirSet);
+      // Airings that got swapped in the DB while we were doing this
+      for (Map.Entry<Airing, Airing> ent : swapMap.entrySet())
+      {
+        Airing oldAir = ent.getKey();
+        Airing newAir = ent.getValue();
+        Float thisFloat = newWPMap.remove(oldAir);
+        if (thisFloat != null)
+          newWPMap.put(newAir, thisFloat);
+        Agent thisAgent = newCauseMap.remove(oldAir);
+        if (thisAgent != null)
+          newCauseMap.put(newAir, thisAgent);
+        if (newLoveAirSet.remove(oldAir))
+          newLoveAirSet.add(newAir);
+        if (newMustSeeSet.remove(oldAir))
+          newMustSeeSet.add(newAir);
+        if (newPots.remove(oldAir))
+          newPots.add(newAir);
+      }
+      Airing[] newPotsArray = newPots.toArray(Pooler.EMPTY_AIRING_ARRAY);
+      Arrays.sort(newPotsArray, DBObject.ID_COMPARATOR);
+      wpMap = newWPMap;
+      causeMap = newCauseMap;
+      loveAirSet = newLoveAirSet;
+      mustSeeSet = newMustSeeSet;
+      pots = newPotsArray;
+    }
+
+    if (!traitors.isEmpty())
+    {
+      if (Sage.DBG) System.out.println("CARNY Traitors:" + traitors);
+      for (int i = 0; i < traitors.size(); i++)
+        wiz.removeAgent(traitors.get(i));
+    }
+    clientSyncAll();
+    if (Sage.DBG) System.out.println("CARNY applied incremental profile for " + changedAirs.size() + " changed airs & " +
+        changedAgents.size() + " changed agents; re-evaluated " + affectedAirs.size() + " airs in " +
+        (Sage.eventTime() - startTime) + "ms");
+    SchedulerSelector.getInstance().kick(false);
+    return true;
+  }
+
+  // Same test as the full profile uses for the Airings that could be scheduled
+  private static boolean isProfileWindowAir(Airing a, long currTime, long currLookahead)
+  {
+    return a.getStartTime() < currTime + currLookahead &&
+        a.getStartTime() >= currTime - Scheduler.SCHEDULING_LOOKBEHIND && a.isTV();
+  }
+
+  // True if this Favorite already has as many complete recordings as it's supposed to keep
+  private boolean isKeepAtMostReached(Agent fav, StringBuilder sbCache)
+  {
+    int fileCount = 0;
+    MediaFile[] mfs = wiz.getFiles();
+    for (int i = 0; i < mfs.length; i++)
+    {
+      MediaFile mf = mfs[i];
+      if (mf != null && !mf.isArchiveFile() && mf.isTV() && mf.isCompleteRecording() &&
+          fav.followsTrend(mf.getContentAiring(), true, sbCache, false, true))
+        fileCount++;
+    }
+    return fileCount >= fav.getAgentFlag(Agent.KEEP_AT_MOST_MASK);
+  }
+
+
   public int getWatchCount() { return globalWatchCount; }
 
+  /**
+   * Returns an index over all of the Favorites; it's created again after any of the Agents change.
+   */
+  AgentIndex getFavoriteIndex()
+  {
+    synchronized (favoriteIndexLock)
+    {
+      // Get the mod count first so a change while we're building it will build it again next time
+      long modCount = wiz.getModCount(Wizard.AGENT_CODE);
+      if (favoriteIndex == null || modCount != favoriteIndexModCount)
+      {
+        favoriteIndex = new AgentIndex(wiz.getFavorites());
+        favoriteIndexModCount = modCount;
+      }
+      return favoriteIndex;
+    }
+  }
+
+  /**
+   * Returns the first Favorite that matches this Airing, or null if there isn't one
+   */
+  public Agent getFavoriteForAiring(Airing air)
+  {
+    return getFavoriteIndex().getFirstMatch(air, false, new StringBuilder());
+  }
+
+  /**
+   * Returns all of the Favorites that match this Airing
+   */
+  public Agent[] getFavoritesForAiring(Airing air)
+  {
+    return getFavoriteIndex().getMatches(air, false, new StringBuilder(), false, false).toArray(
+        Pooler.EMPTY_AGENT_ARRAY);
+  }
+
   public synchronized float getWP(Airing air)
   {
     Float f = wpMap.get(air);
@@ -2140,7 +2630,21 @@ public final class Carny implements Runnable
   // everything, all we need to do is clear this queue and all of the threads will stop working
   // fairly quickly.
   private ConcurrentLinkedQueue<Agent> agentWorkQueue;
+
+  // Airings and Agents that changed in the DB since the last profile
+  private final ConcurrentLinkedQueue<DBObject> profileDeltas = new ConcurrentLinkedQueue<DBObject>();
+  private final AtomicInteger numProfileDeltas = new AtomicInteger();
+  private volatile boolean profileDeltasOverflow;
+  private int maxProfileDeltas;
+  // Airings that were watched or marked don't like since the last profile; only used on the Carny thread
+  private final Set<Airing> watchDeltas = new HashSet<Airing>();
+  // True until the profile has been done for all of the Agents, or when something can't be applied incrementally
+  private boolean fullProfileNeeded = true;
+  private long lastFullProfileTime;
   private ExecutorService agentWorkers;
+  private final Object favoriteIndexLock = new Object();
+  private AgentIndex favoriteIndex;
+  private long favoriteIndexModCount;
 
   private static final int strComp(DBObject s1, DBObject s2)
   {
@@ -2848,11 +3352,6 @@ public final class Carny implements Runnable
       binaryInsert(newMustSeeSet, airing);
     }
 
-    public void removeNewMustSeeSet(Airing airing)
-    {
-      binaryRemove(newMustSeeSet, airing);
-    }
-
     private WPCauseValue binaryReplace(List<WPCauseValue> list, Airing airing, Agent agent)
     {
       int id = airing.getID();
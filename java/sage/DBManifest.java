@@ -0,0 +1,236 @@
+/*
+ * Copyright 2015 The SageTV Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Describes a segmented checkpoint of the database. Each table has its own segment file which holds the same
+ * SIZE/FULL_DATA/INDEX_DATA records that are in a full DB file, and the transactions since those segments
+ * were written are in one or more tail files which are replayed in order after the segments are loaded.
+ * <p>
+ * All of the files live in one directory along with the manifest. Files are never modified once the manifest
+ * refers to them (except for the last tail which is the one being appended to); a checkpoint writes new files
+ * and then replaces the manifest atomically, so a crash at any point leaves a manifest that's usable.
+ */
+final class DBManifest
+{
+  static final String MANIFEST_NAME = "manifest";
+  private static final String FORMAT = "1";
+
+  DBManifest(File dir)
+  {
+    this.dir = dir;
+  }
+
+  /**
+   * Returns the manifest stored in the specified directory, or null if there isn't one.
+   */
+  static DBManifest load(File dir) throws IOException
+  {
+    File f = new File(dir, MANIFEST_NAME);
+    if (!f.isFile())
+      return null;
+    Properties props = new Properties();
+    FileInputStream fis = new FileInputStream(f);
+    try
+    {
+      props.load(fis);
+    }
+    finally
+    {
+      fis.close();
+    }
+    if (!FORMAT.equals(props.getProperty("format")))
+      throw new IOException("Unsupported DB checkpoint manifest format in " + f);
+    DBManifest rv = new DBManifest(dir);
+    try
+    {
+      rv.generation = Long.parseLong(props.getProperty("generation", "0"));
+      for (String key : props.stringPropertyNames())
+      {
+        if (key.startsWith("segment."))
+          rv.segments.put(Byte.parseByte(key.substring(8)), props.getProperty(key));
+      }
+    }
+    catch (NumberFormatException e)
+    {
+      throw new IOException("Invalid DB checkpoint manifest " + f + " error:" + e);
+    }
+    String tailStr = props.getProperty("tails", "");
+    for (String tail : tailStr.split(","))
+    {
+      if (tail.length() > 0)
+        rv.tails.add(tail);
+    }
+    return rv;
+  }
+
+  DBManifest copy()
+  {
+    DBManifest rv = new DBManifest(dir);
+    rv.generation = generation;
+    rv.segments.putAll(segments);
+    rv.tails.addAll(tails);
+    return rv;
+  }
+
+  File getDir()
+  {
+    return dir;
+  }
+
+  /**
+   * Returns a new generation number; this is used to create unique file names for segments and tails.
+   */
+  long nextGeneration()
+  {
+    return ++generation;
+  }
+
+  File getSegment(byte tableCode)
+  {
+    String name = segments.get(tableCode);
+    return (name == null) ? null : new File(dir, name);
+  }
+
+  void setSegment(byte tableCode, File f)
+  {
+    segments.put(tableCode, f.getName());
+  }
+
+  boolean hasSegment(byte tableCode)
+  {
+    return segments.containsKey(tableCode);
+  }
+
+  /**
+   * Returns the tail files in the order they need to be replayed; the last one is the one that's written to.
+   */
+  List<File> getTails()
+  {
+    List<File> rv = new ArrayList<File>(tails.size());
+    for (String tail : tails)
+      rv.add(new File(dir, tail));
+    return rv;
+  }
+
+  File getCurrentTail()
+  {
+    return tails.isEmpty() ? null : new File(dir, tails.get(tails.size() - 1));
+  }
+
+  void addTail(File f)
+  {
+    tails.add(f.getName());
+  }
+
+  void clearTails()
+  {
+    tails.clear();
+  }
+
+  /**
+   * Writes out the manifest and syncs it to disk before it replaces the prior one.
+   */
+  void save() throws IOException
+  {
+    Properties props = new Properties();
+    props.setProperty("format", FORMAT);
+    props.setProperty("generation", Long.toString(generation));
+    for (Map.Entry<Byte, String> ent : segments.entrySet())
+      props.setProperty("segment." + ent.getKey(), ent.getValue());
+    StringBuilder sb = new StringBuilder();
+    for (String tail : tails)
+    {
+      if (sb.length() > 0)
+        sb.append(',');
+      sb.append(tail);
+    }
+    props.setProperty("tails", sb.toString());
+    File tmpFile = new File(dir, MANIFEST_NAME + ".tmp");
+    FileOutputStream fos = new FileOutputStream(tmpFile);
+    try
+    {
+      props.store(fos, "SageTV DB checkpoint");
+      fos.flush();
+      fos.getFD().sync();
+    }
+    finally
+    {
+      fos.close();
+    }
+    try
+    {
+      Files.move(tmpFile.toPath(), new File(dir, MANIFEST_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    }
+    catch (AtomicMoveNotSupportedException e)
+    {
+      Files.move(tmpFile.toPath(), new File(dir, MANIFEST_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Deletes everything in the checkpoint directory that this manifest doesn't use. These are files that were
+   * replaced by a newer checkpoint or were left behind by one that didn't finish.
+   */
+  void deleteUnreferencedFiles()
+  {
+    File[] files = dir.listFiles();
+    if (files == null)
+      return;
+    for (File f : files)
+    {
+      String name = f.getName();
+      if (!name.equals(MANIFEST_NAME) && !segments.containsValue(name) && !tails.contains(name))
+      {
+        if (Sage.DBG) System.out.println("Removing unused DB checkpoint file:" + f);
+        f.delete();
+      }
+    }
+  }
+
+  /**
+   * Deletes the manifest and everything it refers to.
+   */
+  void deleteAll()
+  {
+    File[] files = dir.listFiles();
+    if (files != null)
+    {
+      for (File f : files)
+        f.delete();
+    }
+    dir.delete();
+  }
+
+  private final File dir;
+  private long generation;
+  private final Map<Byte, String> segments = new HashMap<Byte, String>();
+  private final List<String> tails = new ArrayList<String>();
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 The SageTV Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sage;
+
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.util.List;
+
+/**
+ * Finds the area of the screen that changed between two display lists, so a renderer whose target keeps its contents
+ * between frames only needs to redraw that part of it. The ops that are the same at the start and at the end of both
+ * lists draw the same thing in both frames; everything in between them is what changed, and the area is everything
+ * those ops in either list cover. Outside of that area the same ops are drawn in the same order, so the pixels there
+ * are the same as they were.
+ * <p>
+ * This only works for lists of image, shape and text ops. Video, effects, surfaces and animations depend on more than
+ * what's in the op itself, so null is returned for lists with any of those in them and the whole list needs to be
+ * drawn.
+ */
+final class DisplayListDiff
+{
+  private DisplayListDiff()
+  {
+  }
+
+  /**
+   * Returns the area that needs to be redrawn to go from the old display list to the new one, which is empty if
+   * they're the same; or null if they can't be compared.
+   */
+  static Rectangle getChangedArea(List<?> oldOps, List<?> newOps)
+  {
+    if (oldOps == null || newOps == null || !isDiffable(oldOps) || !isDiffable(newOps))
+      return null;
+    int oldSize = oldOps.size();
+    int newSize = newOps.size();
+    int start = 0;
+    while (start < oldSize && start < newSize &&
+        opsMatch((RenderingOp) oldOps.get(start), (RenderingOp) newOps.get(start)))
+      start++;
+    int oldEnd = oldSize;
+    int newEnd = newSize;
+    while (oldEnd > start && newEnd > start &&
+        opsMatch((RenderingOp) oldOps.get(oldEnd - 1), (RenderingOp) newOps.get(newEnd - 1)))
+    {
+      oldEnd--;
+      newEnd--;
+    }
+    Rectangle2D.Float area = null;
+    for (int i = start; i < oldEnd; i++)
+      area = addArea(area, (RenderingOp) oldOps.get(i));
+    for (int i = start; i < newEnd; i++)
+      area = addArea(area, (RenderingOp) newOps.get(i));
+    if (area == null)
+      return new Rectangle();
+    // Ops are rounded to whole pixels when they're drawn, so cover any pixel they could touch
+    int x = (int) Math.floor(area.x) - 1;
+    int y = (int) Math.floor(area.y) - 1;
+    return new Rectangle(x, y, (int) Math.ceil(area.x + area.width) + 1 - x,
+        (int) Math.ceil(area.y + area.height) + 1 - y);
+  }
+
+  static boolean isDiffable(List<?> ops)
+  {
+    for (int i = 0; i < ops.size(); i++)
+    {
+      RenderingOp op = (RenderingOp) ops.get(i);
+      if (op.isVideoOp() || op.isEffectOp() || op.isSurfaceOp() || op.isAnimationOp() ||
+          (!op.isImageOp() && !op.isPrimitiveOp() && !op.isTextOp()))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if the two ops draw exactly the same thing.
+   */
+  static boolean opsMatch(RenderingOp a, RenderingOp b)
+  {
+    if (a == b)
+      return true;
+    if (a.texture != b.texture || a.textureIndex != b.textureIndex || a.diffuseTexture != b.diffuseTexture ||
+        a.alphaFactor != b.alphaFactor || a.opFlags != b.opFlags)
+      return false;
+    if (!rectsMatch(a.destRect, b.destRect) || !rectsMatch(a.srcRect, b.srcRect) ||
+        !rectsMatch(a.copyImageRect, b.copyImageRect) || !rectsMatch(a.diffuseSrcRect, b.diffuseSrcRect))
+      return false;
+    if (a.renderColor == null ? b.renderColor != null : !a.renderColor.equals(b.renderColor))
+      return false;
+    if (a.primitive == null ? b.primitive != null : !a.primitive.equals(b.primitive))
+      return false;
+    if (a.text != b.text)
+    {
+      if (a.text == null || b.text == null || a.text.font != b.text.font ||
+          (a.text.string == null ? b.text.string != null : !a.text.string.equals(b.text.string)))
+        return false;
+    }
+    return true;
+  }
+
+  private static boolean rectsMatch(Rectangle2D.Float a, Rectangle2D.Float b)
+  {
+    if (a == null || b == null)
+      return a == b;
+    return SageRenderer.floatRectEquals(a, b);
+  }
+
+  private static Rectangle2D.Float addArea(Rectangle2D.Float area, RenderingOp op)
+  {
+    if (op.destRect == null || op.destRect.width <= 0 || op.destRect.height <= 0)
+      return area;
+    if (area == null)
+      return new Rectangle2D.Float(op.destRect.x, op.destRect.y, op.destRect.width, op.destRect.height);
+    Rectangle2D.union(area, op.destRect, area);
+    return area;
+  }
+}
@@ -631,11 +631,16 @@ public final class EPG implements Runnable
         if (Sage.time() - wiz.getLastMaintenance() > MAINTENANCE_FREQ)
           reqMaintenanceType = MaintenanceType.FULL;
 
-        if (reqMaintenanceType != MaintenanceType.NONE)
+        if (reqMaintenanceType == MaintenanceType.FULL)
         {
           Carny.getInstance().kickHard();
           SchedulerSelector.getInstance().kick(false);
         }
+        else if (reqMaintenanceType != MaintenanceType.NONE)
+        {
+          // Favorites get updated for the new guide data right away; that kicks the scheduler when it's done
+          Carny.getInstance().kickDelta();
+        }
 
         if (reqMaintenanceType != MaintenanceType.NONE
             && (!downloadWhileInactive || inactive))
@@ -1468,6 +1473,21 @@ public final class EPG implements Runnable
     return rv;
   }
 
+  // For tests; these stations can be viewed until the lineups change
+  void setViewableStations(int[] stationIDs)
+  {
+    stationIDCacheLock.writeLock().lock();
+    try
+    {
+      viewableStationIDCache = stationIDs.clone();
+      java.util.Arrays.sort(viewableStationIDCache);
+    }
+    finally
+    {
+      stationIDCacheLock.writeLock().unlock();
+    }
+  }
+
   private void createViewableStationIDCache()
   {
     stationIDCacheLock.writeLock().lock();
@@ -18,6 +18,8 @@ package sage;
 public class FFMPEGTranscoder implements TranscodeEngine
 {
   private static final boolean XCODE_DEBUG = Sage.DBG && Sage.getBoolean("media_server/transcode_debug", false);
+  // How long a read waits for the transcoder to produce the data before the rest of it is sent as padding
+  private static final long DATA_WAIT_TIME = 10000;
 
   public FFMPEGTranscoder()
   {
@@ -86,15 +88,11 @@ public class FFMPEGTranscoder implements TranscodeEngine
     if (bufferOutput)
     {
       long overage = inLength - getAvailableTranscodeBytes();
-      int numTries = 50;
       if (XCODE_DEBUG && overage > 0) System.out.println("Waiting for more data to appear in transcode buffer over=" + overage +
           " xcodeDone=" + xcodeDone);
 
-      while (overage > 0 && !xcodeDone && (numTries-- > 0))
-      {
-        try { Thread.sleep(200); } catch (Exception e){}
-        overage = inLength - getAvailableTranscodeBytes();
-      }
+      if (overage > 0 && !xcodeDone)
+        overage = waitForTranscodedData(xcodeBufferVirtualReadPos + inLength);
       if (overage > 0)
       {
         if (overage > leftToRead)
@@ -190,6 +188,103 @@ public class FFMPEGTranscoder implements TranscodeEngine
     }
   }
 
+  // Waits until the buffered output reaches endPos, the transcoder is done or the wait times out; the data consumer
+  // signals the lock whenever it fills a buffer. Returns how many bytes short of endPos the output still is.
+  private long waitForTranscodedData(long endPos)
+  {
+    long waitUntil = System.currentTimeMillis() + dataWaitTime;
+    synchronized (xcodeSyncLock)
+    {
+      long overage;
+      while ((overage = endPos - xcodeBufferVirtualSize) > 0 && !xcodeDone)
+      {
+        long waitTime = waitUntil - System.currentTimeMillis();
+        if (waitTime <= 0)
+          break;
+        try
+        {
+          xcodeSyncLock.wait(waitTime);
+        }
+        catch (InterruptedException e){}
+      }
+      return overage;
+    }
+  }
+
+  // Sets the done flag and wakes up any reads that are waiting for more data
+  private void setTranscodeDone()
+  {
+    synchronized (xcodeSyncLock)
+    {
+      xcodeDone = true;
+      xcodeSyncLock.notifyAll();
+    }
+  }
+
+  // Starts the thread that fills the transcode buffers from the transcoder's output and signals the reads waiting on them
+  void startDataConsumer()
+  {
+    xcodeStdoutThread = new Thread("XcodeDataConsumer")
+    {
+      public void run()
+      {
+        try
+        {
+          do
+          {
+            int currBuffNum;
+            int currBufReadPos = 0;
+            synchronized (xcodeSyncLock)
+            {
+              if (numFilledXcodeBuffers == xcodeBuffer.length && !xcodeDone)
+              {
+                if (XCODE_DEBUG) System.out.println("Waiting for transcode buffer to become available...");
+                try
+                {
+                  xcodeSyncLock.wait(100);
+                }
+                catch (InterruptedException e){}
+                continue;
+              }
+              currBuffNum = (xcodeBufferBaseNum + numFilledXcodeBuffers) % xcodeBuffer.length;
+            }
+            int leftToRead = xcodeBuffer[currBuffNum].length;
+            int numRead;
+            do
+            {
+              numRead = xcodeStdout.read(xcodeBuffer[currBuffNum], xcodeBuffer[currBuffNum].length - leftToRead, leftToRead);
+              if (XCODE_DEBUG) System.out.println("Read " + numRead + " bytes from transcoder");
+              leftToRead -= numRead;
+            } while (numRead != -1 && leftToRead > 0);
+            if (numRead == -1)
+            {
+              setTranscodeDone();
+              break;
+            }
+            else
+            {
+              synchronized (xcodeSyncLock)
+              {
+                numFilledXcodeBuffers++;
+                xcodeBufferVirtualSize += xcodeBuffer[currBuffNum].length;
+                if (XCODE_DEBUG) System.out.println("Number of transcode buffers filled=" + numFilledXcodeBuffers
+                    + " virtXcodedBytes=" + xcodeBufferVirtualSize);
+                xcodeSyncLock.notifyAll();
+              }
+            }
+          }while (true);
+        }
+        catch (Exception e){}
+        finally
+        {
+          setTranscodeDone();
+        }
+      }
+    };
+    xcodeStdoutThread.setDaemon(true);
+    xcodeStdoutThread.start();
+  }
+
   protected long estimateTranscodeSeekTimeFromOffset(long offset)
   {
     // This should return the time for the corresponding offset in the transcoded file. We estimate this
@@ -270,15 +365,11 @@ public class FFMPEGTranscoder implements TranscodeEngine
     if (bufferOutput)
     {
       long overage = offset + length - xcodeBufferVirtualSize;
-      int numTries = 50;
       if (XCODE_DEBUG && overage > 0) System.out.println("Xcoder waiting for more data to appear in transcode buffer over=" + overage +
           " xcodeDone=" + xcodeDone);
 
-      while (overage > 0 && !xcodeDone && (numTries-- > 0))
-      {
-        try { Thread.sleep(200); } catch (Exception e){}
-        overage = offset + length - xcodeBufferVirtualSize;
-      }
+      if (overage > 0 && !xcodeDone)
+        overage = waitForTranscodedData(offset + length);
       if (overage > 0)
       {
         if (overage > leftToRead)
@@ -367,7 +458,7 @@ public class FFMPEGTranscoder implements TranscodeEngine
   {
     if (overageBuf == null)
     {
-      overageBuf = java.nio.ByteBuffer.allocate(8192);
+      overageBuf = java.nio.ByteBuffer.allocateDirect(8192);
       byte[] overageFF = new byte[256];
       java.util.Arrays.fill(overageFF, 0, overageFF.length, (byte)0xFF);
       for (int i = 0; i < 8192; i += 256)
@@ -1365,64 +1456,7 @@ public class FFMPEGTranscoder implements TranscodeEngine
     forciblyStopped = false;
     if (bufferOutput)
     {
-      xcodeStdoutThread = new Thread("XcodeDataConsumer")
-      {
-        public void run()
-        {
-          try
-          {
-            do
-            {
-              int currBuffNum;
-              int currBufReadPos = 0;
-              synchronized (xcodeSyncLock)
-              {
-                if (numFilledXcodeBuffers == xcodeBuffer.length && !xcodeDone)
-                {
-                  if (XCODE_DEBUG) System.out.println("Waiting for transcode buffer to become available...");
-                  try
-                  {
-                    xcodeSyncLock.wait(100);
-                  }
-                  catch (InterruptedException e){}
-                  continue;
-                }
-                currBuffNum = (xcodeBufferBaseNum + numFilledXcodeBuffers) % xcodeBuffer.length;
-              }
-              int leftToRead = xcodeBuffer[currBuffNum].length;
-              int numRead;
-              do
-              {
-                numRead = xcodeStdout.read(xcodeBuffer[currBuffNum], xcodeBuffer[currBuffNum].length - leftToRead, leftToRead);
-                if (XCODE_DEBUG) System.out.println("Read " + numRead + " bytes from transcoder");
-                leftToRead -= numRead;
-              } while (numRead != -1 && leftToRead > 0);
-              if (numRead == -1)
-              {
-                xcodeDone = true;
-                break;
-              }
-              else
-              {
-                synchronized (xcodeSyncLock)
-                {
-                  numFilledXcodeBuffers++;
-                  xcodeBufferVirtualSize += xcodeBuffer[currBuffNum].length;
-                  if (XCODE_DEBUG) System.out.println("Number of transcode buffers filled=" + numFilledXcodeBuffers
-                      + " virtXcodedBytes=" + xcodeBufferVirtualSize);
-                }
-              }
-            }while (true);
-          }
-          catch (Exception e){}
-          finally
-          {
-            xcodeDone = true;
-          }
-        }
-      };
-      xcodeStdoutThread.setDaemon(true);
-      xcodeStdoutThread.start();
+      startDataConsumer();
     }
     else if (httplsMode)
     {
@@ -1528,7 +1562,7 @@ public class FFMPEGTranscoder implements TranscodeEngine
   public void stopTranscode()
   {
     forciblyStopped = true;
-    xcodeDone = true;
+    setTranscodeDone();
     if (XCODE_DEBUG) System.out.println("Destroying old transcode process...");
     if (xcodeProcess != null)
     {
@@ -1800,6 +1834,8 @@ public class FFMPEGTranscoder implements TranscodeEngine
 
   protected boolean bufferOutput;
   protected java.io.InputStream xcodeStdout;
+  // How long reads wait for buffered output; only changed by tests
+  long dataWaitTime = DATA_WAIT_TIME;
 
   protected static final int SEGMENT_FREE = 0;
   protected static final int SEGMENT_FILLING = 1;
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2015 The SageTV Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sage;
+
+import sage.io.SageDataFile;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes logged xcts to the DB file on its own thread. The threads modifying the DB just queue the xcts up
+ * and this writes them out in batches; it waits up to maxLatency msec for a batch to fill up and then syncs
+ * the file once for the whole batch. This keeps disk latency out of the threads that modify the DB.
+ * <p>
+ * The xcts are serialized by the threads that log them while the objects are still in the state being logged,
+ * so this only ever gets the finished bytes. If there's no file to write them to, or writing them fails, they're
+ * kept in order and written ahead of anything else once they can be.
+ */
+abstract class GroupCommitWriter implements Runnable
+{
+  // How often we try again to write xcts that couldn't be written
+  private static final long RETRY_INTERVAL = 1000;
+
+  GroupCommitWriter(Object outLock, int maxLatency, int maxBatch, int queueSize)
+  {
+    this.outLock = outLock;
+    this.maxLatency = Math.max(0, maxLatency);
+    this.maxBatch = Math.max(1, maxBatch);
+    this.queueSize = Math.max(this.maxBatch, queueSize);
+    queue = new ArrayDeque<byte[]>(this.queueSize);
+  }
+
+  /**
+   * Returns the file to log the xcts to, or null if there isn't one right now. This is called with the output
+   * lock held.
+   */
+  abstract SageDataFile getLogFile();
+
+  // The caller must make sure xcts are queued in the same order they occurred, so this is called with the lock
+  // that orders them held. That's why it never waits; waitForRoom is for that.
+  void queue(byte[] xctData)
+  {
+    synchronized (queue)
+    {
+      queue.add(xctData);
+      if (queue.size() >= maxBatch)
+        queue.notifyAll();
+    }
+  }
+
+  /**
+   * Blocks while the queue is full. If the disk can't keep up then we do need to slow down whoever is modifying the
+   * DB; but this must be called before taking the lock that orders the xcts so the others logging can keep going.
+   * The queue can go over its size by the number of threads logging at once.
+   */
+  void waitForRoom()
+  {
+    synchronized (queue)
+    {
+      while (queue.size() >= queueSize)
+      {
+        queue.notifyAll();
+        try { queue.wait(100); } catch (InterruptedException e) {}
+      }
+    }
+  }
+
+  // Blocks until everything that's been queued has been written or is being held because it couldn't be
+  void flush()
+  {
+    synchronized (queue)
+    {
+      flushRequested = true;
+      queue.notifyAll();
+      while (!queue.isEmpty() || writing)
+      {
+        try { queue.wait(100); } catch (InterruptedException e) {}
+      }
+    }
+  }
+
+  /**
+   * Removes and returns the xcts that couldn't be written, in the order they were logged. This must be called with
+   * the output lock held; it's for when the log file is being replaced and they need to be written some other way.
+   */
+  List<byte[]> takeUnwritten()
+  {
+    List<byte[]> rv = new ArrayList<byte[]>(unwritten);
+    unwritten.clear();
+    haveUnwritten = false;
+    return rv;
+  }
+
+  public void run()
+  {
+    List<byte[]> batch = new ArrayList<byte[]>(maxBatch);
+    while (true)
+    {
+      synchronized (queue)
+      {
+        while (queue.isEmpty())
+        {
+          flushRequested = false;
+          if (haveUnwritten)
+          {
+            try { queue.wait(RETRY_INTERVAL); } catch (InterruptedException e) {}
+            break;
+          }
+          try { queue.wait(); } catch (InterruptedException e) {}
+        }
+        // Give the batch a chance to fill up; but don't let anything sit around for more than maxLatency
+        long waitUntil = Sage.eventTime() + maxLatency;
+        long waitTime;
+        while (!queue.isEmpty() && !flushRequested && queue.size() < maxBatch && (waitTime = waitUntil - Sage.eventTime()) > 0)
+        {
+          try { queue.wait(waitTime); } catch (InterruptedException e) {}
+        }
+        while (!queue.isEmpty() && batch.size() < maxBatch)
+          batch.add(queue.poll());
+        writing = true;
+        // Let any threads waiting for room in the queue proceed
+        queue.notifyAll();
+      }
+      try
+      {
+        writeBatch(batch);
+      }
+      finally
+      {
+        batch.clear();
+        synchronized (queue)
+        {
+          writing = false;
+          queue.notifyAll();
+        }
+      }
+    }
+  }
+
+  // Writes out anything that couldn't be written before and then the batch; whatever can't be written now is kept
+  void writeBatch(List<byte[]> batch)
+  {
+    synchronized (outLock)
+    {
+      unwritten.addAll(batch);
+      SageDataFile frf = getLogFile();
+      if (frf == null)
+      {
+        haveUnwritten = !unwritten.isEmpty();
+        return;
+      }
+      int numWritten = 0;
+      for (; numWritten < unwritten.size(); numWritten++)
+      {
+        byte[] xctData = unwritten.get(numWritten);
+        long fp = frf.position();
+        try
+        {
+          frf.writeInt(xctData.length + 4);
+          frf.write(xctData);
+        }
+        catch (Exception e)
+        {
+          if (Sage.DBG) System.out.println("Error updating DB file:" + e);
+          if (Sage.DBG) e.printStackTrace(System.out);
+          try
+          {
+            frf.flush();
+            frf.seek(fp);
+          }
+          catch (IOException ioe)
+          {
+            System.out.println("IO Error updating DB file: " + ioe);
+            ioe.printStackTrace(System.out);
+          }
+          break;
+        }
+      }
+      unwritten.subList(0, numWritten).clear();
+      haveUnwritten = !unwritten.isEmpty();
+      // The log file isn't opened to sync on every write when it's used with this, so this is the only sync
+      if (numWritten > 0)
+      {
+        try
+        {
+          frf.sync();
+        }
+        catch (IOException e)
+        {
+          if (Sage.DBG) System.out.println("Error syncing DB file:" + e);
+        }
+      }
+    }
+  }
+
+  private final Object outLock;
+  private final int maxLatency;
+  private final int maxBatch;
+  private final int queueSize;
+  private final ArrayDeque<byte[]> queue;
+  // Xcts that couldn't be written yet; guarded by the output lock
+  private final List<byte[]> unwritten = new ArrayList<byte[]>();
+  private volatile boolean haveUnwritten;
+  private boolean writing;
+  private boolean flushRequested;
+}
@@ -31,6 +31,12 @@ public final class Index
 
   void add(DBObject addMe)
   {
+    if (tree != null)
+    {
+      tree.add(addMe);
+      data = null;
+      return;
+    }
     int index = binarySearch(addMe);
     if (index < 0) index = -(index + 1);
 
@@ -54,6 +60,16 @@ public final class Index
 
   boolean remove(DBObject removeMe)
   {
+    if (tree != null)
+    {
+      if (!tree.remove(removeMe))
+      {
+        if (Sage.DBG) System.out.println("BAD Remove of non-existent " + removeMe + " idxCode=" + indexCode);
+        return false;
+      }
+      data = null;
+      return true;
+    }
     int index = findExactIndex(removeMe);
     if (index < 0)
     {
@@ -75,6 +91,19 @@ public final class Index
     int originalcmp = comp.compare(updateMe, newMe);
     if (originalcmp == 0) return true;
 
+    if (tree != null)
+    {
+      if (!tree.remove(updateMe))
+      {
+        if (Sage.DBG) System.out.println("BAD Update of non-existent " + updateMe + " to " + newMe + " idxCode=" + indexCode);
+        return false;
+      }
+      // The object doesn't have its new values yet, so position it based on the object it's being updated to
+      tree.insert(updateMe, newMe);
+      data = null;
+      return true;
+    }
+
     int oldIndex = findExactIndex(updateMe);
     if (oldIndex < 0)
     {
@@ -144,7 +173,7 @@ public final class Index
       table.acquireReadLock();
       int index = binarySearch(matchMe);
       if (index < 0) return null;
-      else return data[index];
+      else return get(index);
     } finally {
       table.releaseReadLock();
     }
@@ -160,7 +189,7 @@ public final class Index
       table.acquireReadLock();
       int index = binarySearch(idMatch);
       if (index < 0) return null;
-      else return data[index];
+      else return get(index);
     } finally {
       table.releaseReadLock();
     }
@@ -170,8 +199,16 @@ public final class Index
   {
     try {
       table.acquireWriteLock();
-      for (int i = 0; i < data.length; i++)
-        data[i] = null;
+      if (tree != null)
+      {
+        tree.clear();
+        data = null;
+      }
+      else
+      {
+        for (int i = 0; i < data.length; i++)
+          data[i] = null;
+      }
     } finally {
       table.releaseWriteLock();
     }
@@ -181,6 +218,21 @@ public final class Index
   {
     try {
       table.acquireWriteLock();
+      if (treeIndex)
+      {
+        DBObject[] newData = new DBObject[table.num];
+        if (tree != null)
+          tree.copyInto(0, newData, 0, table.num);
+        else
+          System.arraycopy(data, 0, newData, 0, table.num);
+        if (tree == null)
+          tree = new IndexTree(comp);
+        java.util.Arrays.sort(newData, tree.getOrder());
+        tree.build(newData, table.num);
+        // The sorted array is exactly what we'd materialize, so keep it around for raw access
+        data = newData;
+        return;
+      }
       DBObject[] newData = new DBObject[data.length];
       System.arraycopy(data, 0, newData, 0, table.num);
       mergeSort(data, newData, 0, table.num);
@@ -193,6 +245,17 @@ public final class Index
 
   public int binarySearch(Object key)
   {
+    if (tree != null)
+    {
+      // The search compares against the objects in the tree, so their keys can't be allowed to change under it
+      try {
+        table.acquireReadLock();
+        IndexTree.Snapshot snap = getReadSnapshot();
+        return (snap != null) ? snap.binarySearch(key) : tree.binarySearch(key);
+      } finally {
+        table.releaseReadLock();
+      }
+    }
     int low = 0;
     int high = table.num - 1;
 
@@ -215,6 +278,17 @@ public final class Index
 
   public int binarySearch(int key)
   {
+    if (tree != null)
+    {
+      // The search compares against the objects in the tree, so their keys can't be allowed to change under it
+      try {
+        table.acquireReadLock();
+        IndexTree.Snapshot snap = getReadSnapshot();
+        return (snap != null) ? snap.binarySearch(key) : tree.binarySearch(key);
+      } finally {
+        table.releaseReadLock();
+      }
+    }
     int low = 0;
     int high = table.num - 1;
 
@@ -293,6 +367,14 @@ public final class Index
 
   void massRemove(java.util.Set killUs)
   {
+    if (tree != null)
+    {
+      java.util.Iterator walker = killUs.iterator();
+      while (walker.hasNext())
+        tree.remove((DBObject) walker.next());
+      data = null;
+      return;
+    }
     for (int i = 0; i < table.num; i++)
     {
       if (killUs.contains(data[i]))
@@ -300,8 +382,165 @@ public final class Index
     }
   }
 
+  /**
+   * Returns the object at the specified position in this index, or null if it's past the end
+   */
+  DBObject get(int i)
+  {
+    IndexTree.Snapshot snap = getReadSnapshot();
+    if (snap != null)
+      return (i < snap.size()) ? snap.get(i) : null;
+    DBObject[] currData = data;
+    if (currData != null)
+      return (tree != null && i >= currData.length) ? null : currData[i];
+    try {
+      table.acquireReadLock();
+      return (i < tree.size()) ? tree.get(i) : null;
+    } finally {
+      table.releaseReadLock();
+    }
+  }
+
+  /**
+   * Returns the number of slots which can be passed to {@link #get(int)}, the ones past the size of the
+   * table will be null.
+   */
+  int length()
+  {
+    IndexTree.Snapshot snap = getReadSnapshot();
+    if (snap != null)
+      return snap.size();
+    DBObject[] currData = data;
+    if (currData != null)
+      return currData.length;
+    try {
+      table.acquireReadLock();
+      return tree.size();
+    } finally {
+      table.releaseReadLock();
+    }
+  }
+
+  /**
+   * Equivalent of System.arraycopy from this index into dest
+   */
+  void copyInto(int srcPos, DBObject[] dest, int destPos, int length)
+  {
+    IndexTree.Snapshot snap = getReadSnapshot();
+    if (snap != null)
+    {
+      snap.copyInto(srcPos, dest, destPos, length);
+      return;
+    }
+    DBObject[] currData = data;
+    if (currData != null)
+    {
+      System.arraycopy(currData, srcPos, dest, destPos, length);
+      return;
+    }
+    try {
+      table.acquireReadLock();
+      tree.copyInto(srcPos, dest, destPos, length);
+    } finally {
+      table.releaseReadLock();
+    }
+  }
+
+  /**
+   * Returns the contents of this index as an array; if this index is using a tree this will materialize it.
+   * The tree hands out the same snapshot until it's modified and that keeps the array, so it's only copied
+   * again after a modification; and that copy is done without holding the lock so writers don't wait on it.
+   */
+  DBObject[] getData()
+  {
+    IndexTree.Snapshot snap = getReadSnapshot();
+    if (snap != null)
+      return snap.toArray();
+    DBObject[] currData = data;
+    if (currData != null)
+      return currData;
+    try {
+      table.acquireReadLock();
+      currData = data;
+      if (currData != null)
+        return currData;
+      snap = tree.snapshot();
+    } finally {
+      table.releaseReadLock();
+    }
+    return snap.toArray();
+  }
+
+  /**
+   * Replaces the contents of this index with a raw array that is filled in directly by the caller. This is
+   * used when loading the DB; check() must be called after the data is filled in.
+   */
+  void setData(DBObject[] newData)
+  {
+    tree = null;
+    data = newData;
+  }
+
+  /**
+   * Switches this index between a sorted array, which is what we've always used, and an order statistic
+   * B+-tree. The tree makes adds and removes O(log n) instead of shifting the whole array on every change.
+   */
+  void setTreeIndex(boolean x)
+  {
+    try {
+      table.acquireWriteLock();
+      if (x == treeIndex) return;
+      if (x)
+      {
+        treeIndex = true;
+        check();
+      }
+      else
+      {
+        DBObject[] newData = new DBObject[table.num + Wizard.INC_SIZE];
+        if (tree != null)
+          tree.copyInto(0, newData, 0, table.num);
+        else
+          System.arraycopy(data, 0, newData, 0, table.num);
+        treeIndex = false;
+        tree = null;
+        data = newData;
+      }
+    } finally {
+      table.releaseWriteLock();
+    }
+  }
+
+  boolean isTreeIndex()
+  {
+    return treeIndex;
+  }
+
+  /**
+   * Returns an immutable snapshot of this index, or null if it's not currently using a tree.
+   * This must be called while holding the write lock.
+   */
+  IndexTree.Snapshot snapshot()
+  {
+    return (tree != null) ? tree.snapshot() : null;
+  }
+
+  // Returns the version of this index the current thread should read from when the table is using snapshot
+  // reads; or null if it should read the live data.
+  private IndexTree.Snapshot getReadSnapshot()
+  {
+    Table.Version v = table.getReadVersion();
+    return (v != null) ? v.indices[versionSlot] : null;
+  }
+
   Table table;
+  // The position of this index in the Table's versions
+  int versionSlot;
   byte indexCode;
   java.util.Comparator comp;
-  DBObject[] data;
+  // When we're using a tree this is the materialized copy of it, or null if it's been modified since
+  volatile DBObject[] data;
+  private boolean treeIndex;
+  // This is the authoritative storage when it's non-null, that's always the case in tree mode except while loading
+  private IndexTree tree;
 }
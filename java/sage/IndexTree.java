@@ -0,0 +1,645 @@
+/*
+ * Copyright 2015 The SageTV Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sage;
+
+/**
+ * Order statistic B+-tree which can be used as the backing store for an {@link Index}.
+ * <p>
+ * Every node tracks the number of objects below it so positions can be resolved in O(log n) which
+ * lets this keep the same position based semantics as the sorted array the Index normally uses. Objects
+ * which are equal according to the Index comparator are ordered by their ID so a specific object can
+ * always be located without scanning the run of equal objects.
+ * <p>
+ * The tree can also hand out immutable {@link Snapshot}s of itself. Once a snapshot is taken any node it
+ * references is copied before it gets modified (path copying), so a snapshot can be read by any number of
+ * threads without locking while the tree keeps changing underneath it. If no snapshots are ever taken
+ * nothing is ever copied.
+ */
+final class IndexTree
+{
+  static final int NODE_SIZE = 64;
+  // How full we make the nodes when building the tree from a sorted array so there's still room to grow
+  private static final int BULK_FILL = NODE_SIZE - (NODE_SIZE / 4);
+  // Nodes that get this sparse are merged with a neighbor if they'll fit
+  private static final int MERGE_THRESHOLD = NODE_SIZE / 4;
+
+  IndexTree(java.util.Comparator inComp)
+  {
+    comp = inComp;
+    order = new java.util.Comparator()
+    {
+      public int compare(Object o1, Object o2)
+      {
+        int rv = comp.compare(o1, o2);
+        if (rv != 0) return rv;
+        int id1 = ((DBObject) o1).id;
+        int id2 = ((DBObject) o2).id;
+        return (id1 < id2) ? -1 : ((id1 == id2) ? 0 : 1);
+      }
+    };
+    root = new Node(true, epoch);
+  }
+
+  int size()
+  {
+    return root.size;
+  }
+
+  void clear()
+  {
+    lastSnapshot = null;
+    root = new Node(true, epoch);
+  }
+
+  DBObject get(int rank)
+  {
+    return get(root, rank);
+  }
+
+  /**
+   * Same contract as {@link Index#binarySearch(Object)}; except this will always return the position of the
+   * first match if there's more than one object equal to the key.
+   */
+  int binarySearch(Object key)
+  {
+    return binarySearch(root, comp, key);
+  }
+
+  int binarySearch(int id)
+  {
+    return binarySearch(root, id);
+  }
+
+  /**
+   * Returns the position of this exact object in the tree or a negative value if it's not in there.
+   */
+  int indexOf(DBObject obj)
+  {
+    int rank = lowerBound(root, exactProbe(obj, obj.id));
+    if (rank < root.size && get(rank) == obj)
+      return rank;
+    // The sort key of the object must have been modified outside of the DB, this is a bug elsewhere but don't
+    // let it corrupt the index. Find it the slow way instead.
+    return scanFor(root, obj);
+  }
+
+  /**
+   * Inserts the object into the tree and returns the position it was inserted at.
+   */
+  int add(DBObject obj)
+  {
+    return insert(obj, obj);
+  }
+
+  /**
+   * Inserts the object into the tree at the position that's appropriate for the sort key of keyObj.
+   * This is used for updates where the object hasn't taken on its new values yet.
+   */
+  int insert(DBObject obj, DBObject keyObj)
+  {
+    lastSnapshot = null;
+    Probe probe = exactProbe(keyObj, obj.id);
+    int rank = lowerBound(root, probe);
+    root = mutable(root);
+    Node split = insert(root, obj, probe);
+    if (split != null)
+    {
+      Node newRoot = new Node(false, epoch);
+      newRoot.kids[0] = root;
+      newRoot.mins[0] = first(root);
+      newRoot.kids[1] = split;
+      newRoot.mins[1] = first(split);
+      newRoot.n = 2;
+      newRoot.size = root.size + split.size;
+      root = newRoot;
+    }
+    return rank;
+  }
+
+  DBObject removeAt(int rank)
+  {
+    if (rank < 0 || rank >= root.size)
+      throw new ArrayIndexOutOfBoundsException(rank);
+    lastSnapshot = null;
+    root = mutable(root);
+    DBObject rv = removeAt(root, rank);
+    while (!root.leaf && root.n == 1)
+      root = root.kids[0];
+    if (!root.leaf && root.n == 0)
+      root = new Node(true, epoch);
+    return rv;
+  }
+
+  boolean remove(DBObject obj)
+  {
+    int rank = indexOf(obj);
+    if (rank < 0)
+      return false;
+    removeAt(rank);
+    return true;
+  }
+
+  /**
+   * Copies length objects starting at position srcPos into dest, this is the System.arraycopy equivalent.
+   */
+  void copyInto(int srcPos, DBObject[] dest, int destPos, int length)
+  {
+    copyInto(root, srcPos, dest, destPos, length);
+  }
+
+  /**
+   * Replaces the contents of the tree with the first num objects in sorted. They must already be in
+   * the order specified by {@link #getOrder()}.
+   */
+  void build(DBObject[] sorted, int num)
+  {
+    if (num == 0)
+    {
+      clear();
+      return;
+    }
+    lastSnapshot = null;
+    int numLeaves = (num + BULK_FILL - 1) / BULK_FILL;
+    Node[] level = new Node[numLeaves];
+    for (int i = 0, offset = 0; i < numLeaves; i++)
+    {
+      Node leaf = new Node(true, epoch);
+      // Spread the objects evenly so the last leaf doesn't end up nearly empty
+      int count = (num - offset) / (numLeaves - i);
+      System.arraycopy(sorted, offset, leaf.items, 0, count);
+      leaf.n = leaf.size = count;
+      offset += count;
+      level[i] = leaf;
+    }
+    while (level.length > 1)
+    {
+      int numParents = (level.length + BULK_FILL - 1) / BULK_FILL;
+      Node[] parents = new Node[numParents];
+      for (int i = 0, offset = 0; i < numParents; i++)
+      {
+        Node parent = new Node(false, epoch);
+        int count = (level.length - offset) / (numParents - i);
+        for (int j = 0; j < count; j++)
+        {
+          Node kid = level[offset + j];
+          parent.kids[j] = kid;
+          parent.mins[j] = first(kid);
+          parent.size += kid.size;
+        }
+        parent.n = count;
+        offset += count;
+        parents[i] = parent;
+      }
+      level = parents;
+    }
+    root = level[0];
+  }
+
+  /**
+   * Returns an immutable view of the current contents of the tree. This is O(1); the cost is paid by the
+   * next modifications which will copy the nodes they touch instead of changing them in place. Until the
+   * tree is modified again the same snapshot is returned. Readers of an Index can call this while sharing
+   * its read lock with each other, so that's synchronized.
+   */
+  synchronized Snapshot snapshot()
+  {
+    Snapshot rv = lastSnapshot;
+    if (rv == null)
+    {
+      rv = lastSnapshot = new Snapshot(root, comp);
+      // Everything that exists now is shared with the snapshot
+      epoch++;
+    }
+    return rv;
+  }
+
+  /**
+   * The comparator the objects in this tree are sorted by; ties in the Index comparator are broken by object ID.
+   */
+  java.util.Comparator getOrder()
+  {
+    return order;
+  }
+
+  /**
+   * A read only version of the tree at a point in time. This is safe to use from any thread without
+   * any locking.
+   */
+  static final class Snapshot
+  {
+    private Snapshot(Node inRoot, java.util.Comparator inComp)
+    {
+      root = inRoot;
+      comp = inComp;
+    }
+
+    int size()
+    {
+      return root.size;
+    }
+
+    DBObject get(int rank)
+    {
+      return IndexTree.get(root, rank);
+    }
+
+    int binarySearch(Object key)
+    {
+      return IndexTree.binarySearch(root, comp, key);
+    }
+
+    int binarySearch(int id)
+    {
+      return IndexTree.binarySearch(root, id);
+    }
+
+    void copyInto(int srcPos, DBObject[] dest, int destPos, int length)
+    {
+      IndexTree.copyInto(root, srcPos, dest, destPos, length);
+    }
+
+    /**
+     * Returns the contents of this snapshot as an array; the same array is returned on every call.
+     */
+    DBObject[] toArray()
+    {
+      DBObject[] rv = array;
+      if (rv == null)
+      {
+        rv = new DBObject[root.size];
+        IndexTree.copyInto(root, 0, rv, 0, rv.length);
+        array = rv;
+      }
+      return rv;
+    }
+
+    private final Node root;
+    private final java.util.Comparator comp;
+    private volatile DBObject[] array;
+  }
+
+  private Node mutable(Node node)
+  {
+    if (node.epoch == epoch)
+      return node;
+    Node rv = new Node(node.leaf, epoch);
+    rv.n = node.n;
+    rv.size = node.size;
+    if (node.leaf)
+      System.arraycopy(node.items, 0, rv.items, 0, node.n);
+    else
+    {
+      System.arraycopy(node.kids, 0, rv.kids, 0, node.n);
+      System.arraycopy(node.mins, 0, rv.mins, 0, node.n);
+    }
+    return rv;
+  }
+
+  // The node passed into here must already be mutable
+  private Node insert(Node node, DBObject obj, Probe probe)
+  {
+    if (node.leaf)
+    {
+      int pos = firstNotBefore(node.items, node.n, probe);
+      if (node.n < NODE_SIZE)
+      {
+        insertAt(node.items, node.n, pos, obj);
+        node.n++;
+        node.size++;
+        return null;
+      }
+      // When we're appending to the end of a leaf keep the existing one full; this is the common case
+      // for ID ordered indices and it keeps them densely packed.
+      Node right = new Node(true, epoch);
+      int half = (pos == NODE_SIZE) ? NODE_SIZE : (NODE_SIZE / 2);
+      int moved = NODE_SIZE - half;
+      System.arraycopy(node.items, half, right.items, 0, moved);
+      java.util.Arrays.fill(node.items, half, NODE_SIZE, null);
+      node.n = half;
+      right.n = moved;
+      if (pos <= node.n && node.n < NODE_SIZE)
+      {
+        insertAt(node.items, node.n, pos, obj);
+        node.n++;
+      }
+      else
+      {
+        insertAt(right.items, right.n, pos - node.n, obj);
+        right.n++;
+      }
+      node.size = node.n;
+      right.size = right.n;
+      return right;
+    }
+
+    int i = lastBefore(node.mins, node.n, probe);
+    Node kid = node.kids[i] = mutable(node.kids[i]);
+    Node split = insert(kid, obj, probe);
+    node.mins[i] = first(kid);
+    node.size++;
+    if (split == null)
+      return null;
+    if (node.n < NODE_SIZE)
+    {
+      insertChild(node, i + 1, split);
+      return null;
+    }
+    Node right = new Node(false, epoch);
+    int half = (i + 1 == NODE_SIZE) ? NODE_SIZE : (NODE_SIZE / 2);
+    int moved = NODE_SIZE - half;
+    System.arraycopy(node.kids, half, right.kids, 0, moved);
+    System.arraycopy(node.mins, half, right.mins, 0, moved);
+    java.util.Arrays.fill(node.kids, half, NODE_SIZE, null);
+    java.util.Arrays.fill(node.mins, half, NODE_SIZE, null);
+    node.n = half;
+    right.n = moved;
+    if (i + 1 <= half && half < NODE_SIZE)
+      insertChild(node, i + 1, split);
+    else
+      insertChild(right, i + 1 - half, split);
+    node.size = 0;
+    for (int j = 0; j < node.n; j++)
+      node.size += node.kids[j].size;
+    right.size = 0;
+    for (int j = 0; j < right.n; j++)
+      right.size += right.kids[j].size;
+    return right;
+  }
+
+  // The node passed into here must already be mutable
+  private DBObject removeAt(Node node, int rank)
+  {
+    node.size--;
+    if (node.leaf)
+    {
+      DBObject rv = node.items[rank];
+      System.arraycopy(node.items, rank + 1, node.items, rank, node.n - rank - 1);
+      node.items[--node.n] = null;
+      return rv;
+    }
+    int i = 0;
+    while (rank >= node.kids[i].size)
+    {
+      rank -= node.kids[i].size;
+      i++;
+    }
+    Node kid = node.kids[i] = mutable(node.kids[i]);
+    DBObject rv = removeAt(kid, rank);
+    if (kid.n == 0)
+      removeChild(node, i);
+    else
+    {
+      node.mins[i] = first(kid);
+      if (kid.n < MERGE_THRESHOLD)
+      {
+        if (i + 1 < node.n && kid.n + node.kids[i + 1].n <= NODE_SIZE)
+          mergeChildren(node, i);
+        else if (i > 0 && kid.n + node.kids[i - 1].n <= NODE_SIZE)
+          mergeChildren(node, i - 1);
+      }
+    }
+    return rv;
+  }
+
+  // Merges the child at index i + 1 into the child at index i
+  private void mergeChildren(Node node, int i)
+  {
+    Node left = node.kids[i] = mutable(node.kids[i]);
+    Node right = node.kids[i + 1];
+    if (left.leaf)
+      System.arraycopy(right.items, 0, left.items, left.n, right.n);
+    else
+    {
+      System.arraycopy(right.kids, 0, left.kids, left.n, right.n);
+      System.arraycopy(right.mins, 0, left.mins, left.n, right.n);
+    }
+    left.n += right.n;
+    left.size += right.size;
+    removeChild(node, i + 1);
+  }
+
+  private static DBObject get(Node node, int rank)
+  {
+    if (rank < 0 || rank >= node.size)
+      throw new ArrayIndexOutOfBoundsException(rank);
+    while (!node.leaf)
+    {
+      int i = 0;
+      while (rank >= node.kids[i].size)
+      {
+        rank -= node.kids[i].size;
+        i++;
+      }
+      node = node.kids[i];
+    }
+    return node.items[rank];
+  }
+
+  private static int binarySearch(Node root, final java.util.Comparator comp, final Object key)
+  {
+    Probe probe = new Probe()
+    {
+      int compareTo(DBObject elem)
+      {
+        return comp.compare(elem, key);
+      }
+    };
+    int rank = lowerBound(root, probe);
+    if (rank < root.size && probe.compareTo(get(root, rank)) == 0)
+      return rank;
+    return -(rank + 1);
+  }
+
+  private static int binarySearch(Node root, final int id)
+  {
+    Probe probe = new Probe()
+    {
+      int compareTo(DBObject elem)
+      {
+        return (elem.id < id) ? -1 : ((elem.id == id) ? 0 : 1);
+      }
+    };
+    int rank = lowerBound(root, probe);
+    if (rank < root.size && get(root, rank).id == id)
+      return rank;
+    return -(rank + 1);
+  }
+
+  // Returns the number of objects that sort before the probe
+  private static int lowerBound(Node node, Probe probe)
+  {
+    int rank = 0;
+    while (!node.leaf)
+    {
+      // Descend into the last child whose first object is before the key; everything to the left of
+      // that child is before the key and everything to the right of it is not.
+      int i = lastBefore(node.mins, node.n, probe);
+      for (int j = 0; j < i; j++)
+        rank += node.kids[j].size;
+      node = node.kids[i];
+    }
+    return rank + firstNotBefore(node.items, node.n, probe);
+  }
+
+  private static void copyInto(Node node, int srcPos, DBObject[] dest, int destPos, int length)
+  {
+    if (srcPos < 0 || length < 0 || srcPos + length > node.size)
+      throw new ArrayIndexOutOfBoundsException("srcPos=" + srcPos + " length=" + length + " size=" + node.size);
+    if (node.leaf)
+    {
+      System.arraycopy(node.items, srcPos, dest, destPos, length);
+      return;
+    }
+    for (int i = 0; i < node.n && length > 0; i++)
+    {
+      Node kid = node.kids[i];
+      if (srcPos >= kid.size)
+      {
+        srcPos -= kid.size;
+        continue;
+      }
+      int num = Math.min(length, kid.size - srcPos);
+      copyInto(kid, srcPos, dest, destPos, num);
+      destPos += num;
+      length -= num;
+      srcPos = 0;
+    }
+  }
+
+  private static int scanFor(Node node, DBObject obj)
+  {
+    if (node.leaf)
+    {
+      for (int i = 0; i < node.n; i++)
+        if (node.items[i] == obj)
+          return i;
+      return -1;
+    }
+    int offset = 0;
+    for (int i = 0; i < node.n; i++)
+    {
+      int rv = scanFor(node.kids[i], obj);
+      if (rv >= 0)
+        return offset + rv;
+      offset += node.kids[i].size;
+    }
+    return -1;
+  }
+
+  private static void insertChild(Node node, int pos, Node kid)
+  {
+    insertAt(node.kids, node.n, pos, kid);
+    insertAt(node.mins, node.n, pos, first(kid));
+    node.n++;
+  }
+
+  private static void removeChild(Node node, int pos)
+  {
+    System.arraycopy(node.kids, pos + 1, node.kids, pos, node.n - pos - 1);
+    System.arraycopy(node.mins, pos + 1, node.mins, pos, node.n - pos - 1);
+    node.n--;
+    node.kids[node.n] = null;
+    node.mins[node.n] = null;
+  }
+
+  private static void insertAt(Object[] arr, int num, int pos, Object obj)
+  {
+    if (pos < num)
+      System.arraycopy(arr, pos, arr, pos + 1, num - pos);
+    arr[pos] = obj;
+  }
+
+  private static DBObject first(Node node)
+  {
+    return node.leaf ? node.items[0] : node.mins[0];
+  }
+
+  // Index of the first object which is not before the probe; num if they all are
+  private static int firstNotBefore(DBObject[] arr, int num, Probe probe)
+  {
+    int low = 0;
+    int high = num - 1;
+    while (low <= high)
+    {
+      int mid = (low + high) >> 1;
+      if (probe.compareTo(arr[mid]) < 0)
+        low = mid + 1;
+      else
+        high = mid - 1;
+    }
+    return low;
+  }
+
+  // Index of the last child whose first object is before the probe; 0 if there are none
+  private static int lastBefore(DBObject[] mins, int num, Probe probe)
+  {
+    int rv = firstNotBefore(mins, num, probe) - 1;
+    return (rv < 0) ? 0 : rv;
+  }
+
+  private Probe exactProbe(final DBObject keyObj, final int id)
+  {
+    return new Probe()
+    {
+      int compareTo(DBObject elem)
+      {
+        int rv = comp.compare(elem, keyObj);
+        if (rv != 0) return rv;
+        return (elem.id < id) ? -1 : ((elem.id == id) ? 0 : 1);
+      }
+    };
+  }
+
+  private abstract static class Probe
+  {
+    // Returns a negative value if the element sorts before whatever we are searching for
+    abstract int compareTo(DBObject elem);
+  }
+
+  private static final class Node
+  {
+    Node(boolean inLeaf, int inEpoch)
+    {
+      leaf = inLeaf;
+      epoch = inEpoch;
+      if (leaf)
+        items = new DBObject[NODE_SIZE];
+      else
+      {
+        kids = new Node[NODE_SIZE];
+        mins = new DBObject[NODE_SIZE];
+      }
+    }
+
+    final boolean leaf;
+    // The tree epoch this node was created in; nodes from older epochs may be shared with a snapshot
+    final int epoch;
+    // The number of items in a leaf or children in an inner node
+    int n;
+    // The total number of objects in this subtree
+    int size;
+    DBObject[] items;
+    Node[] kids;
+    DBObject[] mins;
+  }
+
+  private final java.util.Comparator comp;
+  private final java.util.Comparator order;
+  private Node root;
+  private int epoch;
+  // The snapshot of the current contents of the tree, cleared whenever the tree is modified
+  private Snapshot lastSnapshot;
+}
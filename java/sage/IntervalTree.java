@@ -0,0 +1,197 @@
+/*
+ * Copyright 2015 The SageTV Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sage;
+
+import java.util.Arrays;
+
+/**
+ * Static interval tree over a set of [start, end) intervals which are identified by their index in the arrays it
+ * was created from. The intervals are sorted by start time and the tree is implicit in that order (the root of
+ * any range is its middle element), each node also has the max end time in its subtree so whole subtrees that end
+ * before a query can be skipped. Everything is kept in primitive arrays.
+ * <p>
+ * Intervals overlap the same way Airings do when scheduling; they overlap if each one starts before the other
+ * one ends.
+ */
+final class IntervalTree
+{
+  IntervalTree(long[] starts, long[] ends)
+  {
+    size = starts.length;
+    this.starts = starts.clone();
+    this.ends = ends.clone();
+    ids = new int[size];
+    for (int i = 0; i < size; i++)
+      ids[i] = i;
+    sort(0, size - 1);
+    maxEnds = new long[size];
+    if (size > 0)
+      buildMaxEnds(0, size);
+  }
+
+  int size()
+  {
+    return size;
+  }
+
+  /**
+   * Returns true if any of the intervals overlap [start, end)
+   */
+  boolean hasOverlap(long start, long end)
+  {
+    return findOverlaps(0, size, start, end, null) > 0;
+  }
+
+  /**
+   * Returns the indices of the intervals that overlap [start, end) in increasing order
+   */
+  int[] getOverlaps(long start, long end)
+  {
+    IntBuffer rv = new IntBuffer();
+    findOverlaps(0, size, start, end, rv);
+    int[] found = Arrays.copyOf(rv.data, rv.size);
+    Arrays.sort(found);
+    return found;
+  }
+
+  /**
+   * Returns the indices of the intervals that contain the specified time in increasing order
+   */
+  int[] getStabbed(long time)
+  {
+    return getOverlaps(time, time + 1);
+  }
+
+  // If rv is null this stops at the first overlap that's found; returns the number that were found
+  private int findOverlaps(int lo, int hi, long start, long end, IntBuffer rv)
+  {
+    int found = 0;
+    while (lo < hi)
+    {
+      int mid = (lo + hi) >>> 1;
+      // Nothing in here ends after the start
+      if (maxEnds[mid] <= start)
+        return found;
+      found += findOverlaps(lo, mid, start, end, rv);
+      if (found > 0 && rv == null)
+        return found;
+      // Everything after this starts later, so if this starts after the end then none of those overlap either
+      if (starts[mid] >= end)
+        return found;
+      if (ends[mid] > start)
+      {
+        found++;
+        if (rv == null)
+          return found;
+        rv.add(ids[mid]);
+      }
+      lo = mid + 1;
+    }
+    return found;
+  }
+
+  private long buildMaxEnds(int lo, int hi)
+  {
+    int mid = (lo + hi) >>> 1;
+    long max = ends[mid];
+    if (lo < mid)
+      max = Math.max(max, buildMaxEnds(lo, mid));
+    if (mid + 1 < hi)
+      max = Math.max(max, buildMaxEnds(mid + 1, hi));
+    maxEnds[mid] = max;
+    return max;
+  }
+
+  // Quicksort on the start times that keeps the ends and ids in step
+  private void sort(int lo, int hi)
+  {
+    while (hi - lo > 16)
+    {
+      int mid = (lo + hi) >>> 1;
+      // Median of three for the pivot
+      if (starts[mid] < starts[lo])
+        swap(mid, lo);
+      if (starts[hi] < starts[lo])
+        swap(hi, lo);
+      if (starts[hi] < starts[mid])
+        swap(hi, mid);
+      long pivot = starts[mid];
+      int i = lo;
+      int j = hi;
+      while (i <= j)
+      {
+        while (starts[i] < pivot)
+          i++;
+        while (starts[j] > pivot)
+          j--;
+        if (i <= j)
+        {
+          swap(i, j);
+          i++;
+          j--;
+        }
+      }
+      // Recurse on the smaller side so the stack depth stays logarithmic
+      if (j - lo < hi - i)
+      {
+        sort(lo, j);
+        lo = i;
+      }
+      else
+      {
+        sort(i, hi);
+        hi = j;
+      }
+    }
+    for (int i = lo + 1; i <= hi; i++)
+    {
+      for (int j = i; j > lo && starts[j] < starts[j - 1]; j--)
+        swap(j, j - 1);
+    }
+  }
+
+  private void swap(int a, int b)
+  {
+    long t = starts[a];
+    starts[a] = starts[b];
+    starts[b] = t;
+    t = ends[a];
+    ends[a] = ends[b];
+    ends[b] = t;
+    int x = ids[a];
+    ids[a] = ids[b];
+    ids[b] = x;
+  }
+
+  private static class IntBuffer
+  {
+    void add(int x)
+    {
+      if (size == data.length)
+        data = Arrays.copyOf(data, data.length * 2);
+      data[size++] = x;
+    }
+
+    int[] data = new int[8];
+    int size;
+  }
+
+  private final int size;
+  private final long[] starts;
+  private final long[] ends;
+  private final int[] ids;
+  private final long[] maxEnds;
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2015 The SageTV Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the library import directories with a WatchService so changes to them can be applied as they happen
+ * instead of on the next library scan. Every directory under the roots is registered since the watches aren't
+ * recursive. The events are collected until there haven't been any for the settle time (so a file that's still being
+ * copied is only reported once) and then the files that were created or modified and the ones that were deleted are
+ * passed to the listener. If any events were lost the listener is told so it can do a full scan instead.
+ */
+final class LibraryWatcher implements Runnable
+{
+  interface Listener
+  {
+    /**
+     * Called on the watcher thread with the files and directories that were created or modified and the ones that
+     * were deleted since the last call.
+     */
+    void filesChanged(Set<File> changed, Set<File> deleted);
+
+    /**
+     * Called on the watcher thread when there were changes that couldn't be tracked.
+     */
+    void eventsLost();
+  }
+
+  LibraryWatcher(Listener listener, long settleTime) throws IOException
+  {
+    this.listener = listener;
+    this.settleTime = settleTime;
+    watcher = FileSystems.getDefault().newWatchService();
+  }
+
+  /**
+   * Watches all of the directories under these roots and stops watching anything that's not under them anymore.
+   * Returns false if any of them couldn't be watched (usually because the OS limit on watches was reached).
+   */
+  boolean setRoots(File[] newRoots)
+  {
+    List<Path> rootPaths = new ArrayList<Path>();
+    for (int i = 0; i < newRoots.length; i++)
+      rootPaths.add(newRoots[i].toPath().toAbsolutePath());
+    synchronized (keyDirs)
+    {
+      Iterator<Map.Entry<WatchKey, Path>> walker = keyDirs.entrySet().iterator();
+      while (walker.hasNext())
+      {
+        Map.Entry<WatchKey, Path> ent = walker.next();
+        if (getRoot(ent.getValue(), rootPaths) == null)
+        {
+          ent.getKey().cancel();
+          walker.remove();
+        }
+      }
+      roots = rootPaths;
+    }
+    boolean rv = true;
+    for (Path root : rootPaths)
+    {
+      if (!registerTree(root))
+        rv = false;
+    }
+    return rv;
+  }
+
+  int getNumWatchedDirs()
+  {
+    synchronized (keyDirs)
+    {
+      return keyDirs.size();
+    }
+  }
+
+  void start()
+  {
+    Thread t = new Thread(this, "LibraryWatcher");
+    t.setDaemon(true);
+    t.setPriority(Thread.MIN_PRIORITY);
+    t.start();
+  }
+
+  void close()
+  {
+    alive = false;
+    try
+    {
+      watcher.close();
+    }
+    catch (IOException e){}
+  }
+
+  boolean isAlive()
+  {
+    return alive;
+  }
+
+  public void run()
+  {
+    Set<File> changed = new HashSet<File>();
+    Set<File> deleted = new HashSet<File>();
+    boolean lost = false;
+    long firstEventTime = 0;
+    while (alive)
+    {
+      WatchKey key;
+      try
+      {
+        if (changed.isEmpty() && deleted.isEmpty() && !lost)
+          key = watcher.take();
+        else
+          key = watcher.poll(settleTime, TimeUnit.MILLISECONDS);
+      }
+      catch (InterruptedException e)
+      {
+        continue;
+      }
+      catch (ClosedWatchServiceException e)
+      {
+        break;
+      }
+      if (key != null)
+      {
+        if (firstEventTime == 0)
+          firstEventTime = System.currentTimeMillis();
+        lost |= processKey(key, changed, deleted);
+        // Don't let a directory that's always changing hold off the others forever
+        if (System.currentTimeMillis() - firstEventTime < MAX_SETTLE_MULT * settleTime)
+          continue;
+      }
+      if (lost)
+      {
+        if (Sage.DBG) System.out.println("LibraryWatcher lost track of changes to the library directories");
+        changed.clear();
+        deleted.clear();
+        lost = false;
+        firstEventTime = 0;
+        try
+        {
+          listener.eventsLost();
+        }
+        catch (Throwable t)
+        {
+          if (Sage.DBG) System.out.println("ERROR in library change handler of:" + t);
+        }
+      }
+      else if (!changed.isEmpty() || !deleted.isEmpty())
+      {
+        Set<File> currChanged = changed;
+        Set<File> currDeleted = deleted;
+        changed = new HashSet<File>();
+        deleted = new HashSet<File>();
+        firstEventTime = 0;
+        try
+        {
+          listener.filesChanged(currChanged, currDeleted);
+        }
+        catch (Throwable t)
+        {
+          if (Sage.DBG) System.out.println("ERROR in library change handler of:" + t);
+          if (Sage.DBG) t.printStackTrace();
+        }
+      }
+    }
+    alive = false;
+  }
+
+  // Returns true if events were lost
+  private boolean processKey(WatchKey key, Set<File> changed, Set<File> deleted)
+  {
+    Path dir;
+    synchronized (keyDirs)
+    {
+      dir = keyDirs.get(key);
+    }
+    boolean lost = false;
+    for (WatchEvent<?> event : key.pollEvents())
+    {
+      WatchEvent.Kind<?> kind = event.kind();
+      if (kind == StandardWatchEventKinds.OVERFLOW)
+      {
+        lost = true;
+        continue;
+      }
+      if (dir == null)
+        continue;
+      Path child = dir.resolve((Path) event.context());
+      File childFile = child.toFile();
+      if (kind == StandardWatchEventKinds.ENTRY_DELETE)
+      {
+        changed.remove(childFile);
+        deleted.add(childFile);
+      }
+      else
+      {
+        deleted.remove(childFile);
+        changed.add(childFile);
+        if (kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child) && !registerTree(child))
+          lost = true;
+      }
+    }
+    if (!key.reset())
+    {
+      // The directory is gone
+      synchronized (keyDirs)
+      {
+        keyDirs.remove(key);
+      }
+    }
+    return lost;
+  }
+
+  private boolean registerTree(Path start)
+  {
+    final boolean[] rv = new boolean[] { true };
+    try
+    {
+      Files.walkFileTree(start, new SimpleFileVisitor<Path>()
+      {
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException
+        {
+          synchronized (keyDirs)
+          {
+            if (getRoot(dir, roots) == null)
+              return FileVisitResult.SKIP_SUBTREE;
+            keyDirs.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+          }
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException exc)
+        {
+          // Ones we can't read can't be imported either
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    }
+    catch (IOException e)
+    {
+      if (Sage.DBG) System.out.println("LibraryWatcher can't watch " + start + " of:" + e);
+      rv[0] = false;
+    }
+    catch (ClosedWatchServiceException e)
+    {
+      rv[0] = false;
+    }
+    return rv[0];
+  }
+
+  /**
+   * Returns false if the directory is on a network file system, or if that can't be determined. Changes made to those
+   * from other machines don't generate any events, so they still need the periodic library scans.
+   */
+  static boolean isLocalFileSystem(File dir)
+  {
+    String path = dir.getAbsolutePath();
+    if (path.startsWith("\\\\") || path.startsWith("//"))
+      return false;
+    try
+    {
+      String type = Files.getFileStore(dir.toPath()).type().toLowerCase(Locale.ENGLISH);
+      // FUSE ones are mostly network file systems too, other than the ones on a local block device
+      if (type.startsWith("fuse."))
+        return false;
+      for (int i = 0; i < NETWORK_FS_TYPES.length; i++)
+      {
+        if (type.equals(NETWORK_FS_TYPES[i]))
+          return false;
+      }
+      return true;
+    }
+    catch (IOException e)
+    {
+      return false;
+    }
+  }
+
+  private static Path getRoot(Path dir, List<Path> rootPaths)
+  {
+    for (Path root : rootPaths)
+    {
+      if (dir.startsWith(root))
+        return root;
+    }
+    return null;
+  }
+
+  // Events are held for at most this many settle times
+  private static final int MAX_SETTLE_MULT = 12;
+  // FileStore types of network file systems
+  private static final String[] NETWORK_FS_TYPES = { "nfs", "nfs4", "cifs", "smb", "smb2", "smb3", "smbfs", "afpfs",
+      "webdav", "davfs", "ncpfs", "afs", "9p", "ceph", "glusterfs", "lustre", "gpfs" };
+
+  private final Listener listener;
+  private final long settleTime;
+  private final WatchService watcher;
+  private final Map<WatchKey, Path> keyDirs = new HashMap<WatchKey, Path>();
+  private List<Path> roots = new ArrayList<Path>();
+  private volatile boolean alive = true;
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 The SageTV Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics for one phase of the DB maintenance. The work in a phase is split into units which may run on
+ * different threads at the same time. Each unit gets a time budget; once it's used up the unit yields so other
+ * threads can get at the DB and clients can catch up on xcts, and then it continues from where it left off with
+ * a fresh budget. The metrics are the totals over all the units in the phase.
+ */
+final class MaintenancePhase
+{
+  // Where the time comes from; this is so the time budgets can be tested
+  interface Clock
+  {
+    long millis();
+  }
+
+  static final Clock SYSTEM_CLOCK = new Clock()
+  {
+    public long millis()
+    {
+      return System.currentTimeMillis();
+    }
+  };
+
+  MaintenancePhase(String name, long unitBudget)
+  {
+    this(name, unitBudget, SYSTEM_CLOCK);
+  }
+
+  MaintenancePhase(String name, long unitBudget, Clock clock)
+  {
+    this.name = name;
+    this.unitBudget = unitBudget;
+    this.clock = clock;
+    startTime = clock.millis();
+  }
+
+  Unit newUnit()
+  {
+    units.incrementAndGet();
+    return new Unit();
+  }
+
+  void finish()
+  {
+    if (endTime == 0)
+      endTime = clock.millis();
+  }
+
+  String getName()
+  {
+    return name;
+  }
+
+  long getUnitBudget()
+  {
+    return unitBudget;
+  }
+
+  long getDuration()
+  {
+    return (endTime != 0 ? endTime : clock.millis()) - startTime;
+  }
+
+  long getItems()
+  {
+    return items.get();
+  }
+
+  long getUnits()
+  {
+    return units.get();
+  }
+
+  long getYields()
+  {
+    return yields.get();
+  }
+
+  long getYieldTime()
+  {
+    return yieldTime.get();
+  }
+
+  public String toString()
+  {
+    return "MaintenceMetric(" + name + "): " + getDuration() + "ms for " + getItems() + " items in " + getUnits() +
+        " units with " + getYields() + " yields (" + getYieldTime() + "ms)";
+  }
+
+  final class Unit
+  {
+    private Unit()
+    {
+      unitStart = clock.millis();
+    }
+
+    /**
+     * Counts an item of work; returns true if the unit has used up its time budget and should yield.
+     */
+    boolean itemDone()
+    {
+      numItems++;
+      return clock.millis() - unitStart >= unitBudget;
+    }
+
+    /**
+     * Called after the unit yielded for the specified time; it then gets a new time budget.
+     */
+    void yielded(long pauseTime)
+    {
+      yields.incrementAndGet();
+      yieldTime.addAndGet(pauseTime);
+      flushItems();
+      unitStart = clock.millis();
+    }
+
+    void done()
+    {
+      flushItems();
+    }
+
+    private void flushItems()
+    {
+      items.addAndGet(numItems);
+      numItems = 0;
+    }
+
+    private long unitStart;
+    private long numItems;
+  }
+
+  private final String name;
+  private final long unitBudget;
+  private final Clock clock;
+  private final long startTime;
+  private volatile long endTime;
+  private final AtomicLong items = new AtomicLong();
+  private final AtomicLong units = new AtomicLong();
+  private final AtomicLong yields = new AtomicLong();
+  private final AtomicLong yieldTime = new AtomicLong();
+}
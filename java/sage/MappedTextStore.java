@@ -0,0 +1,172 @@
+/*
+ * Copyright 2015 The SageTV Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Append only store of text in a memory mapped file. This is used to keep the descriptions of Shows that are
+ * unlikely to be looked at out of the Java heap; the OS pages them in and out as needed. Strings that are
+ * read from here are kept in a bounded LRU cache.
+ * <p>
+ * The DB file still has all the text in it so the store is rebuilt every time the DB is loaded. Text that's no
+ * longer referenced isn't reclaimed from a store; instead it's compacted by copying what's still referenced into a
+ * new one. References carry the store they're from, and its mappings stay readable after it's closed, so a
+ * reference that's being read while that happens still works.
+ */
+final class MappedTextStore
+{
+  private static final int CHUNK_SIZE = 16*1024*1024;
+
+  MappedTextStore(File file, final int cacheSize) throws IOException
+  {
+    this.file = file;
+    raf = new RandomAccessFile(file, "rw");
+    raf.setLength(0);
+    channel = raf.getChannel();
+    cache = new LinkedHashMap<Long, String>(Math.max(16, cacheSize), 0.75f, true)
+    {
+      protected boolean removeEldestEntry(Map.Entry<Long, String> eldest)
+      {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  /**
+   * Stores the bytes and returns the reference that is used to retrieve them.
+   */
+  synchronized Ref add(byte[] data) throws IOException
+  {
+    if (data.length + 4 > CHUNK_SIZE)
+      throw new IOException("Text is too large for the mapped store length=" + data.length);
+    if (currChunk == null || currChunk.remaining() < data.length + 4)
+    {
+      MappedByteBuffer newChunk = channel.map(FileChannel.MapMode.READ_WRITE, ((long) chunks.length) * CHUNK_SIZE, CHUNK_SIZE);
+      MappedByteBuffer[] newChunks = new MappedByteBuffer[chunks.length + 1];
+      System.arraycopy(chunks, 0, newChunks, 0, chunks.length);
+      newChunks[chunks.length] = newChunk;
+      currChunk = newChunk;
+      chunks = newChunks;
+    }
+    long offset = ((long) (chunks.length - 1)) * CHUNK_SIZE + currChunk.position();
+    currChunk.putInt(data.length);
+    currChunk.put(data);
+    totalBytes += data.length;
+    return new Ref(this, offset, data.length);
+  }
+
+  byte[] getBytes(long ref)
+  {
+    // The reference was published after it was added so the data will be visible to us
+    MappedByteBuffer[] currChunks = chunks;
+    ByteBuffer chunk = currChunks[(int) (ref / CHUNK_SIZE)].duplicate();
+    int pos = (int) (ref % CHUNK_SIZE);
+    byte[] rv = new byte[chunk.getInt(pos)];
+    chunk.position(pos + 4);
+    chunk.get(rv);
+    return rv;
+  }
+
+  String getString(long ref)
+  {
+    Long key = new Long(ref);
+    synchronized (cache)
+    {
+      String rv = cache.get(key);
+      if (rv != null)
+        return rv;
+    }
+    String rv;
+    try
+    {
+      rv = new String(getBytes(ref), Sage.I18N_CHARSET);
+    }
+    catch (UnsupportedEncodingException uee)
+    {
+      if (Sage.DBG) System.out.println("Unicode ERROR creating String of:" + uee);
+      return "";
+    }
+    synchronized (cache)
+    {
+      cache.put(key, rv);
+    }
+    return rv;
+  }
+
+  synchronized long getTotalBytes()
+  {
+    return totalBytes;
+  }
+
+  File getFile()
+  {
+    return file;
+  }
+
+  void close()
+  {
+    try
+    {
+      channel.close();
+      raf.close();
+    }
+    catch (IOException e){}
+  }
+
+  /**
+   * Where some text is in a store.
+   */
+  static final class Ref
+  {
+    Ref(MappedTextStore store, long offset, int length)
+    {
+      this.store = store;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    byte[] getBytes()
+    {
+      return store.getBytes(offset);
+    }
+
+    String getString()
+    {
+      return store.getString(offset);
+    }
+
+    final MappedTextStore store;
+    final long offset;
+    final int length;
+  }
+
+  private final File file;
+  private final RandomAccessFile raf;
+  private final FileChannel channel;
+  private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+  private MappedByteBuffer currChunk;
+  private long totalBytes;
+  private final Map<Long, String> cache;
+}
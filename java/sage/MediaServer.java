@@ -32,6 +32,8 @@ public class MediaServer implements Runnable
   public static final String XCODE_QUALITIES_PROPERTY_ROOT = "media_server/transcode_quality/";
   private static final byte[] OK_BYTES = "OK\r\n".getBytes();
   private static final byte[] RN_BYTES = "\r\n".getBytes();
+  private static final String EVENT_LOOP_PROPERTY = "media_server/event_loop";
+  private static final String BLOCK_CACHE_SIZE_PROPERTY = "media_server/shared_read_cache_size";
   public MediaServer()
   {
     alive = true;
@@ -89,6 +91,7 @@ public class MediaServer implements Runnable
   private java.util.Map clientRequestedFiles;
   private java.util.Set readAheadFormats;
   private boolean useNioTransfers;
+  private MediaServerEventLoop eventLoop;
   public synchronized boolean areClientsConnected()
   {
     return numClients != 0;
@@ -143,6 +146,11 @@ public class MediaServer implements Runnable
   public void kill()
   {
     alive = false;
+    if (eventLoop != null)
+    {
+      eventLoop.close();
+      eventLoop = null;
+    }
     if (serverSocket != null)
     {
       try
@@ -154,6 +162,21 @@ public class MediaServer implements Runnable
   }
   public void run()
   {
+    // In event loop mode a few threads handle all of the connections and only the commands are run on the I/O pool,
+    // instead of each connection having its own thread
+    if (Sage.getBoolean(EVENT_LOOP_PROPERTY, false))
+    {
+      try
+      {
+        eventLoop = new MediaServerEventLoop(Sage.getInt("media_server/event_loop_threads", 2),
+            Sage.getInt("media_server/io_threads", 16), Sage.getInt("media_server/max_io_threads", 256));
+        if (Sage.DBG) System.out.println("MediaServer is using " + eventLoop);
+      }
+      catch (java.io.IOException e)
+      {
+        System.out.println("ERROR creating MediaServer event loop, using a thread per connection instead:" + e);
+      }
+    }
     while (alive)
     {
       try
@@ -172,6 +195,11 @@ public class MediaServer implements Runnable
 						t.start();
 					}
 					else*/
+          if (eventLoop != null)
+          {
+            eventLoop.addConnection(new Connection(s));
+          }
+          else
           {
             Pooler.execute(new Connection(s), "MediaServerConnection");
           }
@@ -199,6 +227,24 @@ public class MediaServer implements Runnable
     return sb.toString();
   }
 
+  // The cache is shared by all of the connections; it's created the first time it's needed in case the settings change
+  private static MediaServerBlockCache getBlockCache()
+  {
+    synchronized (blockCacheLock)
+    {
+      long maxBytes = Sage.getLong(BLOCK_CACHE_SIZE_PROPERTY, 32*1024*1024);
+      if (maxBytes <= 0)
+        blockCache = null;
+      else if (blockCache == null)
+      {
+        blockCache = new MediaServerBlockCache(Sage.getInt("media_server/shared_read_cache_block_size", 256*1024),
+            maxBytes);
+        if (Sage.DBG) System.out.println("MediaServer created " + blockCache);
+      }
+      return blockCache;
+    }
+  }
+
   private static long getLargeFileSize(String filename)
   {
     Long rv = (Long) largeFileSizeMap.get(filename);
@@ -415,6 +461,15 @@ public class MediaServer implements Runnable
       }
       catch (Exception e){}*/
       currFile = null;
+      releaseSharedCache();
+    }
+
+    private void releaseSharedCache()
+    {
+      if (sharedCache != null && sharedCacheFile != null)
+        sharedCache.closeFile(sharedCacheFile);
+      sharedCache = null;
+      sharedCacheFile = null;
     }
 
     // Tests if we're allowed to stream currFile and sets the currMF field
@@ -459,7 +514,7 @@ public class MediaServer implements Runnable
           currFile = null;
           commBufWrite.clear();
           commBufWrite.put("NO_EXIST\r\n".getBytes()).flip();
-          int numWritten = s.write(commBufWrite);
+          int numWritten = writeData(commBufWrite);
           if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
         }
       }
@@ -472,7 +527,7 @@ public class MediaServer implements Runnable
         currFile = null;
         commBufWrite.clear();
         commBufWrite.put("NON_MEDIA\r\n".getBytes()).flip();
-        int numWritten = s.write(commBufWrite);
+        int numWritten = writeData(commBufWrite);
         if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
       }
       return false;
@@ -518,10 +573,21 @@ public class MediaServer implements Runnable
           fileChannel = fileStream.getChannel();
           int idx = filename.lastIndexOf('.');
           readAhead = idx != -1 && readAheadFormats.contains(filename.substring(idx + 1).toLowerCase());
+          // Circular files get overwritten, so those can't be shared. The cache is kept for as long as the file is
+          // open in case it's disabled in the meantime.
+          releaseSharedCache();
+          MediaServerBlockCache blockCache = getBlockCache();
+          if (blockCache != null && !circFileRec)
+          {
+            sharedCache = blockCache;
+            sharedCacheFile = MediaServerBlockCache.getFileKey(currFile);
+            blockCache.openFile(sharedCacheFile, currFile.lastModified(), currFile.length(),
+                (currMF != null && currMF.isRecording(currFile)) || (downer != null && !downer.isComplete()));
+          }
         }
         commBufWrite.clear();
         commBufWrite.put(OK_BYTES).flip();
-        int numWritten = s.write(commBufWrite);
+        int numWritten = writeData(commBufWrite);
         if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
       }
     }
@@ -565,7 +631,7 @@ public class MediaServer implements Runnable
         {
           commBufWrite.clear();
           commBufWrite.put("OK\r\n".getBytes()).flip();
-          int numWritten = s.write(commBufWrite);
+          int numWritten = writeData(commBufWrite);
           if (MEDIA_SERVER_DEBUG)
             System.out.println("MediaServer wrote out " + numWritten + " bytes");
         }
@@ -575,7 +641,7 @@ public class MediaServer implements Runnable
         currFile = null;
         commBufWrite.clear();
         commBufWrite.put("NON_MEDIA\r\n".getBytes()).flip();
-        int numWritten = s.write(commBufWrite);
+        int numWritten = writeData(commBufWrite);
         if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
       }
     }
@@ -633,7 +699,7 @@ public class MediaServer implements Runnable
       commBufWrite.flip();
       //			commBufWrite.put((Long.toString(availSize) + " " + Long.toString(totalSize) + "\r\n").getBytes()).flip();
       if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer about to send size response avail=" + availSize + " total=" + totalSize);
-      int numWritten = s.write(commBufWrite);
+      int numWritten = writeData(commBufWrite);
       if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer size response sent " + numWritten + " bytes");
     }
 
@@ -652,7 +718,7 @@ public class MediaServer implements Runnable
       {
         if ((currMF != null && !currMF.isRecording()) || (currMF == null && (downer == null || downer.isComplete())))
           xcoder.setActiveFile(false);
-        xcoder.sendTranscodeOutputToChannel(offset, length, s);
+        xcoder.sendTranscodeOutputToChannel(offset, length, s.isBlocking() ? s : getChannelWriter());
         return;
       }
 
@@ -752,7 +818,7 @@ public class MediaServer implements Runnable
         overageBuf.clear();
         overageBuf.limit((int)Math.min(overage, overageBuf.capacity()));
         if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer sending overage=" + overageBuf.limit());
-        int numWritten = s.write(overageBuf); // just write out FF's
+        int numWritten = writeData(overageBuf); // just write out FF's
         overage -= numWritten;
         if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer overage sent capacity=" + overageBuf.capacity() + " overage=" + overage + " numWritten=" + numWritten);
       }
@@ -768,6 +834,26 @@ public class MediaServer implements Runnable
       // only occurs when there's discrepancies in the disk buffering
       int numTries = 0;
       long orgLength = length;
+      // Only go through the shared cache while another client is reading this file too, otherwise the direct
+      // transfers below are better
+      MediaServerBlockCache blockCache = sharedCache;
+      String cacheKey = sharedCacheFile;
+      if (blockCache != null && cacheKey != null && blockCache.isShared(cacheKey))
+      {
+        while (++numTries < 100 && length > 0)
+        {
+          long numSent = blockCache.transfer(cacheKey, fileChannel, offset, length, fileChannel.size(),
+              getChannelWriter());
+          offset += numSent;
+          length -= numSent;
+          if (length > 0 && numSent == 0)
+          {
+            if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer waiting for data in file size=" + fileChannel.size());
+            try{Thread.sleep(50);}catch(Exception e1){}
+          }
+        }
+        return length;
+      }
       if (readAhead && readAheadData != null && readAheadData.remaining() > 0)
       {
         if (offset == readAheadPos)
@@ -775,7 +861,7 @@ public class MediaServer implements Runnable
           int buffSize = readAheadData.remaining();
           int currSize = (int)Math.min(length, buffSize);
           readAheadData.limit(currSize + readAheadData.position());
-          s.write(readAheadData);
+          writeData(readAheadData);
           readAheadData.limit(readAheadData.limit() + buffSize - currSize);
           length -= currSize;
           offset += currSize;
@@ -785,7 +871,7 @@ public class MediaServer implements Runnable
             buffSize = readAheadData2.remaining();
             currSize = (int)Math.min(length, buffSize);
             readAheadData2.limit(currSize + readAheadData2.position());
-            s.write(readAheadData2);
+            writeData(readAheadData2);
             readAheadData2.limit(readAheadData2.limit() + buffSize - currSize);
             length -= currSize;
             offset += currSize;
@@ -805,7 +891,7 @@ public class MediaServer implements Runnable
         long readThisTime = Math.min(currFileSize - offset, length);
         if (readThisTime > 0)
         {
-          if (!useNioTransfers || (Sage.LINUX_OS && offset +length >= Integer.MAX_VALUE))
+          if (!useNioTransfers || !s.isBlocking() || (Sage.LINUX_OS && offset +length >= Integer.MAX_VALUE))
           {
             // NOTE: Due to Java using the sendfile kernel API call to do the transfer,
             // there's a 32-bit limitation here. This is very unfortunate. But since it's
@@ -819,7 +905,7 @@ public class MediaServer implements Runnable
             hackBuf.limit((int)Math.min(readThisTime, hackBuf.capacity()));
             int currRead = fileChannel.read(hackBuf, offset);
             hackBuf.flip();
-            s.write(hackBuf);
+            writeData(hackBuf);
             offset += currRead;
             length -= currRead;
           }
@@ -936,7 +1022,8 @@ public class MediaServer implements Runnable
           TimeoutHandler.registerTimeout(TIMEOUT, s);
         while (length > 0)
         {
-          if (!useNioTransfers || (Sage.LINUX_OS && offset +length >= Integer.MAX_VALUE) || remuxer != null)
+          if (!useNioTransfers || !s.isBlocking() || (Sage.LINUX_OS && offset +length >= Integer.MAX_VALUE) ||
+              remuxer != null)
           {
             // NOTE: Due to Java using the sendfile kernel API call to do the transfer,
             // there's a 32-bit limitation here. This is very unfortunate. But since it's
@@ -948,7 +1035,7 @@ public class MediaServer implements Runnable
             }
             hackBuf.clear();
             hackBuf.limit((int)Math.min(length, hackBuf.capacity()));
-            int currRead = s.read(hackBuf);
+            int currRead = readData(hackBuf);
             hackBuf.flip();
 
             if (remuxer != null)
@@ -1006,473 +1093,660 @@ public class MediaServer implements Runnable
         // 3 - SIZE
         // 4 - READ offset length
         StringBuffer tempString = readLineBytes();
-        while (tempString != null && alive)
+        while (tempString != null && alive && processCommand(tempString))
         {
-          if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer recvd:" + tempString);
-          if (tempString.indexOf("OPEN ") == 0)
-          {
-            closeFile();
-            String fname = tempString.substring(5);
-            // Do the platform path character conversion
-            fname = IOUtils.convertPlatformPathChars(fname);
-            if (MEDIA_SERVER_DEBUG) System.out.println("Converted pathname to:" + fname);
-            openFile(fname);
-          }
-          else if (tempString.indexOf("OPENW ") == 0)
-          {
-            closeFile();
-            String fname = tempString.substring(6);
-            fname = convertToUnicode(fname);
-            // Do the platform path character conversion
-            fname = IOUtils.convertPlatformPathChars(fname);
-            if (MEDIA_SERVER_DEBUG) System.out.println("Converted pathname to:" + fname);
-            openFile(fname);
-          }
-          else if (tempString.indexOf("WRITEOPEN ") == 0)
-          {
-            closeFile();
-            int idx = tempString.lastIndexOf(" ");
-            String fname = tempString.substring(10, idx);
-            // Do the platform path character conversion
-            fname = IOUtils.convertPlatformPathChars(fname);
-            int uploadKey = Integer.parseInt(tempString.substring(idx + 1));
-            if (MEDIA_SERVER_DEBUG) System.out.println("Converted pathname to:" + fname);
-            openWriteFile(fname, uploadKey, true);
-          }
-          else if (tempString.indexOf("WRITEOPENW ") == 0)
-          {
-            closeFile();
-            int idx = tempString.lastIndexOf(" ");
-            String fname = tempString.substring(11, idx);
-            fname = convertToUnicode(fname);
-            // Do the platform path character conversion
-            fname = IOUtils.convertPlatformPathChars(fname);
-            int uploadKey = Integer.parseInt(tempString.substring(idx + 1));
-            if (MEDIA_SERVER_DEBUG) System.out.println("Converted pathname to:" + fname);
-            openWriteFile(fname, uploadKey, true);
-          }
-          else if (tempString.indexOf("LISTW ") == 0)
+          //outStream.flush();
+          tempString = readLineBytes();
+        }
+      }
+      catch (Exception e)
+      {
+        System.out.println("Error in MediaServerConnection of :" + e);
+        e.printStackTrace(System.out);
+      }
+      finally
+      {
+        closeConnection();
+      }
+    }
+
+    /**
+     * Executes one command line from the client and sends the response. Returns false if the client asked to quit.
+     */
+    protected boolean processCommand(StringBuffer tempString) throws java.io.IOException
+    {
+      if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer recvd:" + tempString);
+      if (tempString.indexOf("OPEN ") == 0)
+      {
+        closeFile();
+        String fname = tempString.substring(5);
+        // Do the platform path character conversion
+        fname = IOUtils.convertPlatformPathChars(fname);
+        if (MEDIA_SERVER_DEBUG) System.out.println("Converted pathname to:" + fname);
+        openFile(fname);
+      }
+      else if (tempString.indexOf("OPENW ") == 0)
+      {
+        closeFile();
+        String fname = tempString.substring(6);
+        fname = convertToUnicode(fname);
+        // Do the platform path character conversion
+        fname = IOUtils.convertPlatformPathChars(fname);
+        if (MEDIA_SERVER_DEBUG) System.out.println("Converted pathname to:" + fname);
+        openFile(fname);
+      }
+      else if (tempString.indexOf("WRITEOPEN ") == 0)
+      {
+        closeFile();
+        int idx = tempString.lastIndexOf(" ");
+        String fname = tempString.substring(10, idx);
+        // Do the platform path character conversion
+        fname = IOUtils.convertPlatformPathChars(fname);
+        int uploadKey = Integer.parseInt(tempString.substring(idx + 1));
+        if (MEDIA_SERVER_DEBUG) System.out.println("Converted pathname to:" + fname);
+        openWriteFile(fname, uploadKey, true);
+      }
+      else if (tempString.indexOf("WRITEOPENW ") == 0)
+      {
+        closeFile();
+        int idx = tempString.lastIndexOf(" ");
+        String fname = tempString.substring(11, idx);
+        fname = convertToUnicode(fname);
+        // Do the platform path character conversion
+        fname = IOUtils.convertPlatformPathChars(fname);
+        int uploadKey = Integer.parseInt(tempString.substring(idx + 1));
+        if (MEDIA_SERVER_DEBUG) System.out.println("Converted pathname to:" + fname);
+        openWriteFile(fname, uploadKey, true);
+      }
+      else if (tempString.indexOf("LISTW ") == 0)
+      {
+        String dirName = tempString.substring(6);
+        dirName = IOUtils.convertPlatformPathChars(convertToUnicode(dirName));
+        if (MEDIA_SERVER_DEBUG) System.out.println("Dir listing requested for:" + dirName);
+        java.io.File theDir = new java.io.File(dirName);
+        if (checkDirAccess(theDir))
+        {
+          if (theDir.isDirectory())
           {
-            String dirName = tempString.substring(6);
-            dirName = IOUtils.convertPlatformPathChars(convertToUnicode(dirName));
-            if (MEDIA_SERVER_DEBUG) System.out.println("Dir listing requested for:" + dirName);
-            java.io.File theDir = new java.io.File(dirName);
-            if (checkDirAccess(theDir))
-            {
-              if (theDir.isDirectory())
-              {
-                commBufWrite.clear();
-                commBufWrite.put(OK_BYTES);
-                // Now write one line which is the number of entries and then write each entry on a separate line after that
-                String[] kids = theDir.list();
-                commBufWrite.put((Integer.toString(kids == null ? 0 : kids.length) + "\r\n").getBytes()).flip();
-                int numWritten = s.write(commBufWrite);
-                if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
-                if (kids != null)
-                {
-                  commBufWrite.clear();
-                  for (int i = 0; i < kids.length; i++)
-                  {
-                    byte[] currBytes = kids[i].getBytes("UTF-16BE");
-                    if (commBufWrite.remaining() < currBytes.length + 2)
-                    {
-                      commBufWrite.flip();
-                      numWritten = s.write(commBufWrite);
-                      if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
-                      commBufWrite.clear();
-                    }
-                    commBufWrite.put(currBytes);
-                    commBufWrite.put(RN_BYTES);
-                  }
-                  if (commBufWrite.position() > 0)
-                  {
-                    commBufWrite.flip();
-                    numWritten = s.write(commBufWrite);
-                    if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
-                  }
-                }
-              }
-              else
-              {
-                commBufWrite.clear();
-                commBufWrite.put("NO_EXIST\r\n".getBytes()).flip();
-                int numWritten = s.write(commBufWrite);
-                if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
-              }
-            }
-            else
+            commBufWrite.clear();
+            commBufWrite.put(OK_BYTES);
+            // Now write one line which is the number of entries and then write each entry on a separate line after that
+            String[] kids = theDir.list();
+            commBufWrite.put((Integer.toString(kids == null ? 0 : kids.length) + "\r\n").getBytes()).flip();
+            int numWritten = writeData(commBufWrite);
+            if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
+            if (kids != null)
             {
               commBufWrite.clear();
-              commBufWrite.put("NON_MEDIA\r\n".getBytes()).flip();
-              int numWritten = s.write(commBufWrite);
-              if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
-            }
-          }
-          else if (tempString.indexOf("LISTRECURSIVEW ") == 0 || tempString.indexOf("LISTRECURSIVEALLW ") == 0)
-          {
-            String dirName;
-            boolean allFiles;
-            if (tempString.indexOf("LISTRECURSIVEW ") == 0)
-            {
-              dirName = tempString.substring(15);
-              allFiles = false;
-            }
-            else
-            {
-              dirName = tempString.substring(18);
-              allFiles = true;
-            }
-            dirName = IOUtils.convertPlatformPathChars(convertToUnicode(dirName));
-            if (MEDIA_SERVER_DEBUG) System.out.println("Recursive dir listing requested for:" + dirName);
-            java.io.File theDir = new java.io.File(dirName);
-            if (checkDirAccess(theDir))
-            {
-              if (theDir.isDirectory())
+              for (int i = 0; i < kids.length; i++)
               {
-                commBufWrite.clear();
-                commBufWrite.put(OK_BYTES);
-                // Now write one line which is the number of entries and then write each entry on a separate line after that
-                java.io.File[] kids = IOUtils.listFilesRecursive(theDir, allFiles);
-                commBufWrite.put((Integer.toString(kids == null ? 0 : kids.length) + "\r\n").getBytes()).flip();
-                int numWritten = s.write(commBufWrite);
-                if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
-                if (kids != null)
+                byte[] currBytes = kids[i].getBytes("UTF-16BE");
+                if (commBufWrite.remaining() < currBytes.length + 2)
                 {
+                  commBufWrite.flip();
+                  numWritten = writeData(commBufWrite);
+                  if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
                   commBufWrite.clear();
-                  for (int i = 0; i < kids.length; i++)
-                  {
-                    byte[] currBytes = kids[i].getAbsolutePath().getBytes("UTF-16BE");
-                    if (commBufWrite.remaining() < currBytes.length + 2)
-                    {
-                      commBufWrite.flip();
-                      numWritten = s.write(commBufWrite);
-                      if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
-                      commBufWrite.clear();
-                    }
-                    commBufWrite.put(currBytes);
-                    commBufWrite.put(RN_BYTES);
-                  }
-                  if (commBufWrite.position() > 0)
-                  {
-                    commBufWrite.flip();
-                    numWritten = s.write(commBufWrite);
-                    if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
-                  }
                 }
+                commBufWrite.put(currBytes);
+                commBufWrite.put(RN_BYTES);
               }
-              else
+              if (commBufWrite.position() > 0)
               {
-                commBufWrite.clear();
-                commBufWrite.put("NO_EXIST\r\n".getBytes()).flip();
-                int numWritten = s.write(commBufWrite);
+                commBufWrite.flip();
+                numWritten = writeData(commBufWrite);
                 if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
               }
             }
-            else
-            {
-              commBufWrite.clear();
-              commBufWrite.put("NON_MEDIA\r\n".getBytes()).flip();
-              int numWritten = s.write(commBufWrite);
-              if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
-            }
           }
-          else if ("CLOSE".contentEquals(tempString))
+          else
           {
-            closeFile();
             commBufWrite.clear();
-            commBufWrite.put(OK_BYTES).flip();
-            int numWritten = s.write(commBufWrite);
+            commBufWrite.put("NO_EXIST\r\n".getBytes()).flip();
+            int numWritten = writeData(commBufWrite);
             if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
           }
-          else if ("SIZE".contentEquals(tempString))
-            sizeFile();
-          else if (tempString.indexOf("READ ") == 0)
-          {
-            int idx = tempString.lastIndexOf(" ");
-            readFile(Long.parseLong(tempString.substring(5, idx)),
-                Long.parseLong(tempString.substring(idx + 1)));
-          }
-          else if (tempString.indexOf("WRITE ") == 0)
-          {
-            int idx = tempString.lastIndexOf(" ");
-            writeFile(Long.parseLong(tempString.substring(6, idx)),
-                Long.parseLong(tempString.substring(idx + 1)));
-          }
-          else if (tempString.indexOf("XCODE_SETUP ") == 0)
+        }
+        else
+        {
+          commBufWrite.clear();
+          commBufWrite.put("NON_MEDIA\r\n".getBytes()).flip();
+          int numWritten = writeData(commBufWrite);
+          if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
+        }
+      }
+      else if (tempString.indexOf("LISTRECURSIVEW ") == 0 || tempString.indexOf("LISTRECURSIVEALLW ") == 0)
+      {
+        String dirName;
+        boolean allFiles;
+        if (tempString.indexOf("LISTRECURSIVEW ") == 0)
+        {
+          dirName = tempString.substring(15);
+          allFiles = false;
+        }
+        else
+        {
+          dirName = tempString.substring(18);
+          allFiles = true;
+        }
+        dirName = IOUtils.convertPlatformPathChars(convertToUnicode(dirName));
+        if (MEDIA_SERVER_DEBUG) System.out.println("Recursive dir listing requested for:" + dirName);
+        java.io.File theDir = new java.io.File(dirName);
+        if (checkDirAccess(theDir))
+        {
+          if (theDir.isDirectory())
           {
-            String xcodeMode = tempString.substring(tempString.indexOf(" ") + 1);
-            if (Sage.DBG) System.out.println("MediaServer is serving up in transcode mode: " + xcodeMode);
-            xcoder = new FFMPEGTranscoder();
-            xcoder.setTranscodeFormat(xcodeMode, null);
             commBufWrite.clear();
-            commBufWrite.put(OK_BYTES).flip();
-            int numWritten = s.write(commBufWrite);
+            commBufWrite.put(OK_BYTES);
+            // Now write one line which is the number of entries and then write each entry on a separate line after that
+            java.io.File[] kids = IOUtils.listFilesRecursive(theDir, allFiles);
+            commBufWrite.put((Integer.toString(kids == null ? 0 : kids.length) + "\r\n").getBytes()).flip();
+            int numWritten = writeData(commBufWrite);
             if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
-          }
-          else if (tempString.indexOf("REMUX_SETUP ") == 0)
-          {
-            // REMUX_SETUP Mode OutputFormat Parameters...
-            // Auto:
-            // REMUX_SETUP AUTO OutputFormat IsTV
-            // Ex. REMUX_SETUP AUTO PS TRUE
-
-            // The file must be closed to turn this mode off.
-            if (remuxer != null)
+            if (kids != null)
             {
               commBufWrite.clear();
-              commBufWrite.put("INIT_ERROR\r\n".getBytes()).flip();
-
-              if (Sage.DBG) System.out.println("MediaServer is already in remux mode ignoring: " +
-                  tempString.substring(tempString.indexOf(" ") + 1));
-            }
-            else
-            {
-              if (Sage.DBG) System.out.println("MediaServer is writing in remux mode: " +
-                  tempString.substring(tempString.indexOf(" ") + 1));
-
-              StringTokenizer toker = new StringTokenizer(tempString.substring(12), " ");
-
-              if (toker.countTokens() == 3)
+              for (int i = 0; i < kids.length; i++)
               {
-                String mode = toker.nextToken();
-                int outputFormat = toker.nextToken().equalsIgnoreCase("TS") ? MPEGParser2.REMUX_TS : MPEGParser2.REMUX_PS;
-
-                if (mode.equalsIgnoreCase("AUTO"))
-                {
-                  boolean isTV = toker.nextToken().equalsIgnoreCase("TRUE");
-                  remuxer = new MediaServerRemuxer(fileChannel, outputFormat, isTV, this);
-                } else
+                byte[] currBytes = kids[i].getAbsolutePath().getBytes("UTF-16BE");
+                if (commBufWrite.remaining() < currBytes.length + 2)
                 {
-                  // If a client is trying to use a newer mode, that doesn't exist, this default
-                  // will be used since it should always work. This default is better than nothing
-                  // and will be logged so we know to tell the user to upgrade.
-                  if (Sage.DBG) System.out.println("MediaServer remux mode not supported;" +
-                      " defaulting to AUTO TRUE");
-                  remuxer = new MediaServerRemuxer(fileChannel, outputFormat, true, this);
+                  commBufWrite.flip();
+                  numWritten = writeData(commBufWrite);
+                  if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
+                  commBufWrite.clear();
                 }
+                commBufWrite.put(currBytes);
+                commBufWrite.put(RN_BYTES);
               }
-              else
+              if (commBufWrite.position() > 0)
               {
-                commBufWrite.clear();
-                commBufWrite.put("PARAM_ERROR\r\n".getBytes()).flip();
+                commBufWrite.flip();
+                numWritten = writeData(commBufWrite);
+                if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
               }
-
-              commBufWrite.clear();
-              commBufWrite.put(OK_BYTES).flip();
             }
-
-            int numWritten = s.write(commBufWrite);
-            if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
           }
-          else if (tempString.indexOf("REMUX_CONFIG ") == 0)
+          else
           {
-            if (remuxer != null)
-            {
-              String config = tempString.substring(13);
-              if (config.equals("INIT"))
-              {
-                commBufWrite.clear();
-                commBufWrite.put((remuxer.isInitialized() ? "TRUE\r\n" : "FALSE\r\n").getBytes()).flip();
-              }
-              else if (config.equals("SWITCHED"))
-              {
-                commBufWrite.clear();
-                commBufWrite.put((remuxer.isSwitched() ? "TRUE\r\n" : "FALSE\r\n").getBytes()).flip();
-              }
-              else if (config.equals("FORCE_SWITCHED"))
-              {
-                remuxer.forceSwitched();
-                commBufWrite.clear();
-                commBufWrite.put(OK_BYTES).flip();
-              }
-              else if (config.equals("DISABLE_ASSIST"))
-              {
-                remuxer.disableInterAssist();
-                commBufWrite.clear();
-                commBufWrite.put(OK_BYTES).flip();
-              }
-              else if (config.equals("FORMAT"))
-              {
-                commBufWrite.clear();
-                commBufWrite.put((remuxer.isInitialized() ?
-                    remuxer.getContainerFormat().getFullPropertyString(false) + "\r\n" : "NULL\r\n").getBytes()).flip();
-              }
-              else if (config.equals("FILE"))
-              {
-                commBufWrite.clear();
-                commBufWrite.put((currFile != null ?
-                    currFile.getAbsoluteFile() + "\r\n" : "NULL\r\n").getBytes()).flip();
-              }
-              else if (config.equals("MODE"))
-              {
-                commBufWrite.clear();
-                commBufWrite.put((remuxer.getOutputFormat() == MPEGParser2.REMUX_TS ?
-                    "TS\r\n" : "PS\r\n").getBytes()).flip();
-              }
-              else if (config.startsWith("BUFFER "))
-              {
-                remuxer.setBufferLimit(Long.parseLong(config.substring(7)));
-                fileChannel.position(0);
-                commBufWrite.clear();
-                commBufWrite.put(OK_BYTES).flip();
-              }
-              else
-              {
-                commBufWrite.clear();
-                commBufWrite.put("ERROR\r\n".getBytes()).flip();
-              }
-            }
-            else
-            {
-              commBufWrite.clear();
-              commBufWrite.put("NO_INIT\r\n".getBytes()).flip();
-            }
-
-            int numWritten = s.write(commBufWrite);
+            commBufWrite.clear();
+            commBufWrite.put("NO_EXIST\r\n".getBytes()).flip();
+            int numWritten = writeData(commBufWrite);
             if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
           }
-          else if (tempString.indexOf("REMUX_SWITCH ") == 0)
-          {
-            if (remuxer != null)
-            {
-              int idx = tempString.lastIndexOf(" ");
-              String fname = tempString.substring(13, idx);
-              // Do the platform path character conversion
-              fname = IOUtils.convertPlatformPathChars(fname);
-              int uploadKey = Integer.parseInt(tempString.substring(idx + 1));
-              if (MEDIA_SERVER_DEBUG) System.out.println("Converted pathname to:" + fname);
+        }
+        else
+        {
+          commBufWrite.clear();
+          commBufWrite.put("NON_MEDIA\r\n".getBytes()).flip();
+          int numWritten = writeData(commBufWrite);
+          if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
+        }
+      }
+      else if ("CLOSE".contentEquals(tempString))
+      {
+        closeFile();
+        commBufWrite.clear();
+        commBufWrite.put(OK_BYTES).flip();
+        int numWritten = writeData(commBufWrite);
+        if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
+      }
+      else if ("SIZE".contentEquals(tempString))
+        sizeFile();
+      else if (tempString.indexOf("READ ") == 0)
+      {
+        int idx = tempString.lastIndexOf(" ");
+        readFile(Long.parseLong(tempString.substring(5, idx)),
+            Long.parseLong(tempString.substring(idx + 1)));
+      }
+      else if (tempString.indexOf("WRITE ") == 0)
+      {
+        int idx = tempString.lastIndexOf(" ");
+        writeFile(Long.parseLong(tempString.substring(6, idx)),
+            Long.parseLong(tempString.substring(idx + 1)));
+      }
+      else if (tempString.indexOf("XCODE_SETUP ") == 0)
+      {
+        String xcodeMode = tempString.substring(tempString.indexOf(" ") + 1);
+        if (Sage.DBG) System.out.println("MediaServer is serving up in transcode mode: " + xcodeMode);
+        xcoder = new FFMPEGTranscoder();
+        xcoder.setTranscodeFormat(xcodeMode, null);
+        commBufWrite.clear();
+        commBufWrite.put(OK_BYTES).flip();
+        int numWritten = writeData(commBufWrite);
+        if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
+      }
+      else if (tempString.indexOf("REMUX_SETUP ") == 0)
+      {
+        // REMUX_SETUP Mode OutputFormat Parameters...
+        // Auto:
+        // REMUX_SETUP AUTO OutputFormat IsTV
+        // Ex. REMUX_SETUP AUTO PS TRUE
 
-              remuxer.startSwitch(fname, uploadKey);
-              //Later we will call openWriteFile(fname, uploadKey);
+        // The file must be closed to turn this mode off.
+        if (remuxer != null)
+        {
+          commBufWrite.clear();
+          commBufWrite.put("INIT_ERROR\r\n".getBytes()).flip();
 
-              commBufWrite.clear();
-              commBufWrite.put("OK\r\n".getBytes()).flip();
-            }
-            else
-            {
-              commBufWrite.clear();
-              commBufWrite.put("NO_INIT\r\n".getBytes()).flip();
-            }
+          if (Sage.DBG) System.out.println("MediaServer is already in remux mode ignoring: " +
+              tempString.substring(tempString.indexOf(" ") + 1));
+        }
+        else
+        {
+          if (Sage.DBG) System.out.println("MediaServer is writing in remux mode: " +
+              tempString.substring(tempString.indexOf(" ") + 1));
 
-            int numWritten = s.write(commBufWrite);
-            if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
-          }
-          else if (tempString.indexOf("TRUNC ") == 0)
+          StringTokenizer toker = new StringTokenizer(tempString.substring(12), " ");
+
+          if (toker.countTokens() == 3)
           {
-            int idx = tempString.lastIndexOf(" ");
+            String mode = toker.nextToken();
+            int outputFormat = toker.nextToken().equalsIgnoreCase("TS") ? MPEGParser2.REMUX_TS : MPEGParser2.REMUX_PS;
 
-            if (fileChannel != null)
+            if (mode.equalsIgnoreCase("AUTO"))
             {
-              fileChannel.truncate(Long.parseLong(tempString.substring(6, tempString.length())));
-              commBufWrite.clear();
-              commBufWrite.put(OK_BYTES).flip();
-            }
-            else
+              boolean isTV = toker.nextToken().equalsIgnoreCase("TRUE");
+              remuxer = new MediaServerRemuxer(fileChannel, outputFormat, isTV, this);
+            } else
             {
-              commBufWrite.clear();
-              commBufWrite.put("NON_MEDIA\r\n".getBytes()).flip();
+              // If a client is trying to use a newer mode, that doesn't exist, this default
+              // will be used since it should always work. This default is better than nothing
+              // and will be logged so we know to tell the user to upgrade.
+              if (Sage.DBG) System.out.println("MediaServer remux mode not supported;" +
+                  " defaulting to AUTO TRUE");
+              remuxer = new MediaServerRemuxer(fileChannel, outputFormat, true, this);
             }
-
-            int numWritten = s.write(commBufWrite);
-            if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
           }
-          else if (tempString.indexOf("FORCE ") == 0)
+          else
           {
-            int idx = tempString.lastIndexOf(" ");
+            commBufWrite.clear();
+            commBufWrite.put("PARAM_ERROR\r\n".getBytes()).flip();
+          }
 
-            if (fileChannel != null)
-            {
-              fileChannel.force(tempString.substring(6, tempString.length()).equalsIgnoreCase("TRUE"));
-              commBufWrite.clear();
-              commBufWrite.put(OK_BYTES).flip();
-            }
-            else
-            {
-              commBufWrite.clear();
-              commBufWrite.put("NON_MEDIA\r\n".getBytes()).flip();
-            }
+          commBufWrite.clear();
+          commBufWrite.put(OK_BYTES).flip();
+        }
 
-            int numWritten = s.write(commBufWrite);
-            if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
+        int numWritten = writeData(commBufWrite);
+        if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
+      }
+      else if (tempString.indexOf("REMUX_CONFIG ") == 0)
+      {
+        if (remuxer != null)
+        {
+          String config = tempString.substring(13);
+          if (config.equals("INIT"))
+          {
+            commBufWrite.clear();
+            commBufWrite.put((remuxer.isInitialized() ? "TRUE\r\n" : "FALSE\r\n").getBytes()).flip();
           }
-          else if (tempString.indexOf("QUIT") == 0)
+          else if (config.equals("SWITCHED"))
           {
-            break;
+            commBufWrite.clear();
+            commBufWrite.put((remuxer.isSwitched() ? "TRUE\r\n" : "FALSE\r\n").getBytes()).flip();
+          }
+          else if (config.equals("FORCE_SWITCHED"))
+          {
+            remuxer.forceSwitched();
+            commBufWrite.clear();
+            commBufWrite.put(OK_BYTES).flip();
+          }
+          else if (config.equals("DISABLE_ASSIST"))
+          {
+            remuxer.disableInterAssist();
+            commBufWrite.clear();
+            commBufWrite.put(OK_BYTES).flip();
+          }
+          else if (config.equals("FORMAT"))
+          {
+            commBufWrite.clear();
+            commBufWrite.put((remuxer.isInitialized() ?
+                remuxer.getContainerFormat().getFullPropertyString(false) + "\r\n" : "NULL\r\n").getBytes()).flip();
+          }
+          else if (config.equals("FILE"))
+          {
+            commBufWrite.clear();
+            commBufWrite.put((currFile != null ?
+                currFile.getAbsoluteFile() + "\r\n" : "NULL\r\n").getBytes()).flip();
+          }
+          else if (config.equals("MODE"))
+          {
+            commBufWrite.clear();
+            commBufWrite.put((remuxer.getOutputFormat() == MPEGParser2.REMUX_TS ?
+                "TS\r\n" : "PS\r\n").getBytes()).flip();
+          }
+          else if (config.startsWith("BUFFER "))
+          {
+            remuxer.setBufferLimit(Long.parseLong(config.substring(7)));
+            fileChannel.position(0);
+            commBufWrite.clear();
+            commBufWrite.put(OK_BYTES).flip();
           }
           else
           {
             commBufWrite.clear();
-            commBufWrite.put(("UNKNOWN COMMAND " + tempString + "\r\n").getBytes()).flip();
-            int numWritten = s.write(commBufWrite);
-            if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
+            commBufWrite.put("ERROR\r\n".getBytes()).flip();
           }
-          //outStream.flush();
-          tempString = readLineBytes();
         }
+        else
+        {
+          commBufWrite.clear();
+          commBufWrite.put("NO_INIT\r\n".getBytes()).flip();
+        }
+
+        int numWritten = writeData(commBufWrite);
+        if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
       }
-      catch (Exception e)
+      else if (tempString.indexOf("REMUX_SWITCH ") == 0)
       {
-        System.out.println("Error in MediaServerConnection of :" + e);
-        e.printStackTrace(System.out);
+        if (remuxer != null)
+        {
+          int idx = tempString.lastIndexOf(" ");
+          String fname = tempString.substring(13, idx);
+          // Do the platform path character conversion
+          fname = IOUtils.convertPlatformPathChars(fname);
+          int uploadKey = Integer.parseInt(tempString.substring(idx + 1));
+          if (MEDIA_SERVER_DEBUG) System.out.println("Converted pathname to:" + fname);
+
+          remuxer.startSwitch(fname, uploadKey);
+          //Later we will call openWriteFile(fname, uploadKey);
+
+          commBufWrite.clear();
+          commBufWrite.put("OK\r\n".getBytes()).flip();
+        }
+        else
+        {
+          commBufWrite.clear();
+          commBufWrite.put("NO_INIT\r\n".getBytes()).flip();
+        }
+
+        int numWritten = writeData(commBufWrite);
+        if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
       }
-      finally
+      else if (tempString.indexOf("TRUNC ") == 0)
       {
-        clientDisconnected();
-        try
+        int idx = tempString.lastIndexOf(" ");
+
+        if (fileChannel != null)
         {
-          if (remuxer != null)
-            remuxer.close();
-          remuxer = null;
+          fileChannel.truncate(Long.parseLong(tempString.substring(6, tempString.length())));
+          commBufWrite.clear();
+          commBufWrite.put(OK_BYTES).flip();
         }
-        catch (Exception e)
-        {}
-        try
+        else
         {
-          if (fileChannel != null)
-            fileChannel.close();
-          fileChannel = null;
+          commBufWrite.clear();
+          commBufWrite.put("NON_MEDIA\r\n".getBytes()).flip();
         }
-        catch (Exception e)
-        {}
-        try
+
+        int numWritten = writeData(commBufWrite);
+        if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
+      }
+      else if (tempString.indexOf("FORCE ") == 0)
+      {
+        int idx = tempString.lastIndexOf(" ");
+
+        if (fileChannel != null)
         {
-          if (fileStream != null)
-            fileStream.close();
-          fileStream = null;
+          fileChannel.force(tempString.substring(6, tempString.length()).equalsIgnoreCase("TRUE"));
+          commBufWrite.clear();
+          commBufWrite.put(OK_BYTES).flip();
         }
-        catch (Exception e)
-        {}
-        /*try
+        else
         {
-          if (uploadStream != null)
-            uploadStream.close();
-          uploadStream = null;
+          commBufWrite.clear();
+          commBufWrite.put("NON_MEDIA\r\n".getBytes()).flip();
+        }
+
+        int numWritten = writeData(commBufWrite);
+        if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
+      }
+      else if (tempString.indexOf("QUIT") == 0)
+      {
+        return false;
+      }
+      else
+      {
+        commBufWrite.clear();
+        commBufWrite.put(("UNKNOWN COMMAND " + tempString + "\r\n").getBytes()).flip();
+        int numWritten = writeData(commBufWrite);
+        if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer wrote out " + numWritten + " bytes");
+      }
+      return true;
+    }
+
+    protected void closeConnection()
+    {
+      synchronized (this)
+      {
+        if (closed)
+          return;
+        closed = true;
+      }
+      clientDisconnected();
+      try
+      {
+        if (remuxer != null)
+          remuxer.close();
+        remuxer = null;
+      }
+      catch (Exception e)
+      {}
+      try
+      {
+        if (fileChannel != null)
+          fileChannel.close();
+        fileChannel = null;
+      }
+      catch (Exception e)
+      {}
+      try
+      {
+        if (fileStream != null)
+          fileStream.close();
+        fileStream = null;
+      }
+      catch (Exception e)
+      {}
+      releaseSharedCache();
+      /*try
+      {
+        if (uploadStream != null)
+          uploadStream.close();
+        uploadStream = null;
+      }
+      catch (Exception e)
+      {}*/
+      try
+      {
+        s.close();
+        s = null;
+      }
+      catch (Exception e)
+      {}
+      if (readSelector != null)
+      {
+        try
+        {
+          readSelector.close();
+          readSelector = null;
         }
         catch (Exception e)
-        {}*/
+        {}
+      }
+      if (xcoder != null)
+      {
+        xcoder.stopTranscode();
+        xcoder = null;
+      }
+      if (waitSelector != null)
+      {
         try
         {
-          s.close();
-          s = null;
+          waitSelector.close();
+          waitSelector = null;
         }
         catch (Exception e)
         {}
-        if (readSelector != null)
+      }
+    }
+
+    // Sends all of the data in the buffer; non-blocking sockets wait for room to write instead of spinning
+    protected int writeData(java.nio.ByteBuffer buf) throws java.io.IOException
+    {
+      if (s.isBlocking())
+        return s.write(buf);
+      int rv = 0;
+      while (buf.hasRemaining())
+      {
+        int numWritten = s.write(buf);
+        if (numWritten == 0)
+          waitForSocket(java.nio.channels.SelectionKey.OP_WRITE);
+        rv += numWritten;
+      }
+      return rv;
+    }
+
+    // Reads at least one byte into the buffer, or throws EOFException if the client has closed the connection
+    protected int readData(java.nio.ByteBuffer buf) throws java.io.IOException
+    {
+      if (s.isBlocking())
+        return s.read(buf);
+      int numRead;
+      while ((numRead = s.read(buf)) == 0)
+        waitForSocket(java.nio.channels.SelectionKey.OP_READ);
+      if (numRead < 0)
+        throw new java.io.EOFException();
+      return numRead;
+    }
+
+    private void waitForSocket(int ops) throws java.io.IOException
+    {
+      // The event loop owns the main registration of the socket, so waits in here use a selector for this thread
+      java.nio.channels.Selector selector;
+      if (eventLoop != null)
+        selector = eventLoop.getWaitSelector();
+      else
+      {
+        if (waitSelector == null)
+          waitSelector = java.nio.channels.spi.SelectorProvider.provider().openSelector();
+        selector = waitSelector;
+      }
+      java.nio.channels.SelectionKey key = s.keyFor(selector);
+      if (key == null)
+        key = s.register(selector, ops);
+      else
+        key.interestOps(ops);
+      try
+      {
+        if (selector.select(TIMEOUT) == 0)
+          throw new java.io.EOFException("Timeout waiting for MediaServer client");
+        selector.selectedKeys().clear();
+      }
+      finally
+      {
+        if (key.isValid())
+          key.interestOps(0);
+      }
+    }
+
+    private java.nio.channels.WritableByteChannel getChannelWriter()
+    {
+      if (channelWriter == null)
+      {
+        channelWriter = new java.nio.channels.WritableByteChannel()
         {
-          try
+          public int write(java.nio.ByteBuffer src) throws java.io.IOException
           {
-            readSelector.close();
-            readSelector = null;
+            return writeData(src);
           }
-          catch (Exception e)
-          {}
-        }
-        if (xcoder != null)
+
+          public boolean isOpen()
+          {
+            return s != null && s.isOpen();
+          }
+
+          public void close() throws java.io.IOException
+          {
+          }
+        };
+      }
+      return channelWriter;
+    }
+
+    /**
+     * Sets up this connection to be run by the event loop instead of its own thread.
+     */
+    void startEventMode(MediaServerEventLoop eventLoop) throws java.io.IOException
+    {
+      this.eventLoop = eventLoop;
+      clientConnected();
+      s.socket().setTcpNoDelay(true);
+      s.socket().setKeepAlive(true);
+      s.configureBlocking(false);
+      commBufRead = java.nio.ByteBuffer.allocate(4096);
+      commBufRead.flip();
+      commBufWrite = java.nio.ByteBuffer.allocate(4096);
+      lastActivity = System.currentTimeMillis();
+    }
+
+    /**
+     * Reads whatever is available from the client in event mode; returns false if the client closed the connection.
+     */
+    boolean readAvailable() throws java.io.IOException
+    {
+      lastActivity = System.currentTimeMillis();
+      commBufRead.compact();
+      int numRead;
+      try
+      {
+        numRead = s.read(commBufRead);
+      }
+      finally
+      {
+        commBufRead.flip();
+      }
+      if (MEDIA_SERVER_DEBUG) System.out.println("MediaServer read " + numRead + " bytes");
+      return numRead >= 0;
+    }
+
+    /**
+     * Returns the next complete command line that's been read in event mode, or null if there isn't one yet. The
+     * data after that line stays in the buffer since it may be part of an upload.
+     */
+    StringBuffer nextLine()
+    {
+      if (lineComplete)
+      {
+        result.setLength(0);
+        lineComplete = false;
+      }
+      while (commBufRead.hasRemaining())
+      {
+        int currByte = (commBufRead.get() & 0xFF);
+        if (currByte == '\n')
         {
-          xcoder.stopTranscode();
-          xcoder = null;
+          int len = result.length();
+          if (len > 0 && result.charAt(len - 1) == '\r')
+            result.setLength(len - 1);
+          lineComplete = true;
+          lastActivity = System.currentTimeMillis();
+          return result;
         }
+        result.append((char)currByte);
       }
+      return null;
+    }
+
+    boolean isIdle(long now)
+    {
+      return now - lastActivity > TIMEOUT;
+    }
+
+    boolean isServerAlive()
+    {
+      return alive;
     }
 
     public FileChannel getFileChannel()
@@ -1501,13 +1775,25 @@ public class MediaServer implements Runnable
     protected boolean blocking;
     protected long lastRecFileSize;
     protected boolean circFileRec;
+    protected boolean closed;
+    // For event mode
+    protected MediaServerEventLoop eventLoop;
+    protected java.nio.channels.Selector waitSelector;
+    protected java.nio.channels.WritableByteChannel channelWriter;
+    protected boolean lineComplete;
+    protected volatile long lastActivity;
 
     protected MediaServerRemuxer remuxer;
 
     protected boolean readAhead;
+    // The shared block cache and the key of the file in it, or null if the reads for this file can't use it
+    protected MediaServerBlockCache sharedCache;
+    protected String sharedCacheFile;
 
     protected TranscodeEngine xcoder;
   }
   private static final java.util.Map largeFileSizeMap = new java.util.HashMap();
+  private static final Object blockCacheLock = new Object();
+  private static MediaServerBlockCache blockCache;
   private static long LARGE_FILE_SIZE = 900000000000L;
 }
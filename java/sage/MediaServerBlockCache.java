@@ -0,0 +1,276 @@
+/*
+ * Copyright 2015 The SageTV Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of file data that's shared by all of the MediaServer connections, so when several clients are watching the
+ * same file it's only read from disk once. Files are split into fixed size blocks which are kept in LRU order until
+ * the total size of them goes over the limit.
+ * <p>
+ * Files that are still being recorded are only ever appended to, so a block at the end of one holds as much as was
+ * in the file when it was read and is filled in the rest of the way when a later request needs more of it. Data
+ * that's already in a block never changes; when a file is replaced its blocks are dropped from the cache instead,
+ * so anything that's still sending from them isn't affected.
+ * <p>
+ * Files are cached under a key from getFileKey, which includes the identity of the file where the OS has one, so a
+ * recording that's deleted and created again isn't served from the blocks of the old one. The connections that have
+ * each file open are counted so they only need to go through the cache while it's being shared.
+ */
+final class MediaServerBlockCache
+{
+  MediaServerBlockCache(int blockSize, long maxBytes)
+  {
+    this.blockSize = Math.max(4096, blockSize);
+    maxBlocks = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / this.blockSize));
+  }
+
+  /**
+   * Returns the key to cache this file under; it's the path and the identity of the file (the inode on Unix), so
+   * another file created at the same path uses different blocks even while the old one is still being read.
+   */
+  static String getFileKey(File f)
+  {
+    String path = f.getAbsolutePath();
+    try
+    {
+      Object fileKey = Files.readAttributes(f.toPath(), BasicFileAttributes.class).fileKey();
+      if (fileKey != null)
+        return path + '|' + fileKey;
+    }
+    catch (IOException e){}
+    return path;
+  }
+
+  /**
+   * Called when a client opens a file so the cached data for it is dropped if the file has been replaced since it
+   * was cached. Files that are growing can change their modification time at any point, but they never get smaller.
+   * Each call has to be matched by a call to closeFile.
+   */
+  synchronized void openFile(String key, long lastModified, long length, boolean growing)
+  {
+    FileState state = files.get(key);
+    if (state != null && ((!growing && !state.growing && state.lastModified != lastModified) ||
+        length < state.maxSize))
+      invalidate(key);
+    state = files.get(key);
+    if (state == null)
+      files.put(key, state = new FileState());
+    state.lastModified = lastModified;
+    state.growing = growing;
+    state.readers++;
+  }
+
+  synchronized void closeFile(String key)
+  {
+    FileState state = files.get(key);
+    if (state != null && --state.readers <= 0)
+    {
+      state.readers = 0;
+      if (state.numBlocks <= 0)
+        files.remove(key);
+    }
+  }
+
+  /**
+   * Returns true if more than one client has the file open; otherwise reading it through the cache doesn't help.
+   */
+  synchronized boolean isShared(String key)
+  {
+    FileState state = files.get(key);
+    return state != null && state.readers > 1;
+  }
+
+  /**
+   * Sends up to length bytes of the file starting at offset to the channel. availSize is how much of the file there
+   * is to read right now. Returns the number of bytes that were sent, which is less than the length if the end of the
+   * available data was reached.
+   */
+  long transfer(String key, FileChannel fileChannel, long offset, long length, long availSize,
+      WritableByteChannel out) throws IOException
+  {
+    synchronized (this)
+    {
+      FileState state = files.get(key);
+      if (state == null)
+        files.put(key, state = new FileState());
+      // It's been truncated or replaced by a smaller file; the size of a growing one can be from before another
+      // client saw it grow
+      if (availSize < state.maxSize && !state.growing)
+        invalidate(key);
+      state = files.get(key);
+      if (state == null)
+        files.put(key, state = new FileState());
+      state.maxSize = Math.max(state.maxSize, availSize);
+    }
+    long sent = 0;
+    while (sent < length && offset < availSize)
+    {
+      long blockIndex = offset / blockSize;
+      long blockStart = blockIndex * blockSize;
+      int blockOffset = (int) (offset - blockStart);
+      Block block = getBlock(key, blockIndex);
+      int blockValid;
+      synchronized (block)
+      {
+        int wanted = (int) Math.min(blockSize, availSize - blockStart);
+        if (block.valid < wanted)
+        {
+          if (block.data == null)
+            block.data = new byte[blockSize];
+          ByteBuffer fillBuf = ByteBuffer.wrap(block.data, block.valid, wanted - block.valid);
+          while (fillBuf.hasRemaining())
+          {
+            int numRead = fileChannel.read(fillBuf, blockStart + fillBuf.position());
+            if (numRead <= 0)
+              break;
+          }
+          block.valid = fillBuf.position();
+          misses.incrementAndGet();
+        }
+        else
+          hits.incrementAndGet();
+        blockValid = block.valid;
+      }
+      if (blockValid <= blockOffset)
+        break;
+      // Nothing below valid changes once it's been read, so the block doesn't need to be locked while sending
+      ByteBuffer sendBuf = ByteBuffer.wrap(block.data, blockOffset, (int) Math.min(blockValid - blockOffset,
+          length - sent));
+      int toSend = sendBuf.remaining();
+      while (sendBuf.hasRemaining())
+      {
+        if (out.write(sendBuf) < 0)
+          throw new java.io.EOFException();
+      }
+      sent += toSend;
+      offset += toSend;
+    }
+    return sent;
+  }
+
+  synchronized long getCachedBytes()
+  {
+    return (long) blocks.size() * blockSize;
+  }
+
+  public synchronized String toString()
+  {
+    return "MediaServerBlockCache[blockSize=" + blockSize + " blocks=" + blocks.size() + '/' + maxBlocks + " files=" +
+        files.size() + " hits=" + hits.get() + " misses=" + misses.get() + ']';
+  }
+
+  private synchronized Block getBlock(String fileKey, long blockIndex)
+  {
+    BlockKey key = new BlockKey(fileKey, blockIndex);
+    Block rv = blocks.get(key);
+    if (rv == null)
+    {
+      blocks.put(key, rv = new Block());
+      FileState state = files.get(fileKey);
+      if (state != null)
+        state.numBlocks++;
+      // Drop the least recently used ones to get back under the limit
+      Iterator<Map.Entry<BlockKey, Block>> walker = blocks.entrySet().iterator();
+      while (blocks.size() > maxBlocks && walker.hasNext())
+      {
+        BlockKey oldKey = walker.next().getKey();
+        walker.remove();
+        FileState oldState = files.get(oldKey.fileKey);
+        if (oldState != null && --oldState.numBlocks <= 0 && oldState.readers <= 0)
+          files.remove(oldKey.fileKey);
+      }
+    }
+    return rv;
+  }
+
+  // Drops all of the blocks for the file; the count of clients that have it open is kept
+  private void invalidate(String key)
+  {
+    Iterator<BlockKey> walker = blocks.keySet().iterator();
+    while (walker.hasNext())
+    {
+      if (walker.next().fileKey.equals(key))
+        walker.remove();
+    }
+    FileState state = files.remove(key);
+    if (state != null && state.readers > 0)
+    {
+      FileState newState = new FileState();
+      newState.readers = state.readers;
+      files.put(key, newState);
+    }
+  }
+
+  private static final class BlockKey
+  {
+    BlockKey(String fileKey, long index)
+    {
+      this.fileKey = fileKey;
+      this.index = index;
+    }
+
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof BlockKey))
+        return false;
+      BlockKey other = (BlockKey) o;
+      return index == other.index && fileKey.equals(other.fileKey);
+    }
+
+    public int hashCode()
+    {
+      return fileKey.hashCode() * 31 + (int) (index ^ (index >>> 32));
+    }
+
+    final String fileKey;
+    final long index;
+  }
+
+  private static final class Block
+  {
+    byte[] data;
+    int valid;
+  }
+
+  private static final class FileState
+  {
+    long lastModified;
+    boolean growing;
+    long maxSize;
+    int numBlocks;
+    int readers;
+  }
+
+  private final int blockSize;
+  private final int maxBlocks;
+  private final LinkedHashMap<BlockKey, Block> blocks = new LinkedHashMap<BlockKey, Block>(64, 0.75f, true);
+  private final Map<String, FileState> files = new HashMap<String, FileState>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright 2015 The SageTV Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sage;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs MediaServer connections without a thread for each one. A few event loop threads each own a selector for their
+ * share of the connections and read the command lines from them. Once a whole line has been read the connection stops
+ * being selected for reads and the command (and any others that are already buffered after it) is run on the I/O
+ * pool, since file reads, uploads and waiting for data in files that are being recorded all block; the connection is
+ * then given back to its event loop.
+ * <p>
+ * Commands that are run on the I/O pool wait for the socket with a selector of their own thread if it's not ready
+ * for a write or for more upload data. A client that stops reading can hold a thread that way for a long time, so the
+ * pool starts another thread whenever all of them are busy instead of making the other connections wait behind it;
+ * only once it reaches its maximum size are commands queued, and that gets logged.
+ */
+final class MediaServerEventLoop
+{
+  private static final long SELECT_TIMEOUT = 10000;
+  // How often it's logged that the I/O pool is saturated
+  private static final long SATURATED_LOG_PERIOD = 60000;
+
+  MediaServerEventLoop(int numLoops, int numIOThreads, int maxIOThreads) throws IOException
+  {
+    numIOThreads = Math.max(1, numIOThreads);
+    ioQueue = new IOQueue();
+    ioPool = new ThreadPoolExecutor(numIOThreads, Math.max(numIOThreads, maxIOThreads), 60, TimeUnit.SECONDS,
+        ioQueue, new ThreadFactory()
+    {
+      public Thread newThread(final Runnable r)
+      {
+        Thread t = new Thread(new Runnable()
+        {
+          public void run()
+          {
+            try
+            {
+              r.run();
+            }
+            finally
+            {
+              closeWaitSelector();
+            }
+          }
+        }, "MediaServerIO-" + ioThreadNum.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    }, new RejectedExecutionHandler()
+    {
+      public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+      {
+        // The pool filled up after the queue said to start another thread
+        if (executor.isShutdown())
+          throw new RejectedExecutionException();
+        logSaturated();
+        ioQueue.force(r);
+      }
+    });
+    ioPool.allowCoreThreadTimeOut(true);
+    loops = new Loop[Math.max(1, numLoops)];
+    try
+    {
+      for (int i = 0; i < loops.length; i++)
+        loops[i] = new Loop();
+    }
+    catch (IOException e)
+    {
+      close();
+      throw e;
+    }
+    for (int i = 0; i < loops.length; i++)
+    {
+      Thread t = new Thread(loops[i], "MediaServerEventLoop-" + i);
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  void addConnection(MediaServer.Connection conn)
+  {
+    Loop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    loop.newConns.add(conn);
+    loop.selector.wakeup();
+  }
+
+  /**
+   * Returns a selector for the current I/O thread to wait on sockets with.
+   */
+  Selector getWaitSelector() throws IOException
+  {
+    Selector rv = waitSelectors.get();
+    if (rv == null)
+      waitSelectors.set(rv = SelectorProvider.provider().openSelector());
+    return rv;
+  }
+
+  void close()
+  {
+    alive = false;
+    for (int i = 0; i < loops.length; i++)
+    {
+      if (loops[i] != null)
+        loops[i].selector.wakeup();
+    }
+    ioPool.shutdown();
+  }
+
+  public String toString()
+  {
+    return "MediaServerEventLoop[loops=" + loops.length + " ioThreads=" + ioPool.getCorePoolSize() + '-' +
+        ioPool.getMaximumPoolSize() + ']';
+  }
+
+  int getNumIOThreads()
+  {
+    return ioPool.getPoolSize();
+  }
+
+  // Runs the task on the I/O pool and keeps track of how many are waiting for a thread or running
+  private void executeIO(final Runnable task)
+  {
+    pendingTasks.incrementAndGet();
+    try
+    {
+      ioPool.execute(new Runnable()
+      {
+        public void run()
+        {
+          try
+          {
+            task.run();
+          }
+          finally
+          {
+            pendingTasks.decrementAndGet();
+          }
+        }
+      });
+    }
+    catch (RejectedExecutionException e)
+    {
+      pendingTasks.decrementAndGet();
+      throw e;
+    }
+  }
+
+  private void logSaturated()
+  {
+    long now = System.currentTimeMillis();
+    if (now - lastSaturatedLog >= SATURATED_LOG_PERIOD)
+    {
+      lastSaturatedLog = now;
+      if (Sage.DBG) System.out.println("MediaServer I/O pool is saturated with " + ioPool.getPoolSize() +
+          " threads; " + (pendingTasks.get() - ioPool.getActiveCount()) + " commands are waiting for one");
+    }
+  }
+
+  private void closeWaitSelector()
+  {
+    Selector selector = waitSelectors.get();
+    if (selector != null)
+    {
+      try
+      {
+        selector.close();
+      }
+      catch (IOException e){}
+      waitSelectors.remove();
+    }
+  }
+
+  // Runs the commands from a connection until there's no more whole lines buffered for it
+  private void dispatch(final Loop loop, final SelectionKey key, final MediaServer.Connection conn,
+      final StringBuffer line)
+  {
+    Runnable task = new Runnable()
+    {
+      public void run()
+      {
+        boolean keepOpen = false;
+        try
+        {
+          StringBuffer currLine = line;
+          while (conn.isServerAlive() && conn.processCommand(currLine))
+          {
+            currLine = conn.nextLine();
+            if (currLine == null)
+            {
+              keepOpen = true;
+              break;
+            }
+          }
+        }
+        catch (Throwable t)
+        {
+          System.out.println("Error in MediaServerConnection of :" + t);
+          t.printStackTrace(System.out);
+        }
+        if (keepOpen && alive)
+        {
+          loop.resumed.add(key);
+          loop.selector.wakeup();
+        }
+        else
+        {
+          key.cancel();
+          conn.closeConnection();
+        }
+      }
+    };
+    try
+    {
+      executeIO(task);
+    }
+    catch (RejectedExecutionException e)
+    {
+      key.cancel();
+      conn.closeConnection();
+    }
+  }
+
+  // Closing can wait on transcoders, so don't do that on an event loop
+  private void closeLater(SelectionKey key, final MediaServer.Connection conn)
+  {
+    if (key != null)
+      key.cancel();
+    try
+    {
+      executeIO(new Runnable()
+      {
+        public void run()
+        {
+          conn.closeConnection();
+        }
+      });
+    }
+    catch (RejectedExecutionException e)
+    {
+      conn.closeConnection();
+    }
+  }
+
+  private class Loop implements Runnable
+  {
+    Loop() throws IOException
+    {
+      selector = SelectorProvider.provider().openSelector();
+    }
+
+    public void run()
+    {
+      long lastIdleCheck = System.currentTimeMillis();
+      while (alive)
+      {
+        try
+        {
+          selector.select(SELECT_TIMEOUT);
+        }
+        catch (IOException e)
+        {
+          System.out.println("ERROR in MediaServer event loop select of:" + e);
+          break;
+        }
+        MediaServer.Connection newConn;
+        while ((newConn = newConns.poll()) != null)
+        {
+          try
+          {
+            newConn.startEventMode(MediaServerEventLoop.this);
+            newConn.s.register(selector, SelectionKey.OP_READ, newConn);
+          }
+          catch (Exception e)
+          {
+            System.out.println("Error in MediaServerConnection of :" + e);
+            closeLater(null, newConn);
+          }
+        }
+        SelectionKey key;
+        while ((key = resumed.poll()) != null)
+        {
+          if (key.isValid())
+            key.interestOps(SelectionKey.OP_READ);
+        }
+        Iterator<SelectionKey> walker = selector.selectedKeys().iterator();
+        while (walker.hasNext())
+        {
+          key = walker.next();
+          walker.remove();
+          MediaServer.Connection conn = (MediaServer.Connection) key.attachment();
+          if (!key.isValid() || !key.isReadable())
+            continue;
+          try
+          {
+            if (!conn.readAvailable())
+            {
+              closeLater(key, conn);
+              continue;
+            }
+            StringBuffer line = conn.nextLine();
+            if (line != null)
+            {
+              // The connection belongs to the I/O thread until the command is done
+              key.interestOps(0);
+              dispatch(this, key, conn, line);
+            }
+          }
+          catch (Exception e)
+          {
+            if (Sage.DBG) System.out.println("MediaServer connection closed due to:" + e);
+            closeLater(key, conn);
+          }
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastIdleCheck >= SELECT_TIMEOUT)
+        {
+          lastIdleCheck = now;
+          closeIdleConnections(now);
+        }
+      }
+      // Shut down all of the connections this was handling
+      List<MediaServer.Connection> conns = new ArrayList<MediaServer.Connection>();
+      try
+      {
+        for (SelectionKey key : selector.keys())
+          conns.add((MediaServer.Connection) key.attachment());
+        selector.close();
+      }
+      catch (Exception e){}
+      for (MediaServer.Connection conn : conns)
+        conn.closeConnection();
+      MediaServer.Connection newConn;
+      while ((newConn = newConns.poll()) != null)
+        newConn.closeConnection();
+    }
+
+    // Connections that are running a command aren't selected and aren't idle
+    private void closeIdleConnections(long now)
+    {
+      for (SelectionKey key : selector.keys())
+      {
+        if (key.isValid() && key.interestOps() != 0)
+        {
+          MediaServer.Connection conn = (MediaServer.Connection) key.attachment();
+          if (conn.isIdle(now))
+          {
+            if (Sage.DBG) System.out.println("MediaServer closing idle connection");
+            closeLater(key, conn);
+          }
+        }
+      }
+    }
+
+    final Selector selector;
+    final ConcurrentLinkedQueue<MediaServer.Connection> newConns = new ConcurrentLinkedQueue<MediaServer.Connection>();
+    final ConcurrentLinkedQueue<SelectionKey> resumed = new ConcurrentLinkedQueue<SelectionKey>();
+  }
+
+  /*
+   * Tasks are only queued when there's an idle thread that will take them or the pool can't grow anymore; otherwise
+   * this refuses them, which makes the pool start another thread for the task.
+   */
+  private class IOQueue extends LinkedBlockingQueue<Runnable>
+  {
+    private static final long serialVersionUID = 1L;
+
+    public boolean offer(Runnable r)
+    {
+      if (ioPool.getPoolSize() >= ioPool.getMaximumPoolSize())
+      {
+        if (pendingTasks.get() > ioPool.getPoolSize())
+          logSaturated();
+        return super.offer(r);
+      }
+      if (pendingTasks.get() <= ioPool.getPoolSize())
+        return super.offer(r);
+      return false;
+    }
+
+    void force(Runnable r)
+    {
+      super.offer(r);
+    }
+  }
+
+  private final Loop[] loops;
+  private final IOQueue ioQueue;
+  private final ThreadPoolExecutor ioPool;
+  // Tasks that were given to the I/O pool and haven't finished yet
+  private final AtomicInteger pendingTasks = new AtomicInteger();
+  private volatile long lastSaturatedLog;
+  private final AtomicInteger nextLoop = new AtomicInteger();
+  private final AtomicInteger ioThreadNum = new AtomicInteger();
+  private final ThreadLocal<Selector> waitSelectors = new ThreadLocal<Selector>();
+  private volatile boolean alive = true;
+}
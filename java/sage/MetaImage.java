@@ -51,6 +51,7 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.Vector;
 import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /*
  * NOTE: DON'T DO THUMBNAIL GENERATION IN HERE. WE WANT TO STORE THEM IN SEPARATE FILES
@@ -58,7 +59,20 @@ import java.util.WeakHashMap;
  */
 public class MetaImage
 {
-  private static final Map<Object, MetaImage> globalImageCache = Collections.synchronizedMap(new HashMap<Object, MetaImage>());
+  // This is limited to a maximum number of MetaImages; ones that don't have any images loaded are dropped once it's over
+  // that. The image data itself is limited by the Java, raw and native cache sizes.
+  private static final SegmentedLRUCache<Object, MetaImage> globalImageCache =
+      new SegmentedLRUCache<Object, MetaImage>(16, Sage.getInt("ui/image_cache_max_entries", 10000))
+  {
+    @Override
+    protected boolean isEvictable(MetaImage mi)
+    {
+      return mi.canDropFromCache();
+    }
+  };
+  private static final AtomicLong javaCacheEvictions = new AtomicLong();
+  private static final AtomicLong rawCacheEvictions = new AtomicLong();
+  private static final AtomicLong nativeCacheEvictions = new AtomicLong();
   private static final Map<Image, MetaImage> globalWeakImageCache = Collections.synchronizedMap(new WeakHashMap<Image, MetaImage>());
   private static long javaImageCacheSize;
   private static long rawImageCacheSize;
@@ -384,6 +398,24 @@ public class MetaImage
   }
 
   public static long getJavaImageCacheSize() { return javaImageCacheSize; }
+  public static long getRawImageCacheSize() { return rawImageCacheSize; }
+
+  /**
+   * Returns the hit rate and size of the MetaImage cache, and the bytes used by and the number of images released from
+   * each of the image caches
+   */
+  public static String getCacheStatistics()
+  {
+    long nativeSize = 0;
+    synchronized (nativeImageCacheSizeMap)
+    {
+      for (Long size : nativeImageCacheSizeMap.values())
+        nativeSize += size.longValue();
+    }
+    return "MetaImageCache[" + globalImageCache + " javaBytes=" + javaImageCacheSize + " javaEvictions=" +
+        javaCacheEvictions.get() + " rawBytes=" + rawImageCacheSize + " rawEvictions=" + rawCacheEvictions.get() +
+        " nativeBytes=" + nativeSize + " nativeEvictions=" + nativeCacheEvictions.get() + ']';
+  }
   public static long getNativeImageCacheSize(NativeImageAllocator nia)
   {
     Long nativeSize = nativeImageCacheSizeMap.get(nia);
@@ -431,11 +463,8 @@ public class MetaImage
     MetaImage rv = new MetaImage(src);
     rv.initFontImage();
     rv.sourceHasAlpha = true;
-    synchronized (globalImageCache)
-    {
-      if (globalImageCache.containsKey(src)) return globalImageCache.get(src);
-      globalImageCache.put(src, rv);
-    }
+    MetaImage existingImage = globalImageCache.putIfAbsent(src, rv);
+    if (existingImage != null) return existingImage;
     if (DEBUG_MI) System.out.println("DONE first getMetaImage src=" + src);
     return rv;
   }
@@ -473,11 +502,8 @@ public class MetaImage
       return globalImageCache.get(null);
     }
 
-    synchronized (globalImageCache)
-    {
-      if (globalImageCache.containsKey(src)) return globalImageCache.get(src);
-      globalImageCache.put(src, rv);
-    }
+    MetaImage existingImage = globalImageCache.putIfAbsent(src, rv);
+    if (existingImage != null) return existingImage;
     if (DEBUG_MI) System.out.println("DONE first getMetaImage src=" + src);
     return rv;
   }
@@ -548,11 +574,8 @@ public class MetaImage
       }
     }
 
-    synchronized (globalImageCache)
-    {
-      if (globalImageCache.containsKey(src)) return globalImageCache.get(src);
-      globalImageCache.put(src, rv);
-    }
+    MetaImage existingImage = globalImageCache.putIfAbsent(src, rv);
+    if (existingImage != null) return existingImage;
     if (DEBUG_MI) System.out.println("DONE first getMetaImage src=" + src);
     return rv;
   }
@@ -624,11 +647,8 @@ public class MetaImage
       }
     }
 
-    synchronized (globalImageCache)
-    {
-      if (globalImageCache.containsKey(src)) return globalImageCache.get(src);
-      globalImageCache.put(src, rv);
-    }
+    MetaImage existingImage = globalImageCache.putIfAbsent(src, rv);
+    if (existingImage != null) return existingImage;
     if (DEBUG_MI) System.out.println("DONE first getMetaImage src=" + src);
     return rv;
   }
@@ -654,11 +674,8 @@ public class MetaImage
                 if (!cleanName.equals(src))
                 {
                   MetaImage rv = getMetaImage(cleanName, logoCheckDir);
-                  synchronized (globalImageCache)
-                  {
-                    if (globalImageCache.containsKey(src)) return globalImageCache.get(src);
-                    globalImageCache.put(src, rv);
-                  }
+                  MetaImage existingImage = globalImageCache.putIfAbsent(src, rv);
+                  if (existingImage != null) return existingImage;
                   return rv;
                 }
                 globalImageCache.put(src, globalImageCache.get(null));
@@ -670,11 +687,8 @@ public class MetaImage
       }
     }
     MetaImage fileLogoImage = getMetaImage(logoFile);
-    synchronized (globalImageCache)
-    {
-      if (globalImageCache.containsKey(src)) return globalImageCache.get(src);
-      globalImageCache.put(src, fileLogoImage);
-    }
+    MetaImage existingImage = globalImageCache.putIfAbsent(src, fileLogoImage);
+    if (existingImage != null) return existingImage;
     return fileLogoImage;
   }
   public static MetaImage getMetaImage(String src)
@@ -880,11 +894,8 @@ public class MetaImage
         }
       }
     }
-    synchronized (globalImageCache)
-    {
-      if (globalImageCache.containsKey(orgSrc)) return globalImageCache.get(orgSrc);
-      globalImageCache.put(orgSrc, rv);
-    }
+    MetaImage existingImage = globalImageCache.putIfAbsent(orgSrc, rv);
+    if (existingImage != null) return existingImage;
     if (DEBUG_MI) System.out.println("DONE first getMetaImage src=" + src);
     return rv;
   }
@@ -989,11 +1000,8 @@ public class MetaImage
         return globalImageCache.get(null);
       }
     }
-    synchronized (globalImageCache)
-    {
-      if (globalImageCache.containsKey(srcStr)) return globalImageCache.get(srcStr);
-      globalImageCache.put(srcStr, rv);
-    }
+    MetaImage existingImage = globalImageCache.putIfAbsent(srcStr, rv);
+    if (existingImage != null) return existingImage;
     if (DEBUG_MI) System.out.println("DONE first getMetaImage src=" + src);
     return rv;
   }
@@ -1005,11 +1013,8 @@ public class MetaImage
     MetaImage rv = new MetaImage(src);
     if (!rv.initAlbumImage())
       return globalImageCache.get(null);
-    synchronized (globalImageCache)
-    {
-      if (globalImageCache.containsKey(src)) return globalImageCache.get(src);
-      globalImageCache.put(src, rv);
-    }
+    MetaImage existingImage = globalImageCache.putIfAbsent(src, rv);
+    if (existingImage != null) return existingImage;
     if (DEBUG_MI) System.out.println("DONE first getMetaImage src=" + src);
     return rv;
   }
@@ -1101,11 +1106,8 @@ public class MetaImage
     rv.initDataStructures(1);
     rv.width[0] = srcImage.getWidth(0);
     rv.height[0] = srcImage.getHeight(0);
-    synchronized (globalImageCache)
-    {
-      if (globalImageCache.containsKey(src)) return globalImageCache.get(src);
-      globalImageCache.put(src, rv);
-    }
+    MetaImage existingImage = globalImageCache.putIfAbsent(src, rv);
+    if (existingImage != null) return existingImage;
     if (DEBUG_MI) System.out.println("DONE first getMetaImage src=" + src);
     return rv;
   }
@@ -1135,6 +1137,41 @@ public class MetaImage
     else return false;
   }
 
+  // True if there's nothing loaded or in use for this so it can be dropped from the cache and created again later. The
+  // null image is only ever in there under other keys for sources that failed, which can be looked up again. This
+  // doesn't sync on the MetaImage since a cache lock is held when it's called.
+  private boolean canDropFromCache()
+  {
+    if (permanent)
+      return true;
+    if (localCacheFile != null || this instanceof Waiter || javaImage == null || rawImage == null)
+      return false;
+    try
+    {
+      for (int i = 0; i < numImages; i++)
+      {
+        if (javaImage[i] != null || rawImage[i] != null || javaRefCount[i] > 0 || rawRefCount[i] > 0)
+          return false;
+      }
+      NativeImageData[] nads = nativeAllocData;
+      for (int j = 0; nads != null && j < nads.length; j++)
+      {
+        NativeImageData nid = nads[j];
+        for (int i = 0; nid != null && i < nid.nativeImage.length; i++)
+        {
+          if (nid.nativeImage[i] != 0 || nid.nativeRefCount[i] > 0)
+            return false;
+        }
+      }
+    }
+    catch (ArrayIndexOutOfBoundsException e)
+    {
+      // The arrays are being grown right now, so it's in use
+      return false;
+    }
+    return true;
+  }
+
   protected MetaImage(Object inSrc)
   {
     src = inSrc;
@@ -2012,6 +2049,13 @@ public class MetaImage
     }
     if (DEBUG_MI) System.out.println("Oldest image sysmem=" + nia + " mi=" + oldestImage + " time=" +
         Sage.df(oldest));
+    // All of the callers release the image they're given
+    if (nia != null)
+      nativeCacheEvictions.incrementAndGet();
+    else if (isRaw)
+      rawCacheEvictions.incrementAndGet();
+    else
+      javaCacheEvictions.incrementAndGet();
     return new Object[] { oldestImage, new Integer(oldestIndex) };
   }
 
@@ -3181,7 +3225,7 @@ public class MetaImage
         }
         x++;
       }
-      System.out.println("<---- DONE DUMPING META IMAGE CACHE");
+      System.out.println("<---- DONE DUMPING META IMAGE CACHE " + getCacheStatistics());
     }
   }
 
@@ -3710,13 +3754,9 @@ public class MetaImage
                   if (Sage.DBG) System.out.println("Error accessing image file " + currURL + " of " + e);
                 }
               }
-              synchronized (globalImageCache)
-              {
-                if (globalImageCache.containsKey(urlStr))
-                  rv = globalImageCache.get(urlStr);
-                else
-                  globalImageCache.put(urlStr, rv);
-              }
+              MetaImage existingImage = globalImageCache.putIfAbsent(urlStr, rv);
+              if (existingImage != null)
+                rv = existingImage;
               goodLoad = !rv.isNullOrFailed();
             }
             synchronized (taskNotifiers)
@@ -20,6 +20,7 @@ public class MiniClientSageRenderer extends SageRenderer
 {
   private static final boolean DEBUG_NATIVE2D = false;
   private static final boolean DEBUG_REMOTEFS = false;
+  private static final boolean USE_SCALED_IMAGE_STORE = Sage.getBoolean("ui/scaled_image_store", true);
   private java.nio.channels.SocketChannel clientSocket;
   private java.nio.ByteBuffer sockBuf = java.nio.ByteBuffer.allocate(65536);
 
@@ -1360,6 +1361,9 @@ public class MiniClientSageRenderer extends SageRenderer
 
   public boolean executeDisplayList(java.awt.Rectangle clipRect)
   {
+    // This is only valid if the last display list was completely drawn
+    java.util.ArrayList prevDiffedDisplayList = lastDiffedDisplayList;
+    lastDiffedDisplayList = null;
     if (startedReconnectDaemon && !reconnectCompleted)
     {
       return false;
@@ -1438,6 +1442,21 @@ public class MiniClientSageRenderer extends SageRenderer
       currEffectClip = new java.awt.Rectangle(0, 0, master.getWidth(), master.getHeight());
       currXform = null;
     }
+    // If the client keeps what was drawn in the last frame then only the area that's different from the last display
+    // list needs to be drawn; all of the ops are clipped to that
+    java.awt.Rectangle diffClip = null;
+    boolean diffable = partialUpdatesOK && !bufferFlipping && !uiMgr.areLayersEnabled() && !currWaitIndicatorState &&
+        uiMgr.getBoolean("ui/display_list_diffing", true);
+    if (diffable && prevDiffedDisplayList != null)
+    {
+      diffClip = DisplayListDiff.getChangedArea(prevDiffedDisplayList, currDisplayList);
+      if (diffClip != null)
+      {
+        if (currEffectClip != null)
+          diffClip = diffClip.intersection(currEffectClip);
+        currEffectClip = diffClip;
+      }
+    }
     baseClip = currEffectClip;
     virginsToFix.clear();
     if (dlThatWasComposited != currDisplayList || !uiMgr.areLayersEnabled())
@@ -1581,6 +1600,9 @@ public class MiniClientSageRenderer extends SageRenderer
         // Skip transparent rendering ops
         if (!op.isEffectOp() && currEffectAlpha == 0)
           continue;
+        // And ones that are outside of what changed
+        if (diffClip != null && i < currDisplayList.size() && (diffClip.isEmpty() || !op.destRect.intersects(diffClip)))
+          continue;
         if (op.isEffectOp())
         {
           processEffectOp(op, repeatedDL);
@@ -1739,6 +1761,8 @@ public class MiniClientSageRenderer extends SageRenderer
     {
       //System.out.println("Effect surface cache pixel count=" + effectSurfPixelCacheRenderCount/1024 + "K " + ((100.0f * effectSurfPixelCacheRenderCount) / lastPixelRenderCount) + "%");
     }
+    if (diffable && !sentUIMgrKill)
+      lastDiffedDisplayList = currDisplayList;
     //        try{clientOutStream.flush();}catch(Exception e){}
     return true;
   }
@@ -2156,6 +2180,12 @@ public class MiniClientSageRenderer extends SageRenderer
       // NOTE: Sometimes we clip the last pixel of the text in the vertical dimension (and probably
       // horizontal as well). This is due to the rounding effect of adding the Ascent getting in the way.
       // Another reason for the floating point rendering option
+      if (currEffectClip != null)
+      {
+        cr.intersect(cr, currEffectClip, cr);
+        if (cr.width <= 0 || cr.height <= 0)
+          return;
+      }
       drawTextMini(
           (int)(op.destRect.x - op.srcRect.x + FLOAT_ERROR),
           (int)(op.destRect.y - op.srcRect.y +
@@ -3327,6 +3357,7 @@ public class MiniClientSageRenderer extends SageRenderer
     {
       if (!Sage.getBoolean("ui/disable_native_image_loader", false) && !allowRawImageTransfer)
       {
+        boolean usedStoredImage = false;
         try
         {
           int width = image.getWidth(imageIndex);
@@ -3381,21 +3412,29 @@ public class MiniClientSageRenderer extends SageRenderer
             if (Sage.DBG && DEBUG_NATIVE2D) System.out.println("Trying to load image " +
                 image.getSource() +
                 " width: "+width+" height: "+height);
-            pauseIfNotRenderingThread();
-            tightImage = image.getRawImage(imageIndex);
-
             // Save the image as a PNG and then transfer that (but do a quick check for a JPEG filename
             // and use JPEG in that case)
             String imgSrcName = image.getLcSourcePathname();
             boolean doJpegTransfer = false;
             if (imgSrcName.endsWith(".jpg") || imgSrcName.endsWith(".jpeg"))
               doJpegTransfer = true;
-            byte[] compImgData;
+            // See if we've already compressed this image at this size before so it doesn't need to be loaded and
+            // scaled again
+            ScaledImageStore.Key storeKey = USE_SCALED_IMAGE_STORE ?
+                ScaledImageStore.getKey(image, imageIndex, doJpegTransfer ? "jpg" : "png") : null;
+            byte[] compImgData = (storeKey == null) ? null : ScaledImageStore.getInstance().get(storeKey);
+            if (compImgData != null)
+            {
+              if (Sage.DBG && DEBUG_NATIVE2D) System.out.println("Using stored scaled image for " + image.getSource());
+              usedStoredImage = true;
+            }
             // The premultiply state should have no effect on this since we're encoding it as a PNG
-            if (!doJpegTransfer)
+            else if (!doJpegTransfer)
             {
               // We need to make a version that does not have premultiplied alpha and then compress
               // that before we send it.
+              pauseIfNotRenderingThread();
+              tightImage = image.getRawImage(imageIndex);
               java.nio.ByteBuffer fixedData = java.nio.ByteBuffer.allocateDirect(tightImage.getWidth() * tightImage.getHeight() * 4);
               int w4 = width*4;
               byte[] nativeImgBuff = (byte[])nativeImgBuffTL.get();
@@ -3428,11 +3467,17 @@ public class MiniClientSageRenderer extends SageRenderer
                   fixedData, true, w4, true);
               pauseIfNotRenderingThread();
               compImgData = sage.media.image.ImageLoader.compressImageToMemory(fixedImage, "png");
+              if (storeKey != null)
+                ScaledImageStore.getInstance().put(storeKey, compImgData);
             }
             else
             {
+              pauseIfNotRenderingThread();
+              tightImage = image.getRawImage(imageIndex);
               pauseIfNotRenderingThread();
               compImgData = sage.media.image.ImageLoader.compressImageToMemory(tightImage, doJpegTransfer ? "jpg" : "png");
+              if (storeKey != null)
+                ScaledImageStore.getInstance().put(storeKey, compImgData);
             }
             if (advImageCaching)
             {
@@ -3453,7 +3498,8 @@ public class MiniClientSageRenderer extends SageRenderer
         }
         finally
         {
-          image.removeRawRef(imageIndex);
+          if (!usedStoredImage)
+            image.removeRawRef(imageIndex);
         }
       }
       else
@@ -7527,6 +7573,8 @@ public class MiniClientSageRenderer extends SageRenderer
   private int waitCursorHeight;
 
   private boolean bufferFlipping;
+  // The last display list that was drawn and that the next one can be diffed against
+  private volatile java.util.ArrayList lastDiffedDisplayList;
   private boolean screenshotSupport;
   private long lastPixelRenderCount;
   private long lastPixelInputCount;
@@ -7996,6 +8044,8 @@ public class MiniClientSageRenderer extends SageRenderer
                   dirtyW = ((replyData[8] & 0xFF) << 24) | ((replyData[9] & 0xFF) << 16) | ((replyData[10] & 0xFF) << 8) | (replyData[11] & 0xFF);
                   dirtyH = ((replyData[12] & 0xFF) << 24) | ((replyData[13] & 0xFF) << 16) | ((replyData[14] & 0xFF) << 8) | (replyData[15] & 0xFF);
                 }
+                // The client lost what was there, so it can't be diffed against the last display list
+                lastDiffedDisplayList = null;
                 uiMgr.getRootPanel().appendToDirty(new java.awt.Rectangle(dirtyX, dirtyY, dirtyW, dirtyH));
                 break;
               case MEDIA_PLAYER_UPDATE_EVENT_REPLY_TYPE:
@@ -40,6 +40,7 @@ public class Pooler
   public static final tv.sage.mod.AbstractWidget[] EMPTY_ABSTRACTWIDGET_ARRAY = new tv.sage.mod.AbstractWidget[0];
   public static final Channel[] EMPTY_CHANNEL_ARRAY = new Channel[0];
   public static final MediaFile[] EMPTY_MEDIA_FILE_ARRAY = new MediaFile[0];
+  public static final Agent[] EMPTY_AGENT_ARRAY = new Agent[0];
   private static java.util.Stack vectorPool = new java.util.Stack();
   private static int numVecsCreated = 0;
   private static java.util.Stack arrayListPool = new java.util.Stack();
@@ -22,6 +22,8 @@ package sage;
 public class RemuxTranscodeEngine implements TranscodeEngine
 {
   private static final boolean XCODE_DEBUG = Sage.DBG && Sage.getBoolean("media_server/transcode_debug", false);
+  // How long a read waits for the remuxer to produce the data before the rest of it is sent as padding
+  private static final long DATA_WAIT_TIME = 10000;
 
   /** Creates a new instance of RemuxTranscodeEngine */
   public RemuxTranscodeEngine()
@@ -33,7 +35,7 @@ public class RemuxTranscodeEngine implements TranscodeEngine
     if (xcodeDone)
       return 0;
     else
-      return Math.max(0, xcodeBufferVirtualSize - xcodeBufferVirtualReadPos - (xcodeBufferVirtualSize % xcodeBuffer[0].length));
+      return Math.max(0, xcodeBufferVirtualSize - xcodeBufferVirtualReadPos - (xcodeBufferVirtualSize % xcodeBuffer[0].capacity()));
   }
 
   public long getVirtualReadPosition()
@@ -62,24 +64,38 @@ public class RemuxTranscodeEngine implements TranscodeEngine
 
   public void readFullyTranscodedData(byte[] buf, int inOffset, int inLength) throws java.io.IOException
   {
-    readFullyTranscodedData(null, buf, inOffset, inLength);
+    readFullyTranscodedData(null, buf, inOffset, inLength, null);
   }
   public void readFullyTranscodedData(java.nio.ByteBuffer buf) throws java.io.IOException
   {
-    readFullyTranscodedData(buf, null, buf.position(), buf.remaining());
+    readFullyTranscodedData(buf, null, buf.position(), buf.remaining(), null);
   }
-  private void readFullyTranscodedData(java.nio.ByteBuffer bb, byte[] buf, int inOffset, int inLength) throws java.io.IOException
+  private void readFullyTranscodedData(java.nio.ByteBuffer bb, byte[] buf, int inOffset, int inLength,
+      java.nio.channels.WritableByteChannel chan) throws java.io.IOException
   {
     int leftToRead = inLength;
     long overage = inLength - getAvailableTranscodeBytes();
-    int numTries = 50;
     if (XCODE_DEBUG && overage > 0) System.out.println("Waiting for more data to appear in transcode buffer over=" + overage +
         " xcodeDone=" + xcodeDone);
 
-    while (overage > 0 && !xcodeDone && (numTries-- > 0))
+    if (overage > 0 && !xcodeDone)
     {
-      try { Thread.sleep(200); } catch (Exception e){}
-      overage = inLength - getAvailableTranscodeBytes();
+      // The buffer filler signals the lock whenever it fills a buffer or finishes
+      long waitUntil = System.currentTimeMillis() + dataWaitTime;
+      synchronized (xcodeSyncLock)
+      {
+        while ((overage = inLength - getAvailableTranscodeBytes()) > 0 && !xcodeDone)
+        {
+          long waitTime = waitUntil - System.currentTimeMillis();
+          if (waitTime <= 0)
+            break;
+          try
+          {
+            xcodeSyncLock.wait(waitTime);
+          }
+          catch (InterruptedException e){}
+        }
+      }
     }
     if (overage > 0)
     {
@@ -93,18 +109,26 @@ public class RemuxTranscodeEngine implements TranscodeEngine
         leftToRead -= overage;
       }
     }
-    int buffNum = (int) (((xcodeBufferVirtualReadPos - xcodeBufferVirtualOffset) / xcodeBuffer[0].length) + xcodeBufferBaseNum) % xcodeBuffer.length;
-    int buffOffset = (int) (xcodeBufferVirtualReadPos - xcodeBufferVirtualOffset) % xcodeBuffer[0].length;
+    int buffSize = xcodeBuffer[0].capacity();
+    int buffNum = (int) (((xcodeBufferVirtualReadPos - xcodeBufferVirtualOffset) / buffSize) + xcodeBufferBaseNum) % xcodeBuffer.length;
+    int buffOffset = (int) (xcodeBufferVirtualReadPos - xcodeBufferVirtualOffset) % buffSize;
     if (XCODE_DEBUG) System.out.println("Xcode readTranscodedData(" + inLength + ") buffNum=" + buffNum +
         " buffOffset=" + buffOffset);
     int tempOffset = inOffset;
     while (leftToRead > 0)
     {
-      int currRead = Math.min((int)leftToRead, xcodeBuffer[buffNum].length - buffOffset);
-      if (bb != null)
-        bb.put(xcodeBuffer[buffNum], buffOffset, currRead);
+      int currRead = Math.min((int)leftToRead, buffSize - buffOffset);
+      java.nio.ByteBuffer src = getBufferRange(buffNum, buffOffset, currRead);
+      if (chan != null)
+      {
+        // The buffers are direct so this doesn't need another copy to go out on a socket
+        while (src.hasRemaining())
+          chan.write(src);
+      }
+      else if (bb != null)
+        bb.put(src);
       else
-        System.arraycopy(xcodeBuffer[buffNum], buffOffset, buf, tempOffset, currRead);
+        src.get(buf, tempOffset, currRead);
       tempOffset += currRead;
       leftToRead -= currRead;
       buffNum = (buffNum + 1) % xcodeBuffer.length;
@@ -114,11 +138,11 @@ public class RemuxTranscodeEngine implements TranscodeEngine
     xcodeBufferVirtualReadPos += inLength;
     synchronized (xcodeSyncLock)
     {
-      while (xcodeBufferVirtualReadPos - xcodeBufferVirtualOffset >= xcodeBuffer[0].length)
+      while (xcodeBufferVirtualReadPos - xcodeBufferVirtualOffset >= buffSize)
       {
         // We're reading more than one buffer beyond our start so we can kill that first buffer now
         xcodeBufferBaseNum = (xcodeBufferBaseNum + 1) % xcodeBuffer.length;
-        xcodeBufferVirtualOffset += xcodeBuffer[0].length;
+        xcodeBufferVirtualOffset += buffSize;
         numFilledXcodeBuffers--;
         if (XCODE_DEBUG) System.out.println("Adjusted buffer nums xcodeBufferBaseNum=" + xcodeBufferBaseNum +
             " xcodeBufferVirtualOffset=" + xcodeBufferVirtualOffset + " numFilledBuffers=" + numFilledXcodeBuffers);
@@ -127,7 +151,24 @@ public class RemuxTranscodeEngine implements TranscodeEngine
     }
     if (overage > 0)
     {
-      if (bb != null)
+      if (chan != null)
+      {
+        if (overageBuf == null)
+        {
+          overageBuf = java.nio.ByteBuffer.allocateDirect(8192);
+          while (overageBuf.hasRemaining())
+            overageBuf.put((byte) 0xFF);
+        }
+        long overageLeft = overage;
+        while (overageLeft > 0)
+        {
+          overageBuf.clear();
+          overageBuf.limit((int) Math.min(overageLeft, overageBuf.capacity()));
+          while (overageBuf.hasRemaining())
+            overageLeft -= chan.write(overageBuf);
+        }
+      }
+      else if (bb != null)
       {
         while (bb.remaining() > 0)
           bb.put((byte) 0xFF);
@@ -138,6 +179,25 @@ public class RemuxTranscodeEngine implements TranscodeEngine
     }
   }
 
+  // Returns a view of part of one of the transcode buffers so the buffer's own position isn't shared between threads
+  private java.nio.ByteBuffer getBufferRange(int buffNum, int offset, int length)
+  {
+    java.nio.ByteBuffer rv = xcodeBuffer[buffNum].duplicate();
+    rv.limit(offset + length);
+    rv.position(offset);
+    return rv;
+  }
+
+  // Sets the done flag and wakes up any reads that are waiting for more data
+  private void setTranscodeDone()
+  {
+    synchronized (xcodeSyncLock)
+    {
+      xcodeDone = true;
+      xcodeSyncLock.notifyAll();
+    }
+  }
+
   public long getCurrentTranscodeStreamTime()
   {
     return (muxy == null) ? 0 : muxy.getLastPTSMsec();
@@ -163,11 +223,11 @@ public class RemuxTranscodeEngine implements TranscodeEngine
       xcodeBufferVirtualReadPos = offset;
       synchronized (xcodeSyncLock)
       {
-        while (offset - xcodeBufferVirtualOffset >= xcodeBuffer[0].length)
+        while (offset - xcodeBufferVirtualOffset >= xcodeBuffer[0].capacity())
         {
           // We're reading more than one buffer beyond our start so we can kill that first buffer now
           xcodeBufferBaseNum = (xcodeBufferBaseNum + 1) % xcodeBuffer.length;
-          xcodeBufferVirtualOffset += xcodeBuffer[0].length;
+          xcodeBufferVirtualOffset += xcodeBuffer[0].capacity();
           numFilledXcodeBuffers--;
           if (XCODE_DEBUG) System.out.println("Adjusted buffer nums from seekToPosition xcodeBufferBaseNum=" + xcodeBufferBaseNum +
               " xcodeBufferVirtualOffset=" + xcodeBufferVirtualOffset + " numFilledBuffers=" + numFilledXcodeBuffers);
@@ -202,12 +262,7 @@ public class RemuxTranscodeEngine implements TranscodeEngine
   {
     // We ignore the offset here because that's when this is used through the MediaServer and that only happens
     // w/ the FFMPEGTranscoder and NOT w/ the remuxer
-    if (nioTmpBuf == null || nioTmpBuf.capacity() < length)
-      nioTmpBuf = java.nio.ByteBuffer.allocate((int)length);
-    nioTmpBuf.clear();
-    nioTmpBuf.limit((int)length);
-    readFullyTranscodedData(nioTmpBuf);
-    chan.write(nioTmpBuf);
+    readFullyTranscodedData(null, null, 0, (int)length, chan);
   }
 
   public void setOutputFile(java.io.File theFile)
@@ -239,17 +294,11 @@ public class RemuxTranscodeEngine implements TranscodeEngine
     if (inputTS)
       sourceFile.setForcedTSSource(true);
     sourceFile.init(true, false, false);
-    muxyBuffer = new RemuxOutputBuffer();
+    initBuffers();
     muxy = sage.media.format.MPEGParser.openRemuxer(sage.media.format.MPEGParser.REMUX_PS, 0, muxyBuffer);
     if (muxy == null)
       throw new java.io.IOException("ERROR creating remuxer");
 
-    xcodeBufferBaseNum = 0;
-    if (xcodeBuffer == null)
-      xcodeBuffer = new byte[16][32768];
-    if (inputBuffer == null)
-      inputBuffer = new byte[32768];
-
     // Init the remuxer
     while (true)
     {
@@ -285,9 +334,24 @@ public class RemuxTranscodeEngine implements TranscodeEngine
     Pooler.execute(new BufferFiller(), "RemuxBufferFiller");
   }
 
+  // Sets up the buffers the remuxer's output goes into
+  void initBuffers()
+  {
+    muxyBuffer = new RemuxOutputBuffer();
+    xcodeBufferBaseNum = 0;
+    if (xcodeBuffer == null)
+    {
+      xcodeBuffer = new java.nio.ByteBuffer[16];
+      for (int i = 0; i < xcodeBuffer.length; i++)
+        xcodeBuffer[i] = java.nio.ByteBuffer.allocateDirect(32768);
+    }
+    if (inputBuffer == null)
+      inputBuffer = new byte[32768];
+  }
+
   public void stopTranscode()
   {
-    xcodeDone = true;
+    setTranscodeDone();
     if (!fillerAlive)
     {
       // otherwise let the filler thread clean it up
@@ -340,8 +404,9 @@ public class RemuxTranscodeEngine implements TranscodeEngine
 
   protected boolean xcodeDone;
   protected boolean activeFile;
-  // Used to handle overage from when we push more than we need into the remuxer
-  protected byte[][] xcodeBuffer;
+  // Used to handle overage from when we push more than we need into the remuxer; these are direct buffers so they
+  // can be written to sockets as they are
+  protected java.nio.ByteBuffer[] xcodeBuffer;
   // This is the sync object for the counters used in the xocde buffering
   protected Object xcodeSyncLock = new Object();
   // This is the buffer index whose 0 position corresponds to the xcodeBufferVirtualOffset
@@ -370,13 +435,16 @@ public class RemuxTranscodeEngine implements TranscodeEngine
 
   protected boolean inputTS;
 
-  protected RemuxOutputBuffer muxyBuffer;
+  protected java.io.OutputStream muxyBuffer;
 
   protected String currServer;
 
   protected Long seekTarget;
 
-  protected java.nio.ByteBuffer nioTmpBuf;
+  // Filled with 0xFF for padding out data the remuxer didn't produce in time
+  protected java.nio.ByteBuffer overageBuf;
+  // How long reads wait for the remuxer; only changed by tests
+  long dataWaitTime = DATA_WAIT_TIME;
 
   protected sage.media.format.ContainerFormat targetFormat;
   protected int currBuffNum; // for consuming data from the remuxer into the buffer
@@ -390,12 +458,13 @@ public class RemuxTranscodeEngine implements TranscodeEngine
     {
       if (XCODE_DEBUG) System.out.println("Recvd " + length + " bytes from transcoder");
       // See how much room is left in the current buffer
-      int spaceLeft = xcodeBuffer[0].length - (int)(xcodeBufferVirtualSize % xcodeBuffer[0].length);
+      int buffSize = xcodeBuffer[0].capacity();
+      int spaceLeft = buffSize - (int)(xcodeBufferVirtualSize % buffSize);
       while (length > 0)
       {
         if (length <= spaceLeft)
         {
-          System.arraycopy(buf, offset, xcodeBuffer[currBuffNum], xcodeBuffer[0].length - spaceLeft, length);
+          getBufferRange(currBuffNum, buffSize - spaceLeft, length).put(buf, offset, length);
           synchronized (xcodeSyncLock)
           {
             xcodeBufferVirtualSize += length;
@@ -405,17 +474,20 @@ public class RemuxTranscodeEngine implements TranscodeEngine
               if (XCODE_DEBUG) System.out.println("Number of transcode buffers filled=" + numFilledXcodeBuffers
                   + " virtXcodedBytes=" + xcodeBufferVirtualSize + " just filled offset=" + currBuffNum);
               currBuffNum = (currBuffNum + 1) % xcodeBuffer.length;
+              // Only whole buffers can be read
+              xcodeSyncLock.notifyAll();
             }
           }
           return;
         }
-        System.arraycopy(buf, offset, xcodeBuffer[currBuffNum], xcodeBuffer[0].length - spaceLeft, spaceLeft);
+        getBufferRange(currBuffNum, buffSize - spaceLeft, spaceLeft).put(buf, offset, spaceLeft);
         length -= spaceLeft;
         offset += spaceLeft;
         synchronized (xcodeSyncLock)
         {
           xcodeBufferVirtualSize += spaceLeft;
           numFilledXcodeBuffers++;
+          xcodeSyncLock.notifyAll();
         }
         if (XCODE_DEBUG) System.out.println("Number of transcode buffers filled=" + numFilledXcodeBuffers
             + " virtXcodedBytes=" + xcodeBufferVirtualSize + " just filled offset=" + currBuffNum);
@@ -450,7 +522,7 @@ public class RemuxTranscodeEngine implements TranscodeEngine
             catch (java.io.IOException e)
             {
               if (Sage.DBG) System.out.println("ERROR in transcoder of:" + e);
-              xcodeDone = true;
+              setTranscodeDone();
               seekTarget = null;
               continue;
             }
@@ -486,7 +558,7 @@ public class RemuxTranscodeEngine implements TranscodeEngine
           leftInFile = (int)sourceFile.availableToRead();
         if (leftInFile <= 0)
         {
-          xcodeDone = true;
+          setTranscodeDone();
           continue;
         }
         if (XCODE_DEBUG) System.out.println("Pushing data into the remuxer of size " + leftInFile);
@@ -497,7 +569,7 @@ public class RemuxTranscodeEngine implements TranscodeEngine
         catch (java.io.IOException e)
         {
           if (Sage.DBG) System.out.println("ERROR in transcoder of:" + e);
-          xcodeDone = true;
+          setTranscodeDone();
           continue;
         }
         muxy.pushData(inputBuffer, 0, leftInFile);
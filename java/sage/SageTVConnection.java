@@ -86,7 +86,9 @@ public class SageTVConnection implements Runnable, Wizard.XctSyncClient, Carny.P
   {
     if (!Sage.client)
       throw new IllegalStateException("This is a client mode call.");
-    outStream.write("LISTENER\r\n".getBytes(Sage.BYTE_CHARSET));
+    // Tell the server what we're already synced to so it can just send us what we've missed if we're reconnecting
+    outStream.write(("LISTENER " + Wizard.getInstance().getClientSyncEpoch() + " " + Wizard.getInstance().getClientSyncSeq() +
+        "\r\n").getBytes(Sage.BYTE_CHARSET));
     outStream.flush();
     linkType = CLIENT_LISTENER;
     String tempString = readLineBytes(inStream);
@@ -572,6 +574,19 @@ public class SageTVConnection implements Runnable, Wizard.XctSyncClient, Carny.P
       else if (myTokes[0].equals("LISTENER"))
       {
         linkType = CLIENT_LISTENER;
+        // Older clients don't send their sync state and can't resume syncing
+        if (myTokes.length == 3)
+        {
+          try
+          {
+            clientSyncEpoch = Long.parseLong(myTokes[1]);
+            clientSyncSeq = Long.parseLong(myTokes[2]);
+          }
+          catch (NumberFormatException e)
+          {
+            System.out.println("ERROR invalid sync state in LISTENER command:" + java.util.Arrays.asList(myTokes));
+          }
+        }
         outStream.write(OK_BYTES);
       }
       else if (myTokes[0].equals("WIZARD_SYNC"))
@@ -584,6 +599,11 @@ public class SageTVConnection implements Runnable, Wizard.XctSyncClient, Carny.P
         // Client updating the server for a DB transaction...
         recvWizardSync2(myTokes);
       }
+      else if (myTokes[0].equals("WIZARD_SYNC3"))
+      {
+        // Initial DB sync from the server that can be resumed from later
+        recvWizardSync3(myTokes);
+      }
       else if (myTokes[0].equals("PROPERTY_SYNC"))
       {
         // property information update
@@ -769,20 +789,44 @@ public class SageTVConnection implements Runnable, Wizard.XctSyncClient, Carny.P
       throw new java.io.IOException("OK response not received, got:" + tempString);
     }
 
-    outStream.write(("WIZARD_SYNC2 " + Integer.toString(Wizard.VERSION & 0xFF) + "\r\n").getBytes(Sage.BYTE_CHARSET));
-    Wizard.getInstance().sendDBThroughStream(mySock, outStream, this);
-    outStream.flush();
-    tempString = readLineBytes(inStream);
-    if (!"OK".equals(tempString))
+    Wizard wiz = Wizard.getInstance();
+    try
     {
-      throw new java.io.IOException("OK response not received, got:" + tempString);
-    }
+      long historyEpoch = wiz.getXctHistoryEpoch();
+      if (clientSyncEpoch >= 0 && historyEpoch != 0)
+      {
+        // The client gets the xct sequence # after the DB so it can resume from there if it reconnects. If it was
+        // already synced with us then it may only need the xcts it missed.
+        outStream.write(("WIZARD_SYNC3 " + Integer.toString(Wizard.VERSION & 0xFF) + " " + historyEpoch + "\r\n").getBytes(Sage.BYTE_CHARSET));
+        long syncSeq = wiz.sendXctHistoryThroughStream(mySock, outStream, this, clientSyncEpoch, clientSyncSeq);
+        if (syncSeq < 0)
+          syncSeq = wiz.sendDBThroughStream(mySock, outStream, this);
+        outStream.writeLong(syncSeq);
+      }
+      else
+      {
+        outStream.write(("WIZARD_SYNC2 " + Integer.toString(Wizard.VERSION & 0xFF) + "\r\n").getBytes(Sage.BYTE_CHARSET));
+        wiz.sendDBThroughStream(mySock, outStream, this);
+      }
+      outStream.flush();
+      tempString = readLineBytes(inStream);
+      if (!"OK".equals(tempString))
+      {
+        throw new java.io.IOException("OK response not received, got:" + tempString);
+      }
 
-    Carny.getInstance().addCarnyListener(this);
-    TimeoutHandler.registerTimeout(30000, mySock);
-    if (!Carny.getInstance().fullClientUpdate(this))
-      throw new java.io.IOException("ERROR occurred during sending Carny update to client, abort!");
-    TimeoutHandler.clearTimeout(mySock);
+      Carny.getInstance().addCarnyListener(this);
+      TimeoutHandler.registerTimeout(30000, mySock);
+      if (!Carny.getInstance().fullClientUpdate(this))
+        throw new java.io.IOException("ERROR occurred during sending Carny update to client, abort!");
+      TimeoutHandler.clearTimeout(mySock);
+    }
+    catch (java.io.IOException e)
+    {
+      // We're added as a xct listener before the DB sync is done; but nothing will ever send our queue now
+      wiz.removeXctListener(this);
+      throw e;
+    }
 
     //scheduleChanged();
     spawnListenerQueueThread();
@@ -790,15 +834,19 @@ public class SageTVConnection implements Runnable, Wizard.XctSyncClient, Carny.P
 
   private void recvWizardSync(String[] myTokes) throws java.io.IOException
   {
-    if (myTokes.length != 1)
+    if (myTokes.length != 1 && myTokes.length != 2)
     {
-      outStream.write("ERROR need 1 tokens for WIZARD_SYNC command\r\n".getBytes(Sage.BYTE_CHARSET));
-      System.out.println("ERROR need 1 tokens for WIZARD_SYNC command." +
+      outStream.write("ERROR need 1 or 2 tokens for WIZARD_SYNC command\r\n".getBytes(Sage.BYTE_CHARSET));
+      System.out.println("ERROR need 1 or 2 tokens for WIZARD_SYNC command." +
           java.util.Arrays.asList(myTokes));
       return;
     }
 
-    Wizard.getInstance().xctIn(inStream, Wizard.VERSION, TRANSLATE_DB_IDS ? dbIDMap : null);
+    // The server sends the # of xcts this stands for if it coalesced updates to the same object
+    if (Wizard.getInstance().xctIn(inStream, Wizard.VERSION, TRANSLATE_DB_IDS ? dbIDMap : null))
+      Wizard.getInstance().clientXctApplied((myTokes.length == 2) ? Integer.parseInt(myTokes[1]) : 1);
+    else
+      Wizard.getInstance().setClientSyncState(0, 0);
     outStream.write(OK_BYTES);
   }
 
@@ -813,10 +861,36 @@ public class SageTVConnection implements Runnable, Wizard.XctSyncClient, Carny.P
     }
 
     Wizard.VERSION = (byte)(Integer.parseInt(myTokes[1]) & 0xFF);
+    // This server can't tell us what xct we're synced to
+    Wizard.getInstance().setClientSyncState(0, 0);
     Wizard.getInstance().xctIn(inStream, Wizard.VERSION, TRANSLATE_DB_IDS ? dbIDMap : null);
     outStream.write(OK_BYTES);
   }
 
+  private void recvWizardSync3(String[] myTokes) throws java.io.IOException
+  {
+    if (myTokes.length != 3)
+    {
+      outStream.write("ERROR need 3 tokens for WIZARD_SYNC3 command\r\n".getBytes(Sage.BYTE_CHARSET));
+      System.out.println("ERROR need 3 tokens for WIZARD_SYNC3 command." +
+          java.util.Arrays.asList(myTokes));
+      return;
+    }
+
+    Wizard wiz = Wizard.getInstance();
+    Wizard.VERSION = (byte)(Integer.parseInt(myTokes[1]) & 0xFF);
+    // Until this is done we don't know what we're synced to
+    wiz.setClientSyncState(0, 0);
+    boolean xctsOK = wiz.xctIn(inStream, Wizard.VERSION, TRANSLATE_DB_IDS ? dbIDMap : null);
+    long syncSeq = inStream.readLong();
+    if (xctsOK && syncSeq >= 0)
+    {
+      wiz.setClientSyncState(Long.parseLong(myTokes[2]), syncSeq);
+      if (Sage.DBG) System.out.println("DB is synced with the server at xct " + syncSeq);
+    }
+    outStream.write(OK_BYTES);
+  }
+
   private void recvCarnySyncLove(String[] myTokes) throws java.io.IOException
   {
     if (myTokes.length != 2)
@@ -2877,21 +2951,30 @@ public class SageTVConnection implements Runnable, Wizard.XctSyncClient, Carny.P
 
   public void xctOut(byte[] xctData) throws java.io.IOException
   {
-    String tempString;
     if (!Sage.client)
     {
       if (listenerMsgShare != null && listenerMsgThread != Thread.currentThread())
       {
         // Put this on the async queue to be sent out
-        addListenerMsg(new ListenerMsg(WIZARD_SYNC_MSG, xctData, null, null, null));
+        addXctListenerMsg(xctData);
         return;
       }
     }
+    xctOut(xctData, 1);
+  }
+
+  private void xctOut(byte[] xctData, int xctCount) throws java.io.IOException
+  {
+    String tempString;
     synchronized (this)
     {
       TimeoutHandler.registerTimeout(30000, mySock);
-      // We don't need to use SYNC2 here because the compactDB mode and DB version would have already been set in the initial connection
-      outStream.write("WIZARD_SYNC\r\n".getBytes(Sage.BYTE_CHARSET));
+      // We don't need to use SYNC2 here because the compactDB mode and DB version would have already been set in the initial connection.
+      // Clients that track their sync state need to know how many xcts this is if it's coalesced; older ones don't care.
+      if (xctCount == 1 || clientSyncEpoch < 0)
+        outStream.write("WIZARD_SYNC\r\n".getBytes(Sage.BYTE_CHARSET));
+      else
+        outStream.write(("WIZARD_SYNC " + xctCount + "\r\n").getBytes(Sage.BYTE_CHARSET));
       outStream.writeInt(xctData.length + 4);
       if (xctData.length > 0)
         outStream.write(xctData);
@@ -3471,9 +3554,37 @@ public class SageTVConnection implements Runnable, Wizard.XctSyncClient, Carny.P
     }
   }
 
+  // This is called by the threads that modify the DB so it can never block on the client. If the client falls
+  // too far behind then we drop the connection; it'll resync when it reconnects.
+  private void addXctListenerMsg(byte[] xctData)
+  {
+    ParallelListenerSharedData share = listenerMsgShare;
+    synchronized (share.queue)
+    {
+      if (share.overflowed)
+      {
+        share.droppedXcts++;
+        return;
+      }
+      if (share.offerXct(xctData))
+        return;
+      if (Sage.DBG) System.out.println("Client " + clientName + " is too far behind on DB xcts; disconnecting it so it resyncs. dropped=" +
+          share.droppedXcts + " coalesced=" + share.coalescedXcts + " sent=" + share.sentXcts);
+    }
+    Pooler.execute(new Runnable()
+    {
+      public void run()
+      {
+        cleanup();
+        NetworkClient.communicationFailure(SageTVConnection.this);
+      }
+    }, "XctQueueOverflow");
+  }
+
   void constructListenerQueue()
   {
     listenerMsgShare = new ParallelListenerSharedData();
+    listenerMsgShare.maxPendingXcts = Wizard.getInstance().getClientXctQueueSize();
     // Once listenerMsgShare is non-null than we'll start getting the listener messages so we
     // should set the quanta state at that time.
     listenerMsgShare.quanta = SageTV.getGlobalQuanta();
@@ -3507,7 +3618,9 @@ public class SageTVConnection implements Runnable, Wizard.XctSyncClient, Carny.P
                 catch (Exception e){}
                 continue;
               }
-              currMsg = (ListenerMsg) listenerMsgShare.queue.remove(0);
+              currMsg = listenerMsgShare.pollMsg();
+              if (currMsg == null)
+                continue;
             }
             didUpdate = true;
             /*						if (Math.random() < 0.2)
@@ -3519,7 +3632,8 @@ public class SageTVConnection implements Runnable, Wizard.XctSyncClient, Carny.P
             switch (currMsg.type)
             {
               case WIZARD_SYNC_MSG:
-                xctOut(currMsg.data);
+                xctOut(currMsg.data, currMsg.xctCount);
+                listenerMsgShare.xctSent(currMsg);
                 break;
               case PROPERTY_SYNC_MSG:
                 updateProperties(currMsg.props);
@@ -3550,7 +3664,8 @@ public class SageTVConnection implements Runnable, Wizard.XctSyncClient, Carny.P
         }
         finally
         {
-          if (Sage.DBG) System.out.println("Listener parallelizer  thread is terminating for " + clientName);
+          if (Sage.DBG) System.out.println("Listener parallelizer  thread is terminating for " + clientName + " coalescedXcts=" +
+              listenerMsgShare.coalescedXcts + " droppedXcts=" + listenerMsgShare.droppedXcts + " sentXcts=" + listenerMsgShare.sentXcts);
         }
 
       }
@@ -3585,7 +3700,48 @@ public class SageTVConnection implements Runnable, Wizard.XctSyncClient, Carny.P
 
   public int getPendingXctCount()
   {
-    return (listenerMsgShare == null || listenerMsgShare.queue == null) ? 0 : listenerMsgShare.queue.size();
+    ParallelListenerSharedData share = listenerMsgShare;
+    if (share == null)
+      return 0;
+    synchronized (share.queue)
+    {
+      return share.pendingXcts;
+    }
+  }
+
+  public long getXctLag()
+  {
+    ParallelListenerSharedData share = listenerMsgShare;
+    if (share == null)
+      return 0;
+    synchronized (share.queue)
+    {
+      // The oldest message is always first; a coalesced one takes the time of the one it replaced
+      ListenerMsg oldest = share.queue.peek();
+      return (oldest == null) ? 0 : Math.max(0, Sage.eventTime() - oldest.queueTime);
+    }
+  }
+
+  public long getDroppedXctCount()
+  {
+    ParallelListenerSharedData share = listenerMsgShare;
+    if (share == null)
+      return 0;
+    synchronized (share.queue)
+    {
+      return share.droppedXcts;
+    }
+  }
+
+  public long getCoalescedXctCount()
+  {
+    ParallelListenerSharedData share = listenerMsgShare;
+    if (share == null)
+      return 0;
+    synchronized (share.queue)
+    {
+      return share.coalescedXcts;
+    }
   }
 
   private final java.util.Vector sendQueue = new java.util.Vector();
@@ -3602,6 +3758,9 @@ public class SageTVConnection implements Runnable, Wizard.XctSyncClient, Carny.P
   private int linkType;
   private String clientName;
   private String clientKey;
+  // Server side; the DB sync state the client sent when it connected. -1 if it's a client that can't resume syncs.
+  private long clientSyncEpoch = -1;
+  private long clientSyncSeq;
   private boolean alive = false;
   // To enable ID translation between the client & server, create this object
   private static java.util.Map dbIDMap = new java.util.HashMap()
@@ -3661,7 +3820,7 @@ public class SageTVConnection implements Runnable, Wizard.XctSyncClient, Carny.P
   private static final String[] LISTENER_MSG_NAMES = new String[] { "", "WIZARD_SYNC", "PROPERTY_SYNC", "LOVE_SYNC",
     "MUST_SEE_SYNC", "CAUSE_MAP_SYNC", "WP_MAP_SYNC"
   };
-  private class ListenerMsg
+  static class ListenerMsg
   {
     public ListenerMsg(int inType, byte[] inData, java.util.Set inSet, java.util.Map inMap, String[] inProps)
     {
@@ -3671,6 +3830,7 @@ public class SageTVConnection implements Runnable, Wizard.XctSyncClient, Carny.P
       map = inMap;
       props = inProps;
       safePoint = SageTV.getGlobalQuanta();
+      queueTime = Sage.eventTime();
     }
     public String toString()
     {
@@ -3682,11 +3842,99 @@ public class SageTVConnection implements Runnable, Wizard.XctSyncClient, Carny.P
     public java.util.Map map;
     public String[] props;
     public long safePoint;
+    public long queueTime;
+    // For WIZARD_SYNC_MSG; the # of xcts this is after coalescing updates and the key used for that
+    public int xctCount = 1;
+    public Long coalesceKey;
+    public boolean superseded;
   }
-  class ParallelListenerSharedData
+  static class ParallelListenerSharedData
   {
-    public java.util.Vector queue = new java.util.Vector();
+    public java.util.ArrayDeque<ListenerMsg> queue = new java.util.ArrayDeque<ListenerMsg>();
     public volatile long quanta;
+    // The rest of these are guarded by the queue lock
+    // Updates to each object that are in the queue, so a newer one can replace it
+    public java.util.Map<Long, ListenerMsg> pendingUpdates = new java.util.HashMap<Long, ListenerMsg>();
+    // Xct messages waiting in the queue; superseded ones don't count
+    public int pendingXcts;
+    public int maxPendingXcts = Integer.MAX_VALUE;
+    public boolean overflowed;
+    public long droppedXcts;
+    public long coalescedXcts;
+    // Xcts the client has acknowledged; this goes up by the # a message stands for once it's been sent
+    public long sentXcts;
+
+    /**
+     * Queues an xct for the client. If there's already an update to the same object waiting to go out then this
+     * replaces it, and goes where the newer one is in the queue so it still comes after any xcts it depends on.
+     * Updates never move past an add or remove though, so the xcts the client has acknowledged are always
+     * everything up to some point in the log; other than updates that have a newer one still coming.
+     * Returns false if the client has fallen too far behind, everything pending is dropped then. This must be
+     * called with the queue lock held.
+     */
+    boolean offerXct(byte[] xctData)
+    {
+      ListenerMsg newMsg = new ListenerMsg(WIZARD_SYNC_MSG, xctData, null, null, null);
+      if (xctData.length >= 6 && xctData[0] == Wizard.UPDATE)
+      {
+        Long key = new Long(((long) xctData[1] << 32) | (((xctData[2] & 0xFF) << 24) | ((xctData[3] & 0xFF) << 16) |
+            ((xctData[4] & 0xFF) << 8) | (xctData[5] & 0xFF)) & 0xFFFFFFFFL);
+        newMsg.coalesceKey = key;
+        ListenerMsg priorMsg = pendingUpdates.put(key, newMsg);
+        if (priorMsg != null)
+        {
+          // Its xcts are only acknowledged when this one is sent
+          priorMsg.superseded = true;
+          newMsg.xctCount += priorMsg.xctCount;
+          newMsg.queueTime = priorMsg.queueTime;
+          pendingXcts--;
+          coalescedXcts++;
+        }
+      }
+      else
+        pendingUpdates.clear();
+      if (pendingXcts >= maxPendingXcts)
+      {
+        overflowed = true;
+        droppedXcts += pendingXcts + 1;
+        pendingXcts = 0;
+        pendingUpdates.clear();
+        queue.clear();
+        queue.notifyAll();
+        return false;
+      }
+      queue.add(newMsg);
+      pendingXcts++;
+      queue.notifyAll();
+      return true;
+    }
+
+    /**
+     * Takes the next message to send to the client off the queue, or returns null if it was an update that's been
+     * replaced by a newer one. This must be called with the queue lock held.
+     */
+    ListenerMsg pollMsg()
+    {
+      ListenerMsg rv = queue.poll();
+      if (rv != null && rv.type == WIZARD_SYNC_MSG)
+      {
+        if (rv.superseded)
+          return null;
+        pendingXcts--;
+        if (rv.coalesceKey != null && pendingUpdates.get(rv.coalesceKey) == rv)
+          pendingUpdates.remove(rv.coalesceKey);
+      }
+      return rv;
+    }
+
+    // Called after an xct message has been sent to the client and it's acknowledged it
+    void xctSent(ListenerMsg msg)
+    {
+      synchronized (queue)
+      {
+        sentXcts += msg.xctCount;
+      }
+    }
   }
 
   public class RemoteUI implements UIClient
@@ -0,0 +1,708 @@
+/*
+ * Copyright 2015 The SageTV Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On disk store of scaled images that have already been compressed for sending to clients, so an image that's shown
+ * at the same size again (even after a restart) doesn't need to be decoded, scaled and compressed again. Entries are
+ * keyed by a hash of the unique resource ID of the image (which has the source, its modification time and the size
+ * it's scaled to in it) along with the rotation and the format it was compressed with.
+ * <p>
+ * The images are appended to a pack file and a separate index file has the location of each one in least recently
+ * used order. The index is rewritten every so often and the records that were added to the pack after it was written
+ * are read back in when it's loaded, so nothing ever has to list a directory. When the total size is over the limit
+ * the least recently used ones are dropped; the pack is rewritten without them once they're most of it.
+ * <p>
+ * Loading the store, writing images to it, saving the index and rewriting the pack are all done on a background thread,
+ * so the threads that render images only wait for a lookup in the entries and the read of the image itself. Images
+ * are kept in memory until they're written, and everything is a miss until the store is loaded.
+ */
+final class ScaledImageStore
+{
+  private static final int PACK_MAGIC = 0x53495031; // SIP1
+  private static final int INDEX_MAGIC = 0x53494931; // SII1
+  private static final int KEY_LENGTH = 20;
+  private static final int MAX_DATA_LENGTH = 16*1024*1024;
+  // How many images are added before the index is written out again
+  private static final int INDEX_SAVE_INTERVAL = 32;
+  // How much image data can be waiting to be written before more of it is dropped
+  private static final int MAX_UNWRITTEN_SIZE = 8*1024*1024;
+
+  private static class ScaledImageStoreHolder
+  {
+    public static final ScaledImageStore instance = new ScaledImageStore(new File(Sage.getPath("cache"), "scaledimages"),
+        Sage.getLong("ui/scaled_image_store_size", 128*1024*1024));
+  }
+
+  static ScaledImageStore getInstance()
+  {
+    return ScaledImageStoreHolder.instance;
+  }
+
+  /**
+   * Returns the key for a scaled version of an image compressed in the specified format, or null if the image can't
+   * be identified well enough to be stored.
+   */
+  static Key getKey(MetaImage image, int imageIndex, String format)
+  {
+    Object src = image.getSource();
+    if (src instanceof MetaFont || src instanceof java.lang.ref.WeakReference || src instanceof java.util.Vector)
+      return null;
+    String rezID = image.getUniqueResourceID(imageIndex);
+    if (rezID == null || rezID.length() == 0)
+      return null;
+    return new Key(rezID + "|" + image.getRotation() + "|" + format);
+  }
+
+  ScaledImageStore(File baseFile, long maxSize)
+  {
+    packFile = new File(baseFile.getPath() + ".pack");
+    indexFile = new File(baseFile.getPath() + ".idx");
+    this.maxSize = maxSize;
+    entries = new LinkedHashMap<Key, StoreEntry>(16, 0.75f, true);
+    unwritten = new LinkedHashMap<Key, StoreEntry>();
+  }
+
+  /**
+   * Returns the stored image data, or null if it's not in the store. Everything that hasn't been added since it was
+   * opened is a miss until the store is loaded.
+   */
+  byte[] get(Key key)
+  {
+    RandomAccessFile currPack;
+    long dataOffset;
+    int dataLength;
+    synchronized (this)
+    {
+      StoreEntry entry = entries.get(key);
+      if (entry != null && entry.data != null)
+      {
+        hits++;
+        return entry.data;
+      }
+      if (entry == null || pack == null)
+      {
+        misses++;
+        startWorker();
+        return null;
+      }
+      currPack = pack;
+      dataOffset = entry.dataOffset;
+      dataLength = entry.dataLength;
+      hits++;
+    }
+    try
+    {
+      byte[] data = new byte[dataLength];
+      // Only the reads and appends use the file position
+      synchronized (currPack)
+      {
+        currPack.seek(dataOffset);
+        currPack.readFully(data);
+      }
+      return data;
+    }
+    catch (IOException e)
+    {
+      synchronized (this)
+      {
+        // It's still good if the pack was replaced with a compacted one while it was being read
+        if (currPack == pack)
+        {
+          if (Sage.DBG) System.out.println("ERROR reading from scaled image store " + packFile + " of:" + e);
+          removeEntry(key);
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Adds an image to the store. It's kept in memory until the background thread writes it out.
+   */
+  synchronized void put(Key key, byte[] data)
+  {
+    if (data == null || data.length == 0 || data.length > MAX_DATA_LENGTH || data.length > maxSize / 4 || failed ||
+        entries.containsKey(key))
+      return;
+    // Don't let them pile up in memory if the disk can't keep up
+    if (unwrittenSize > 0 && unwrittenSize + data.length > MAX_UNWRITTEN_SIZE)
+      return;
+    StoreEntry entry = new StoreEntry(data);
+    addEntry(key, entry);
+    unwritten.put(key, entry);
+    unwrittenSize += data.length;
+    trim();
+    startWorker();
+  }
+
+  synchronized int size()
+  {
+    return entries.size();
+  }
+
+  synchronized long getTotalSize()
+  {
+    return totalSize;
+  }
+
+  /**
+   * Loads the store if it isn't yet and waits until everything that was added to it has been written out.
+   */
+  synchronized void waitForBackgroundWork()
+  {
+    startWorker();
+    waitForWorker();
+  }
+
+  synchronized void close()
+  {
+    waitForWorker();
+    if (pack != null && numUnindexed > 0)
+    {
+      try
+      {
+        saveIndex();
+      }
+      catch (IOException e)
+      {
+        if (Sage.DBG) System.out.println("ERROR writing scaled image store index " + indexFile + " of:" + e);
+      }
+    }
+    closePack();
+  }
+
+  public synchronized String toString()
+  {
+    return "ScaledImageStore[" + packFile + " entries=" + entries.size() + " size=" + totalSize + " hits=" + hits +
+        " misses=" + misses + ']';
+  }
+
+  // Starts the thread that loads the store and writes out the images added to it, unless it's running or there's
+  // nothing for it to do
+  private void startWorker()
+  {
+    if (workerRunning || failed || maxSize <= 0 || (pack != null && unwritten.isEmpty()))
+      return;
+    workerRunning = true;
+    Pooler.execute(new Worker(), "ScaledImageStore", Thread.MIN_PRIORITY);
+  }
+
+  private void waitForWorker()
+  {
+    while (workerRunning)
+    {
+      try
+      {
+        wait();
+      }
+      catch (InterruptedException e){}
+    }
+  }
+
+  // Does all the file I/O other than reading images; the lock is only held to get at the entries and to swap in a
+  // compacted pack
+  private class Worker implements Runnable
+  {
+    public void run()
+    {
+      try
+      {
+        if (!open())
+          return;
+        while (true)
+        {
+          Key key;
+          StoreEntry entry;
+          synchronized (ScaledImageStore.this)
+          {
+            if (unwritten.isEmpty())
+              return;
+            Map.Entry<Key, StoreEntry> ent = unwritten.entrySet().iterator().next();
+            key = ent.getKey();
+            entry = ent.getValue();
+          }
+          append(key, entry);
+        }
+      }
+      catch (Exception e)
+      {
+        if (Sage.DBG) System.out.println("ERROR in scaled image store " + packFile + " of:" + e);
+        synchronized (ScaledImageStore.this)
+        {
+          closePack();
+          failed = true;
+          entries.clear();
+          unwritten.clear();
+          totalSize = unwrittenSize = 0;
+        }
+      }
+      finally
+      {
+        synchronized (ScaledImageStore.this)
+        {
+          workerRunning = false;
+          ScaledImageStore.this.notifyAll();
+          // In case more was added after it found there was nothing left
+          startWorker();
+        }
+      }
+    }
+  }
+
+  // Loads the store the first time it's used
+  private boolean open() throws IOException
+  {
+    synchronized (this)
+    {
+      if (pack != null)
+        return true;
+      if (failed || maxSize <= 0)
+        return false;
+    }
+    Map<Key, StoreEntry> loaded = new LinkedHashMap<Key, StoreEntry>(16, 0.75f, true);
+    boolean rewrite = load(loaded);
+    RandomAccessFile newPack = new RandomAccessFile(packFile, "rw");
+    synchronized (this)
+    {
+      Map<Key, StoreEntry> added = new LinkedHashMap<Key, StoreEntry>(entries);
+      entries.clear();
+      totalSize = 0;
+      for (Map.Entry<Key, StoreEntry> ent : loaded.entrySet())
+        addEntry(ent.getKey(), ent.getValue());
+      // Then the ones that were added while it was loading, unless they were already stored
+      for (Map.Entry<Key, StoreEntry> ent : added.entrySet())
+      {
+        if (ent.getValue().data == null)
+          continue;
+        if (entries.containsKey(ent.getKey()))
+          dropUnwritten(ent.getKey(), ent.getValue());
+        else
+          addEntry(ent.getKey(), ent.getValue());
+      }
+      pack = newPack;
+      trim();
+    }
+    if (rewrite)
+      compact();
+    if (Sage.DBG) System.out.println("Loaded " + this);
+    return true;
+  }
+
+  // Writes an image to the end of the pack; the entry is updated in place so it stays where it is in the LRU order
+  private void append(Key key, StoreEntry entry) throws IOException
+  {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(entry.dataLength + KEY_LENGTH + 4);
+    DataOutputStream out = new DataOutputStream(bos);
+    out.writeInt(entry.dataLength);
+    out.write(key.hash);
+    out.write(entry.data);
+    long offset;
+    synchronized (pack)
+    {
+      offset = pack.length();
+      pack.seek(offset);
+      pack.write(bos.toByteArray());
+    }
+    long currTotalSize;
+    synchronized (this)
+    {
+      entry.dataOffset = offset + 4 + KEY_LENGTH;
+      entry.data = null;
+      dropUnwritten(key, entry);
+      numUnindexed++;
+      currTotalSize = totalSize;
+    }
+    // Rewrite it once it's mostly images that were dropped
+    if (pack.length() > 2 * Math.max(maxSize / 2, currTotalSize) && pack.length() > 16*1024*1024)
+      compact();
+    else if (numUnindexed >= INDEX_SAVE_INTERVAL)
+      saveIndex();
+  }
+
+  // Reads the index and then any records after the part of the pack it covers; returns true if the pack should be
+  // rewritten
+  private boolean load(Map<Key, StoreEntry> loaded) throws IOException
+  {
+    if (!packFile.isFile() || packFile.length() < 4)
+      return true;
+    long packLength = packFile.length();
+    long indexedLength = loadIndex(loaded, packLength);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(packFile), 65536));
+    try
+    {
+      if (in.readInt() != PACK_MAGIC)
+      {
+        loaded.clear();
+        return true;
+      }
+      long pos = 4;
+      while (pos < indexedLength)
+      {
+        long numSkipped = in.skip(indexedLength - pos);
+        if (numSkipped <= 0)
+          return true;
+        pos += numSkipped;
+      }
+      while (pos < packLength)
+      {
+        int dataLength = in.readInt();
+        if (dataLength <= 0 || dataLength > MAX_DATA_LENGTH)
+          return true;
+        byte[] hash = new byte[KEY_LENGTH];
+        in.readFully(hash);
+        long dataOffset = pos + 4 + KEY_LENGTH;
+        // Skipping can go past the end of the file, so check for a cut off record first
+        if (dataOffset + dataLength > packLength || in.skipBytes(dataLength) != dataLength)
+          return true;
+        pos = dataOffset + dataLength;
+        loaded.put(new Key(hash), new StoreEntry(dataOffset, dataLength));
+        numUnindexed++;
+      }
+    }
+    catch (EOFException e)
+    {
+      // The last record was cut off
+      return true;
+    }
+    finally
+    {
+      in.close();
+    }
+    return false;
+  }
+
+  // Returns how much of the pack the index covers, or 0 if it can't be used
+  private long loadIndex(Map<Key, StoreEntry> loaded, long packLength)
+  {
+    if (!indexFile.isFile())
+      return 0;
+    DataInputStream in = null;
+    try
+    {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 65536));
+      if (in.readInt() != INDEX_MAGIC)
+        return 0;
+      long indexedLength = in.readLong();
+      if (indexedLength < 4 || indexedLength > packLength)
+        return 0;
+      int numEntries = in.readInt();
+      for (int i = 0; i < numEntries; i++)
+      {
+        byte[] hash = new byte[KEY_LENGTH];
+        in.readFully(hash);
+        long dataOffset = in.readLong();
+        int dataLength = in.readInt();
+        if (dataLength <= 0 || dataLength > MAX_DATA_LENGTH || dataOffset < 4 + KEY_LENGTH ||
+            dataOffset + dataLength > indexedLength)
+          throw new IOException("Bad index entry");
+        loaded.put(new Key(hash), new StoreEntry(dataOffset, dataLength));
+      }
+      return indexedLength;
+    }
+    catch (IOException e)
+    {
+      if (Sage.DBG) System.out.println("ERROR reading scaled image store index " + indexFile + " of:" + e);
+      loaded.clear();
+      return 0;
+    }
+    finally
+    {
+      if (in != null)
+      {
+        try
+        {
+          in.close();
+        }
+        catch (IOException e){}
+      }
+    }
+  }
+
+  // Writes the location of each entry in least recently used order
+  private void saveIndex() throws IOException
+  {
+    Map<Key, StoreEntry> currEntries;
+    long indexedLength;
+    synchronized (this)
+    {
+      currEntries = new LinkedHashMap<Key, StoreEntry>(entries);
+      indexedLength = pack.length();
+    }
+    // Only this thread writes them out, so the ones that aren't written can't change while this is done
+    int numWritten = 0;
+    for (StoreEntry entry : currEntries.values())
+    {
+      if (entry.data == null)
+        numWritten++;
+    }
+    File tmpFile = new File(indexFile.getPath() + ".tmp");
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 65536));
+    try
+    {
+      out.writeInt(INDEX_MAGIC);
+      out.writeLong(indexedLength);
+      out.writeInt(numWritten);
+      for (Map.Entry<Key, StoreEntry> ent : currEntries.entrySet())
+      {
+        if (ent.getValue().data != null)
+          continue;
+        out.write(ent.getKey().hash);
+        out.writeLong(ent.getValue().dataOffset);
+        out.writeInt(ent.getValue().dataLength);
+      }
+    }
+    finally
+    {
+      out.close();
+    }
+    if (!indexFile.delete() && indexFile.exists())
+      throw new IOException("Can't replace " + indexFile);
+    if (!tmpFile.renameTo(indexFile))
+      throw new IOException("Can't rename " + tmpFile + " to " + indexFile);
+    numUnindexed = 0;
+  }
+
+  // Rewrites the pack with only the current entries; they're copied from a separate handle on the pack so reads can
+  // go on while that's done
+  private void compact() throws IOException
+  {
+    File tmpFile = new File(packFile.getPath() + ".tmp");
+    Map<Key, StoreEntry> currEntries;
+    synchronized (this)
+    {
+      currEntries = new LinkedHashMap<Key, StoreEntry>(entries);
+    }
+    Map<StoreEntry, Long> newOffsets = new HashMap<StoreEntry, Long>();
+    RandomAccessFile in = new RandomAccessFile(packFile, "r");
+    try
+    {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 65536));
+      try
+      {
+        out.writeInt(PACK_MAGIC);
+        long pos = 4;
+        for (Map.Entry<Key, StoreEntry> ent : currEntries.entrySet())
+        {
+          StoreEntry entry = ent.getValue();
+          // The ones that aren't written yet go on the end of the new one
+          if (entry.data != null)
+            continue;
+          byte[] data = new byte[entry.dataLength];
+          try
+          {
+            in.seek(entry.dataOffset);
+            in.readFully(data);
+          }
+          catch (IOException e)
+          {
+            continue;
+          }
+          out.writeInt(data.length);
+          out.write(ent.getKey().hash);
+          out.write(data);
+          long dataOffset = pos + 4 + KEY_LENGTH;
+          newOffsets.put(entry, dataOffset);
+          pos = dataOffset + data.length;
+        }
+      }
+      finally
+      {
+        out.close();
+      }
+    }
+    finally
+    {
+      in.close();
+    }
+    synchronized (this)
+    {
+      closePack();
+      if (!packFile.delete() && packFile.exists())
+        throw new IOException("Can't replace " + packFile);
+      if (!tmpFile.renameTo(packFile))
+        throw new IOException("Can't rename " + tmpFile + " to " + packFile);
+      pack = new RandomAccessFile(packFile, "rw");
+      // They're updated in place to keep the order they've been used in
+      java.util.Iterator<Map.Entry<Key, StoreEntry>> walker = entries.entrySet().iterator();
+      while (walker.hasNext())
+      {
+        StoreEntry entry = walker.next().getValue();
+        if (entry.data != null)
+          continue;
+        Long newOffset = newOffsets.get(entry);
+        if (newOffset == null)
+        {
+          totalSize -= entry.dataLength;
+          walker.remove();
+        }
+        else
+          entry.dataOffset = newOffset;
+      }
+    }
+    saveIndex();
+  }
+
+  // Drops the least recently used entries until it's under the limit
+  private void trim()
+  {
+    java.util.Iterator<Map.Entry<Key, StoreEntry>> walker = entries.entrySet().iterator();
+    while (totalSize > maxSize && walker.hasNext())
+    {
+      Map.Entry<Key, StoreEntry> ent = walker.next();
+      totalSize -= ent.getValue().dataLength;
+      walker.remove();
+      dropUnwritten(ent.getKey(), ent.getValue());
+    }
+  }
+
+  private void addEntry(Key key, StoreEntry entry)
+  {
+    StoreEntry oldEntry = entries.put(key, entry);
+    if (oldEntry != null)
+      totalSize -= oldEntry.dataLength;
+    totalSize += entry.dataLength;
+  }
+
+  private void removeEntry(Key key)
+  {
+    StoreEntry oldEntry = entries.remove(key);
+    if (oldEntry != null)
+    {
+      totalSize -= oldEntry.dataLength;
+      dropUnwritten(key, oldEntry);
+    }
+  }
+
+  // Takes it off the list to be written if it's still there
+  private void dropUnwritten(Key key, StoreEntry entry)
+  {
+    if (unwritten.get(key) == entry)
+    {
+      unwritten.remove(key);
+      unwrittenSize -= entry.dataLength;
+    }
+  }
+
+  // Waits for any read that's using the pack before it's closed
+  private void closePack()
+  {
+    if (pack != null)
+    {
+      synchronized (pack)
+      {
+        try
+        {
+          pack.close();
+        }
+        catch (IOException e){}
+      }
+      pack = null;
+    }
+  }
+
+  static final class Key
+  {
+    Key(String id)
+    {
+      try
+      {
+        hash = MessageDigest.getInstance("SHA-1").digest(id.getBytes(Sage.I18N_CHARSET));
+      }
+      catch (NoSuchAlgorithmException | java.io.UnsupportedEncodingException e)
+      {
+        throw new RuntimeException(e);
+      }
+      hashCode = Arrays.hashCode(hash);
+    }
+
+    private Key(byte[] hash)
+    {
+      this.hash = hash;
+      hashCode = Arrays.hashCode(hash);
+    }
+
+    public boolean equals(Object o)
+    {
+      return (o instanceof Key) && Arrays.equals(hash, ((Key) o).hash);
+    }
+
+    public int hashCode()
+    {
+      return hashCode;
+    }
+
+    final byte[] hash;
+    private final int hashCode;
+  }
+
+  private static final class StoreEntry
+  {
+    StoreEntry(long dataOffset, int dataLength)
+    {
+      this.dataOffset = dataOffset;
+      this.dataLength = dataLength;
+    }
+
+    StoreEntry(byte[] data)
+    {
+      this.data = data;
+      dataLength = data.length;
+    }
+
+    // These are only changed by the background thread while holding the store's lock; the data is there until the
+    // image is written to the pack
+    long dataOffset;
+    byte[] data;
+    final int dataLength;
+  }
+
+  private final File packFile;
+  private final File indexFile;
+  private final long maxSize;
+  private final LinkedHashMap<Key, StoreEntry> entries;
+  // The entries waiting to be written, in the order they were added
+  private final LinkedHashMap<Key, StoreEntry> unwritten;
+  private long unwrittenSize;
+  private boolean workerRunning;
+  // Reads and appends lock it for the file position; it's only replaced while holding the store's lock
+  private RandomAccessFile pack;
+  private boolean failed;
+  private long totalSize;
+  private int numUnindexed;
+  private long hits;
+  private long misses;
+}
@@ -25,6 +25,7 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -32,6 +33,10 @@ import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public class Scheduler implements SchedulerInterface
 {
@@ -70,6 +75,169 @@ public class Scheduler implements SchedulerInterface
     prepped = false;
   }
 
+  // Scheduler for what-if simulations on these encoders; it doesn't make any changes to the DB
+  private Scheduler(Map<String, Set<Integer>> simEncoders)
+  {
+    this();
+    simulation = true;
+    for (Map.Entry<String, Set<Integer>> ent : simEncoders.entrySet())
+    {
+      EncoderSchedule es = new EncoderSchedule(new StubCaptureDevice(ent.getKey()));
+      es.stationSet.addAll(ent.getValue());
+      encoderScheduleMap.put(es.capDev, es);
+    }
+  }
+
+  /**
+   * Runs the scheduler over the current DB against a set of simulated encoders the specified number of times. This
+   * is done on a separate Scheduler so nothing is changed in the DB or in the real schedule.
+   */
+  static List<SchedulerSimulation.Result> simulate(String name, Map<String, Set<Integer>> encoderStations, int runs)
+  {
+    List<SchedulerSimulation.Result> rv = new ArrayList<SchedulerSimulation.Result>();
+    Scheduler sim = new Scheduler(encoderStations);
+    try
+    {
+      for (int run = 1; run <= runs; run++)
+      {
+        long startTime = Sage.eventTime();
+        sim.updateSchedule(Sage.time());
+        long schedTime = Sage.eventTime() - startTime;
+        int numScheduled = 0;
+        for (EncoderSchedule es : sim.encoderScheduleMap.values())
+          numScheduled += es.schedule.size();
+
+        // Also check how long it takes to find a permutation that fits all of the MRs on these encoders
+        Vector<Airing> mrAirs = new Vector<Airing>();
+        ManualRecord[] mrs = sim.wiz.getManualRecordsSortedByTime();
+        for (int i = 0; i < mrs.length; i++)
+        {
+          if (mrs[i].getEndTime() > Sage.time() && sim.wiz.isManualRecordOK(mrs[i]))
+            mrAirs.add(mrs[i].getSchedulingAiring());
+        }
+        startTime = Sage.eventTime();
+        boolean mrsOK = sim.testMultiTunerSchedulingPermutation(mrAirs);
+        long mrTime = Sage.eventTime() - startTime;
+
+        rv.add(new SchedulerSimulation.Result(name, run, encoderStations.size(), schedTime, sim.numConflictWebs,
+            sim.numCachedConflictWebs, sim.conflictPermsChecked, sim.pendingConflicts.size(),
+            sim.pendingUnresolvedConflicts.size(), numScheduled, mrAirs.size(), mrsOK, mrTime,
+            sim.testPermsChecked));
+      }
+    }
+    finally
+    {
+      if (sim.conflictPool != null)
+        sim.conflictPool.shutdown();
+    }
+    return rv;
+  }
+
+  /*
+   * Searches the conflict webs for each list of must see options against a schedule on simulated encoders without
+   * changing it; this is for checking that the parallel and cached searches find the same results as searching the
+   * options one at a time. mutableAirs maps each scheduled airing to all of the airings of its show; the encoder
+   * names for those and the MRs in immutableAirs are in scheduledEncoders. The scheduling times are the airing
+   * times. Each pass searches with the specified number of threads and can reuse the webs from the pass before it.
+   * Returns the chosen option and the encoder for each airing in its permutation for every search in each pass; the
+   * number of permutations checked in each pass goes in permsChecked.
+   */
+  static List<List<String>> searchConflictWebs(Map<String, Set<Integer>> encoderStations,
+      Map<Airing, Vector<Airing>> mutableAirs, List<Airing> immutableAirs, Map<Airing, String> scheduledEncoders,
+      List<Vector<Airing>> optionLists, int[] passThreads, long[] permsChecked)
+  {
+    Scheduler sim = new Scheduler(encoderStations);
+    Map<String, CaptureDevice> encNames = new HashMap<String, CaptureDevice>();
+    for (CaptureDevice capDev : sim.encoderScheduleMap.keySet())
+      encNames.put(capDev.getName(), capDev);
+    EncoderSchedule[] sortedEncs = new EncoderSchedule[encoderStations.size()];
+    int numEncs = 0;
+    for (String name : encoderStations.keySet())
+      sortedEncs[numEncs++] = sim.encoderScheduleMap.get(encNames.get(name));
+    Map<Set<Integer>, Vector<CaptureDevice>> stationSetVecMap = new HashMap<Set<Integer>, Vector<CaptureDevice>>();
+    Vector<CaptureDevice> optNameVec = new Vector<CaptureDevice>();
+    Map<CaptureDevice, CaptureDevice> nameTransMap = new HashMap<CaptureDevice, CaptureDevice>();
+    for (int a = 0; a < sortedEncs.length; a++)
+    {
+      Vector<CaptureDevice> tunables = stationSetVecMap.get(sortedEncs[a].stationSet);
+      if (tunables == null)
+      {
+        stationSetVecMap.put(sortedEncs[a].stationSet, tunables = new Vector<CaptureDevice>());
+        optNameVec.add(sortedEncs[a].capDev);
+        nameTransMap.put(sortedEncs[a].capDev, sortedEncs[a].capDev);
+      }
+      else
+        nameTransMap.put(sortedEncs[a].capDev, tunables.firstElement());
+      tunables.add(sortedEncs[a].capDev);
+    }
+    CaptureDevice[] optimumMultiNames = optNameVec.toArray(new CaptureDevice[0]);
+
+    Vector<EncAir> mutableSchedule = new Vector<EncAir>();
+    Map<DBObject, Vector<Airing>> showSetMap = new HashMap<DBObject, Vector<Airing>>();
+    Set<Airing> allAirs = new HashSet<Airing>();
+    for (Map.Entry<Airing, Vector<Airing>> ent : mutableAirs.entrySet())
+    {
+      mutableSchedule.add(new EncAir(ent.getKey(), encNames.get(scheduledEncoders.get(ent.getKey())), false));
+      showSetMap.put(ent.getKey(), ent.getValue());
+      allAirs.addAll(ent.getValue());
+    }
+    Vector<EncAir> immutableSchedule = new Vector<EncAir>();
+    for (Airing air : immutableAirs)
+      immutableSchedule.add(new EncAir(air, encNames.get(scheduledEncoders.get(air)), true));
+    allAirs.addAll(immutableAirs);
+    for (Vector<Airing> options : optionLists)
+      allAirs.addAll(options);
+
+    List<List<String>> rv = new ArrayList<List<String>>();
+    try
+    {
+      for (int pass = 0; pass < passThreads.length; pass++)
+      {
+        sim.setConflictThreads(passThreads[pass]);
+        sim.conflictPermsChecked = 0;
+        sim.cachedSchedTimes.clear();
+        for (Airing air : allAirs)
+          sim.cachedSchedTimes.put(air, new long[] { air.time, air.time + air.duration });
+        ConflictWebSearcher searcher = sim.new ConflictWebSearcher(new Vector<EncAir>(), immutableSchedule,
+            mutableSchedule, showSetMap, optimumMultiNames, nameTransMap, stationSetVecMap, 5000, Long.MAX_VALUE, 500,
+            10000);
+        List<String> results = new ArrayList<String>();
+        for (Vector<Airing> options : optionLists)
+        {
+          ConflictWebResult webResult = searcher.findFirstSchedulable(new Vector<Airing>(options));
+          if (webResult == null)
+          {
+            results.add("none");
+            continue;
+          }
+          List<String> permute = new ArrayList<String>();
+          for (EncAir ea : webResult.bestPermute)
+            permute.add(ea.air.id + "@" + ea.capDev.getName());
+          Collections.sort(permute);
+          results.add(webResult.airOpt.id + " " + permute);
+        }
+        rv.add(results);
+        permsChecked[pass] = sim.conflictPermsChecked;
+        sim.rotateConflictWebs();
+      }
+    }
+    finally
+    {
+      if (sim.conflictPool != null)
+        sim.conflictPool.shutdown();
+    }
+    return rv;
+  }
+
+  // The names of the configured encoders and the stations they receive
+  synchronized Map<String, Set<Integer>> getEncoderStations()
+  {
+    Map<String, Set<Integer>> rv = new LinkedHashMap<String, Set<Integer>>();
+    for (EncoderSchedule es : encoderScheduleMap.values())
+      rv.put(es.capDev.getName(), new HashSet<Integer>(es.stationSet));
+    return rv;
+  }
+
   public boolean isPrepped() { return prepped; }
 
   private void addToDontSchedule(Airing addMe)
@@ -220,6 +388,10 @@ public class Scheduler implements SchedulerInterface
     {
       exportSchedule(new File(Sage.get(SCHEDULER_EXPORT_FILE, "")));
     }
+    if (Sage.get(SchedulerSimulation.BENCHMARK_FILE, "").length() > 0)
+    {
+      SchedulerSimulation.runBenchmark(new File(Sage.get(SchedulerSimulation.BENCHMARK_FILE, "")));
+    }
 
     while (alive)
     {
@@ -700,8 +872,9 @@ public class Scheduler implements SchedulerInterface
      * KNOWS WHAT KIND OF EFFECT THAT COULD HAVE ON THE SCHEDULE...OF COURSE IT'LL JUST RE-EXECUTE
      * AGAIN IF THERE WERE CHANGES, SO IT'LL FIX ITSELF IN THE PROCESS
      */
-    cachedSchedStarts.clear();
-    cachedSchedEnds.clear();
+    cachedSchedTimes.clear();
+    stationEncoderMasks = null;
+    enforceQualitiesInSchedule = Sage.getBoolean("scheduler/enforce_qualities_in_schedule2", false);
     long schedUpdateStartTime = Sage.eventTime();
     if (Sage.DBG) System.out.println("Scheduler.updateSchedule() called " + (
       (" manual=" + Arrays.asList(wiz.getManualRecords()) + " schedules=" + encoderScheduleMap +
@@ -717,7 +890,7 @@ public class Scheduler implements SchedulerInterface
     {
       ManualRecord thisMR = allMRs.get(i);
       if (thisMR == null) continue;
-      if (thisMR.recur != 0)
+      if (thisMR.recur != 0 && !simulation)
       {
         // If this is an older MR it's start time might be more than a week in the past so
         // be sure we check all the way into a week into the future
@@ -753,7 +926,7 @@ public class Scheduler implements SchedulerInterface
           }
         }
       }
-      if (thisMR.getEndTime() <= currTime && wiz.getFileForAiring(thisMR.getContentAiring()) == null)
+      if (!simulation && thisMR.getEndTime() <= currTime && wiz.getFileForAiring(thisMR.getContentAiring()) == null)
       {
         if (Sage.DBG) System.out.println("Scheduler removing manual record because its expired: " + thisMR);
         wiz.removeManualRecord(thisMR);
@@ -842,7 +1015,7 @@ public class Scheduler implements SchedulerInterface
       if (testRec.getEndTime() <= currTime)
       {
         // Ensure forced completion of any files that were marked as manual records
-        MediaFile mf = wiz.getFileForAiring(testRec.getContentAiring());
+        MediaFile mf = simulation ? null : wiz.getFileForAiring(testRec.getContentAiring());
         if (mf != null)
           mf.thisIsComplete();
       }
@@ -1068,6 +1241,20 @@ public class Scheduler implements SchedulerInterface
     // if there are insane_permute_count permutations to check then don't even bother and just give up
     float insane_permute_count = Sage.getFloat("scheduler/limiter_insane_permute_count", 10000);
 
+    // The webs of conflicts for the options of a must see are searched in parallel with this many threads
+    setConflictThreads(Sage.getInt("scheduler/conflict_resolution_threads", Runtime.getRuntime().availableProcessors()));
+    // The cached search results are only valid for the same encoders and limits
+    List<Object> currEncoders = getConflictWebEncoders(sortedEncs, conflict_resolution_search_depth,
+        conflict_resolution_search_time, conflict_resolution_search_min_for_timeout, insane_permute_count);
+    if (!currEncoders.equals(conflictWebEncoders))
+    {
+      lastConflictWebs.clear();
+      conflictWebEncoders = currEncoders;
+    }
+    currConflictWebs.clear();
+    numConflictWebs = numCachedConflictWebs = 0;
+    conflictPermsChecked = 0;
+
     // NOTE: 04/06/2012 - After some very extensive evaluation of why super complex schedules with lots of conflicts take forever
     // there were a few new rules which increased the speed of the scheduler by multiple orders of magnitude. There were two spots
     // that really sucked up all the time; the one we always knew about was in the iterator of the permutations. But previously; we just
@@ -1141,6 +1328,7 @@ public class Scheduler implements SchedulerInterface
           currPermute.addAll(forcedEncodings);
           currPermute.addAll(immutableSchedule);
           currPermute.addAll(mutableSchedule);
+          IntervalTree permuteTree = getScheduleTree(currPermute);
           for (int j = 0; j < unwantedAirs.size(); j++)
           {
             // The mustBeWeakAir will NOT be an MR
@@ -1148,15 +1336,15 @@ public class Scheduler implements SchedulerInterface
             long mustBeWeakStart = getSchedulingStart(mustBeWeakAir);
             long mustBeWeakEnd = getSchedulingEnd(mustBeWeakAir);
             boolean hasOverlaps = false;
-            for (int k = 0; k < currPermute.size(); k++)
+            int[] laps = permuteTree.getOverlaps(mustBeWeakStart, mustBeWeakEnd);
+            for (int k = 0; k < laps.length; k++)
             {
-              EncAir encAirData = currPermute.elementAt(k);
+              EncAir encAirData = currPermute.elementAt(laps[k]);
               // testPermAir is what is in the schedule for this permute, and mustBeWeakAir is what is not
               Airing testPermAir = encAirData.air;
-              ManualRecord testPermMR = wiz.getManualRecord(testPermAir);
-              if (doesSchedulingOverlap(testPermAir, mustBeWeakStart, mustBeWeakEnd) &&
-                  stationDeviceOverlapExists(mustBeWeakAir, testPermAir))
+              if (stationDeviceOverlapExists(mustBeWeakAir, testPermAir))
               {
+                ManualRecord testPermMR = wiz.getManualRecord(testPermAir);
                 hasOverlaps = true;
                 Airing godRes = god.doBattle(testPermAir, mustBeWeakAir);
                 if (testPermMR != null)
@@ -1221,518 +1409,16 @@ public class Scheduler implements SchedulerInterface
           // for scheduling with a large number of tuners.
           CaptureDevice[] optimumMultiNames = optNameVec.toArray(new CaptureDevice[0]);
 
-          while (!currAirOptions.isEmpty())
+          ConflictWebSearcher searcher = new ConflictWebSearcher(forcedEncodings, immutableSchedule, mutableSchedule,
+              showSetMap, optimumMultiNames, nameTransMap, stationSetVecMap, conflict_resolution_search_depth,
+              conflict_resolution_search_time, conflict_resolution_search_min_for_timeout, insane_permute_count);
+          ConflictWebResult webResult = searcher.findFirstSchedulable(currAirOptions);
+          if (webResult != null)
           {
-            currAirOpt = currAirOptions.firstElement();
-            if (SDBG) System.out.println("currAirOpt=" + currAirOpt);
-
-            boolean abandonedHope = false;
-
-            // Find the conflict web for this airing against the current schedule
-            // conflictMap is Show/Airing->Vector(Airing)
-            Map<DBObject, Vector<Airing>> conflictMap = new HashMap<DBObject, Vector<Airing>>();
-            HashSet<Airing> immutOverlapSet = Pooler.getPooledHashSet();
-            Set<EncAir> forcedOverlaps = new HashSet<EncAir>();
-            Vector<Airing> findConflicts = Pooler.getPooledVector();
-            findConflicts.add(currAirOpt);
-            // We know we're part of this conflict group, so put us in there already
-            conflictMap.put(currAirOpt, new Vector<Airing>(findConflicts));
-            // findConflicts contains all of the Airings that we still may find conflicts for
-            HashSet<? super Airing> proccessedForOverlaps = Pooler.getPooledHashSet();
-            double runningPermuteCount = 1;
-            while (!findConflicts.isEmpty())
-            {
-              if (runningPermuteCount > insane_permute_count)
-              {
-                if (SDBG) System.out.println("Doing early abandon on scheduling due to extensive complexity of web of conflicts");
-                abandonedHope = true;
-                break;
-              }
-              // All of the Airings get pulled through here at one point or another
-              Airing evilAir = findConflicts.remove(0);
-              long evilAirStart = getSchedulingStart(evilAir);
-              long evilAirEnd = getSchedulingEnd(evilAir);
-
-              // First find the immutable overlaps
-              for (int a = 0; a < forcedEncodings.size(); a++)
-              {
-                EncAir ea = forcedEncodings.get(a);
-                if (doesSchedulingOverlap(ea.air, evilAirStart, evilAirEnd) && proccessedForOverlaps.add(ea.air))
-                {
-                  forcedOverlaps.add(new EncAir(ea.air, nameTransMap.get(ea.capDev), true));
-                  findConflicts.add(ea.air);
-                }
-              }
-              for (int a = 0; a < immutableSchedule.size(); a++)
-              {
-                EncAir ea = immutableSchedule.get(a);
-                if (doesSchedulingOverlap(ea.air, evilAirStart, evilAirEnd) && proccessedForOverlaps.add(ea.air))
-                {
-                  immutOverlapSet.add(ea.air);
-                  findConflicts.add(ea.air);
-                  runningPermuteCount *= optimumMultiNames.length;
-                }
-              }
-
-              // Check all of the remaining mutable entries for conflicts
-              for (int a = 0; a < mutableSchedule.size(); a++)
-              {
-                EncAir ea = mutableSchedule.get(a);
-                if (doesSchedulingOverlap(ea.air, evilAirStart, evilAirEnd) && proccessedForOverlaps.add(ea.air))
-                {
-                  // Airing/Show
-                  DBObject testShowForConflict = (showSetMap.containsKey(ea.air) ? ea.air : ea.air.getShow());
-                  Vector<Airing> currTestShowAirs = showSetMap.get(testShowForConflict);
-                  // If any of them overlap, the whole list of its airings is part of this group, and
-                  // all will need to be analyzed for further conflicts
-                  findConflicts.addAll(currTestShowAirs);
-                  conflictMap.put(testShowForConflict, currTestShowAirs);
-                  runningPermuteCount *= optimumMultiNames.length * currTestShowAirs.size();
-                }
-              }
-            }
-            Pooler.returnPooledVector(findConflicts);
-            findConflicts = null;
-            Pooler.returnPooledHashSet(proccessedForOverlaps);
-            proccessedForOverlaps = null;
-            if (abandonedHope)
-            {
-              Pooler.returnPooledHashSet(immutOverlapSet);
-              currAirOptions.remove(0);
-              continue;
-            }
-
-            // Now we have all of the information about the web of scheduling conflicts for this instance
-            // Now we run the iteration technique we came up with to find the best permutation there is.
-            // This should go really fast because the web has been minimized, and a lot of redundancy
-            // has been removed.
-            if (SDBG) System.out.println("conflictMap=" + conflictMap + " immutOverlaps=" + immutOverlapSet +
-                " forcedLaps=" + forcedOverlaps);
-
-            // Put the mustsees with the most number of airs at the front of the list, that'll
-            // give them higher bit positions and cause a higher reduction in permutation count
-            Vector<Vector<Airing>> conflictAirList =
-                new Vector<Vector<Airing>>(conflictMap.values());
-            Collections.sort(conflictAirList, new Comparator<Vector<?>>()
-            {
-              public int compare(Vector<?> o1, Vector<?> o2)
-              {
-                return o2.size() - o1.size();
-              }
-            });
-
-            /*
-             * For multiple tuners that have identical station sets, we want to perform an
-             * optimization. In this case, we will allow overlapping recordings to be
-             * scheduled to a multi-tuner collective.  The rule for determining if a set
-             * of airings A is schedule with N tuners is: The N tuners can schedule all of
-             * the events in A if there exists no time span that is less than or equal to
-             * that of an airing in A that intersects with more than N-1 other airings in A.
-             */
-            Vector<Airing> immutOverlaps = new Vector<Airing>(immutOverlapSet);
-            Pooler.returnPooledHashSet(immutOverlapSet);
-            immutOverlapSet = null;
-            int numMRs = immutOverlaps.size();
-            int numMustSees = conflictAirList.size();
-            int numAlready = forcedOverlaps.size();
-            int[] permuteCounts = new int[numMustSees + numMRs];
-            /*
-             * The forceRollBit is what accelerates our analysis
-             * of the permutations. Whenever we find something that's illegal
-             * we then mark the lower bit as the forceRollBit so it gets rolled
-             * the next time. The bits represent the indexes in the mustsee/mr lists
-             */
-            int forceRollBit = permuteCounts.length - 1;
-            boolean countNeedsInc = false;
-            boolean foundCompleteMRSchedule = false;
-            // Calculate how many permutations there's going to be
-            double totalPermutes = 1;
-            double[] permuteFactors = new double[permuteCounts.length];
-            for (int a = permuteCounts.length - 1; a >= 0; a--)
-            {
-              permuteFactors[a] = totalPermutes;
-              if (a < numMRs)
-                totalPermutes *= optimumMultiNames.length;
-              else
-                totalPermutes *= (optimumMultiNames.length * conflictAirList.get(a - numMRs).size());
-            }
-
-            Vector<EncAir> bestPermute = null;
-
-            if (SDBG) System.out.println("STARTING ITERATIVE SCHEDULE totalPermutes=" + totalPermutes + " runningPermutes=" + runningPermuteCount +
-                " permutesCounts.length=" + permuteCounts.length);
-            double totalReductions = 0;
-            double permsEvaluated = 0;
-            int permsChecked = 0;
-            long lastPrintTime = 0;
-            long iterStartTime = Sage.eventTime();
-            while (true)
-            {
-              // This is for the horribly ugly case where we just shouldn't try the iterative stuff because the schedule is so
-              // complex we'd never find the solution (if there even is one...and likely there is not)
-              if (totalPermutes > insane_permute_count)
-              {
-                if (SDBG) System.out.println("Scheduler is abandoning this evaluation-1! totalPermutes=" + totalPermutes);
-                break;
-              }
-              if (countNeedsInc)
-              {
-                // Increment/roll the permute counter, and if we're done then break out
-                boolean rollThisOne = true;
-                if (forceRollBit < permuteCounts.length - 1)
-                {
-                  totalReductions += permuteFactors[forceRollBit];
-                  if (Sage.eventTime() - lastPrintTime > 2000)
-                  {
-                    if (SDBG) System.out.println("TotalPermutes:" + totalPermutes + " TotalReductions:" + totalReductions + " permsChecked=" + permsChecked);
-                    lastPrintTime = Sage.eventTime();
-                  }
-                }
-                permsChecked++;
-                if (permsChecked > conflict_resolution_search_depth ||
-                    (Sage.eventTime() - iterStartTime > conflict_resolution_search_time &&
-                        (permsChecked > conflict_resolution_search_min_for_timeout))) // just in case, then we just abandon this as an option
-                {
-                  if (SDBG) System.out.println("Scheduler is abandoning this evaluation-2: Lost " +
-                      (Sage.eventTime() - iterStartTime) + " millis before scheduler abandon");
-                  break;
-                }
-                ///{
-                //if (Sage.DBG) System.out.println("Scheudling iterative permute reduction by " + permuteFactors[forceRollBit]);
-                //}
-                for (int a = forceRollBit; a >= 0; a--)
-                {
-                  if (a < numMRs)
-                  {
-                    if (permuteCounts[a] < optimumMultiNames.length - 1)
-                    {
-                      permuteCounts[a]++;
-                      rollThisOne = false;
-                      break;
-                    }
-                    else
-                      permuteCounts[a] = 0;
-                  }
-                  else
-                  {
-                    if (permuteCounts[a] <
-                        (conflictAirList.get(a - numMRs).size()*optimumMultiNames.length) - 1)
-                    {
-                      permuteCounts[a]++;
-                      rollThisOne = false;
-                      break;
-                    }
-                    else
-                      permuteCounts[a] = 0;
-                  }
-                }
-                if (rollThisOne)
-                  break;
-                countNeedsInc = false;
-              }
-              forceRollBit = permuteCounts.length - 1;
-              Vector<EncAir> currPermute = new Vector<EncAir>();
-              int permIdx = 0;
-              // Anything that's a forced encoding gets put in the list first
-              currPermute.addAll(forcedOverlaps);
-
-              boolean clean = true;
-              // Go through all of the MRs and put in the permutation for the current
-              // encoder that its on
-              for (permIdx = 0; permIdx < numMRs && clean; permIdx++)
-              {
-                Airing currMR = immutOverlaps.get(permIdx);
-                int currPermCount = permuteCounts[permIdx];
-                EncoderSchedule basePermES = encoderScheduleMap.get(optimumMultiNames[currPermCount]);
-                if (!basePermES.stationSet.contains(currMR.stationID) ||
-                    !basePermES.supportsAirQuality(currMR))
-                {
-                  clean = false;
-                  forceRollBit = permIdx;
-                  break;
-                }
-                Vector<long[]> overlapIntersections = new Vector<long[]>();
-                overlapIntersections.add(new long[] { getSchedulingStart(currMR), getSchedulingEnd(currMR), 1});
-                for (int a = 0; a < currPermute.size(); a++)
-                {
-                  EncAir alreadyEnced = currPermute.get(a);
-                  if (alreadyEnced.capDev.equals(optimumMultiNames[currPermCount]) &&
-                      doesSchedulingOverlap(alreadyEnced.air, currMR))
-                  {
-                    // Check how many tuners have this lineup
-                    int numTunersForStat = stationSetVecMap.get(basePermES.stationSet).size();
-                    if (numTunersForStat == 1)
-                    {
-                      clean = false;
-                      forceRollBit = permIdx;
-                      break;
-                    }
-                    else
-                    {
-                      // Go through the overlap intersections and adjust them to account for
-                      // this new overlap. If we find any intersections that are greater
-                      // than the number of tuners for this lineup, then this permute is illegal
-                      long intersectUpdateStart = Math.max(getSchedulingStart(alreadyEnced.air),
-                          getSchedulingStart(currMR));
-                      long intersectUpdateEnd = Math.min(getSchedulingEnd(alreadyEnced.air),
-                          getSchedulingEnd(currMR));
-                      for (int interCount = 0; interCount < overlapIntersections.size(); interCount++)
-                      {
-                        long[] currInterList = overlapIntersections.get(interCount);
-                        if (currInterList[1] <= intersectUpdateStart)
-                          continue;
-                        if (currInterList[0] >= intersectUpdateEnd)
-                          break;
-                        if (currInterList[2] + 1 > numTunersForStat)
-                        {
-                          clean = false;
-                          forceRollBit = permIdx;
-                          break;
-                        }
-                        if (currInterList[0] == intersectUpdateStart &&
-                            currInterList[1] <= intersectUpdateEnd)
-                        {
-                          // It covers this whole range, just inc the counter
-                          currInterList[2]++;
-                          intersectUpdateStart = currInterList[1];
-                        }
-                        else if (currInterList[0] < intersectUpdateStart &&
-                            currInterList[1] <= intersectUpdateEnd)
-                        {
-                          // It covers the later part of this range. Break it
-                          // into two and increment the appropriate counter
-                          long[] newInterList = new long[3];
-                          newInterList[0] = intersectUpdateStart;
-                          newInterList[1] = currInterList[1];
-                          newInterList[2] = currInterList[2] + 1;
-                          currInterList[1] = intersectUpdateStart;
-                          interCount++;
-                          overlapIntersections.insertElementAt(newInterList, interCount);
-                          intersectUpdateStart = newInterList[1];
-                        }
-                        else if (currInterList[0] == intersectUpdateStart &&
-                            currInterList[1] > intersectUpdateEnd)
-                        {
-                          // It covers the front part of this range, break it
-                          // into two.
-                          long[] newInterList = new long[3];
-                          newInterList[0] = intersectUpdateStart;
-                          newInterList[1] = intersectUpdateEnd;
-                          newInterList[2] = currInterList[2] + 1;
-                          currInterList[0] = intersectUpdateEnd;
-                          overlapIntersections.insertElementAt(newInterList, interCount);
-                          interCount++;
-                          intersectUpdateStart = intersectUpdateEnd;
-                        }
-                        else
-                        {
-                          // It covers the middle part of this range, break it
-                          // into three
-                          long[] newInterListMid = new long[3];
-                          newInterListMid[0] = intersectUpdateStart;
-                          newInterListMid[1] = intersectUpdateEnd;
-                          newInterListMid[2] = currInterList[2] + 1;
-                          long[] newInterListEnd = new long[3];
-                          newInterListEnd[0] = intersectUpdateEnd;
-                          newInterListEnd[1] = currInterList[1];
-                          newInterListEnd[2] = currInterList[2];
-                          currInterList[1] = intersectUpdateStart;
-                          interCount++;
-                          overlapIntersections.insertElementAt(newInterListMid, interCount);
-                          interCount++;
-                          overlapIntersections.insertElementAt(newInterListEnd, interCount);
-                          intersectUpdateStart = intersectUpdateEnd;
-                        }
-                      }
-                      if (!clean)
-                        break;
-                    }
-                  }
-                }
-                if (clean)
-                  currPermute.add(new EncAir(currMR, optimumMultiNames[currPermCount], true));
-              }
-              if (!clean)
-              {
-                // We can't schedule all of the MRs on this permute, it's no good!
-                countNeedsInc = true;
-                continue;
-              }
-              else
-                foundCompleteMRSchedule = true;
-
-              // Go through all of the Must Sees and put in the permutation for the current
-              // encoder/airing that its on, it may be excluded also
-              for (permIdx = numMRs; permIdx < permuteCounts.length && clean; permIdx++)
-              {
-                Vector<Airing> currMustSeeAirs = conflictAirList.get(permIdx - numMRs);
-                int currPermCount = permuteCounts[permIdx];
-                Airing currAir = currMustSeeAirs.get(currPermCount / optimumMultiNames.length);
-                EncoderSchedule basePermES = encoderScheduleMap.get(optimumMultiNames[currPermCount % optimumMultiNames.length]);
-                if (!basePermES.stationSet.contains(currAir.stationID) ||
-                    !basePermES.supportsAirQuality(currAir))
-                {
-                  clean = false;
-                  forceRollBit = permIdx;
-                  break;
-                }
-                Vector<long[]> overlapIntersections = new Vector<long[]>();
-                overlapIntersections.add(new long[] { getSchedulingStart(currAir), getSchedulingEnd(currAir), 1});
-                for (int a = 0; a < currPermute.size(); a++)
-                {
-                  EncAir alreadyEnced = currPermute.get(a);
-                  if (alreadyEnced.capDev.equals(optimumMultiNames[currPermCount % optimumMultiNames.length]) &&
-                      doesSchedulingOverlap(alreadyEnced.air, currAir))
-                  {
-                    // Check how many tuners have this lineup
-                    int numTunersForStat = stationSetVecMap.get(basePermES.stationSet).size();
-                    if (numTunersForStat == 1)
-                    {
-                      clean = false;
-                      forceRollBit = permIdx;
-                      break;
-                    }
-                    else
-                    {
-                      // Go through the overlap intersections and adjust them to account for
-                      // this new overlap. If we find any intersections that are greater
-                      // than the number of tuners for this lineup, then this permute is illegal
-                      long intersectUpdateStart = Math.max(getSchedulingStart(alreadyEnced.air),
-                          getSchedulingStart(currAir));
-                      long intersectUpdateEnd = Math.min(getSchedulingEnd(alreadyEnced.air),
-                          getSchedulingEnd(currAir));
-                      for (int interCount = 0; interCount < overlapIntersections.size(); interCount++)
-                      {
-                        long[] currInterList = overlapIntersections.get(interCount);
-                        if (currInterList[1] <= intersectUpdateStart)
-                          continue;
-                        if (currInterList[0] >= intersectUpdateEnd)
-                          break;
-                        if (currInterList[2] + 1 > numTunersForStat)
-                        {
-                          clean = false;
-                          forceRollBit = permIdx;
-                          break;
-                        }
-                        if (currInterList[0] == intersectUpdateStart &&
-                            currInterList[1] <= intersectUpdateEnd)
-                        {
-                          // It covers this whole range, just inc the counter
-                          currInterList[2]++;
-                          intersectUpdateStart = currInterList[1];
-                        }
-                        else if (currInterList[0] < intersectUpdateStart &&
-                            currInterList[1] <= intersectUpdateEnd)
-                        {
-                          // It covers the later part of this range. Break it
-                          // into two and increment the appropriate counter
-                          long[] newInterList = new long[3];
-                          newInterList[0] = intersectUpdateStart;
-                          newInterList[1] = currInterList[1];
-                          newInterList[2] = currInterList[2] + 1;
-                          currInterList[1] = intersectUpdateStart;
-                          interCount++;
-                          overlapIntersections.insertElementAt(newInterList, interCount);
-                          intersectUpdateStart = newInterList[1];
-                        }
-                        else if (currInterList[0] == intersectUpdateStart &&
-                            currInterList[1] > intersectUpdateEnd)
-                        {
-                          // It covers the front part of this range, break it
-                          // into two.
-                          long[] newInterList = new long[3];
-                          newInterList[0] = intersectUpdateStart;
-                          newInterList[1] = intersectUpdateEnd;
-                          newInterList[2] = currInterList[2] + 1;
-                          currInterList[0] = intersectUpdateEnd;
-                          overlapIntersections.insertElementAt(newInterList, interCount);
-                          interCount++;
-                          intersectUpdateStart = intersectUpdateEnd;
-                        }
-                        else
-                        {
-                          // It covers the middle part of this range, break it
-                          // into three
-                          long[] newInterListMid = new long[3];
-                          newInterListMid[0] = intersectUpdateStart;
-                          newInterListMid[1] = intersectUpdateEnd;
-                          newInterListMid[2] = currInterList[2] + 1;
-                          long[] newInterListEnd = new long[3];
-                          newInterListEnd[0] = intersectUpdateEnd;
-                          newInterListEnd[1] = currInterList[1];
-                          newInterListEnd[2] = currInterList[2];
-                          currInterList[1] = intersectUpdateStart;
-                          interCount++;
-                          overlapIntersections.insertElementAt(newInterListMid, interCount);
-                          interCount++;
-                          overlapIntersections.insertElementAt(newInterListEnd, interCount);
-                          intersectUpdateStart = intersectUpdateEnd;
-                        }
-                      }
-                      if (!clean)
-                        break;
-                    }
-                  }
-                }
-                if (clean)
-                  currPermute.add(new EncAir(currAir,
-                      optimumMultiNames[currPermCount % optimumMultiNames.length], false));
-              }
-              if (!clean)
-              {
-                // We can't schedule all of the MRs on this permute, it's no good!
-                countNeedsInc = true;
-                continue;
-              }
-              countNeedsInc = true;
-
-              Set<DBObject> undoneShows = new HashSet<DBObject>(conflictMap.keySet());
-              for (int a = 0; a < currPermute.size(); a++)
-              {
-                EncAir encAirData = currPermute.elementAt(a);
-                Airing removeThisShow = encAirData.air;
-                undoneShows.remove(removeThisShow.getShow());
-                undoneShows.remove(removeThisShow);
-              }
-
-              permsEvaluated++;
-
-              //if (SDBG) System.out.println("CLEANED PERMUTATION " + currPermute + " UNRESOLVED=" + currUnresolved);
-              // Now none of our permutations violate the rules of the user.
-
-              // Ordering for this is
-              // 1. Most # of recordings is the best
-              // 2. Least # of unresolved
-              // 3. Least interference with curr recordings
-              // 4. Earliest completion
-              // 5. Keeping the channel the encoders are on the same
-              if (bestPermute == null)
-              {
-                bestPermute = currPermute;
-                if (SDBG) System.out.println("NEW1 BestPermute=" + bestPermute);
-              }
-              else
-              {
-                if (currPermute.size() > bestPermute.size())
-                {
-                  bestPermute = currPermute;
-                  if (SDBG) System.out.println("NEW2 BestPermute=" + bestPermute);
-                }
-              }
-
-              // This is the best we can do, just stop now!!!
-              if (bestPermute != null)
-                break;
-            }
-            if (SDBG) System.out.println("SCHEDULING Total permutations checked:" + permsChecked + " evaluated:" + permsEvaluated +
-                " reductions=" + totalReductions);
-            if (SDBG) System.out.println("BestPermute=" + bestPermute);
-
-            if (bestPermute == null)
-            {
-              currAirOptions.remove(0);
-              continue;
-            }
+            currAirOpt = webResult.airOpt;
+            Vector<EncAir> bestPermute = webResult.bestPermute;
+            Vector<Airing> immutOverlaps = webResult.immutOverlaps;
+            Vector<Vector<Airing>> conflictAirList = webResult.conflictAirList;
             // We now have the best schedule for these option; put it into the schedule.
             // Any changes made need to be reflected in the mutable/immutable lists as well
             // as the EncoderSchedules
@@ -1859,7 +1545,6 @@ public class Scheduler implements SchedulerInterface
                   mutableSchedule.add(encAir);
               }
             }
-            break;
           }
 
           if (!rearrangeSucceeded)
@@ -1877,6 +1562,7 @@ public class Scheduler implements SchedulerInterface
             currPermute.addAll(forcedEncodings);
             currPermute.addAll(immutableSchedule);
             currPermute.addAll(mutableSchedule);
+            IntervalTree permuteTree = getScheduleTree(currPermute);
             for (int j = 0; j < unwantedAirs.size(); j++)
             {
               // The mustBeWeakAir will NOT be an MR
@@ -1884,15 +1570,15 @@ public class Scheduler implements SchedulerInterface
               long mustBeWeakStart = getSchedulingStart(mustBeWeakAir);
               long mustBeWeakEnd = getSchedulingEnd(mustBeWeakAir);
               boolean hasOverlaps = false;
-              for (int k = 0; k < currPermute.size(); k++)
+              int[] laps = permuteTree.getOverlaps(mustBeWeakStart, mustBeWeakEnd);
+              for (int k = 0; k < laps.length; k++)
               {
-                EncAir encAirData = currPermute.elementAt(k);
+                EncAir encAirData = currPermute.elementAt(laps[k]);
                 // testPermAir is what is in the schedule for this permute, and mustBeWeakAir is what is not
                 Airing testPermAir = encAirData.air;
-                ManualRecord testPermMR = wiz.getManualRecord(testPermAir);
-                if (doesSchedulingOverlap(testPermAir, mustBeWeakStart, mustBeWeakEnd) &&
-                    stationDeviceOverlapExists(mustBeWeakAir, testPermAir))
+                if (stationDeviceOverlapExists(mustBeWeakAir, testPermAir))
                 {
+                  ManualRecord testPermMR = wiz.getManualRecord(testPermAir);
                   hasOverlaps = true;
                   Airing godRes = god.doBattle(testPermAir, mustBeWeakAir);
                   if (testPermMR != null)
@@ -2302,14 +1988,29 @@ public class Scheduler implements SchedulerInterface
 
     agentFileRedMap = null;
     agentSchedRedMap = null;
-    cachedSchedStarts.clear();
-    cachedSchedEnds.clear();
+    cachedSchedTimes.clear();
+    stationEncoderMasks = null;
+    rotateConflictWebs();
+    if (Sage.DBG && numConflictWebs > 0) System.out.println("Scheduler searched " + numConflictWebs + " conflict webs (" +
+        numCachedConflictWebs + " cached) permutations checked=" + conflictPermsChecked);
     if (Sage.DBG) System.out.println("Total Schedule eval time=" + (Sage.eventTime() - schedUpdateStartTime) + " msec");
   }
 
   private boolean stationDeviceOverlapExists(Airing a1, Airing a2)
   {
     if (a1.stationID == a2.stationID) return true;
+    if (!enforceQualitiesInSchedule)
+    {
+      // Without the quality restrictions this only depends on which encoders receive each station
+      long[] encs1 = getStationEncoders(a1.stationID);
+      long[] encs2 = getStationEncoders(a2.stationID);
+      for (int i = 0; i < encs1.length; i++)
+      {
+        if ((encs1[i] & encs2[i]) != 0)
+          return true;
+      }
+      return false;
+    }
     // Find out if there's an encoder who has both these stations in its set
     Integer i1 = a1.stationID;
     Integer i2 = a2.stationID;
@@ -2322,6 +2023,66 @@ public class Scheduler implements SchedulerInterface
     return false;
   }
 
+  // Returns a bitmask of the encoders (in encoderScheduleMap order) which can receive this station. The conflict
+  // web searches call this from several threads; so the masks are only published once they're complete, if more
+  // than one of them builds them at the same time they just end up with the same thing.
+  private long[] getStationEncoders(int stationID)
+  {
+    Map<Integer, long[]> masks = stationEncoderMasks;
+    if (masks == null)
+    {
+      EncoderSchedule[] encs = encoderScheduleMap.values().toArray(new EncoderSchedule[0]);
+      masks = new HashMap<Integer, long[]>();
+      long[] noEncoders = new long[(encs.length + 63) / 64];
+      for (int i = 0; i < encs.length; i++)
+      {
+        for (Integer statID : encs[i].stationSet)
+        {
+          long[] mask = masks.get(statID);
+          if (mask == null)
+            masks.put(statID, mask = new long[noEncoders.length]);
+          mask[i >> 6] |= 1L << (i & 63);
+        }
+      }
+      noStationEncoders = noEncoders;
+      stationEncoderMasks = masks;
+    }
+    long[] rv = masks.get(stationID);
+    return (rv == null) ? noStationEncoders : rv;
+  }
+
+  // Interval tree over the scheduling times of these; the ids in it are the indices in the list
+  private IntervalTree getScheduleTree(List<EncAir> sched)
+  {
+    long[] starts = new long[sched.size()];
+    long[] ends = new long[starts.length];
+    for (int i = 0; i < starts.length; i++)
+    {
+      long[] times = getSchedulingTimes(sched.get(i).air);
+      starts[i] = times[0];
+      ends[i] = times[1];
+    }
+    return new IntervalTree(starts, ends);
+  }
+
+  // Returns the indices of what overlaps the Airing in the schedule in increasing order; the tree was built from the
+  // start of the schedule and anything that was added to it after that is checked directly
+  private int[] getScheduleOverlaps(IntervalTree tree, List<EncAir> sched, Airing air)
+  {
+    long start = getSchedulingStart(air);
+    long end = getSchedulingEnd(air);
+    int[] rv = tree.getOverlaps(start, end);
+    for (int i = tree.size(); i < sched.size(); i++)
+    {
+      if (doesSchedulingOverlap(sched.get(i).air, start, end))
+      {
+        rv = Arrays.copyOf(rv, rv.length + 1);
+        rv[rv.length - 1] = i;
+      }
+    }
+    return rv;
+  }
+
   // This builds a new preferred schedule from adding just the set of options in the addAirList.
   // The addAirList will have any elements that were impossible to schedule removed from it.
   // The addAirList should be sorted with the most desired air at the front of the list (i.e. the earliest)
@@ -2340,6 +2101,7 @@ public class Scheduler implements SchedulerInterface
     totalSchedule.addAll(forcedSchedule);
     totalSchedule.addAll(immutableSchedule);
     totalSchedule.addAll(mutableSchedule);
+    IntervalTree totalTree = getScheduleTree(totalSchedule);
     boolean foundSchedule = false;
     for (int i = 0; i < addAirList.size(); i++)
     {
@@ -2353,10 +2115,11 @@ public class Scheduler implements SchedulerInterface
         {
           // Check for overlaps on this encoder
           Vector<EncAir> currLaps = null;
-          for (int k = 0; k < totalSchedule.size(); k++)
+          int[] laps = getScheduleOverlaps(totalTree, totalSchedule, currAir);
+          for (int k = 0; k < laps.length; k++)
           {
-            EncAir currEnc = totalSchedule.get(k);
-            if (currEnc.capDev.equals(encs[j].capDev) && doesSchedulingOverlap(currEnc.air, currAir))
+            EncAir currEnc = totalSchedule.get(laps[k]);
+            if (currEnc.capDev.equals(encs[j].capDev))
             {
               if (currLaps == null)
                 currLaps = new Vector<EncAir>();
@@ -2419,10 +2182,11 @@ public class Scheduler implements SchedulerInterface
                   noSwap = true;
                 else
                 {
-                  for (int c = 0; c < totalSchedule.size() && !noSwap; c++)
+                  int[] laps = getScheduleOverlaps(totalTree, totalSchedule, currB);
+                  for (int c = 0; c < laps.length && !noSwap; c++)
                   {
-                    EncAir currEnc = totalSchedule.get(c);
-                    if (currEnc.capDev.equals(encs[a].capDev) && doesSchedulingOverlap(currEnc.air, currB))
+                    EncAir currEnc = totalSchedule.get(laps[c]);
+                    if (currEnc.capDev.equals(encs[a].capDev))
                       noSwap = true;
                   }
                 }
@@ -2923,6 +2687,7 @@ public class Scheduler implements SchedulerInterface
     }
 
     EncoderSchedule[] encs = encoderScheduleMap.values().toArray(new EncoderSchedule[0]);
+    testPermsChecked = 0;
 
     // the new iterative way
     airList = new Vector<Airing>(airList);
@@ -2936,7 +2701,8 @@ public class Scheduler implements SchedulerInterface
     Vector<EncAir> currPerm = new Vector<EncAir>();
     while (!airList.isEmpty())
     {
-      if(SDBG && (++loopCount % 1000) == 0) {
+      testPermsChecked = ++loopCount;
+      if(SDBG && (loopCount % 1000) == 0) {
         System.out.println("testMultiTunerSchedulingPermutation: loop: " + loopCount);
       }
       if (countNeedsInc)
@@ -3047,23 +2813,50 @@ public class Scheduler implements SchedulerInterface
     }
   }
 
+  private void setConflictThreads(int conflictThreads)
+  {
+    if (conflictThreads <= 1)
+    {
+      if (conflictPool != null)
+        conflictPool.shutdown();
+      conflictPool = null;
+    }
+    else if (conflictPool == null || conflictPool.getParallelism() != conflictThreads)
+    {
+      if (conflictPool != null)
+        conflictPool.shutdown();
+      conflictPool = new ForkJoinPool(conflictThreads);
+    }
+  }
+
+  // The webs searched in this schedule update are the ones that can be reused in the next one; this only keeps the
+  // webs that are still part of the schedule
+  private void rotateConflictWebs()
+  {
+    Map<List<Object>, CachedConflictWeb> swapWebs = lastConflictWebs;
+    lastConflictWebs = currConflictWebs;
+    currConflictWebs = swapWebs;
+    currConflictWebs.clear();
+  }
+
   private long getSchedulingStart(Airing a)
   {
-    Long x = cachedSchedStarts.get(a);
-    if (x != null)
-      return x.longValue();
-    x = new Long(a.getSchedulingStart());
-    cachedSchedStarts.put(a, x);
-    return x.longValue();
+    return getSchedulingTimes(a)[0];
   }
   private long getSchedulingEnd(Airing a)
   {
-    Long x = cachedSchedEnds.get(a);
-    if (x != null)
-      return x.longValue();
-    x = new Long(a.getSchedulingEnd());
-    cachedSchedEnds.put(a, x);
-    return x.longValue();
+    return getSchedulingTimes(a)[1];
+  }
+  // Returns the scheduling start & end of the Airing; these are cached during a schedule update
+  private long[] getSchedulingTimes(Airing a)
+  {
+    long[] rv = cachedSchedTimes.get(a);
+    if (rv == null)
+    {
+      rv = new long[] { a.getSchedulingStart(), a.getSchedulingEnd() };
+      cachedSchedTimes.put(a, rv);
+    }
+    return rv;
   }
   private boolean doesSchedulingOverlap(Airing a1, Airing a2)
   {
@@ -3101,8 +2894,28 @@ public class Scheduler implements SchedulerInterface
 
   private Map<CaptureDevice, EncoderSchedule> encoderScheduleMap;
 
-  private Map<Airing, Long> cachedSchedStarts = new HashMap<Airing, Long>();
-  private Map<Airing, Long> cachedSchedEnds = new HashMap<Airing, Long>();
+  // This is concurrent since the conflict web searches run in parallel
+  private Map<Airing, long[]> cachedSchedTimes = new ConcurrentHashMap<Airing, long[]>();
+  // Encoders that receive each station; see getStationEncoders
+  private volatile Map<Integer, long[]> stationEncoderMasks;
+  private volatile long[] noStationEncoders;
+  // scheduler/enforce_qualities_in_schedule2, read once for each schedule update
+  private boolean enforceQualitiesInSchedule;
+
+  // Results of the conflict web searches from the last schedule update and the current one; so after a small change
+  // only the webs that it affected need to be searched again
+  private Map<List<Object>, CachedConflictWeb> lastConflictWebs = new ConcurrentHashMap<List<Object>, CachedConflictWeb>();
+  private Map<List<Object>, CachedConflictWeb> currConflictWebs = new ConcurrentHashMap<List<Object>, CachedConflictWeb>();
+  // The encoder setup that the cached conflict web results are for
+  private List<Object> conflictWebEncoders;
+  private ForkJoinPool conflictPool;
+  private int numConflictWebs;
+  private int numCachedConflictWebs;
+  private long conflictPermsChecked;
+  // The number of permutations checked in the last call to testMultiTunerSchedulingPermutation
+  private int testPermsChecked;
+  // True if this is only used for what-if simulations; see SchedulerSimulation
+  private boolean simulation;
 
   private MediaFile[] wizFileCache; // so we only call it once per update
 
@@ -3138,6 +2951,713 @@ public class Scheduler implements SchedulerInterface
     boolean req;
   }
 
+  // The result of searching a web of scheduling conflicts for one of the airing options of a must see
+  private static class ConflictWebResult
+  {
+    public ConflictWebResult(Airing airOpt, Vector<EncAir> bestPermute, Vector<Airing> immutOverlaps,
+        Vector<Vector<Airing>> conflictAirList, int permsChecked, boolean cached)
+    {
+      this.airOpt = airOpt;
+      this.bestPermute = bestPermute;
+      this.immutOverlaps = immutOverlaps;
+      this.conflictAirList = conflictAirList;
+      this.permsChecked = permsChecked;
+      this.cached = cached;
+    }
+    Airing airOpt;
+    // null if there's no permutation that schedules the whole web
+    Vector<EncAir> bestPermute;
+    Vector<Airing> immutOverlaps;
+    Vector<Vector<Airing>> conflictAirList;
+    int permsChecked;
+    boolean cached;
+  }
+
+  private static class CachedConflictWeb
+  {
+    public CachedConflictWeb(Vector<EncAir> bestPermute)
+    {
+      this.bestPermute = bestPermute;
+    }
+    Vector<EncAir> bestPermute;
+  }
+
+  /*
+   * Searches the webs of scheduling conflicts for the airing options of a must see. This only reads the current
+   * schedule; so the webs for different options are independent and are searched in parallel on the
+   * conflictPool. The results are the same as searching them one after another.
+   */
+  private class ConflictWebSearcher
+  {
+    public ConflictWebSearcher(Vector<EncAir> forcedEncodings, Vector<EncAir> immutableSchedule,
+        Vector<EncAir> mutableSchedule, Map<DBObject, Vector<Airing>> showSetMap, CaptureDevice[] optimumMultiNames,
+        Map<CaptureDevice, CaptureDevice> nameTransMap, Map<Set<Integer>, Vector<CaptureDevice>> stationSetVecMap,
+        int conflict_resolution_search_depth, long conflict_resolution_search_time,
+        int conflict_resolution_search_min_for_timeout, float insane_permute_count)
+    {
+      this.forcedEncodings = forcedEncodings;
+      this.immutableSchedule = immutableSchedule;
+      this.mutableSchedule = mutableSchedule;
+      this.showSetMap = showSetMap;
+      this.optimumMultiNames = optimumMultiNames;
+      this.nameTransMap = nameTransMap;
+      this.stationSetVecMap = stationSetVecMap;
+      this.conflict_resolution_search_depth = conflict_resolution_search_depth;
+      this.conflict_resolution_search_time = conflict_resolution_search_time;
+      this.conflict_resolution_search_min_for_timeout = conflict_resolution_search_min_for_timeout;
+      this.insane_permute_count = insane_permute_count;
+      enforceQualities = Sage.getBoolean("scheduler/enforce_qualities_in_schedule2", false);
+      // The schedules don't change while the webs are being searched
+      forcedTree = getScheduleTree(forcedEncodings);
+      immutTree = getScheduleTree(immutableSchedule);
+      mutTree = getScheduleTree(mutableSchedule);
+    }
+
+    /*
+     * Returns the result for the first of the options whose conflict web can be completely scheduled. Options
+     * before that one are removed from currAirOptions. Returns null if none of them work; currAirOptions will
+     * be empty then.
+     */
+    ConflictWebResult findFirstSchedulable(Vector<Airing> currAirOptions)
+    {
+      while (!currAirOptions.isEmpty())
+      {
+        int numSearches = (conflictPool == null) ? 1 : Math.min(currAirOptions.size(), conflictPool.getParallelism());
+        List<ConflictWebResult> results = new ArrayList<ConflictWebResult>();
+        if (numSearches > 1)
+        {
+          List<Callable<ConflictWebResult>> searches = new ArrayList<Callable<ConflictWebResult>>();
+          for (int i = 0; i < numSearches; i++)
+          {
+            final Airing airOpt = currAirOptions.get(i);
+            searches.add(new Callable<ConflictWebResult>()
+            {
+              public ConflictWebResult call()
+              {
+                return search(airOpt);
+              }
+            });
+          }
+          try
+          {
+            for (Future<ConflictWebResult> future : conflictPool.invokeAll(searches))
+              results.add(future.get());
+          }
+          catch (Exception e)
+          {
+            if (Sage.DBG) System.out.println("ERROR searching conflict webs in parallel, searching them one at a time instead:" + e);
+            results.clear();
+            numSearches = 1;
+          }
+        }
+        if (numSearches == 1)
+          results.add(search(currAirOptions.firstElement()));
+        for (ConflictWebResult result : results)
+        {
+          numConflictWebs++;
+          if (result.cached)
+            numCachedConflictWebs++;
+          conflictPermsChecked += result.permsChecked;
+          if (result.bestPermute != null)
+            return result;
+          currAirOptions.remove(0);
+        }
+      }
+      return null;
+    }
+
+    ConflictWebResult search(Airing currAirOpt)
+    {
+      if (SDBG) System.out.println("currAirOpt=" + currAirOpt);
+
+      boolean abandonedHope = false;
+
+      // Find the conflict web for this airing against the current schedule
+      // conflictMap is Show/Airing->Vector(Airing)
+      Map<DBObject, Vector<Airing>> conflictMap = new HashMap<DBObject, Vector<Airing>>();
+      HashSet<Airing> immutOverlapSet = Pooler.getPooledHashSet();
+      Set<EncAir> forcedOverlaps = new HashSet<EncAir>();
+      Vector<Airing> findConflicts = Pooler.getPooledVector();
+      findConflicts.add(currAirOpt);
+      // We know we're part of this conflict group, so put us in there already
+      conflictMap.put(currAirOpt, new Vector<Airing>(findConflicts));
+      // findConflicts contains all of the Airings that we still may find conflicts for
+      HashSet<? super Airing> proccessedForOverlaps = Pooler.getPooledHashSet();
+      double runningPermuteCount = 1;
+      while (!findConflicts.isEmpty())
+      {
+        if (runningPermuteCount > insane_permute_count)
+        {
+          if (SDBG) System.out.println("Doing early abandon on scheduling due to extensive complexity of web of conflicts");
+          abandonedHope = true;
+          break;
+        }
+        // All of the Airings get pulled through here at one point or another
+        Airing evilAir = findConflicts.remove(0);
+        long evilAirStart = getSchedulingStart(evilAir);
+        long evilAirEnd = getSchedulingEnd(evilAir);
+
+        // First find the immutable overlaps
+        int[] laps = forcedTree.getOverlaps(evilAirStart, evilAirEnd);
+        for (int a = 0; a < laps.length; a++)
+        {
+          EncAir ea = forcedEncodings.get(laps[a]);
+          if (proccessedForOverlaps.add(ea.air))
+          {
+            forcedOverlaps.add(new EncAir(ea.air, nameTransMap.get(ea.capDev), true));
+            findConflicts.add(ea.air);
+          }
+        }
+        laps = immutTree.getOverlaps(evilAirStart, evilAirEnd);
+        for (int a = 0; a < laps.length; a++)
+        {
+          EncAir ea = immutableSchedule.get(laps[a]);
+          if (proccessedForOverlaps.add(ea.air))
+          {
+            immutOverlapSet.add(ea.air);
+            findConflicts.add(ea.air);
+            runningPermuteCount *= optimumMultiNames.length;
+          }
+        }
+
+        // Check all of the remaining mutable entries for conflicts
+        laps = mutTree.getOverlaps(evilAirStart, evilAirEnd);
+        for (int a = 0; a < laps.length; a++)
+        {
+          EncAir ea = mutableSchedule.get(laps[a]);
+          if (proccessedForOverlaps.add(ea.air))
+          {
+            // Airing/Show
+            DBObject testShowForConflict = (showSetMap.containsKey(ea.air) ? ea.air : ea.air.getShow());
+            Vector<Airing> currTestShowAirs = showSetMap.get(testShowForConflict);
+            // If any of them overlap, the whole list of its airings is part of this group, and
+            // all will need to be analyzed for further conflicts
+            findConflicts.addAll(currTestShowAirs);
+            conflictMap.put(testShowForConflict, currTestShowAirs);
+            runningPermuteCount *= optimumMultiNames.length * currTestShowAirs.size();
+          }
+        }
+      }
+      Pooler.returnPooledVector(findConflicts);
+      findConflicts = null;
+      Pooler.returnPooledHashSet(proccessedForOverlaps);
+      proccessedForOverlaps = null;
+      if (abandonedHope)
+      {
+        Pooler.returnPooledHashSet(immutOverlapSet);
+        return new ConflictWebResult(currAirOpt, null, null, null, 0, false);
+      }
+
+      // Now we have all of the information about the web of scheduling conflicts for this instance
+      // Now we run the iteration technique we came up with to find the best permutation there is.
+      // This should go really fast because the web has been minimized, and a lot of redundancy
+      // has been removed.
+      if (SDBG) System.out.println("conflictMap=" + conflictMap + " immutOverlaps=" + immutOverlapSet +
+          " forcedLaps=" + forcedOverlaps);
+
+      // Put the mustsees with the most number of airs at the front of the list, that'll
+      // give them higher bit positions and cause a higher reduction in permutation count
+      Vector<Vector<Airing>> conflictAirList =
+          new Vector<Vector<Airing>>(conflictMap.values());
+      Collections.sort(conflictAirList, new Comparator<Vector<?>>()
+      {
+        public int compare(Vector<?> o1, Vector<?> o2)
+        {
+          return o2.size() - o1.size();
+        }
+      });
+
+      /*
+       * For multiple tuners that have identical station sets, we want to perform an
+       * optimization. In this case, we will allow overlapping recordings to be
+       * scheduled to a multi-tuner collective.  The rule for determining if a set
+       * of airings A is schedule with N tuners is: The N tuners can schedule all of
+       * the events in A if there exists no time span that is less than or equal to
+       * that of an airing in A that intersects with more than N-1 other airings in A.
+       */
+      Vector<Airing> immutOverlaps = new Vector<Airing>(immutOverlapSet);
+      Pooler.returnPooledHashSet(immutOverlapSet);
+      immutOverlapSet = null;
+      int numMRs = immutOverlaps.size();
+      int numMustSees = conflictAirList.size();
+      int numAlready = forcedOverlaps.size();
+      int[] permuteCounts = new int[numMustSees + numMRs];
+      /*
+       * The forceRollBit is what accelerates our analysis
+       * of the permutations. Whenever we find something that's illegal
+       * we then mark the lower bit as the forceRollBit so it gets rolled
+       * the next time. The bits represent the indexes in the mustsee/mr lists
+       */
+      int forceRollBit = permuteCounts.length - 1;
+      boolean countNeedsInc = false;
+      boolean foundCompleteMRSchedule = false;
+      // Calculate how many permutations there's going to be
+      double totalPermutes = 1;
+      double[] permuteFactors = new double[permuteCounts.length];
+      for (int a = permuteCounts.length - 1; a >= 0; a--)
+      {
+        permuteFactors[a] = totalPermutes;
+        if (a < numMRs)
+          totalPermutes *= optimumMultiNames.length;
+        else
+          totalPermutes *= (optimumMultiNames.length * conflictAirList.get(a - numMRs).size());
+      }
+
+      // If this same web was searched in the last schedule update then we already know the answer
+      List<Object> webKey = getConflictWebKey(conflictAirList, immutOverlaps, forcedOverlaps, enforceQualities);
+      CachedConflictWeb cachedWeb = lastConflictWebs.get(webKey);
+      if (cachedWeb != null)
+      {
+        currConflictWebs.put(webKey, cachedWeb);
+        return new ConflictWebResult(currAirOpt, (cachedWeb.bestPermute == null) ? null :
+          new Vector<EncAir>(cachedWeb.bestPermute), immutOverlaps, conflictAirList, 0, true);
+      }
+
+      Vector<EncAir> bestPermute = null;
+
+      if (SDBG) System.out.println("STARTING ITERATIVE SCHEDULE totalPermutes=" + totalPermutes + " runningPermutes=" + runningPermuteCount +
+          " permutesCounts.length=" + permuteCounts.length);
+      double totalReductions = 0;
+      double permsEvaluated = 0;
+      int permsChecked = 0;
+      boolean timedOut = false;
+      long lastPrintTime = 0;
+      long iterStartTime = Sage.eventTime();
+      while (true)
+      {
+        // This is for the horribly ugly case where we just shouldn't try the iterative stuff because the schedule is so
+        // complex we'd never find the solution (if there even is one...and likely there is not)
+        if (totalPermutes > insane_permute_count)
+        {
+          if (SDBG) System.out.println("Scheduler is abandoning this evaluation-1! totalPermutes=" + totalPermutes);
+          break;
+        }
+        if (countNeedsInc)
+        {
+          // Increment/roll the permute counter, and if we're done then break out
+          boolean rollThisOne = true;
+          if (forceRollBit < permuteCounts.length - 1)
+          {
+            totalReductions += permuteFactors[forceRollBit];
+            if (Sage.eventTime() - lastPrintTime > 2000)
+            {
+              if (SDBG) System.out.println("TotalPermutes:" + totalPermutes + " TotalReductions:" + totalReductions + " permsChecked=" + permsChecked);
+              lastPrintTime = Sage.eventTime();
+            }
+          }
+          permsChecked++;
+          if (permsChecked > conflict_resolution_search_depth ||
+              (Sage.eventTime() - iterStartTime > conflict_resolution_search_time &&
+                  (permsChecked > conflict_resolution_search_min_for_timeout))) // just in case, then we just abandon this as an option
+          {
+            if (SDBG) System.out.println("Scheduler is abandoning this evaluation-2: Lost " +
+                (Sage.eventTime() - iterStartTime) + " millis before scheduler abandon");
+            timedOut = permsChecked <= conflict_resolution_search_depth;
+            break;
+          }
+          ///{
+          //if (Sage.DBG) System.out.println("Scheudling iterative permute reduction by " + permuteFactors[forceRollBit]);
+          //}
+          for (int a = forceRollBit; a >= 0; a--)
+          {
+            if (a < numMRs)
+            {
+              if (permuteCounts[a] < optimumMultiNames.length - 1)
+              {
+                permuteCounts[a]++;
+                rollThisOne = false;
+                break;
+              }
+              else
+                permuteCounts[a] = 0;
+            }
+            else
+            {
+              if (permuteCounts[a] <
+                  (conflictAirList.get(a - numMRs).size()*optimumMultiNames.length) - 1)
+              {
+                permuteCounts[a]++;
+                rollThisOne = false;
+                break;
+              }
+              else
+                permuteCounts[a] = 0;
+            }
+          }
+          if (rollThisOne)
+            break;
+          countNeedsInc = false;
+        }
+        forceRollBit = permuteCounts.length - 1;
+        Vector<EncAir> currPermute = new Vector<EncAir>();
+        int permIdx = 0;
+        // Anything that's a forced encoding gets put in the list first
+        currPermute.addAll(forcedOverlaps);
+
+        boolean clean = true;
+        // Go through all of the MRs and put in the permutation for the current
+        // encoder that its on
+        for (permIdx = 0; permIdx < numMRs && clean; permIdx++)
+        {
+          Airing currMR = immutOverlaps.get(permIdx);
+          int currPermCount = permuteCounts[permIdx];
+          EncoderSchedule basePermES = encoderScheduleMap.get(optimumMultiNames[currPermCount]);
+          if (!basePermES.stationSet.contains(currMR.stationID) ||
+              !basePermES.supportsAirQuality(currMR))
+          {
+            clean = false;
+            forceRollBit = permIdx;
+            break;
+          }
+          Vector<long[]> overlapIntersections = new Vector<long[]>();
+          overlapIntersections.add(new long[] { getSchedulingStart(currMR), getSchedulingEnd(currMR), 1});
+          for (int a = 0; a < currPermute.size(); a++)
+          {
+            EncAir alreadyEnced = currPermute.get(a);
+            if (alreadyEnced.capDev.equals(optimumMultiNames[currPermCount]) &&
+                doesSchedulingOverlap(alreadyEnced.air, currMR))
+            {
+              // Check how many tuners have this lineup
+              int numTunersForStat = stationSetVecMap.get(basePermES.stationSet).size();
+              if (numTunersForStat == 1)
+              {
+                clean = false;
+                forceRollBit = permIdx;
+                break;
+              }
+              else
+              {
+                // Go through the overlap intersections and adjust them to account for
+                // this new overlap. If we find any intersections that are greater
+                // than the number of tuners for this lineup, then this permute is illegal
+                long intersectUpdateStart = Math.max(getSchedulingStart(alreadyEnced.air),
+                    getSchedulingStart(currMR));
+                long intersectUpdateEnd = Math.min(getSchedulingEnd(alreadyEnced.air),
+                    getSchedulingEnd(currMR));
+                for (int interCount = 0; interCount < overlapIntersections.size(); interCount++)
+                {
+                  long[] currInterList = overlapIntersections.get(interCount);
+                  if (currInterList[1] <= intersectUpdateStart)
+                    continue;
+                  if (currInterList[0] >= intersectUpdateEnd)
+                    break;
+                  if (currInterList[2] + 1 > numTunersForStat)
+                  {
+                    clean = false;
+                    forceRollBit = permIdx;
+                    break;
+                  }
+                  if (currInterList[0] == intersectUpdateStart &&
+                      currInterList[1] <= intersectUpdateEnd)
+                  {
+                    // It covers this whole range, just inc the counter
+                    currInterList[2]++;
+                    intersectUpdateStart = currInterList[1];
+                  }
+                  else if (currInterList[0] < intersectUpdateStart &&
+                      currInterList[1] <= intersectUpdateEnd)
+                  {
+                    // It covers the later part of this range. Break it
+                    // into two and increment the appropriate counter
+                    long[] newInterList = new long[3];
+                    newInterList[0] = intersectUpdateStart;
+                    newInterList[1] = currInterList[1];
+                    newInterList[2] = currInterList[2] + 1;
+                    currInterList[1] = intersectUpdateStart;
+                    interCount++;
+                    overlapIntersections.insertElementAt(newInterList, interCount);
+                    intersectUpdateStart = newInterList[1];
+                  }
+                  else if (currInterList[0] == intersectUpdateStart &&
+                      currInterList[1] > intersectUpdateEnd)
+                  {
+                    // It covers the front part of this range, break it
+                    // into two.
+                    long[] newInterList = new long[3];
+                    newInterList[0] = intersectUpdateStart;
+                    newInterList[1] = intersectUpdateEnd;
+                    newInterList[2] = currInterList[2] + 1;
+                    currInterList[0] = intersectUpdateEnd;
+                    overlapIntersections.insertElementAt(newInterList, interCount);
+                    interCount++;
+                    intersectUpdateStart = intersectUpdateEnd;
+                  }
+                  else
+                  {
+                    // It covers the middle part of this range, break it
+                    // into three
+                    long[] newInterListMid = new long[3];
+                    newInterListMid[0] = intersectUpdateStart;
+                    newInterListMid[1] = intersectUpdateEnd;
+                    newInterListMid[2] = currInterList[2] + 1;
+                    long[] newInterListEnd = new long[3];
+                    newInterListEnd[0] = intersectUpdateEnd;
+                    newInterListEnd[1] = currInterList[1];
+                    newInterListEnd[2] = currInterList[2];
+                    currInterList[1] = intersectUpdateStart;
+                    interCount++;
+                    overlapIntersections.insertElementAt(newInterListMid, interCount);
+                    interCount++;
+                    overlapIntersections.insertElementAt(newInterListEnd, interCount);
+                    intersectUpdateStart = intersectUpdateEnd;
+                  }
+                }
+                if (!clean)
+                  break;
+              }
+            }
+          }
+          if (clean)
+            currPermute.add(new EncAir(currMR, optimumMultiNames[currPermCount], true));
+        }
+        if (!clean)
+        {
+          // We can't schedule all of the MRs on this permute, it's no good!
+          countNeedsInc = true;
+          continue;
+        }
+        else
+          foundCompleteMRSchedule = true;
+
+        // Go through all of the Must Sees and put in the permutation for the current
+        // encoder/airing that its on, it may be excluded also
+        for (permIdx = numMRs; permIdx < permuteCounts.length && clean; permIdx++)
+        {
+          Vector<Airing> currMustSeeAirs = conflictAirList.get(permIdx - numMRs);
+          int currPermCount = permuteCounts[permIdx];
+          Airing currAir = currMustSeeAirs.get(currPermCount / optimumMultiNames.length);
+          EncoderSchedule basePermES = encoderScheduleMap.get(optimumMultiNames[currPermCount % optimumMultiNames.length]);
+          if (!basePermES.stationSet.contains(currAir.stationID) ||
+              !basePermES.supportsAirQuality(currAir))
+          {
+            clean = false;
+            forceRollBit = permIdx;
+            break;
+          }
+          Vector<long[]> overlapIntersections = new Vector<long[]>();
+          overlapIntersections.add(new long[] { getSchedulingStart(currAir), getSchedulingEnd(currAir), 1});
+          for (int a = 0; a < currPermute.size(); a++)
+          {
+            EncAir alreadyEnced = currPermute.get(a);
+            if (alreadyEnced.capDev.equals(optimumMultiNames[currPermCount % optimumMultiNames.length]) &&
+                doesSchedulingOverlap(alreadyEnced.air, currAir))
+            {
+              // Check how many tuners have this lineup
+              int numTunersForStat = stationSetVecMap.get(basePermES.stationSet).size();
+              if (numTunersForStat == 1)
+              {
+                clean = false;
+                forceRollBit = permIdx;
+                break;
+              }
+              else
+              {
+                // Go through the overlap intersections and adjust them to account for
+                // this new overlap. If we find any intersections that are greater
+                // than the number of tuners for this lineup, then this permute is illegal
+                long intersectUpdateStart = Math.max(getSchedulingStart(alreadyEnced.air),
+                    getSchedulingStart(currAir));
+                long intersectUpdateEnd = Math.min(getSchedulingEnd(alreadyEnced.air),
+                    getSchedulingEnd(currAir));
+                for (int interCount = 0; interCount < overlapIntersections.size(); interCount++)
+                {
+                  long[] currInterList = overlapIntersections.get(interCount);
+                  if (currInterList[1] <= intersectUpdateStart)
+                    continue;
+                  if (currInterList[0] >= intersectUpdateEnd)
+                    break;
+                  if (currInterList[2] + 1 > numTunersForStat)
+                  {
+                    clean = false;
+                    forceRollBit = permIdx;
+                    break;
+                  }
+                  if (currInterList[0] == intersectUpdateStart &&
+                      currInterList[1] <= intersectUpdateEnd)
+                  {
+                    // It covers this whole range, just inc the counter
+                    currInterList[2]++;
+                    intersectUpdateStart = currInterList[1];
+                  }
+                  else if (currInterList[0] < intersectUpdateStart &&
+                      currInterList[1] <= intersectUpdateEnd)
+                  {
+                    // It covers the later part of this range. Break it
+                    // into two and increment the appropriate counter
+                    long[] newInterList = new long[3];
+                    newInterList[0] = intersectUpdateStart;
+                    newInterList[1] = currInterList[1];
+                    newInterList[2] = currInterList[2] + 1;
+                    currInterList[1] = intersectUpdateStart;
+                    interCount++;
+                    overlapIntersections.insertElementAt(newInterList, interCount);
+                    intersectUpdateStart = newInterList[1];
+                  }
+                  else if (currInterList[0] == intersectUpdateStart &&
+                      currInterList[1] > intersectUpdateEnd)
+                  {
+                    // It covers the front part of this range, break it
+                    // into two.
+                    long[] newInterList = new long[3];
+                    newInterList[0] = intersectUpdateStart;
+                    newInterList[1] = intersectUpdateEnd;
+                    newInterList[2] = currInterList[2] + 1;
+                    currInterList[0] = intersectUpdateEnd;
+                    overlapIntersections.insertElementAt(newInterList, interCount);
+                    interCount++;
+                    intersectUpdateStart = intersectUpdateEnd;
+                  }
+                  else
+                  {
+                    // It covers the middle part of this range, break it
+                    // into three
+                    long[] newInterListMid = new long[3];
+                    newInterListMid[0] = intersectUpdateStart;
+                    newInterListMid[1] = intersectUpdateEnd;
+                    newInterListMid[2] = currInterList[2] + 1;
+                    long[] newInterListEnd = new long[3];
+                    newInterListEnd[0] = intersectUpdateEnd;
+                    newInterListEnd[1] = currInterList[1];
+                    newInterListEnd[2] = currInterList[2];
+                    currInterList[1] = intersectUpdateStart;
+                    interCount++;
+                    overlapIntersections.insertElementAt(newInterListMid, interCount);
+                    interCount++;
+                    overlapIntersections.insertElementAt(newInterListEnd, interCount);
+                    intersectUpdateStart = intersectUpdateEnd;
+                  }
+                }
+                if (!clean)
+                  break;
+              }
+            }
+          }
+          if (clean)
+            currPermute.add(new EncAir(currAir,
+                optimumMultiNames[currPermCount % optimumMultiNames.length], false));
+        }
+        if (!clean)
+        {
+          // We can't schedule all of the MRs on this permute, it's no good!
+          countNeedsInc = true;
+          continue;
+        }
+        countNeedsInc = true;
+
+        Set<DBObject> undoneShows = new HashSet<DBObject>(conflictMap.keySet());
+        for (int a = 0; a < currPermute.size(); a++)
+        {
+          EncAir encAirData = currPermute.elementAt(a);
+          Airing removeThisShow = encAirData.air;
+          undoneShows.remove(removeThisShow.getShow());
+          undoneShows.remove(removeThisShow);
+        }
+
+        permsEvaluated++;
+
+        //if (SDBG) System.out.println("CLEANED PERMUTATION " + currPermute + " UNRESOLVED=" + currUnresolved);
+        // Now none of our permutations violate the rules of the user.
+
+        // Ordering for this is
+        // 1. Most # of recordings is the best
+        // 2. Least # of unresolved
+        // 3. Least interference with curr recordings
+        // 4. Earliest completion
+        // 5. Keeping the channel the encoders are on the same
+        if (bestPermute == null)
+        {
+          bestPermute = currPermute;
+          if (SDBG) System.out.println("NEW1 BestPermute=" + bestPermute);
+        }
+        else
+        {
+          if (currPermute.size() > bestPermute.size())
+          {
+            bestPermute = currPermute;
+            if (SDBG) System.out.println("NEW2 BestPermute=" + bestPermute);
+          }
+        }
+
+        // This is the best we can do, just stop now!!!
+        if (bestPermute != null)
+          break;
+      }
+      if (SDBG) System.out.println("SCHEDULING Total permutations checked:" + permsChecked + " evaluated:" + permsEvaluated +
+          " reductions=" + totalReductions);
+      if (SDBG) System.out.println("BestPermute=" + bestPermute);
+      // Searches that ran out of time may do better next time, so don't remember those
+      if (!timedOut)
+        currConflictWebs.put(webKey, new CachedConflictWeb((bestPermute == null) ? null : new Vector<EncAir>(bestPermute)));
+      return new ConflictWebResult(currAirOpt, bestPermute, immutOverlaps, conflictAirList, permsChecked, false);
+    }
+
+    private final Vector<EncAir> forcedEncodings;
+    private final Vector<EncAir> immutableSchedule;
+    private final Vector<EncAir> mutableSchedule;
+    private final Map<DBObject, Vector<Airing>> showSetMap;
+    private final CaptureDevice[] optimumMultiNames;
+    private final Map<CaptureDevice, CaptureDevice> nameTransMap;
+    private final Map<Set<Integer>, Vector<CaptureDevice>> stationSetVecMap;
+    private final int conflict_resolution_search_depth;
+    private final long conflict_resolution_search_time;
+    private final int conflict_resolution_search_min_for_timeout;
+    private final float insane_permute_count;
+    private final boolean enforceQualities;
+    private final IntervalTree forcedTree;
+    private final IntervalTree immutTree;
+    private final IntervalTree mutTree;
+  }
+
+  /*
+   * Identifies the inputs of a conflict web search other than the encoders (those are covered by the
+   * conflictWebEncoders). The search always has the same result for the same key; except when it runs out of time.
+   */
+  private List<Object> getConflictWebKey(Vector<Vector<Airing>> conflictAirList, Vector<Airing> immutOverlaps,
+      Set<EncAir> forcedOverlaps, boolean enforceQualities)
+  {
+    List<Object> rv = new ArrayList<Object>();
+    addConflictWebKeyAirs(rv, immutOverlaps, enforceQualities);
+    for (int i = 0; i < conflictAirList.size(); i++)
+    {
+      rv.add(conflictAirList.get(i).size());
+      addConflictWebKeyAirs(rv, conflictAirList.get(i), enforceQualities);
+    }
+    Set<List<Object>> forcedKeys = new HashSet<List<Object>>();
+    for (EncAir ea : forcedOverlaps)
+      forcedKeys.add(Arrays.asList(ea.air, ea.capDev, getSchedulingStart(ea.air), getSchedulingEnd(ea.air)));
+    rv.add(forcedKeys);
+    return rv;
+  }
+
+  private void addConflictWebKeyAirs(List<Object> key, List<Airing> airs, boolean enforceQualities)
+  {
+    for (int i = 0; i < airs.size(); i++)
+    {
+      Airing air = airs.get(i);
+      key.add(air);
+      key.add(getSchedulingStart(air));
+      key.add(getSchedulingEnd(air));
+      if (enforceQualities)
+        key.add(getQualityForAiring(air));
+    }
+  }
+
+  // Describes everything about the encoders that the conflict web searches depend on
+  private List<Object> getConflictWebEncoders(EncoderSchedule[] sortedEncs, Object... limits)
+  {
+    List<Object> rv = new ArrayList<Object>();
+    rv.add(Sage.getBoolean("scheduler/enforce_qualities_in_schedule2", false));
+    rv.add(new HashSet<String>(allQualsSet));
+    rv.addAll(Arrays.asList(limits));
+    for (int i = 0; i < sortedEncs.length; i++)
+    {
+      rv.add(sortedEncs[i].capDev);
+      rv.add(new HashSet<Integer>(sortedEncs[i].stationSet));
+      rv.add(new HashSet<String>(sortedEncs[i].qualitySet));
+    }
+    return rv;
+  }
+
   private class EncoderSchedule
   {
     public EncoderSchedule(CaptureDevice inCapDev)
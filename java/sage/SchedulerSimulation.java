@@ -0,0 +1,265 @@
+/*
+ * Copyright 2015 The SageTV Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sage;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What-if scheduling for benchmarking the Scheduler. The scheduler is run over the current DB against sets of
+ * simulated encoders on a separate Scheduler object, so neither the DB nor the real schedule are changed. The base
+ * encoder set is either the configured encoders or the encoders from a file written by the scheduler_export_file
+ * option, and it can be scaled up to larger numbers of tuners to see how the scheduler copes with big tuner farms.
+ * <p>
+ * This is enabled by setting scheduler_benchmark_file, the report is written to that file after the first schedule
+ * update when SageTV starts. Each configuration is run scheduler_benchmark_runs times on the same Scheduler; so the
+ * later runs show what it costs to re-plan when nothing changed.
+ */
+final class SchedulerSimulation
+{
+  static final String BENCHMARK_FILE = "scheduler_benchmark_file";
+  // Comma separated list of the numbers of tuners to simulate on top of the base encoder set
+  static final String BENCHMARK_TUNERS = "scheduler_benchmark_tuners";
+  // A scheduler export file to take the base encoder set from instead of the configured encoders
+  static final String BENCHMARK_ENCODERS_FILE = "scheduler_benchmark_encoders_file";
+  static final String BENCHMARK_RUNS = "scheduler_benchmark_runs";
+
+  private SchedulerSimulation()
+  {
+  }
+
+  static void runBenchmark(File reportFile)
+  {
+    Map<String, Set<Integer>> baseEncoders;
+    String exportPath = Sage.get(BENCHMARK_ENCODERS_FILE, "");
+    if (exportPath.length() > 0)
+    {
+      try
+      {
+        baseEncoders = getExportEncoderStations(new File(exportPath));
+      }
+      catch (IOException e)
+      {
+        if (Sage.DBG) System.out.println("Scheduler benchmark can't read the encoders from " + exportPath + ": " + e);
+        return;
+      }
+    }
+    else
+      baseEncoders = Scheduler.getInstance().getEncoderStations();
+    if (baseEncoders.isEmpty())
+    {
+      if (Sage.DBG) System.out.println("Scheduler benchmark has no encoders to simulate");
+      return;
+    }
+
+    int runs = Math.max(1, Sage.getInt(BENCHMARK_RUNS, 3));
+    List<Result> results = new ArrayList<Result>();
+    results.addAll(Scheduler.simulate("Base", baseEncoders, runs));
+    int[] tunerCounts = parseTunerCounts(Sage.get(BENCHMARK_TUNERS, ""));
+    for (int i = 0; i < tunerCounts.length; i++)
+    {
+      results.addAll(Scheduler.simulate(tunerCounts[i] + " Tuners", scaleEncoders(baseEncoders, tunerCounts[i]),
+          runs));
+    }
+
+    PrintWriter outStream = null;
+    try
+    {
+      outStream = new PrintWriter(new BufferedWriter(new FileWriter(reportFile)));
+      outStream.println(Result.getReportHeader());
+      for (Result result : results)
+      {
+        if (Sage.DBG) System.out.println("Scheduler benchmark " + result);
+        outStream.println(result.toReportLine());
+      }
+      outStream.close();
+    }
+    catch (IOException e)
+    {
+      if (Sage.DBG) System.out.println("Error writing scheduler benchmark to " + reportFile + ": " + e);
+      if (outStream != null)
+        outStream.close();
+    }
+  }
+
+  /**
+   * Returns the channel names that were scheduled on each encoder in a scheduler export; the names of the encoders
+   * are in the same order as they were first seen in the export.
+   */
+  static Map<String, Set<String>> readExportChannels(BufferedReader in) throws IOException
+  {
+    Map<String, Set<String>> rv = new LinkedHashMap<String, Set<String>>();
+    String line;
+    while ((line = in.readLine()) != null)
+    {
+      String[] cols = line.split("\t");
+      if (cols.length < 6 || (rv.isEmpty() && "Encoder".equals(cols[0])))
+        continue;
+      Set<String> chans = rv.get(cols[0]);
+      if (chans == null)
+        rv.put(cols[0], chans = new HashSet<String>());
+      if (!"NA".equals(cols[4]))
+        chans.add(cols[4]);
+    }
+    return rv;
+  }
+
+  // The channels in the export are resolved to all of the stations in the DB with that name
+  private static Map<String, Set<Integer>> getExportEncoderStations(File exportFile) throws IOException
+  {
+    Map<String, Set<String>> encChans;
+    BufferedReader in = new BufferedReader(new FileReader(exportFile));
+    try
+    {
+      encChans = readExportChannels(in);
+    }
+    finally
+    {
+      in.close();
+    }
+    Map<String, Set<Integer>> nameStations = new LinkedHashMap<String, Set<Integer>>();
+    Channel[] chans = Wizard.getInstance().getChannels();
+    for (int i = 0; i < chans.length; i++)
+    {
+      Set<Integer> stations = nameStations.get(chans[i].getName());
+      if (stations == null)
+        nameStations.put(chans[i].getName(), stations = new HashSet<Integer>());
+      stations.add(chans[i].stationID);
+    }
+    Map<String, Set<Integer>> rv = new LinkedHashMap<String, Set<Integer>>();
+    for (Map.Entry<String, Set<String>> ent : encChans.entrySet())
+    {
+      Set<Integer> stations = new HashSet<Integer>();
+      for (String chanName : ent.getValue())
+      {
+        Set<Integer> chanStations = nameStations.get(chanName);
+        if (chanStations != null)
+          stations.addAll(chanStations);
+      }
+      rv.put(ent.getKey(), stations);
+    }
+    return rv;
+  }
+
+  /**
+   * Creates a set of numEncoders simulated encoders; they take turns receiving the stations of each of the base
+   * encoders.
+   */
+  static Map<String, Set<Integer>> scaleEncoders(Map<String, Set<Integer>> baseEncoders, int numEncoders)
+  {
+    List<Map.Entry<String, Set<Integer>>> base = new ArrayList<Map.Entry<String, Set<Integer>>>(baseEncoders.entrySet());
+    Map<String, Set<Integer>> rv = new LinkedHashMap<String, Set<Integer>>();
+    for (int i = 0; i < numEncoders && !base.isEmpty(); i++)
+    {
+      Map.Entry<String, Set<Integer>> ent = base.get(i % base.size());
+      rv.put("Simulated " + (i + 1) + " (" + ent.getKey() + ")", new HashSet<Integer>(ent.getValue()));
+    }
+    return rv;
+  }
+
+  static int[] parseTunerCounts(String str)
+  {
+    List<Integer> counts = new ArrayList<Integer>();
+    String[] toks = str.split(",");
+    for (int i = 0; i < toks.length; i++)
+    {
+      try
+      {
+        int x = Integer.parseInt(toks[i].trim());
+        if (x > 0)
+          counts.add(x);
+      }
+      catch (NumberFormatException e){}
+    }
+    int[] rv = new int[counts.size()];
+    for (int i = 0; i < rv.length; i++)
+      rv[i] = counts.get(i);
+    return rv;
+  }
+
+  /**
+   * The results of one schedule update in a simulation.
+   */
+  static final class Result
+  {
+    Result(String name, int run, int numEncoders, long scheduleTime, int conflictWebs, int cachedConflictWebs,
+        long permsChecked, int conflicts, int unresolvedConflicts, int numScheduled, int numMRs,
+        boolean mrsSchedulable, long mrTestTime, long mrPermsChecked)
+    {
+      this.name = name;
+      this.run = run;
+      this.numEncoders = numEncoders;
+      this.scheduleTime = scheduleTime;
+      this.conflictWebs = conflictWebs;
+      this.cachedConflictWebs = cachedConflictWebs;
+      this.permsChecked = permsChecked;
+      this.conflicts = conflicts;
+      this.unresolvedConflicts = unresolvedConflicts;
+      this.numScheduled = numScheduled;
+      this.numMRs = numMRs;
+      this.mrsSchedulable = mrsSchedulable;
+      this.mrTestTime = mrTestTime;
+      this.mrPermsChecked = mrPermsChecked;
+    }
+
+    static String getReportHeader()
+    {
+      return "Simulation\tRun\tEncoders\tSchedule Time\tConflict Webs\tCached Webs\tPermutations\tConflicts\t" +
+          "Unresolved\tScheduled\tManualRecords\tMR Schedulable\tMR Test Time\tMR Permutations";
+    }
+
+    String toReportLine()
+    {
+      return name + '\t' + run + '\t' + numEncoders + '\t' + scheduleTime + '\t' + conflictWebs + '\t' +
+          cachedConflictWebs + '\t' + permsChecked + '\t' + conflicts + '\t' + unresolvedConflicts + '\t' +
+          numScheduled + '\t' + numMRs + '\t' + mrsSchedulable + '\t' + mrTestTime + '\t' + mrPermsChecked;
+    }
+
+    public String toString()
+    {
+      return "SimResult[" + name + " run=" + run + " encoders=" + numEncoders + " time=" + scheduleTime +
+          "ms webs=" + conflictWebs + " cached=" + cachedConflictWebs + " perms=" + permsChecked + " conflicts=" +
+          conflicts + " unresolved=" + unresolvedConflicts + " scheduled=" + numScheduled + " MRs=" + numMRs +
+          " mrOK=" + mrsSchedulable + " mrTime=" + mrTestTime + "ms mrPerms=" + mrPermsChecked + ']';
+    }
+
+    final String name;
+    final int run;
+    final int numEncoders;
+    final long scheduleTime;
+    final int conflictWebs;
+    final int cachedConflictWebs;
+    final long permsChecked;
+    final int conflicts;
+    final int unresolvedConflicts;
+    final int numScheduled;
+    final int numMRs;
+    final boolean mrsSchedulable;
+    final long mrTestTime;
+    final long mrPermsChecked;
+  }
+}
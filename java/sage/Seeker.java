@@ -17,6 +17,8 @@ package sage;
 
 import jcifs.smb.SmbFile;
 
+import sage.media.format.ContainerFormat;
+import sage.media.format.FormatParser;
 import sage.plugin.PluginEventManager;
 
 import java.io.File;
@@ -38,6 +40,12 @@ import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /*
  * External usage of Seeker:
@@ -69,6 +77,8 @@ public class Seeker implements Hunter
   static final String SEEKER_KEY = "seeker";
 
   private static final String VALID_ROOT_IMPORT_PATHS = "seeker/valid_root_import_paths";
+  // Watch the library import directories for changes instead of scanning them periodically
+  private static final String WATCH_LIBRARY_DIRS = "seeker/watch_library_dirs";
 
   private static final long MILLIS_PER_HOUR = 60*60000L;
 
@@ -993,6 +1003,8 @@ public class Seeker implements Hunter
             if (Sage.DBG) System.out.println("Seeker System.gc() done");
           }
         }
+        if (!disableLibraryScanning)
+          updateLibraryWatcher();
         Catbert.distributeHookToAll("SystemStatusChanged", Pooler.EMPTY_OBJECT_ARRAY);
       }
     }, "LibraryImporter", Thread.MIN_PRIORITY);
@@ -1024,6 +1036,19 @@ public class Seeker implements Hunter
   }
 
   private void importLibraryFiles()
+  {
+    ExecutorService workers = createImportWorkers();
+    try
+    {
+      importLibraryFiles(workers);
+    }
+    finally
+    {
+      workers.shutdown();
+    }
+  }
+
+  private void importLibraryFiles(ExecutorService workers)
   {
     // Check to see if a full reindex has been set to go
     if (!performFullContentReindex && Sage.getBoolean("force_full_content_reindex", false) && !Sage.getBoolean("disable_full_content_reindex", false))
@@ -1238,26 +1263,15 @@ public class Seeker implements Hunter
       // If we need to restart the lib scan then just bail
       if (needsAnImport || disableLibraryScanning) return;
 
-      // This avoids importing from paths that are not in the allowed roots
-      if (validRootImportPaths.length > 0)
-      {
-        boolean foundPath = false;
-        for (int j = 0; j < validRootImportPaths.length && !foundPath; j++)
-        {
-          if (Sage.WINDOWS_OS ? currArchiveDirs[i].getAbsolutePath().toLowerCase().startsWith(validRootImportPaths[j].toLowerCase()) :
-            currArchiveDirs[i].getAbsolutePath().startsWith(validRootImportPaths[j]))
-          {
-            foundPath = true;
-          }
-        }
-        if (!foundPath)
-          continue;
-      }
+      if (!isValidImportRoot(currArchiveDirs[i]))
+        continue;
       if (Sage.DBG) System.out.println("Starting to scan lib import root: " + currArchiveDirs[i]);
       if (currArchiveDirs[i].isDirectory())
       {
-        importLibraryFiles(currArchiveDirs[i], currMasks[i], "", accFileSet, remAccFileSet,
-            newlyAddedFiles, accountedFileMap, myFiles, playlistsToProcess);
+        List<ImportEntry> entries = walkImportDir(currArchiveDirs[i], currMasks[i], "", workers);
+        if (Sage.DBG) System.out.println("Found " + entries.size() + " library files to check in: " + currArchiveDirs[i]);
+        importLibraryEntries(entries, accFileSet, remAccFileSet, newlyAddedFiles, accountedFileMap, myFiles,
+            playlistsToProcess, workers);
       }
       else
       {
@@ -1266,15 +1280,7 @@ public class Seeker implements Hunter
       }
     }
     // Now that we're done importing files, we can analyze the playlists
-    for (int i = 0; i < playlistsToProcess.size(); i++)
-    {
-      Object[] currData = playlistsToProcess.get(i);
-      if (Playlist.importPlaylist((File)currData[0], (String)currData[1]) == null)
-      {
-        // Don't keep trying to reimport a bad playlist
-        ignoreFiles.add((String) currData[2]);
-      }
-    }
+    importPlaylists(playlistsToProcess);
     if (Sage.MAC_OS_X && Sage.getBoolean("macintosh/import_photos_from_iphoto", true))
     {
       importIPhotoFiles(accFileSet, remAccFileSet, newlyAddedFiles, accountedFileMap);
@@ -1374,14 +1380,7 @@ public class Seeker implements Hunter
       }
       if (offline)
         continue;
-      if (Sage.DBG) System.out.println("Seeker removing file because it's not in the library import path anymore:" + currMF);
-      contentCleared = (contentCleared || !(currMF.getContentAiring() instanceof MediaFile.FakeAiring));
-      wiz.removeMediaFile(currMF);
-      // We do this to ensure the Show/Airing objects are accessible in the event call
-      if (currMF.getContentAiring() != null)
-        currMF.getContentAiring().getShow();
-      PluginEventManager.postEvent(PluginEventManager.MEDIA_FILE_REMOVED,
-          new Object[] { PluginEventManager.VAR_MEDIAFILE, currMF, PluginEventManager.VAR_REASON, "ImportLost" });
+      contentCleared |= removeLostImport(currMF);
     }
     if (contentCleared)
     {
@@ -1408,181 +1407,730 @@ public class Seeker implements Hunter
     performFullContentReindex = performPicLibReindex = false;
   }
 
-  private void importLibraryFiles(File importDir, int importMask, String namePrefix,
-      Set<String> accountedFiles, Set<String> remainingAccountedFiles,
-      List<MediaFile> newlyAddedFiles, Map<String, MediaFile> accountedFileMap,
-      MediaFile[] startMediaFileList, List<Object[]> playlistsToProcess)
+  // This avoids importing from paths that are not in the allowed roots
+  private boolean isValidImportRoot(File importRoot)
   {
-    if (prepped)
-      controlImportCPUUsage();
-
-    // If this is a video storage directory then skip it so we don't double import (if it's video)
-    File[] vidDirs = getVideoStoreDirectories();
-    for (int i = 0; i < vidDirs.length; i++)
-      if (vidDirs[i].equals(importDir))
+    if (validRootImportPaths.length == 0)
+      return true;
+    for (int j = 0; j < validRootImportPaths.length; j++)
+    {
+      if (Sage.WINDOWS_OS ? importRoot.getAbsolutePath().toLowerCase().startsWith(validRootImportPaths[j].toLowerCase()) :
+        importRoot.getAbsolutePath().startsWith(validRootImportPaths[j]))
       {
-        importMask = importMask & ~VIDEO_DIR_MASK;
-        if (importMask == 0)
-        {
-          if (Sage.DBG) System.out.println("Skipping video import dir that's also a recording dir:" + vidDirs[i]);
-          return;
-        }
+        return true;
       }
+    }
+    return false;
+  }
 
-    String[] testFiles = importDir.list();
-    String importDirPath = importDir.getAbsolutePath();
-    if (!importDirPath.endsWith(File.separator))
-      importDirPath += File.separatorChar;
-    // Sort the file list so that we'll hit them in ascending order
-    if (testFiles != null)
-      Arrays.sort(testFiles);
-    for (int i = 0; (testFiles != null) && i < testFiles.length; i++)
-    {
-      // If we need to restart the lib scan then just bail
-      if (needsAnImport || disableLibraryScanning) return;
+  private boolean removeLostImport(MediaFile currMF)
+  {
+    if (Sage.DBG) System.out.println("Seeker removing file because it's not in the library import path anymore:" + currMF);
+    boolean contentCleared = !(currMF.getContentAiring() instanceof MediaFile.FakeAiring);
+    wiz.removeMediaFile(currMF);
+    // We do this to ensure the Show/Airing objects are accessible in the event call
+    if (currMF.getContentAiring() != null)
+      currMF.getContentAiring().getShow();
+    PluginEventManager.postEvent(PluginEventManager.MEDIA_FILE_REMOVED,
+        new Object[] { PluginEventManager.VAR_MEDIAFILE, currMF, PluginEventManager.VAR_REASON, "ImportLost" });
+    return contentCleared;
+  }
 
-      if (testFiles[i] == null || testFiles[i].length() == 0)
+  private void importPlaylists(List<Object[]> playlistsToProcess)
+  {
+    for (int i = 0; i < playlistsToProcess.size(); i++)
+    {
+      Object[] currData = playlistsToProcess.get(i);
+      if (Playlist.importPlaylist((File)currData[0], (String)currData[1]) == null)
       {
-        if (Sage.DBG) System.out.println("Skipping null file in import directory: " + importDir);
-        continue;
+        // Don't keep trying to reimport a bad playlist
+        ignoreFiles.add((String) currData[2]);
       }
-      String currFilename = importDirPath + testFiles[i];
-      if (ignoreFiles.contains(currFilename))
+    }
+  }
+
+  private boolean isLibraryWatched()
+  {
+    LibraryWatcher currWatcher = libraryWatcher;
+    return currWatcher != null && currWatcher.isAlive() && libraryWatchComplete;
+  }
+
+  /*
+   * Starts watching the import directories for changes if that's enabled. This is done after each library scan so
+   * it's watching the current set of import directories and it already knows about everything in them. The periodic
+   * library scans aren't needed while all of them are being watched; unless some are offline or on network file
+   * systems, changes made to those from other machines aren't seen by the watcher.
+   */
+  private void updateLibraryWatcher()
+  {
+    if (!Sage.getBoolean(WATCH_LIBRARY_DIRS, false))
+    {
+      if (libraryWatcher != null)
       {
-        remainingAccountedFiles.remove(currFilename);
+        libraryWatcher.close();
+        libraryWatcher = null;
+      }
+      return;
+    }
+    List<File> roots = new ArrayList<File>();
+    boolean allOnline = true;
+    boolean allLocal = true;
+    File[] currArchiveDirs = archiveDirs;
+    for (int i = 0; i < currArchiveDirs.length; i++)
+    {
+      if (!isValidImportRoot(currArchiveDirs[i]))
         continue;
+      if (currArchiveDirs[i].isDirectory())
+      {
+        roots.add(currArchiveDirs[i]);
+        if (!LibraryWatcher.isLocalFileSystem(currArchiveDirs[i]))
+          allLocal = false;
       }
-      // Speed up the hidden file test on Linux
-      if (Sage.LINUX_OS && testFiles[i].charAt(0) == '.') continue;
-      File currFile = new File(currFilename);
-      if (!Sage.LINUX_OS && currFile.isHidden()) continue; // ignore hidden directories as well
-      if (currFile.isDirectory())
+      else
+        allOnline = false;
+    }
+    try
+    {
+      if (libraryWatcher == null || !libraryWatcher.isAlive())
       {
-        // Check for a DVD volume
-        boolean nestedVolume = testFiles[i].equalsIgnoreCase(DVD_VOLUME_SECRET) ||
-            testFiles[i].equalsIgnoreCase(BLURAY_VOLUME_SECRET);
-        if (nestedVolume ||
-            new File(currFile, "VIDEO_TS.IFO").isFile() ||
-            (new File(currFile, "index.bdmv").isFile() && new File(currFile, "MovieObject.bdmv").isFile()))
+        libraryWatcher = new LibraryWatcher(new LibraryWatcher.Listener()
         {
-          if ((importMask & VIDEO_DIR_MASK) != 0)
+          public void filesChanged(Set<File> changed, Set<File> deleted)
           {
-            if (accountedFiles.contains(currFilename))
-            {
-              checkForDataReimport(namePrefix, accountedFileMap.get(currFile.getAbsolutePath()));
-              remainingAccountedFiles.remove(currFilename);
-              if (nestedVolume)
-                return;
-              else
-                continue;
-            }
-            MediaFile addedFile = wiz.addMediaFile(currFile, namePrefix, MediaFile.ACQUISITION_AUTOMATIC_BY_IMPORT_PATH);
-            if (addedFile != null)
-            {
-              if (Sage.DBG) System.out.println("New Library DVD/BluRay " + addedFile);
-              newlyAddedFiles.add(addedFile);
-              PluginEventManager.postEvent(PluginEventManager.MEDIA_FILE_IMPORTED,
-                  new Object[] { PluginEventManager.VAR_MEDIAFILE, addedFile });
-            }
+            applyLibraryChanges(changed, deleted);
           }
-          if (nestedVolume)
-            return;
-          else
+
+          public void eventsLost()
+          {
+            libraryImportScan();
+          }
+        }, Sage.getLong("seeker/library_watch_settle_time", 5000));
+        libraryWatcher.start();
+      }
+      if (!libraryWatcher.setRoots(roots.toArray(new File[roots.size()])))
+      {
+        if (Sage.DBG) System.out.println("Seeker can't watch all of the library import directories; periodic library scans will be used instead");
+        libraryWatcher.close();
+        libraryWatcher = null;
+        libraryWatchComplete = false;
+        return;
+      }
+      libraryWatchComplete = allOnline && allLocal;
+      if (Sage.DBG) System.out.println("Seeker is watching " + libraryWatcher.getNumWatchedDirs() +
+          " library directories for changes" + (allOnline ? "" : "; periodic scans will continue since some import roots are offline") +
+          (allLocal ? "" : "; periodic scans will continue since some import roots are on network file systems"));
+    }
+    catch (IOException e)
+    {
+      if (Sage.DBG) System.out.println("Seeker can't watch the library import directories of:" + e);
+      libraryWatcher = null;
+      libraryWatchComplete = false;
+    }
+  }
+
+  // Returns the import root that this path is under, or null if it's not in the library
+  private File getImportRoot(File f, File[] roots)
+  {
+    String path = f.getAbsolutePath();
+    File rv = null;
+    for (int i = 0; i < roots.length; i++)
+    {
+      String rootPath = roots[i].getAbsolutePath();
+      if ((path.equals(rootPath) || path.startsWith(rootPath.endsWith(File.separator) ? rootPath : rootPath + File.separatorChar)) &&
+          (rv == null || rootPath.length() > rv.getAbsolutePath().length()))
+        rv = roots[i];
+    }
+    return rv;
+  }
+
+  private static boolean isVolumeDir(File dir)
+  {
+    String name = dir.getName();
+    return name.equalsIgnoreCase(DVD_VOLUME_SECRET) || name.equalsIgnoreCase(BLURAY_VOLUME_SECRET) ||
+        new File(dir, "VIDEO_TS.IFO").isFile() ||
+        (new File(dir, "index.bdmv").isFile() && new File(dir, "MovieObject.bdmv").isFile());
+  }
+
+  /*
+   * Returns what needs to be imported again for a change to this path in the library; which is the path itself unless
+   * it's part of a DVD or BluRay volume, then it's the volume. Returns null if the path is somewhere the library scan
+   * doesn't look.
+   */
+  private File getLibraryChangeTarget(File root, File f)
+  {
+    List<File> chain = new ArrayList<File>();
+    for (File curr = f; curr != null && !curr.equals(root); curr = curr.getParentFile())
+      chain.add(0, curr);
+    if (chain.isEmpty())
+      return null;
+    for (int i = 0; i < chain.size(); i++)
+    {
+      File curr = chain.get(i);
+      if (Sage.LINUX_OS ? curr.getName().startsWith(".") : curr.isHidden())
+        return null;
+      if (i == chain.size() - 1)
+        break;
+      if (isVolumeDir(curr))
+        return curr;
+      // The scan of a directory with a nested volume in it stops at the volume
+      String[] kids = curr.list();
+      for (int j = 0; kids != null && j < kids.length; j++)
+      {
+        if (kids[j].equalsIgnoreCase(DVD_VOLUME_SECRET) || kids[j].equalsIgnoreCase(BLURAY_VOLUME_SECRET))
+        {
+          File nested = new File(curr, kids[j]);
+          if (nested.isDirectory())
+            return nested;
+        }
+      }
+    }
+    return f;
+  }
+
+  /*
+   * Applies the changes to the import directories that the LibraryWatcher found without scanning the whole library.
+   * Each changed file is checked the same way the library scan would check it, and changed directories are walked.
+   */
+  private void applyLibraryChanges(Set<File> changed, Set<File> deleted)
+  {
+    if (Sage.client || disableLibraryScanning) return;
+    synchronized (importLock)
+    {
+      // If a scan is going on now then wait for it to finish
+      while (currentlyImporting)
+      {
+        try { importLock.wait(5000);}catch(InterruptedException e){}
+      }
+      currentlyImporting = true;
+    }
+    ExecutorService workers = null;
+    try
+    {
+      if (Sage.DBG) System.out.println("Seeker applying library changes: changed=" + changed.size() + " deleted=" + deleted.size());
+      List<File> rootList = new ArrayList<File>();
+      List<Integer> rootMasks = new ArrayList<Integer>();
+      File[] currArchiveDirs = archiveDirs;
+      int[] currMasks = archiveDirMasks;
+      for (int i = 0; i < currArchiveDirs.length && i < currMasks.length; i++)
+      {
+        if (isValidImportRoot(currArchiveDirs[i]))
+        {
+          rootList.add(currArchiveDirs[i]);
+          rootMasks.add(currMasks[i]);
+        }
+      }
+      File[] roots = rootList.toArray(new File[rootList.size()]);
+
+      // Files that were moved around inside the library are removed from their old path first
+      boolean contentCleared = false;
+      if (!deleted.isEmpty())
+      {
+        Set<String> deadPaths = new HashSet<String>();
+        for (File f : deleted)
+          deadPaths.add(f.getAbsolutePath());
+        MediaFile[] mfs = wiz.getFiles();
+        for (int i = 0; i < mfs.length; i++)
+        {
+          MediaFile currMF = mfs[i];
+          if (currMF.generalType != MediaFile.MEDIAFILE_IMPORTED ||
+              currMF.acquisitionTech != MediaFile.ACQUISITION_AUTOMATIC_BY_IMPORT_PATH || !currMF.isLocalFile())
+            continue;
+          File currFile = currMF.getFile(0);
+          if (currFile == null)
             continue;
+          File root = getImportRoot(currFile, roots);
+          if (root == null || !root.isDirectory() || failedMounts.contains(root.toString()))
+            continue;
+          boolean dead = false;
+          for (File curr = currFile; curr != null && !curr.equals(root) && !dead; curr = curr.getParentFile())
+            dead = deadPaths.contains(curr.getAbsolutePath());
+          // use exists() instead of isFile() so we detect DVD folders as well
+          if (dead && !currFile.exists())
+            contentCleared |= removeLostImport(currMF);
         }
-        // Ignore directories that start with a '.' character (updated to be Linux only)
-        if (Sage.LINUX_OS && testFiles[i].length() > 0 && testFiles[i].charAt(0) == '.')
+      }
+
+      File[] vidDirs = getVideoStoreDirectories();
+      List<File> changedFiles = new ArrayList<File>(changed);
+      Collections.sort(changedFiles);
+      Set<File> targets = new HashSet<File>();
+      List<ImportWalkItem> walk = new ArrayList<ImportWalkItem>();
+      workers = createImportWorkers();
+      for (File f : changedFiles)
+      {
+        File root = getImportRoot(f, roots);
+        if (root == null)
           continue;
-        importLibraryFiles(currFile, importMask, namePrefix + testFiles[i] + '/', accountedFiles,
-            remainingAccountedFiles, newlyAddedFiles, accountedFileMap, startMediaFileList, playlistsToProcess);
-        continue;
+        File target = getLibraryChangeTarget(root, f);
+        if (target == null || !targets.add(target) || !target.exists())
+          continue;
+        // Give files that failed before another chance since they've changed
+        ignoreFiles.remove(target.getAbsolutePath());
+        File parent = target.getParentFile();
+        int mask = rootMasks.get(rootList.indexOf(root));
+        StringBuilder namePrefix = new StringBuilder();
+        for (File curr = parent; curr != null; curr = curr.getParentFile())
+        {
+          mask = getImportDirMask(curr, mask, vidDirs);
+          if (curr.equals(root))
+            break;
+          namePrefix.insert(0, curr.getName() + '/');
+        }
+        if (mask == 0)
+          continue;
+        MediaFile mf = wiz.getFileForFilePath(target);
+        if (mf != null)
+        {
+          if (!target.isDirectory())
+            mf.reinitializeMetadata(true, false, namePrefix.toString());
+          continue;
+        }
+        String parentPath = parent.getAbsolutePath();
+        if (!parentPath.endsWith(File.separator))
+          parentPath += File.separatorChar;
+        walkImportDirEntry(parentPath, target.getName(), mask, namePrefix.toString(), vidDirs, workers, walk);
       }
-      if (testFiles[i].indexOf('.') == -1) continue;
-      String ext = testFiles[i].substring(testFiles[i].lastIndexOf('.')).toLowerCase();
-      if ((((importMask & VIDEO_DIR_MASK) == 0) || (!vidLibFileExts.contains(ext) && !playlistFileExts.contains(ext))) &&
-          (((importMask & MUSIC_DIR_MASK) == 0) || (!musicLibFileExts.contains(ext) && !playlistFileExts.contains(ext))) &&
-          (((importMask & PICTURE_DIR_MASK) == 0) || !picLibFileExts.contains(ext)))
-        continue;
-      if (playlistFileExts.contains(ext) && ((importMask & (MUSIC_DIR_MASK | VIDEO_DIR_MASK)) != 0))
+      List<ImportEntry> entries = new ArrayList<ImportEntry>();
+      flattenImportWalk(walk, entries);
+
+      Map<String, MediaFile> accountedFileMap = new HashMap<String, MediaFile>();
+      for (ImportEntry entry : entries)
       {
-        playlistsToProcess.add(new Object[] { currFile, namePrefix, currFilename });
-        continue;
+        MediaFile mf = wiz.getFileForFilePath(entry.file);
+        if (mf != null)
+          accountedFileMap.put(entry.path, mf);
       }
-      // Do this after the check so if they change the import type of a path its OK
-      if (accountedFiles.contains(currFilename))
+      List<MediaFile> newlyAddedFiles = new Vector<MediaFile>();
+      List<Object[]> playlistsToProcess = new ArrayList<Object[]>();
+      importLibraryEntries(entries, new HashSet<String>(accountedFileMap.keySet()), new HashSet<String>(), newlyAddedFiles,
+          accountedFileMap, wiz.getFiles(), playlistsToProcess, workers);
+      importPlaylists(playlistsToProcess);
+
+      if (contentCleared)
       {
-        checkForDataReimport(namePrefix, accountedFileMap.get(currFile.getAbsolutePath()));
-        remainingAccountedFiles.remove(currFilename);
-        continue;
+        // We need to do a DB update to clear the bogus content
+        Wizard.getInstance().clearMaintenanceTime();
+        EPG.getInstance().kick();
       }
-      long currFileLength = currFile.length();
-      // Skip files that are too short in length
-      if (currFileLength == 0 ||
-          (((currFileLength < minPicImportSize && !".jpg".equals(ext) && !".jpeg".equals(ext)) ||
-              (currFileLength < minJpgImportSize && !".gif".equals(ext) && !".png".equals(ext))) &&
-              ((importMask & PICTURE_DIR_MASK) != 0) && picLibFileExts.contains(ext)) ||
-              (currFileLength < minMusicImportSize && ((importMask & MUSIC_DIR_MASK) != 0) && musicLibFileExts.contains(ext)))
-        continue;
-      // Make sure we can access the file. i.e. something else isn't still writing it
-      if (!checkFileAccess(currFile))
+      if ((!newlyAddedFiles.isEmpty() || contentCleared) && UIManager.getLocalUI() != null)
+        Catbert.distributeHookToAll("MediaFilesImported", new Object[] { newlyAddedFiles.toArray(new MediaFile[0]) });
+    }
+    catch (InterruptedException e)
+    {
+    }
+    catch (ExecutionException e)
+    {
+      if (Sage.DBG) System.out.println("ERROR applying library changes of:" + e.getCause());
+      if (Sage.DBG) e.getCause().printStackTrace();
+    }
+    finally
+    {
+      if (workers != null)
+        workers.shutdown();
+      boolean rescan;
+      synchronized (importLock)
       {
-        if (Sage.DBG) System.out.println("Ignoring file for import because we can't get access to it:" + currFile);
-        continue;
+        currentlyImporting = false;
+        rescan = needsAnImport;
+        importLock.notifyAll();
       }
-      if (Sage.DBG) System.out.println("testFile=" + testFiles[i]);
-      if (Sage.getBoolean("advanced_video_file_recovery", false))
+      // Someone asked for a scan while we were doing this
+      if (rescan)
+        libraryImportScan();
+    }
+  }
+
+  // Something in an import directory that the library import has to look at
+  private static class ImportEntry
+  {
+    ImportEntry(int type, File file, String path, String name, String ext, String namePrefix, int importMask)
+    {
+      this.type = type;
+      this.file = file;
+      this.path = path;
+      this.name = name;
+      this.ext = ext;
+      this.namePrefix = namePrefix;
+      this.importMask = importMask;
+    }
+
+    final int type;
+    final File file;
+    final String path;
+    final String name;
+    final String ext;
+    final String namePrefix;
+    final int importMask;
+  }
+
+  // A format that was detected ahead of the import, with the size and time of the file it was detected from
+  private static class PrefetchedFormat
+  {
+    PrefetchedFormat(long length, long lastModified, ContainerFormat format)
+    {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.format = format;
+    }
+
+    final long length;
+    final long lastModified;
+    final ContainerFormat format;
+  }
+
+  private static final int IMPORT_FILE = 0;
+  private static final int IMPORT_VOLUME = 1; // DVD or BluRay folder
+  private static final int IMPORT_PLAYLIST = 2;
+
+  // Either an entry or the walk of a sub directory; these keep the entries in the same order as a walk on one thread
+  private static class ImportWalkItem
+  {
+    ImportWalkItem(ImportEntry entry, Future<List<ImportWalkItem>> subDir)
+    {
+      this.entry = entry;
+      this.subDir = subDir;
+    }
+
+    final ImportEntry entry;
+    final Future<List<ImportWalkItem>> subDir;
+  }
+
+  // Lists one import directory; the directories under it are walked as separate tasks on the import workers
+  private class ImportDirWalk implements Callable<List<ImportWalkItem>>
+  {
+    ImportDirWalk(File importDir, int importMask, String namePrefix, File[] vidDirs, ExecutorService workers)
+    {
+      this.importDir = importDir;
+      this.importMask = importMask;
+      this.namePrefix = namePrefix;
+      this.vidDirs = vidDirs;
+      this.workers = workers;
+    }
+
+    public List<ImportWalkItem> call()
+    {
+      List<ImportWalkItem> rv = new ArrayList<ImportWalkItem>();
+      if (needsAnImport || disableLibraryScanning) return rv;
+      if (prepped)
+        controlImportCPUUsage();
+      int mask = getImportDirMask(importDir, importMask, vidDirs);
+      if (mask == 0)
       {
-        MediaFile matchFile = doAdvancedFileRecovery(startMediaFileList, currFile);
-        if (matchFile != null)
+        if (Sage.DBG) System.out.println("Skipping video import dir that's also a recording dir:" + importDir);
+        return rv;
+      }
+
+      String[] testFiles = importDir.list();
+      String importDirPath = importDir.getAbsolutePath();
+      if (!importDirPath.endsWith(File.separator))
+        importDirPath += File.separatorChar;
+      // Sort the file list so that we'll hit them in ascending order
+      if (testFiles != null)
+        Arrays.sort(testFiles);
+      for (int i = 0; (testFiles != null) && i < testFiles.length; i++)
+      {
+        // If we need to restart the lib scan then just bail
+        if (needsAnImport || disableLibraryScanning) return rv;
+
+        if (testFiles[i] == null || testFiles[i].length() == 0)
         {
-          // We found an already existing import file which matches this path and no longer exists; so use that instead
-          newlyAddedFiles.add(matchFile);
+          if (Sage.DBG) System.out.println("Skipping null file in import directory: " + importDir);
           continue;
         }
+        if (!walkImportDirEntry(importDirPath, testFiles[i], mask, namePrefix, vidDirs, workers, rv))
+          break;
       }
-      // Check for preservation of metadata; only relative for video files;
-      // do this before we add the file so we can correct modification timestamps on files
-      Airing air = null;
-      if ((importMask & VIDEO_DIR_MASK) == VIDEO_DIR_MASK && !Sage.getBoolean("seeker/ignore_airing_ids_in_imported_filenames", false))
+      return rv;
+    }
+
+    private final File importDir;
+    private final int importMask;
+    private final String namePrefix;
+    private final File[] vidDirs;
+    private final ExecutorService workers;
+  }
+
+  // If this is a video storage directory then skip videos in it so we don't double import
+  private static int getImportDirMask(File importDir, int importMask, File[] vidDirs)
+  {
+    for (int i = 0; i < vidDirs.length; i++)
+      if (vidDirs[i].equals(importDir))
+        return importMask & ~VIDEO_DIR_MASK;
+    return importMask;
+  }
+
+  /*
+   * Looks at one file in an import directory, anything that needs to be imported or checked is added to the walk.
+   * Directories are walked on the import workers. Returns false if the rest of the directory should be skipped
+   * because it's part of a DVD or BluRay volume.
+   */
+  private boolean walkImportDirEntry(String importDirPath, String name, int importMask, String namePrefix,
+      File[] vidDirs, ExecutorService workers, List<ImportWalkItem> rv)
+  {
+    String currFilename = importDirPath + name;
+    // Speed up the hidden file test on Linux
+    if (Sage.LINUX_OS && name.charAt(0) == '.') return true;
+    File currFile = new File(currFilename);
+    if (!Sage.LINUX_OS && currFile.isHidden()) return true; // ignore hidden directories as well
+    if (currFile.isDirectory())
+    {
+      // Check for a DVD volume
+      boolean nestedVolume = name.equalsIgnoreCase(DVD_VOLUME_SECRET) || name.equalsIgnoreCase(BLURAY_VOLUME_SECRET);
+      if (nestedVolume ||
+          new File(currFile, "VIDEO_TS.IFO").isFile() ||
+          (new File(currFile, "index.bdmv").isFile() && new File(currFile, "MovieObject.bdmv").isFile()))
+      {
+        if ((importMask & VIDEO_DIR_MASK) != 0)
+          rv.add(new ImportWalkItem(new ImportEntry(IMPORT_VOLUME, currFile, currFilename, name, null, namePrefix,
+              importMask), null));
+        return !nestedVolume;
+      }
+      rv.add(new ImportWalkItem(null, workers.submit(new ImportDirWalk(currFile, importMask, namePrefix + name + '/',
+          vidDirs, workers))));
+      return true;
+    }
+    if (name.indexOf('.') == -1) return true;
+    String ext = name.substring(name.lastIndexOf('.')).toLowerCase();
+    if ((((importMask & VIDEO_DIR_MASK) == 0) || (!vidLibFileExts.contains(ext) && !playlistFileExts.contains(ext))) &&
+        (((importMask & MUSIC_DIR_MASK) == 0) || (!musicLibFileExts.contains(ext) && !playlistFileExts.contains(ext))) &&
+        (((importMask & PICTURE_DIR_MASK) == 0) || !picLibFileExts.contains(ext)))
+      return true;
+    int type = (playlistFileExts.contains(ext) && ((importMask & (MUSIC_DIR_MASK | VIDEO_DIR_MASK)) != 0)) ?
+        IMPORT_PLAYLIST : IMPORT_FILE;
+    rv.add(new ImportWalkItem(new ImportEntry(type, currFile, currFilename, name, ext, namePrefix, importMask), null));
+    return true;
+  }
+
+  // Waits for the walk to finish and adds everything it found to the list in order
+  private void flattenImportWalk(List<ImportWalkItem> walk, List<ImportEntry> rv) throws InterruptedException,
+      ExecutionException
+  {
+    for (ImportWalkItem item : walk)
+    {
+      if (item.entry != null)
+        rv.add(item.entry);
+      else
+        flattenImportWalk(item.subDir.get(), rv);
+    }
+  }
+
+  private List<ImportEntry> walkImportDir(File importDir, int importMask, String namePrefix, ExecutorService workers)
+  {
+    List<ImportEntry> rv = new ArrayList<ImportEntry>();
+    try
+    {
+      flattenImportWalk(Collections.singletonList(new ImportWalkItem(null, workers.submit(new ImportDirWalk(
+          importDir, importMask, namePrefix, getVideoStoreDirectories(), workers)))), rv);
+    }
+    catch (InterruptedException e)
+    {
+      rv.clear();
+    }
+    catch (ExecutionException e)
+    {
+      if (Sage.DBG) System.out.println("ERROR walking library import directory " + importDir + " of:" + e.getCause());
+      if (Sage.DBG) e.getCause().printStackTrace();
+    }
+    return rv;
+  }
+
+  private ExecutorService createImportWorkers()
+  {
+    int numThreads = Math.max(1, Sage.getInt("seeker/library_import_threads",
+        Math.min(4, Runtime.getRuntime().availableProcessors())));
+    return Executors.newFixedThreadPool(numThreads, new ThreadFactory()
+    {
+      @Override
+      public Thread newThread(Runnable r)
       {
-        try
+        Thread newThread = new Thread(r);
+        newThread.setName("LibraryImportWorker");
+        newThread.setDaemon(true);
+        newThread.setPriority(Thread.MIN_PRIORITY);
+        return newThread;
+      }
+    });
+  }
+
+  /*
+   * Imports or checks all of the entries from a walk of the import directories. The DB is updated on this thread in
+   * the same order as the entries, but the formats of the new files are detected ahead of time on the import workers
+   * since that's the slow part of importing them. A detected format is only used if the file was accessible and
+   * hasn't changed since it was detected.
+   */
+  private void importLibraryEntries(List<ImportEntry> entries, Set<String> accountedFiles,
+      Set<String> remainingAccountedFiles, List<MediaFile> newlyAddedFiles, Map<String, MediaFile> accountedFileMap,
+      MediaFile[] startMediaFileList, List<Object[]> playlistsToProcess, ExecutorService workers)
+  {
+    int lookahead = Math.max(1, Sage.getInt("seeker/library_import_format_lookahead", 16));
+    List<Future<PrefetchedFormat>> formats = new ArrayList<Future<PrefetchedFormat>>(entries.size());
+    for (int i = 0; i < entries.size(); i++)
+    {
+      // If we need to restart the lib scan then just bail
+      if (needsAnImport || disableLibraryScanning) break;
+      while (formats.size() < Math.min(entries.size(), i + lookahead))
+      {
+        final ImportEntry entry = entries.get(formats.size());
+        if (entry.type == IMPORT_FILE && !accountedFiles.contains(entry.path) && !ignoreFiles.contains(entry.path))
         {
-          String name = currFile.getName();
-          int idx1 = name.lastIndexOf('-');
-          if (idx1 != -1)
+          formats.add(workers.submit(new Callable<PrefetchedFormat>()
           {
-            int idx2 = name.lastIndexOf('-', idx1 - 1);
-            if (idx2 != -1)
+            public PrefetchedFormat call()
             {
-              int airingID = Integer.parseInt(name.substring(idx2 + 1, idx1));
-              air = wiz.getAiringForID(airingID);
+              if (needsAnImport || disableLibraryScanning || !checkFileAccess(entry.file))
+                return null;
+              long length = entry.file.length();
+              long lastModified = entry.file.lastModified();
+              return new PrefetchedFormat(length, lastModified, FormatParser.getFileFormat(entry.file));
             }
-          }
-        }
-        catch (Exception nfe){}
-        if (air != null && air.isTV())
-        {
-          if (Sage.DBG) System.out.println("Autoupdated reimported MediaFile timestamp for airing info air=" + air);
-          currFile.setLastModified(air.getEndTime());
+          }));
         }
+        else
+          formats.add(null);
+      }
+      importLibraryEntry(entries.get(i), formats.get(i), accountedFiles, remainingAccountedFiles, newlyAddedFiles,
+          accountedFileMap, startMediaFileList, playlistsToProcess);
+      formats.set(i, null);
+    }
+    for (int i = 0; i < formats.size(); i++)
+    {
+      if (formats.get(i) != null)
+        formats.get(i).cancel(false);
+    }
+  }
+
+  private void importLibraryEntry(ImportEntry entry, Future<PrefetchedFormat> format, Set<String> accountedFiles,
+      Set<String> remainingAccountedFiles, List<MediaFile> newlyAddedFiles, Map<String, MediaFile> accountedFileMap,
+      MediaFile[] startMediaFileList, List<Object[]> playlistsToProcess)
+  {
+    String currFilename = entry.path;
+    File currFile = entry.file;
+    String namePrefix = entry.namePrefix;
+    int importMask = entry.importMask;
+    if (ignoreFiles.contains(currFilename))
+    {
+      remainingAccountedFiles.remove(currFilename);
+      return;
+    }
+    if (entry.type == IMPORT_VOLUME)
+    {
+      if (accountedFiles.contains(currFilename))
+      {
+        checkForDataReimport(namePrefix, accountedFileMap.get(currFile.getAbsolutePath()));
+        remainingAccountedFiles.remove(currFilename);
+        return;
       }
-      // This'll return null if it's a failed add
       MediaFile addedFile = wiz.addMediaFile(currFile, namePrefix, MediaFile.ACQUISITION_AUTOMATIC_BY_IMPORT_PATH);
       if (addedFile != null)
       {
-        if (Sage.DBG) System.out.println("New Library File " + addedFile);
+        if (Sage.DBG) System.out.println("New Library DVD/BluRay " + addedFile);
         newlyAddedFiles.add(addedFile);
-        if ((addedFile.isVideo() || addedFile.isTV()) && air != null && air.isTV())
-        {
-          if (Sage.DBG) System.out.println("Autoupdated airing info for imported mediafile air=" + air + " mf=" + addedFile);
-          addedFile.setInfoAiring(air);
-        }
         PluginEventManager.postEvent(PluginEventManager.MEDIA_FILE_IMPORTED,
             new Object[] { PluginEventManager.VAR_MEDIAFILE, addedFile });
       }
-      else
-        ignoreFiles.add(currFilename);
+      return;
     }
+    if (entry.type == IMPORT_PLAYLIST)
+    {
+      playlistsToProcess.add(new Object[] { currFile, namePrefix, currFilename });
+      return;
+    }
+    String ext = entry.ext;
+    // Do this after the check so if they change the import type of a path its OK
+    if (accountedFiles.contains(currFilename))
+    {
+      checkForDataReimport(namePrefix, accountedFileMap.get(currFile.getAbsolutePath()));
+      remainingAccountedFiles.remove(currFilename);
+      return;
+    }
+    long currFileLength = currFile.length();
+    // Skip files that are too short in length
+    if (currFileLength == 0 ||
+        (((currFileLength < minPicImportSize && !".jpg".equals(ext) && !".jpeg".equals(ext)) ||
+            (currFileLength < minJpgImportSize && !".gif".equals(ext) && !".png".equals(ext))) &&
+            ((importMask & PICTURE_DIR_MASK) != 0) && picLibFileExts.contains(ext)) ||
+            (currFileLength < minMusicImportSize && ((importMask & MUSIC_DIR_MASK) != 0) && musicLibFileExts.contains(ext)))
+      return;
+    // Make sure we can access the file. i.e. something else isn't still writing it
+    if (!checkFileAccess(currFile))
+    {
+      if (Sage.DBG) System.out.println("Ignoring file for import because we can't get access to it:" + currFile);
+      return;
+    }
+    // Before the timestamp can be changed below
+    long currFileModified = currFile.lastModified();
+    if (Sage.DBG) System.out.println("testFile=" + entry.name);
+    if (Sage.getBoolean("advanced_video_file_recovery", false))
+    {
+      MediaFile matchFile = doAdvancedFileRecovery(startMediaFileList, currFile);
+      if (matchFile != null)
+      {
+        // We found an already existing import file which matches this path and no longer exists; so use that instead
+        newlyAddedFiles.add(matchFile);
+        return;
+      }
+    }
+    // Check for preservation of metadata; only relative for video files;
+    // do this before we add the file so we can correct modification timestamps on files
+    Airing air = null;
+    if ((importMask & VIDEO_DIR_MASK) == VIDEO_DIR_MASK && !Sage.getBoolean("seeker/ignore_airing_ids_in_imported_filenames", false))
+    {
+      try
+      {
+        String name = currFile.getName();
+        int idx1 = name.lastIndexOf('-');
+        if (idx1 != -1)
+        {
+          int idx2 = name.lastIndexOf('-', idx1 - 1);
+          if (idx2 != -1)
+          {
+            int airingID = Integer.parseInt(name.substring(idx2 + 1, idx1));
+            air = wiz.getAiringForID(airingID);
+          }
+        }
+      }
+      catch (Exception nfe){}
+      if (air != null && air.isTV())
+      {
+        if (Sage.DBG) System.out.println("Autoupdated reimported MediaFile timestamp for airing info air=" + air);
+        currFile.setLastModified(air.getEndTime());
+      }
+    }
+    ContainerFormat knownFormat = null;
+    if (format != null)
+    {
+      try
+      {
+        PrefetchedFormat prefetched = format.get();
+        // If it's still being written then the format has to be detected again
+        if (prefetched != null && prefetched.length == currFileLength && prefetched.lastModified == currFileModified)
+          knownFormat = prefetched.format;
+        else if (prefetched != null && Sage.DBG)
+          System.out.println("Library file changed since its format was detected:" + currFile);
+      }
+      catch (Exception e)
+      {
+        // It'll be detected again when it's added
+        if (Sage.DBG) System.out.println("ERROR detecting format of " + currFile + " for import of:" + e);
+      }
+    }
+    // This'll return null if it's a failed add
+    MediaFile addedFile = wiz.addMediaFile(currFile, namePrefix, MediaFile.ACQUISITION_AUTOMATIC_BY_IMPORT_PATH,
+        knownFormat);
+    if (addedFile != null)
+    {
+      if (Sage.DBG) System.out.println("New Library File " + addedFile);
+      newlyAddedFiles.add(addedFile);
+      if ((addedFile.isVideo() || addedFile.isTV()) && air != null && air.isTV())
+      {
+        if (Sage.DBG) System.out.println("Autoupdated airing info for imported mediafile air=" + air + " mf=" + addedFile);
+        addedFile.setInfoAiring(air);
+      }
+      PluginEventManager.postEvent(PluginEventManager.MEDIA_FILE_IMPORTED,
+          new Object[] { PluginEventManager.VAR_MEDIAFILE, addedFile });
+    }
+    else
+      ignoreFiles.add(currFilename);
   }
 
   private void importIPhotoFiles(Set<String> accountedFiles, Set<String> remainingAccountedFiles,
@@ -3591,8 +4139,15 @@ if (encState.currRecord.getDuration() + (Sage.time() - encState.lastResetTime) >
 
   private void controlImportCPUUsage()
   {
-    // If the user isn't doing anything then don't bother controlling CPU usage
-    try{Thread.sleep(30);}catch (Exception e){}
+    // The import yields for a bit after each slice of work it does on a thread; rather than before every directory
+    // which made big libraries take hours to scan.
+    long[] sliceStart = importSliceStart.get();
+    long now = System.currentTimeMillis();
+    if (now - sliceStart[0] >= Sage.getLong("seeker/library_import_slice", 250))
+    {
+      try{Thread.sleep(30);}catch (Exception e){}
+      sliceStart[0] = System.currentTimeMillis();
+    }
   }
 
   public void run()
@@ -3701,7 +4256,7 @@ if (encState.currRecord.getDuration() + (Sage.time() - encState.lastResetTime) >
               }
             }, "AsyncPropSaver");
             if (!currentlyImporting && (!didInitScan ||
-                (Sage.getBoolean("seeker/periodically_scan_library", true) &&
+                (Sage.getBoolean("seeker/periodically_scan_library", true) && !isLibraryWatched() &&
                     Sage.time() - lastLibScanTime > libScanPeriod)))
             {
               didInitScan = true;
@@ -6582,6 +7137,14 @@ if (encState.currRecord.getDuration() + (Sage.time() - encState.lastResetTime) >
   private Set<String> musicLibFileExts;
   private Set<String> playlistFileExts;
   private Set<String> vidLibFileExts;
+  private final ThreadLocal<long[]> importSliceStart = new ThreadLocal<long[]>()
+  {
+    @Override
+    protected long[] initialValue()
+    {
+      return new long[] { System.currentTimeMillis() };
+    }
+  };
 
   private boolean prepped;
 
@@ -6611,6 +7174,8 @@ if (encState.currRecord.getDuration() + (Sage.time() - encState.lastResetTime) >
 
   private long lastLibScanTime;
   private long libScanPeriod;
+  private LibraryWatcher libraryWatcher;
+  private volatile boolean libraryWatchComplete;
 
   private long lastExternalProcessCheck;
   private boolean externalProcessesNeedCpu;
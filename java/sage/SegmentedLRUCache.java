@@ -0,0 +1,327 @@
+/*
+ * Copyright 2015 The SageTV Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sage;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A map with a maximum number of entries that's split into stripes with their own locks, so lookups from different
+ * threads don't all wait on one lock. Each stripe is a segmented LRU: new entries go into a probation segment and are
+ * moved to a protected one when they're used again, so a scan through lots of entries that are only used once (like
+ * paging through a big library) doesn't push out the ones that are used all the time.
+ * <p>
+ * When a stripe is over its limit the least recently used entries that {@link #isEvictable} allows are removed,
+ * probation ones first. If none of them can be removed the stripe is allowed to stay over the limit. Removed entries
+ * are still weakly referenced, so as long as something else is using a value it's found again for its key and
+ * returned by {@link #values()}, and there's never two values for the same key in use. Null keys are allowed and are
+ * never removed.
+ */
+class SegmentedLRUCache<K, V>
+{
+  // The most entries looked at to find ones to evict each time one is added
+  private static final int MAX_EVICTION_SCAN = 64;
+  private static final Object NULL_KEY = new Object();
+
+  @SuppressWarnings("unchecked")
+  SegmentedLRUCache(int numStripes, int maxEntries)
+  {
+    stripes = (Stripe[]) new SegmentedLRUCache<?, ?>.Stripe[Math.max(1, numStripes)];
+    int maxPerStripe = Math.max(1, maxEntries / stripes.length);
+    for (int i = 0; i < stripes.length; i++)
+      stripes[i] = new Stripe(maxPerStripe);
+  }
+
+  /**
+   * Returns true if the value can be removed from the cache to stay under the limit.
+   */
+  protected boolean isEvictable(V value)
+  {
+    return true;
+  }
+
+  public V get(K key)
+  {
+    Stripe stripe = getStripe(key);
+    V rv;
+    synchronized (stripe)
+    {
+      rv = stripe.get(maskNull(key), true);
+    }
+    if (rv == null)
+      misses.incrementAndGet();
+    else
+      hits.incrementAndGet();
+    return rv;
+  }
+
+  public boolean containsKey(K key)
+  {
+    Stripe stripe = getStripe(key);
+    Object realKey = maskNull(key);
+    synchronized (stripe)
+    {
+      return stripe.protectedSegment.containsKey(realKey) || stripe.probationSegment.containsKey(realKey) ||
+          stripe.getDropped(realKey, false) != null;
+    }
+  }
+
+  public V put(K key, V value)
+  {
+    Stripe stripe = getStripe(key);
+    Object realKey = maskNull(key);
+    synchronized (stripe)
+    {
+      V rv = stripe.protectedSegment.remove(realKey);
+      if (rv == null)
+        rv = stripe.probationSegment.remove(realKey);
+      if (rv == null)
+        rv = stripe.getDropped(realKey, true);
+      stripe.probationSegment.put(realKey, value);
+      stripe.evict(realKey);
+      return rv;
+    }
+  }
+
+  /**
+   * Adds the value if there isn't one for the key already. Returns the one that's there, or null if it was added.
+   */
+  public V putIfAbsent(K key, V value)
+  {
+    Stripe stripe = getStripe(key);
+    Object realKey = maskNull(key);
+    synchronized (stripe)
+    {
+      V rv = stripe.get(realKey, true);
+      if (rv != null)
+        return rv;
+      stripe.probationSegment.put(realKey, value);
+      stripe.evict(realKey);
+      return null;
+    }
+  }
+
+  public V remove(K key)
+  {
+    Stripe stripe = getStripe(key);
+    Object realKey = maskNull(key);
+    synchronized (stripe)
+    {
+      V rv = stripe.protectedSegment.remove(realKey);
+      if (rv == null)
+        rv = stripe.probationSegment.remove(realKey);
+      if (rv == null)
+        rv = stripe.getDropped(realKey, true);
+      return rv;
+    }
+  }
+
+  /**
+   * Returns a copy of all of the values, including removed ones that are still in use, so it can be walked through
+   * while the cache is changed.
+   */
+  public List<V> values()
+  {
+    List<V> rv = new ArrayList<V>();
+    for (Stripe stripe : stripes)
+    {
+      synchronized (stripe)
+      {
+        rv.addAll(stripe.protectedSegment.values());
+        rv.addAll(stripe.probationSegment.values());
+        stripe.purgeDropped();
+        for (DroppedValue ref : stripe.dropped.values())
+        {
+          V value = ref.get();
+          if (value != null)
+            rv.add(value);
+        }
+      }
+    }
+    return rv;
+  }
+
+  public int size()
+  {
+    int rv = 0;
+    for (Stripe stripe : stripes)
+    {
+      synchronized (stripe)
+      {
+        rv += stripe.protectedSegment.size() + stripe.probationSegment.size();
+      }
+    }
+    return rv;
+  }
+
+  public long getHits()
+  {
+    return hits.get();
+  }
+
+  public long getMisses()
+  {
+    return misses.get();
+  }
+
+  public long getEvictions()
+  {
+    return evictions.get();
+  }
+
+  public String toString()
+  {
+    long numHits = hits.get();
+    long total = numHits + misses.get();
+    return "entries=" + size() + " hits=" + numHits + " misses=" + misses.get() + " hitRate=" +
+        (total == 0 ? 0 : (numHits * 100 / total)) + "% evictions=" + evictions.get();
+  }
+
+  private Stripe getStripe(Object key)
+  {
+    int h = (key == null) ? 0 : key.hashCode();
+    // Spread the bits so keys with similar hash codes don't all land in the same stripe
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    h ^= (h >>> 13);
+    return stripes[(h & Integer.MAX_VALUE) % stripes.length];
+  }
+
+  private static Object maskNull(Object key)
+  {
+    return (key == null) ? NULL_KEY : key;
+  }
+
+  private class Stripe
+  {
+    Stripe(int maxEntries)
+    {
+      this.maxEntries = maxEntries;
+      maxProtected = Math.max(1, maxEntries * 4 / 5);
+    }
+
+    // Lookups in the protected segment move the entry to the end of it; ones in probation move it to protected. Ones
+    // that were removed but are still around go back into probation.
+    V get(Object key, boolean restore)
+    {
+      V rv = protectedSegment.get(key);
+      if (rv != null)
+        return rv;
+      if (restore)
+      {
+        rv = getDropped(key, true);
+        if (rv != null)
+        {
+          probationSegment.put(key, rv);
+          evict(key);
+          return rv;
+        }
+      }
+      rv = probationSegment.remove(key);
+      if (rv != null)
+      {
+        protectedSegment.put(key, rv);
+        if (protectedSegment.size() > maxProtected)
+        {
+          // Move the least recently used protected one back to probation
+          Iterator<Map.Entry<Object, V>> walker = protectedSegment.entrySet().iterator();
+          Map.Entry<Object, V> eldest = walker.next();
+          walker.remove();
+          probationSegment.put(eldest.getKey(), eldest.getValue());
+        }
+      }
+      return rv;
+    }
+
+    // The entry that was just added is never the one that's removed
+    void evict(Object addedKey)
+    {
+      int toRemove = protectedSegment.size() + probationSegment.size() - maxEntries;
+      if (toRemove > 0)
+        toRemove -= evict(probationSegment, toRemove, addedKey);
+      if (toRemove > 0)
+        evict(protectedSegment, toRemove, addedKey);
+    }
+
+    private int evict(LinkedHashMap<Object, V> segment, int toRemove, Object addedKey)
+    {
+      int removed = 0;
+      int scanned = 0;
+      Iterator<Map.Entry<Object, V>> walker = segment.entrySet().iterator();
+      while (removed < toRemove && scanned++ < MAX_EVICTION_SCAN && walker.hasNext())
+      {
+        Map.Entry<Object, V> entry = walker.next();
+        if (entry.getKey() != NULL_KEY && entry.getKey() != addedKey && isEvictable(entry.getValue()))
+        {
+          walker.remove();
+          dropped.put(entry.getKey(), new DroppedValue(entry.getKey(), entry.getValue(), droppedQueue));
+          removed++;
+          evictions.incrementAndGet();
+        }
+      }
+      return removed;
+    }
+
+    V getDropped(Object key, boolean remove)
+    {
+      purgeDropped();
+      DroppedValue ref = remove ? dropped.remove(key) : dropped.get(key);
+      return (ref == null) ? null : ref.get();
+    }
+
+    // Clears out the ones that aren't in use anymore
+    @SuppressWarnings("unchecked")
+    void purgeDropped()
+    {
+      DroppedValue ref;
+      while ((ref = (DroppedValue) droppedQueue.poll()) != null)
+      {
+        if (dropped.get(ref.key) == ref)
+          dropped.remove(ref.key);
+      }
+    }
+
+    final int maxEntries;
+    final int maxProtected;
+    final LinkedHashMap<Object, V> probationSegment = new LinkedHashMap<Object, V>(16, 0.75f, true);
+    final LinkedHashMap<Object, V> protectedSegment = new LinkedHashMap<Object, V>(16, 0.75f, true);
+    final HashMap<Object, DroppedValue> dropped = new HashMap<Object, DroppedValue>();
+    final ReferenceQueue<V> droppedQueue = new ReferenceQueue<V>();
+  }
+
+  private class DroppedValue extends WeakReference<V>
+  {
+    DroppedValue(Object key, V value, ReferenceQueue<V> queue)
+    {
+      super(value, queue);
+      this.key = key;
+    }
+
+    final Object key;
+  }
+
+  private final Stripe[] stripes;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+}
@@ -200,7 +200,42 @@ public final class Show extends DBObject
         }
       }
     }
-    return descStr;
+    // Descriptions that were moved to the mapped store aren't kept in the Show once they're created
+    MappedTextStore.Ref ref = descRef;
+    if (ref != null)
+      return ref.getString();
+    String rv = descStr;
+    if (rv == null)
+    {
+      // We raced with the description being moved to the mapped store
+      ref = descRef;
+      rv = (ref != null) ? ref.getString() : "";
+    }
+    return rv;
+  }
+
+  /**
+   * Moves the description of this Show into the mapped store so it's not using any heap memory; or from another
+   * store into this one if it's already in one. This must be called with the Show table write lock held.
+   */
+  void storeDesc(MappedTextStore store) throws IOException
+  {
+    MappedTextStore.Ref ref = descRef;
+    if (ref != null && ref.store == store)
+      return;
+    byte[] barr = (ref != null) ? ref.getBytes() : descBytes;
+    if (barr == null)
+    {
+      String str = descStr;
+      if (str == null || str.length() == 0)
+        return;
+      barr = str.getBytes(Sage.I18N_CHARSET);
+    }
+    if (barr.length > Short.MAX_VALUE)
+      return;
+    descRef = store.add(barr);
+    descBytes = null;
+    descStr = null;
   }
 
   public String getCategory() { return (categories.length == 0) ? "" : categories[0].name; }
@@ -360,6 +395,7 @@ public final class Show extends DBObject
     externalID = fromMe.externalID;
     descBytes = fromMe.descBytes;
     descStr = fromMe.descStr;
+    descRef = fromMe.descRef;
     categories = fromMe.categories;
     people = fromMe.people;
     roles = fromMe.roles;
@@ -657,12 +693,15 @@ public final class Show extends DBObject
     else
       out.writeUTF(episodeNameStr);
     barr = descBytes;
+    MappedTextStore.Ref ref = descRef;
+    if (barr == null && ref != null)
+      barr = ref.getBytes();
     if (barr != null) {
       out.writeShort(barr.length);
       out.write(barr);
     }
     else
-      out.writeUTF(descStr);
+      out.writeUTF(getDesc());
     out.writeInt((categories.length == 0) ? 0 : (useLookupIdx ? categories[0].lookupIdx : categories[0].id));
     out.writeInt((categories.length < 2) ? 0 : (useLookupIdx ? categories[1].lookupIdx : categories[1].id));
 
@@ -1539,6 +1578,8 @@ public final class Show extends DBObject
   byte[] episodeNameBytes;
   volatile String descStr;
   byte[] descBytes;
+  // If this is set then the description is in the Wizard's mapped text store and descStr & descBytes are null
+  volatile MappedTextStore.Ref descRef;
   Stringer[] categories;
   Person[] people;
   byte[] roles;
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015 The SageTV Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sage;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hash table from names to the Stringers in one of the Stringer tables; it uses open addressing with linear
+ * probing. Lookups don't take any locks, so resolving names while importing EPG data doesn't need the table
+ * lock. The Table keeps this in step with its contents by updating it while it holds its write lock; changes
+ * are also serialized on this object so they can be made from anywhere.
+ * <p>
+ * If the table has more than one Stringer with the same name then only the first one is in here; if that one
+ * is removed then this is no longer complete and a miss doesn't mean the name isn't in the table.
+ */
+final class StringerIntern
+{
+  // Marks a slot whose Stringer was removed; lookups need to probe past these
+  private static final Stringer REMOVED = new Stringer(0);
+  private static final int MIN_CAPACITY = 16;
+
+  StringerIntern()
+  {
+    slots = new AtomicReferenceArray<Stringer>(MIN_CAPACITY);
+  }
+
+  /**
+   * Returns the Stringer with exactly this name, or null if there isn't one.
+   */
+  Stringer get(String name)
+  {
+    AtomicReferenceArray<Stringer> currSlots = slots;
+    int mask = currSlots.length() - 1;
+    int i = spread(name.hashCode()) & mask;
+    while (true)
+    {
+      Stringer s = currSlots.get(i);
+      if (s == null)
+        return null;
+      if (s != REMOVED)
+      {
+        String currName = s.name;
+        if (currName == name || (currName != null && currName.equals(name)))
+          return s;
+      }
+      i = (i + 1) & mask;
+    }
+  }
+
+  synchronized void add(Stringer s)
+  {
+    String name = s.name;
+    if (name == null)
+      return;
+    int mask = slots.length() - 1;
+    int i = spread(name.hashCode()) & mask;
+    int freeSlot = -1;
+    while (true)
+    {
+      Stringer curr = slots.get(i);
+      if (curr == null)
+        break;
+      if (curr == REMOVED)
+      {
+        if (freeSlot == -1)
+          freeSlot = i;
+      }
+      else if (name.equals(curr.name))
+      {
+        if (curr != s)
+          duplicates = true;
+        return;
+      }
+      i = (i + 1) & mask;
+    }
+    if (freeSlot != -1)
+    {
+      slots.set(freeSlot, s);
+      removed--;
+    }
+    else
+      slots.set(i, s);
+    size++;
+    // Keep it at most 3/4 full including removed slots so there's always an empty slot to end the probes
+    if ((size + removed) * 4 > slots.length() * 3)
+      rehash();
+  }
+
+  synchronized void remove(Stringer s)
+  {
+    String name = s.name;
+    if (name == null)
+      return;
+    int mask = slots.length() - 1;
+    int i = spread(name.hashCode()) & mask;
+    while (true)
+    {
+      Stringer curr = slots.get(i);
+      if (curr == null)
+        return;
+      if (curr == s)
+      {
+        slots.set(i, REMOVED);
+        size--;
+        removed++;
+        // Another Stringer with this name may still be in the table, but it's not in here
+        if (duplicates)
+          complete = false;
+        return;
+      }
+      i = (i + 1) & mask;
+    }
+  }
+
+  synchronized void clear()
+  {
+    slots = new AtomicReferenceArray<Stringer>(MIN_CAPACITY);
+    size = 0;
+    removed = 0;
+    duplicates = false;
+    complete = true;
+  }
+
+  /**
+   * Replaces the contents with the Stringers in the index; this is used after they were loaded directly into it.
+   */
+  synchronized void rebuild(Index indy, int num)
+  {
+    clear();
+    for (int i = 0; i < num; i++)
+    {
+      Stringer s = (Stringer) indy.get(i);
+      if (s != null)
+        add(s);
+    }
+  }
+
+  /**
+   * Returns true if every name in the table is in here; so a miss means the name isn't in the table.
+   */
+  boolean isComplete()
+  {
+    return complete;
+  }
+
+  synchronized int size()
+  {
+    return size;
+  }
+
+  private void rehash()
+  {
+    int newCapacity = MIN_CAPACITY;
+    while (size * 2 > newCapacity)
+      newCapacity <<= 1;
+    AtomicReferenceArray<Stringer> newSlots = new AtomicReferenceArray<Stringer>(newCapacity);
+    int mask = newCapacity - 1;
+    for (int i = 0; i < slots.length(); i++)
+    {
+      Stringer s = slots.get(i);
+      if (s == null || s == REMOVED)
+        continue;
+      int j = spread(s.name.hashCode()) & mask;
+      while (newSlots.get(j) != null)
+        j = (j + 1) & mask;
+      newSlots.set(j, s);
+    }
+    removed = 0;
+    // Lookups that are using the old slots still get valid results from them
+    slots = newSlots;
+  }
+
+  private static int spread(int h)
+  {
+    // Linear probing does badly with clustered hashes, so mix the high bits in
+    h ^= (h >>> 16);
+    h *= 0x85ebca6b;
+    return h ^ (h >>> 13);
+  }
+
+  private volatile AtomicReferenceArray<Stringer> slots;
+  private int size;
+  private int removed;
+  private boolean duplicates;
+  private volatile boolean complete = true;
+}
@@ -23,6 +23,12 @@ public class StubCaptureDevice extends CaptureDevice
     host = Sage.get(prefs + NetworkCaptureDevice.ENCODING_HOST, "");
   }
 
+  // For the simulated encoders used by the scheduler benchmark; these don't have any configuration
+  StubCaptureDevice(String name)
+  {
+    captureDeviceName = name;
+  }
+
   public String getName()
   {
     if (host.length() > 0)
@@ -31,12 +31,17 @@ public class Table
     tableCode = inTableCode;
     primary = inPrimary;
     primary.table = this;
+    primary.versionSlot = 0;
     others = inOthers;
     for (int i = 0; i < others.length; i++)
+    {
       others[i].table = this;
+      others[i].versionSlot = i + 1;
+    }
 
     // I'm going with a 'fair' lock for now...it'll be closer to current functionality
     rwLock = new ReentrantReadWriteLock(true);
+    objectLock = new ReentrantReadWriteLock(true);
   }
 
   void clear()
@@ -47,6 +52,8 @@ public class Table
       for (int i = 0; i < others.length; i++)
         others[i].clear();
       num = 0;
+      if (names != null)
+        names.clear();
     } finally {
       releaseWriteLock();
     }
@@ -72,19 +79,21 @@ public class Table
   {
     boolean rv;
     try {
-      acquireWriteLock();
+      acquireStructureWriteLock();
       if (rv = primary.remove(removeMe)) {
         for (int i = 0; i < others.length; i++)
           others[i].remove(removeMe);
         num--;
         modCount++;
+        if (names != null)
+          names.remove((Stringer) removeMe);
       }
       if (VERIFY_INDICES) {
-        for (int i = 0; i < primary.data.length - 1; i++) {
-          if (primary.comp.compare(primary.data[i], primary.data[i + 1]) > 0)
+        for (int i = 0; i < primary.length() - 1; i++) {
+          if (primary.comp.compare(primary.get(i), primary.get(i + 1)) > 0)
             System.out.println("PRIMARY REMOVE SORT IS SCREWED UP code=" + tableCode);
           for (int j = 0; j < others.length; j++)
-            if (others[j].comp.compare(others[j].data[i], others[j].data[i + 1]) > 0)
+            if (others[j].comp.compare(others[j].get(i), others[j].get(i + 1)) > 0)
               System.out.println("OTHER REMOVE SORT IS SCREWED UP code=" + tableCode + " otherIdx=" + j);
         }
       }
@@ -99,18 +108,20 @@ public class Table
   void add(DBObject addMe, boolean logTX)
   {
     try {
-      acquireWriteLock();
+      acquireStructureWriteLock();
       primary.add(addMe);
       for (int i = 0; i < others.length; i++)
         others[i].add(addMe);
       num++;
       modCount++;
+      if (names != null)
+        names.add((Stringer) addMe);
       if (VERIFY_INDICES) {
-        for (int i = 0; i < primary.data.length - 1; i++) {
-          if (primary.comp.compare(primary.data[i], primary.data[i + 1]) > 0)
+        for (int i = 0; i < primary.length() - 1; i++) {
+          if (primary.comp.compare(primary.get(i), primary.get(i + 1)) > 0)
             System.out.println("PRIMARY ADD SORT IS SCREWED UP code=" + tableCode);
           for (int j = 0; j < others.length; j++)
-            if (others[j].comp.compare(others[j].data[i], others[j].data[i + 1]) > 0)
+            if (others[j].comp.compare(others[j].get(i), others[j].get(i + 1)) > 0)
               System.out.println("OTHER ADD SORT IS SCREWED UP code=" + tableCode + " otherIdx=" + j);
         }
       }
@@ -129,15 +140,20 @@ public class Table
       primary.update(updateMe, newMe);
       for (int i = 0; i<others.length;i++)
         others[i].update(updateMe, newMe);
+      // The name may be changing, so it has to be taken out under the old one
+      if (names != null)
+        names.remove((Stringer) updateMe);
       updateMe.update(newMe);
+      if (names != null)
+        names.add((Stringer) updateMe);
       modCount++;
 
       if (VERIFY_INDICES) {
-        for (int i = 0; i < primary.data.length - 1; i++) {
-          if (primary.comp.compare(primary.data[i], primary.data[i + 1]) > 0)
+        for (int i = 0; i < primary.length() - 1; i++) {
+          if (primary.comp.compare(primary.get(i), primary.get(i + 1)) > 0)
             System.out.println("PRIMARY UPDATE SORT IS SCREWED UP code=" + tableCode);
           for (int j = 0; j < others.length; j++)
-            if (others[j].comp.compare(others[j].data[i], others[j].data[i + 1]) > 0)
+            if (others[j].comp.compare(others[j].get(i), others[j].get(i + 1)) > 0)
               System.out.println("OTHER UPDATE SORT IS SCREWED UP code=" + tableCode + " otherIdx=" + j);
         }
       }
@@ -179,6 +195,12 @@ public class Table
     }
   }
 
+  void setTreeIndices(boolean x) {
+    primary.setTreeIndex(x);
+    for (int i = 0; i < others.length; i++)
+      others[i].setTreeIndex(x);
+  }
+
   long getModCount() {
     return modCount;
   }
@@ -189,30 +211,182 @@ public class Table
     }
   }
 
+  int size() {
+    Version v = getReadVersion();
+    return (v != null) ? v.num : num;
+  }
+
+  // With snapshot reads enabled, a 'read lock' pins the current version of the table for this thread so everything
+  // it reads until it releases it is consistent. The indices in that version can't change; but the objects in them
+  // are the live ones, so it also keeps out writers that change objects in place (see acquireWriteLock). Writers that
+  // only add or remove objects don't wait on it.
   void acquireReadLock() {
-    if (!wiz.isDBLoading())
-      rwLock.readLock().lock();
+    if (!wiz.isDBLoading()) {
+      if (snapshotReads) {
+        ReadPin pin = readPins.get();
+        if (pin.depth++ == 0) {
+          objectLock.readLock().lock();
+          pin.locked = true;
+          pin.version = version;
+        }
+      } else
+        rwLock.readLock().lock();
+    }
   }
 
   void releaseReadLock() {
-    if (!wiz.isDBLoading())
-      rwLock.readLock().unlock();
+    if (!wiz.isDBLoading()) {
+      if (snapshotReads) {
+        ReadPin pin = readPins.get();
+        if (pin.depth > 0 && --pin.depth == 0) {
+          pin.version = null;
+          if (pin.locked) {
+            pin.locked = false;
+            objectLock.readLock().unlock();
+          }
+        }
+      } else
+        rwLock.readLock().unlock();
+    }
   }
 
+  // The holder of the write lock is free to change the objects in the table, i.e. update(); which would move them
+  // out from under the older versions readers have pinned. So with snapshot reads enabled this also waits for
+  // those readers and then publishes the new version before letting any more of them in.
   void acquireWriteLock() {
-    if (!wiz.isDBLoading())
+    if (!wiz.isDBLoading()) {
       rwLock.writeLock().lock();
+      if (snapshotReads)
+        objectLock.writeLock().lock();
+    }
   }
 
   void releaseWriteLock() {
-    if (!wiz.isDBLoading())
+    if (!wiz.isDBLoading()) {
+      // Publish everything that was done while we held the lock as a single new version
+      if (snapshotReads && rwLock.getWriteHoldCount() == 1)
+        publishVersion();
+      if (objectLock.isWriteLockedByCurrentThread())
+        objectLock.writeLock().unlock();
       rwLock.writeLock().unlock();
+    }
+  }
+
+  // For add and remove; those only change the indices and never the objects in them, so pinned readers
+  // can keep going on their own versions while this is held.
+  private void acquireStructureWriteLock() {
+    if (!wiz.isDBLoading())
+      rwLock.writeLock().lock();
+  }
+
+  // Unlike acquireReadLock this always blocks writers, even with snapshot reads enabled. It's for when the objects
+  // themselves can't change while they're being read; such as writing the table out to a checkpoint.
+  void acquireStableReadLock() {
+    if (!wiz.isDBLoading())
+      rwLock.readLock().lock();
+  }
+
+  void releaseStableReadLock() {
+    if (!wiz.isDBLoading())
+      rwLock.readLock().unlock();
+  }
+
+  /**
+   * Switches readers of this table over to reading immutable versions of the indices. Readers no longer wait
+   * on writers that add or remove objects; but they still wait on ones that change objects in place, since the
+   * objects themselves are shared between versions. This requires tree indices since those can produce
+   * snapshots of themselves cheaply.
+   */
+  void setSnapshotReads(boolean x) {
+    if (x)
+      setTreeIndices(true);
+    snapshotReads = x;
+    publishVersion();
+  }
+
+  boolean isSnapshotReads() {
+    return snapshotReads;
+  }
+
+  /**
+   * Makes the current contents of the table visible to readers. This is done automatically when the write lock
+   * is released; but that's bypassed while the DB is loading so this needs to be called after that.
+   */
+  void publishVersion() {
+    if (!snapshotReads) {
+      version = null;
+      return;
+    }
+    IndexTree.Snapshot[] snaps = new IndexTree.Snapshot[others.length + 1];
+    snaps[0] = primary.snapshot();
+    for (int i = 0; i < others.length; i++)
+      snaps[i + 1] = others[i].snapshot();
+    for (int i = 0; i < snaps.length; i++) {
+      if (snaps[i] == null) {
+        // Indices that aren't in a tree yet are still being loaded, readers use them directly until then
+        version = null;
+        return;
+      }
+    }
+    version = new Version(snaps[0].size(), snaps);
+  }
+
+  /**
+   * Returns the version of this table that the current thread should be reading from, or null if it should
+   * read the live data. That's the case if snapshot reads are disabled, the DB is loading or this thread is
+   * the one that's modifying the table.
+   */
+  Version getReadVersion() {
+    if (!snapshotReads || wiz.isDBLoading() || rwLock.isWriteLockedByCurrentThread())
+      return null;
+    Version rv = readPins.get().version;
+    return (rv != null) ? rv : version;
   }
 
   void setWizard(Wizard inWiz) {
     wiz = inWiz;
   }
 
+  /**
+   * For tables of Stringers; keeps a hash table of their names in step with the contents of this table.
+   */
+  void setNameIntern(StringerIntern x) {
+    names = x;
+    if (names != null)
+      rebuildNameIntern();
+  }
+
+  StringerIntern getNameIntern() {
+    return names;
+  }
+
+  // Needed after objects are put into the indices directly instead of through add, i.e. loading the DB
+  void rebuildNameIntern() {
+    if (names != null)
+      names.rebuild(primary, num);
+  }
+
+  /**
+   * An immutable version of the table contents; the snapshots are in the same order as the indices
+   * with the primary one first.
+   */
+  static final class Version {
+    Version(int inNum, IndexTree.Snapshot[] inIndices) {
+      num = inNum;
+      indices = inIndices;
+    }
+
+    final int num;
+    final IndexTree.Snapshot[] indices;
+  }
+
+  private static final class ReadPin {
+    Version version;
+    int depth;
+    // If this pin holds the read side of the objectLock
+    boolean locked;
+  }
+
   byte tableCode;
   Index primary;
   Index[] others;
@@ -220,5 +394,15 @@ public class Table
   private final Object modCountLock = new Object();
   long modCount = 0;
   private ReentrantReadWriteLock rwLock;
+  // Only used with snapshot reads; shared by pinned readers and exclusive to writers that change objects in place
+  private ReentrantReadWriteLock objectLock;
   private Wizard wiz;
+  private boolean snapshotReads;
+  private volatile Version version;
+  private StringerIntern names;
+  private final ThreadLocal<ReadPin> readPins = new ThreadLocal<ReadPin>() {
+    protected ReadPin initialValue() {
+      return new ReadPin();
+    }
+  };
 }
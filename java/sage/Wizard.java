@@ -55,7 +55,9 @@ import sage.io.SageDataFile;
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -76,6 +78,13 @@ import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 /*
@@ -117,6 +126,8 @@ public class Wizard implements EPGDBPublic2
 
   private static final int WIZARD_MEDIAMASK_MAINTENANCE_LOCK_TIME = 500; // locking the DB while performing maintenance
   private static final int WIZARD_MEDIAMASK_MAINTENANCE_SLEEP_TIME = 2000; // time between runs on maintenance
+  private static final int SHOW_TEXT_BATCH_SIZE = 1000; // Shows moved to the mapped text store for each write lock
+  private static final long SHOW_TEXT_COMPACT_MIN_BYTES = 4*1024*1024; // smaller mapped text stores aren't compacted
 
   private static final int MAX_DB_ERRORS_TO_LOG = 1000;
 
@@ -336,16 +347,22 @@ public class Wizard implements EPGDBPublic2
     }
   }
 
-  private Table getTable(byte tableCode)
+  Table getTable(byte tableCode)
   {
     return tables[tableCode];
   }
 
+  // Changes whenever anything in the table is added, updated or removed
+  long getModCount(byte tableCode)
+  {
+    return getTable(tableCode).getModCount();
+  }
+
   public int getSize(byte typeCode)
   {
     Table t = getTable(typeCode);
     if (t == null) return 0;
-    else return t.num;
+    else return t.size();
   }
 
   public int getSize(byte typeCode, int mediaMask)
@@ -354,8 +371,9 @@ public class Wizard implements EPGDBPublic2
     if (t == null) return 0;
     Index idx=t.primary;
     int count=0;
-    for (int i = 0; i < idx.data.length; i++) {
-      DBObject obj = idx.data[i];
+    DBObject[] idxData = idx.getData();
+    for (int i = 0; i < idxData.length; i++) {
+      DBObject obj = idxData[i];
       if (obj != null && (obj.getMediaMask() & mediaMask) != 0)
         count++;
     }
@@ -365,7 +383,7 @@ public class Wizard implements EPGDBPublic2
 
   public DBObject[] getRawAccess(byte tableCode, byte indexCode)
   {
-    return getIndex(tableCode, indexCode).data;
+    return getIndex(tableCode, indexCode).getData();
   }
 
   // Avoid the DB locks if we are loading as we do that single threaded so we have
@@ -422,6 +440,43 @@ public class Wizard implements EPGDBPublic2
   private static final String LAST_MAINTENANCE = "last_maintenance";
   private static final String NODATA_MAX_LEN = "nodata_max_len";
   private static final String NODATA_DUR_FOR_MAXRULE = "nodata_dur_for_maxrule";
+  // Use B+-trees instead of sorted arrays for the table indices; this makes adds/removes O(log n) which matters
+  // a lot for large EPG imports since the sorted arrays need to shift everything after the insertion point.
+  private static final String TREE_INDICES = "tree_indices";
+  // Readers of the tables use immutable versions of the indices instead of taking the read lock; so they only wait
+  // on writers that change objects in place and not on adds and removes (i.e. most of an EPG update)
+  private static final String SNAPSHOT_READS = "snapshot_reads";
+  // Resolve names in the Stringer tables (titles, categories, networks, etc.) through hash tables that don't need
+  // the table lock instead of searching the tables
+  private static final String STRINGER_HASH_LOOKUP = "stringer_hash_lookup";
+  // Write the DB xct log from a dedicated thread in batches instead of on the thread that modified the DB
+  private static final String GROUP_COMMIT_LOG = "group_commit_log";
+  // Save the DB as per-table segments plus an xct tail, only rewriting tables that changed since the last checkpoint
+  private static final String SEGMENTED_CHECKPOINTS = "segmented_checkpoints";
+  // Load the tables from the DB file on separate threads instead of one after another
+  private static final String PARALLEL_LOAD = "parallel_load";
+  // Defaults to the number of processors
+  private static final String PARALLEL_LOAD_THREADS = "parallel_load_threads";
+  // Keep the descriptions of Shows with no upcoming airings or media files in a memory mapped file
+  private static final String MAPPED_SHOW_TEXT = "mapped_show_text";
+  // Number of descriptions from the mapped file that are cached as Strings
+  private static final String MAPPED_SHOW_TEXT_CACHE_SIZE = "mapped_show_text_cache_size";
+  // Max msec a logged xct waits to fill up a batch before it gets written
+  private static final String GROUP_COMMIT_MAX_LATENCY = "group_commit_max_latency";
+  private static final String GROUP_COMMIT_MAX_BATCH = "group_commit_max_batch";
+  // Max # of xcts which can be waiting to be written before we block the threads modifying the DB
+  private static final String GROUP_COMMIT_QUEUE_SIZE = "group_commit_queue_size";
+  // Keep this many of the most recent xcts in memory so a client that reconnects only needs to get the ones it
+  // missed instead of the whole DB; 0 disables it
+  private static final String CLIENT_XCT_HISTORY_SIZE = "client_xct_history_size";
+  // Max total size in bytes of the xcts kept in that history
+  private static final String CLIENT_XCT_HISTORY_MAX_BYTES = "client_xct_history_max_bytes";
+  // Max # of xcts that can be waiting to be sent to a client; if it gets further behind than this it's disconnected
+  private static final String CLIENT_XCT_QUEUE_SIZE = "client_xct_queue_size";
+  // Max msec a unit of maintenance work runs before it pauses so other threads can get at the DB
+  private static final String MAINTENANCE_UNIT_TIME = "maintenance_unit_time";
+  // # of threads to run the independent units of maintenance work on; defaults to the number of processors, up to 4
+  private static final String MAINTENANCE_THREADS = "maintenance_threads";
 
   // This indicates that the mediaMaskB in DBObject should be generated by ALL DBObjects during this load
   public static boolean GENERATE_MEDIA_MASK = false;
@@ -465,6 +520,56 @@ public class Wizard implements EPGDBPublic2
     return instance;
   }
 
+  // For tests; the DB is empty and only kept in memory
+  static Wizard primeInMemory()
+  {
+    Wizard instance = getInstance();
+    synchronized (instanceLock)
+    {
+      instance.initWizInTables();
+      instance.god = Carny.getInstance();
+      if (instance.noShow == null)
+        instance.refreshNoShow();
+    }
+    return instance;
+  }
+
+  // For tests; writes all of the tables to the file the same way a full save of the DB file does
+  void writeDBFile(File f) throws IOException
+  {
+    SageDataFile out = new SageDataFile(new LocalSageFile(f, "rw"), Sage.I18N_CHARSET);
+    try
+    {
+      out.setLength(0);
+      out.writeUnencryptedByte((byte) 'W');
+      out.writeUnencryptedByte((byte) 'I');
+      out.writeUnencryptedByte((byte) 'Z');
+      out.writeUnencryptedByte(VERSION);
+      for (int i = 0; i < WRITE_ORDER.length; i++)
+        writeFullTable(out, getTable(WRITE_ORDER[i]));
+    }
+    finally
+    {
+      out.close();
+    }
+  }
+
+  // For tests; replaces the contents of the tables with what's in the DB file, loading it the same way as at startup
+  boolean loadDBFile(File f) throws Throwable
+  {
+    synchronized (instanceLock)
+    {
+      dbFile = f;
+      checkpointDir = null;
+      for (Table t : tables)
+      {
+        if (t != null)
+          t.clear();
+      }
+      return loadDBFile();
+    }
+  }
+
   // For standalone DB operation, ala Warlock
   public static Wizard prime(String dbFilename, String dbBackupFilename)
   {
@@ -540,10 +645,31 @@ public class Wizard implements EPGDBPublic2
   }
 
   private void initWizInTables() {
+    boolean snapshotReads = Sage.getBoolean(prefsRoot + SNAPSHOT_READS, false);
+    // Snapshot reads are built on top of the tree indices, so they always need to be enabled with them
+    boolean treeIndices = snapshotReads || Sage.getBoolean(prefsRoot + TREE_INDICES, false);
+    if (treeIndices && Sage.DBG) System.out.println("Wizard is using B+-tree indices for the database tables snapshotReads=" + snapshotReads);
     for (Table tab : tables) {
-      if (tab != null)
+      if (tab != null) {
         tab.setWizard(this);
+        tab.setTreeIndices(treeIndices);
+        tab.setSnapshotReads(snapshotReads);
+      }
     }
+    if (Sage.getBoolean(prefsRoot + STRINGER_HASH_LOOKUP, true)) {
+      for (byte code : NAME_LOOKUP_CODES)
+        getTable(code).setNameIntern(new StringerIntern());
+    }
+  }
+
+  // The Stringer tables that we look things up in by name
+  private static final byte[] NAME_LOOKUP_CODES = { TITLE_CODE, NETWORK_CODE, CATEGORY_CODE, SUBCATEGORY_CODE,
+    RATED_CODE, PR_CODE, ER_CODE, YEAR_CODE, BONUS_CODE };
+
+  // Loading puts the objects directly into the indices, so the name lookups need to be redone after that
+  private void rebuildNameInterns() {
+    for (byte code : NAME_LOOKUP_CODES)
+      getTable(code).rebuildNameIntern();
   }
 
   private void init(String dbFilename, String dbBackupFilename, boolean inStandalone)
@@ -582,6 +708,10 @@ public class Wizard implements EPGDBPublic2
       {
         dbBackupFile.getParentFile().mkdirs();
       }
+      checkpointDir = new File(dbFile.getAbsolutePath() + ".ckpt");
+      segmentedCheckpoints = !Sage.client && Sage.getBoolean(prefsRoot + SEGMENTED_CHECKPOINTS, false);
+      if (segmentedCheckpoints && Sage.DBG) System.out.println("Wizard is using segmented DB checkpoints in " + checkpointDir);
+      groupCommitLog = !Sage.client && Sage.getBoolean(prefsRoot + GROUP_COMMIT_LOG, false);
       // On a new version revert to the OriginalV2.stv to prevent problems with the STV on upgrade
       fileStr = (Sage.WINDOWS_OS && SageTV.upgrade && Sage.getBoolean("wizard/revert_stv_on_upgrade", true)) ? null : Sage.get(prefsRoot + WIDGET_DB_FILE, null);
       if (Sage.initialSTV != null && new File(Sage.initialSTV).isFile())
@@ -653,6 +783,30 @@ public class Wizard implements EPGDBPublic2
       };
       flusher.setDaemon(true);
       flusher.start();
+      if (groupCommitLog)
+      {
+        // The log file isn't synced on every write in this mode; so make sure what was logged before the writer
+        // took over is on disk
+        flushDbOut();
+        logWriter = new GroupCommitWriter(outLock, Sage.getInt(prefsRoot + GROUP_COMMIT_MAX_LATENCY, 50),
+            Sage.getInt(prefsRoot + GROUP_COMMIT_MAX_BATCH, 512), Sage.getInt(prefsRoot + GROUP_COMMIT_QUEUE_SIZE, 8192))
+        {
+          SageDataFile getLogFile()
+          {
+            return dbout;
+          }
+        };
+        Thread logThread = new Thread(logWriter, "DBLogWriter");
+        logThread.setDaemon(true);
+        logThread.start();
+      }
+      int historySize = Sage.getInt(prefsRoot + CLIENT_XCT_HISTORY_SIZE, 0);
+      if (historySize > 0)
+      {
+        // The sequence #s only mean something to clients for this run of the server
+        xctHistory = new XctHistory(Math.max(1, new java.util.Random().nextLong() & Long.MAX_VALUE), historySize,
+            Sage.getLong(prefsRoot + CLIENT_XCT_HISTORY_MAX_BYTES, 32*1024*1024));
+      }
     }
     primed = true;
   }
@@ -732,6 +886,7 @@ public class Wizard implements EPGDBPublic2
       // get saved out as well as any of our other transactions because we're going to reset
       // the maintenance timer here!
       boolean saveAfter = true;
+      ForkJoinPool maintenancePool = null;
       try
       {
         performingMaintenance = true;
@@ -750,6 +905,14 @@ public class Wizard implements EPGDBPublic2
         // and I know that maintenance must be the cause...so we'll set this to true and see if it comes back.
         boolean logMaintenanceXcts = true;
         int maintainStartID = nextID;
+        // Each phase of the maintenance is done in units of work which yield when they've used up this much time
+        long unitBudget = Math.max(1, Sage.getLong(prefsRoot + MAINTENANCE_UNIT_TIME, 250));
+        int numThreads = Math.max(1, Sage.getInt(prefsRoot + MAINTENANCE_THREADS,
+            Math.min(4, Runtime.getRuntime().availableProcessors())));
+        if (numThreads > 1)
+          maintenancePool = new ForkJoinPool(numThreads);
+        MaintenancePhase phase = new MaintenancePhase("AiringCleanup", unitBudget);
+        MaintenancePhase.Unit unit = phase.newUnit();
         // Remove all airings more than a week in the past.
         Set<Airing> toRemove = new HashSet<Airing>(5000);
         long killTime = Sage.time() - (standalone ? SERVER_KILL_AGE : KILL_AGE);
@@ -778,9 +941,9 @@ public class Wizard implements EPGDBPublic2
         // care about retaining the fractional watched information for things that can be
         // resumed.
         Index watchIndex = getIndex(WATCH_CODE, (byte)0);
-        for (int i = 0; i < watchIndex.table.num; i++)
+        for (int i = 0; i < watchIndex.table.size(); i++)
         {
-          Watched currWatch = (Watched) watchIndex.data[i];
+          Watched currWatch = (Watched) watchIndex.get(i);
           if (currWatch != null)
           {
             Airing watchAir = currWatch.getAiring();
@@ -814,9 +977,10 @@ public class Wizard implements EPGDBPublic2
         Index wasteIndex = getIndex(WASTED_CODE, (byte)0);
         // Expire any non-manual wasted objects that are over a year old
         long wasteExpireTime = Sage.time() - 52*Sage.MILLIS_PER_WEEK;
-        for (int i = 0; i < wasteIndex.table.num; i++)
+        DBObject[] wasteIndexData = wasteIndex.getData();
+        for (int i = 0; i < wasteIndex.table.size() && i < wasteIndexData.length; i++)
         {
-          Wasted currWaste = (Wasted) wasteIndex.data[i];
+          Wasted currWaste = (Wasted) wasteIndexData[i];
           if (currWaste != null)
           {
             Airing wasteAir = currWaste.getAiring();
@@ -869,9 +1033,10 @@ public class Wizard implements EPGDBPublic2
         boolean removedLastAir = false;
         int currRemovalMask = 0;
         Airing lastAir = null;
-        for (int i = 0; i < airIndex.table.num; i++)
+        DBObject[] airIndexData = airIndex.getData();
+        for (int i = 0; i < airIndex.table.size() && i < airIndexData.length; i++)
         {
-          Airing iAir = (Airing) airIndex.data[i];
+          Airing iAir = (Airing) airIndexData[i];
           if (iAir != null && iAir.id < maintainStartID)
           {
             boolean saveTheAir = toSave.contains(iAir) || (obeyAiringPersistence && iAir.persist != 0);
@@ -944,15 +1109,14 @@ public class Wizard implements EPGDBPublic2
             removedLastAir = false;
             lastAir = null;
           }
-          if (i % 5000 == 0)
-            mpause();
+          maintenanceCheckpoint(unit);
         }
 
         mpause();
 
         Table airTable = getTable(AIRING_CODE);
         if (Sage.DBG) System.out.println("Wizard removing " + toRemove.size() + " old airings of " +
-            airTable.num + " total...");
+            airTable.size() + " total...");
         if (!toRemove.isEmpty())
         {
           airTable.massRemove(toRemove, logMaintenanceXcts);
@@ -962,6 +1126,10 @@ public class Wizard implements EPGDBPublic2
         compressDBIfNeeded();
         waitUntilDBClientSyncsComplete();
         Sage.gcPause();
+        finishMaintenancePhase(phase, unit);
+
+        phase = new MaintenancePhase("NoShowFill", unitBudget);
+        unit = phase.newUnit();
 
         // We need to fix all of the no data stuff here, consider it to
         // be completely screwed up at this point, essentially full of holes we need to plug.
@@ -970,9 +1138,10 @@ public class Wizard implements EPGDBPublic2
         long noDataRuleCoverage = Sage.time() + noDataMaxRuleDur;
         lastAir = null;
         List<Airing> noShowAirsToAdd = new ArrayList<Airing>();
-        for (int i = 0; i < airIndex.table.num; i++)
+        airIndexData = airIndex.getData();
+        for (int i = 0; i < airIndex.table.size() && i < airIndexData.length; i++)
         {
-          Airing iAir = (Airing) airIndex.data[i];
+          Airing iAir = (Airing) airIndexData[i];
           if (iAir == null)
             break;
           // Do this AFTER we remove all the airings from the DB so we don't get tricked and leave stations
@@ -1023,8 +1192,7 @@ public class Wizard implements EPGDBPublic2
             noDataToFixDur.add(iAir);
           lastAir = iAir;
 
-          if (i % 5000 == 0)
-            mpause();
+          maintenanceCheckpoint(unit);
         }
         if (lastAir != null && lastAir.getEndTime() < Long.MAX_VALUE/2 && lastAir.stationID != 0 &&
             viewableStations.contains(lastAir.stationID))
@@ -1043,8 +1211,7 @@ public class Wizard implements EPGDBPublic2
         for (int i = 0; i < noShowAirsToAdd.size(); i++)
         {
           airTable.add(noShowAirsToAdd.get(i), logMaintenanceXcts);
-          if (i % 300 == 0 || getMaxPendingClientXcts() > 8)
-            mpause();
+          maintenanceCheckpoint(unit);
           waitUntilDBClientSyncsComplete();
         }
         mpause();
@@ -1052,8 +1219,7 @@ public class Wizard implements EPGDBPublic2
         for (int i = 0; i < noDataToFixDur.size(); i++)
         {
           fixNoDataDuration(noDataToFixDur.get(i), logMaintenanceXcts);
-          if (i % 300 == 0 || getMaxPendingClientXcts() > 8)
-            mpause();
+          maintenanceCheckpoint(unit);
           waitUntilDBClientSyncsComplete();
         }
 
@@ -1064,12 +1230,14 @@ public class Wizard implements EPGDBPublic2
         {
           if (Sage.DBG) System.out.println("Resetting airings for station ID: " + statID);
           resetAirings(statID);
-          if (getMaxPendingClientXcts() > 8)
-            mpause();
+          maintenanceCheckpoint(unit);
           waitUntilDBClientSyncsComplete();
         }
 
-        mpause();
+        finishMaintenancePhase(phase, unit);
+
+        phase = new MaintenancePhase("OrphanRemoval", unitBudget);
+        unit = phase.newUnit();
 
         // Channel fixin'
         // Remove all of the Channels that have no airings associated with them.
@@ -1077,16 +1245,17 @@ public class Wizard implements EPGDBPublic2
         List<DBObject> killChans = new ArrayList<DBObject>();
         try {
           chanIdx.table.acquireReadLock();
-          for (int i = 0; i < chanIdx.table.num; i++)
-            if (!usedStations.contains(((Channel) chanIdx.data[i]).stationID) &&
-                chanIdx.data[i].id < maintainStartID)
-              killChans.add(chanIdx.data[i]);
+          DBObject[] chanIdxData = chanIdx.getData();
+          for (int i = 0; i < chanIdx.table.size() && i < chanIdxData.length; i++)
+            if (!usedStations.contains(((Channel) chanIdxData[i]).stationID) &&
+                chanIdxData[i].id < maintainStartID)
+              killChans.add(chanIdxData[i]);
         } finally {
           chanIdx.table.releaseReadLock();
         }
         mpause();
         if (Sage.DBG) System.out.println("Wizard removing " + killChans.size() + " expired Channels of " +
-            chanIdx.table.num + " total...");
+            chanIdx.table.size() + " total...");
         for (int i = 0; i < killChans.size(); i++)
         {
           chanIdx.table.remove(killChans.get(i), logMaintenanceXcts);
@@ -1107,9 +1276,10 @@ public class Wizard implements EPGDBPublic2
           currRemovalMask = 0;
           try {
             showIdx.table.acquireReadLock();
-            for (int i = 0; i < showIdx.table.num; i++)
+            DBObject[] showIdxData = showIdx.getData();
+            for (int i = 0; i < showIdx.table.size() && i < showIdxData.length; i++)
             {
-              Show iShow = (Show) showIdx.data[i];
+              Show iShow = (Show) showIdxData[i];
               if ((iShow.lastWatched == 0 || iShow.isMusic()) &&
                 (iShow != noShow) && (iShow.id < maintainStartID) &&
                 (getAirings(iShow, 0, true) == null) && (getEditorial(iShow) == null))
@@ -1123,7 +1293,7 @@ public class Wizard implements EPGDBPublic2
           }
           mpause();
           if (Sage.DBG) System.out.println("Wizard removing " + killShows.size() + " expired Shows of " +
-              showIdx.table.num + " total...");
+              showIdx.table.size() + " total...");
           if (!killShows.isEmpty())
           {
             showIdx.table.massRemove(killShows, logMaintenanceXcts);
@@ -1135,103 +1305,8 @@ public class Wizard implements EPGDBPublic2
 
           // Remove all unrated titles & people & categories & bonuses that aren't referenced by
           // a Show or Agent or editorial or SeriesInfo
-          Set<Integer> keeperIDs = new HashSet<Integer>();
-          try {
-            showIdx.table.acquireReadLock();
-            for (int i = 0; i < showIdx.table.num; i++)
-            {
-              Show iShow = (Show) showIdx.data[i];
-              if (iShow.title != null)
-                keeperIDs.add(iShow.title.id);
-              for (int j = 0; j < iShow.categories.length; j++)
-              {
-                keeperIDs.add(iShow.categories[j].id);
-              }
-              for (int j = 0; j < iShow.people.length; j++)
-              {
-                keeperIDs.add(iShow.people[j].id);
-              }
-              for (int j = 0; j < iShow.bonuses.length; j++)
-              {
-                keeperIDs.add(iShow.bonuses[j].id);
-              }
-              if (iShow.language != null)
-                keeperIDs.add(iShow.language.id);
-            }
-          } finally {
-            showIdx.table.releaseReadLock();
-          }
-          mpause();
-          // Keep all of the awards & birthplaces for People and all the aliases for people
-          Index peopleIdx = getIndex(PEOPLE_CODE);
-          try {
-            peopleIdx.table.acquireReadLock();
-            for (int i = 0; i < peopleIdx.table.num; i++)
-            {
-              Person p = (Person) peopleIdx.data[i];
-              if (p.awardNames != null)
-              {
-                for (int j = 0; j < p.awardNames.length; j++)
-                  keeperIDs.add(p.awardNames[j].id);
-              }
-              if (p.birthPlace != null)
-                keeperIDs.add(p.birthPlace.id);
-              if (p.extID < 0)
-              {
-                Person alias = p.getOriginalAlias();
-                if (alias != null)
-                  keeperIDs.add(alias.id);
-              }
-            }
-          } finally {
-            peopleIdx.table.releaseReadLock();
-          }
-          // Keep all of the Agent templates
-          Index agentIdx = getIndex(AGENT_CODE);
-          try {
-            agentIdx.table.acquireReadLock();
-            for (int i = 0; i < agentIdx.table.num; i++)
-            {
-              Agent bond = (Agent) agentIdx.data[i];
-              if (bond.title != null)
-                keeperIDs.add(bond.title.id);
-              if (bond.person != null)
-                keeperIDs.add(bond.person.id);
-              if (bond.category != null)
-                keeperIDs.add(bond.category.id);
-              if (bond.subCategory != null)
-                keeperIDs.add(bond.subCategory.id);
-              // Agents don't use Bonus
-            }
-          } finally {
-            agentIdx.table.releaseReadLock();
-          }
-          mpause();
-          // Retain any titles, genres, people or years used by the Playlists in keeping an Album record
-          thePlaylists = getPlaylists();
-          for (int i = 0; i < thePlaylists.length; i++)
-          {
-            for (int j = 0; j < thePlaylists[i].getNumSegments(); j++)
-            {
-              if (thePlaylists[i].getSegmentType(j) == Playlist.ALBUM_SEGMENT)
-              {
-                Album allie = (Album) thePlaylists[i].getSegment(j);
-                DBObject ts = allie.getTitleStringer();
-                if (ts != null)
-                  keeperIDs.add(ts.id);
-                ts = allie.getArtistObj();
-                if (ts != null)
-                  keeperIDs.add(ts.id);
-                ts = allie.getGenreStringer();
-                if (ts != null)
-                  keeperIDs.add(ts.id);
-                ts = allie.getYearStringer();
-                if (ts != null)
-                  keeperIDs.add(ts.id);
-              }
-            }
-          }
-          mpause();
+          Set<Integer> keeperIDs = getMaintenanceKeeperIDs(maintenancePool);
+          maintenanceCheckpoint(unit);
           // Retain any titles or networks used by TVEditorials, and remove any expired ones
           TVEditorial[] editorials = getEditorials();
           DateFormat editorialDateParser = new SimpleDateFormat("yyyy-MM-dd");
@@ -1252,190 +1327,21 @@ public class Wizard implements EPGDBPublic2
             if (editorials[i].network != null)
               keeperIDs.add(editorials[i].network.id);
           }
-          mpause();
-          // Retain any title/network/people used by SeriesInfo
-          SeriesInfo[] allSeries = getAllSeriesInfo();
-          for (int i = 0; i < allSeries.length; i++)
-          {
-            if (allSeries[i].title != null)
-              keeperIDs.add(allSeries[i].title.id);
-            if (allSeries[i].network != null)
-              keeperIDs.add(allSeries[i].network.id);
-            for (int j = 0; j < allSeries[i].people.length; j++)
-              if (allSeries[i].people[j] != null)
-                keeperIDs.add(allSeries[i].people[j].id);
-          }
-          mpause();
-
-          if (Sage.DBG) System.out.println("Retaining " + keeperIDs.size() +
-              " total title & people & category & bonus ids.");
-          Set<DBObject> currRemoveSet = new HashSet<DBObject>();
-          Index strIndex = getIndex(TITLE_CODE);
-          currRemovalMask = 0;
-          try {
-            strIndex.table.acquireReadLock();
-            for (int i = 0; i < strIndex.table.num; i++)
-            {
-              Stringer currStr = (Stringer) strIndex.data[i];
-              if (!keeperIDs.contains(currStr.id) &&
-                  currStr.id < maintainStartID)
-              {
-                currRemoveSet.add(currStr);
-                currRemovalMask =((currRemovalMask | currStr.getMediaMask() ) & DBObject.MEDIA_MASK_ALL);
-              }
-            }
-          } finally {
-            strIndex.table.releaseReadLock();
-          }
-          if (Sage.DBG) System.out.println("Clearing out " + currRemoveSet.size() +
-              " titles of " + strIndex.table.num + " total.");
-          if (!currRemoveSet.isEmpty())
-          {
-            getTable(TITLE_CODE).massRemove(currRemoveSet, logMaintenanceXcts);
-            updateLastModified(currRemovalMask);
-            currRemoveSet.clear();
-          }
-
-          mpause();
-          strIndex = getIndex(PRIME_TITLE_CODE);
-          currRemovalMask = 0;
-          try {
-            strIndex.table.acquireReadLock();
-            for (int i = 0; i < strIndex.table.num; i++)
-            {
-              Stringer currStr = (Stringer) strIndex.data[i];
-              if (!keeperIDs.contains(currStr.id) &&
-                  currStr.id < maintainStartID)
-              {
-                currRemoveSet.add(currStr);
-                currRemovalMask = ((currRemovalMask | currStr.getMediaMask() ) & DBObject.MEDIA_MASK_ALL);
-              }
-            }
-          } finally {
-            strIndex.table.releaseReadLock();
-          }
-          if (Sage.DBG) System.out.println("Clearing out " + currRemoveSet.size() +
-              " prime titles of " + strIndex.table.num + " total.");
-          if (!currRemoveSet.isEmpty())
-          {
-            getTable(PRIME_TITLE_CODE).massRemove(currRemoveSet, logMaintenanceXcts);
-            updateLastModified(currRemovalMask);
-            currRemoveSet.clear();
-          }
-          mpause();
-
           // Keep the "Various" person constant we use
           Person var = getPersonForName(Sage.rez("Various_Artists"));
           if (var != null)
             keeperIDs.add(var.id);
 
-          strIndex = getIndex(PEOPLE_CODE);
-          currRemovalMask = 0;
-          try {
-            strIndex.table.acquireReadLock();
-            for (int i = 0; i < strIndex.table.num; i++)
-            {
-              Person currStr = (Person) strIndex.data[i];
-              if (!keeperIDs.contains(currStr.id) && currStr.id < maintainStartID)
-              {
-                currRemoveSet.add(currStr);
-                currRemovalMask =((currRemovalMask | currStr.getMediaMask()) & DBObject.MEDIA_MASK_ALL);
-              }
-            }
-          } finally {
-            strIndex.table.releaseReadLock();
-          }
-
-          if (Sage.DBG) System.out.println("Clearing out " + currRemoveSet.size() +
-              " people of " + strIndex.table.num + " total.");
-          if (!currRemoveSet.isEmpty())
-          {
-            getTable(PEOPLE_CODE).massRemove(currRemoveSet, logMaintenanceXcts);
-            updateLastModified(currRemovalMask);
-            currRemoveSet.clear();
-          }
-          mpause();
-
-          strIndex = getIndex(CATEGORY_CODE);
-          currRemovalMask = 0;
-          try {
-            strIndex.table.acquireReadLock();
-            for (int i = 0; i < strIndex.table.num; i++)
-            {
-              Stringer currStr = (Stringer) strIndex.data[i];
-              if (!keeperIDs.contains(currStr.id) && currStr.id < maintainStartID)
-              {
-                currRemoveSet.add(currStr);
-                currRemovalMask =  ((currRemovalMask | currStr.getMediaMask() ) & DBObject.MEDIA_MASK_ALL);
-              }
-            }
-          } finally {
-            strIndex.table.releaseReadLock();
-          }
-          if (Sage.DBG) System.out.println("Clearing out " + currRemoveSet.size() +
-              " categories of " + strIndex.table.num + " total.");
-          if (!currRemoveSet.isEmpty())
-          {
-            getTable(CATEGORY_CODE).massRemove(currRemoveSet, logMaintenanceXcts);
-            updateLastModified(currRemovalMask);
-            currRemoveSet.clear();
-          }
-          mpause();
-
-          strIndex = getIndex(SUBCATEGORY_CODE);
-          currRemovalMask = 0;
-          try {
-            strIndex.table.acquireReadLock();
-            for (int i = 0; i < strIndex.table.num; i++)
-            {
-              Stringer currStr = (Stringer) strIndex.data[i];
-              if (!keeperIDs.contains(currStr.id) && currStr.id < maintainStartID)
-              {
-                currRemoveSet.add(currStr);
-                currRemovalMask = ((currRemovalMask | currStr.getMediaMask() ) & DBObject.MEDIA_MASK_ALL);
-              }
-            }
-          } finally {
-            strIndex.table.releaseReadLock();
-          }
-          if (Sage.DBG) System.out.println("Clearing out " + currRemoveSet.size() +
-              " subcategories of " + strIndex.table.num + " total.");
-          if (!currRemoveSet.isEmpty())
-          {
-            getTable(SUBCATEGORY_CODE).massRemove(currRemoveSet, logMaintenanceXcts);
-            updateLastModified(currRemovalMask);
-            currRemoveSet.clear();
-          }
-          mpause();
-
-          strIndex = getIndex(BONUS_CODE);
-          currRemovalMask = 0;
-          try {
-            strIndex.table.acquireReadLock();
-            for (int i = 0; i < strIndex.table.num; i++)
-            {
-              Stringer currStr = (Stringer) strIndex.data[i];
-              if (!keeperIDs.contains(currStr.id) && currStr.id < maintainStartID)
-              {
-                currRemoveSet.add(currStr);
-                currRemovalMask =  ((currRemovalMask | currStr.getMediaMask() ) & DBObject.MEDIA_MASK_ALL);
-              }
-            }
-          } finally {
-            strIndex.table.releaseReadLock();
-          }
-
-          if (Sage.DBG) System.out.println("Clearing out " + currRemoveSet.size() +
-              " bonuses of " + strIndex.table.num + " total.");
-          if (!currRemoveSet.isEmpty())
-          {
-            getTable(BONUS_CODE).massRemove(currRemoveSet, logMaintenanceXcts);
-            updateLastModified(currRemovalMask);
-            currRemoveSet.clear();
-          }
-          mpause();
+          if (Sage.DBG) System.out.println("Retaining " + keeperIDs.size() +
+              " total title & people & category & bonus ids.");
+          removeUnreferencedStringers(ORPHAN_STRINGER_CODES, keeperIDs, maintainStartID, logMaintenanceXcts,
+              maintenancePool, unit);
 
           compressDBIfNeeded();
+          finishMaintenancePhase(phase, unit);
+
+          phase = new MaintenancePhase("MediaMask", unitBudget);
+          unit = phase.newUnit();
 
           /*
            * NEW MAINTENANCE:
@@ -1490,15 +1396,15 @@ public class Wizard implements EPGDBPublic2
             Show lastShow = null;
             long airModCount = airIndex.table.getModCount();
             long showModCount = showIdx.table.getModCount();
-            while (iair < airIndex.table.num && ishow < showIdx.table.num)
+            while (iair < airIndex.table.size() && ishow < showIdx.table.size())
             {
               if (airIndex.table.getModCount() != airModCount ||
                   showIdx.table.getModCount() != showModCount)
               {
                 break;
               }
-              Airing currAir = (Airing) airIndex.data[iair];
-              Show currShow = (Show) showIdx.data[ishow];
+              Airing currAir = (Airing) airIndex.get(iair);
+              Show currShow = (Show) showIdx.get(ishow);
               if (currAir == null)
               {
                 iair++;
@@ -1575,8 +1481,7 @@ public class Wizard implements EPGDBPublic2
                 iair++;
                 lastShow = currShow;
               }
-              if (getMaxPendingClientXcts() > 8)
-                mpause();
+              maintenanceCheckpoint(unit);
             }
             if (airIndex.table.getModCount() != airModCount)
             {
@@ -1626,736 +1531,14 @@ public class Wizard implements EPGDBPublic2
           waitUntilDBClientSyncsComplete();
           mpause();
 
-          // We create this array to use for figuring out which media masks actually changed so we only distribute
-          // updates on changed objects, otherwise we can lock these tables for too long if there are connected
-          // clients.
-          int[] mmCache = new int[100000];
-
-          if (Sage.DBG) System.out.println("Wizard is fixing the media mask on the Titles...");
-          strIndex = getIndex(TITLE_CODE);
-          loops = 0;
-          mediaMaskUpdateTime = 0;
-          totalUpdates = 0;
-          while(true) {
-            currentUpdates = 0;
-            loops++;
-            try {
-              try {
-                showIdx.table.acquireReadLock();
-                try {
-                  strIndex.table.acquireWriteLock();
-                  // First copy all of the masks in this table, reallocate cache array if not big enough
-                  // Also zero out all of the existing ones so they can be created fresh
-                  if (mmCache.length < strIndex.table.num)
-                    mmCache = new int[strIndex.table.num];
-                  for (int i = 0; i < strIndex.table.num; i++) {
-                    if (strIndex.data[i] != null) {
-                      mmCache[i] = strIndex.data[i].getMediaMask();
-                      strIndex.data[i].setMediaMask(0);
-                    }
-                  }
-                  // Now propagate all of the Show media masks down to the title table
-                  for (int i = 0; i < showIdx.table.num; i++) {
-                    Show currShow = (Show) showIdx.data[i];
-                    if (currShow != null && currShow.getMediaMask() != 0 && currShow.title != null) {
-                      if (!currShow.title.hasMediaMask(currShow.getMediaMask())) {
-                        currShow.title.addMediaMask(currShow.getMediaMask());
-                      }
-                    }
-                  }
-                  startMediaMaskTime = Sage.eventTime();
-                  // Now go through and distribute the actual updates for any changes
-                  // that occurred
-                  for (int i = 0; i < strIndex.table.num; i++) {
-                    if (strIndex.data[i] != null && strIndex.data[i].getMediaMask() != mmCache[i]) {
-                      logUpdate(strIndex.data[i], TITLE_CODE);
-                      currentUpdates++;
-                      if((Sage.eventTime() - startMediaMaskTime) > WIZARD_MEDIAMASK_MAINTENANCE_LOCK_TIME) {
-                        // Before breaking out, reset the media masks moving forward from this element.
-                        // By doing this, we're inherently undoing the propagation that was done to each
-                        // show/element above that didn't get logged.
-                        for (i++; i < strIndex.table.num; i++)
-                          if (strIndex.data[i] != null)
-                            strIndex.data[i].setMediaMask(mmCache[i]);
-                        throw new InterruptedException();
-                      }
-                      if (getMaxPendingClientXcts() > 8)
-                        mpause();
-                    }
-                  }
-                } finally {
-                  strIndex.table.releaseWriteLock();
-                }
-              } finally {
-                showIdx.table.releaseReadLock();
-              }
-            } catch (InterruptedException e) {
-              totalUpdates += currentUpdates;
-              mediaMaskUpdateTime += Sage.eventTime() - startMediaMaskTime;
-              System.out.println("MaintenceMetric(MediaMaskUpdateTitle): " + currentUpdates + " / " + totalUpdates + " items in " + loops + " loops; ");
-              try { Thread.sleep(WIZARD_MEDIAMASK_MAINTENANCE_SLEEP_TIME); } catch (InterruptedException ignore) {}
-              continue;
-            }
-            totalUpdates += currentUpdates;
-            mediaMaskUpdateTime += Sage.eventTime() - startMediaMaskTime;
-            break; // done
-          }
-          System.out.println("MaintenceMetric(MediaMaskUpdateTitle): " + mediaMaskUpdateTime + "ms for " + totalUpdates + " items in " + loops + " loops");
-          waitUntilDBClientSyncsComplete();
-          mpause();
+          fixStringerMediaMasks(maintenancePool, phase);
+        }
+        finishMaintenancePhase(phase, unit);
+        Sage.gcPause();
+        mpause();
+        mpause();
 
-          if (Sage.DBG) System.out.println("Wizard is fixing the media mask on the Years...");
-          strIndex = getIndex(YEAR_CODE);
-          loops = 0;
-          mediaMaskUpdateTime = 0;
-          totalUpdates = 0;
-          while(true) {
-            currentUpdates = 0;
-            loops++;
-            try {
-              try {
-                showIdx.table.acquireReadLock();
-                try {
-                  strIndex.table.acquireWriteLock();
-                  // First copy all of the masks in this table, reallocate cache array if not big enough
-                  // Also zero out all of the existing ones so they can be created fresh
-                  if (mmCache.length < strIndex.table.num)
-                    mmCache = new int[strIndex.table.num];
-                  for (int i = 0; i < strIndex.table.num; i++)
-                  {
-                    if (strIndex.data[i] != null)
-                    {
-                      mmCache[i] = strIndex.data[i].getMediaMask();
-                      strIndex.data[i].setMediaMask(0);
-                    }
-                  }
-                  // Now propagate all of the Show media masks down to the year table
-                  for (int i = 0; i < showIdx.table.num; i++)
-                  {
-                    Show currShow = (Show) showIdx.data[i];
-                    if (currShow != null && currShow.getMediaMask() != 0 && currShow.year != null)
-                    {
-                      if (!currShow.year.hasMediaMask(currShow.getMediaMask()))
-                      {
-                        currShow.year.addMediaMask(currShow.getMediaMask());
-                      }
-                    }
-                  }
-                  startMediaMaskTime = Sage.eventTime();
-                  // Now go through and distribute the actual updates for any changes
-                  // that occurred
-                  for (int i = 0; i < strIndex.table.num; i++)
-                  {
-                    if (strIndex.data[i] != null && strIndex.data[i].getMediaMask() != mmCache[i])
-                    {
-                      logUpdate(strIndex.data[i], YEAR_CODE);
-                      currentUpdates++;
-                      if((Sage.eventTime() - startMediaMaskTime) > WIZARD_MEDIAMASK_MAINTENANCE_LOCK_TIME) {
-                        // Before breaking out, reset the media masks moving forward from this element.
-                        // By doing this, we're inherently undoing the propagation that was done to each
-                        // show/element above that didn't get logged.
-                        for (i++; i < strIndex.table.num; i++)
-                          if (strIndex.data[i] != null)
-                            strIndex.data[i].setMediaMask(mmCache[i]);
-                        throw new InterruptedException();
-                      }
-                    }
-                  }
-                } finally {
-                  strIndex.table.releaseWriteLock();
-                }
-              } finally {
-                showIdx.table.releaseReadLock();
-              }
-            } catch (InterruptedException e) {
-              totalUpdates += currentUpdates;
-              mediaMaskUpdateTime += Sage.eventTime() - startMediaMaskTime;
-              System.out.println("MaintenceMetric(MediaMaskUpdateYears): " + currentUpdates + " / " + totalUpdates + " items in " + loops + " loops; ");
-              try { Thread.sleep(WIZARD_MEDIAMASK_MAINTENANCE_SLEEP_TIME); } catch (InterruptedException ignore) {}
-              continue;
-            }
-            totalUpdates += currentUpdates;
-            mediaMaskUpdateTime += Sage.eventTime() - startMediaMaskTime;
-            break; // done if we get to here
-          }
-          System.out.println("MaintenceMetric(MediaMaskUpdateYears): " + mediaMaskUpdateTime + "ms for " + totalUpdates + " items in " + loops + " loops");
-          mpause();
-          waitUntilDBClientSyncsComplete();
-
-          if (Sage.DBG) System.out.println("Wizard is fixing the media mask on the Peoples...");
-          strIndex = getIndex(PEOPLE_CODE);
-          loops = 0;
-          mediaMaskUpdateTime = 0;
-          totalUpdates = 0;
-          while(true) {
-            currentUpdates = 0;
-            loops++;
-            try {
-              try {
-                showIdx.table.acquireReadLock();
-                try {
-                  strIndex.table.acquireWriteLock();
-                  // First copy all of the masks in this table, reallocate cache array if not big enough
-                  // Also zero out all of the existing ones so they can be created fresh
-                  if (mmCache.length < strIndex.table.num)
-                    mmCache = new int[strIndex.table.num];
-                  for (int i = 0; i < strIndex.table.num; i++) {
-                    if (strIndex.data[i] != null) {
-                      mmCache[i] = strIndex.data[i].getMediaMask();
-                      strIndex.data[i].setMediaMask(0);
-                    }
-                  }
-                  // Now propagate all of the Show media masks down to the people table
-                  for (int i = 0; i < showIdx.table.num; i++)
-                  {
-                    Show currShow = (Show) showIdx.data[i];
-                    if (currShow != null && currShow.getMediaMask() != 0 &&
-                        currShow.people != null && currShow.people.length > 0) {
-                      for (int j = 0; j < currShow.people.length; j++) {
-                        if (!currShow.people[j].hasMediaMask(currShow.getMediaMask())) {
-                          currShow.people[j].addMediaMask(currShow.getMediaMask());
-                        }
-                      }
-                    }
-                  }
-                  startMediaMaskTime = Sage.eventTime();
-                  // Now go through and distribute the actual updates for any changes
-                  // that occurred
-                  for (int i = 0; i < strIndex.table.num; i++) {
-                    if (strIndex.data[i] != null && strIndex.data[i].getMediaMask() != mmCache[i]) {
-                      logUpdate(strIndex.data[i], PEOPLE_CODE);
-                      currentUpdates++;
-                      if((Sage.eventTime() - startMediaMaskTime) > WIZARD_MEDIAMASK_MAINTENANCE_LOCK_TIME) {
-                        // Before breaking out, reset the media masks moving forward from this element.
-                        // By doing this, we're inherently undoing the propagation that was done to each
-                        // show/element above that didn't get logged.
-                        for (i++; i < strIndex.table.num; i++)
-                          if (strIndex.data[i] != null)
-                            strIndex.data[i].setMediaMask(mmCache[i]);
-                        throw new InterruptedException();
-                      }
-                      if (getMaxPendingClientXcts() > 8)
-                        mpause();
-                    }
-                  }
-                } finally {
-                  strIndex.table.releaseWriteLock();
-                }
-              } finally {
-                showIdx.table.releaseReadLock();
-              }
-            } catch (InterruptedException e) {
-              totalUpdates += currentUpdates;
-              mediaMaskUpdateTime += Sage.eventTime() - startMediaMaskTime;
-              System.out.println("MaintenceMetric(MediaMaskUpdatePeoples): " + currentUpdates + " / " + totalUpdates + " items in " + loops + " loops; ");
-              try { Thread.sleep(WIZARD_MEDIAMASK_MAINTENANCE_SLEEP_TIME); } catch (InterruptedException ignore) {}
-              continue;
-            }
-            totalUpdates += currentUpdates;
-            mediaMaskUpdateTime += Sage.eventTime() - startMediaMaskTime;
-            break; // done
-          }
-          System.out.println("MaintenceMetric(MediaMaskUpdatePeoples): " + mediaMaskUpdateTime + "ms for " + totalUpdates + " items in " + loops + " loops");
-          mpause();
-          waitUntilDBClientSyncsComplete();
-
-          if (Sage.DBG) System.out.println("Wizard is fixing the media mask on the Categories...");
-          strIndex = getIndex(CATEGORY_CODE);
-          loops = 0;
-          mediaMaskUpdateTime = 0;
-          totalUpdates = 0;
-          mediaMaskUpdateTime = 0;
-          while(true) {
-            currentUpdates = 0;
-            loops++;
-            try {
-             try {
-                showIdx.table.acquireReadLock();
-                try {
-                  strIndex.table.acquireWriteLock();
-                   // First copy all of the masks in this table, reallocate cache array if not big enough
-                  // Also zero out all of the existing ones so they can be created fresh
-                  if (mmCache.length < strIndex.table.num)
-                    mmCache = new int[strIndex.table.num];
-                  for (int i = 0; i < strIndex.table.num; i++)
-                  {
-                    if (strIndex.data[i] != null)
-                    {
-                      mmCache[i] = strIndex.data[i].getMediaMask();
-                      strIndex.data[i].setMediaMask(0);
-                    }
-                  }
-                  // Now propagate all of the Show media masks down to the stringer table
-                  for (int i = 0; i < showIdx.table.num; i++)
-                  {
-                    Show currShow = (Show) showIdx.data[i];
-                    if (currShow != null && currShow.getMediaMask() != 0 && currShow.categories.length > 0)
-                    {
-                      if (!currShow.categories[0].hasMediaMask(currShow.getMediaMask()))
-                      {
-                        currShow.categories[0].addMediaMask(currShow.getMediaMask());
-                      }
-                    }
-                  }
-                  startMediaMaskTime = Sage.eventTime();
-                  // Now go through and distribute the actual updates for any changes
-                  // that occurred
-                  for (int i = 0; i < strIndex.table.num; i++)
-                  {
-                    if (strIndex.data[i] != null && strIndex.data[i].getMediaMask() != mmCache[i])
-                    {
-                      logUpdate(strIndex.data[i], CATEGORY_CODE);
-                      currentUpdates++;
-                      if((Sage.eventTime() - startMediaMaskTime) > WIZARD_MEDIAMASK_MAINTENANCE_LOCK_TIME) {
-                        // Before breaking out, reset the media masks moving forward from this element.
-                        // By doing this, we're inherently undoing the propagation that was done to each
-                        // show/element above that didn't get logged.
-                        for (i++; i < strIndex.table.num; i++)
-                          if (strIndex.data[i] != null)
-                            strIndex.data[i].setMediaMask(mmCache[i]);
-                        throw new InterruptedException();
-                      }
-                    }
-                  }
-                } finally {
-                  strIndex.table.releaseWriteLock();
-                }
-              } finally {
-                showIdx.table.releaseReadLock();
-              }
-            } catch (InterruptedException e) {
-              totalUpdates += currentUpdates;
-              mediaMaskUpdateTime += Sage.eventTime() - startMediaMaskTime;
-              System.out.println("MaintenceMetric(MediaMaskUpdateCategories): " + currentUpdates + " / " + totalUpdates + " items in " + loops + " loops; ");
-              try { Thread.sleep(WIZARD_MEDIAMASK_MAINTENANCE_SLEEP_TIME); } catch (InterruptedException ignore) {}
-              continue;
-            }
-            totalUpdates += currentUpdates;
-            mediaMaskUpdateTime += Sage.eventTime() - startMediaMaskTime;
-            break; // done
-          }
-          System.out.println("MaintenceMetric(MediaMaskUpdateCategories): " + mediaMaskUpdateTime + "ms for " + totalUpdates + " items in " + loops + " loops");
-          mpause();
-          waitUntilDBClientSyncsComplete();
-
-          if (Sage.DBG) System.out.println("Wizard is fixing the media mask on the SubCategories...");
-          strIndex = getIndex(SUBCATEGORY_CODE);
-          loops = 0;
-          mediaMaskUpdateTime = 0;
-          totalUpdates = 0;
-          mediaMaskUpdateTime = 0;
-          while(true) {
-            currentUpdates = 0;
-            loops++;
-            try {
-             try {
-                showIdx.table.acquireReadLock();
-                try {
-                  strIndex.table.acquireWriteLock();
-                   // First copy all of the masks in this table, reallocate cache array if not big enough
-                  // Also zero out all of the existing ones so they can be created fresh
-                  if (mmCache.length < strIndex.table.num)
-                    mmCache = new int[strIndex.table.num];
-                  for (int i = 0; i < strIndex.table.num; i++)
-                  {
-                    if (strIndex.data[i] != null)
-                    {
-                      mmCache[i] = strIndex.data[i].getMediaMask();
-                      strIndex.data[i].setMediaMask(0);
-                    }
-                  }
-                  // Now propagate all of the Show media masks down to the stringer table
-                  for (int i = 0; i < showIdx.table.num; i++)
-                  {
-                    Show currShow = (Show) showIdx.data[i];
-                    if (currShow != null && currShow.getMediaMask() != 0 &&
-                        currShow.categories != null && currShow.categories.length > 1)
-                    {
-                      for (int j = 1; j < currShow.categories.length; j++)
-                      {
-                        if (!currShow.categories[j].hasMediaMask(currShow.getMediaMask()))
-                        {
-                          currShow.categories[j].addMediaMask(currShow.getMediaMask());
-                        }
-                      }
-                    }
-                  }
-                  startMediaMaskTime = Sage.eventTime();
-                  // Now go through and distribute the actual updates for any changes
-                  // that occurred
-                  for (int i = 0; i < strIndex.table.num; i++)
-                  {
-                    if (strIndex.data[i] != null && strIndex.data[i].getMediaMask() != mmCache[i])
-                    {
-                      logUpdate(strIndex.data[i], SUBCATEGORY_CODE);
-                      currentUpdates++;
-                      if((Sage.eventTime() - startMediaMaskTime) > WIZARD_MEDIAMASK_MAINTENANCE_LOCK_TIME) {
-                        // Before breaking out, reset the media masks moving forward from this element.
-                        // By doing this, we're inherently undoing the propagation that was done to each
-                        // show/element above that didn't get logged.
-                        for (i++; i < strIndex.table.num; i++)
-                          if (strIndex.data[i] != null)
-                            strIndex.data[i].setMediaMask(mmCache[i]);
-                        throw new InterruptedException();
-                      }
-                    }
-                  }
-               } finally {
-                  strIndex.table.releaseWriteLock();
-                }
-              } finally {
-                showIdx.table.releaseReadLock();
-              }
-             } catch (InterruptedException e) {
-              totalUpdates += currentUpdates;
-              mediaMaskUpdateTime += Sage.eventTime() - startMediaMaskTime;
-              System.out.println("MaintenceMetric(MediaMaskUpdateSubCategories): " + currentUpdates + " / " + totalUpdates + " items in " + loops + " loops; ");
-              try { Thread.sleep(WIZARD_MEDIAMASK_MAINTENANCE_SLEEP_TIME); } catch (InterruptedException ignore) {}
-              continue;
-            }
-            totalUpdates += currentUpdates;
-            mediaMaskUpdateTime += Sage.eventTime() - startMediaMaskTime;
-            break; // done
-          }
-          System.out.println("MaintenceMetric(MediaMaskUpdateSubCategories): " + mediaMaskUpdateTime + "ms for " + totalUpdates + " items in " + loops + " loops");
-          mpause();
-          waitUntilDBClientSyncsComplete();
-
-          if (Sage.DBG) System.out.println("Wizard is fixing the media mask on the Rated...");
-          strIndex = getIndex(RATED_CODE);
-          loops = 0;
-          mediaMaskUpdateTime = 0;
-          totalUpdates = 0;
-          mediaMaskUpdateTime = 0;
-          while(true) {
-            currentUpdates = 0;
-            loops++;
-            try {
-             try {
-                showIdx.table.acquireReadLock();
-                try {
-                  strIndex.table.acquireWriteLock();
-                   // First copy all of the masks in this table, reallocate cache array if not big enough
-                  // Also zero out all of the existing ones so they can be created fresh
-                  if (mmCache.length < strIndex.table.num)
-                    mmCache = new int[strIndex.table.num];
-                  for (int i = 0; i < strIndex.table.num; i++)
-                  {
-                    if (strIndex.data[i] != null)
-                    {
-                      mmCache[i] = strIndex.data[i].getMediaMask();
-                      strIndex.data[i].setMediaMask(0);
-                    }
-                  }
-                  // Now propagate all of the Show media masks down to the stringer table
-                  for (int i = 0; i < showIdx.table.num; i++)
-                  {
-                    Show currShow = (Show) showIdx.data[i];
-                    if (currShow != null && currShow.getMediaMask() != 0 && currShow.rated != null)
-                    {
-                      if (!currShow.rated.hasMediaMask(currShow.getMediaMask()))
-                      {
-                        currShow.rated.addMediaMask(currShow.getMediaMask());
-                      }
-                    }
-                  }
-                  startMediaMaskTime = Sage.eventTime();
-                  // Now go through and distribute the actual updates for any changes
-                  // that occurred
-                  for (int i = 0; i < strIndex.table.num; i++)
-                  {
-                    if (strIndex.data[i] != null && strIndex.data[i].getMediaMask() != mmCache[i])
-                    {
-                      logUpdate(strIndex.data[i], RATED_CODE);
-                      currentUpdates++;
-                      if((Sage.eventTime() - startMediaMaskTime) > WIZARD_MEDIAMASK_MAINTENANCE_LOCK_TIME) {
-                        // Before breaking out, reset the media masks moving forward from this element.
-                        // By doing this, we're inherently undoing the propagation that was done to each
-                        // show/element above that didn't get logged.
-                        for (i++; i < strIndex.table.num; i++)
-                          if (strIndex.data[i] != null)
-                            strIndex.data[i].setMediaMask(mmCache[i]);
-                        throw new InterruptedException();
-                      }
-                    }
-                  }
-               } finally {
-                  strIndex.table.releaseWriteLock();
-                }
-              } finally {
-                showIdx.table.releaseReadLock();
-              }
-             } catch (InterruptedException e) {
-              totalUpdates += currentUpdates;
-              mediaMaskUpdateTime += Sage.eventTime() - startMediaMaskTime;
-              System.out.println("MaintenceMetric(MediaMaskUpdateRated): " + currentUpdates + " / " + totalUpdates + " items in " + loops + " loops; ");
-              try { Thread.sleep(WIZARD_MEDIAMASK_MAINTENANCE_SLEEP_TIME); } catch (InterruptedException ignore) {}
-              continue;
-            }
-            totalUpdates += currentUpdates;
-            mediaMaskUpdateTime += Sage.eventTime() - startMediaMaskTime;
-            break; // done
-          }
-          System.out.println("MaintenceMetric(MediaMaskUpdateRated): " + mediaMaskUpdateTime + "ms for " + totalUpdates + " items in " + loops + " loops");
-          mpause();
-          waitUntilDBClientSyncsComplete();
-
-          if (Sage.DBG) System.out.println("Wizard is fixing the media mask on the PR...");
-          strIndex = getIndex(PR_CODE);
-          loops = 0;
-          mediaMaskUpdateTime = 0;
-          totalUpdates = 0;
-          mediaMaskUpdateTime = 0;
-          while(true) {
-            currentUpdates = 0;
-            loops++;
-            try {
-             try {
-                showIdx.table.acquireReadLock();
-                try {
-                  strIndex.table.acquireWriteLock();
-                   // First copy all of the masks in this table, reallocate cache array if not big enough
-                  // Also zero out all of the existing ones so they can be created fresh
-                  if (mmCache.length < strIndex.table.num)
-                    mmCache = new int[strIndex.table.num];
-                  for (int i = 0; i < strIndex.table.num; i++)
-                  {
-                    if (strIndex.data[i] != null)
-                    {
-                      mmCache[i] = strIndex.data[i].getMediaMask();
-                      strIndex.data[i].setMediaMask(0);
-                    }
-                  }
-                  // Now propagate all of the Show media masks down to the stringer table
-                  for (int i = 0; i < showIdx.table.num; i++)
-                  {
-                    Show currShow = (Show) showIdx.data[i];
-                    if (currShow != null && currShow.getMediaMask() != 0 && currShow.pr != null)
-                    {
-                      if (!currShow.pr.hasMediaMask(currShow.getMediaMask()))
-                      {
-                        currShow.pr.addMediaMask(currShow.getMediaMask());
-                      }
-                    }
-                  }
-                  startMediaMaskTime = Sage.eventTime();
-                  // Now go through and distribute the actual updates for any changes
-                  // that occurred
-                  for (int i = 0; i < strIndex.table.num; i++)
-                  {
-                    if (strIndex.data[i] != null && strIndex.data[i].getMediaMask() != mmCache[i])
-                    {
-                      logUpdate(strIndex.data[i], PR_CODE);
-                      currentUpdates++;
-                      if((Sage.eventTime() - startMediaMaskTime) > WIZARD_MEDIAMASK_MAINTENANCE_LOCK_TIME) {
-                        // Before breaking out, reset the media masks moving forward from this element.
-                        // By doing this, we're inherently undoing the propagation that was done to each
-                        // show/element above that didn't get logged.
-                        for (i++; i < strIndex.table.num; i++)
-                          if (strIndex.data[i] != null)
-                            strIndex.data[i].setMediaMask(mmCache[i]);
-                        throw new InterruptedException();
-                      }
-                    }
-                  }
-               } finally {
-                  strIndex.table.releaseWriteLock();
-                }
-              } finally {
-                showIdx.table.releaseReadLock();
-              }
-             } catch (InterruptedException e) {
-              totalUpdates += currentUpdates;
-              mediaMaskUpdateTime += Sage.eventTime() - startMediaMaskTime;
-              System.out.println("MaintenceMetric(MediaMaskUpdatePRs): " + currentUpdates + " / " + totalUpdates + " items in " + loops + " loops; ");
-              try { Thread.sleep(WIZARD_MEDIAMASK_MAINTENANCE_SLEEP_TIME); } catch (InterruptedException ignore) {}
-              continue;
-            }
-            totalUpdates += currentUpdates;
-            mediaMaskUpdateTime += Sage.eventTime() - startMediaMaskTime;
-            break; // done
-          }
-          System.out.println("MaintenceMetric(MediaMaskUpdatePRs): " + mediaMaskUpdateTime + "ms for " + totalUpdates + " items in " + loops + " loops");
-          mpause();
-          waitUntilDBClientSyncsComplete();
-
-          if (Sage.DBG) System.out.println("Wizard is fixing the media mask on the ERs...");
-          strIndex = getIndex(ER_CODE);
-          loops = 0;
-          mediaMaskUpdateTime = 0;
-          totalUpdates = 0;
-          mediaMaskUpdateTime = 0;
-          while(true) {
-            currentUpdates = 0;
-            loops++;
-            try {
-             try {
-                showIdx.table.acquireReadLock();
-                try {
-                  strIndex.table.acquireWriteLock();
-                   // First copy all of the masks in this table, reallocate cache array if not big enough
-                  // Also zero out all of the existing ones so they can be created fresh
-                  if (mmCache.length < strIndex.table.num)
-                    mmCache = new int[strIndex.table.num];
-                  for (int i = 0; i < strIndex.table.num; i++)
-                  {
-                    if (strIndex.data[i] != null)
-                    {
-                      mmCache[i] = strIndex.data[i].getMediaMask();
-                      strIndex.data[i].setMediaMask(0);
-                    }
-                  }
-                  // Now propogate all of the Show media masks down to the people table
-                  for (int i = 0; i < showIdx.table.num; i++)
-                  {
-                    Show currShow = (Show) showIdx.data[i];
-                    if (currShow != null && currShow.getMediaMask() != 0 &&
-                        currShow.ers != null && currShow.ers.length > 0)
-                    {
-                      for (int j = 0; j < currShow.ers.length; j++)
-                      {
-                        if (!currShow.ers[j].hasMediaMask(currShow.getMediaMask()))
-                        {
-                          currShow.ers[j].addMediaMask(currShow.getMediaMask());
-                        }
-                      }
-                    }
-                  }
-                  startMediaMaskTime = Sage.eventTime();
-                  // Now go through and distribute the actual updates for any changes
-                  // that occurred
-                  for (int i = 0; i < strIndex.table.num; i++)
-                  {
-                    if (strIndex.data[i] != null && strIndex.data[i].getMediaMask() != mmCache[i])
-                    {
-                      logUpdate(strIndex.data[i], ER_CODE);
-                      currentUpdates++;
-                      if((Sage.eventTime() - startMediaMaskTime) > WIZARD_MEDIAMASK_MAINTENANCE_LOCK_TIME) {
-                        // Before breaking out, reset the media masks moving forward from this element.
-                        // By doing this, we're inherently undoing the propagation that was done to each
-                        // show/element above that didn't get logged.
-                        for (i++; i < strIndex.table.num; i++)
-                          if (strIndex.data[i] != null)
-                            strIndex.data[i].setMediaMask(mmCache[i]);
-                        throw new InterruptedException();
-                      }
-                    }
-                  }
-               } finally {
-                  strIndex.table.releaseWriteLock();
-                }
-              } finally {
-                showIdx.table.releaseReadLock();
-              }
-             } catch (InterruptedException e) {
-              totalUpdates += currentUpdates;
-              mediaMaskUpdateTime += Sage.eventTime() - startMediaMaskTime;
-              System.out.println("MaintenceMetric(MediaMaskUpdateERs): " + currentUpdates + " / " + totalUpdates + " items in " + loops + " loops; ");
-              try { Thread.sleep(WIZARD_MEDIAMASK_MAINTENANCE_SLEEP_TIME); } catch (InterruptedException ignore) {}
-              continue;
-            }
-            totalUpdates += currentUpdates;
-            mediaMaskUpdateTime += Sage.eventTime() - startMediaMaskTime;
-            break; // done
-          }
-          System.out.println("MaintenceMetric(MediaMaskUpdateERs): " + mediaMaskUpdateTime + "ms for " + totalUpdates + " items in " + loops + " loops");
-          mpause();
-          waitUntilDBClientSyncsComplete();
-
-          if (Sage.DBG) System.out.println("Wizard is fixing the media mask on the Bonus...");
-          strIndex = getIndex(BONUS_CODE);
-          loops = 0;
-          mediaMaskUpdateTime = 0;
-          totalUpdates = 0;
-          mediaMaskUpdateTime = 0;
-          while(true) {
-            currentUpdates = 0;
-            loops++;
-            try {
-             try {
-                showIdx.table.acquireReadLock();
-                try {
-                  strIndex.table.acquireWriteLock();
-                   // First copy all of the masks in this table, reallocate cache array if not big enough
-                  // Also zero out all of the existing ones so they can be created fresh
-                  if (mmCache.length < strIndex.table.num)
-                    mmCache = new int[strIndex.table.num];
-                  for (int i = 0; i < strIndex.table.num; i++)
-                  {
-                    if (strIndex.data[i] != null)
-                    {
-                      mmCache[i] = strIndex.data[i].getMediaMask();
-                      strIndex.data[i].setMediaMask(0);
-                    }
-                  }
-                  // Now propagate all of the Show media masks down to the stringer table
-                  for (int i = 0; i < showIdx.table.num; i++)
-                  {
-                    Show currShow = (Show) showIdx.data[i];
-                    if (currShow != null && currShow.getMediaMask() != 0)
-                    {
-                      if (currShow.bonuses != null && currShow.bonuses.length > 0)
-                      {
-                        for (int j = 0; j < currShow.bonuses.length; j++)
-                        {
-                          if (!currShow.bonuses[j].hasMediaMask(currShow.getMediaMask()))
-                          {
-                            currShow.bonuses[j].addMediaMask(currShow.getMediaMask());
-                          }
-                        }
-                      }
-                      if (currShow.language != null)
-                      {
-                        if (!currShow.language.hasMediaMask(currShow.getMediaMask()))
-                        {
-                          currShow.language.addMediaMask(currShow.getMediaMask());
-                        }
-                      }
-                    }
-                  }
-                  startMediaMaskTime = Sage.eventTime();
-                  // Now go through and distribute the actual updates for any changes
-                  // that occurred
-                  for (int i = 0; i < strIndex.table.num; i++)
-                  {
-                    if (strIndex.data[i] != null && strIndex.data[i].getMediaMask() != mmCache[i])
-                    {
-                      logUpdate(strIndex.data[i], BONUS_CODE);
-                      currentUpdates++;
-                      if((Sage.eventTime() - startMediaMaskTime) > WIZARD_MEDIAMASK_MAINTENANCE_LOCK_TIME) {
-                        // Before breaking out, reset the media masks moving forward from this element.
-                        // By doing this, we're inherently undoing the propagation that was done to each
-                        // show/element above that didn't get logged.
-                        for (i++; i < strIndex.table.num; i++)
-                          if (strIndex.data[i] != null)
-                            strIndex.data[i].setMediaMask(mmCache[i]);
-                        throw new InterruptedException();
-                      }
-                    }
-                  }
-               } finally {
-                  strIndex.table.releaseWriteLock();
-                }
-              } finally {
-                showIdx.table.releaseReadLock();
-              }
-             } catch (InterruptedException e) {
-              totalUpdates += currentUpdates;
-              mediaMaskUpdateTime += Sage.eventTime() - startMediaMaskTime;
-              System.out.println("MaintenceMetric(MediaMaskUpdateBonus): " + currentUpdates + " / " + totalUpdates + " items in " + loops + " loops; ");
-              try { Thread.sleep(WIZARD_MEDIAMASK_MAINTENANCE_SLEEP_TIME); } catch (InterruptedException ignore) {}
-              continue;
-            }
-            totalUpdates += currentUpdates;
-            mediaMaskUpdateTime += Sage.eventTime() - startMediaMaskTime;
-            break; // done
-          }
-          System.out.println("MaintenceMetric(MediaMaskUpdateBonus): " + mediaMaskUpdateTime + "ms for " + totalUpdates + " items in " + loops + " loops");
-
-        }
-        Sage.gcPause();
-        mpause();
-        mpause();
+        storeColdShowText();
 
         /*
          * 7/20/03
@@ -2374,10 +1557,13 @@ public class Wizard implements EPGDBPublic2
         e.printStackTrace(System.out);
       } finally {
         performingMaintenance = false;
+        if (maintenancePool != null)
+          maintenancePool.shutdown();
       }
     }
 
-    god.submitJob(new Object[] { Carny.STD_JOB, null });
+    // The profile only needs to be redone for what changed unless this was a full maintenance
+    god.submitJob(new Object[] { (maintenanceType == MaintenanceType.FULL) ? Carny.STD_JOB : Carny.DELTA_JOB, null });
 
     // Only update maintenance time for a Full maintenance
     if ( maintenanceType == MaintenanceType.FULL ){
@@ -2387,6 +1573,432 @@ public class Wizard implements EPGDBPublic2
     version = VERSION;
   }
 
+  // Yields if this unit of maintenance work has used up its time budget or any clients are falling behind on xcts
+  private void maintenanceCheckpoint(MaintenancePhase.Unit unit)
+  {
+    if (unit.itemDone() || getMaxPendingClientXcts() > 8)
+    {
+      long pauseStart = Sage.eventTime();
+      mpause();
+      unit.yielded(Sage.eventTime() - pauseStart);
+    }
+  }
+
+  private static void finishMaintenancePhase(MaintenancePhase phase, MaintenancePhase.Unit unit)
+  {
+    unit.done();
+    phase.finish();
+    if (Sage.DBG) System.out.println(phase);
+  }
+
+  // Runs these units of maintenance work on the pool, or one after another on this thread if there's no pool
+  private static <T> List<T> runMaintenanceUnits(ForkJoinPool pool, List<Callable<T>> units) throws Exception
+  {
+    List<T> rv = new ArrayList<T>(units.size());
+    if (pool == null)
+    {
+      for (Callable<T> unit : units)
+        rv.add(unit.call());
+    }
+    else
+    {
+      for (Future<T> future : pool.invokeAll(units))
+        rv.add(future.get());
+    }
+    return rv;
+  }
+
+  // Tables whose objects are removed in maintenance if nothing references them
+  private static final byte[] ORPHAN_STRINGER_CODES = { TITLE_CODE, PRIME_TITLE_CODE, PEOPLE_CODE, CATEGORY_CODE,
+    SUBCATEGORY_CODE, BONUS_CODE };
+
+  /*
+   * Gets the IDs of all the titles, people, categories & bonuses that are referenced by a Show, Person, Agent,
+   * Playlist or SeriesInfo. Those are all read-only scans of different tables so they are done in parallel.
+   */
+  private Set<Integer> getMaintenanceKeeperIDs(ForkJoinPool pool) throws Exception
+  {
+    List<Callable<Set<Integer>>> scans = new ArrayList<Callable<Set<Integer>>>();
+    scans.add(new Callable<Set<Integer>>()
+    {
+      public Set<Integer> call()
+      {
+        Set<Integer> keeperIDs = new HashSet<Integer>();
+        Index showIdx = getIndex(SHOW_CODE);
+        try {
+          showIdx.table.acquireReadLock();
+          DBObject[] showIdxData = showIdx.getData();
+          for (int i = 0; i < showIdx.table.size() && i < showIdxData.length; i++)
+          {
+            Show iShow = (Show) showIdxData[i];
+            if (iShow.title != null)
+              keeperIDs.add(iShow.title.id);
+            for (int j = 0; j < iShow.categories.length; j++)
+            {
+              keeperIDs.add(iShow.categories[j].id);
+            }
+            for (int j = 0; j < iShow.people.length; j++)
+            {
+              keeperIDs.add(iShow.people[j].id);
+            }
+            for (int j = 0; j < iShow.bonuses.length; j++)
+            {
+              keeperIDs.add(iShow.bonuses[j].id);
+            }
+            if (iShow.language != null)
+              keeperIDs.add(iShow.language.id);
+          }
+        } finally {
+          showIdx.table.releaseReadLock();
+        }
+        return keeperIDs;
+      }
+    });
+    // Keep all of the awards & birthplaces for People and all the aliases for people
+    scans.add(new Callable<Set<Integer>>()
+    {
+      public Set<Integer> call()
+      {
+        Set<Integer> keeperIDs = new HashSet<Integer>();
+        Index peopleIdx = getIndex(PEOPLE_CODE);
+        try {
+          peopleIdx.table.acquireReadLock();
+          DBObject[] peopleIdxData = peopleIdx.getData();
+          for (int i = 0; i < peopleIdx.table.size() && i < peopleIdxData.length; i++)
+          {
+            Person p = (Person) peopleIdxData[i];
+            if (p.awardNames != null)
+            {
+              for (int j = 0; j < p.awardNames.length; j++)
+                keeperIDs.add(p.awardNames[j].id);
+            }
+            if (p.birthPlace != null)
+              keeperIDs.add(p.birthPlace.id);
+            if (p.extID < 0)
+            {
+              Person alias = p.getOriginalAlias();
+              if (alias != null)
+                keeperIDs.add(alias.id);
+            }
+          }
+        } finally {
+          peopleIdx.table.releaseReadLock();
+        }
+        return keeperIDs;
+      }
+    });
+    // Keep all of the Agent templates
+    scans.add(new Callable<Set<Integer>>()
+    {
+      public Set<Integer> call()
+      {
+        Set<Integer> keeperIDs = new HashSet<Integer>();
+        Index agentIdx = getIndex(AGENT_CODE);
+        try {
+          agentIdx.table.acquireReadLock();
+          DBObject[] agentIdxData = agentIdx.getData();
+          for (int i = 0; i < agentIdx.table.size() && i < agentIdxData.length; i++)
+          {
+            Agent bond = (Agent) agentIdxData[i];
+            if (bond.title != null)
+              keeperIDs.add(bond.title.id);
+            if (bond.person != null)
+              keeperIDs.add(bond.person.id);
+            if (bond.category != null)
+              keeperIDs.add(bond.category.id);
+            if (bond.subCategory != null)
+              keeperIDs.add(bond.subCategory.id);
+            // Agents don't use Bonus
+          }
+        } finally {
+          agentIdx.table.releaseReadLock();
+        }
+        return keeperIDs;
+      }
+    });
+    // Retain any titles, genres, people or years used by the Playlists in keeping an Album record
+    scans.add(new Callable<Set<Integer>>()
+    {
+      public Set<Integer> call()
+      {
+        Set<Integer> keeperIDs = new HashSet<Integer>();
+        Playlist[] thePlaylists = getPlaylists();
+        for (int i = 0; i < thePlaylists.length; i++)
+        {
+          for (int j = 0; j < thePlaylists[i].getNumSegments(); j++)
+          {
+            if (thePlaylists[i].getSegmentType(j) == Playlist.ALBUM_SEGMENT)
+            {
+              Album allie = (Album) thePlaylists[i].getSegment(j);
+              DBObject ts = allie.getTitleStringer();
+              if (ts != null)
+                keeperIDs.add(ts.id);
+              ts = allie.getArtistObj();
+              if (ts != null)
+                keeperIDs.add(ts.id);
+              ts = allie.getGenreStringer();
+              if (ts != null)
+                keeperIDs.add(ts.id);
+              ts = allie.getYearStringer();
+              if (ts != null)
+                keeperIDs.add(ts.id);
+            }
+          }
+        }
+        return keeperIDs;
+      }
+    });
+    // Retain any title/network/people used by SeriesInfo
+    scans.add(new Callable<Set<Integer>>()
+    {
+      public Set<Integer> call()
+      {
+        Set<Integer> keeperIDs = new HashSet<Integer>();
+        SeriesInfo[] allSeries = getAllSeriesInfo();
+        for (int i = 0; i < allSeries.length; i++)
+        {
+          if (allSeries[i].title != null)
+            keeperIDs.add(allSeries[i].title.id);
+          if (allSeries[i].network != null)
+            keeperIDs.add(allSeries[i].network.id);
+          for (int j = 0; j < allSeries[i].people.length; j++)
+            if (allSeries[i].people[j] != null)
+              keeperIDs.add(allSeries[i].people[j].id);
+        }
+        return keeperIDs;
+      }
+    });
+    Set<Integer> rv = new HashSet<Integer>();
+    for (Set<Integer> ids : runMaintenanceUnits(pool, scans))
+      rv.addAll(ids);
+    return rv;
+  }
+
+  /*
+   * Removes the objects in these tables that aren't in keeperIDs and were created before maintenance started.
+   * Finding them is done in parallel since it only reads the tables; the removals are then done one table at a time.
+   */
+  private void removeUnreferencedStringers(byte[] codes, final Set<Integer> keeperIDs, final int maintainStartID,
+      boolean logMaintenanceXcts, ForkJoinPool pool, MaintenancePhase.Unit unit) throws Exception
+  {
+    List<Callable<Set<DBObject>>> scans = new ArrayList<Callable<Set<DBObject>>>();
+    for (final byte code : codes)
+    {
+      scans.add(new Callable<Set<DBObject>>()
+      {
+        public Set<DBObject> call()
+        {
+          Set<DBObject> removeSet = new HashSet<DBObject>();
+          Index strIndex = getIndex(code);
+          try {
+            strIndex.table.acquireReadLock();
+            DBObject[] strIndexData = strIndex.getData();
+            for (int i = 0; i < strIndex.table.size() && i < strIndexData.length; i++)
+            {
+              DBObject currStr = strIndexData[i];
+              if (currStr != null && !keeperIDs.contains(currStr.id) && currStr.id < maintainStartID)
+                removeSet.add(currStr);
+            }
+          } finally {
+            strIndex.table.releaseReadLock();
+          }
+          return removeSet;
+        }
+      });
+    }
+    List<Set<DBObject>> removeSets = runMaintenanceUnits(pool, scans);
+    for (int i = 0; i < codes.length; i++)
+    {
+      Set<DBObject> removeSet = removeSets.get(i);
+      Table t = getTable(codes[i]);
+      if (Sage.DBG) System.out.println("Clearing out " + removeSet.size() + " " + getNameForCode(codes[i]) +
+          " objects of " + t.size() + " total.");
+      if (!removeSet.isEmpty())
+      {
+        int currRemovalMask = 0;
+        for (DBObject obj : removeSet)
+          currRemovalMask = ((currRemovalMask | obj.getMediaMask()) & DBObject.MEDIA_MASK_ALL);
+        t.massRemove(removeSet, logMaintenanceXcts);
+        updateLastModified(currRemovalMask);
+      }
+      maintenanceCheckpoint(unit);
+    }
+  }
+
+  // Tables whose media masks are generated from the media masks of the Shows that reference them
+  private static final byte[] MEDIA_MASK_STRINGER_CODES = { TITLE_CODE, YEAR_CODE, PEOPLE_CODE, CATEGORY_CODE,
+    SUBCATEGORY_CODE, RATED_CODE, PR_CODE, ER_CODE, BONUS_CODE };
+
+  /*
+   * Regenerates the media masks of the Stringer & People tables from the Show media masks. Each table is its own
+   * unit of work; they only share the read lock on the Show table so they are run in parallel.
+   */
+  private void fixStringerMediaMasks(ForkJoinPool pool, final MaintenancePhase phase) throws Exception
+  {
+    final Index showIdx = getIndex(SHOW_CODE);
+    List<Callable<Object>> units = new ArrayList<Callable<Object>>();
+    for (final byte code : MEDIA_MASK_STRINGER_CODES)
+    {
+      units.add(new Callable<Object>()
+      {
+        public Object call()
+        {
+          fixStringerMediaMasks(code, showIdx, phase.newUnit());
+          return null;
+        }
+      });
+    }
+    runMaintenanceUnits(pool, units);
+  }
+
+  private void fixStringerMediaMasks(byte code, Index showIdx, MaintenancePhase.Unit unit)
+  {
+    String tableName = getNameForCode(code);
+    if (Sage.DBG) System.out.println("Wizard is fixing the media mask on the " + tableName + " table...");
+    Index strIndex = getIndex(code);
+    // We use this array for figuring out which media masks actually changed so we only distribute updates on
+    // changed objects, otherwise we can lock these tables for too long if there are connected clients.
+    int[] mmCache = Pooler.EMPTY_INT_ARRAY;
+    long mediaMaskUpdateTime = 0;
+    int totalUpdates = 0;
+    int loops = 0;
+    while (true)
+    {
+      int currentUpdates = 0;
+      boolean outOfTime = false;
+      long startMediaMaskTime;
+      loops++;
+      try {
+        showIdx.table.acquireReadLock();
+        try {
+          strIndex.table.acquireWriteLock();
+          // First copy all of the masks in this table, reallocate cache array if not big enough
+          // Also zero out all of the existing ones so they can be created fresh
+          DBObject[] strIndexData = strIndex.getData();
+          int numStrs = Math.min(strIndex.table.size(), strIndexData.length);
+          if (mmCache.length < numStrs)
+            mmCache = new int[numStrs];
+          for (int i = 0; i < numStrs; i++)
+          {
+            if (strIndexData[i] != null)
+            {
+              mmCache[i] = strIndexData[i].getMediaMask();
+              strIndexData[i].setMediaMask(0);
+            }
+          }
+          // Now propagate all of the Show media masks down to this table
+          DBObject[] showIdxData = showIdx.getData();
+          for (int i = 0; i < showIdx.table.size() && i < showIdxData.length; i++)
+          {
+            Show currShow = (Show) showIdxData[i];
+            if (currShow != null && currShow.getMediaMask() != 0)
+              propagateMediaMask(currShow, code);
+          }
+          startMediaMaskTime = Sage.eventTime();
+          // Now go through and distribute the actual updates for any changes
+          // that occurred; propagating the masks doesn't add or remove anything so the array is still current
+          for (int i = 0; i < numStrs; i++)
+          {
+            DBObject currStr = strIndexData[i];
+            if (currStr != null && currStr.getMediaMask() != mmCache[i])
+            {
+              logUpdate(currStr, code);
+              currentUpdates++;
+              if ((Sage.eventTime() - startMediaMaskTime) > WIZARD_MEDIAMASK_MAINTENANCE_LOCK_TIME)
+              {
+                // Before breaking out, reset the media masks moving forward from this element.
+                // By doing this, we're inherently undoing the propagation that was done to each
+                // show/element above that didn't get logged. The next pass then continues from there.
+                for (i++; i < numStrs; i++)
+                  if (strIndexData[i] != null)
+                    strIndexData[i].setMediaMask(mmCache[i]);
+                outOfTime = true;
+                break;
+              }
+              maintenanceCheckpoint(unit);
+            }
+          }
+        } finally {
+          strIndex.table.releaseWriteLock();
+        }
+      } finally {
+        showIdx.table.releaseReadLock();
+      }
+      totalUpdates += currentUpdates;
+      mediaMaskUpdateTime += Sage.eventTime() - startMediaMaskTime;
+      if (!outOfTime)
+        break; // done
+      System.out.println("MaintenceMetric(MediaMaskUpdate" + tableName + "): " + currentUpdates + " / " + totalUpdates +
+          " items in " + loops + " loops; ");
+      try { Thread.sleep(WIZARD_MEDIAMASK_MAINTENANCE_SLEEP_TIME); } catch (InterruptedException ignore) {}
+      unit.yielded(WIZARD_MEDIAMASK_MAINTENANCE_SLEEP_TIME);
+    }
+    unit.done();
+    System.out.println("MaintenceMetric(MediaMaskUpdate" + tableName + "): " + mediaMaskUpdateTime + "ms for " +
+        totalUpdates + " items in " + loops + " loops");
+    waitUntilDBClientSyncsComplete();
+  }
+
+  // Adds the media mask of the Show to what it references in the table with this code
+  private static void propagateMediaMask(Show show, byte code)
+  {
+    int mask = show.getMediaMask();
+    switch (code)
+    {
+      case TITLE_CODE:
+        addMediaMask(show.title, mask);
+        break;
+      case YEAR_CODE:
+        addMediaMask(show.year, mask);
+        break;
+      case PEOPLE_CODE:
+        if (show.people != null)
+        {
+          for (int i = 0; i < show.people.length; i++)
+            addMediaMask(show.people[i], mask);
+        }
+        break;
+      case CATEGORY_CODE:
+        if (show.categories != null && show.categories.length > 0)
+          addMediaMask(show.categories[0], mask);
+        break;
+      case SUBCATEGORY_CODE:
+        if (show.categories != null)
+        {
+          for (int i = 1; i < show.categories.length; i++)
+            addMediaMask(show.categories[i], mask);
+        }
+        break;
+      case RATED_CODE:
+        addMediaMask(show.rated, mask);
+        break;
+      case PR_CODE:
+        addMediaMask(show.pr, mask);
+        break;
+      case ER_CODE:
+        if (show.ers != null)
+        {
+          for (int i = 0; i < show.ers.length; i++)
+            addMediaMask(show.ers[i], mask);
+        }
+        break;
+      case BONUS_CODE:
+        if (show.bonuses != null)
+        {
+          for (int i = 0; i < show.bonuses.length; i++)
+            addMediaMask(show.bonuses[i], mask);
+        }
+        addMediaMask(show.language, mask);
+        break;
+    }
+  }
+
+  private static void addMediaMask(DBObject obj, int mask)
+  {
+    if (obj != null && !obj.hasMediaMask(mask))
+      obj.addMediaMask(mask);
+  }
+
   private void fixNoDataDuration(Airing fixMe, boolean logTX)
   {
     if (fixMe.duration < noDataMaxLen || fixMe.getEndTime() < Sage.time()) return;
@@ -2462,7 +2074,8 @@ public class Wizard implements EPGDBPublic2
       long loadStart = Sage.time();
       if (Sage.DBG) System.out.println("Wizard starting to load database info...");
       Sage.setSplashText(Sage.rez("Module_Init", new Object[] { Sage.rez("Object_Database_Source") }));
-      if (dbFile != null && (!dbFile.isFile() || dbFile.length() == 0) && dbBackupFile != null && dbBackupFile.isFile())
+      if (dbFile != null && (!dbFile.isFile() || dbFile.length() == 0) && dbBackupFile != null && dbBackupFile.isFile() &&
+          !hasCheckpointManifest())
       {
         try
         {
@@ -2476,7 +2089,10 @@ public class Wizard implements EPGDBPublic2
       }
       boolean saveNow = !loadDBFile();
       // If there's no backup file then create one
-      if (!dbBackupFile.isFile() || dbBackupFile.length() == 0)
+      if (checkpointManifest == null && (!dbBackupFile.isFile() || dbBackupFile.length() == 0))
+        saveNow = true;
+      // Switching between the DB file and segmented checkpoints requires saving everything in the new format
+      if (!Sage.client && segmentedCheckpoints != (checkpointManifest != null))
         saveNow = true;
       long loadEnd = Sage.time();
       if (!Sage.client)
@@ -2489,8 +2105,9 @@ public class Wizard implements EPGDBPublic2
           Table sTable = getTable(SHOW_CODE);
           try {
             sTable.acquireWriteLock();
-            for (int i = 0; i < sTable.num; i++) {
-              ((Show) sTable.primary.data[i]).lastWatched = 0;
+            DBObject[] sTableData = sTable.primary.getData();
+            for (int i = 0; i < sTable.size() && i < sTableData.length; i++) {
+              ((Show) sTableData[i]).lastWatched = 0;
             }
           } finally {
             sTable.releaseWriteLock();
@@ -2504,8 +2121,9 @@ public class Wizard implements EPGDBPublic2
           Table sTable = getTable(SHOW_CODE);
           try {
             sTable.acquireWriteLock();
-            for (int i = 0; i < sTable.num; i++) {
-              ((Show) sTable.primary.data[i]).lastWatched = 0;
+            DBObject[] sTableData = sTable.primary.getData();
+            for (int i = 0; i < sTable.size() && i < sTableData.length; i++) {
+              ((Show) sTableData[i]).lastWatched = 0;
             }
           } finally {
             sTable.releaseWriteLock();
@@ -2524,17 +2142,45 @@ public class Wizard implements EPGDBPublic2
       }
       else if (!Sage.client && dbFile != null)
       {
-        String mode = "rwd";
+        File logFile = dbFile;
+        if (checkpointManifest != null)
+        {
+          logFile = checkpointManifest.getCurrentTail();
+          // Tables that had xcts in the tail have changed since their segments were written
+          for (int i = 0; i < tables.length; i++)
+          {
+            if (tables[i] != null && !checkpointTailTables.contains(tables[i].tableCode))
+              checkpointModCounts.put(tables[i].tableCode, tables[i].getModCount());
+          }
+          checkpointManifest.deleteUnreferencedFiles();
+        }
+        String mode = getLogFileMode();
         // 128k was chosen from observing most random writes are typically less than this distance
         // behind the actual write buffer. The original default of 64k would often miss even with
         // the optimizer trying to compensate for the last miss since the misses were more than 64k
         // behind the latest write.
         dbout = new SageDataFile(new BufferedSageFile(
-            new LocalSageFile(dbFile, mode),
+            new LocalSageFile(logFile, mode),
             BufferedSageFile.READ_BUFFER_SIZE, 131072),
             Sage.I18N_CHARSET);
         dbout.seek(dbout.length());
       }
+      if (!Sage.client && Sage.getBoolean(prefsRoot + MAPPED_SHOW_TEXT, false))
+      {
+        try
+        {
+          // Remove what's left of a compaction from the last run
+          getShowTextFile(true).delete();
+          showTextStore = new MappedTextStore(getShowTextFile(false),
+              Sage.getInt(prefsRoot + MAPPED_SHOW_TEXT_CACHE_SIZE, 2000));
+          storeColdShowText();
+        }
+        catch (IOException e)
+        {
+          System.out.println("ERROR creating mapped text store for Shows, descriptions will stay in memory:" + e);
+          showTextStore = null;
+        }
+      }
       if (Sage.getBoolean("db_perf_analysis", false))
         System.exit(0);
       Sage.setSplashText(Sage.rez("Module_Init_Progress", new Object[] { Sage.rez("Object_Database"), new Double(1.0) }));
@@ -2589,103 +2235,125 @@ public class Wizard implements EPGDBPublic2
       dumpStream = new PrintWriter(new BufferedWriter(new
           FileWriter(dump)));
       Table t = getTable(NETWORK_CODE);
-      for (int i = 0; i < t.num; i++)
+      DBObject[] tData = t.primary.getData();
+      for (int i = 0; i < t.size() && i < tData.length; i++)
       {
-        dumpStream.println("Network: " + t.primary.data[i].getMediaMaskString() + ' ' + t.primary.data[i].toString());
+        dumpStream.println("Network: " + tData[i].getMediaMaskString() + ' ' + tData[i].toString());
       }
       t = getTable(CHANNEL_CODE);
-      for (int i = 0; i < t.num; i++)
+      tData = t.primary.getData();
+      for (int i = 0; i < t.size() && i < tData.length; i++)
       {
-        dumpStream.println(t.primary.data[i].toString());
+        dumpStream.println(tData[i].toString());
       }
 
       Index indy = getIndex(TITLE_CODE, TITLES_BY_NAME_CODE);
-      for (int i = 0; i < indy.table.num; i++)
-        dumpStream.println("Title: " + indy.data[i].getMediaMaskString() + ' ' + indy.data[i].toString());
+      DBObject[] indyData = indy.getData();
+      for (int i = 0; i < indy.table.size() && i < indyData.length; i++)
+        dumpStream.println("Title: " + indyData[i].getMediaMaskString() + ' ' + indyData[i].toString());
 
       indy = getIndex(PRIME_TITLE_CODE, PRIME_TITLES_BY_NAME_CODE);
-      for (int i = 0; i < indy.table.num; i++)
-        dumpStream.println("PrimeTitle: " + indy.data[i].getMediaMaskString() + ' ' + indy.data[i].toString());
+      indyData = indy.getData();
+      for (int i = 0; i < indy.table.size() && i < indyData.length; i++)
+        dumpStream.println("PrimeTitle: " + indyData[i].getMediaMaskString() + ' ' + indyData[i].toString());
 
       indy = getIndex(PEOPLE_CODE, PEOPLE_BY_NAME_CODE);
-      for (int i = 0; i < indy.table.num; i++)
-        dumpStream.println("Person: " + indy.data[i].getMediaMaskString() + ' ' + ((Person)indy.data[i]).getFullString());
+      indyData = indy.getData();
+      for (int i = 0; i < indy.table.size() && i < indyData.length; i++)
+        dumpStream.println("Person: " + indyData[i].getMediaMaskString() + ' ' + ((Person)indyData[i]).getFullString());
 
       t = getTable(CATEGORY_CODE);
-      for (int i = 0; i < t.num; i++)
+      tData = t.primary.getData();
+      for (int i = 0; i < t.size() && i < tData.length; i++)
       {
-        dumpStream.println("Category: " + t.primary.data[i].getMediaMaskString() + ' ' + t.primary.data[i].toString());
+        dumpStream.println("Category: " + tData[i].getMediaMaskString() + ' ' + tData[i].toString());
       }
       t = getTable(SUBCATEGORY_CODE);
-      for (int i = 0; i < t.num; i++)
+      tData = t.primary.getData();
+      for (int i = 0; i < t.size() && i < tData.length; i++)
       {
-        dumpStream.println("SubCategory: " + t.primary.data[i].getMediaMaskString() + ' ' + t.primary.data[i].toString());
+        dumpStream.println("SubCategory: " + tData[i].getMediaMaskString() + ' ' + tData[i].toString());
       }
       t = getTable(RATED_CODE);
-      for (int i = 0; i < t.num; i++)
+      tData = t.primary.getData();
+      for (int i = 0; i < t.size() && i < tData.length; i++)
       {
-        dumpStream.println("Rated: " + t.primary.data[i].getMediaMaskString() + ' ' + t.primary.data[i].toString());
+        dumpStream.println("Rated: " + tData[i].getMediaMaskString() + ' ' + tData[i].toString());
       }
       t = getTable(PR_CODE);
-      for (int i = 0; i < t.num; i++)
+      tData = t.primary.getData();
+      for (int i = 0; i < t.size() && i < tData.length; i++)
       {
-        dumpStream.println("PR: " + t.primary.data[i].getMediaMaskString() + ' ' + t.primary.data[i].toString());
+        dumpStream.println("PR: " + tData[i].getMediaMaskString() + ' ' + tData[i].toString());
       }
       t = getTable(ER_CODE);
-      for (int i = 0; i < t.num; i++)
+      tData = t.primary.getData();
+      for (int i = 0; i < t.size() && i < tData.length; i++)
       {
-        dumpStream.println("ER: " + t.primary.data[i].getMediaMaskString() + ' ' + t.primary.data[i].toString());
+        dumpStream.println("ER: " + tData[i].getMediaMaskString() + ' ' + tData[i].toString());
       }
       t = getTable(YEAR_CODE);
-      for (int i = 0; i < t.num; i++)
+      tData = t.primary.getData();
+      for (int i = 0; i < t.size() && i < tData.length; i++)
       {
-        dumpStream.println("Year: " + t.primary.data[i].getMediaMaskString() + ' ' + t.primary.data[i].toString());
+        dumpStream.println("Year: " + tData[i].getMediaMaskString() + ' ' + tData[i].toString());
       }
       t = getTable(BONUS_CODE);
-      for (int i = 0; i < t.num; i++)
+      tData = t.primary.getData();
+      for (int i = 0; i < t.size() && i < tData.length; i++)
       {
-        dumpStream.println("Bonus: " + t.primary.data[i].getMediaMaskString() + ' ' + t.primary.data[i].toString());
+        dumpStream.println("Bonus: " + tData[i].getMediaMaskString() + ' ' + tData[i].toString());
       }
 
       indy = getIndex(SHOW_CODE);
-      for (int i = 0; i < indy.table.num; i++)
-        dumpStream.println(indy.data[i].getMediaMaskString() + ' ' + indy.data[i].toString());
+      indyData = indy.getData();
+      for (int i = 0; i < indy.table.size() && i < indyData.length; i++)
+        dumpStream.println(indyData[i].getMediaMaskString() + ' ' + indyData[i].toString());
 
       indy = getIndex(AIRING_CODE, AIRINGS_BY_CT_CODE);
-      for (int i = 0; i < indy.table.num; i++)
-        dumpStream.println(indy.data[i].getMediaMaskString() + ' ' + indy.data[i].toString());
+      indyData = indy.getData();
+      for (int i = 0; i < indy.table.size() && i < indyData.length; i++)
+        dumpStream.println(indyData[i].getMediaMaskString() + ' ' + indyData[i].toString());
 
       t = getTable(AGENT_CODE);
-      for (int i = 0; i < t.num; i++)
-        dumpStream.println(t.primary.data[i].toString());
+      tData = t.primary.getData();
+      for (int i = 0; i < t.size() && i < tData.length; i++)
+        dumpStream.println(tData[i].toString());
 
       t = getTable(MEDIAFILE_CODE);
-      for (int i = 0; i < t.num; i++)
-        dumpStream.println(t.primary.data[i].getMediaMaskString() + ' ' + t.primary.data[i].toString());
+      tData = t.primary.getData();
+      for (int i = 0; i < t.size() && i < tData.length; i++)
+        dumpStream.println(tData[i].getMediaMaskString() + ' ' + tData[i].toString());
 
       t = getTable(MANUAL_CODE);
-      for (int i = 0; i < t.num; i++)
-        dumpStream.println(t.primary.data[i].toString());
+      tData = t.primary.getData();
+      for (int i = 0; i < t.size() && i < tData.length; i++)
+        dumpStream.println(tData[i].toString());
 
       t = getTable(WASTED_CODE);
-      for (int i = 0; i < t.num; i++)
-        dumpStream.println(t.primary.data[i].getMediaMaskString() + ' ' + t.primary.data[i].toString());
+      tData = t.primary.getData();
+      for (int i = 0; i < t.size() && i < tData.length; i++)
+        dumpStream.println(tData[i].getMediaMaskString() + ' ' + tData[i].toString());
 
       t = getTable(WATCH_CODE);
-      for (int i = 0; i < t.num; i++)
-        dumpStream.println(t.primary.data[i].getMediaMaskString() + ' ' + t.primary.data[i].toString());
+      tData = t.primary.getData();
+      for (int i = 0; i < t.size() && i < tData.length; i++)
+        dumpStream.println(tData[i].getMediaMaskString() + ' ' + tData[i].toString());
 
       t = getTable(WIDGET_CODE);
-      for (int i = 0; i < t.num; i++)
-        dumpStream.println(t.primary.data[i].toString());
+      tData = t.primary.getData();
+      for (int i = 0; i < t.size() && i < tData.length; i++)
+        dumpStream.println(tData[i].toString());
 
       t = getTable(SERIESINFO_CODE);
-      for (int i = 0; i < t.num; i++)
-        dumpStream.println(t.primary.data[i].toString());
+      tData = t.primary.getData();
+      for (int i = 0; i < t.size() && i < tData.length; i++)
+        dumpStream.println(tData[i].toString());
 
       t = getTable(TVEDITORIAL_CODE);
-      for (int i = 0; i < t.num; i++)
-        dumpStream.println(t.primary.data[i].toString());
+      tData = t.primary.getData();
+      for (int i = 0; i < t.size() && i < tData.length; i++)
+        dumpStream.println(tData[i].toString());
     }
     finally
     {
@@ -2709,7 +2377,7 @@ public class Wizard implements EPGDBPublic2
   protected void notifyOfID(int idExists)
   {
     // We are single threaded on load so we don't need the sync lock then; minor performance gain from this
-    if (loading)
+    if (loading && !parallelLoading)
     {
       if (idExists >= nextID)
       {
@@ -2763,8 +2431,8 @@ public class Wizard implements EPGDBPublic2
     Table t = getTable(CHANNEL_CODE);
     try {
       t.acquireReadLock();
-      Channel[] rv = new Channel[t.num];
-      System.arraycopy(t.primary.data, 0, rv, 0, rv.length);
+      Channel[] rv = new Channel[t.size()];
+      t.primary.copyInto(0, rv, 0, rv.length);
       return rv;
     } finally {
       t.releaseReadLock();
@@ -2905,8 +2573,8 @@ public class Wizard implements EPGDBPublic2
     Table t = getTable(PLAYLIST_CODE);
     try {
       t.acquireReadLock();
-      Playlist[] rv = new Playlist[t.num];
-      System.arraycopy(t.primary.data, 0, rv, 0, rv.length);
+      Playlist[] rv = new Playlist[t.size()];
+      t.primary.copyInto(0, rv, 0, rv.length);
       return rv;
     } finally {
       t.releaseReadLock();
@@ -2921,9 +2589,10 @@ public class Wizard implements EPGDBPublic2
     ArrayList<Playlist> rv = new ArrayList<Playlist>();
     try {
       t.acquireReadLock();
-      for (int i = 0; i < t.num; i++)
-        if (((Playlist) t.primary.data[i]).isMusicPlaylist())
-          rv.add((Playlist)t.primary.data[i]);
+      DBObject[] tData = t.primary.getData();
+      for (int i = 0; i < t.size() && i < tData.length; i++)
+        if (((Playlist) tData[i]).isMusicPlaylist())
+          rv.add((Playlist)tData[i]);
     } finally {
       t.releaseReadLock();
     }
@@ -2938,9 +2607,10 @@ public class Wizard implements EPGDBPublic2
     ArrayList<Playlist> rv = new ArrayList<Playlist>();
     try {
       t.acquireReadLock();
-      for (int i = 0; i < t.num; i++)
-        if (!((Playlist) t.primary.data[i]).isMusicPlaylist())
-          rv.add((Playlist)t.primary.data[i]);
+      DBObject[] tData = t.primary.getData();
+      for (int i = 0; i < t.size() && i < tData.length; i++)
+        if (!((Playlist) tData[i]).isMusicPlaylist())
+          rv.add((Playlist)tData[i]);
     } finally {
       t.releaseReadLock();
     }
@@ -2985,12 +2655,12 @@ public class Wizard implements EPGDBPublic2
     try {
       indy.table.acquireReadLock();
       int low = 0;
-      int high = indy.table.num - 1;
+      int high = indy.table.size() - 1;
 
       while (low <= high)
       {
         int mid = (low + high) >> 1;
-        TVEditorial midVal = (TVEditorial) indy.data[mid];
+        TVEditorial midVal = (TVEditorial) indy.get(mid);
         int cmp = midVal.showID - showID;
 
         if (cmp < 0)
@@ -3015,8 +2685,8 @@ public class Wizard implements EPGDBPublic2
     Table t = getTable(TVEDITORIAL_CODE);
     try {
       t.acquireReadLock();
-      TVEditorial[] rv = new TVEditorial[t.num];
-      System.arraycopy(t.primary.data, 0, rv, 0, rv.length);
+      TVEditorial[] rv = new TVEditorial[t.size()];
+      t.primary.copyInto(0, rv, 0, rv.length);
       return rv;
     } finally {
       t.releaseReadLock();
@@ -3193,8 +2863,8 @@ public class Wizard implements EPGDBPublic2
     Table t = getTable(SERIESINFO_CODE);
     try {
       t.acquireReadLock();
-      SeriesInfo[] rv = new SeriesInfo[t.num];
-      System.arraycopy(t.primary.data, 0, rv, 0, rv.length);
+      SeriesInfo[] rv = new SeriesInfo[t.size()];
+      t.primary.copyInto(0, rv, 0, rv.length);
       return rv;
     } finally {
       t.releaseReadLock();
@@ -3208,8 +2878,8 @@ public class Wizard implements EPGDBPublic2
     Table t = getTable(PEOPLE_CODE);
     try {
       t.acquireReadLock();
-      Person[] rv = new Person[t.num];
-      System.arraycopy(t.primary.data, 0, rv, 0, rv.length);
+      Person[] rv = new Person[t.size()];
+      t.primary.copyInto(0, rv, 0, rv.length);
       return rv;
     } finally {
       t.releaseReadLock();
@@ -3223,8 +2893,8 @@ public class Wizard implements EPGDBPublic2
     Table t = getTable(SHOW_CODE);
     try {
       t.acquireReadLock();
-      Show[] rv = new Show[t.num];
-      System.arraycopy(t.primary.data, 0, rv, 0, rv.length);
+      Show[] rv = new Show[t.size()];
+      t.primary.copyInto(0, rv, 0, rv.length);
       return rv;
     } finally {
       t.releaseReadLock();
@@ -3237,12 +2907,12 @@ public class Wizard implements EPGDBPublic2
     try {
       indy.table.acquireReadLock();
       int low = 0;
-      int high = indy.table.num - 1;
+      int high = indy.table.size() - 1;
 
       while (low <= high)
       {
         int mid = (low + high) >> 1;
-        SeriesInfo midVal = (SeriesInfo) indy.data[mid];
+        SeriesInfo midVal = (SeriesInfo) indy.get(mid);
         int cmp = midVal.legacySeriesID - seriesID;
 
         if (cmp < 0)
@@ -3266,12 +2936,12 @@ public class Wizard implements EPGDBPublic2
     try {
       indy.table.acquireReadLock();
       int low = 0;
-      int high = indy.table.num - 1;
+      int high = indy.table.size() - 1;
 
       while (low <= high)
       {
         int mid = (low + high) >> 1;
-        SeriesInfo midVal = (SeriesInfo) indy.data[mid];
+        SeriesInfo midVal = (SeriesInfo) indy.get(mid);
         int cmp = midVal.showcardID - showcardID;
 
         if (cmp < 0)
@@ -3296,12 +2966,12 @@ public class Wizard implements EPGDBPublic2
     try {
       indy.table.acquireReadLock();
       int low = 0;
-      int high = indy.table.num - 1;
+      int high = indy.table.size() - 1;
 
       while (low <= high)
       {
         int mid = (low + high) >> 1;
-        SeriesInfo midVal = (SeriesInfo) indy.data[mid];
+        SeriesInfo midVal = (SeriesInfo) indy.get(mid);
         int cmp = midVal.id - id;
 
         if (cmp < 0)
@@ -3346,12 +3016,12 @@ public class Wizard implements EPGDBPublic2
     try {
       indy.table.acquireReadLock();
       int low = 0;
-      int high = indy.table.num - 1;
+      int high = indy.table.size() - 1;
 
       while (low <= high)
       {
         int mid = (low + high) >> 1;
-        UserRecord midVal = (UserRecord) indy.data[mid];
+        UserRecord midVal = (UserRecord) indy.get(mid);
         int cmp;
         if (midVal == null)
           cmp = 1;
@@ -3370,21 +3040,21 @@ public class Wizard implements EPGDBPublic2
           int endIdx = mid;
           while (startIdx > 0)
           {
-            if (store.equals(((UserRecord) indy.data[startIdx - 1]).store))
+            if (store.equals(((UserRecord) indy.get(startIdx - 1)).store))
               startIdx--;
             else
               break;
           }
-          high = indy.table.num;
+          high = indy.table.size();
           while (endIdx < high - 1)
           {
-            if (store.equals(((UserRecord) indy.data[endIdx + 1]).store))
+            if (store.equals(((UserRecord) indy.get(endIdx + 1)).store))
               endIdx++;
             else
               break;
           }
           UserRecord[] rv = new UserRecord[endIdx - startIdx + 1];
-          System.arraycopy(indy.data, startIdx, rv, 0, rv.length);
+          indy.copyInto(startIdx, rv, 0, rv.length);
           return rv;
         }
       }
@@ -3404,9 +3074,10 @@ public class Wizard implements EPGDBPublic2
       t.acquireReadLock();
       // There's probably a faster way than walking the whole list, but this should not be called very often I'd think
       String lastStore = null;
-      for (int i = 0; i < t.num; i++)
+      DBObject[] tData = t.primary.getData();
+      for (int i = 0; i < t.size() && i < tData.length; i++)
       {
-        UserRecord currRec = (UserRecord)t.primary.data[i];
+        UserRecord currRec = (UserRecord)tData[i];
         if (currRec.store != null && (lastStore == null || !lastStore.equals(currRec.store)))
         {
           storeList.add(currRec.store);
@@ -3426,12 +3097,12 @@ public class Wizard implements EPGDBPublic2
     try {
       indy.table.acquireReadLock();
       int low = 0;
-      int high = indy.table.num - 1;
+      int high = indy.table.size() - 1;
 
       while (low <= high)
       {
         int mid = (low + high) >> 1;
-        UserRecord midVal = (UserRecord) indy.data[mid];
+        UserRecord midVal = (UserRecord) indy.get(mid);
         int cmp;
         if (midVal == null)
           cmp = 1;
@@ -3464,12 +3135,12 @@ public class Wizard implements EPGDBPublic2
     try {
       indy.table.acquireReadLock();
       int low = 0;
-      int high = indy.table.num - 1;
+      int high = indy.table.size() - 1;
 
       while (low <= high)
       {
         int mid = (low + high) >> 1;
-        UserRecord midVal = (UserRecord) indy.data[mid];
+        UserRecord midVal = (UserRecord) indy.get(mid);
         int cmp = midVal.id - id;
 
         if (cmp < 0)
@@ -3533,6 +3204,12 @@ public class Wizard implements EPGDBPublic2
   }
 
   public MediaFile addMediaFile(File rawFile, String namePrefix, byte acquisitionTech)
+  {
+    return addMediaFile(rawFile, namePrefix, acquisitionTech, null);
+  }
+
+  // The format can be passed in if it was already detected; if it's null it'll be detected here
+  MediaFile addMediaFile(File rawFile, String namePrefix, byte acquisitionTech, ContainerFormat knownFormat)
   {
     MediaFile mf;
     // First check for duplication; this can occur due to manually adding a file during the import process
@@ -3542,7 +3219,7 @@ public class Wizard implements EPGDBPublic2
       if (Sage.DBG) System.out.println("Attempted to add already existing file path to database: " + rawFile + " returning exisitng MF of: " + mf);
       return mf;
     }
-    ContainerFormat newFormat = FormatParser.getFileFormat(rawFile);
+    ContainerFormat newFormat = (knownFormat != null) ? knownFormat : FormatParser.getFileFormat(rawFile);
     try {
       acquireWriteLock(MEDIAFILE_CODE);
       mf = new MediaFile(getNextWizID());
@@ -3561,7 +3238,7 @@ public class Wizard implements EPGDBPublic2
     } finally {
       releaseWriteLock(MEDIAFILE_CODE);
     }
-    if (Sage.DBG) System.out.println("Added:" + mf + " num=" + getTable(MEDIAFILE_CODE).num);
+    if (Sage.DBG) System.out.println("Added:" + mf + " num=" + getTable(MEDIAFILE_CODE).size());
     return mf;
   }
 
@@ -3725,10 +3402,10 @@ public class Wizard implements EPGDBPublic2
     int usedLength;
     try {
       t.acquireReadLock();
-      usedLength = t.num;
+      usedLength = t.size();
       if (storeHereIfBigEnough.length < usedLength)
         storeHereIfBigEnough = new MediaFile[usedLength + 20];
-      System.arraycopy(t.primary.data, 0, storeHereIfBigEnough, 0, usedLength);
+      t.primary.copyInto(0, storeHereIfBigEnough, 0, usedLength);
     } finally {
       t.releaseReadLock();
     }
@@ -3743,8 +3420,8 @@ public class Wizard implements EPGDBPublic2
     Table t = getTable(MEDIAFILE_CODE);
     try {
       t.acquireReadLock();
-      MediaFile[] rv = new MediaFile[t.num];
-      System.arraycopy(t.primary.data, 0, rv, 0, rv.length);
+      MediaFile[] rv = new MediaFile[t.size()];
+      t.primary.copyInto(0, rv, 0, rv.length);
       return rv;
     } finally {
       t.releaseReadLock();
@@ -3761,21 +3438,23 @@ public class Wizard implements EPGDBPublic2
     MediaFile[] rv;
     try {
       t.acquireReadLock();
-      rv = new MediaFile[t.num];
+      rv = new MediaFile[t.size()];
       if (libraryOnly)
       {
-        for (int i = 0; i < t.num; i++)
+        DBObject[] tData = t.primary.getData();
+        for (int i = 0; i < t.size() && i < tData.length; i++)
         {
-          MediaFile mf = (MediaFile)t.primary.data[i];
+          MediaFile mf = (MediaFile)tData[i];
           if (mf.archive && (mediaMask & mf.getMediaMask()) != 0)
             rv[x++] = mf;
         }
       }
       else
       {
-        for (int i = 0; i < t.num; i++)
+        DBObject[] tData = t.primary.getData();
+        for (int i = 0; i < t.size() && i < tData.length; i++)
         {
-          MediaFile mf = (MediaFile)t.primary.data[i];
+          MediaFile mf = (MediaFile)tData[i];
           if ((mediaMask & mf.getMediaMask()) != 0)
             rv[x++] = mf;
         }
@@ -3813,12 +3492,12 @@ public class Wizard implements EPGDBPublic2
     try {
       indy.table.acquireReadLock();
       int low = 0;
-      int high = indy.table.num - 1;
+      int high = indy.table.size() - 1;
 
       while (low <= high)
       {
         int mid = (low + high) >> 1;
-        MediaFile midVal = (MediaFile) indy.data[mid];
+        MediaFile midVal = (MediaFile) indy.get(mid);
         int cmp = midVal.infoAiringID - airingID;
 
         if (cmp < 0)
@@ -3843,12 +3522,12 @@ public class Wizard implements EPGDBPublic2
     try {
       indy.table.acquireReadLock();
       int low = 0;
-      int high = indy.table.num - 1;
+      int high = indy.table.size() - 1;
 
       while (low <= high)
       {
         int mid = (low + high) >> 1;
-        MediaFile midVal = (MediaFile) indy.data[mid];
+        MediaFile midVal = (MediaFile) indy.get(mid);
         int cmp;
         if (midVal == null)
           cmp = 1;
@@ -3875,9 +3554,9 @@ public class Wizard implements EPGDBPublic2
         }
       }
       // Check if it's one of the secondary files for this MF object
-      if (high >= 0 && high < indy.data.length)
+      if (high >= 0 && high < indy.length())
       {
-        MediaFile testVal = (MediaFile) indy.data[high];
+        MediaFile testVal = (MediaFile) indy.get(high);
         if (testVal != null && testVal.hasFile(path))
           return testVal;
       }
@@ -3894,12 +3573,12 @@ public class Wizard implements EPGDBPublic2
     try {
       indy.table.acquireReadLock();
       int low = 0;
-      int high = indy.table.num - 1;
+      int high = indy.table.size() - 1;
 
       while (low <= high)
       {
         int mid = (low + high) >> 1;
-        MediaFile midVal = (MediaFile) indy.data[mid];
+        MediaFile midVal = (MediaFile) indy.get(mid);
         int cmp = midVal.id - fileID;
 
         if (cmp < 0)
@@ -3972,8 +3651,8 @@ public class Wizard implements EPGDBPublic2
     Table t = getTable(WASTED_CODE);
     try {
       t.acquireReadLock();
-      Wasted[] rv = new Wasted[t.num];
-      System.arraycopy(t.primary.data, 0, rv, 0, rv.length);
+      Wasted[] rv = new Wasted[t.size()];
+      t.primary.copyInto(0, rv, 0, rv.length);
       return rv;
     } finally {
       t.releaseReadLock();
@@ -3991,12 +3670,12 @@ public class Wizard implements EPGDBPublic2
     try {
       indy.table.acquireReadLock();
       int low = 0;
-      int high = indy.table.num - 1;
+      int high = indy.table.size() - 1;
 
       while (low <= high)
       {
         int mid = (low + high) >> 1;
-        Wasted midVal = (Wasted) indy.data[mid];
+        Wasted midVal = (Wasted) indy.get(mid);
         int cmp = midVal.airingID - airingID;
 
         if (cmp < 0)
@@ -4058,8 +3737,8 @@ public class Wizard implements EPGDBPublic2
     Index indy = getIndex(AGENT_CODE, AGENTS_BY_CARNY_CODE);
     try {
       indy.table.acquireReadLock();
-      Agent[] rv = new Agent[indy.table.num];
-      System.arraycopy(indy.data, 0, rv, 0, rv.length);
+      Agent[] rv = new Agent[indy.table.size()];
+      indy.copyInto(0, rv, 0, rv.length);
       return rv;
     } finally {
       indy.table.releaseReadLock();
@@ -4074,9 +3753,10 @@ public class Wizard implements EPGDBPublic2
     ArrayList<Agent> rv = new ArrayList<Agent>();
     try {
       indy.table.acquireReadLock();
-      for (int i = 0; i < indy.table.num; i++)
-        if ((((Agent) indy.data[i]).agentMask & Agent.LOVE_MASK) != 0)
-          rv.add((Agent)indy.data[i]);
+      DBObject[] indyData = indy.getData();
+      for (int i = 0; i < indy.table.size() && i < indyData.length; i++)
+        if ((((Agent) indyData[i]).agentMask & Agent.LOVE_MASK) != 0)
+          rv.add((Agent)indyData[i]);
     } finally {
       indy.table.releaseReadLock();
     }
@@ -4182,8 +3862,8 @@ public class Wizard implements EPGDBPublic2
     Table t = getTable(MANUAL_CODE);
     try {
       t.acquireReadLock();
-      ManualRecord[] rv = new ManualRecord[t.num];
-      System.arraycopy(t.primary.data, 0, rv, 0, rv.length);
+      ManualRecord[] rv = new ManualRecord[t.size()];
+      t.primary.copyInto(0, rv, 0, rv.length);
       return rv;
     } finally {
       t.releaseReadLock();
@@ -4231,11 +3911,12 @@ public class Wizard implements EPGDBPublic2
     Table t = getTable(MANUAL_CODE);
     try {
       t.acquireReadLock();
-      for (int i = 0; i < t.num; i++)
+      DBObject[] tData = t.primary.getData();
+      for (int i = 0; i < t.size() && i < tData.length; i++)
       {
-        if (((ManualRecord) t.primary.data[i]).infoAiringID == airingID ||
-            ((ManualRecord) t.primary.data[i]).id == airingID)
-          return (ManualRecord) t.primary.data[i];
+        if (((ManualRecord) tData[i]).infoAiringID == airingID ||
+            ((ManualRecord) tData[i]).id == airingID)
+          return (ManualRecord) tData[i];
       }
     } finally {
       t.releaseReadLock();
@@ -4248,9 +3929,10 @@ public class Wizard implements EPGDBPublic2
     Table t = getTable(MANUAL_CODE);
     try {
       t.acquireReadLock();
-      for (int i = 0; i < t.num; i++)
+      DBObject[] tData = t.primary.getData();
+      for (int i = 0; i < t.size() && i < tData.length; i++)
       {
-        if (t.primary.data[i] == checkMe)
+        if (tData[i] == checkMe)
           return true;
       }
     } finally {
@@ -4271,12 +3953,12 @@ public class Wizard implements EPGDBPublic2
     try {
       indy.table.acquireReadLock();
       int low = 0;
-      int high = indy.table.num - 1;
+      int high = indy.table.size() - 1;
 
       while (low <= high)
       {
         int mid = (low + high) >> 1;
-        Show midVal = (Show) indy.data[mid];
+        Show midVal = (Show) indy.get(mid);
         int cmp = byteStringCompare(midVal.externalID, extIDbytes);
 
         if (cmp < 0)
@@ -4304,12 +3986,12 @@ public class Wizard implements EPGDBPublic2
     try {
       indy.table.acquireReadLock();
       int low = 0;
-      int high = indy.table.num - 1;
+      int high = indy.table.size() - 1;
       int index = -1;
       while (low <= high)
       {
         int mid = (low + high) >> 1;
-        Show midVal = (Show) indy.data[mid];
+        Show midVal = (Show) indy.get(mid);
         int cmp = byteStringPrefix(midVal.externalID, extIDbytes);
 
         if (cmp < 0)
@@ -4331,22 +4013,22 @@ public class Wizard implements EPGDBPublic2
       {
         while (index > 0)
         {
-          if (byteStringPrefix(((Show) indy.data[index - 1]).externalID, extIDbytes) == 0)
+          if (byteStringPrefix(((Show) indy.get(index - 1)).externalID, extIDbytes) == 0)
             index--;
           else
             break;
         }
       }
       int index2 = index;
-      while (index2 < indy.table.num - 1)
+      while (index2 < indy.table.size() - 1)
       {
-        if (byteStringPrefix(((Show) indy.data[index2 + 1]).externalID, extIDbytes) == 0)
+        if (byteStringPrefix(((Show) indy.get(index2 + 1)).externalID, extIDbytes) == 0)
           index2++;
         else
           break;
       }
       Show[] rv = new Show[index2 - index + 1];
-      System.arraycopy(indy.data, index, rv, 0, rv.length);
+      indy.copyInto(index, rv, 0, rv.length);
       return rv;
     } finally {
       indy.table.releaseReadLock();
@@ -4368,12 +4050,12 @@ public class Wizard implements EPGDBPublic2
     try {
       indy.table.acquireReadLock();
       int low = 0;
-      int high = indy.table.num - 1;
+      int high = indy.table.size() - 1;
 
       while (low <= high)
       {
         int mid = (low + high) >> 1;
-      Show midVal = (Show) indy.data[mid];
+      Show midVal = (Show) indy.get(mid);
       int cmp = byteStringCompare(midVal.externalID, testBytes);
 
       if (cmp < 0)
@@ -4383,9 +4065,9 @@ public class Wizard implements EPGDBPublic2
       else
         break;
       }
-      if (low >= 0 && low < indy.table.num)
+      if (low >= 0 && low < indy.table.size())
       {
-        Show s = (Show) indy.data[low];
+        Show s = (Show) indy.get(low);
         if (s != null && s.externalID.length == testBytes.length)
         {
           boolean noMatch = false;
@@ -4401,9 +4083,9 @@ public class Wizard implements EPGDBPublic2
             return true;
         }
       }
-      if (high >= 0 && high < indy.table.num)
+      if (high >= 0 && high < indy.table.size())
       {
-        Show s = (Show) indy.data[high];
+        Show s = (Show) indy.get(high);
         if (s != null && s.externalID.length == testBytes.length)
         {
           boolean noMatch = false;
@@ -4544,6 +4226,7 @@ public class Wizard implements EPGDBPublic2
       s.episodeNameBytes = null;
       s.descStr = (desc == null) ? "" : new String(desc);
       s.descBytes = null;
+      s.descRef = null;
       if (!fromAPlugin && extID.startsWith("MV") && (categories == null || categories.length == 0 || !Sage.rez("Movie").equals(categories[0])))
       {
         if (categories == null)
@@ -4627,6 +4310,10 @@ public class Wizard implements EPGDBPublic2
         if (!oldShow.isIdentical(s))
         {
           getTable(SHOW_CODE).update(oldShow, s, true);
+          // Which Agents match its Airings may have changed; this is done here and not for every Show update since
+          // most of those are things like watched times that the profile doesn't look at through the Show
+          if (god != null)
+            god.notifyProfileChange(oldShow);
         }
         updateLastModified(oldShow.getMediaMask());
         return oldShow;
@@ -4980,9 +4667,9 @@ public class Wizard implements EPGDBPublic2
       t.acquireReadLock();
       if (loading) return baseAir;
       int idx = indy.binarySearch(baseAir);
-      if ((idx == -1) || (idx + relativeAmount < 0) || (idx + relativeAmount >= t.num)) return baseAir;
-      if (((Airing) indy.data[idx + relativeAmount]).stationID != baseAir.stationID) return baseAir;
-      return (Airing) indy.data[idx + relativeAmount];
+      if ((idx == -1) || (idx + relativeAmount < 0) || (idx + relativeAmount >= t.size())) return baseAir;
+      if (((Airing) indy.get(idx + relativeAmount)).stationID != baseAir.stationID) return baseAir;
+      return (Airing) indy.get(idx + relativeAmount);
     } finally {
       t.releaseReadLock();
     }
@@ -4999,12 +4686,12 @@ public class Wizard implements EPGDBPublic2
 
       int index, index2;
       int low = 0;
-      int high = t.num - 1;
+      int high = t.size() - 1;
       index = -1;
       while (low <= high)
       {
         int mid = (low + high) >> 1;
-        Airing midVal = (Airing) indy.data[mid];
+        Airing midVal = (Airing) indy.get(mid);
         long cmp = midVal.stationID - stationID;
         if (cmp == 0)
           cmp = sign(midVal.time - startTime);
@@ -5026,22 +4713,22 @@ public class Wizard implements EPGDBPublic2
         // But check to be sure something is in that spot with no time gap
         if (!mustStart && (index > 0))
         {
-          Airing prevAir = (Airing) indy.data[index - 1];
+          Airing prevAir = (Airing) indy.get(index - 1);
           if (prevAir.stationID == stationID &&
               (prevAir.time + prevAir.duration > startTime)) index--;
         }
       }
       index2 = index;
-      for (; index2 < t.num; index2++)
+      for (; index2 < t.size(); index2++)
       {
-        Airing a = (Airing) indy.data[index2];
+        Airing a = (Airing) indy.get(index2);
         if ((a.time >= endTime) || a.stationID != stationID)
         {
           break;
         }
       }
       Airing[] rv = new Airing[index2 - index];
-      if (rv.length > 0) System.arraycopy(indy.data, index, rv, 0, rv.length);
+      if (rv.length > 0) indy.copyInto(index, rv, 0, rv.length);
       return rv;
     } finally {
       t.releaseReadLock();
@@ -5071,12 +4758,12 @@ public class Wizard implements EPGDBPublic2
 
       int index;
       int low = 0;
-      int high = t.num - 1;
+      int high = t.size() - 1;
       index = -1;
       while (low <= high)
       {
         int mid = (low + high) >> 1;
-        Airing midVal = (Airing) indy.data[mid];
+        Airing midVal = (Airing) indy.get(mid);
         int cmp = midVal.showID - forMe.id;
         if ((cmp == 0) && (midVal.time < startingAfter))
           cmp = -1;
@@ -5102,23 +4789,23 @@ public class Wizard implements EPGDBPublic2
           return Pooler.EMPTY_AIRING_ARRAY;
         while (index > 0)
         {
-          if ((((Airing) indy.data[index - 1]).showID == forMe.id) &&
-              (((Airing) indy.data[index - 1]).time >= startingAfter))
+          if ((((Airing) indy.get(index - 1)).showID == forMe.id) &&
+              (((Airing) indy.get(index - 1)).time >= startingAfter))
             index--;
           else
             break;
         }
       }
       int index2 = index;
-      while (index2 < t.num - 1)
+      while (index2 < t.size() - 1)
       {
-        if (((Airing) indy.data[index2 + 1]).showID == forMe.id)
+        if (((Airing) indy.get(index2 + 1)).showID == forMe.id)
           index2++;
         else
           break;
       }
       Airing[] rv = new Airing[index2 - index + 1];
-      System.arraycopy(indy.data, index, rv, 0, rv.length);
+      indy.copyInto(index, rv, 0, rv.length);
       return rv;
     } finally {
       t.releaseReadLock();
@@ -5169,7 +4856,7 @@ public class Wizard implements EPGDBPublic2
 
           int index=-1;
           int low = lastIndex; // use lastIndex as a hint of where to start looking
-          int high = t.num - 1;
+          int high = t.size() - 1;
           int mid =-1;
           Airing air=null;
 
@@ -5177,7 +4864,7 @@ public class Wizard implements EPGDBPublic2
           while ( low < high )
           {
             mid = ( low + high ) >> 1;
-            air = (Airing) indy.data[mid];
+            air = (Airing) indy.get(mid);
             if ( mid == low )
               // cannot go deeper
               break;
@@ -5207,7 +4894,7 @@ public class Wizard implements EPGDBPublic2
             // skip noshows by moving back
             while ( index >0  && air != null && isNoShow(air.showID) && air.stationID == stationID ) {
               index--;
-              air =(Airing) indy.data[index];
+              air =(Airing) indy.get(index);
             }
 
             if ( air != null && air.stationID == stationID && ! isNoShow(air.showID) ) {
@@ -5267,7 +4954,7 @@ public class Wizard implements EPGDBPublic2
 
           int index=-1;
           int low = lastIndex; // use lastIndex as a hint of where to start looking
-          int high = t.num - 1;
+          int high = t.size() - 1;
           int mid =-1;
           Airing air=null;
 
@@ -5275,7 +4962,7 @@ public class Wizard implements EPGDBPublic2
           while ( low < high )
           {
             mid = ( low + high ) >> 1;
-            air = (Airing) indy.data[mid];
+            air = (Airing) indy.get(mid);
             if ( mid == low )
               // cannot go deeper
               break;
@@ -5307,7 +4994,7 @@ public class Wizard implements EPGDBPublic2
             while ( index >0  && air != null && isNoShow(air.showID) && air.stationID == stationID )
             {
               index--;
-              air =(Airing) indy.data[index];
+              air =(Airing) indy.get(index);
             }
 
             if ( air != null && air.stationID == stationID && ! isNoShow(air.showID) )
@@ -5396,11 +5083,12 @@ public class Wizard implements EPGDBPublic2
     try {
       t.acquireReadLock();
       List<Watched> rv = new ArrayList<Watched>(maxCount);
-      for (int i = t.num - 1; i >= 0; i--)
+      DBObject[] indyData = indy.getData();
+      for (int i = Math.min(t.size(), indyData.length) - 1; i >= 0; i--)
       {
-        if (indy.data[i].isTV())
+        if (indyData[i].isTV())
         {
-          rv.add((Watched) indy.data[i]);
+          rv.add((Watched) indyData[i]);
           if (rv.size() >= maxCount)
             break;
         }
@@ -5421,12 +5109,12 @@ public class Wizard implements EPGDBPublic2
 
       int index;
       int low = 0;
-      int high = t.num - 1;
+      int high = t.size() - 1;
       index = -1;
       while (low <= high)
       {
         int mid = (low + high) >> 1;
-        Watched midVal = (Watched) indy.data[mid];
+        Watched midVal = (Watched) indy.get(mid);
         int cmp = sign((midVal.realEnd == 0 ? midVal.realStart : midVal.realEnd) - startingAfter);
 
         if (cmp < 0)
@@ -5444,8 +5132,8 @@ public class Wizard implements EPGDBPublic2
         index = low;
       }
 
-      Watched[] rv = new Watched[t.num - index];
-      System.arraycopy(indy.data, index, rv, 0, rv.length);
+      Watched[] rv = new Watched[t.size() - index];
+      indy.copyInto(index, rv, 0, rv.length);
       return rv;
     } finally {
       t.releaseReadLock();
@@ -5463,12 +5151,12 @@ public class Wizard implements EPGDBPublic2
 
       int index;
       int low = 0;
-      int high = t.num - 1;
+      int high = t.size() - 1;
       index = -1;
       while (low <= high)
       {
         int mid = (low + high) >> 1;
-        Watched midVal = (Watched) indy.data[mid];
+        Watched midVal = (Watched) indy.get(mid);
 
         int cmp = midVal.showID - watchAir.showID;
         if (cmp == 0)
@@ -5491,11 +5179,11 @@ public class Wizard implements EPGDBPublic2
       {
         return null;
       }
-      if (((Watched) indy.data[index]).airingID == watchAir.id)
-        return (Watched) indy.data[index];
+      if (((Watched) indy.get(index)).airingID == watchAir.id)
+        return (Watched) indy.get(index);
       while (index > 0)
       {
-        Watched currData = (Watched) indy.data[index - 1];
+        Watched currData = (Watched) indy.get(index - 1);
         if ((currData.showID == watchAir.showID) &&
             (currData.time == watchAir.getStartTime()))
         {
@@ -5507,9 +5195,9 @@ public class Wizard implements EPGDBPublic2
           break;
       }
       int index2 = index;
-      while (index2 < t.num - 1)
+      while (index2 < t.size() - 1)
       {
-        Watched currData = (Watched) indy.data[index2 + 1];
+        Watched currData = (Watched) indy.get(index2 + 1);
         if ((currData.showID == watchAir.showID) &&
             (currData.time == watchAir.getStartTime()))
         {
@@ -5593,7 +5281,7 @@ public class Wizard implements EPGDBPublic2
   {
     if (id == 0) return null;
     if (id < 0)
-      return (Person) getIndex(PEOPLE_CODE).data[(-id) - 1];
+      return (Person) getIndex(PEOPLE_CODE).get((-id) - 1);
     return (Person) getIndex(PEOPLE_CODE).getSingle(id);
   }
   public Person getPersonForName(String name)
@@ -5613,12 +5301,12 @@ public class Wizard implements EPGDBPublic2
       else
         t.acquireReadLock();
       int low = 0;
-      int high = t.num - 1;
+      int high = t.size() - 1;
 
       while (low <= high)
       {
         int mid = (low + high) >> 1;
-        Person midVal = (Person) indy.data[mid];
+        Person midVal = (Person) indy.get(mid);
         int cmp = midVal.name.compareTo(name);
         // If it has a 0 extID in the DB, then return it as a match so we use it
         // to update the object to the new one
@@ -5679,12 +5367,12 @@ public class Wizard implements EPGDBPublic2
     try {
       t.acquireReadLock();
       int low = 0;
-      int high = t.num - 1;
+      int high = t.size() - 1;
 
       while (low <= high)
       {
         int mid = (low + high) >> 1;
-        Person midVal = (Person) indy.data[mid];
+        Person midVal = (Person) indy.get(mid);
         int cmp = midVal.extID - extID;
         if (cmp < 0)
           low = mid + 1;
@@ -5714,12 +5402,12 @@ public class Wizard implements EPGDBPublic2
       else
         t.acquireReadLock();
       int low = 0;
-      int high = t.num - 1;
+      int high = t.size() - 1;
 
       while (low <= high)
       {
         int mid = (low + high) >> 1;
-        Person midVal = (Person) indy.data[mid];
+        Person midVal = (Person) indy.get(mid);
         int cmp = midVal.name.compareTo(name);
 
         if (cmp < 0)
@@ -5760,12 +5448,12 @@ public class Wizard implements EPGDBPublic2
     try {
       t.acquireReadLock();
       int low = 0;
-      int high = t.num - 1;
+      int high = t.size() - 1;
 
       while (low <= high)
       {
         int mid = (low + high) >> 1;
-        Person midVal = (Person) indy.data[mid];
+        Person midVal = (Person) indy.get(mid);
         int cmp = midVal.name.compareTo(name);
 
         if (cmp < 0)
@@ -5777,20 +5465,20 @@ public class Wizard implements EPGDBPublic2
           high = low = mid;
           while (low > 0)
           {
-            if (((Person) indy.data[low - 1]).name.compareTo(name) == 0)
+            if (((Person) indy.get(low - 1)).name.compareTo(name) == 0)
               low--;
             else
               break;
           }
-          while (high < indy.table.num - 1)
+          while (high < indy.table.size() - 1)
           {
-            if (((Person) indy.data[high + 1]).name.compareTo(name) == 0)
+            if (((Person) indy.get(high + 1)).name.compareTo(name) == 0)
               high++;
             else
               break;
           }
           Person[] rv = new Person[high - low + 1];
-          System.arraycopy(indy.data, low, rv, 0, rv.length);
+          indy.copyInto(low, rv, 0, rv.length);
           return rv;
         }
       }
@@ -5884,9 +5572,10 @@ public class Wizard implements EPGDBPublic2
         Index idx = getIndex(MEDIAFILE_CODE);
         try {
           idx.table.acquireReadLock();
-          for (int i = 0; i < idx.table.num; i++)
+          DBObject[] idxData = idx.getData();
+          for (int i = 0; i < idx.table.size() && i < idxData.length; i++)
           {
-            MediaFile mf = (MediaFile) idx.data[i];
+            MediaFile mf = (MediaFile) idxData[i];
             if (mf != null && mf.isMusic())
             {
               Show s = mf.getShow();
@@ -6045,9 +5734,10 @@ public class Wizard implements EPGDBPublic2
     idx = getIndex(SHOW_CODE);
     try {
       idx.table.acquireReadLock();
-      for (int i = 0; i < idx.table.num; i++)
+      DBObject[] idxData = idx.getData();
+      for (int i = 0; i < idx.table.size() && i < idxData.length; i++)
       {
-        Show s = (Show) idx.data[i];
+        Show s = (Show) idxData[i];
         if (s.isMusic())
         {
           for (int j = 0; j < s.people.length; j++)
@@ -6069,9 +5759,10 @@ public class Wizard implements EPGDBPublic2
     idx = getIndex(SHOW_CODE);
     try {
       idx.table.acquireReadLock();
-      for (int i = 0; i < idx.table.num; i++)
+      DBObject[] idxData = idx.getData();
+      for (int i = 0; i < idx.table.size() && i < idxData.length; i++)
       {
-        Show s = (Show) idx.data[i];
+        Show s = (Show) idxData[i];
         if (s.isMusic() && s.categories.length > 0)
           okGenres.add(s.categories[0].name);
       }
@@ -6089,9 +5780,10 @@ public class Wizard implements EPGDBPublic2
     try {
       idx.table.acquireReadLock();
       ArrayList<String> rv = new ArrayList<String>();
-      for (int i = 0; i < idx.data.length; i++)
-        if (idx.data[i] != null && (idx.data[i].getMediaMask() & mediaMask) != 0)
-          rv.add(((Stringer) idx.data[i]).name);
+      DBObject[] idxData = idx.getData();
+      for (int i = 0; i < idxData.length; i++)
+        if (idxData[i] != null && (idxData[i].getMediaMask() & mediaMask) != 0)
+          rv.add(((Stringer) idxData[i]).name);
       return rv.toArray(Pooler.EMPTY_STRING_ARRAY);
     } finally {
       idx.table.releaseReadLock();
@@ -6104,9 +5796,10 @@ public class Wizard implements EPGDBPublic2
     try {
       idx.table.acquireReadLock();
       ArrayList<String> rv = new ArrayList<String>();
-      for (int i = 0; i < idx.data.length; i++)
-        if (idx.data[i] != null && (idx.data[i].getMediaMask() & mediaMask) != 0)
-          rv.add(((Person) idx.data[i]).name);
+      DBObject[] idxData = idx.getData();
+      for (int i = 0; i < idxData.length; i++)
+        if (idxData[i] != null && (idxData[i].getMediaMask() & mediaMask) != 0)
+          rv.add(((Person) idxData[i]).name);
       return rv.toArray(Pooler.EMPTY_STRING_ARRAY);
     } finally {
       idx.table.releaseReadLock();
@@ -6119,18 +5812,20 @@ public class Wizard implements EPGDBPublic2
     Index idx = getIndex(CATEGORY_CODE);
     try {
       idx.table.acquireReadLock();
-      for (int i = 0; i < idx.data.length; i++)
-        if (idx.data[i] != null && (idx.data[i].getMediaMask() & mediaMask) != 0)
-          rv.add(((Stringer) idx.data[i]).name);
+      DBObject[] idxData = idx.getData();
+      for (int i = 0; i < idxData.length; i++)
+        if (idxData[i] != null && (idxData[i].getMediaMask() & mediaMask) != 0)
+          rv.add(((Stringer) idxData[i]).name);
     } finally {
       idx.table.releaseReadLock();
     }
     idx = getIndex(SUBCATEGORY_CODE);
     try {
       idx.table.acquireReadLock();
-      for (int i = 0; i < idx.data.length; i++)
-        if (idx.data[i] != null && (idx.data[i].getMediaMask() & mediaMask) != 0)
-          rv.add(((Stringer) idx.data[i]).name);
+      DBObject[] idxData = idx.getData();
+      for (int i = 0; i < idxData.length; i++)
+        if (idxData[i] != null && (idxData[i].getMediaMask() & mediaMask) != 0)
+          rv.add(((Stringer) idxData[i]).name);
     } finally {
       idx.table.releaseReadLock();
     }
@@ -6181,9 +5876,10 @@ public class Wizard implements EPGDBPublic2
         Index aidx = getIndex(AIRING_CODE);
         try {
           aidx.table.acquireReadLock();
-          for (int i = 0; i < aidx.table.num; i++)
+          DBObject[] aidxData = aidx.getData();
+          for (int i = 0; i < aidx.table.size() && i < aidxData.length; i++)
           {
-            Airing currAir = (Airing) aidx.data[i];
+            Airing currAir = (Airing) aidxData[i];
             if (currAir.hasMediaMaskAny(mediaMask)) {
               if ((currAir.miscB & matchMiscB) != 0) {
                     rv.add(currAir);
@@ -6206,9 +5902,10 @@ public class Wizard implements EPGDBPublic2
         Index mfIdx = getIndex(MEDIAFILE_CODE);
         try {
           mfIdx.table.acquireReadLock();
-          for (int i = 0; i < mfIdx.table.num; i++)
+          DBObject[] mfIdxData = mfIdx.getData();
+          for (int i = 0; i < mfIdx.table.size() && i < mfIdxData.length; i++)
           {
-            MediaFile currMF = (MediaFile) mfIdx.data[i];
+            MediaFile currMF = (MediaFile) mfIdxData[i];
             if ((currMF.getMediaMask() & mediaMask) == 0)
               continue;
             ContainerFormat cf = currMF.getFileFormat();
@@ -6251,13 +5948,14 @@ public class Wizard implements EPGDBPublic2
       idx = getIndex(TITLE_CODE);
       try {
         idx.table.acquireReadLock();
-        for (int i = 0; i < idx.table.num; i++)
+        DBObject[] idxData = idx.getData();
+        for (int i = 0; i < idx.table.size() && i < idxData.length; i++)
         {
-          if ((idx.data[i].getMediaMask() & mediaMask) == 0)
+          if ((idxData[i].getMediaMask() & mediaMask) == 0)
             continue;
-          if ((caseSensitive && ((Stringer) idx.data[i]).name.equals(str)) ||
-              (!caseSensitive && ((Stringer) idx.data[i]).name.equalsIgnoreCase(str)))
-            okTitleStringers.add((Stringer) idx.data[i]);
+          if ((caseSensitive && ((Stringer) idxData[i]).name.equals(str)) ||
+              (!caseSensitive && ((Stringer) idxData[i]).name.equalsIgnoreCase(str)))
+            okTitleStringers.add((Stringer) idxData[i]);
         }
       } finally {
         idx.table.releaseReadLock();
@@ -6269,13 +5967,14 @@ public class Wizard implements EPGDBPublic2
       idx = getIndex(PEOPLE_CODE);
       try {
         idx.table.acquireReadLock();
-        for (int i = 0; i < idx.table.num; i++)
+        DBObject[] idxData = idx.getData();
+        for (int i = 0; i < idx.table.size() && i < idxData.length; i++)
         {
-          if ((idx.data[i].getMediaMask() & mediaMask) == 0)
+          if ((idxData[i].getMediaMask() & mediaMask) == 0)
             continue;
-          if ((caseSensitive && ((Person) idx.data[i]).name.equals(str)) ||
-              (!caseSensitive && ((Person) idx.data[i]).name.equalsIgnoreCase(str)))
-            okPersonStringers.add((Person) idx.data[i]);
+          if ((caseSensitive && ((Person) idxData[i]).name.equals(str)) ||
+              (!caseSensitive && ((Person) idxData[i]).name.equalsIgnoreCase(str)))
+            okPersonStringers.add((Person) idxData[i]);
         }
       } finally {
         idx.table.releaseReadLock();
@@ -6287,13 +5986,14 @@ public class Wizard implements EPGDBPublic2
       idx = getIndex(CATEGORY_CODE);
       try {
         idx.table.acquireReadLock();
-        for (int i = 0; i < idx.table.num; i++)
+        DBObject[] idxData = idx.getData();
+        for (int i = 0; i < idx.table.size() && i < idxData.length; i++)
         {
-          if ((idx.data[i].getMediaMask() & mediaMask) == 0)
+          if ((idxData[i].getMediaMask() & mediaMask) == 0)
             continue;
-          if ((caseSensitive && ((Stringer) idx.data[i]).name.equals(str)) ||
-              (!caseSensitive && ((Stringer) idx.data[i]).name.equalsIgnoreCase(str)))
-            okCategoryStringers.add((Stringer) idx.data[i]);
+          if ((caseSensitive && ((Stringer) idxData[i]).name.equals(str)) ||
+              (!caseSensitive && ((Stringer) idxData[i]).name.equalsIgnoreCase(str)))
+            okCategoryStringers.add((Stringer) idxData[i]);
         }
       } finally {
         idx.table.releaseReadLock();
@@ -6301,13 +6001,14 @@ public class Wizard implements EPGDBPublic2
       idx = getIndex(SUBCATEGORY_CODE);
       try {
         idx.table.acquireReadLock();
-        for (int i = 0; i < idx.table.num; i++)
+        DBObject[] idxData = idx.getData();
+        for (int i = 0; i < idx.table.size() && i < idxData.length; i++)
         {
-          if ((idx.data[i].getMediaMask() & mediaMask) == 0)
+          if ((idxData[i].getMediaMask() & mediaMask) == 0)
             continue;
-          if ((caseSensitive && ((Stringer) idx.data[i]).name.equals(str)) ||
-              (!caseSensitive && ((Stringer) idx.data[i]).name.equalsIgnoreCase(str)))
-            okCategoryStringers.add((Stringer) idx.data[i]);
+          if ((caseSensitive && ((Stringer) idxData[i]).name.equals(str)) ||
+              (!caseSensitive && ((Stringer) idxData[i]).name.equalsIgnoreCase(str)))
+            okCategoryStringers.add((Stringer) idxData[i]);
         }
       } finally {
         idx.table.releaseReadLock();
@@ -6319,13 +6020,14 @@ public class Wizard implements EPGDBPublic2
       idx = getIndex(RATED_CODE);
       try {
         idx.table.acquireReadLock();
-        for (int i = 0; i < idx.table.num; i++)
+        DBObject[] idxData = idx.getData();
+        for (int i = 0; i < idx.table.size() && i < idxData.length; i++)
         {
-          if ((idx.data[i].getMediaMask() & mediaMask) == 0)
+          if ((idxData[i].getMediaMask() & mediaMask) == 0)
             continue;
-          if ((caseSensitive && ((Stringer) idx.data[i]).name.equals(str)) ||
-              (!caseSensitive && ((Stringer) idx.data[i]).name.equalsIgnoreCase(str)))
-            okRatedStringers.add((Stringer) idx.data[i]);
+          if ((caseSensitive && ((Stringer) idxData[i]).name.equals(str)) ||
+              (!caseSensitive && ((Stringer) idxData[i]).name.equalsIgnoreCase(str)))
+            okRatedStringers.add((Stringer) idxData[i]);
         }
       } finally {
         idx.table.releaseReadLock();
@@ -6337,13 +6039,14 @@ public class Wizard implements EPGDBPublic2
       idx = getIndex(ER_CODE);
       try {
         idx.table.acquireReadLock();
-        for (int i = 0; i < idx.table.num; i++)
+        DBObject[] idxData = idx.getData();
+        for (int i = 0; i < idx.table.size() && i < idxData.length; i++)
         {
-          if ((idx.data[i].getMediaMask() & mediaMask) == 0)
+          if ((idxData[i].getMediaMask() & mediaMask) == 0)
             continue;
-          if ((caseSensitive && ((Stringer) idx.data[i]).name.equals(str)) ||
-              (!caseSensitive && ((Stringer) idx.data[i]).name.equalsIgnoreCase(str)))
-            okERStringers.add((Stringer) idx.data[i]);
+          if ((caseSensitive && ((Stringer) idxData[i]).name.equals(str)) ||
+              (!caseSensitive && ((Stringer) idxData[i]).name.equalsIgnoreCase(str)))
+            okERStringers.add((Stringer) idxData[i]);
         }
       } finally {
         idx.table.releaseReadLock();
@@ -6355,13 +6058,14 @@ public class Wizard implements EPGDBPublic2
       idx = getIndex(YEAR_CODE);
       try {
         idx.table.acquireReadLock();
-        for (int i = 0; i < idx.table.num; i++)
+        DBObject[] idxData = idx.getData();
+        for (int i = 0; i < idx.table.size() && i < idxData.length; i++)
         {
-          if ((idx.data[i].getMediaMask() & mediaMask) == 0)
+          if ((idxData[i].getMediaMask() & mediaMask) == 0)
             continue;
-          if ((caseSensitive && ((Stringer) idx.data[i]).name.equals(str)) ||
-              (!caseSensitive && ((Stringer) idx.data[i]).name.equalsIgnoreCase(str)))
-            okYearStringers.add((Stringer) idx.data[i]);
+          if ((caseSensitive && ((Stringer) idxData[i]).name.equals(str)) ||
+              (!caseSensitive && ((Stringer) idxData[i]).name.equalsIgnoreCase(str)))
+            okYearStringers.add((Stringer) idxData[i]);
         }
       } finally {
         idx.table.releaseReadLock();
@@ -6373,13 +6077,14 @@ public class Wizard implements EPGDBPublic2
       idx = getIndex(BONUS_CODE);
       try {
         idx.table.acquireReadLock();
-        for (int i = 0; i < idx.table.num; i++)
+        DBObject[] idxData = idx.getData();
+        for (int i = 0; i < idx.table.size() && i < idxData.length; i++)
         {
-          if ((idx.data[i].getMediaMask() & mediaMask) == 0)
+          if ((idxData[i].getMediaMask() & mediaMask) == 0)
             continue;
-          if ((caseSensitive && ((Stringer) idx.data[i]).name.equals(str)) ||
-              (!caseSensitive && ((Stringer) idx.data[i]).name.equalsIgnoreCase(str)))
-            okMiscStringers.add((Stringer) idx.data[i]);
+          if ((caseSensitive && ((Stringer) idxData[i]).name.equals(str)) ||
+              (!caseSensitive && ((Stringer) idxData[i]).name.equalsIgnoreCase(str)))
+            okMiscStringers.add((Stringer) idxData[i]);
         }
       } finally {
         idx.table.releaseReadLock();
@@ -6390,10 +6095,11 @@ public class Wizard implements EPGDBPublic2
     int MAX_SEARCH_RESULTS = Sage.getInt("wizard/max_search_results", 1000);
     try {
       sidx.table.acquireReadLock();
+      DBObject[] sidxData = sidx.getData();
       show_loop:
-        for (int i = 0; i < sidx.table.num; i++)
+        for (int i = 0; i < sidx.table.size() && i < sidxData.length; i++)
         {
-          Show currShow = (Show) sidx.data[i];
+          Show currShow = (Show) sidxData[i];
           if ((currShow.getMediaMask() & mediaMask) == 0)
             continue;
           if ((title && okTitleStringers.contains(currShow.title)) ||
@@ -6485,9 +6191,10 @@ public class Wizard implements EPGDBPublic2
         Index aidx = getIndex(AIRING_CODE);
         try {
           aidx.table.acquireReadLock();
-          for (int i = 0; i < aidx.table.num; i++)
+          DBObject[] aidxData = aidx.getData();
+          for (int i = 0; i < aidx.table.size() && i < aidxData.length; i++)
           {
-            Airing currAir = (Airing) aidx.data[i];
+            Airing currAir = (Airing) aidxData[i];
             if ((currAir.getMediaMask() & mediaMask) == 0)
               continue;
             if ((currAir.miscB & matchMiscB) != 0){
@@ -6532,12 +6239,13 @@ public class Wizard implements EPGDBPublic2
       idx = getIndex(TITLE_CODE);
       try {
         idx.table.acquireReadLock();
-        for (int i = 0; i < idx.table.num; i++)
+        DBObject[] idxData = idx.getData();
+        for (int i = 0; i < idx.table.size() && i < idxData.length; i++)
         {
-          if ((idx.data[i].getMediaMask() & mediaMask) == 0)
+          if ((idxData[i].getMediaMask() & mediaMask) == 0)
             continue;
-          if (pat.matcher(((Stringer) idx.data[i]).name).matches())
-            okTitleStringers.add((Stringer) idx.data[i]);
+          if (pat.matcher(((Stringer) idxData[i]).name).matches())
+            okTitleStringers.add((Stringer) idxData[i]);
         }
       } finally {
         idx.table.releaseReadLock();
@@ -6549,12 +6257,13 @@ public class Wizard implements EPGDBPublic2
       idx = getIndex(PEOPLE_CODE);
       try {
         idx.table.acquireReadLock();
-        for (int i = 0; i < idx.table.num; i++)
+        DBObject[] idxData = idx.getData();
+        for (int i = 0; i < idx.table.size() && i < idxData.length; i++)
         {
-          if ((idx.data[i].getMediaMask() & mediaMask) == 0)
+          if ((idxData[i].getMediaMask() & mediaMask) == 0)
             continue;
-          if (pat.matcher(((Person) idx.data[i]).name).matches())
-            okPersonStringers.add((Person) idx.data[i]);
+          if (pat.matcher(((Person) idxData[i]).name).matches())
+            okPersonStringers.add((Person) idxData[i]);
         }
       } finally {
         idx.table.releaseReadLock();
@@ -6566,12 +6275,13 @@ public class Wizard implements EPGDBPublic2
       idx = getIndex(CATEGORY_CODE);
       try {
         idx.table.acquireReadLock();
-        for (int i = 0; i < idx.table.num; i++)
+        DBObject[] idxData = idx.getData();
+        for (int i = 0; i < idx.table.size() && i < idxData.length; i++)
         {
-          if ((idx.data[i].getMediaMask() & mediaMask) == 0)
+          if ((idxData[i].getMediaMask() & mediaMask) == 0)
             continue;
-          if (pat.matcher(((Stringer) idx.data[i]).name).matches())
-            okCategoryStringers.add((Stringer) idx.data[i]);
+          if (pat.matcher(((Stringer) idxData[i]).name).matches())
+            okCategoryStringers.add((Stringer) idxData[i]);
         }
       } finally {
         idx.table.releaseReadLock();
@@ -6579,12 +6289,13 @@ public class Wizard implements EPGDBPublic2
       idx = getIndex(SUBCATEGORY_CODE);
       try {
         idx.table.acquireReadLock();
-        for (int i = 0; i < idx.table.num; i++)
+        DBObject[] idxData = idx.getData();
+        for (int i = 0; i < idx.table.size() && i < idxData.length; i++)
         {
-          if ((idx.data[i].getMediaMask() & mediaMask) == 0)
+          if ((idxData[i].getMediaMask() & mediaMask) == 0)
             continue;
-          if (pat.matcher(((Stringer) idx.data[i]).name).matches())
-            okCategoryStringers.add((Stringer) idx.data[i]);
+          if (pat.matcher(((Stringer) idxData[i]).name).matches())
+            okCategoryStringers.add((Stringer) idxData[i]);
         }
       } finally {
         idx.table.releaseReadLock();
@@ -6596,12 +6307,13 @@ public class Wizard implements EPGDBPublic2
       idx = getIndex(RATED_CODE);
       try {
         idx.table.acquireReadLock();
-        for (int i = 0; i < idx.table.num; i++)
+        DBObject[] idxData = idx.getData();
+        for (int i = 0; i < idx.table.size() && i < idxData.length; i++)
         {
-          if ((idx.data[i].getMediaMask() & mediaMask) == 0)
+          if ((idxData[i].getMediaMask() & mediaMask) == 0)
             continue;
-          if (pat.matcher(((Stringer) idx.data[i]).name).matches())
-            okRatedStringers.add((Stringer) idx.data[i]);
+          if (pat.matcher(((Stringer) idxData[i]).name).matches())
+            okRatedStringers.add((Stringer) idxData[i]);
         }
       } finally {
         idx.table.releaseReadLock();
@@ -6613,12 +6325,13 @@ public class Wizard implements EPGDBPublic2
       idx = getIndex(ER_CODE);
       try {
         idx.table.acquireReadLock();
-        for (int i = 0; i < idx.table.num; i++)
+        DBObject[] idxData = idx.getData();
+        for (int i = 0; i < idx.table.size() && i < idxData.length; i++)
         {
-          if ((idx.data[i].getMediaMask() & mediaMask) == 0)
+          if ((idxData[i].getMediaMask() & mediaMask) == 0)
             continue;
-          if (pat.matcher(((Stringer) idx.data[i]).name).matches())
-            okERStringers.add((Stringer) idx.data[i]);
+          if (pat.matcher(((Stringer) idxData[i]).name).matches())
+            okERStringers.add((Stringer) idxData[i]);
         }
       } finally {
         idx.table.releaseReadLock();
@@ -6630,12 +6343,13 @@ public class Wizard implements EPGDBPublic2
       idx = getIndex(YEAR_CODE);
       try {
         idx.table.acquireReadLock();
-        for (int i = 0; i < idx.table.num; i++)
+        DBObject[] idxData = idx.getData();
+        for (int i = 0; i < idx.table.size() && i < idxData.length; i++)
         {
-          if ((idx.data[i].getMediaMask() & mediaMask) == 0)
+          if ((idxData[i].getMediaMask() & mediaMask) == 0)
             continue;
-          if (pat.matcher(((Stringer) idx.data[i]).name).matches())
-            okYearStringers.add((Stringer) idx.data[i]);
+          if (pat.matcher(((Stringer) idxData[i]).name).matches())
+            okYearStringers.add((Stringer) idxData[i]);
         }
       } finally {
         idx.table.releaseReadLock();
@@ -6647,12 +6361,13 @@ public class Wizard implements EPGDBPublic2
       idx = getIndex(BONUS_CODE);
       try {
         idx.table.acquireReadLock();
-        for (int i = 0; i < idx.table.num; i++)
+        DBObject[] idxData = idx.getData();
+        for (int i = 0; i < idx.table.size() && i < idxData.length; i++)
         {
-          if ((idx.data[i].getMediaMask() & mediaMask) == 0)
+          if ((idxData[i].getMediaMask() & mediaMask) == 0)
             continue;
-          if (pat.matcher(((Stringer) idx.data[i]).name).matches())
-            okMiscStringers.add((Stringer) idx.data[i]);
+          if (pat.matcher(((Stringer) idxData[i]).name).matches())
+            okMiscStringers.add((Stringer) idxData[i]);
         }
       } finally {
         idx.table.releaseReadLock();
@@ -6663,10 +6378,11 @@ public class Wizard implements EPGDBPublic2
     int MAX_SEARCH_RESULTS = Sage.getInt("wizard/max_search_results", 1000);
     try {
       sidx.table.acquireReadLock();
+      DBObject[] sidxData = sidx.getData();
       show_loop:
-        for (int i = 0; i < sidx.table.num; i++)
+        for (int i = 0; i < sidx.table.size() && i < sidxData.length; i++)
         {
-          Show currShow = (Show) sidx.data[i];
+          Show currShow = (Show) sidxData[i];
           if ((currShow.getMediaMask() & mediaMask) == 0)
             continue;
 
@@ -6757,9 +6473,10 @@ public class Wizard implements EPGDBPublic2
         Index aidx = getIndex(AIRING_CODE);
         try {
           aidx.table.acquireReadLock();
-          for (int i = 0; i < aidx.table.num; i++)
+          DBObject[] aidxData = aidx.getData();
+          for (int i = 0; i < aidx.table.size() && i < aidxData.length; i++)
           {
-            Airing currAir = (Airing) aidx.data[i];
+            Airing currAir = (Airing) aidxData[i];
             if (currAir.hasMediaMaskAny(mediaMask)) {
               if ((currAir.miscB & matchMiscB) != 0) {
                 rv.add(currAir);
@@ -6786,9 +6503,10 @@ public class Wizard implements EPGDBPublic2
         Index mfIdx = getIndex(MEDIAFILE_CODE);
         try {
           mfIdx.table.acquireReadLock();
-          for (int i = 0; i < mfIdx.table.num; i++)
+          DBObject[] mfIdxData = mfIdx.getData();
+          for (int i = 0; i < mfIdx.table.size() && i < mfIdxData.length; i++)
           {
-            MediaFile currMF = (MediaFile) mfIdx.data[i];
+            MediaFile currMF = (MediaFile) mfIdxData[i];
             if ((currMF.getMediaMask() & mediaMask) == 0)
               continue;
             ContainerFormat cf = currMF.getFileFormat();
@@ -6813,13 +6531,14 @@ public class Wizard implements EPGDBPublic2
     int MAX_SEARCH_RESULTS = Sage.getInt("wizard/max_search_results", 1000);
     try {
       idx.table.acquireReadLock();
-      for (int i = 0; i < idx.table.num; i++)
+      DBObject[] idxData = idx.getData();
+      for (int i = 0; i < idx.table.size() && i < idxData.length; i++)
       {
-        if ((idx.data[i].getMediaMask() & mediaMask) == 0)
+        if ((idxData[i].getMediaMask() & mediaMask) == 0)
           continue;
-        if (pattern.matcher(((Stringer) idx.data[i]).name).matches())
+        if (pattern.matcher(((Stringer) idxData[i]).name).matches())
         {
-          okTitles.add(((Stringer) idx.data[i]).name);
+          okTitles.add(((Stringer) idxData[i]).name);
           if (okTitles.size() >= MAX_SEARCH_RESULTS)
             break;
         }
@@ -6858,9 +6577,10 @@ public class Wizard implements EPGDBPublic2
     int MAX_SEARCH_RESULTS = Sage.getInt("wizard/max_search_results", 1000);
     try {
       sidx.table.acquireReadLock();
-      for (int i = 0; i < sidx.table.num; i++)
+      DBObject[] sidxData = sidx.getData();
+      for (int i = 0; i < sidx.table.size() && i < sidxData.length; i++)
       {
-        Show currShow = (Show) sidx.data[i];
+        Show currShow = (Show) sidxData[i];
         if ((currShow.getMediaMask() & mediaMask) == 0)
           continue;
         if (currShow.title == str)
@@ -6885,9 +6605,10 @@ public class Wizard implements EPGDBPublic2
     int MAX_SEARCH_RESULTS = Sage.getInt("wizard/max_search_results", 1000);
     try {
       sidx.table.acquireReadLock();
-      for (int i = 0; i < sidx.table.num; i++)
+      DBObject[] sidxData = sidx.getData();
+      for (int i = 0; i < sidx.table.size() && i < sidxData.length; i++)
       {
-        MediaFile mf = (MediaFile) sidx.data[i];
+        MediaFile mf = (MediaFile) sidxData[i];
         Show s;
         if (mf.isMusic() && ((s = mf.getShow()) != null) &&
             (s.title == str))
@@ -6917,9 +6638,10 @@ public class Wizard implements EPGDBPublic2
     int MAX_SEARCH_RESULTS = Sage.getInt("wizard/max_search_results", 1000);
     try {
       idx.table.acquireReadLock();
-      for (int i = 0; i < idx.table.num; i++)
+      DBObject[] idxData = idx.getData();
+      for (int i = 0; i < idx.table.size() && i < idxData.length; i++)
       {
-        Person strgr = (Person) idx.data[i];
+        Person strgr = (Person) idxData[i];
         if ((strgr.getMediaMask() & mediaMask) == 0)
           continue;
         if (pat.matcher(strgr.name).matches())
@@ -6984,12 +6706,12 @@ public class Wizard implements EPGDBPublic2
     try {
       t.acquireReadLock();
       int low = 0;
-      int high = t.num - 1;
+      int high = t.size() - 1;
 
       while (low <= high)
       {
         int mid = (low + high) >> 1;
-        Person midVal = (Person) indy.data[mid];
+        Person midVal = (Person) indy.get(mid);
         int cmp = midVal.extID - targetExtID;
         if (cmp < 0)
           low = mid + 1;
@@ -7002,15 +6724,15 @@ public class Wizard implements EPGDBPublic2
           low = high = mid;
           while (low > 0)
           {
-            Person lowbie = (Person) indy.data[low - 1];
+            Person lowbie = (Person) indy.get(low - 1);
             if (lowbie != null && lowbie.extID == targetExtID)
               low--;
             else
               break;
           }
-          while (high < t.num - 1)
+          while (high < t.size() - 1)
           {
-            Person higher = (Person) indy.data[high + 1];
+            Person higher = (Person) indy.get(high + 1);
             if (higher != null && higher.extID == targetExtID)
               high++;
             else
@@ -7018,7 +6740,7 @@ public class Wizard implements EPGDBPublic2
           }
           Person[] rv = new Person[2 + high - low];
           rv[0] = originalPerson;
-          System.arraycopy(indy.data, low, rv, 1, rv.length - 1);
+          indy.copyInto(low, rv, 1, rv.length - 1);
           return rv;
         }
       }
@@ -7039,9 +6761,10 @@ public class Wizard implements EPGDBPublic2
     int MAX_SEARCH_RESULTS = Sage.getInt("wizard/max_search_results", 1000);
     try {
       sidx.table.acquireReadLock();
-      for (int i = 0; i < sidx.table.num; i++)
+      DBObject[] sidxData = sidx.getData();
+      for (int i = 0; i < sidx.table.size() && i < sidxData.length; i++)
       {
-        Show currShow = (Show) sidx.data[i];
+        Show currShow = (Show) sidxData[i];
         if ((currShow.getMediaMask() & mediaMask) == 0)
           continue;
         for (int j = 0; j < currShow.people.length; j++)
@@ -7066,9 +6789,10 @@ public class Wizard implements EPGDBPublic2
     int MAX_SEARCH_RESULTS = Sage.getInt("wizard/max_search_results", 1000);
     try {
       sidx.table.acquireReadLock();
-      for (int i = 0; i < sidx.table.num; i++)
+      DBObject[] sidxData = sidx.getData();
+      for (int i = 0; i < sidx.table.size() && i < sidxData.length; i++)
       {
-        Show currShow = (Show) sidx.data[i];
+        Show currShow = (Show) sidxData[i];
         if (currShow.isMusic() && currShow.categories.length > 0 && currShow.categories[0] == str)
         {
           rv.addAll(Arrays.asList(getAirings(currShow, 0)));
@@ -7153,8 +6877,9 @@ public class Wizard implements EPGDBPublic2
     int MAX_SEARCH_RESULTS = Sage.getInt("wizard/max_search_results", 1000);
     try {
       idx.table.acquireReadLock();
-      for (int i = 0; i < idx.table.num; i++) {
-        Channel chan = (Channel) idx.data[i];
+      DBObject[] idxData = idx.getData();
+      for (int i = 0; i < idx.table.size() && i < idxData.length; i++) {
+        Channel chan = (Channel) idxData[i];
         if (includeDisabled || chan.isViewable()) {
           // use StringMatchUtils to perform faster substring matching
           // on start-of-word where multiple words may match
@@ -7256,7 +6981,10 @@ public class Wizard implements EPGDBPublic2
     }
   }
 
-  private Table lastTable;
+  // This is per thread since tables can be loaded in parallel
+  private final ThreadLocal<Table> loadingTable = new ThreadLocal<Table>();
+  // When this is set for a thread, alternate indices that are loaded are added to it instead of being checked
+  private final ThreadLocal<List<Index>> deferredIndexChecks = new ThreadLocal<List<Index>>();
 
   private byte processXctFromStream(DataInput in, byte ver, long cmdLength,
       Map<Integer, Integer> idMap, int baseID) throws IOException
@@ -7269,9 +6997,11 @@ public class Wizard implements EPGDBPublic2
     if (opcode == XCTS_DONE)
       return opcode;
     byte typecode = in.readByte();
+    Table lastTable = loadingTable.get();
     if (opcode == SIZE)
     {
       lastTable = getTable(typecode);
+      loadingTable.set(lastTable);
       if (lastTable == null)
         return opcode;
       int theSize = in.readInt();
@@ -7279,9 +7009,9 @@ public class Wizard implements EPGDBPublic2
       try {
         lastTable.acquireWriteLock();
         lastTable.num = theSize;
-        lastTable.primary.data = new DBObject[theSize + INC_SIZE];
+        lastTable.primary.setData(new DBObject[theSize + INC_SIZE]);
         for (int i = 0; i < lastTable.others.length; i++)
-          lastTable.others[i].data = new DBObject[theSize + INC_SIZE];
+          lastTable.others[i].setData(new DBObject[theSize + INC_SIZE]);
       } finally {
         lastTable.releaseWriteLock();
       }
@@ -7309,21 +7039,21 @@ public class Wizard implements EPGDBPublic2
           index = getPersonIndex();
         }
         if(index != null) {
-          if(index.getWriter().numDocs() != indy.table.num) {
+          if(index.getWriter().numDocs() != indy.table.size()) {
             if (Sage.DBG) {
               System.out.println("Lucene index(" + index.name
                   + ") does not have same item count as wizard (idx:" + index.getWriter().numDocs()
-                  + ", wiz:" + indy.table.num + ") - RESETING");
+                  + ", wiz:" + indy.table.size() + ") - RESETING");
             }
             index.resetIndex();
           } else {
             if(Sage.DBG) System.out.println("Lucene index(" + index.name
                 + ") counts(" + index.getWriter().numDocs()
-                + ", " + indy.table.num + ") - Loaded from storage; Wizard not impeded");
+                + ", " + indy.table.size() + ") - Loaded from storage; Wizard not impeded");
             indexInitialized = true;
           }
         }
-        for (int i = 0; i < indy.table.num; i++)
+        for (int i = 0; i < indy.table.size(); i++)
         {
           DBObject newObj = loadDBObject(lastTable.tableCode, in, ver, idMap, baseID);
           if(newObj != null) {
@@ -7343,7 +7073,7 @@ public class Wizard implements EPGDBPublic2
         }
         long totalTime = Sage.eventTime() - loadStart;
         if (Sage.DBG) System.out.println("Load time for " + getNameForCode(lastTable.tableCode) + " " + totalTime +
-            " msec " + (((float)totalTime)/indy.table.num) + " msec/object");
+            " msec " + (((float)totalTime)/indy.table.size()) + " msec/object");
         loadStart = Sage.eventTime();
         indy.check();
         if (Sage.DBG) System.out.println("Index check time for " + getNameForCode(lastTable.tableCode) + " " + (Sage.eventTime() - loadStart) + " msec");
@@ -7353,7 +7083,7 @@ public class Wizard implements EPGDBPublic2
           {
             loadStart = Sage.eventTime();
             if (Sage.DBG) System.out.println("Wizard building alt. index " + k + " for " + getNameForCode(lastTable.tableCode));
-            System.arraycopy(lastTable.primary.data, 0, lastTable.others[k].data, 0, lastTable.num);
+            lastTable.primary.copyInto(0, lastTable.others[k].data, 0, lastTable.size());
             lastTable.others[k].check();
             if (Sage.DBG) System.out.println("Alt. index " + k + " for " + getNameForCode(lastTable.tableCode) + " load time " + (Sage.eventTime() - loadStart) + " msec");
           }
@@ -7389,14 +7119,14 @@ public class Wizard implements EPGDBPublic2
         Index indy = lastTable.getIndex(typecode);
         Index primaryIndex = lastTable.primary;
         boolean loadFailed = false;
-        for (int i = 0; i < indy.table.num; i++)
+        for (int i = 0; i < indy.table.size(); i++)
         {
           int idx = in.readInt();
-          if (idx < 0 || idx >= indy.table.num) {
+          if (idx < 0 || idx >= indy.table.size()) {
             loadFailed = true;
-            if (Sage.DBG) System.out.println("ERROR in DB file index table, invalid index of:" + idx + " size=" + indy.table.num);
+            if (Sage.DBG) System.out.println("ERROR in DB file index table, invalid index of:" + idx + " size=" + indy.table.size());
           } else {
-            indy.data[i] = primaryIndex.data[idx];
+            indy.data[i] = primaryIndex.get(idx);
           }
         }
         if (loadFailed) {
@@ -7404,11 +7134,17 @@ public class Wizard implements EPGDBPublic2
           // We call check() below which will fix the ordering...normally it would be presorted so check()
           // would execute very quickly, but this will have to reorder things so it will execute more slowly but
           // that's better than completely failing to load
-          System.arraycopy(primaryIndex.data, 0, indy.data, 0, indy.table.num);
+          primaryIndex.copyInto(0, indy.data, 0, indy.table.size());
         }
         long totalTime = Sage.eventTime() - loadStart;
         if (Sage.DBG) System.out.println("Load time for alt index " + typecode+ " for " + getNameForCode(lastTable.tableCode) + " " + totalTime +
             " msec");
+        List<Index> deferred = deferredIndexChecks.get();
+        if (deferred != null)
+        {
+          deferred.add(indy);
+          return opcode;
+        }
         loadStart = Sage.eventTime();
         indy.check();
         if (Sage.DBG) System.out.println("Index check time for alt index " + typecode + " for " +
@@ -7444,7 +7180,17 @@ public class Wizard implements EPGDBPublic2
               getTable(typecode).update(oldObj, newObj, false);
           }
           else
-            getTable(typecode).add(newObj, false);
+          {
+            // When replaying a checkpoint tail the segment for this table may have been written after this xct,
+            // in which case it already has the object. Clients get the same thing when they sync from a checkpoint.
+            DBObject oldObj = (replayingCheckpointTail || Sage.client) ? getTable(typecode).primary.getSingle(newObj) : null;
+            if (oldObj != null)
+              getTable(typecode).update(oldObj, newObj, false);
+            else
+              getTable(typecode).add(newObj, false);
+          }
+          if (replayingCheckpointTail)
+            checkpointTailTables.add(typecode);
         }
         if (Sage.client)
         {
@@ -7465,12 +7211,36 @@ public class Wizard implements EPGDBPublic2
     {
       return false;
     }
-    else if (dbFile.isFile() && dbFile.length() > 0)
+    else if (hasCheckpointManifest() || (dbFile.isFile() && dbFile.length() > 0))
     {
       SageDataFile in = null;
       loading = true;
       boolean finishedAll = false;
       Map<Integer, Integer> idTranslation = null;
+      // With a segmented checkpoint the table segments are loaded first and then the xcts in the tails are
+      // replayed on top of them; otherwise it's all in the one DB file.
+      List<File> loadFiles = new ArrayList<File>();
+      int numSegments = 0;
+      checkpointTailTables.clear();
+      checkpointModCounts.clear();
+      checkpointManifest = hasCheckpointManifest() ? DBManifest.load(checkpointDir) : null;
+      if (checkpointManifest != null)
+      {
+        for (int i = 0; i < WRITE_ORDER.length; i++)
+        {
+          File segFile = checkpointManifest.getSegment(WRITE_ORDER[i]);
+          if (segFile != null)
+            loadFiles.add(segFile);
+        }
+        numSegments = loadFiles.size();
+        loadFiles.addAll(checkpointManifest.getTails());
+        if (checkpointManifest.getCurrentTail() == null)
+          saveItNow = true;
+        if (Sage.DBG) System.out.println("Loading DB from checkpoint in " + checkpointDir + " segments=" + numSegments +
+            " tails=" + (loadFiles.size() - numSegments));
+      }
+      else
+        loadFiles.add(dbFile);
       if (nextID > SERVER_INIT_ID_BOUNDARY)
       {
         File safeBackupFile = null;
@@ -7484,7 +7254,8 @@ public class Wizard implements EPGDBPublic2
         }
         try
         {
-          IOUtils.copyFile(dbFile, safeBackupFile);
+          if (checkpointManifest == null)
+            IOUtils.copyFile(dbFile, safeBackupFile);
           System.out.println("DATABASE ID ROLLOVER POTENTIAL - REBUILDING IDS OF ALL OBJECTS");
           nextID = 1;
           idTranslation = new HashMap<Integer, Integer>();
@@ -7497,122 +7268,141 @@ public class Wizard implements EPGDBPublic2
       }
       try
       {
-        long fileLength = dbFile.length();
-        in = new SageDataFile(new EncryptedSageFile(new BufferedSageFile(
-            new LocalSageFile(dbFile, true),
-            BufferedSageFile.READ_BUFFER_SIZE)),
-            Sage.I18N_CHARSET);
-
-        // Testing shows the DB loads 5% faster if this is false...not much of an optimization, but it helps
-        //in.setOptimizeReadFully(false);
-        byte b1 = in.readUnencryptedByte();
-        byte b2 = in.readUnencryptedByte();
-        byte b3 = in.readUnencryptedByte();
-        if ((b1 != 'W') || (b2 != 'I') || (b3 != 'Z'))
-        {
-          throw new IOException("Invalid DB file format!");
-        }
-
-        version = in.readUnencryptedByte();
-        if (version == BAD_VERSION)
-          throw new IOException("Invalid DB file, only partially saved.");
-        if (Sage.DBG) System.out.println("Reading DB file:"+dbFile+" with version " + version);
-        if (version != VERSION) saveItNow = true;
-        if (version < 0x09)
-          throw new IllegalArgumentException("Wizard does not support DBs before version 9!");
-        if (version < 0x2F || version >= 0x54)
-        {
-          // unencrypted DB file
-          //Remove encryption filter.
-          in = new SageDataFile(in.getUnencryptedSource(), (version == 0x54) ? Sage.BYTE_CHARSET : Sage.I18N_CHARSET);
-          // We are already at the right position since we didn't re-open the file.
-          /*in.readUnencryptedByte();
-          in.readUnencryptedByte();
-          in.readUnencryptedByte();
-          in.readUnencryptedByte();*/
-        }
-        if (version < 0x35)
-        {
-          // Switch to byte chars
-          in.setCharset(Sage.BYTE_CHARSET);
-        }
-        if (version < 0x38)
-        {
-          // DB is from before we had the media mask, so we need to generate it for all DBObjects on load
-          GENERATE_MEDIA_MASK = true;
-        }
         Table t = null;
         HashMap<Byte, Set<DBObject>> killMap = new HashMap<Byte, Set<DBObject>>();
-        if (Sage.DBG) System.out.println("DBFile at version " + version + " FileSize=" + fileLength);
-        long fp = in.position();
-        int cmdLength = 0;
-        byte opcode = 0;
-        byte typecode = 0;
         int numTransactionRecords = 0;
-        while (fileLength > in.position())
+        // Where to start reading each file from; tables that were already loaded in parallel are skipped
+        long[] loadStarts = null;
+        if (idTranslation == null && Sage.getBoolean(prefsRoot + PARALLEL_LOAD, false))
+          loadStarts = loadTablesInParallel(loadFiles);
+        for (int fileNum = 0; fileNum < loadFiles.size(); fileNum++)
         {
-          long newFp = in.position();
-          if (fp + cmdLength != newFp)
+          if (loadStarts != null && loadStarts[fileNum] < 0)
+            continue;
+          File loadFile = loadFiles.get(fileNum);
+          // Xcts in the checkpoint tails may already be in the segments since those are written after the tail is started
+          replayingCheckpointTail = checkpointManifest != null && fileNum >= numSegments;
+          long fileLength = loadFile.length();
+          in = new SageDataFile(new EncryptedSageFile(new BufferedSageFile(
+              new LocalSageFile(loadFile, true),
+              BufferedSageFile.READ_BUFFER_SIZE)),
+              Sage.I18N_CHARSET);
+
+          // Testing shows the DB loads 5% faster if this is false...not much of an optimization, but it helps
+          //in.setOptimizeReadFully(false);
+          byte b1 = in.readUnencryptedByte();
+          byte b2 = in.readUnencryptedByte();
+          byte b3 = in.readUnencryptedByte();
+          if ((b1 != 'W') || (b2 != 'I') || (b3 != 'Z'))
           {
-            if (!finishedAll) {
-              throw new IOException("ERROR DB RECORD LENGTH VIOLATION was " + (newFp - fp) + " should be " + cmdLength +
-                  " fp=" + fp + " length=" + fileLength + " opcode=" + opcode + " typecode=" + typecode);
-            }
-            else if (dbErrorsLogged < MAX_DB_ERRORS_TO_LOG)
-            {
-              dbErrorsLogged++;
-              if (Sage.DBG) System.out.println("ERROR DB RECORD LENGTH VIOLATION was " + (newFp - fp) + " should be " + cmdLength +
-                  " fp=" + fp + " length=" + fileLength + " opcode=" + opcode + " typecode=" + typecode);
-            }
-            in.seek(fp + cmdLength);
-            saveItNow = true;
+            throw new IOException("Invalid DB file format!");
           }
-          fp += cmdLength;
-          cmdLength = in.readInt();
-          cmdLength = Math.max(1, cmdLength);
-          if (cmdLength + fp > fileLength)
+
+          version = in.readUnencryptedByte();
+          if (version == BAD_VERSION)
+            throw new IOException("Invalid DB file, only partially saved.");
+          if (Sage.DBG) System.out.println("Reading DB file:"+loadFile+" with version " + version);
+          if (version != VERSION) saveItNow = true;
+          if (version < 0x09)
+            throw new IllegalArgumentException("Wizard does not support DBs before version 9!");
+          if (version < 0x2F || version >= 0x54)
           {
-            if (!finishedAll)
-              throw new IOException("BOGUS command length, ending file load now. req=" + (cmdLength + fp) +
-                  " actual=" + fileLength);
-            else
+            // unencrypted DB file
+            //Remove encryption filter.
+            in = new SageDataFile(in.getUnencryptedSource(), (version == 0x54) ? Sage.BYTE_CHARSET : Sage.I18N_CHARSET);
+            // We are already at the right position since we didn't re-open the file.
+            /*in.readUnencryptedByte();
+            in.readUnencryptedByte();
+            in.readUnencryptedByte();
+            in.readUnencryptedByte();*/
+          }
+          if (version < 0x35)
+          {
+            // Switch to byte chars
+            in.setCharset(Sage.BYTE_CHARSET);
+          }
+          if (version < 0x38)
+          {
+            // DB is from before we had the media mask, so we need to generate it for all DBObjects on load
+            GENERATE_MEDIA_MASK = true;
+          }
+          if (Sage.DBG) System.out.println("DBFile at version " + version + " FileSize=" + fileLength);
+          long fp = in.position();
+          if (loadStarts != null && loadStarts[fileNum] > fp)
+          {
+            fp = loadStarts[fileNum];
+            in.seek(fp);
+          }
+          int cmdLength = 0;
+          byte opcode = 0;
+          byte typecode = 0;
+          while (fileLength > in.position())
+          {
+            long newFp = in.position();
+            if (fp + cmdLength != newFp)
             {
-              // If we terminate this way because of a corrupt record; we still want to run the validation on the objects
-              // so don't throw an exception that'll make us skip that part! Just break out of the loop.
-              if (Sage.DBG) System.out.println("BOGUS-2 command length, ending file load now. req=" + (cmdLength + fp) +
-                  " actual=" + fileLength);
+              if (!finishedAll) {
+                throw new IOException("ERROR DB RECORD LENGTH VIOLATION was " + (newFp - fp) + " should be " + cmdLength +
+                    " fp=" + fp + " length=" + fileLength + " opcode=" + opcode + " typecode=" + typecode);
+              }
+              else if (dbErrorsLogged < MAX_DB_ERRORS_TO_LOG)
+              {
+                dbErrorsLogged++;
+                if (Sage.DBG) System.out.println("ERROR DB RECORD LENGTH VIOLATION was " + (newFp - fp) + " should be " + cmdLength +
+                    " fp=" + fp + " length=" + fileLength + " opcode=" + opcode + " typecode=" + typecode);
+              }
+              in.seek(fp + cmdLength);
               saveItNow = true;
-              break;
             }
-          }
-          cmdLength = Math.max(cmdLength, 4);
+            fp += cmdLength;
+            cmdLength = in.readInt();
+            cmdLength = Math.max(1, cmdLength);
+            if (cmdLength + fp > fileLength)
+            {
+              if (!finishedAll)
+                throw new IOException("BOGUS command length, ending file load now. req=" + (cmdLength + fp) +
+                    " actual=" + fileLength);
+              else
+              {
+                // If we terminate this way because of a corrupt record; we still want to run the validation on the objects
+                // so don't throw an exception that'll make us skip that part! Just break out of the loop.
+                if (Sage.DBG) System.out.println("BOGUS-2 command length, ending file load now. req=" + (cmdLength + fp) +
+                    " actual=" + fileLength);
+                saveItNow = true;
+                break;
+              }
+            }
+            cmdLength = Math.max(cmdLength, 4);
 
-          try
-          {
-            opcode = processXctFromStream(in, version, cmdLength, idTranslation, 0);
-            if (opcode != SIZE && opcode != FULL_DATA)
+            try
             {
-              if (!finishedAll && (opcode == ADD || opcode == REMOVE || opcode == UPDATE))
+              opcode = processXctFromStream(in, version, cmdLength, idTranslation, 0);
+              if (opcode != SIZE && opcode != FULL_DATA)
               {
-                finishedAll = true;
-                if (Sage.DBG) System.out.println("Wizard processing transactional records...");
+                if (!finishedAll && (opcode == ADD || opcode == REMOVE || opcode == UPDATE))
+                {
+                  finishedAll = true;
+                  if (Sage.DBG) System.out.println("Wizard processing transactional records...");
+                }
+                if (numTransactionRecords % 100 == 0)
+                {
+                  Sage.setSplashText(Sage.rez("Module_Init_Progress", new Object[] { Sage.rez("Object_Database"), new Double((((double)fp)/fileLength)) }));
+                }
+                if (numTransactionRecords++ > NUM_TRANSACTIONS_TO_COMPRESS_ON_LOAD)
+                  saveItNow = true;
               }
-              if (numTransactionRecords % 100 == 0)
-              {
+              else
                 Sage.setSplashText(Sage.rez("Module_Init_Progress", new Object[] { Sage.rez("Object_Database"), new Double((((double)fp)/fileLength)) }));
-              }
-              if (numTransactionRecords++ > NUM_TRANSACTIONS_TO_COMPRESS_ON_LOAD)
-                saveItNow = true;
             }
-            else
-              Sage.setSplashText(Sage.rez("Module_Init_Progress", new Object[] { Sage.rez("Object_Database"), new Double((((double)fp)/fileLength)) }));
-          }
-          catch (IOException e)
-          {
-            if (Sage.DBG) System.out.println("ERROR Processing DB record, skipping it and continuing. Error:" + e);
-            if (Sage.DBG) Sage.printStackTrace(e);
-            saveItNow = true;
+            catch (IOException e)
+            {
+              if (Sage.DBG) System.out.println("ERROR Processing DB record, skipping it and continuing. Error:" + e);
+              if (Sage.DBG) Sage.printStackTrace(e);
+              saveItNow = true;
+            }
           }
+          in.close();
+          in = null;
         }
 
         // Setup the noShowID before we do validation because getShow() is used quite
@@ -7629,9 +7419,10 @@ public class Wizard implements EPGDBPublic2
             t = tables[tableNum];
             if (t == null) continue;
             Index indy = t.primary;
-            for (int i = 0; i < indy.table.num; i++)
+            DBObject[] indyData = indy.getData();
+            for (int i = 0; i < indy.table.size() && i < indyData.length; i++)
             {
-              DBObject newObj = indy.data[i];
+              DBObject newObj = indyData[i];
               if (!newObj.validate())
               {
                 Set<DBObject> tempSet = killMap.get(t.tableCode);
@@ -7678,9 +7469,10 @@ public class Wizard implements EPGDBPublic2
             }
           }
           Index airIndex = getIndex(AIRING_CODE, AIRINGS_BY_CT_CODE);
-          for (int i = 0; i < airIndex.table.num; i++)
+          DBObject[] airIndexData = airIndex.getData();
+          for (int i = 0; i < airIndex.table.size() && i < airIndexData.length; i++)
           {
-            Airing iAir = (Airing) airIndex.data[i];
+            Airing iAir = (Airing) airIndexData[i];
             if (iAir != null && usedStations.contains(iAir.stationID))
             {
               iAir.addMediaMask(DBObject.MEDIA_MASK_TV);
@@ -7697,9 +7489,10 @@ public class Wizard implements EPGDBPublic2
           saveItNow = true;
           int numRepairs = 0;
           Index showIndex = getIndex(SHOW_CODE);
-          for (int i = 0; i < showIndex.table.num; i++)
+          DBObject[] showIndexData = showIndex.getData();
+          for (int i = 0; i < showIndex.table.size() && i < showIndexData.length; i++)
           {
-            Show s = (Show) showIndex.data[i];
+            Show s = (Show) showIndexData[i];
             if (s != null && s.categories.length > 0)
             {
               if (getCategoryForID(s.categories[0].id, false) == null)
@@ -7724,6 +7517,9 @@ public class Wizard implements EPGDBPublic2
       finally
       {
         loading = false;
+        replayingCheckpointTail = false;
+        publishTableVersions();
+        rebuildNameInterns();
         if (in != null)
         {
           in.close();
@@ -7811,6 +7607,7 @@ public class Wizard implements EPGDBPublic2
 
   void goodbye()
   {
+    flushLogWriter();
     if (dbout != null)
     {
       try
@@ -7824,6 +7621,19 @@ public class Wizard implements EPGDBPublic2
   private void saveDBFile() throws IOException
   {
     if (Sage.client || disableDatabase) return;
+    if (segmentedCheckpoints)
+    {
+      checkpointDB();
+      return;
+    }
+    synchronized (checkpointLock)
+    {
+      saveFullDBFile();
+    }
+  }
+
+  private void saveFullDBFile() throws IOException
+  {
     synchronized (pendingWriteXcts)
     {
       // If writes are suspended already due to sending a DB to a client...then hold off until that's done before we proceed.
@@ -7833,8 +7643,11 @@ public class Wizard implements EPGDBPublic2
       }
       suspendWrite = true;
     }
+    // Anything that was logged before we suspended writes needs to go into the old file before we replace it
+    flushLogWriter();
     synchronized (outLock)
     {
+      takeUnwrittenXcts();
       boolean backupFailed = false;
       if (dbout != null)
       {
@@ -7843,20 +7656,7 @@ public class Wizard implements EPGDBPublic2
       }
       if (Sage.DBG) System.out.println("Wizard backing up database file...");
 
-      LuceneIndex index = getShowIndex();
-      if(index != null) {
-        synchronized (index.getTransactionLock()) {
-          index.indexTransactions.add(null);
-          index.getTransactionLock().notifyAll();
-        }
-      }
-      index = getPersonIndex();
-      if(index != null) {
-        synchronized (index.getTransactionLock()) {
-          index.indexTransactions.add(null);
-          index.getTransactionLock().notifyAll();
-        }
-      }
+      commitLuceneIndices();
       if (dbFile.isFile())
       {
         // Save a backup copy
@@ -7874,10 +7674,8 @@ public class Wizard implements EPGDBPublic2
         }
       }
       // Looks cleaner and creates one less string for !Sage.EMBEDDED.
-      String fileMode = "rwd";
+      String fileMode = getLogFileMode();
       if(!backupFailed) {
-        int dbWriteFlags = 0;
-
         long startSaveTime = Sage.eventTime();
         File realDBFile = dbFile;
         // Use a temp file here so that we can be 100% sure the valid version byte is present and the
@@ -7907,60 +7705,7 @@ public class Wizard implements EPGDBPublic2
         {
           if (Sage.DBG) System.out.println("Wizard writing out table info for " +
               getNameForCode(WRITE_ORDER[i]));
-          Table currTable = getTable(WRITE_ORDER[i]);
-          // 7/14/2016 JS: Setting the variable here doesn't make any sense; it never gets used.
-          long fp;// = dbout.position();
-          dbout.writeInt(10);
-          dbout.writeByte(SIZE);
-          try {
-            currTable.acquireReadLock();
-            dbout.writeByte(currTable.tableCode);
-            dbout.writeInt(currTable.num);
-            if (currTable.num > 0)
-            {
-              fp = dbout.position();
-              dbout.writeInt(Integer.MAX_VALUE);
-              dbout.writeByte(FULL_DATA);
-              dbout.writeByte(currTable.primary.indexCode);
-
-              DBObject[] currData = currTable.primary.data;
-              for (int j = 0; j < currTable.num; j++)
-              {
-                DBObject dbobj = currData[j];
-                dbobj.write(dbout, dbWriteFlags);
-                dbobj.lookupIdx = -(j + 1);
-              }
-
-              logCmdLength(dbout, fp);
-
-              for (int k = 0; k < currTable.others.length; k++)
-              {
-                Index currIdx = currTable.others[k];
-                currData = currIdx.data;
-                dbout.writeInt((4 * currTable.num) + 6);
-                dbout.writeByte(INDEX_DATA);
-                dbout.writeByte(currIdx.indexCode);
-                for (int m = 0; m < currTable.num; m++)
-                {
-                  dbout.writeInt(-1*(currData[m].lookupIdx + 1));
-                }
-              }
-              // We don't need to log the command length because we knew it when we started writing it out
-            }
-            // Remove any transasctions that are for the full table we just wrote out,
-            // updates that occur after this need to be written
-            synchronized (pendingWriteXcts)
-            {
-              for (int j = 0; j < pendingWriteXcts.size(); j++)
-              {
-                XctObject currXct = pendingWriteXcts.get(j);
-                if (currXct.objectType == currTable.tableCode)
-                  pendingWriteXcts.removeElementAt(j--);
-              }
-            }
-          } finally {
-            currTable.releaseReadLock();
-          }
+          writeFullTable(dbout, getTable(WRITE_ORDER[i]));
         }
         long endSaveTime = Sage.eventTime();
         if (Sage.DBG) System.out.println("DB saveTime=" + ((endSaveTime - startSaveTime)/1000.0) + " sec");
@@ -7973,6 +7718,14 @@ public class Wizard implements EPGDBPublic2
         dbout.close();
         dbFile.renameTo(realDBFile);
         dbFile = realDBFile;
+        // If we were using segmented checkpoints before then they're obsolete now
+        if (checkpointManifest != null)
+        {
+          if (Sage.DBG) System.out.println("Wizard removing DB checkpoint since the DB file is being used instead");
+          checkpointManifest.deleteAll();
+          checkpointManifest = null;
+          checkpointModCounts.clear();
+        }
         // 128k was chosen from observing most random writes are typically less than this distance
         // behind the actual write buffer. The original default of 64k would often miss even with
         // the optimizer trying to compensate for the last miss since the misses were more than 64k
@@ -7990,36 +7743,303 @@ public class Wizard implements EPGDBPublic2
             Sage.I18N_CHARSET);
         dbout.seek(dbout.length());
       }
-      while (true)
+      writePendingXcts();
+    }
+    Sage.gcPause();
+  }
+
+  // Writes out the whole table for a full save. Writers are blocked while this is done; with snapshot reads a
+  // normal read lock wouldn't stop Table.update from changing the objects while they're being written. The pending
+  // xcts for the table are dropped under that same lock since everything they did is in what was just written,
+  // updates that occur after this need to be written.
+  void writeFullTable(SageDataFile out, Table currTable) throws IOException
+  {
+    try {
+      currTable.acquireStableReadLock();
+      writeTableRecords(out, currTable);
+      synchronized (pendingWriteXcts)
+      {
+        for (int j = 0; j < pendingWriteXcts.size(); j++)
+        {
+          XctObject currXct = pendingWriteXcts.get(j);
+          if (currXct.objectType == currTable.tableCode)
+            pendingWriteXcts.removeElementAt(j--);
+        }
+      }
+    } finally {
+      currTable.releaseStableReadLock();
+    }
+  }
+
+  // This must be called with the outLock held; it logs all the xcts that happened while writes were
+  // suspended and then resumes normal writes
+  private void writePendingXcts() throws IOException
+  {
+    while (true)
+    {
+      XctObject nextXct = null;
+      synchronized (pendingWriteXcts)
+      {
+        if (pendingWriteXcts.isEmpty())
+        {
+          suspendWrite = false;
+          break;
+        }
+        nextXct = pendingWriteXcts.remove(0);
+      }
+
+      if (nextXct.xctData != null)
+      {
+        dbout.writeInt(nextXct.xctData.length + 4);
+        dbout.write(nextXct.xctData);
+        numUncompXcts++;
+        continue;
+      }
+      long fp = dbout.position();
+      dbout.writeInt(Integer.MAX_VALUE);
+      dbout.writeByte(nextXct.xctType);
+      dbout.writeByte(nextXct.objectType);
+      Table xctTable = getTable(nextXct.objectType);
+      try {
+        xctTable.acquireStableReadLock();
+        nextXct.obj.write(dbout, 0);
+      } finally {
+        xctTable.releaseStableReadLock();
+      }
+      logCmdLength(dbout, fp);
+      numUncompXcts++;
+    }
+    if (groupCommitLog)
+      dbout.sync();
+  }
+
+  // With group commit the writer syncs the log file once for each batch; so it doesn't also need to sync every write
+  private String getLogFileMode()
+  {
+    return groupCommitLog ? "rw" : "rwd";
+  }
+
+  // Writes out the size, data and index records for a table. The caller must hold a lock on the table.
+  private void writeTableRecords(SageDataFile out, Table currTable) throws IOException
+  {
+    int dbWriteFlags = 0;
+    // 7/14/2016 JS: Setting the variable here doesn't make any sense; it never gets used.
+    long fp;// = dbout.position();
+    out.writeInt(10);
+    out.writeByte(SIZE);
+    out.writeByte(currTable.tableCode);
+    out.writeInt(currTable.size());
+    if (currTable.size() > 0)
+    {
+      fp = out.position();
+      out.writeInt(Integer.MAX_VALUE);
+      out.writeByte(FULL_DATA);
+      out.writeByte(currTable.primary.indexCode);
+
+      DBObject[] currData = currTable.primary.getData();
+      for (int j = 0; j < currTable.size(); j++)
+      {
+        DBObject dbobj = currData[j];
+        dbobj.write(out, dbWriteFlags);
+        dbobj.lookupIdx = -(j + 1);
+      }
+
+      logCmdLength(out, fp);
+
+      for (int k = 0; k < currTable.others.length; k++)
+      {
+        Index currIdx = currTable.others[k];
+        currData = currIdx.getData();
+        out.writeInt((4 * currTable.size()) + 6);
+        out.writeByte(INDEX_DATA);
+        out.writeByte(currIdx.indexCode);
+        for (int m = 0; m < currTable.size(); m++)
+        {
+          out.writeInt(-1*(currData[m].lookupIdx + 1));
+        }
+      }
+      // We don't need to log the command length because we knew it when we started writing it out
+    }
+  }
+
+  private void commitLuceneIndices()
+  {
+    LuceneIndex index = getShowIndex();
+    if(index != null) {
+      synchronized (index.getTransactionLock()) {
+        index.indexTransactions.add(null);
+        index.getTransactionLock().notifyAll();
+      }
+    }
+    index = getPersonIndex();
+    if(index != null) {
+      synchronized (index.getTransactionLock()) {
+        index.indexTransactions.add(null);
+        index.getTransactionLock().notifyAll();
+      }
+    }
+  }
+
+  private boolean hasCheckpointManifest()
+  {
+    return checkpointDir != null && new File(checkpointDir, DBManifest.MANIFEST_NAME).isFile();
+  }
+
+  // Creates a new checkpoint segment or tail file and writes the file header to it, except for the version
+  private SageDataFile createCheckpointFile(File f, String fileMode) throws IOException
+  {
+    SageDataFile rv = new SageDataFile(new BufferedSageFile(
+        new LocalSageFile(f, fileMode),
+        BufferedSageFile.READ_BUFFER_SIZE, 131072),
+        Sage.I18N_CHARSET);
+    rv.setLength(0);
+    rv.writeUnencryptedByte((byte) 'W');
+    rv.writeUnencryptedByte((byte) 'I');
+    rv.writeUnencryptedByte((byte) 'Z');
+    return rv;
+  }
+
+  /**
+   * Writes a segmented checkpoint of the DB. This is used instead of saveDBFile when segmented checkpoints are
+   * enabled so we don't have to rewrite the whole DB and suspend DB writes while doing it.
+   * <p>
+   * New xcts are logged to a new tail file as soon as this starts. Then each table that's changed since its last
+   * segment was written gets a new segment; only that table is locked against writes while this happens. Xcts
+   * which are logged between when the tail is started and when the table is written will be in both, but
+   * replaying them is harmless. Once all the segments are written the manifest is swapped to refer to them
+   * and the new tail; the old files are deleted after that.
+   * <p>
+   * If there's no checkpoint yet (i.e. we're switching over from the single DB file) then writes are
+   * suspended while all the tables are written out since the tail can't be used until the checkpoint is done.
+   */
+  private void checkpointDB() throws IOException
+  {
+    synchronized (checkpointLock)
+    {
+      long startSaveTime = Sage.eventTime();
+      boolean converting = checkpointManifest == null;
+      DBManifest manifest;
+      if (converting)
       {
-        XctObject nextXct = null;
+        if (Sage.DBG) System.out.println("Wizard creating new DB checkpoint in " + checkpointDir);
         synchronized (pendingWriteXcts)
         {
-          if (pendingWriteXcts.isEmpty())
+          // If writes are suspended already due to sending a DB to a client...then hold off until that's done before we proceed.
+          while (suspendWrite)
           {
-            suspendWrite = false;
-            break;
+            try { pendingWriteXcts.wait(1000);} catch (Exception e){}
           }
-          nextXct = pendingWriteXcts.remove(0);
+          suspendWrite = true;
         }
-
-        long fp = dbout.position();
-        dbout.writeInt(Integer.MAX_VALUE);
-        dbout.writeByte(nextXct.xctType);
-        dbout.writeByte(nextXct.objectType);
-        try {
-          acquireReadLock(nextXct.objectType);
-          nextXct.obj.write(dbout, 0);
-        } finally {
-          releaseReadLock(nextXct.objectType);
+        flushLogWriter();
+        checkpointDir.mkdirs();
+        manifest = new DBManifest(checkpointDir);
+        // In case there's anything left over from a prior checkpoint
+        manifest.deleteUnreferencedFiles();
+      }
+      else
+        manifest = checkpointManifest.copy();
+      long gen = manifest.nextGeneration();
+      File newTail = new File(checkpointDir, "tail-" + gen + ".log");
+      int numWritten = 0;
+      try
+      {
+        commitLuceneIndices();
+        if (!converting)
+          startCheckpointTail(manifest, newTail);
+        Map<Byte, Long> newModCounts = new HashMap<Byte, Long>();
+        for (int i = 0; i < WRITE_ORDER.length; i++)
+        {
+          Table currTable = getTable(WRITE_ORDER[i]);
+          Long lastModCount = checkpointModCounts.get(currTable.tableCode);
+          if (manifest.hasSegment(currTable.tableCode) && lastModCount != null &&
+              lastModCount.longValue() == currTable.getModCount())
+            continue;
+          if (Sage.DBG) System.out.println("Wizard writing checkpoint segment for " + getNameForCode(currTable.tableCode));
+          File segFile = new File(checkpointDir, "table" + currTable.tableCode + "-" + gen + ".seg");
+          SageDataFile segOut = createCheckpointFile(segFile, "rw");
+          try
+          {
+            // The BAD_VERSION marker is to signify incompletely saved files.
+            long verPos = segOut.position();
+            segOut.writeUnencryptedByte(BAD_VERSION);
+            try {
+              currTable.acquireStableReadLock();
+              writeTableRecords(segOut, currTable);
+              newModCounts.put(currTable.tableCode, currTable.getModCount());
+            } finally {
+              currTable.releaseStableReadLock();
+            }
+            segOut.sync();
+            segOut.seek(verPos);
+            segOut.writeUnencryptedByte(VERSION);
+            segOut.sync();
+          }
+          finally
+          {
+            segOut.close();
+          }
+          manifest.setSegment(currTable.tableCode, segFile);
+          numWritten++;
+        }
+        if (converting)
+          startCheckpointTail(manifest, newTail);
+        // Everything that was in the old tails is in the segments now
+        manifest.clearTails();
+        manifest.addTail(newTail);
+        manifest.save();
+        checkpointManifest = manifest;
+        checkpointModCounts.putAll(newModCounts);
+        manifest.deleteUnreferencedFiles();
+        if (converting && dbFile.isFile())
+        {
+          // Keep the old DB file around as the backup; but it can't be the DB file anymore
+          dbBackupFile.delete();
+          if (!dbFile.renameTo(dbBackupFile))
+            dbFile.delete();
         }
-        logCmdLength(dbout, fp);
-        numUncompXcts++;
       }
+      finally
+      {
+        if (converting)
+        {
+          synchronized (outLock)
+          {
+            writePendingXcts();
+          }
+        }
+      }
+      if (Sage.DBG) System.out.println("DB checkpoint saveTime=" + ((Sage.eventTime() - startSaveTime)/1000.0) +
+          " sec tablesWritten=" + numWritten);
     }
     Sage.gcPause();
   }
 
+  // Switches xct logging over to a new tail file; the manifest is saved with it before anything is logged to it
+  private void startCheckpointTail(DBManifest manifest, File newTail) throws IOException
+  {
+    synchronized (outLock)
+    {
+      SageDataFile newOut = createCheckpointFile(newTail, getLogFileMode());
+      try
+      {
+        newOut.writeUnencryptedByte(VERSION);
+        newOut.sync();
+        manifest.addTail(newTail);
+        manifest.save();
+      }
+      catch (IOException e)
+      {
+        newOut.close();
+        throw e;
+      }
+      if (dbout != null)
+        dbout.close();
+      dbout = newOut;
+      numUncompXcts = 0;
+    }
+  }
+
   /*
    * ADD/REMOVE Object Methods
    * UPDATE Object Methods. For these if logTX is true, then it logs an update on the arg
@@ -8030,6 +8050,11 @@ public class Wizard implements EPGDBPublic2
     if (disableDatabase) return;
     if (Sage.client) return;
     getTable(code).incModCount();
+    if ((code == AIRING_CODE || code == AGENT_CODE || code == CHANNEL_CODE) && god != null)
+      god.notifyProfileChange(updateMe);
+    GroupCommitWriter queueWriter = logWriter;
+    if (queueWriter != null)
+      queueWriter.waitForRoom();
     synchronized (pendingWriteXcts)
     {
       if (suspendWrite)
@@ -8039,6 +8064,12 @@ public class Wizard implements EPGDBPublic2
         return;
       }
       numUncompXcts++;
+      GroupCommitWriter currWriter = logWriter;
+      if (currWriter != null)
+      {
+        queueLogXct(currWriter, UPDATE, code, updateMe);
+        return;
+      }
       synchronized (outLock)
       {
         SageDataFile frf = dbout;
@@ -8046,7 +8077,7 @@ public class Wizard implements EPGDBPublic2
         long fp = frf.position();
         try
         {
-          if (listeners.isEmpty())
+          if (!needsXctData())
           {
             frf.writeInt(Integer.MAX_VALUE);
             frf.writeByte(UPDATE);
@@ -8088,22 +8119,13 @@ public class Wizard implements EPGDBPublic2
   private byte[] distributeOp(byte opCode, byte tableCode, DBObject updateMe)
   {
     if (disableDatabase) return null;
-    if (Sage.client || !hasListeners()) return null;
+    if (Sage.client || !needsXctData()) return null;
     synchronized (pendingWriteXcts)
     {
-      if (cachedDOS == null || cachedBAOS == null)
-      {
-        cachedBAOS = new ByteArrayOutputStream(512);
-        cachedDOS = new SageTVConnection.MyDataOutput(cachedBAOS);
-      }
-      else
-        cachedBAOS.reset();
       try
       {
-        cachedDOS.writeByte(opCode);
-        cachedDOS.writeByte(tableCode);
-        updateMe.write(cachedDOS, 0);
-        byte[] xctData = cachedBAOS.toByteArray();
+        byte[] xctData = serializeXct(opCode, tableCode, updateMe);
+        recordXctHistory(xctData);
         distributeXct(xctData);
         return xctData;
       }
@@ -8115,11 +8137,56 @@ public class Wizard implements EPGDBPublic2
     }
   }
 
+  // Serializes an xct the way it's logged and sent to clients, without the length. This must be called with the
+  // pendingWriteXcts lock held since the buffer is shared.
+  private byte[] serializeXct(byte opCode, byte tableCode, DBObject obj) throws IOException
+  {
+    if (cachedDOS == null || cachedBAOS == null)
+    {
+      cachedBAOS = new ByteArrayOutputStream(512);
+      cachedDOS = new SageTVConnection.MyDataOutput(cachedBAOS);
+    }
+    else
+      cachedBAOS.reset();
+    cachedDOS.writeByte(opCode);
+    cachedDOS.writeByte(tableCode);
+    obj.write(cachedDOS, 0);
+    return cachedBAOS.toByteArray();
+  }
+
+  // The xct is serialized here, while the object is still in the state being logged, since the writer thread may
+  // not get to it until after the object has changed again. This must be called with the pendingWriteXcts lock held.
+  private void queueLogXct(GroupCommitWriter currWriter, byte opCode, byte tableCode, DBObject obj)
+  {
+    byte[] xctData;
+    if (needsXctData())
+      xctData = distributeOp(opCode, tableCode, obj);
+    else
+    {
+      try
+      {
+        xctData = serializeXct(opCode, tableCode, obj);
+      }
+      catch (IOException e)
+      {
+        if (Sage.DBG) System.out.println("Error updating DB file:" + e);
+        xctData = null;
+      }
+    }
+    if (xctData != null)
+      currWriter.queue(xctData);
+  }
+
   void logRemove(DBObject removeMe, byte code)
   {
     if (disableDatabase) return;
     if (Sage.client) return;
     getTable(code).incModCount();
+    if ((code == AIRING_CODE || code == AGENT_CODE || code == CHANNEL_CODE) && god != null)
+      god.notifyProfileChange(removeMe);
+    GroupCommitWriter queueWriter = logWriter;
+    if (queueWriter != null)
+      queueWriter.waitForRoom();
     synchronized (pendingWriteXcts)
     {
       if (suspendWrite)
@@ -8129,6 +8196,12 @@ public class Wizard implements EPGDBPublic2
         return;
       }
       numUncompXcts++;
+      GroupCommitWriter currWriter = logWriter;
+      if (currWriter != null)
+      {
+        queueLogXct(currWriter, REMOVE, code, removeMe);
+        return;
+      }
       synchronized (outLock)
       {
         SageDataFile frf = dbout;
@@ -8136,7 +8209,7 @@ public class Wizard implements EPGDBPublic2
         long fp = frf.position();
         try
         {
-          if (listeners.isEmpty())
+          if (!needsXctData())
           {
             frf.writeInt(Integer.MAX_VALUE);
             frf.writeByte(REMOVE);
@@ -8175,6 +8248,11 @@ public class Wizard implements EPGDBPublic2
     if (disableDatabase) return;
     if (Sage.client) return;
     getTable(code).incModCount();
+    if ((code == AIRING_CODE || code == AGENT_CODE || code == CHANNEL_CODE) && god != null)
+      god.notifyProfileChange(addMe);
+    GroupCommitWriter queueWriter = logWriter;
+    if (queueWriter != null)
+      queueWriter.waitForRoom();
     synchronized (pendingWriteXcts)
     {
       if (suspendWrite)
@@ -8184,6 +8262,12 @@ public class Wizard implements EPGDBPublic2
         return;
       }
       numUncompXcts++;
+      GroupCommitWriter currWriter = logWriter;
+      if (currWriter != null)
+      {
+        queueLogXct(currWriter, ADD, code, addMe);
+        return;
+      }
       synchronized (outLock)
       {
         SageDataFile frf = dbout;
@@ -8191,7 +8275,7 @@ public class Wizard implements EPGDBPublic2
         long fp = frf.position();
         try
         {
-          if (listeners.isEmpty())
+          if (!needsXctData())
           {
             frf.writeInt(Integer.MAX_VALUE);
             frf.writeByte(ADD);
@@ -8243,19 +8327,29 @@ public class Wizard implements EPGDBPublic2
     if ((name == null) || (name.length() == 0)) return null;
     Table t = getTable(code);
     Stringer rv;
-    try {
-      t.acquireReadLock();
-      rv = getLinearStringerForNameWhileLocked(t, name);
+    if (useNameIntern(t))
+    {
+      // No lock is needed for this; and if it's not in there then it's not in the table either
+      rv = t.getNameIntern().get(name);
       if (rv != null && rv.hasMediaMask(createMediaMask))
         return rv;
-    } finally {
-      t.releaseReadLock();
+    }
+    else
+    {
+      try {
+        t.acquireReadLock();
+        rv = getLinearStringerForNameWhileLocked(t, name);
+        if (rv != null && rv.hasMediaMask(createMediaMask))
+          return rv;
+      } finally {
+        t.releaseReadLock();
+      }
     }
     // We must re-acquire the lock so that we can do the add; we cannot acquire
     // the write lock while we hold the read lock.
     try {
       t.acquireWriteLock();
-      rv = getLinearStringerForNameWhileLocked(t, name);
+      rv = useNameIntern(t) ? getInternedStringerWhileLocked(t, name) : getLinearStringerForNameWhileLocked(t, name);
       if (rv != null && rv.hasMediaMask(createMediaMask))
         return rv;
       if ( rv == null ) {
@@ -8276,10 +8370,10 @@ public class Wizard implements EPGDBPublic2
 
   private Stringer getLinearStringerForNameWhileLocked(Table t, String name)
   {
-    for (int i = 0; (i < t.num) && (t.primary.data[i] != null); i++)
+    for (int i = 0; (i < t.size()) && (t.primary.get(i) != null); i++)
     {
-      if (((Stringer) t.primary.data[i]).name.equals(name))
-        return (Stringer) t.primary.data[i];
+      if (((Stringer) t.primary.get(i)).name.equals(name))
+        return (Stringer) t.primary.get(i);
     }
     return null;
   }
@@ -8376,19 +8470,29 @@ public class Wizard implements EPGDBPublic2
   {
     if ((name == null) || (name.length() == 0)) return null;
     Stringer rv;
-    try {
-      t.acquireReadLock();
-      rv = getStringerForNameWhileLocked(t, indy, name);
+    if (useNameIntern(t))
+    {
+      // No lock is needed for this; and if it's not in there then it's not in the table either
+      rv = t.getNameIntern().get(name);
       if (rv != null)
         return rv;
-    } finally {
-      t.releaseReadLock();
+    }
+    else
+    {
+      try {
+        t.acquireReadLock();
+        rv = getStringerForNameWhileLocked(t, indy, name);
+        if (rv != null)
+          return rv;
+      } finally {
+        t.releaseReadLock();
+      }
     }
     // We must re-acquire the lock so that we can do the add; we cannot acquire
     // the write lock while we hold the read lock.
     try {
       t.acquireWriteLock();
-      rv = getStringerForNameWhileLocked(t, indy, name);
+      rv = useNameIntern(t) ? getInternedStringerWhileLocked(t, name) : getStringerForNameWhileLocked(t, indy, name);
       if (rv != null)
         return rv;
       rv = new Stringer(getNextWizID());
@@ -8402,15 +8506,30 @@ public class Wizard implements EPGDBPublic2
     }
   }
 
+  // The name intern isn't kept up to date while the DB is loading since the objects go directly into the indices
+  private boolean useNameIntern(Table t)
+  {
+    return t.getNameIntern() != null && !loading;
+  }
+
+  private Stringer getInternedStringerWhileLocked(Table t, String name)
+  {
+    StringerIntern names = t.getNameIntern();
+    // If a Stringer with a duplicate name was removed then the other one isn't in there, so this will pick it up
+    if (!names.isComplete())
+      t.rebuildNameIntern();
+    return names.get(name);
+  }
+
   private Stringer getStringerForNameWhileLocked(Table t, Index indy, String name)
   {
     int low = 0;
-    int high = t.num - 1;
+    int high = t.size() - 1;
 
     while (low <= high)
     {
       int mid = (low + high) >> 1;
-      Stringer midVal = (Stringer) indy.data[mid];
+      Stringer midVal = (Stringer) indy.get(mid);
       int cmp = midVal.name.compareTo(name);
 
       if (cmp < 0)
@@ -8448,9 +8567,10 @@ public class Wizard implements EPGDBPublic2
     Index idx = getIndex(CHANNEL_CODE);
     try {
       idx.table.acquireReadLock();
-      for (int i = 0; i < idx.table.num; i++)
-        if (idx.data[i].id == channelID)
-          return (Channel) idx.data[i];
+      DBObject[] idxData = idx.getData();
+      for (int i = 0; i < idx.table.size() && i < idxData.length; i++)
+        if (idxData[i].id == channelID)
+          return (Channel) idxData[i];
     } finally {
       idx.table.releaseReadLock();
     }
@@ -8500,7 +8620,7 @@ public class Wizard implements EPGDBPublic2
   {
     if (id == 0) return null;
     if (id < 0)
-      return (Stringer) getIndex(CATEGORY_CODE).data[(-id) - 1];
+      return (Stringer) getIndex(CATEGORY_CODE).get((-id) - 1);
     Stringer rv = (Stringer) getIndex(CATEGORY_CODE).getSingle(id);
     if (rv == null && allowSubCat)
     {
@@ -8518,7 +8638,7 @@ public class Wizard implements EPGDBPublic2
   {
     if (id == 0) return null;
     if (id < 0)
-      return (Stringer) getIndex(SUBCATEGORY_CODE).data[(-id) - 1];
+      return (Stringer) getIndex(SUBCATEGORY_CODE).get((-id) - 1);
     Stringer rv = (Stringer) getIndex(SUBCATEGORY_CODE).getSingle(id);
     return rv;
   }
@@ -8527,7 +8647,7 @@ public class Wizard implements EPGDBPublic2
   {
     if (id == 0) return null;
     if (id < 0)
-      return (Stringer) getIndex(TITLE_CODE).data[(-id) - 1];
+      return (Stringer) getIndex(TITLE_CODE).get((-id) - 1);
     return (Stringer) getIndex(TITLE_CODE).getSingle(id);
   }
 
@@ -8551,7 +8671,7 @@ public class Wizard implements EPGDBPublic2
   {
     if (id == 0) return null;
     if (id < 0)
-      return (Stringer) getIndex(NETWORK_CODE).data[(-id) - 1];
+      return (Stringer) getIndex(NETWORK_CODE).get((-id) - 1);
     return (Stringer) getIndex(NETWORK_CODE).getSingle(id);
   }
 
@@ -8559,7 +8679,7 @@ public class Wizard implements EPGDBPublic2
   {
     if (id == 0) return null;
     if (id < 0)
-      return (Stringer) getIndex(RATED_CODE).data[(-id) - 1];
+      return (Stringer) getIndex(RATED_CODE).get((-id) - 1);
     return (Stringer) getIndex(RATED_CODE).getSingle(id);
   }
 
@@ -8567,7 +8687,7 @@ public class Wizard implements EPGDBPublic2
   {
     if (id == 0) return null;
     if (id < 0)
-      return (Stringer) getIndex(PR_CODE).data[(-id) - 1];
+      return (Stringer) getIndex(PR_CODE).get((-id) - 1);
     return (Stringer) getIndex(PR_CODE).getSingle(id);
   }
 
@@ -8575,7 +8695,7 @@ public class Wizard implements EPGDBPublic2
   {
     if (id == 0) return null;
     if (id < 0)
-      return (Stringer) getIndex(ER_CODE).data[(-id) - 1];
+      return (Stringer) getIndex(ER_CODE).get((-id) - 1);
     return (Stringer) getIndex(ER_CODE).getSingle(id);
   }
 
@@ -8583,7 +8703,7 @@ public class Wizard implements EPGDBPublic2
   {
     if (id == 0) return null;
     if (id < 0)
-      return (Stringer) getIndex(YEAR_CODE).data[(-id) - 1];
+      return (Stringer) getIndex(YEAR_CODE).get((-id) - 1);
     return (Stringer) getIndex(YEAR_CODE).getSingle(id);
   }
 
@@ -8591,7 +8711,7 @@ public class Wizard implements EPGDBPublic2
   {
     if (id == 0) return null;
     if (id < 0)
-      return (Stringer) getIndex(BONUS_CODE).data[(-id) - 1];
+      return (Stringer) getIndex(BONUS_CODE).get((-id) - 1);
     return (Stringer) getIndex(BONUS_CODE).getSingle(id);
   }
 
@@ -8632,43 +8752,109 @@ public class Wizard implements EPGDBPublic2
 
   boolean hasListeners() { return !listeners.isEmpty(); }
 
+  // Logged xcts need to be serialized if there's clients to send them to or we're keeping a history of them
+  private boolean needsXctData() { return !listeners.isEmpty() || xctHistory != null; }
+
+  // Must be called with the pendingWriteXcts lock held and in the same order the xcts are sent to the clients
+  private void recordXctHistory(byte[] xctData)
+  {
+    if (xctHistory != null)
+      xctHistory.add(xctData);
+  }
+
+  /**
+   * Returns the ID of the xct history for this run of the server, or 0 if it's not keeping one. Clients use this
+   * along with the sequence # of the last xct they got to resume syncing when they reconnect.
+   */
+  long getXctHistoryEpoch()
+  {
+    XctHistory history = xctHistory;
+    return (history != null) ? history.getEpoch() : 0;
+  }
+
+  // Must be called with the pendingWriteXcts lock held
+  private long getXctSeq()
+  {
+    return (xctHistory != null) ? xctHistory.getSeq() : 0;
+  }
+
+  long getClientSyncEpoch()
+  {
+    return clientSyncEpoch;
+  }
+
+  long getClientSyncSeq()
+  {
+    return clientSyncSeq;
+  }
+
+  // Called on the client after it's synced with the server; an epoch of 0 means it doesn't know what xct it's synced to
+  void setClientSyncState(long epoch, long seq)
+  {
+    clientSyncEpoch = epoch;
+    clientSyncSeq = seq;
+  }
+
+  // Called on the client for each xct the server sends it after the initial sync; it can stand for more than one
+  // if the server coalesced them
+  void clientXctApplied(int numXcts)
+  {
+    if (Sage.client && clientSyncEpoch != 0)
+      clientSyncSeq += numXcts;
+  }
+
   public int getMaxPendingClientXcts()
   {
     int max = 0;
-    synchronized (listeners)
+    XctSyncClient[] listData = listeners.toArray(new XctSyncClient[0]);
+    for (int i = 0; i < listData.length; i++)
     {
-      for (int i = 0; i < listeners.size(); i++)
-      {
-        max = Math.max(0, listeners.get(i).getPendingXctCount());
-      }
+      max = Math.max(max, listData[i].getPendingXctCount());
+    }
+    return max;
+  }
+
+  // Returns the age in msec of the oldest xct that's still waiting to be sent to a client
+  public long getMaxClientXctLag()
+  {
+    long max = 0;
+    XctSyncClient[] listData = listeners.toArray(new XctSyncClient[0]);
+    for (int i = 0; i < listData.length; i++)
+    {
+      max = Math.max(max, listData[i].getXctLag());
     }
     return max;
   }
 
+  int getClientXctQueueSize()
+  {
+    return Math.max(1, Sage.getInt(prefsRoot + CLIENT_XCT_QUEUE_SIZE, 100000));
+  }
+
+  // This is called with the pendingWriteXcts lock held so the xcts go to each client in order. The clients queue
+  // them up to be sent on their own threads, so we don't hold the listeners lock while we do this.
   private void distributeXct(byte[] xctData)
   {
-    synchronized (listeners)
+    // In case listeners get removed along the way
+    XctSyncClient[] listData = listeners.toArray(new XctSyncClient[0]);
+    if (listData.length == 0) return;
+    SageTV.incrementQuanta();
+    for (int i = 0; i < listData.length; i++)
     {
-      if (listeners.isEmpty()) return;
-      // In case listeners get removed along the way
-      XctSyncClient[] listData = listeners.toArray(new XctSyncClient[0]);
-      SageTV.incrementQuanta();
-      for (int i = 0; i < listData.length; i++)
+      try
       {
-        try
-        {
-          listData[i].xctOut(xctData);
-        }
-        catch (Exception e)
-        {
-          System.out.println("Error communicating with client-2:" + e);
-          e.printStackTrace();
-        }
+        listData[i].xctOut(xctData);
+      }
+      catch (Exception e)
+      {
+        System.out.println("Error communicating with client-2:" + e);
+        e.printStackTrace();
       }
     }
   }
 
-  void xctIn(DataInput in, byte ver, Map<Integer, Integer> idMap)
+  // Returns false if there was an error reading the xcts
+  boolean xctIn(DataInput in, byte ver, Map<Integer, Integer> idMap)
   {
     try
     {
@@ -8677,6 +8863,7 @@ public class Wizard implements EPGDBPublic2
       {
         lastOpcode = processXctFromStream(in, ver, -1, idMap, 0);
       } while (lastOpcode != XCTS_DONE);
+      return true;
     }
     catch (IOException e)
     {
@@ -8685,11 +8872,70 @@ public class Wizard implements EPGDBPublic2
         System.out.println("WIZARD TRANSACTION ERROR:" + e);
         e.printStackTrace(System.out);
       }
+      return false;
+    }
+  }
+
+  /**
+   * Sends a reconnecting client just the xcts it missed since the last one it got, and then adds it as a xct
+   * listener. This is done instead of sending the whole DB if we still have all of those xcts in the history.
+   * Returns the sequence # of the last xct that was sent; or -1 if the client has to get the whole DB instead,
+   * in which case nothing was sent.
+   */
+  long sendXctHistoryThroughStream(Socket sake, OutputStream outStream, SageTVConnection addMe, long epoch, long lastSeq) throws IOException
+  {
+    List<byte[]> missedXcts;
+    long syncSeq;
+    synchronized (pendingWriteXcts)
+    {
+      missedXcts = (xctHistory != null) ? xctHistory.getSince(epoch, lastSeq) : null;
+      if (missedXcts == null)
+        return -1;
+      // Everything after this goes on their listener queue which doesn't get sent until the sync is done
+      addMe.constructListenerQueue();
+      addXctListener(addMe);
+      syncSeq = xctHistory.getSeq();
+    }
+    if (Sage.DBG) System.out.println("Sending " + missedXcts.size() + " missed DB xcts to the reconnecting client instead of the whole DB");
+    for (int i = 0; i < missedXcts.size(); i++)
+    {
+      byte[] xctData = missedXcts.get(i);
+      int len = xctData.length + 4;
+      TimeoutHandler.registerTimeout(60000, sake);
+      outStream.write((byte)((len >>> 24) & 0xFF));
+      outStream.write((byte)((len >>> 16) & 0xFF));
+      outStream.write((byte)((len >>> 8) & 0xFF));
+      outStream.write((byte)(len & 0xFF));
+      outStream.write(xctData);
+      TimeoutHandler.clearTimeout(sake);
+    }
+    TimeoutHandler.registerTimeout(60000, sake);
+    outStream.write(0); // 32-bit int for 5
+    outStream.write(0);
+    outStream.write(0);
+    outStream.write(5);
+    outStream.write(XCTS_DONE);
+    outStream.flush();
+    TimeoutHandler.clearTimeout(sake);
+    return syncSeq;
+  }
+
+  /**
+   * Sends the whole DB to the client and then adds it as a xct listener. Returns the sequence # of the last xct
+   * in the history that's included in what was sent; or -1 if that's not known.
+   */
+  long sendDBThroughStream(Socket sake, OutputStream outStream, SageTVConnection addMe) throws IOException
+  {
+    // Checkpoints replace the files we send from, so they can't happen while a client is getting them
+    synchronized (checkpointLock)
+    {
+      return sendDBFilesThroughStream(sake, outStream, addMe);
     }
   }
 
-  void sendDBThroughStream(Socket sake, OutputStream outStream, SageTVConnection addMe) throws IOException
+  private long sendDBFilesThroughStream(Socket sake, OutputStream outStream, SageTVConnection addMe) throws IOException
   {
+    long syncSeq = -1;
     // Suspend database writing while we send our current DB to clients so we don't block server operations
     // during this time period.
     clientIsSyncing = true;
@@ -8703,6 +8949,8 @@ public class Wizard implements EPGDBPublic2
         didSuspend = true;
       }
     }
+    // The client is going to get a copy of the DB file, so it needs to have all the xcts logged up to this point in it
+    flushLogWriter();
     synchronized (outLock)
     {
       try
@@ -8717,14 +8965,18 @@ public class Wizard implements EPGDBPublic2
           outStream.write(XCTS_DONE);
           outStream.flush();
           TimeoutHandler.clearTimeout(sake);
+          addMe.constructListenerQueue();
           addXctListener(addMe);
-          return;
+          return -1;
         }
         long startFP = dbout.position();
         try
         {
-          dbout.seek(4); // skip version # & WIZ.
           byte[] netBuf = new byte[65536];
+          // With a checkpoint dbout is only the current tail, everything else comes before it
+          if (checkpointManifest != null)
+            sendCheckpointFiles(sake, outStream, netBuf);
+          dbout.seek(4); // skip version # & WIZ.
           long dbLeft = dbout.length() - 4;
           if (Sage.DBG) System.out.println("Sending DB to client of size:" + dbLeft);
           // Since we are just transferring the whole file like this it is faster to have this optimization on
@@ -8768,23 +9020,33 @@ public class Wizard implements EPGDBPublic2
             {
               suspendWrite = false;
               pendingWriteXcts.notifyAll();
+              // Add them as a listener before any more xcts get logged so they can't miss any; their listener
+              // queue doesn't get sent until the sync is done.
+              addMe.constructListenerQueue();
+              addXctListener(addMe);
+              syncSeq = getXctSeq();
               break;
             }
             nextXct = pendingWriteXcts.remove(0);
           }
           if (Sage.DBG && didSuspend && ((q++ % 100) == 0)) System.out.println("Logging " + pendingWriteXcts.size() + " DB xcts to file and sending them to the new client...");
 
-          xctBuffer.reset();
-          doBuffer.writeByte(nextXct.xctType);
-          doBuffer.writeByte(nextXct.objectType);
-          try {
-            acquireReadLock(nextXct.objectType);
-            nextXct.obj.write(doBuffer, 0);
-          } finally {
-            releaseReadLock(nextXct.objectType);
+          byte[] xctData = nextXct.xctData;
+          if (xctData == null)
+          {
+            xctBuffer.reset();
+            doBuffer.writeByte(nextXct.xctType);
+            doBuffer.writeByte(nextXct.objectType);
+            Table xctTable = getTable(nextXct.objectType);
+            try {
+              xctTable.acquireStableReadLock();
+              nextXct.obj.write(doBuffer, 0);
+            } finally {
+              xctTable.releaseStableReadLock();
+            }
+            xctData = xctBuffer.toByteArray();
           }
-          dbout.writeInt(xctBuffer.size() + 4);
-          byte[] xctData = xctBuffer.toByteArray();
+          dbout.writeInt(xctData.length + 4);
           dbout.write(xctData);
           if (!clientFailed)
           {
@@ -8828,10 +9090,412 @@ public class Wizard implements EPGDBPublic2
       // or otherwise socket delays on that connection can hang up the entire server
       // system until the replies come back from that client since we would then
       // try to serially send transactions to it.
-      addMe.constructListenerQueue();
-      addXctListener(addMe);
+      if (!didSuspend)
+      {
+        addMe.constructListenerQueue();
+        addXctListener(addMe);
+      }
       if (Sage.DBG) System.out.println("DONE sending DB to the client and client is now added as a DB sync listener");
     }
+    return syncSeq;
+  }
+
+  // The mapped text store alternates between these two files when it's compacted
+  private File getShowTextFile(boolean alternate)
+  {
+    return new File(dbFile.getAbsolutePath() + (alternate ? ".text2" : ".text"));
+  }
+
+  /**
+   * Moves the descriptions of Shows which have no upcoming airings or media files into the mapped text store.
+   * Those are rarely looked at; so there's no reason for them to be using heap memory.
+   */
+  private void storeColdShowText()
+  {
+    if (showTextStore == null) return;
+    long startTime = Sage.eventTime();
+    long now = Sage.time();
+    Set<Integer> hotShows = new HashSet<Integer>();
+    Index airIndex = getIndex(AIRING_CODE);
+    try {
+      airIndex.table.acquireReadLock();
+      DBObject[] airIndexData = airIndex.getData();
+      for (int i = 0; i < airIndex.table.size() && i < airIndexData.length; i++)
+      {
+        Airing a = (Airing) airIndexData[i];
+        if (a != null && a.getEndTime() > now)
+          hotShows.add(a.showID);
+      }
+    } finally {
+      airIndex.table.releaseReadLock();
+    }
+    Index mfIndex = getIndex(MEDIAFILE_CODE);
+    try {
+      mfIndex.table.acquireReadLock();
+      DBObject[] mfIndexData = mfIndex.getData();
+      for (int i = 0; i < mfIndex.table.size() && i < mfIndexData.length; i++)
+      {
+        MediaFile mf = (MediaFile) mfIndexData[i];
+        Show s = (mf == null) ? null : mf.getShow();
+        if (s != null)
+          hotShows.add(s.id);
+      }
+    } finally {
+      mfIndex.table.releaseReadLock();
+    }
+    int numStored = 0;
+    Index showIndex = getIndex(SHOW_CODE);
+    DBObject[] showIndexData;
+    int numShows;
+    try {
+      showIndex.table.acquireReadLock();
+      showIndexData = showIndex.getData();
+      numShows = Math.min(showIndex.table.size(), showIndexData.length);
+    } finally {
+      showIndex.table.releaseReadLock();
+    }
+    MappedTextStore currStore = showTextStore;
+    // This changes the Shows in place so it needs the write lock; it's taken for a batch at a time so nothing else
+    // that uses the Show table has to wait on all of it
+    try {
+      for (int i = 0; i < numShows; i += SHOW_TEXT_BATCH_SIZE)
+      {
+        try {
+          showIndex.table.acquireWriteLock();
+          for (int j = i; j < numShows && j < i + SHOW_TEXT_BATCH_SIZE; j++)
+          {
+            Show s = (Show) showIndexData[j];
+            if (s != null && s.descRef == null && !hotShows.contains(s.id))
+            {
+              s.storeDesc(currStore);
+              numStored++;
+            }
+          }
+        } finally {
+          showIndex.table.releaseWriteLock();
+        }
+      }
+    } catch (IOException e) {
+      System.out.println("ERROR storing Show text in mapped file:" + e);
+    }
+    if (Sage.DBG) System.out.println("Wizard moved " + numStored + " Show descriptions to " + currStore.getFile() +
+        " size=" + currStore.getTotalBytes() + " time=" + (Sage.eventTime() - startTime) + " msec");
+
+    // Descriptions of Shows that were removed or changed are still in the store; once they're more than half of it
+    // the ones that are still used are copied to a new one
+    long liveBytes = 0;
+    for (int i = 0; i < numShows; i++)
+    {
+      Show s = (Show) showIndexData[i];
+      MappedTextStore.Ref ref = (s == null) ? null : s.descRef;
+      if (ref != null && ref.store == currStore)
+        liveBytes += ref.length;
+    }
+    long totalBytes = currStore.getTotalBytes();
+    if (totalBytes > SHOW_TEXT_COMPACT_MIN_BYTES && liveBytes < totalBytes / 2)
+      compactShowText(showIndexData, numShows);
+  }
+
+  // Copies the descriptions that are still used from the mapped text store into a new one and drops the old one
+  private void compactShowText(DBObject[] showIndexData, int numShows)
+  {
+    long startTime = Sage.eventTime();
+    MappedTextStore oldStore = showTextStore;
+    File newFile = getShowTextFile(oldStore.getFile().equals(getShowTextFile(false)));
+    MappedTextStore newStore;
+    try
+    {
+      newStore = new MappedTextStore(newFile, Sage.getInt(prefsRoot + MAPPED_SHOW_TEXT_CACHE_SIZE, 2000));
+    }
+    catch (IOException e)
+    {
+      System.out.println("ERROR creating mapped text store for compaction:" + e);
+      return;
+    }
+    Index showIndex = getIndex(SHOW_CODE);
+    try {
+      for (int i = 0; i < numShows; i += SHOW_TEXT_BATCH_SIZE)
+      {
+        try {
+          showIndex.table.acquireWriteLock();
+          for (int j = i; j < numShows && j < i + SHOW_TEXT_BATCH_SIZE; j++)
+          {
+            Show s = (Show) showIndexData[j];
+            MappedTextStore.Ref ref = (s == null) ? null : s.descRef;
+            if (ref != null && ref.store == oldStore)
+              s.storeDesc(newStore);
+          }
+        } finally {
+          showIndex.table.releaseWriteLock();
+        }
+      }
+    } catch (IOException e) {
+      // Whatever was already moved can still be read from the new store, and the next compaction moves it back
+      System.out.println("ERROR compacting mapped text store:" + e);
+      newStore.close();
+      if (!newFile.delete())
+        newFile.deleteOnExit();
+      return;
+    }
+    showTextStore = newStore;
+    // Anything still reading from the old store can keep doing that; closing it doesn't unmap it
+    oldStore.close();
+    if (!oldStore.getFile().delete())
+      oldStore.getFile().deleteOnExit();
+    if (Sage.DBG) System.out.println("Wizard compacted Show descriptions from " + oldStore.getTotalBytes() + " to " +
+        newStore.getTotalBytes() + " bytes in " + newFile + " time=" + (Sage.eventTime() - startTime) + " msec");
+  }
+
+  // Objects refer to Stringers and People when they're loaded, so those tables have to be loaded before the others
+  private static int getLoadWave(byte code)
+  {
+    switch (code)
+    {
+      case CHANNEL_CODE:
+      case SHOW_CODE:
+      case AIRING_CODE:
+      case WATCH_CODE:
+      case AGENT_CODE:
+      case MEDIAFILE_CODE:
+      case MANUAL_CODE:
+      case WASTED_CODE:
+      case WIDGET_CODE:
+      case PLAYLIST_CODE:
+      case TVEDITORIAL_CODE:
+      case SERIESINFO_CODE:
+      case USERRECORD_CODE:
+        return 2;
+      case PEOPLE_CODE:
+        return 1;
+      default:
+        return 0;
+    }
+  }
+
+  // The location of the records in a DB file that hold all the data for a table
+  private static class TableLoadRange
+  {
+    TableLoadRange(File file, byte tableCode, long start)
+    {
+      this.file = file;
+      this.tableCode = tableCode;
+      this.start = start;
+    }
+    final File file;
+    final byte tableCode;
+    final long start;
+    long end;
+  }
+
+  /**
+   * Loads the tables from the DB files in parallel. The record lengths let us find where the records for each
+   * table are without reading them, so each table is read by its own task and then the alternate indices of
+   * the table are sorted in parallel. Stringers and People are loaded before the other tables since those
+   * objects refer to them while they're being loaded.
+   * <p>
+   * Returns the position each file should be read from for the rest of the load (or -1 if there's nothing
+   * left in it). If the files can't be loaded this way then this returns null and the tables are left empty.
+   */
+  private long[] loadTablesInParallel(List<File> loadFiles)
+  {
+    long startTime = Sage.eventTime();
+    long[] rv = new long[loadFiles.size()];
+    List<List<TableLoadRange>> waves = new ArrayList<List<TableLoadRange>>();
+    for (int i = 0; i < 3; i++)
+      waves.add(new ArrayList<TableLoadRange>());
+    for (int i = 0; i < loadFiles.size(); i++)
+    {
+      File loadFile = loadFiles.get(i);
+      SageDataFile in = null;
+      try
+      {
+        in = new SageDataFile(new BufferedSageFile(new LocalSageFile(loadFile, true),
+            BufferedSageFile.READ_BUFFER_SIZE), Sage.I18N_CHARSET);
+        if (in.readUnencryptedByte() != 'W' || in.readUnencryptedByte() != 'I' || in.readUnencryptedByte() != 'Z' ||
+            in.readUnencryptedByte() != VERSION)
+        {
+          // Older DB files are loaded the normal way so they get converted as needed
+          if (Sage.DBG) System.out.println("Wizard can't load " + loadFile + " in parallel, it's not at the current version");
+          return null;
+        }
+        long fileLength = loadFile.length();
+        long fp = in.position();
+        TableLoadRange currRange = null;
+        while (fp < fileLength)
+        {
+          in.seek(fp);
+          int cmdLength = in.readInt();
+          byte opcode = in.readByte();
+          if (opcode == SIZE)
+          {
+            if (currRange != null)
+              currRange.end = fp;
+            byte tableCode = in.readByte();
+            currRange = (getTable(tableCode) == null) ? null : new TableLoadRange(loadFile, tableCode, fp);
+            if (currRange != null)
+              waves.get(getLoadWave(tableCode)).add(currRange);
+          }
+          else if (opcode != FULL_DATA && opcode != INDEX_DATA)
+            break;
+          if (cmdLength < 4 || fp + cmdLength > fileLength)
+          {
+            if (Sage.DBG) System.out.println("Wizard can't load " + loadFile + " in parallel, it has an invalid record length at " + fp);
+            return null;
+          }
+          fp += cmdLength;
+        }
+        if (currRange != null)
+          currRange.end = fp;
+        // Everything after the table data is xcts which need to be processed in order
+        rv[i] = (fp < fileLength) ? fp : -1;
+      }
+      catch (IOException e)
+      {
+        if (Sage.DBG) System.out.println("Wizard can't load " + loadFile + " in parallel due to error:" + e);
+        return null;
+      }
+      finally
+      {
+        if (in != null)
+        {
+          try { in.close(); } catch (IOException e) {}
+        }
+      }
+    }
+
+    int numThreads = Math.max(1, Sage.getInt(prefsRoot + PARALLEL_LOAD_THREADS, Runtime.getRuntime().availableProcessors()));
+    if (Sage.DBG) System.out.println("Wizard loading tables in parallel with " + numThreads + " threads");
+    ForkJoinPool pool = new ForkJoinPool(numThreads);
+    parallelLoading = true;
+    try
+    {
+      for (int i = 0; i < waves.size(); i++)
+      {
+        List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+        for (TableLoadRange range : waves.get(i))
+          tasks.add(pool.submit(new TableLoadTask(range)));
+        for (ForkJoinTask<?> task : tasks)
+          task.get();
+        Sage.setSplashText(Sage.rez("Module_Init_Progress", new Object[] { Sage.rez("Object_Database"), new Double(((double)(i + 1))/(waves.size() + 1)) }));
+      }
+    }
+    catch (Exception e)
+    {
+      System.out.println("ERROR loading DB tables in parallel, loading them sequentially instead. Error:" + e);
+      e.printStackTrace(System.out);
+      // Let any other tables that are loading finish before we clear them out
+      pool.shutdown();
+      try { pool.awaitTermination(Long.MAX_VALUE, java.util.concurrent.TimeUnit.MILLISECONDS); } catch (InterruptedException ie) {}
+      for (int i = 0; i < tables.length; i++)
+      {
+        if (tables[i] != null)
+          tables[i].clear();
+      }
+      return null;
+    }
+    finally
+    {
+      parallelLoading = false;
+      pool.shutdown();
+    }
+    version = VERSION;
+    if (Sage.DBG) System.out.println("Wizard parallel table load time " + (Sage.eventTime() - startTime) + " msec");
+    return rv;
+  }
+
+  private class TableLoadTask extends RecursiveAction
+  {
+    TableLoadTask(TableLoadRange range)
+    {
+      this.range = range;
+    }
+
+    protected void compute()
+    {
+      List<Index> altIndices = new ArrayList<Index>();
+      SageDataFile in = null;
+      deferredIndexChecks.set(altIndices);
+      try
+      {
+        in = new SageDataFile(new BufferedSageFile(new LocalSageFile(range.file, true),
+            BufferedSageFile.READ_BUFFER_SIZE), Sage.I18N_CHARSET);
+        long fp = range.start;
+        while (fp < range.end)
+        {
+          in.seek(fp);
+          int cmdLength = in.readInt();
+          processXctFromStream(in, VERSION, cmdLength, null, 0);
+          fp += cmdLength;
+        }
+      }
+      catch (IOException e)
+      {
+        throw new RuntimeException("Error loading table " + getNameForCode(range.tableCode) + " from " + range.file, e);
+      }
+      finally
+      {
+        deferredIndexChecks.remove();
+        loadingTable.remove();
+        if (in != null)
+        {
+          try { in.close(); } catch (IOException e) {}
+        }
+      }
+      long loadStart = Sage.eventTime();
+      List<RecursiveAction> checks = new ArrayList<RecursiveAction>();
+      for (final Index indy : altIndices)
+      {
+        checks.add(new RecursiveAction()
+        {
+          protected void compute()
+          {
+            indy.check();
+          }
+        });
+      }
+      invokeAll(checks);
+      if (Sage.DBG && !altIndices.isEmpty()) System.out.println("Alt. index check time for " + getNameForCode(range.tableCode) + " " +
+          (Sage.eventTime() - loadStart) + " msec");
+    }
+
+    private final TableLoadRange range;
+  }
+
+  // Sends the segments and any older tails from the checkpoint in the same format as the DB file
+  private void sendCheckpointFiles(Socket sake, OutputStream outStream, byte[] netBuf) throws IOException
+  {
+    List<File> sendFiles = new ArrayList<File>();
+    for (int i = 0; i < WRITE_ORDER.length; i++)
+    {
+      File segFile = checkpointManifest.getSegment(WRITE_ORDER[i]);
+      if (segFile != null)
+        sendFiles.add(segFile);
+    }
+    List<File> tails = checkpointManifest.getTails();
+    sendFiles.addAll(tails.subList(0, tails.size() - 1));
+    for (File sendFile : sendFiles)
+    {
+      DataInputStream fileIn = new DataInputStream(new FileInputStream(sendFile));
+      try
+      {
+        fileIn.readFully(netBuf, 0, 4); // skip version # & WIZ.
+        long fileLeft = sendFile.length() - 4;
+        if (Sage.DBG) System.out.println("Sending DB checkpoint file to client:" + sendFile + " size=" + fileLeft);
+        while (fileLeft > 0)
+        {
+          int currRead = Math.min(netBuf.length, (int)fileLeft);
+          fileIn.readFully(netBuf, 0, currRead);
+          TimeoutHandler.registerTimeout(60000, sake);
+          outStream.write(netBuf, 0, currRead);
+          TimeoutHandler.clearTimeout(sake);
+          fileLeft -= currRead;
+        }
+      }
+      finally
+      {
+        fileIn.close();
+      }
+    }
   }
 
   public void setLineup(long providerID, Map lineupMap)
@@ -8884,10 +9548,11 @@ public class Wizard implements EPGDBPublic2
       Table t = tables[i];
       if (t == null) continue;
       t.num = 0;
-      t.primary.data = new DBObject[0];
+      t.primary.setData(new DBObject[0]);
       for (int j = 0; j < t.others.length; j++)
-        t.others[j].data = new DBObject[0];
+        t.others[j].setData(new DBObject[0]);
     }
+    rebuildNameInterns();
     if (Sage.DBG) System.out.println("Done freeing the database!");
   }
 
@@ -8916,6 +9581,32 @@ public class Wizard implements EPGDBPublic2
 
   public void compressDBIfNeeded()
   {
+    // Only segmented checkpoints are cheap enough to write out whenever the xct log gets long
+    if (segmentedCheckpoints && checkpointManifest != null && numUncompXcts > NUM_TRANSACTIONS_TO_COMPRESS &&
+        checkpointQueued.compareAndSet(false, true))
+    {
+      Thread t = new Thread("DBCheckpoint")
+      {
+        public void run()
+        {
+          try
+          {
+            checkpointDB();
+          }
+          catch (Throwable e)
+          {
+            System.out.println("Error writing DB checkpoint:" + e);
+            e.printStackTrace(System.out);
+          }
+          finally
+          {
+            checkpointQueued.set(false);
+          }
+        }
+      };
+      t.setDaemon(true);
+      t.start();
+    }
   }
 
   public void waitUntilDBClientSyncsComplete()
@@ -8950,6 +9641,19 @@ public class Wizard implements EPGDBPublic2
   public void setDBLoadState(boolean x) {
     if (!Sage.client) throw new IllegalArgumentException("Cannot call setDBLoadState on the server!");
     loading = x;
+    if (!x)
+    {
+      publishTableVersions();
+      rebuildNameInterns();
+    }
+  }
+
+  // Readers using snapshot reads can't see changes made while loading until this is called
+  private void publishTableVersions() {
+    for (Table tab : tables) {
+      if (tab != null && tab.isSnapshotReads())
+        tab.publishVersion();
+    }
   }
 
   private byte version;
@@ -8996,6 +9700,29 @@ public class Wizard implements EPGDBPublic2
 
   private final Vector<XctObject> pendingWriteXcts;
   private boolean suspendWrite;
+  // Non-null when we're using group commit for writing xcts to the DB file
+  private volatile GroupCommitWriter logWriter;
+  // If we're using group commit; this is decided before the DB file is opened since it's opened differently for it
+  private boolean groupCommitLog;
+  private boolean segmentedCheckpoints;
+  private File checkpointDir;
+  // Non-null when the DB is stored in a segmented checkpoint rather than the DB file
+  private volatile DBManifest checkpointManifest;
+  // Held while writing a checkpoint or the DB file; and while sending them to a client
+  private final Object checkpointLock = new Object();
+  // The mod count of each table when its current checkpoint segment was written
+  private final Map<Byte, Long> checkpointModCounts = new ConcurrentHashMap<Byte, Long>();
+  // Tables which had xcts in the checkpoint tail when loading; they need new segments on the next checkpoint
+  private final Set<Byte> checkpointTailTables = new HashSet<Byte>();
+  private boolean replayingCheckpointTail;
+  private volatile boolean parallelLoading;
+  private volatile MappedTextStore showTextStore;
+  private final AtomicBoolean checkpointQueued = new AtomicBoolean();
+  // Recent xcts for resuming client syncs; this is guarded by the pendingWriteXcts lock
+  private volatile XctHistory xctHistory;
+  // Client side; the server epoch and xct sequence # our DB is synced to
+  private volatile long clientSyncEpoch;
+  private volatile long clientSyncSeq;
 
   private boolean clientIsSyncing;
   private final Object clientIsSyncingLock = new Object();
@@ -9006,19 +9733,56 @@ public class Wizard implements EPGDBPublic2
   {
     public void xctOut(byte[] xctData) throws IOException;
     public int getPendingXctCount();
+    public long getXctLag();
   }
 
   private static class XctObject
   {
     public XctObject(byte xctType, byte objectType, DBObject obj)
+    {
+      this(xctType, objectType, obj, null);
+    }
+    public XctObject(byte xctType, byte objectType, DBObject obj, byte[] xctData)
     {
       this.xctType = xctType;
       this.objectType = objectType;
       this.obj = obj;
+      this.xctData = xctData;
     }
     byte xctType;
     byte objectType;
     DBObject obj;
+    // The serialized xct (without the length); this is used instead of obj when it's set
+    byte[] xctData;
+  }
+
+  // Blocks until everything that's been queued to the group commit writer is in the DB file, or held by it
+  // because it couldn't be written
+  private void flushLogWriter()
+  {
+    GroupCommitWriter currWriter = logWriter;
+    if (currWriter != null)
+      currWriter.flush();
+  }
+
+  // When the DB file is being replaced, whatever the group commit writer couldn't write to the old one goes ahead
+  // of the other pending xcts. This must be called with the outLock held and writes suspended.
+  private void takeUnwrittenXcts()
+  {
+    GroupCommitWriter currWriter = logWriter;
+    if (currWriter == null)
+      return;
+    List<byte[]> unwritten = currWriter.takeUnwritten();
+    if (unwritten.isEmpty())
+      return;
+    if (Sage.DBG) System.out.println("Wizard adding " + unwritten.size() + " xcts that couldn't be logged to the pending xcts");
+    List<XctObject> unwrittenXcts = new ArrayList<XctObject>(unwritten.size());
+    for (byte[] xctData : unwritten)
+      unwrittenXcts.add(new XctObject(xctData[0], xctData[1], null, xctData));
+    synchronized (pendingWriteXcts)
+    {
+      pendingWriteXcts.addAll(0, unwrittenXcts);
+    }
   }
 
   public Vector<Airing> searchFieldsNTE(String nteString, boolean title, boolean episode,
@@ -9039,14 +9803,15 @@ public class Wizard implements EPGDBPublic2
     int MAX_SEARCH_RESULTS = Sage.getInt("wizard/max_search_results", 1000);
     try {
       idx.table.acquireReadLock();
-      for (int i = 0; i < idx.table.num; i++)
+      DBObject[] idxData = idx.getData();
+      for (int i = 0; i < idx.table.size() && i < idxData.length; i++)
       {
-        if ((idx.data[i].getMediaMask() & mediaMask) == 0)
+        if ((idxData[i].getMediaMask() & mediaMask) == 0)
           continue;
         if (StringMatchUtils.wordMatchesNte(
-            ((Stringer) idx.data[i]).name,nteString))
+            ((Stringer) idxData[i]).name,nteString))
         {
-          okTitles.add(((Stringer) idx.data[i]).name);
+          okTitles.add(((Stringer) idxData[i]).name);
           if (okTitles.size() >= MAX_SEARCH_RESULTS)
             break;
         }
@@ -9461,7 +10226,7 @@ public class Wizard implements EPGDBPublic2
           resetIndex();
           Table table = Wizard.getInstance().getTable(this.type);
           Index showIndex = table.getIndex((byte) 0);
-          for(Object o : showIndex.data) {
+          for(Object o : showIndex.getData()) {
             if(o != null) {
               work.add(o);
             }
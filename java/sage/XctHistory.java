@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 The SageTV Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The most recent xcts sent to clients, so a client that reconnects can be sent only the ones it missed instead
+ * of the whole DB. Each xct gets the next sequence # when it's added; the epoch identifies this run of the server
+ * since the sequence #s don't mean anything outside of it. This isn't thread safe, the Wizard guards it with the
+ * pendingWriteXcts lock.
+ */
+class XctHistory
+{
+  XctHistory(long epoch, int maxSize, long maxBytes)
+  {
+    this.epoch = epoch;
+    this.maxSize = Math.max(1, maxSize);
+    this.maxBytes = maxBytes;
+    xcts = new ArrayDeque<byte[]>();
+  }
+
+  long getEpoch()
+  {
+    return epoch;
+  }
+
+  // Returns the sequence # of the last xct that was added
+  long getSeq()
+  {
+    return seq;
+  }
+
+  // Must be called in the same order the xcts are sent to the clients
+  void add(byte[] xctData)
+  {
+    seq++;
+    xcts.addLast(xctData);
+    numBytes += xctData.length;
+    while (xcts.size() > maxSize || (numBytes > maxBytes && xcts.size() > 1))
+      numBytes -= xcts.removeFirst().length;
+  }
+
+  /**
+   * Returns the xcts that came after lastSeq in the order they occurred, or null if the client can't resume from
+   * there; because it's from a different run of the server or some of them aren't in the history anymore.
+   */
+  List<byte[]> getSince(long fromEpoch, long lastSeq)
+  {
+    if (fromEpoch != epoch || lastSeq > seq || lastSeq < seq - xcts.size())
+      return null;
+    List<byte[]> rv = new ArrayList<byte[]>((int) (seq - lastSeq));
+    Iterator<byte[]> walker = xcts.descendingIterator();
+    for (long i = seq; i > lastSeq; i--)
+      rv.add(walker.next());
+    Collections.reverse(rv);
+    return rv;
+  }
+
+  private final long epoch;
+  private final int maxSize;
+  private final long maxBytes;
+  private final ArrayDeque<byte[]> xcts;
+  private long numBytes;
+  // Sequence # of the last xct in the history
+  private long seq;
+}
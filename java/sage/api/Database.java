@@ -382,7 +382,6 @@ public class Database {
           String[] catMatches = new String[toker.countTokens()];
           for (int i = 0; i < catMatches.length; i++)
             catMatches[i] = toker.nextToken().trim();
-          Agent[] cachedFavs = Wizard.getInstance().getFavorites();
           if (dataObj instanceof java.util.Collection || dataObj instanceof java.util.Map)
           {
             java.util.Collection currData;
@@ -394,7 +393,7 @@ public class Database {
             while (walker.hasNext())
             {
               Object currObj = walker.next();
-              boolean testResult = categoryTest(currObj, catMatches, cachedFavs);
+              boolean testResult = categoryTest(currObj, catMatches);
               if (invertRes == testResult)
                 walker.remove();
             }
@@ -407,7 +406,7 @@ public class Database {
             java.util.ArrayList passedData = new java.util.ArrayList();
             for (int i = 0; i < currData.length; i++)
             {
-              boolean testResult = categoryTest(currData[i], catMatches, cachedFavs);
+              boolean testResult = categoryTest(currData[i], catMatches);
               if (invertRes != testResult)
                 passedData.add(currData[i]);
             }
@@ -644,7 +643,7 @@ public class Database {
               passedData.size()));
         }
       }
-      private boolean categoryTest(Object obj, String[] cats, Agent[] cachedFavs)
+      private boolean categoryTest(Object obj, String[] cats)
       {
         // Root this in the Airing object since everything else will link to that quickly
         Airing air = getAirObj(obj);
@@ -687,17 +686,8 @@ public class Database {
         Agent bond = Carny.getInstance().getCauseAgent(air);
         if (bond == null || !bond.isFavorite())
         {
-          bond = null;
           // Search through all of the Favorite objects to find the correct one
-          StringBuilder sbCache = new StringBuilder();
-          for (int i = 0; i < cachedFavs.length; i++)
-          {
-            if (cachedFavs[i].followsTrend(air, false, sbCache))
-            {
-              bond = cachedFavs[i];
-              break;
-            }
-          }
+          bond = Carny.getInstance().getFavoriteForAiring(air);
         }
         if (bond != null)
         {
@@ -1002,15 +1002,8 @@ public class FavoriteAPI {
         else
         {
           // Search through all of the Favorite objects to find the correct one
-          Agent[] favs = Wizard.getInstance().getFavorites();
-          StringBuilder sbCache = new StringBuilder();
-          for (int i = 0; i < favs.length; i++)
-          {
-            if (favs[i].followsTrend(a, false, sbCache))
-              return favs[i];
-          }
+          return Carny.getInstance().getFavoriteForAiring(a);
         }
-        return null;
       }});
     rft.put(new PredefinedJEPFunction("Favorite", "GetFavoritesForAiring", 1, new String[] { "Airing" })
     {
@@ -1024,16 +1017,8 @@ public class FavoriteAPI {
        */
       public Object runSafely(Catbert.FastStack stack) throws Exception{
         Airing a = getAir(stack);
-        java.util.ArrayList rv = new java.util.ArrayList();
         // Search through all of the Favorite objects to find the correct one
-        Agent[] favs = Wizard.getInstance().getFavorites();
-        StringBuilder sbCache = new StringBuilder();
-        for (int i = 0; i < favs.length; i++)
-        {
-          if (favs[i].followsTrend(a, false, sbCache))
-            rv.add(favs[i]);
-        }
-        return (Agent[]) rv.toArray(new Agent[0]);
+        return Carny.getInstance().getFavoritesForAiring(a);
       }});
     rft.put(new PredefinedJEPFunction("Favorite", "DoesFavoriteMatchAiring", new String[] { "Favorite", "Airing" })
     {
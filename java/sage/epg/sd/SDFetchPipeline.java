@@ -0,0 +1,240 @@
+/*
+ * Copyright 2015 The SageTV Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sage.epg.sd;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs Schedules Direct requests on a few threads so the thread adding guide data to the database
+ * doesn't have to wait for each one in turn. Requests can be started ahead of when their results
+ * are needed with {@link #submit(Callable)}, and a group of requests that decode their replies one
+ * element at a time can be run together with {@link #fetchAll(List)} so the elements can be added
+ * to the database while the rest of them are still being received. The elements are passed through
+ * a bounded queue, so the requests wait if the database falls behind.
+ * <p/>
+ * Any exception thrown by a request is thrown again by the thread getting its results.
+ */
+final class SDFetchPipeline
+{
+  // Marks the end of the elements from one request in a fetchAll() queue.
+  private static final Object END = new Object();
+
+  /**
+   * A request that hands each element of its reply to the sink as it's decoded.
+   */
+  interface Fetch<T>
+  {
+    public void run(SDSession.ArrayConsumer<T> sink) throws IOException, SDException;
+  }
+
+  /**
+   * @param numThreads The most requests that will run at the same time.
+   * @param queueSize The most decoded elements waiting to be taken from a fetchAll() before the
+   *                  requests wait for them to be taken.
+   */
+  SDFetchPipeline(int numThreads, int queueSize)
+  {
+    this.queueSize = Math.max(1, queueSize);
+    numThreads = Math.max(1, numThreads);
+    executor = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+      new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+    {
+      @Override
+      public Thread newThread(Runnable r)
+      {
+        Thread returnThread = new Thread(r);
+        returnThread.setName("SDEPG-Fetch");
+        returnThread.setDaemon(true);
+        // These are only waiting on the network most of the time, but let's not allow them to run
+        // at the same priority as threads that directly impact the UI experience.
+        returnThread.setPriority(Thread.MIN_PRIORITY + 1);
+        return returnThread;
+      }
+    });
+  }
+
+  /**
+   * Starts running a request. Use {@link #get(Future)} to get the result.
+   */
+  <T> Future<T> submit(Callable<T> request)
+  {
+    return executor.submit(request);
+  }
+
+  /**
+   * Waits for a request started with {@link #submit(Callable)} and returns its result.
+   *
+   * @throws IOException If the request had an I/O related error or this thread was interrupted.
+   * @throws SDException If the request had a problem working with Schedules Direct.
+   */
+  static <T> T get(Future<T> future) throws IOException, SDException
+  {
+    try
+    {
+      return future.get();
+    }
+    catch (InterruptedException e)
+    {
+      future.cancel(true);
+      throw new InterruptedIOException();
+    }
+    catch (ExecutionException e)
+    {
+      throw rethrow(e.getCause());
+    }
+  }
+
+  /**
+   * Starts running all of the requests at once. The elements they decode are returned by the
+   * {@link Results#take()} of what's returned in the order they are decoded.
+   */
+  <T> Results<T> fetchAll(List<? extends Fetch<T>> requests)
+  {
+    final Results<T> results = new Results<T>(requests.size());
+    for (final Fetch<T> request : requests)
+    {
+      executor.execute(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          Object last = END;
+          try
+          {
+            request.run(results);
+          }
+          catch (Throwable e)
+          {
+            last = new Failure(e);
+          }
+
+          try
+          {
+            results.queue.put(last);
+          }
+          catch (InterruptedException e)
+          {
+            // The pipeline was closed, so nothing is waiting for this.
+          }
+        }
+      });
+    }
+    return results;
+  }
+
+  /**
+   * Stops all of the requests that are running or waiting to run.
+   */
+  void close()
+  {
+    executor.shutdownNow();
+  }
+
+  private static RuntimeException rethrow(Throwable e) throws IOException, SDException
+  {
+    if (e instanceof IOException)
+      throw (IOException) e;
+    if (e instanceof SDException)
+      throw (SDException) e;
+    if (e instanceof RuntimeException)
+      throw (RuntimeException) e;
+    if (e instanceof Error)
+      throw (Error) e;
+    throw new RuntimeException(e);
+  }
+
+  final class Results<T> implements SDSession.ArrayConsumer<T>
+  {
+    private Results(int numRequests)
+    {
+      remaining = numRequests;
+    }
+
+    @Override
+    public void accept(T element) throws IOException
+    {
+      try
+      {
+        queue.put(element);
+      }
+      catch (InterruptedException e)
+      {
+        throw new InterruptedIOException();
+      }
+    }
+
+    /**
+     * Returns the next element, or <code>null</code> once all of the requests have completed.
+     *
+     * @throws IOException If a request had an I/O related error or this thread was interrupted.
+     * @throws SDException If a request had a problem working with Schedules Direct.
+     */
+    @SuppressWarnings("unchecked")
+    T take() throws IOException, SDException
+    {
+      while (remaining > 0)
+      {
+        Object next;
+        try
+        {
+          next = queue.take();
+        }
+        catch (InterruptedException e)
+        {
+          throw new InterruptedIOException();
+        }
+
+        if (next == END)
+          remaining--;
+        else if (next instanceof Failure)
+        {
+          remaining--;
+          throw rethrow(((Failure) next).cause);
+        }
+        else
+          return (T) next;
+      }
+      return null;
+    }
+
+    private final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(queueSize);
+    private int remaining;
+  }
+
+  private static final class Failure
+  {
+    private Failure(Throwable cause)
+    {
+      this.cause = cause;
+    }
+
+    private final Throwable cause;
+  }
+
+  private final ThreadPoolExecutor executor;
+  private final int queueSize;
+}
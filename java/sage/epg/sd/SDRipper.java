@@ -61,6 +61,7 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -74,7 +75,9 @@ import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -103,6 +106,7 @@ public class SDRipper extends EPGDataSource
   private static final String PROP_EDITORIAL_UPDATE_INTERVAL = PROP_PREFIX + "/editorial/update_interval";
   private static final String PROP_EDITORIAL_IMPORT_LIMIT = PROP_PREFIX + "/editorial/import_limit";
   private static final String PROP_DOWNLOAD_ALTERNATE_LOGOS = PROP_PREFIX + "/use_alternate_logos";
+  private static final String PROP_FETCH_THREADS = PROP_PREFIX + "/fetch_threads";
   private static final String FILE_PROGRAM_MD5 = "sdmd5prog";
   private static final String FILE_SCHEDULE_MD5 = "sdmd5sched";
 
@@ -134,6 +138,9 @@ public class SDRipper extends EPGDataSource
   // This is the most editorials that will ever be imported within one interval. If this value is
   // set to 0, the import process is disabled.
   private static final int editorialImportLimit = Sage.getInt(PROP_EDITORIAL_IMPORT_LIMIT, 50);
+  // This is the most requests that will be made to Schedules Direct at the same time while the guide
+  // data is being updated.
+  private static final int fetchThreads = Sage.getInt(PROP_FETCH_THREADS, 3);
   // This is used to synchronize on when we are modifying channels to ensure the are updated in sets
   // and not half updated by one thread and half updated by another.
   private static final Object updateChannelsLock = new Object();
@@ -1190,6 +1197,7 @@ public class SDRipper extends EPGDataSource
       return false;
     }
 
+    SDFetchPipeline pipeline = null;
     try
     {
       SDAccountLineups accountLineups = ensureSession().getAccountLineups();
@@ -1518,13 +1526,6 @@ public class SDRipper extends EPGDataSource
       // using a LinkedHashMap so that the dates for the most part remain in chronological order as
       // they are added.
       Map<String, List<Integer>> updateDayStations = new LinkedHashMap<String, List<Integer>>();
-      // Schedules Direct accepts multiple dates in one request, but to keep it simple, we are just
-      // looking up one date with up to 500 stations. The actual limit is 5000, but it's not
-      // recommended to do that in case the computer can't keep up. This should not be a significant
-      // impact on overall performance.
-      String dates[] = new String[1];
-      // The station schedules to be queried at one time are aggregated into this List.
-      List<Integer> lookupStationSchedule = new ArrayList<Integer>(500);
       // Programs discovered while iterating over the schedules that we either need to add or update
       // are aggregated into this List. Because these are always compared against the last MD5 hash,
       // we shouldn't get any duplicates here.
@@ -1536,8 +1537,6 @@ public class SDRipper extends EPGDataSource
       // the programs are loaded. We are using a Set to remove duplicates since this is accumulated
       // as we see what episodes likely have a series associated with them.
       Set<String> needSeriesDetails = new HashSet<>();
-      // String array used for various lookups that only contain one item.
-      String singleLookup[] = new String[1];
       // All people added to the database are placed in this Set to be looked up after all guide
       // data has been populated. We are using a Set to remove duplicates for each pass.
       Set<SDPerson> addedPeople = new HashSet<>();
@@ -1551,6 +1550,10 @@ public class SDRipper extends EPGDataSource
       int downloadedAirings = 0;
       int downloadedTeams = 0;
 
+      // Requests to Schedules Direct are made on these threads while this thread adds what they
+      // receive to the database.
+      pipeline = new SDFetchPipeline(fetchThreads, 1000);
+
       while (true)
       {
         {
@@ -1615,401 +1618,403 @@ public class SDRipper extends EPGDataSource
           }
         }
 
+        // All of the schedule requests for every day that needs an update are lined up first, so we
+        // can have the next ones being received while we are adding the current one. Using 1000
+        // stations as an upper limit because there is a good amount of data that will be returned
+        // and this will help get data visible in the guide a little sooner on the first run for
+        // this lineup.
+        List<ScheduleBatch> scheduleBatches = new ArrayList<ScheduleBatch>();
         for (Map.Entry<String, List<Integer>> updateDayStation : updateDayStations.entrySet())
         {
-          dates[0] = updateDayStation.getKey();
           List<Integer> updateStations = updateDayStation.getValue();
-          Integer lookupStations[] = updateStations.toArray(new Integer[updateStations.size()]);
+          for (int i = 0; i < updateStations.size(); i += 1000)
+          {
+            scheduleBatches.add(new ScheduleBatch(updateDayStation.getKey(), new ArrayList<Integer>(
+              updateStations.subList(i, Math.min(i + 1000, updateStations.size()))), updateStations));
+          }
+        }
+
+        List<Future<List<SDStationSchedule>>> scheduleRequests =
+          new ArrayList<Future<List<SDStationSchedule>>>(scheduleBatches.size());
+        for (int i = 0; i < scheduleBatches.size(); i++)
+        {
+          if (abort || !enabled) return false;
+
+          // Keep up to one request per fetch thread running ahead of the schedules we are adding.
+          while (scheduleRequests.size() < scheduleBatches.size() && scheduleRequests.size() <= i + fetchThreads)
+            scheduleRequests.add(pipeline.submit(scheduleBatches.get(scheduleRequests.size())));
+
+          ScheduleBatch batch = scheduleBatches.get(i);
+          List<SDStationSchedule> schedules = SDFetchPipeline.get(scheduleRequests.get(i));
+          scheduleRequests.set(i, null);
 
-          for (int i = 0; i < lookupStations.length;)
+          for (SDStationSchedule schedule : schedules)
           {
             if (abort || !enabled) return false;
 
-            lookupStationSchedule.add(lookupStations[i++]);
+            //int stationID = schedule.getStationID();
+            // Remove everything we are not going to retry later.
+            // 7100 = The schedule is queued. Retry at a later time.
+            // 2201 = Station no longer exists.
+            //    0 = Station schedule was successfully received.
+            if (schedule.getCode() != 7100)
+            {
+              // Must be an Integer object. Otherwise we are removing an index.
+              batch.updateStations.remove((Integer) schedule.getStationID());
+            }
+            else
+            {
+              // At the end, if nextUpdate is not -1, we will wait until that time or up to 30
+              // minutes; whichever is less. We are going to set nextUpdate to the longest
+              // suggested wait and hope the next pass will get everything remaining.
+              long retryTime = SDUtils.SDFullUTCToMillis(schedule.retryTime());
+              if (retryTime > nextUpdate)
+                nextUpdate = retryTime;
+            }
 
-            // Using 1000 as an upper limit because there is a good amount of data that will be
-            // returned and this will help get data visible in the guide a little sooner on the
-            // first run for this lineup.
-            if (lookupStationSchedule.size() == 1000 || i == lookupStations.length && lookupStationSchedule.size() > 0)
+            if (schedule.getCode() != 0)
             {
-              SDStationSchedule schedules[] = ensureSession().getSchedules(lookupStationSchedule, dates);
-              lookupStationSchedule.clear();
+              continue;
+            }
+
+            SDProgramSchedule[] programSchedules = schedule.getPrograms();
+            // This isn't completely accurate because if the program doesn't download, the
+            // airing won't be created, but it's close enough.
+            importAirings += programSchedules.length;
 
-              for (int j = 0; j < schedules.length;)
+            // Gather all new programs or programs with changes so we can pull down the new data.
+            for (SDProgramSchedule airing : programSchedules)
+            {
+              String extID = airing.getProgramID();
+              String oldMd5 = programMd5Map.get(extID);
+              String newMd5 = airing.getMd5();
+              // The md5 hash is for the related program data, not the airing.
+              if (oldMd5 != null && newMd5 != null && oldMd5.equals(newMd5))
               {
-                SDStationSchedule schedule = schedules[j++];
-                if (abort || !enabled) return false;
-
-                //int stationID = schedule.getStationID();
-                // Remove everything we are not going to retry later.
-                // 7100 = The schedule is queued. Retry at a later time.
-                // 2201 = Station no longer exists.
-                //    0 = Station schedule was successfully received.
-                if (schedule.getCode() != 7100)
-                {
-                  // Must be an Integer object. Otherwise we are removing an index.
-                  updateStations.remove((Integer) schedule.getStationID());
-                }
-                else
-                {
-                  // At the end, if nextUpdate is not -1, we will wait until that time or up to 30
-                  // minutes; whichever is less. We are going to set nextUpdate to the longest
-                  // suggested wait and hope the next pass will get everything remaining.
-                  long retryTime = SDUtils.SDFullUTCToMillis(schedule.retryTime());
-                  if (retryTime > nextUpdate)
-                    nextUpdate = retryTime;
-                }
+                // Make sure the show is in the database before we assume it's ok to skip
+                // downloading the show details. There's no reason to log when this happens.
+                Show show = wiz.getShowForExternalID(enableSageTVCompat ? SDUtils.fromProgramToSageTV(extID) : extID);
+                if (show != null) continue;
+              }
 
-                if (schedule.getCode() != 0)
-                {
-                  continue;
-                }
+              // Update the hash. This isn't saved until the end of the update, so it's ok to do
+              // this now. This will also prevent another station with some or all of the same
+              // programs from downloading them a second time.
+              programMd5Map.put(extID, newMd5);
+              needProgramDetails.add(extID);
+            }
+          }
 
-                SDProgramSchedule[] programSchedules = schedule.getPrograms();
-                // This isn't completely accurate because if the program doesn't download, the
-                // airing won't be created, but it's close enough.
-                importAirings += programSchedules.length;
+          // The programs are requested 500 at a time across the fetch threads and each one is added
+          // as soon as it has been received. Schedules Direct allows up to 5000 in one request, but
+          // smaller requests get the first programs into the guide sooner.
+          if (needProgramDetails.size() > 0)
+          {
+            if (Sage.DBG) System.out.println("SDEPG Importing " + needProgramDetails.size() + " programs for " + batch.dates[0] + "...");
 
-                // Gather all new programs or programs with changes so we can pull down the new data.
-                for (SDProgramSchedule airing : programSchedules)
-                {
-                  String extID = airing.getProgramID();
-                  String oldMd5 = programMd5Map.get(extID);
-                  String newMd5 = airing.getMd5();
-                  // The md5 hash is for the related program data, not the airing.
-                  if (oldMd5 != null && newMd5 != null && oldMd5.equals(newMd5))
-                  {
-                    // Make sure the show is in the database before we assume it's ok to skip
-                    // downloading the show details. There's no reason to log when this happens.
-                    Show show = wiz.getShowForExternalID(enableSageTVCompat ? SDUtils.fromProgramToSageTV(extID) : extID);
-                    if (show != null) continue;
-                  }
+            List<ProgramFetch> programFetches = new ArrayList<ProgramFetch>();
+            for (int j = 0; j < needProgramDetails.size(); j += 500)
+            {
+              programFetches.add(new ProgramFetch(new ArrayList<String>(
+                needProgramDetails.subList(j, Math.min(j + 500, needProgramDetails.size())))));
+            }
+            needProgramDetails.clear();
 
-                  // Update the hash. This isn't saved until the end of the update, so it's ok to do
-                  // this now. This will also prevent another station with some or all of the same
-                  // programs from downloading them a second time.
-                  programMd5Map.put(extID, newMd5);
-                  needProgramDetails.add(extID);
+            SDFetchPipeline.Results<ProgramDetail> programDetails = pipeline.fetchAll(programFetches);
+            ProgramDetail nextProgram;
+            while ((nextProgram = programDetails.take()) != null)
+            {
+              SDProgram programDetail = nextProgram.program;
+              // Remove everything we are not going to retry later.
+              // 6001 = The program is queued. Retry at a later time.
+              // 6000 = Program no longer exists.
+              //    0 = Program was successfully received.
+              if (programDetail.getCode() == 6001)
+              {
+                // This will prevent an airing from being created for this program that will
+                // not yet exist.
+                noProgramDetails.add(programDetail.getProgramID());
+                // At the end, if nextUpdate has a value greater than 0, we will wait until
+                // that time or up to 30 minutes; whichever is less. We aren't told how long
+                // to wait for this program to be generated, so we'll assume 5 minutes from
+                // now. If by the time we reach the retry, 5 minutes has already passed, then
+                // we will just retry immediately.
+                long retryTime = Sage.time() + Sage.MILLIS_PER_MIN * 5;
+                // Values for station ID day generation might provide a time that would be
+                // longer than 5 minutes from now, so we will wait for that time instead if
+                // that's the case.
+                if (retryTime > nextUpdate) nextUpdate = retryTime;
+                // Remove this program from the Md5 map so in case we exceed the retry limit
+                // today, the program details will be added/updated in the future.
+                String extID = programDetail.getProgramID();
+                programMd5Map.remove(extID);
+                // Remove the series from the need series details List because we will not
+                // have all of the shows present and this works best if the shows are added
+                // before series info. This will be added again on the next loop.
+                String removeSeries = SDUtils.getSeriesForEpisode(extID);
+                if (removeSeries != null) needSeriesDetails.remove(removeSeries);
+              }
 
-                  // This should never happen, but just in case, we will cut this off at the max
-                  // query size threshold. Any programs we miss will be caught in the next pass.
-                  if (needProgramDetails.size() >= 5000)
-                  {
-                    // Force the update to loop back and get the remainder.
-                    nextUpdate = 0;
-                    break;
-                  }
-                }
+              if (programDetail.getCode() != 0)
+              {
+                // Ensure we don't try to create an airing for this program.
+                noProgramDetails.add(programDetail.getProgramID());
+                continue;
+              }
+              String extID = programDetail.getProgramID();
+              String showType = programDetail.getShowType();
+              String entityType = programDetail.getEntityType();
+              boolean isSports = "Sports".equals(entityType);
+              boolean canGetSeries = SDUtils.canGetSeries(extID);
+              boolean isSeries = "Series".equals(showType);
+              boolean isMovie = extID.startsWith("MV");
+              SDMovie movie = isMovie ? programDetail.getMovie() : null;
+
+              // Add/update the series info any time an episode of a series is updated. This
+              // is a Set, so we will not create duplicates.
+              if (isSeries && canGetSeries)
+              {
+                needSeriesDetails.add(SDUtils.getSeriesForEpisode(programDetail.getProgramID()));
+              }
 
-                // We have to do >= 500 programs because we could be anywhere from 500 to ~600. The
-                // limit is 5000 and a typical request is a little over 500 combined between several
-                // stations, so this should never be a problem. The most I have ever seen added for
-                // one station was around 80. We also force one last request even if it's under 500
-                // if we are on the last station for this batch.
-                if (needProgramDetails.size() >= 500 || (j == schedules.length && needProgramDetails.size() > 0))
-                {
-                  if (Sage.DBG) System.out.println("SDEPG Importing " + needProgramDetails.size() + " programs for " + dates[0] + "...");
+              String title = programDetail.getTitle();
+              String episodeName = programDetail.getEpisodeTitle150();
+              String desc = programDetail.getDescriptions().getDescription(preferedDescDigraph, false).getDescription();
+              long showDuration = movie != null ? movie.getDuration() : programDetail.getDuration();
+
+              SDPerson cast[] = programDetail.getCast();
+              SDPerson crew[] = programDetail.getCrew();
+              SDPerson teams[] = programDetail.getTeams();
+              int castLen = cast.length;
+              int castCrewLen = castLen + crew.length;
+              int totalPeople = castCrewLen + teams.length;
+              List<Person> people = new ArrayList<>(totalPeople);
+              List<Byte> roles = new ArrayList<>(totalPeople);
+
+              SDPerson person;
+              for (int k = 0; k < totalPeople; k++)
+              {
+                if (k < castLen)
+                  person = cast[k];
+                else if (k < castCrewLen)
+                  person = crew[k - castLen];
+                else
+                  person = teams[k - castCrewLen];
 
-                  // Pull in all new programs for this station.
-                  SDProgram programDetails[] = ensureSession().getPrograms(needProgramDetails);
-                  needProgramDetails.clear();
+                // Skip all unknown roles.
+                byte role = person.getRoleID();
+                if (role == 0)
+                  continue;
 
-                  for (SDProgram programDetail : programDetails)
+                Person newPerson = SDUtils.getPerson(person, wiz);
+                if (newPerson != null)
+                {
+                  // Remove duplicates of the same person with the same role.
+                  boolean addPerson = true;
+                  for (int l = 0; l < people.size(); l++)
                   {
-                    // Remove everything we are not going to retry later.
-                    // 6001 = The program is queued. Retry at a later time.
-                    // 6000 = Program no longer exists.
-                    //    0 = Program was successfully received.
-                    if (programDetail.getCode() == 6001)
+                    if (people.get(l).getID() == newPerson.getID() && roles.get(l) == role)
                     {
-                      // This will prevent an airing from being created for this program that will
-                      // not yet exist.
-                      noProgramDetails.add(programDetail.getProgramID());
-                      // At the end, if nextUpdate has a value greater than 0, we will wait until
-                      // that time or up to 30 minutes; whichever is less. We aren't told how long
-                      // to wait for this program to be generated, so we'll assume 5 minutes from
-                      // now. If by the time we reach the retry, 5 minutes has already passed, then
-                      // we will just retry immediately.
-                      long retryTime = Sage.time() + Sage.MILLIS_PER_MIN * 5;
-                      // Values for station ID day generation might provide a time that would be
-                      // longer than 5 minutes from now, so we will wait for that time instead if
-                      // that's the case.
-                      if (retryTime > nextUpdate) nextUpdate = retryTime;
-                      // Remove this program from the Md5 map so in case we exceed the retry limit
-                      // today, the program details will be added/updated in the future.
-                      String extID = programDetail.getProgramID();
-                      programMd5Map.remove(extID);
-                      // Remove the series from the need series details List because we will not
-                      // have all of the shows present and this works best if the shows are added
-                      // before series info. This will be added again on the next loop.
-                      String removeSeries = SDUtils.getSeriesForEpisode(extID);
-                      if (removeSeries != null) needSeriesDetails.remove(removeSeries);
+                      addPerson = false;
+                      break;
                     }
+                  }
+                  if (!addPerson)
+                    continue;
 
-                    if (schedule.getCode() != 0)
-                    {
-                      // Ensure we don't try to create an airing for this program.
-                      noProgramDetails.add(programDetail.getProgramID());
-                      continue;
-                    }
-                    String extID = programDetail.getProgramID();
-                    String showType = programDetail.getShowType();
-                    String entityType = programDetail.getEntityType();
-                    boolean isSports = "Sports".equals(entityType);
-                    boolean canGetSeries = SDUtils.canGetSeries(extID);
-                    boolean isSeries = "Series".equals(showType);
-                    boolean isMovie = extID.startsWith("MV");
-                    SDMovie movie = isMovie ? programDetail.getMovie() : null;
-
-                    // Add/update the series info any time an episode of a series is updated. This
-                    // is a Set, so we will not create duplicates.
-                    if (isSeries && canGetSeries)
-                    {
-                      needSeriesDetails.add(SDUtils.getSeriesForEpisode(programDetail.getProgramID()));
-                    }
+                  if (role == Show.TEAM_ROLE)
+                    downloadedTeams++;
 
-                    String title = programDetail.getTitle();
-                    String episodeName = programDetail.getEpisodeTitle150();
-                    String desc = programDetail.getDescriptions().getDescription(preferedDescDigraph, false).getDescription();
-                    long showDuration = movie != null ? movie.getDuration() : programDetail.getDuration();
-
-                    SDPerson cast[] = programDetail.getCast();
-                    SDPerson crew[] = programDetail.getCrew();
-                    SDPerson teams[] = programDetail.getTeams();
-                    int castLen = cast.length;
-                    int castCrewLen = castLen + crew.length;
-                    int totalPeople = castCrewLen + teams.length;
-                    List<Person> people = new ArrayList<>(totalPeople);
-                    List<Byte> roles = new ArrayList<>(totalPeople);
-
-                    SDPerson person;
-                    for (int k = 0; k < totalPeople; k++)
-                    {
-                      if (k < castLen)
-                        person = cast[k];
-                      else if (k < castCrewLen)
-                        person = crew[k - castLen];
-                      else
-                        person = teams[k - castCrewLen];
-
-                      // Skip all unknown roles.
-                      byte role = person.getRoleID();
-                      if (role == 0)
-                        continue;
-
-                      Person newPerson = SDUtils.getPerson(person, wiz);
-                      if (newPerson != null)
-                      {
-                        // Remove duplicates of the same person with the same role.
-                        boolean addPerson = true;
-                        for (int l = 0; l < people.size(); l++)
-                        {
-                          if (people.get(l).getID() == newPerson.getID() && roles.get(l) == role)
-                          {
-                            addPerson = false;
-                            break;
-                          }
-                        }
-                        if (!addPerson)
-                          continue;
-
-                        if (role == Show.TEAM_ROLE)
-                          downloadedTeams++;
-
-                        people.add(newPerson);
-                        roles.add(role);
-
-                        if (person.isAlias())
-                          addedAliases.add(person);
-                        else if (person.getPersonId().length() > 0)
-                          addedPeople.add(person);
-                      }
-                    }
-                    String[] expandedRatings = programDetail.getContentAdvisory();
-                    // Is only set when the program is a movie.
-                    String rated = movie != null ? programDetail.getContentRating(movieRatingBody) : ""; // programDetail.getContentRating(ratingBody);
-                    String year = movie != null ? movie.getYear() : "";
-                    String parentalRating = null; //not used programDetail.getContentRating(ratingBody);
-                    SDKeyWords keyWords = programDetail.getKeyWords();
-                    String[] bonus = keyWords != null ? keyWords.getAllKeywords() : Pooler.EMPTY_STRING_ARRAY;
-                    if (movie != null)
+                  people.add(newPerson);
+                  roles.add(role);
+
+                  if (person.isAlias())
+                    addedAliases.add(person);
+                  else if (person.getPersonId().length() > 0)
+                    addedPeople.add(person);
+                }
+              }
+              String[] expandedRatings = programDetail.getContentAdvisory();
+              // Is only set when the program is a movie.
+              String rated = movie != null ? programDetail.getContentRating(movieRatingBody) : ""; // programDetail.getContentRating(ratingBody);
+              String year = movie != null ? movie.getYear() : "";
+              String parentalRating = null; //not used programDetail.getContentRating(ratingBody);
+              SDKeyWords keyWords = programDetail.getKeyWords();
+              String[] bonus = keyWords != null ? keyWords.getAllKeywords() : Pooler.EMPTY_STRING_ARRAY;
+              if (movie != null)
+              {
+                String qualityRating = movie.getFormattedQualityRating();
+                if (qualityRating.length() > 0)
+                {
+                  String newBonus[] = new String[bonus.length + 1];
+                  newBonus[0] = qualityRating;
+                  System.arraycopy(bonus, 0, newBonus, 1, bonus.length);
+                  bonus = newBonus;
+                }
+              }
+              boolean uniqueShow = !extID.startsWith("SH") || "Special".equals(showType);
+              // Observation has shown this to be reasonably accurate when the show
+              // description is not in English, but is not the correct way to get this kind
+              // of information.
+              String language = ""; //getLanguageForDigraph(programDetail.getDescriptions().getFirstDescription().getDescriptionLanguage());
+              long originalAirDate = SDUtils.SDDateUTCToMillis(programDetail.getOriginalAirDate());
+              short seasonNum = programDetail.getSeason();
+              short episodeNum = programDetail.getEpisode();
+              String[] categories = programDetail.getGenres();
+              if ("Children".equals(programDetail.getAudience()))
+              {
+                categories = Arrays.copyOf(categories, categories.length + 1);
+                categories[categories.length - 1] = "Children target audience";
+              }
+              // If this is a sports event, the first category needs to be Sports event or
+              // Sports non-event.
+              if (isSports && showType != null)
+              {
+                String newCategories[] = new String[categories.length + 1];
+                // This will be 'Sports event' or 'Sports non-event'
+                newCategories[0] = showType;
+                System.arraycopy(categories, 0, newCategories, 1, categories.length);
+                categories = newCategories;
+              }
+              // Ensure Movie is first if the ID starts with MV and if it doesn't, add it.
+              else if (isMovie)
+              {
+                if (categories.length == 0)
+                {
+                  categories = new String[1];
+                  categories[0] = "Movie";
+                }
+                else
+                {
+                  if (!"Movie".equals(categories[0]))
+                  {
+                    boolean addMovie = true;
+                    for (int k = 0; k < categories.length; k++)
                     {
-                      String qualityRating = movie.getFormattedQualityRating();
-                      if (qualityRating.length() > 0)
+                      if ("Movie".equals(categories[k]))
                       {
-                        String newBonus[] = new String[bonus.length + 1];
-                        newBonus[0] = qualityRating;
-                        System.arraycopy(bonus, 0, newBonus, 1, bonus.length);
-                        bonus = newBonus;
+                        categories[k] = categories[0];
+                        categories[0] = "Movie";
+                        addMovie = false;
+                        break;
                       }
                     }
-                    boolean uniqueShow = !extID.startsWith("SH") || "Special".equals(showType);
-                    // Observation has shown this to be reasonably accurate when the show
-                    // description is not in English, but is not the correct way to get this kind
-                    // of information.
-                    String language = ""; //getLanguageForDigraph(programDetail.getDescriptions().getFirstDescription().getDescriptionLanguage());
-                    long originalAirDate = SDUtils.SDDateUTCToMillis(programDetail.getOriginalAirDate());
-                    short seasonNum = programDetail.getSeason();
-                    short episodeNum = programDetail.getEpisode();
-                    String[] categories = programDetail.getGenres();
-                    if ("Children".equals(programDetail.getAudience()))
-                    {
-                      categories = Arrays.copyOf(categories, categories.length + 1);
-                      categories[categories.length - 1] = "Children target audience";
-                    }
-                    // If this is a sports event, the first category needs to be Sports event or
-                    // Sports non-event.
-                    if (isSports && showType != null)
+                    if (addMovie)
                     {
                       String newCategories[] = new String[categories.length + 1];
-                      // This will be 'Sports event' or 'Sports non-event'
-                      newCategories[0] = showType;
+                      newCategories[0] = "Movie";
                       System.arraycopy(categories, 0, newCategories, 1, categories.length);
                       categories = newCategories;
                     }
-                    // Ensure Movie is first if the ID starts with MV and if it doesn't, add it.
-                    else if (isMovie)
-                    {
-                      if (categories.length == 0)
-                      {
-                        categories = new String[1];
-                        categories[0] = "Movie";
-                      }
-                      else
-                      {
-                        if (!"Movie".equals(categories[0]))
-                        {
-                          boolean addMovie = true;
-                          for (int k = 0; k < categories.length; k++)
-                          {
-                            if ("Movie".equals(categories[k]))
-                            {
-                              categories[k] = categories[0];
-                              categories[0] = "Movie";
-                              addMovie = false;
-                              break;
-                            }
-                          }
-                          if (addMovie)
-                          {
-                            String newCategories[] = new String[categories.length + 1];
-                            newCategories[0] = "Movie";
-                            System.arraycopy(categories, 0, newCategories, 1, categories.length);
-                            categories = newCategories;
-                          }
-                        }
-                      }
-                    }
-                    if (categories == null || categories.length == 0) categories = Pooler.EMPTY_STRING_ARRAY;
-                    int showcardID = 0;
-                    byte imageURLs[][] = null;
-
-                    if (!canGetSeries && programDetail.hasImageArtwork())
-                    {
-                      // Don't fail the show entry if there's an issue parsing the JSON for images.
-                      try
-                      {
-                        singleLookup[0] = extID;
-                        SDProgramImages images[] = ensureSession().getProgramImages(singleLookup);
-                        singleLookup[0] = null;
-
-                        if (images != null && images.length == 1 && images[0].getCode() == 0)
-                        {
-                          int showcardIdRef[] = new int[1];
-                          imageURLs = SDImages.encodeImages(
-                            images[0].getImages(), showcardIdRef, SDImages.ENCODE_ALL);
-                          showcardID = showcardIdRef[0];
-                        }
-                      }
-                      catch (Exception e)
-                      {
-                        SDSession.writeDebugException(e);
-                      }
-                    }
-
-                    // The episode images appear to always be tall images that look rather awkward
-                    // in the UI because they are photos from the specific episode that do not fit
-                    // the dimensions of any normal recording, so we are only using them
-                    // when the program is a movie and this is the only image available.
-                    SDImage episodeImage;
-                    if ((imageURLs == null || imageURLs.length == 0) && isMovie &&
-                      (episodeImage = programDetail.getEpisodeImage()) != null)
-                    {
-                      int showcardIdRef[] = new int[1];
-                      imageURLs = SDImages.encodeEpisodeImage(episodeImage, showcardIdRef);
-                      showcardID = showcardIdRef[0];
-                    }
-
-                    if (imageURLs == null) imageURLs = Pooler.EMPTY_2D_BYTE_ARRAY;
-
-                    if (enableSageTVCompat)
-                      extID = SDUtils.fromProgramToSageTV(extID);
+                  }
+                }
+              }
+              if (categories == null || categories.length == 0) categories = Pooler.EMPTY_STRING_ARRAY;
+              int showcardID = 0;
+              byte imageURLs[][] = null;
 
-                    Person addPeople[] = people.size() == 0 ?
-                      Pooler.EMPTY_PERSON_ARRAY : people.toArray(new Person[people.size()]);
-                    byte addRoles[] = roles.size() == 0 ?
-                      Pooler.EMPTY_BYTE_ARRAY : SDUtils.byteCollectionToByteArrayPrimitive(roles);
+              if (!canGetSeries && programDetail.hasImageArtwork())
+              {
+                // Don't fail the show entry if there's an issue parsing the JSON for images.
+                try
+                {
+                  // These were looked up when the program was received.
+                  SDProgramImages images[] = nextProgram.images;
 
-                    downloadedPrograms++;
-                    wiz.addShow(title, episodeName, desc, showDuration, categories, addPeople,
-                      addRoles, rated, expandedRatings, year, parentalRating, bonus, extID, language,
-                      originalAirDate, DBObject.MEDIA_MASK_TV, seasonNum, episodeNum, uniqueShow,
-                      showcardID, imageURLs);
+                  if (images != null && images.length == 1 && images[0].getCode() == 0)
+                  {
+                    int showcardIdRef[] = new int[1];
+                    imageURLs = SDImages.encodeImages(
+                      images[0].getImages(), showcardIdRef, SDImages.ENCODE_ALL);
+                    showcardID = showcardIdRef[0];
                   }
                 }
+                catch (Exception e)
+                {
+                  SDSession.writeDebugException(e);
+                }
               }
 
-              if (Sage.DBG) System.out.println("SDEPG Importing up to " + importAirings + " airings across " + schedules.length + " stations for " + dates[0] + "...");
-              importAirings = 0;
-
-              // Now we can add the airings for all of the programs we just added.
-              for (SDStationSchedule schedule : schedules)
+              // The episode images appear to always be tall images that look rather awkward
+              // in the UI because they are photos from the specific episode that do not fit
+              // the dimensions of any normal recording, so we are only using them
+              // when the program is a movie and this is the only image available.
+              SDImage episodeImage;
+              if ((imageURLs == null || imageURLs.length == 0) && isMovie &&
+                (episodeImage = programDetail.getEpisodeImage()) != null)
               {
-                if (abort || !enabled) return false;
-                if (schedule.getCode() != 0) continue;
+                int showcardIdRef[] = new int[1];
+                imageURLs = SDImages.encodeEpisodeImage(episodeImage, showcardIdRef);
+                showcardID = showcardIdRef[0];
+              }
 
-                int stationID = schedule.getStationID();
+              if (imageURLs == null) imageURLs = Pooler.EMPTY_2D_BYTE_ARRAY;
 
-                // We always add/update all of the airings unless the associated program couldn't be
-                // downloaded at this time.
-                for (SDProgramSchedule airing : schedule.getPrograms())
-                {
-                  if (abort || !enabled) return false;
-                  String extID = airing.getProgramID();
+              if (enableSageTVCompat)
+                extID = SDUtils.fromProgramToSageTV(extID);
 
-                  // If the program is still in this array, we didn't successfully add it.
-                  if (noProgramDetails.contains(extID)) continue;
+              Person addPeople[] = people.size() == 0 ?
+                Pooler.EMPTY_PERSON_ARRAY : people.toArray(new Person[people.size()]);
+              byte addRoles[] = roles.size() == 0 ?
+                Pooler.EMPTY_BYTE_ARRAY : SDUtils.byteCollectionToByteArrayPrimitive(roles);
 
-                  long startTime = SDUtils.SDFullUTCToMillis(airing.getAirDateTime());
-                  // I haven't seen this happen yet, but it will not make a useful contribution to
-                  // the guide and could potentially create some unexpected situations.
-                  if (startTime == 0)
-                  {
-                    if (Sage.DBG) System.out.println("SDEPG Warning: Airing has a 0 start time. Skipping: " + airing.toString());
-                    continue;
-                  }
+              downloadedPrograms++;
+              wiz.addShow(title, episodeName, desc, showDuration, categories, addPeople,
+                addRoles, rated, expandedRatings, year, parentalRating, bonus, extID, language,
+                originalAirDate, DBObject.MEDIA_MASK_TV, seasonNum, episodeNum, uniqueShow,
+                showcardID, imageURLs);
+            }
+          }
 
-                  long duration = airing.getDuration();
-                  byte partsByte;
-                  partsByte = airing.getMultipartByte();
-                  byte parentalRatingByte = airing.getParentalRatingByte();
-                  int misc = airing.getMisc();
+          if (Sage.DBG) System.out.println("SDEPG Importing up to " + importAirings + " airings across " + schedules.size() + " stations for " + batch.dates[0] + "...");
+          importAirings = 0;
 
-                  // I haven't seen this happen yet, but it would look very strange in the guide,
-                  // so I think it's better to not even add it.
-                  if (duration == 0)
-                  {
-                    if (Sage.DBG) System.out.println("SDEPG Warning: Airing has a 0 duration. Skipping: " + airing.toString());
-                    continue;
-                  }
+          // Now we can add the airings for all of the programs we just added.
+          for (SDStationSchedule schedule : schedules)
+          {
+            if (abort || !enabled) return false;
+            if (schedule.getCode() != 0) continue;
 
-                  if (enableSageTVCompat)
-                    extID = SDUtils.fromProgramToSageTV(extID);
+            int stationID = schedule.getStationID();
 
-                  downloadedAirings++;
-                  wiz.addAiring(extID, stationID, startTime, duration, partsByte, misc, parentalRatingByte, DBObject.MEDIA_MASK_TV);
-                }
+            // We always add/update all of the airings unless the associated program couldn't be
+            // downloaded at this time.
+            for (SDProgramSchedule airing : schedule.getPrograms())
+            {
+              if (abort || !enabled) return false;
+              String extID = airing.getProgramID();
+
+              // If the program is still in this array, we didn't successfully add it.
+              if (noProgramDetails.contains(extID)) continue;
+
+              long startTime = SDUtils.SDFullUTCToMillis(airing.getAirDateTime());
+              // I haven't seen this happen yet, but it will not make a useful contribution to
+              // the guide and could potentially create some unexpected situations.
+              if (startTime == 0)
+              {
+                if (Sage.DBG) System.out.println("SDEPG Warning: Airing has a 0 start time. Skipping: " + airing.toString());
+                continue;
               }
+
+              long duration = airing.getDuration();
+              byte partsByte;
+              partsByte = airing.getMultipartByte();
+              byte parentalRatingByte = airing.getParentalRatingByte();
+              int misc = airing.getMisc();
+
+              // I haven't seen this happen yet, but it would look very strange in the guide,
+              // so I think it's better to not even add it.
+              if (duration == 0)
+              {
+                if (Sage.DBG) System.out.println("SDEPG Warning: Airing has a 0 duration. Skipping: " + airing.toString());
+                continue;
+              }
+
+              if (enableSageTVCompat)
+                extID = SDUtils.fromProgramToSageTV(extID);
+
+              downloadedAirings++;
+              wiz.addAiring(extID, stationID, startTime, duration, partsByte, misc, parentalRatingByte, DBObject.MEDIA_MASK_TV);
             }
           }
         }
@@ -2026,170 +2031,155 @@ public class SDRipper extends EPGDataSource
         {
           if (Sage.DBG) System.out.println("SDEPG Getting series info for " + needSeriesDetails.size() + " shows.");
 
-          String series[] = needSeriesDetails.toArray(new String[needSeriesDetails.size()]);
+          // Schedules Direct doesn't give us a lot to work with for series, but this is where a
+          // lot of the artwork is being stored, so we are creating the entries with what little
+          // information we can reliably get. The requests are split up across the fetch threads
+          // and each series is added as soon as it has been received.
+          List<SeriesFetch> seriesFetches = new ArrayList<SeriesFetch>();
+          List<String> series = new ArrayList<String>(needSeriesDetails);
+          for (int i = 0; i < series.size(); i += 500)
+          {
+            seriesFetches.add(new SeriesFetch(new ArrayList<String>(
+              series.subList(i, Math.min(i + 500, series.size())))));
+          }
 
-          int i = 0;
-          while (i < series.length)
+          SDFetchPipeline.Results<SeriesDetail> seriesDetails = pipeline.fetchAll(seriesFetches);
+          SeriesDetail nextSeries;
+          while ((nextSeries = seriesDetails.take()) != null)
           {
-            int limit = i + Math.min(500, series.length - i);
-            if (i == limit) break;
-            while (i < limit)
+            if (abort || !enabled) return false;
+
+            SDProgram seriesDetail = nextSeries.program;
+            if (seriesDetail.getCode() == 6001)
+            {
+              long retryTime = Sage.time() + Sage.MILLIS_PER_MIN * 5;
+              if (retryTime > nextUpdate) nextUpdate = retryTime;
+              continue;
+            }
+            else if (seriesDetail.getCode() != 0)
             {
-              String seriesDetails = series[i++];
-              needProgramDetails.add(seriesDetails);
+              needSeriesDetails.remove(seriesDetail.getProgramID());
+              continue;
             }
 
-            // Schedules Direct doesn't give us a lot to work with for series, but this is where a
-            // lot of the artwork is being stored, so we are creating the entries with what little
-            // information we can reliably get.
-            SDProgram programs[] = ensureSession().getPrograms(needProgramDetails);
-            needProgramDetails.clear();
+            String extID = seriesDetail.getProgramID();
 
-            for (SDProgram seriesDetail : programs)
+            try
             {
-              if (abort || !enabled) return false;
-
-              if (seriesDetail.getCode() == 6001)
-              {
-                long retryTime = Sage.time() + Sage.MILLIS_PER_MIN * 5;
-                if (retryTime > nextUpdate) nextUpdate = retryTime;
-                continue;
-              }
-              else if (seriesDetail.getCode() != 0)
+              if (extID.startsWith("SH") && extID.length() == 14)
               {
-                needSeriesDetails.remove(seriesDetail.getProgramID());
-                continue;
-              }
-
-              String extID = seriesDetail.getProgramID();
+                String seriesTitle = seriesDetail.getTitle();
+                long showDuration = seriesDetail.getDuration();
+                int showcardID = 0;
+                String showCardBase = extID.substring(2, extID.length() - 4);
+                int legacySeriesID = Integer.parseInt(showCardBase);
+                String seriesDesc = null;
+                byte[][] seriesURLs = null;
+
+                // The description and images were looked up when the series was received.
+                if (nextSeries.failure != null)
+                  throw nextSeries.failure;
+
+                SDSeriesDesc seriesDescs[] = nextSeries.descs;
+
+                // We should always only get one, but just in case.
+                if (seriesDescs != null && seriesDescs.length == 1 && seriesDescs[0].getCode() == 0)
+                {
+                  seriesDesc = seriesDescs[0].getDescription1000();
+                  if (seriesDesc == null) seriesDesc = seriesDescs[0].getDescription100();
+                }
+                if (seriesDesc == null)
+                  seriesDesc = seriesDetail.getDescriptions().getDescription(preferedDescDigraph, true).getDescription();
+                if (seriesDesc == null)
+                  seriesDesc = "";
 
-              try
-              {
-                if (extID.startsWith("SH") && extID.length() == 14)
+                if (seriesDetail.hasImageArtwork())
                 {
-                  String seriesTitle = seriesDetail.getTitle();
-                  long showDuration = seriesDetail.getDuration();
-                  int showcardID = 0;
-                  String showCardBase = extID.substring(2, extID.length() - 4);
-                  int legacySeriesID = Integer.parseInt(showCardBase);
-                  String seriesDesc = null;
-                  byte[][] seriesURLs = null;
-
-                  char[] newID = extID.toCharArray();
-                  newID[0] = 'E';
-                  newID[1] = 'P';
-                  newID[10] = '0';
-                  newID[11] = '0';
-                  newID[12] = '0';
-                  newID[13] = '1';
-
-                  singleLookup[0] = new String(newID);
-                  SDSeriesDesc seriesDescs[] = ensureSession().getSeriesDesc(singleLookup);
-                  singleLookup[0] = null;
-
-                  // We should always only get one, but just in case.
-                  if (seriesDescs.length == 1 && seriesDescs[0].getCode() == 0)
-                  {
-                    seriesDesc = seriesDescs[0].getDescription1000();
-                    if (seriesDesc == null) seriesDesc = seriesDescs[0].getDescription100();
-                  }
-                  if (seriesDesc == null)
-                    seriesDesc = seriesDetail.getDescriptions().getDescription(preferedDescDigraph, true).getDescription();
-                  if (seriesDesc == null)
-                    seriesDesc = "";
+                  SDProgramImages images[] = nextSeries.images;
 
-                  if (seriesDetail.hasImageArtwork())
+                  if (images != null && images.length == 1 && images[0].getCode() == 0)
                   {
-                    newID[0] = 'S';
-                    newID[1] = 'H';
-                    singleLookup[0] = new String(newID, 0, 10);
-                    SDProgramImages images[] = ensureSession().getProgramImages(singleLookup);
-                    singleLookup[0] = null;
-
-                    if (images != null && images.length == 1 && images[0].getCode() == 0)
-                    {
-                      int showcardIdRef[] = new int[1];
-                      seriesURLs = SDImages.encodeImages(images[0].getImages(), showcardIdRef, SDImages.ENCODE_SERIES_ONLY);
-                      showcardID = showcardIdRef[0];
-                    }
+                    int showcardIdRef[] = new int[1];
+                    seriesURLs = SDImages.encodeImages(images[0].getImages(), showcardIdRef, SDImages.ENCODE_SERIES_ONLY);
+                    showcardID = showcardIdRef[0];
                   }
+                }
 
-                  // We don't have a description and we don't have any images.
-                  if (seriesURLs == null || seriesURLs.length <= 1)
-                    seriesURLs = Pooler.EMPTY_2D_BYTE_ARRAY;
+                // We don't have a description and we don't have any images.
+                if (seriesURLs == null || seriesURLs.length <= 1)
+                  seriesURLs = Pooler.EMPTY_2D_BYTE_ARRAY;
 
-                  // Don't bother adding a series that doesn't have a description and doesn't have
-                  // any images to contribute.
-                  if (seriesDesc.length() == 0 && seriesURLs.length == 0)
-                    continue;
+                // Don't bother adding a series that doesn't have a description and doesn't have
+                // any images to contribute.
+                if (seriesDesc.length() == 0 && seriesURLs.length == 0)
+                  continue;
 
-                  // Sometimes we will get cast without a character name.
-                  SDPerson seriesPeople[] = SDUtils.removeNoCharacterPeople(seriesDetail.getCast());
-                  SDPerson seriesCrew[] = SDUtils.removeNoCharacterPeople(seriesDetail.getCrew());
-                  int seriesPeopleLen = seriesPeople.length;
-                  int seriesPeopleCrewLen = seriesPeople.length + seriesCrew.length;
-                  List<Person> people = new ArrayList<>(seriesPeopleCrewLen);
-                  List<String> characters = new ArrayList<>(seriesPeopleCrewLen);
+                // Sometimes we will get cast without a character name.
+                SDPerson seriesPeople[] = SDUtils.removeNoCharacterPeople(seriesDetail.getCast());
+                SDPerson seriesCrew[] = SDUtils.removeNoCharacterPeople(seriesDetail.getCrew());
+                int seriesPeopleLen = seriesPeople.length;
+                int seriesPeopleCrewLen = seriesPeople.length + seriesCrew.length;
+                List<Person> people = new ArrayList<>(seriesPeopleCrewLen);
+                List<String> characters = new ArrayList<>(seriesPeopleCrewLen);
+
+                for (int j = 0; j < seriesPeopleCrewLen; j++)
+                {
+                  SDPerson person;
+                  if (j < seriesPeopleLen)
+                    person = seriesPeople[j];
+                  else
+                    person = seriesCrew[j - seriesPeopleLen];
 
-                  for (int j = 0; j < seriesPeopleCrewLen; j++)
+                  Person newPerson = SDUtils.getPerson(person, wiz);
+                  if (newPerson != null)
                   {
-                    SDPerson person;
-                    if (j < seriesPeopleLen)
-                      person = seriesPeople[j];
-                    else
-                      person = seriesCrew[j - seriesPeopleLen];
-
-                    Person newPerson = SDUtils.getPerson(person, wiz);
-                    if (newPerson != null)
+                    String newCharacter = person.getCharacterName();
+                    // Remove duplicates of the same person with the same character.
+                    boolean addPerson = true;
+                    for (int k = 0; k < people.size(); k++)
                     {
-                      String newCharacter = person.getCharacterName();
-                      // Remove duplicates of the same person with the same character.
-                      boolean addPerson = true;
-                      for (int k = 0; k < people.size(); k++)
+                      if (people.get(k).getID() == newPerson.getID() && characters.get(k).equals(newCharacter))
                       {
-                        if (people.get(k).getID() == newPerson.getID() && characters.get(k).equals(newCharacter))
-                        {
-                          addPerson = false;
-                          break;
-                        }
+                        addPerson = false;
+                        break;
                       }
-                      if (!addPerson)
-                        continue;
+                    }
+                    if (!addPerson)
+                      continue;
 
-                      people.add(newPerson);
-                      characters.add(newCharacter);
+                    people.add(newPerson);
+                    characters.add(newCharacter);
 
-                      if (person.isAlias())
-                        addedAliases.add(person);
-                      else if (person.getPersonId().length() > 0)
-                        addedPeople.add(person);
-                    }
+                    if (person.isAlias())
+                      addedAliases.add(person);
+                    else if (person.getPersonId().length() > 0)
+                      addedPeople.add(person);
                   }
-
-                  Person addPeople[] = people.size() == 0 ?
-                    Pooler.EMPTY_PERSON_ARRAY : people.toArray(new Person[people.size()]);
-                  String addCharacters[] = characters.size() == 0 ?
-                    Pooler.EMPTY_STRING_ARRAY : characters.toArray(new String[characters.size()]);
-
-                  downloadedPrograms++;
-                  wiz.addSeriesInfo(legacySeriesID, showcardID, seriesTitle, "" /*Network*/,
-                    seriesDesc, "" /*Historical description*/, "" /*Premiere date*/,
-                    "" /*Finale date*/, "" /*Day of week*/,
-                    showDuration == 0 ? "" : Sage.durFormatPretty(showDuration),
-                    addPeople, addCharacters, seriesURLs);
                 }
-              }
-              catch (Exception e)
-              {
-                // This is really only useful for debugging. Sometimes Schedules Direct
-                // returns JSON data in a format that is not actually mentioned anywhere in
-                // the guide and this will generate parsing errors. This kind of series
-                // information is considered a bonus, so there is no reason to show failures
-                // when this data cannot be imported/updated.
-                SDSession.writeDebugException(e);
-                needSeriesDetails.remove(extID);
+
+                Person addPeople[] = people.size() == 0 ?
+                  Pooler.EMPTY_PERSON_ARRAY : people.toArray(new Person[people.size()]);
+                String addCharacters[] = characters.size() == 0 ?
+                  Pooler.EMPTY_STRING_ARRAY : characters.toArray(new String[characters.size()]);
+
+                downloadedPrograms++;
+                wiz.addSeriesInfo(legacySeriesID, showcardID, seriesTitle, "" /*Network*/,
+                  seriesDesc, "" /*Historical description*/, "" /*Premiere date*/,
+                  "" /*Finale date*/, "" /*Day of week*/,
+                  showDuration == 0 ? "" : Sage.durFormatPretty(showDuration),
+                  addPeople, addCharacters, seriesURLs);
               }
             }
+            catch (Exception e)
+            {
+              // This is really only useful for debugging. Sometimes Schedules Direct
+              // returns JSON data in a format that is not actually mentioned anywhere in
+              // the guide and this will generate parsing errors. This kind of series
+              // information is considered a bonus, so there is no reason to show failures
+              // when this data cannot be imported/updated.
+              SDSession.writeDebugException(e);
+              needSeriesDetails.remove(extID);
+            }
           }
         }
 
@@ -2498,6 +2488,11 @@ public class SDRipper extends EPGDataSource
       SDSageSession.writeDebugException(e);
       return false;
     }
+    finally
+    {
+      if (pipeline != null)
+        pipeline.close();
+    }
 
     return true;
   }
@@ -2968,4 +2963,188 @@ public class SDRipper extends EPGDataSource
         break;
     }
   }
+
+  // The schedules for one day for up to 1000 stations.
+  private static final class ScheduleBatch implements Callable<List<SDStationSchedule>>
+  {
+    private ScheduleBatch(String date, List<Integer> stations, List<Integer> updateStations)
+    {
+      this.dates = new String[] { date };
+      this.stations = stations;
+      this.updateStations = updateStations;
+    }
+
+    @Override
+    public List<SDStationSchedule> call() throws IOException, SDException
+    {
+      final List<SDStationSchedule> schedules = new ArrayList<>(stations.size());
+      ensureSession().getSchedules(stations, dates, new SDSession.ArrayConsumer<SDStationSchedule>()
+      {
+        @Override
+        public void accept(SDStationSchedule element)
+        {
+          schedules.add(element);
+        }
+      });
+      return schedules;
+    }
+
+    private final String dates[];
+    private final List<Integer> stations;
+    // All of the stations that still need this day. Only the thread adding the schedules changes it.
+    private final List<Integer> updateStations;
+  }
+
+  private static final class ProgramDetail
+  {
+    private ProgramDetail(SDProgram program, SDProgramImages images[])
+    {
+      this.program = program;
+      this.images = images;
+    }
+
+    private final SDProgram program;
+    private final SDProgramImages images[];
+  }
+
+  // Gets the details for up to 500 programs. Programs that can't get their images from a series
+  // have them looked up one at a time once all of the details have been received so a problem with
+  // the images for one program doesn't affect any of the others.
+  private static final class ProgramFetch implements SDFetchPipeline.Fetch<ProgramDetail>
+  {
+    private ProgramFetch(List<String> programs)
+    {
+      this.programs = programs;
+    }
+
+    @Override
+    public void run(final SDSession.ArrayConsumer<ProgramDetail> sink) throws IOException, SDException
+    {
+      final List<SDProgram> needImages = new ArrayList<>();
+      ensureSession().getPrograms(programs, new SDSession.ArrayConsumer<SDProgram>()
+      {
+        @Override
+        public void accept(SDProgram element) throws IOException, SDException
+        {
+          if (element.getCode() == 0 && !SDUtils.canGetSeries(element.getProgramID()) &&
+            element.hasImageArtwork())
+          {
+            needImages.add(element);
+          }
+          else
+          {
+            sink.accept(new ProgramDetail(element, null));
+          }
+        }
+      });
+
+      String lookup[] = new String[1];
+      for (SDProgram program : needImages)
+      {
+        SDProgramImages images[] = null;
+        try
+        {
+          lookup[0] = program.getProgramID();
+          images = ensureSession().getProgramImages(lookup);
+        }
+        catch (InterruptedIOException e)
+        {
+          throw e;
+        }
+        catch (Exception e)
+        {
+          // Don't fail the show entry if there's an issue parsing the JSON for images.
+          SDSession.writeDebugException(e);
+        }
+        sink.accept(new ProgramDetail(program, images));
+      }
+    }
+
+    private final List<String> programs;
+  }
+
+  private static final class SeriesDetail
+  {
+    private SeriesDetail(SDProgram program, SDSeriesDesc descs[], SDProgramImages images[], Exception failure)
+    {
+      this.program = program;
+      this.descs = descs;
+      this.images = images;
+      this.failure = failure;
+    }
+
+    private final SDProgram program;
+    private final SDSeriesDesc descs[];
+    private final SDProgramImages images[];
+    // This is set if the description or images couldn't be looked up.
+    private final Exception failure;
+  }
+
+  // Gets the details for up to 500 series. The description and images for each series are looked
+  // up once all of the details have been received.
+  private static final class SeriesFetch implements SDFetchPipeline.Fetch<SeriesDetail>
+  {
+    private SeriesFetch(List<String> series)
+    {
+      this.series = series;
+    }
+
+    @Override
+    public void run(final SDSession.ArrayConsumer<SeriesDetail> sink) throws IOException, SDException
+    {
+      final List<SDProgram> needLookups = new ArrayList<>();
+      ensureSession().getPrograms(series, new SDSession.ArrayConsumer<SDProgram>()
+      {
+        @Override
+        public void accept(SDProgram element) throws IOException, SDException
+        {
+          String extID = element.getProgramID();
+          if (element.getCode() == 0 && extID != null && extID.startsWith("SH") && extID.length() == 14)
+            needLookups.add(element);
+          else
+            sink.accept(new SeriesDetail(element, null, null, null));
+        }
+      });
+
+      String lookup[] = new String[1];
+      for (SDProgram program : needLookups)
+      {
+        SDSeriesDesc descs[] = null;
+        SDProgramImages images[] = null;
+        Exception failure = null;
+        try
+        {
+          char[] newID = program.getProgramID().toCharArray();
+          newID[0] = 'E';
+          newID[1] = 'P';
+          newID[10] = '0';
+          newID[11] = '0';
+          newID[12] = '0';
+          newID[13] = '1';
+
+          lookup[0] = new String(newID);
+          descs = ensureSession().getSeriesDesc(lookup);
+
+          if (program.hasImageArtwork())
+          {
+            newID[0] = 'S';
+            newID[1] = 'H';
+            lookup[0] = new String(newID, 0, 10);
+            images = ensureSession().getProgramImages(lookup);
+          }
+        }
+        catch (InterruptedIOException e)
+        {
+          throw e;
+        }
+        catch (Exception e)
+        {
+          failure = e;
+        }
+        sink.accept(new SeriesDetail(program, descs, images, failure));
+      }
+    }
+
+    private final List<String> series;
+  }
 }
@@ -102,7 +102,7 @@ public class SDSageSession extends SDSession
   }
 
   @Override
-  public synchronized InputStreamReader post(URL url, byte sendBytes[], int off, int len) throws IOException, SDException
+  public InputStreamReader post(URL url, byte sendBytes[], int off, int len) throws IOException, SDException
   {
     return post(url, sendBytes, off, len, true);
   }
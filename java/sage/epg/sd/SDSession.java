@@ -21,7 +21,10 @@ import sage.epg.sd.gson.Gson;
 import sage.epg.sd.gson.JsonArray;
 import sage.epg.sd.gson.JsonElement;
 import sage.epg.sd.gson.JsonObject;
+import sage.epg.sd.gson.JsonParseException;
 import sage.epg.sd.gson.JsonSyntaxException;
+import sage.epg.sd.gson.stream.JsonReader;
+import sage.epg.sd.gson.stream.JsonToken;
 import sage.epg.sd.gson.stream.JsonWriter;
 import sage.epg.sd.json.headend.SDHeadend;
 import sage.epg.sd.json.headend.SDHeadendLineup;
@@ -55,7 +58,9 @@ import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 public abstract class SDSession
 {
@@ -156,10 +161,11 @@ public abstract class SDSession
     GET_SCHEDULES_MD5 = newGetSchedulesMd5;
   }
 
-  // All communications that require authentication will require this token.
-  protected String token;
+  // All communications that require authentication will require this token. These are volatile
+  // because requests can be made from more than one thread at a time.
+  protected volatile String token;
   // This value is set to the time in milliseconds that we will get a new token.
-  protected long tokenExpiration;
+  protected volatile long tokenExpiration;
   // The username to be used for authentication.
   protected final String username;
   // The password must be a SHA-1 hash in lowercase hex.
@@ -167,11 +173,19 @@ public abstract class SDSession
   // This is populated when a service is requested to ensure the service actually exists. This is
   // only used while setting up a new lineup, and is a very small array, so this will be sufficient.
   SDAvailableService services[];
-  // This is used to send POST and PUT.
+  // This is used to send POST and PUT. Only use it while synchronized on the session.
   ByteArrayOutputStream outputStream;
-  // This is used to create JSON to send POST and PUT.
+  // This is used to create JSON to send POST and PUT. Only use it while synchronized on the session.
   JsonWriter jsonWriter;
 
+  /**
+   * Receives each element of a JSON array reply as soon as it has been decoded.
+   */
+  public interface ArrayConsumer<T>
+  {
+    public void accept(T element) throws IOException, SDException;
+  }
+
   /**
    * Create a new session with Schedules Direct.
    *
@@ -405,55 +419,45 @@ public abstract class SDSession
 
   public abstract InputStreamReader put(URL url, byte sendBytes[], int off, int len) throws IOException, SDException;
 
-  public synchronized InputStreamReader putAuth(URL url, byte sendBytes[], int off, int len) throws IOException, SDException
+  public InputStreamReader putAuth(URL url, byte sendBytes[], int off, int len) throws IOException, SDException
   {
     authenticate();
     return put(url, sendBytes, off, len);
   }
 
-  public synchronized InputStreamReader putAuth(URL url, JsonElement jsonElement) throws IOException, SDException
+  public InputStreamReader putAuth(URL url, JsonElement jsonElement) throws IOException, SDException
   {
     authenticate();
     return put(url, jsonElement);
   }
 
-  public synchronized InputStreamReader put(URL url, JsonElement jsonElement) throws IOException, SDException
+  public InputStreamReader put(URL url, JsonElement jsonElement) throws IOException, SDException
   {
-    if (jsonWriter == null)
-    {
-      outputStream = new ByteArrayOutputStream(32768);
-      jsonWriter = gson.newJsonWriter(new OutputStreamWriter(outputStream, OUT_CHARSET));
-    }
-    else
-    {
-      outputStream.reset();
-    }
-
-    gson.toJson(jsonElement, jsonWriter);
-    jsonWriter.flush();
-
-    // This creates a new array on every POST, but it's better than GSON returning a string and then
-    // we have to convert the string into a new byte array. If this really ends up being a
-    // performance killer, we can create an Appendable implementation.
-    byte sendBytes [] = outputStream.toByteArray();
+    byte sendBytes [] = toJsonBytes(jsonElement);
     return put(url, sendBytes, 0, sendBytes.length);
   }
 
   public abstract InputStreamReader post(URL url, byte sendBytes[], int off, int len) throws IOException, SDException;
 
-  public synchronized InputStreamReader postAuth(URL url, byte sendBytes[], int off, int len) throws IOException, SDException
+  public InputStreamReader postAuth(URL url, byte sendBytes[], int off, int len) throws IOException, SDException
   {
     authenticate();
     return post(url, sendBytes, off, len);
   }
 
-  public synchronized InputStreamReader postAuth(URL url, JsonElement jsonElement) throws IOException, SDException
+  public InputStreamReader postAuth(URL url, JsonElement jsonElement) throws IOException, SDException
   {
     authenticate();
     return post(url, jsonElement);
   }
 
-  public synchronized InputStreamReader post(URL url, JsonElement jsonElement) throws IOException, SDException
+  public InputStreamReader post(URL url, JsonElement jsonElement) throws IOException, SDException
+  {
+    byte sendBytes [] = toJsonBytes(jsonElement);
+    return post(url, sendBytes, 0, sendBytes.length);
+  }
+
+  private synchronized byte[] toJsonBytes(JsonElement jsonElement) throws IOException
   {
     if (jsonWriter == null)
     {
@@ -471,13 +475,12 @@ public abstract class SDSession
     // This creates a new array on every POST, but it's better than GSON returning a string and then
     // we have to convert the string into a new byte array. If this really ends up being a
     // performance killer, we can create an Appendable implementation.
-    byte sendBytes [] = outputStream.toByteArray();
-    return post(url, sendBytes, 0, sendBytes.length);
+    return outputStream.toByteArray();
   }
 
   public abstract InputStreamReader get(URL url) throws IOException, SDException;
 
-  public synchronized InputStreamReader getAuth(URL url) throws IOException, SDException
+  public InputStreamReader getAuth(URL url) throws IOException, SDException
   {
     authenticate();
     return get(url);
@@ -485,7 +488,7 @@ public abstract class SDSession
 
   public abstract InputStreamReader delete(URL url) throws IOException, SDException;
 
-  public synchronized InputStreamReader deleteAuth(URL url) throws IOException, SDException
+  public InputStreamReader deleteAuth(URL url) throws IOException, SDException
   {
     authenticate();
     return delete(url);
@@ -701,6 +704,41 @@ public abstract class SDSession
     return returnValue;
   }
 
+  // Decodes the reply one element at a time so each one can be used while the rest of it is still
+  // being received, and the whole array never needs to be in memory at once.
+  private <T> void postAuthJsonArray(URL url, Class<T> elementClass, JsonElement postElement, ArrayConsumer<T> consumer) throws IOException, SDException
+  {
+    InputStreamReader reader = postAuth(url, postElement);
+
+    try
+    {
+      JsonReader jsonReader = gson.newJsonReader(reader);
+      if (jsonReader.peek() != JsonToken.BEGIN_ARRAY)
+        throw new SDException(SDErrors.SAGETV_COMMUNICATION_ERROR);
+
+      jsonReader.beginArray();
+      while (jsonReader.hasNext())
+      {
+        T element = gson.fromJson(jsonReader, elementClass);
+        if (element == null)
+          throw new SDException(SDErrors.SAGETV_COMMUNICATION_ERROR);
+        consumer.accept(element);
+      }
+      jsonReader.endArray();
+    }
+    catch (JsonParseException e)
+    {
+      throw new SDException(SDErrors.SAGETV_COMMUNICATION_ERROR);
+    }
+    finally
+    {
+      try
+      {
+        reader.close();
+      } catch (Exception e) {}
+    }
+  }
+
   private <T> T deleteJson(URL url, Class<T> returnClass) throws IOException, SDException
   {
     InputStreamReader reader = delete(url);
@@ -938,6 +976,56 @@ public abstract class SDSession
     return returnValues;
   }
 
+  /**
+   * Get the details for a collection of programs, handing each one to the consumer as soon as it's
+   * decoded. (limit 5000)
+   * <p/>
+   * This works the same as {@link #getPrograms(Collection)}, except programs that return the soft
+   * retry error code (6001) are requested once more after the rest of them have been received and
+   * the reply isn't kept in memory. The consumer is called on the calling thread.
+   *
+   * @param programs The programs to get.
+   * @param consumer Receives the details as provided by Schedules Direct.
+   * @throws IOException If there is an I/O related error.
+   * @throws SDException If there is a problem working with Schedules Direct.
+   */
+  public void getPrograms(Collection<String> programs, final ArrayConsumer<SDProgram> consumer) throws IOException, SDException
+  {
+    if (programs.size() > 5000)
+      throw new InvalidParameterException("You cannot get more than 5000 programs in one query.");
+
+    JsonArray submit = new JsonArray();
+    for (String program : programs)
+    {
+      submit.add(SDUtils.fromSageTVtoProgram(program));
+    }
+
+    final List<String> softRetry = new ArrayList<String>();
+    postAuthJsonArray(GET_PROGRAMS, SDProgram.class, submit, new ArrayConsumer<SDProgram>()
+    {
+      @Override
+      public void accept(SDProgram element) throws IOException, SDException
+      {
+        // The program ID is returned with the error code 6001.
+        if (element.getCode() == 6001)
+          softRetry.add(element.getProgramID());
+        else
+          consumer.accept(element);
+      }
+    });
+
+    // Retry any soft failures once before returning the results.
+    if (!softRetry.isEmpty())
+    {
+      submit = new JsonArray();
+      for (String program : softRetry)
+      {
+        submit.add(program);
+      }
+      postAuthJsonArray(GET_PROGRAMS, SDProgram.class, submit, consumer);
+    }
+  }
+
   /**
    * Get the show description for the provided programs. (limit 500, episodes (EP) only)
    * <p/>
@@ -1115,6 +1203,41 @@ public abstract class SDSession
     return returnValues;
   }
 
+  /**
+   * Get the schedules for the provided station IDs, handing each one to the consumer as soon as
+   * it's decoded. (limit 5000)
+   * <p/>
+   * The same provided dates will be used for all provided station IDs. The consumer is called on
+   * the calling thread.
+   *
+   * @param stationIDs The stations to get the schedules for.
+   * @param dates The dates to get schedules for the provided stations IDs.
+   * @param consumer Receives the schedules as provided by Schedules Direct.
+   * @throws IOException If there is an I/O related error.
+   * @throws SDException If there is a problem working with Schedules Direct.
+   */
+  public void getSchedules(Collection<Integer> stationIDs, String dates[], ArrayConsumer<SDStationSchedule> consumer) throws IOException, SDException
+  {
+    if (stationIDs.size() > 5000)
+      throw new InvalidParameterException("You cannot get more than 5000 station schedules in one query.");
+
+    JsonArray submit = new JsonArray();
+    for (int stationID : stationIDs)
+    {
+      JsonObject object = new JsonObject();
+      object.addProperty("stationID", SDUtils.fromSageTVtoStationID(stationID));
+      JsonArray jsonDates = new JsonArray();
+      for (String date: dates)
+      {
+        jsonDates.add(date);
+      }
+      object.add("date", jsonDates);
+      submit.add(object);
+    }
+
+    postAuthJsonArray(GET_SCHEDULES, SDStationSchedule.class, submit, consumer);
+  }
+
   /**
    * Get the md5 hashes for schedules for the provided station IDs. (limit 5000)
    * <p/>
@@ -44,7 +44,6 @@ import sage.epg.sd.json.schedules.SDProgramScheduleDeserializer;
 import sage.epg.sd.json.schedules.SDScheduleMd5Array;
 import sage.epg.sd.json.schedules.SDScheduleMd5ArrayDeserializer;
 
-import javax.net.ssl.HttpsURLConnection;
 import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -52,6 +51,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -84,12 +84,12 @@ public class SDUtils
   /**
    * Determine what kind of stream is returned and wrap it with an appropriate processing layer.
    *
-   * @param connection A <code>HttpsURLConnection</code> ready to receive.
+   * @param connection A <code>HttpURLConnection</code> ready to receive.
    * @return An <code>InputStreamReader</code> based on the <code>InputStream</code> obtained from
-   *         the provided <code>HttpsURLConnection</code>.
+   *         the provided <code>HttpURLConnection</code>.
    * @throws IOException
    */
-  public static InputStreamReader getStream(HttpsURLConnection connection) throws IOException, SDException
+  public static InputStreamReader getStream(HttpURLConnection connection) throws IOException, SDException
   {
     // Determine how we should get the stream and if we should assume there's an error.
     boolean errorPresent = connection.getResponseCode() == 400;
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2015 The SageTV Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sage.io;
+
+import sage.Sage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Keeps several READ requests outstanding on a media server connection while a remote file is being read
+ * sequentially, so reading it isn't limited to one request for every round trip. The media server answers the
+ * commands on a connection in the order they were sent and always replies to a READ with exactly the number of bytes
+ * that were asked for, so the replies are received in order into a buffer for each request.
+ * <p>
+ * Nothing is requested past the part of the file that's known to be there, since the media server waits for data
+ * that isn't in a file yet. Nothing else can be sent on the connection until all of the replies have been received,
+ * which is what {@link #receiveAll()} is for. This isn't thread safe; the files using it synchronize their reads.
+ */
+public final class RemoteReadAhead
+{
+  // How many reads need to follow on from the last one before requests are sent ahead of them
+  private static final int SEQUENTIAL_READS = 2;
+
+  public interface Connection
+  {
+    /**
+     * Sends the commands to the media server.
+     */
+    public void send(byte[] command) throws IOException;
+
+    /**
+     * Reads exactly len bytes of the replies.
+     */
+    public void receive(byte[] b, int off, int len) throws IOException;
+  }
+
+  /**
+   * @param conn The connection the requests are sent on.
+   * @param requestSize The number of bytes asked for in each request.
+   * @param maxRequests The most requests that will be outstanding at once.
+   */
+  public RemoteReadAhead(Connection conn, int requestSize, int maxRequests)
+  {
+    this.conn = conn;
+    this.requestSize = Math.max(4096, requestSize);
+    this.maxRequests = Math.max(1, maxRequests);
+  }
+
+  /**
+   * Reads from the replies to the requests that are outstanding. If there aren't any and the reads have been
+   * sequential, new ones are sent starting at this position.
+   *
+   * @param position The position in the file to read from.
+   * @param dst The buffer to read into.
+   * @param availSize How much of the file is known to be there.
+   * @return The number of bytes read, or -1 if the caller needs to read this itself; nothing is outstanding then.
+   * @throws IOException If there is an I/O related error. Call {@link #reset()} before using the connection again.
+   */
+  public int read(long position, ByteBuffer dst, long availSize) throws IOException
+  {
+    if (!dst.hasRemaining())
+      return 0;
+    // Skip ahead to the request this is in; if it's not in any of them then this is a seek and they're not needed
+    while (!requests.isEmpty())
+    {
+      Request first = requests.peekFirst();
+      if (position >= first.position && position < first.position + first.length)
+        break;
+      if (position < first.position || position >= requestedEnd)
+      {
+        cancel();
+        break;
+      }
+      if (!first.received)
+        receive(first);
+      free(requests.removeFirst());
+    }
+    if (requests.isEmpty())
+    {
+      sequentialReads = (position == nextPosition) ? sequentialReads + 1 : 0;
+      nextPosition = position + dst.remaining();
+      if (sequentialReads < SEQUENTIAL_READS || !sendRequests(position, availSize))
+        return -1;
+    }
+    int total = 0;
+    while (dst.hasRemaining() && !requests.isEmpty())
+    {
+      Request first = requests.peekFirst();
+      if (!first.received)
+        receive(first);
+      int offset = (int) (position - first.position);
+      int numBytes = Math.min(dst.remaining(), first.length - offset);
+      dst.put(first.data, offset, numBytes);
+      position += numBytes;
+      total += numBytes;
+      if (offset + numBytes == first.length)
+      {
+        free(requests.removeFirst());
+        sendRequests(position, availSize);
+      }
+    }
+    nextPosition = position;
+    return total;
+  }
+
+  /**
+   * Receives the replies to all of the outstanding requests so other commands can be sent. What was read can still be
+   * used by the next read.
+   *
+   * @throws IOException If there is an I/O related error. Call {@link #reset()} before using the connection again.
+   */
+  public void receiveAll() throws IOException
+  {
+    for (Request request : requests)
+    {
+      if (!request.received)
+        receive(request);
+    }
+  }
+
+  /**
+   * Receives and drops the replies to all of the outstanding requests.
+   *
+   * @throws IOException If there is an I/O related error. Call {@link #reset()} before using the connection again.
+   */
+  public void cancel() throws IOException
+  {
+    receiveAll();
+    reset();
+  }
+
+  /**
+   * Forgets about all of the requests without receiving them. This is for when the connection has been closed.
+   */
+  public void reset()
+  {
+    while (!requests.isEmpty())
+      free(requests.removeFirst());
+    sequentialReads = 0;
+  }
+
+  /**
+   * Returns true if there are requests that haven't been fully read yet.
+   */
+  public boolean isActive()
+  {
+    return !requests.isEmpty();
+  }
+
+  // Fills up the window of outstanding requests, which starts at position if there aren't any yet
+  private boolean sendRequests(long position, long availSize) throws IOException
+  {
+    if (requests.isEmpty())
+      requestedEnd = position;
+    StringBuilder sb = null;
+    while (requests.size() < maxRequests && requestedEnd < availSize)
+    {
+      int length = (int) Math.min(requestSize, availSize - requestedEnd);
+      Request request = new Request();
+      request.position = requestedEnd;
+      request.length = length;
+      request.data = freeBuffers.isEmpty() ? new byte[requestSize] : freeBuffers.removeFirst();
+      requests.addLast(request);
+      if (sb == null)
+        sb = new StringBuilder();
+      sb.append("READ ").append(requestedEnd).append(' ').append(length).append("\r\n");
+      requestedEnd += length;
+    }
+    if (sb != null)
+      conn.send(sb.toString().getBytes(Sage.BYTE_CHARSET));
+    return !requests.isEmpty();
+  }
+
+  // The replies come back in order, so everything before this request has to have been received already
+  private void receive(Request request) throws IOException
+  {
+    conn.receive(request.data, 0, request.length);
+    request.received = true;
+  }
+
+  private void free(Request request)
+  {
+    freeBuffers.addLast(request.data);
+    request.data = null;
+  }
+
+  private static final class Request
+  {
+    long position;
+    int length;
+    byte[] data;
+    boolean received;
+  }
+
+  private final Connection conn;
+  private final int requestSize;
+  private final int maxRequests;
+  private final ArrayDeque<Request> requests = new ArrayDeque<Request>();
+  private final ArrayDeque<byte[]> freeBuffers = new ArrayDeque<byte[]>();
+  private long requestedEnd;
+  private long nextPosition = -1;
+  private int sequentialReads;
+}
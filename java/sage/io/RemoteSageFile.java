@@ -21,6 +21,7 @@ import sage.SageTVConnection;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 public class RemoteSageFile implements SageFileSource
@@ -40,6 +41,9 @@ public class RemoteSageFile implements SageFileSource
   private Socket socket = null;
   private DataOutputStream outStream = null;
   private DataInputStream inStream = null;
+  // Used to keep several reads outstanding when the file is read sequentially
+  private RemoteReadAhead readAhead = null;
+  private byte[] singleByte;
 
   /**
    * Open a file remotely via the media server for read/write.
@@ -206,10 +210,37 @@ public class RemoteSageFile implements SageFileSource
       disconnect();
       throw new IOException("Error opening remote file of:" + response);
     }
+
+    // Transcoded output is only read as it's produced, so there's nothing to read ahead of.
+    if (readAhead == null && readonly && (transcodeMode == null || transcodeMode.length() == 0))
+    {
+      int maxRequests = Sage.getInt("remote_file_read_ahead_requests", 4);
+      if (maxRequests > 0)
+      {
+        readAhead = new RemoteReadAhead(new RemoteReadAhead.Connection()
+        {
+          @Override
+          public void send(byte[] command) throws IOException
+          {
+            outStream.write(command);
+            outStream.flush();
+          }
+
+          @Override
+          public void receive(byte[] b, int off, int len) throws IOException
+          {
+            inStream.readFully(b, off, len);
+          }
+        }, Sage.getInt("remote_file_read_ahead_request_size", 65536), maxRequests);
+      }
+    }
   }
 
   private void disconnect()
   {
+    // Any replies that are still coming are lost with the connection.
+    if (readAhead != null)
+      readAhead.reset();
     if (socket != null)
     {
       try
@@ -271,6 +302,13 @@ public class RemoteSageFile implements SageFileSource
   {
     int returnValue;
 
+    if (readAhead != null)
+    {
+      if (singleByte == null)
+        singleByte = new byte[1];
+      return (read(singleByte, 0, 1) == -1) ? -1 : (singleByte[0] & 0xFF);
+    }
+
     if (getMaxRead(remoteOffset, 1) == 0)
     {
       // End of the file.
@@ -314,6 +352,24 @@ public class RemoteSageFile implements SageFileSource
     if (len == 0)
       return -1;
 
+    if (readAhead != null)
+    {
+      try
+      {
+        int readBytes = readAhead.read(remoteOffset, ByteBuffer.wrap(b, off, len), maxRemoteSize);
+        if (readBytes > 0)
+        {
+          remoteOffset += readBytes;
+          return readBytes;
+        }
+      }
+      catch (IOException e)
+      {
+        // Read it directly on a new connection.
+        reconnect();
+      }
+    }
+
     try
     {
       outStream.write(("READ " + remoteOffset + " " + len + "\r\n").getBytes(Sage.BYTE_CHARSET));
@@ -574,6 +630,9 @@ public class RemoteSageFile implements SageFileSource
   {
     try
     {
+      // The replies to any reads that are still outstanding come first.
+      if (readAhead != null)
+        readAhead.receiveAll();
       outStream.write(command, off, len);
       outStream.flush();
       return Sage.readLineBytes(inStream);
@@ -0,0 +1,409 @@
+/*
+ * Copyright 2015 The SageTV Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sage.media.format;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * On disk cache of the format information FFMPEG reports for files, so detecting the format of a file that hasn't
+ * changed doesn't need to launch FFMPEG again. Entries are keyed by the canonical path of the file and are only used
+ * if the file still has the same size and last modified time.
+ * <p>
+ * The store is a log of records that new entries are appended to; each one is the path, size, last modified time
+ * and the deflated FFMPEG output. Only the location of each record is kept in memory. When it's loaded (or when it's
+ * grown too big) it's rewritten with just the current entries, and anything after a damaged record is dropped.
+ */
+final class FormatCache
+{
+  private static final int MAGIC = 0x53464331; // SFC1
+  private static final int MAX_PATH_LENGTH = 32768;
+  private static final int MAX_DATA_LENGTH = 4*1024*1024;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static class FormatCacheHolder
+  {
+    public static final FormatCache instance = new FormatCache(new File(sage.Sage.getPath("cache"), "formatcache.bin"),
+        sage.Sage.getInt("format_detection_cache_max_entries", 100000));
+  }
+
+  static FormatCache getInstance()
+  {
+    return FormatCacheHolder.instance;
+  }
+
+  /**
+   * Returns the key for the current state of a file, or null if it can't be cached.
+   */
+  static Key getKey(File f)
+  {
+    long length = f.length();
+    long lastModified = f.lastModified();
+    if (length == 0 || lastModified == 0)
+      return null;
+    String path;
+    try
+    {
+      path = f.getCanonicalPath();
+    }
+    catch (IOException e)
+    {
+      path = f.getAbsolutePath();
+    }
+    return new Key(path, length, lastModified);
+  }
+
+  FormatCache(File storeFile, int maxEntries)
+  {
+    this.storeFile = storeFile;
+    this.maxEntries = Math.max(1, maxEntries);
+    entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest)
+      {
+        return size() > FormatCache.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Returns the cached FFMPEG output for the file, or null if there isn't one for it the way it is now.
+   */
+  synchronized String get(Key key)
+  {
+    if (!open())
+      return null;
+    CacheEntry entry = entries.get(key.path);
+    if (entry == null || entry.length != key.length || entry.lastModified != key.lastModified)
+    {
+      misses++;
+      return null;
+    }
+    try
+    {
+      byte[] data = new byte[entry.dataLength];
+      store.seek(entry.dataOffset);
+      store.readFully(data);
+      Inflater inflater = new Inflater();
+      try
+      {
+        inflater.setInput(data);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length * 4);
+        byte[] buf = new byte[4096];
+        while (!inflater.finished())
+        {
+          int numRead = inflater.inflate(buf);
+          if (numRead == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+            throw new DataFormatException("truncated data");
+          bos.write(buf, 0, numRead);
+        }
+        hits++;
+        return new String(bos.toByteArray(), UTF8);
+      }
+      finally
+      {
+        inflater.end();
+      }
+    }
+    catch (IOException | DataFormatException e)
+    {
+      if (sage.Sage.DBG) System.out.println("ERROR reading format cache entry for " + key.path + " of:" + e);
+      entries.remove(key.path);
+      return null;
+    }
+  }
+
+  synchronized void put(Key key, String info)
+  {
+    if (!open())
+      return;
+    byte[] pathBytes = key.path.getBytes(UTF8);
+    byte[] data = deflate(info.getBytes(UTF8));
+    if (pathBytes.length > MAX_PATH_LENGTH || data.length > MAX_DATA_LENGTH)
+      return;
+    try
+    {
+      long offset = store.length();
+      store.seek(offset);
+      store.write(encodeRecord(pathBytes, key.length, key.lastModified, data));
+      entries.put(key.path, new CacheEntry(key.length, key.lastModified, offset + 4 + pathBytes.length + 20,
+          data.length));
+      numRecords++;
+      // Rewrite it once it's mostly old entries
+      if (numRecords > 2 * Math.max(maxEntries / 2, entries.size()) && numRecords > 1000)
+        compact();
+    }
+    catch (IOException e)
+    {
+      if (sage.Sage.DBG) System.out.println("ERROR writing to format cache file " + storeFile + " of:" + e);
+      closeStore();
+      failed = true;
+    }
+  }
+
+  synchronized int size()
+  {
+    return entries.size();
+  }
+
+  synchronized void close()
+  {
+    closeStore();
+  }
+
+  public synchronized String toString()
+  {
+    return "FormatCache[" + storeFile + " entries=" + entries.size() + " records=" + numRecords + " hits=" + hits +
+        " misses=" + misses + ']';
+  }
+
+  // Opens and loads the store the first time it's used
+  private boolean open()
+  {
+    if (store != null)
+      return true;
+    if (failed)
+      return false;
+    try
+    {
+      boolean rewrite = load();
+      store = new RandomAccessFile(storeFile, "rw");
+      if (rewrite)
+        compact();
+      if (sage.Sage.DBG) System.out.println("Loaded " + this);
+      return true;
+    }
+    catch (IOException e)
+    {
+      if (sage.Sage.DBG) System.out.println("ERROR opening format cache file " + storeFile + " of:" + e);
+      closeStore();
+      failed = true;
+      return false;
+    }
+  }
+
+  // Reads the locations of all of the entries; returns true if the store should be rewritten
+  private boolean load() throws IOException
+  {
+    entries.clear();
+    numRecords = 0;
+    if (!storeFile.isFile() || storeFile.length() < 4)
+      return true;
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(storeFile), 65536));
+    try
+    {
+      if (in.readInt() != MAGIC)
+        return true;
+      long pos = 4;
+      while (true)
+      {
+        int pathLength;
+        try
+        {
+          pathLength = in.readInt();
+        }
+        catch (EOFException e)
+        {
+          break;
+        }
+        if (pathLength <= 0 || pathLength > MAX_PATH_LENGTH)
+          return true;
+        byte[] pathBytes = new byte[pathLength];
+        in.readFully(pathBytes);
+        long length = in.readLong();
+        long lastModified = in.readLong();
+        int dataLength = in.readInt();
+        if (dataLength <= 0 || dataLength > MAX_DATA_LENGTH)
+          return true;
+        long dataOffset = pos + 4 + pathLength + 20;
+        if (in.skipBytes(dataLength) != dataLength)
+          return true;
+        pos = dataOffset + dataLength;
+        entries.put(new String(pathBytes, UTF8), new CacheEntry(length, lastModified, dataOffset, dataLength));
+        numRecords++;
+      }
+    }
+    catch (EOFException e)
+    {
+      // The last record was cut off
+      return true;
+    }
+    finally
+    {
+      in.close();
+    }
+    // Rewrite it if a quarter of it is old entries
+    return numRecords > entries.size() + entries.size() / 4;
+  }
+
+  // Rewrites the store with only the current entries
+  private void compact() throws IOException
+  {
+    File tmpFile = new File(storeFile.getPath() + ".tmp");
+    List<Map.Entry<String, CacheEntry>> currEntries = new ArrayList<Map.Entry<String, CacheEntry>>(entries.entrySet());
+    Map<String, CacheEntry> newEntries = new LinkedHashMap<String, CacheEntry>();
+    DataOutputStream out = new DataOutputStream(new java.io.BufferedOutputStream(new java.io.FileOutputStream(tmpFile),
+        65536));
+    try
+    {
+      out.writeInt(MAGIC);
+      long pos = 4;
+      for (Map.Entry<String, CacheEntry> ent : currEntries)
+      {
+        CacheEntry entry = ent.getValue();
+        byte[] data = new byte[entry.dataLength];
+        try
+        {
+          store.seek(entry.dataOffset);
+          store.readFully(data);
+        }
+        catch (IOException e)
+        {
+          continue;
+        }
+        byte[] pathBytes = ent.getKey().getBytes(UTF8);
+        out.write(encodeRecord(pathBytes, entry.length, entry.lastModified, data));
+        long dataOffset = pos + 4 + pathBytes.length + 20;
+        newEntries.put(ent.getKey(), new CacheEntry(entry.length, entry.lastModified, dataOffset, data.length));
+        pos = dataOffset + data.length;
+      }
+    }
+    finally
+    {
+      out.close();
+    }
+    closeStore();
+    if (!storeFile.delete() && storeFile.exists())
+      throw new IOException("Can't replace " + storeFile);
+    if (!tmpFile.renameTo(storeFile))
+      throw new IOException("Can't rename " + tmpFile + " to " + storeFile);
+    store = new RandomAccessFile(storeFile, "rw");
+    // The map is in access order, so adding them again in the same order keeps that
+    entries.clear();
+    entries.putAll(newEntries);
+    numRecords = entries.size();
+  }
+
+  private void closeStore()
+  {
+    if (store != null)
+    {
+      try
+      {
+        store.close();
+      }
+      catch (IOException e){}
+      store = null;
+    }
+  }
+
+  private static byte[] encodeRecord(byte[] pathBytes, long length, long lastModified, byte[] data)
+  {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(pathBytes.length + data.length + 24);
+    DataOutputStream out = new DataOutputStream(bos);
+    try
+    {
+      out.writeInt(pathBytes.length);
+      out.write(pathBytes);
+      out.writeLong(length);
+      out.writeLong(lastModified);
+      out.writeInt(data.length);
+      out.write(data);
+    }
+    catch (IOException e)
+    {
+      // Can't happen with a ByteArrayOutputStream
+    }
+    return bos.toByteArray();
+  }
+
+  private static byte[] deflate(byte[] raw)
+  {
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    try
+    {
+      deflater.setInput(raw);
+      deflater.finish();
+      ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.max(64, raw.length / 3));
+      byte[] buf = new byte[4096];
+      while (!deflater.finished())
+      {
+        int numBytes = deflater.deflate(buf);
+        bos.write(buf, 0, numBytes);
+      }
+      return bos.toByteArray();
+    }
+    finally
+    {
+      deflater.end();
+    }
+  }
+
+  static final class Key
+  {
+    Key(String path, long length, long lastModified)
+    {
+      this.path = path;
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+
+    final String path;
+    final long length;
+    final long lastModified;
+  }
+
+  private static final class CacheEntry
+  {
+    CacheEntry(long length, long lastModified, long dataOffset, int dataLength)
+    {
+      this.length = length;
+      this.lastModified = lastModified;
+      this.dataOffset = dataOffset;
+      this.dataLength = dataLength;
+    }
+
+    final long length;
+    final long lastModified;
+    final long dataOffset;
+    final int dataLength;
+  }
+
+  private final File storeFile;
+  private final int maxEntries;
+  private final LinkedHashMap<String, CacheEntry> entries;
+  private RandomAccessFile store;
+  private boolean failed;
+  private int numRecords;
+  private long hits;
+  private long misses;
+}
@@ -188,7 +188,7 @@ public class FormatParser
       }
 
       if (sage.Sage.DBG) System.out.println("Now using external format detector for: " + f);
-      String ffmpegInfo = getFFMPEGFormatInfo(f.toString());
+      String ffmpegInfo = getFFMPEGFormatInfo(f);
       if ("TRUE".equals(sage.Sage.get("debug_ffmpeg_format_info", null)))
         System.out.println("File:" + f + " len=" + f.length() + " FFMPEG Info:" + ffmpegInfo);
       String formatName = extractContainerFromFFMPEGInfo(ffmpegInfo);
@@ -465,7 +465,7 @@ public class FormatParser
       return 0;
     try
     {
-      String ffmpegInfo = getFFMPEGFormatInfo(f.toString());
+      String ffmpegInfo = getFFMPEGFormatInfo(f);
       long rv = extractDurationFromFFMPEGInfo(ffmpegInfo);
       if (rv > 0)
         return rv;
@@ -734,6 +734,32 @@ public class FormatParser
     return null;
   }
 
+  // Uses the format cache for files that aren't being written to, so FFMPEG only needs to look at a file again if
+  // it's changed since the last time
+  private static String getFFMPEGFormatInfo(java.io.File f)
+  {
+    if (!sage.Sage.getBoolean("format_detection_cache", true) || sage.MMC.getInstance().isRecording(f) ||
+        sage.FileDownloader.isDownloading(f))
+      return getFFMPEGFormatInfo(f.toString());
+    FormatCache.Key key = FormatCache.getKey(f);
+    if (key == null)
+      return getFFMPEGFormatInfo(f.toString());
+    FormatCache cache = FormatCache.getInstance();
+    String rv = cache.get(key);
+    if (rv != null)
+    {
+      if (sage.Sage.DBG) System.out.println("Using cached format detection for: " + f);
+      return rv;
+    }
+    rv = getFFMPEGFormatInfo(f.toString());
+    // Don't keep failures, FFMPEG may be able to handle it later; and the file can't have changed while it was
+    // being looked at
+    if (rv != null && extractContainerFromFFMPEGInfo(rv) != null && f.length() == key.length &&
+        f.lastModified() == key.lastModified)
+      cache.put(key, rv);
+    return rv;
+  }
+
   public static String getFFMPEGFormatInfo(String f)
   {
     // Use FFMPEG to try to get the duration of the file
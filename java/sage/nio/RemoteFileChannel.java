@@ -17,6 +17,7 @@ package sage.nio;
 
 import sage.IOUtils;
 import sage.Sage;
+import sage.io.RemoteReadAhead;
 
 import java.io.File;
 import java.io.IOException;
@@ -48,6 +49,8 @@ public class RemoteFileChannel extends FileChannel implements SageFileChannel
   private ByteBuffer commBuf = ByteBuffer.allocateDirect(4096);
   private ByteBuffer transBuf;
   private boolean closed = false;
+  // Used to keep several reads outstanding when the file is read sequentially
+  private RemoteReadAhead readAhead;
 
   /**
    * Open a remote file as a <code>FileChannel</code> for read only access.
@@ -114,6 +117,9 @@ public class RemoteFileChannel extends FileChannel implements SageFileChannel
     // If for some reason we get an error when trying to close the file, just disconnect.
     if (reconnect)
       disconnect();
+    // Anything that was read ahead is from the old file.
+    else if (readAhead != null)
+      readAhead.reset();
 
     remoteFilename = name;
     activeFile = false;
@@ -166,11 +172,42 @@ public class RemoteFileChannel extends FileChannel implements SageFileChannel
   private void connect() throws IOException
   {
     socket = java.nio.channels.SocketChannel.open(new java.net.InetSocketAddress(hostname, 7818));
+    if (readAhead == null && readonly)
+    {
+      int maxRequests = Sage.getInt("remote_file_read_ahead_requests", 4);
+      if (maxRequests > 0)
+      {
+        readAhead = new RemoteReadAhead(new RemoteReadAhead.Connection()
+        {
+          @Override
+          public void send(byte[] command) throws IOException
+          {
+            ByteBuffer buf = ByteBuffer.wrap(command);
+            while (buf.hasRemaining())
+              socket.write(buf);
+          }
+
+          @Override
+          public void receive(byte[] b, int off, int len) throws IOException
+          {
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            while (buf.hasRemaining())
+            {
+              if (socket.read(buf) == -1)
+                throw new java.io.EOFException();
+            }
+          }
+        }, Sage.getInt("remote_file_read_ahead_request_size", 65536), maxRequests);
+      }
+    }
     open();
   }
 
   private void disconnect()
   {
+    // Any replies that are still coming are lost with the connection.
+    if (readAhead != null)
+      readAhead.reset();
     if (socket != null)
     {
       synchronized (this)
@@ -223,6 +260,9 @@ public class RemoteFileChannel extends FileChannel implements SageFileChannel
 
     try
     {
+      // The replies to this would come after the ones to any reads that are still outstanding.
+      if (readAhead != null)
+        readAhead.cancel();
       commBuf.clear();
       commBuf.put(("READ " + position + " " + count + "\r\n").getBytes(Sage.BYTE_CHARSET));
       commBuf.flip();
@@ -551,6 +591,38 @@ public class RemoteFileChannel extends FileChannel implements SageFileChannel
       transBuf =  ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE);
     }
 
+    if (readAhead != null)
+    {
+      long length = getMaxRead(position, count);
+      long transferred = 0;
+      while (transferred < length)
+      {
+        transBuf.clear();
+        transBuf.limit((int) Math.min(transBuf.capacity(), length - transferred));
+        try
+        {
+          bytesRead = readAhead.read(position + transferred, transBuf, maxRemoteSize);
+        }
+        catch (IOException e)
+        {
+          // Read the rest of it directly on a new connection.
+          reconnect();
+          break;
+        }
+        if (bytesRead <= 0)
+          break;
+
+        transBuf.flip();
+        while (transBuf.hasRemaining())
+        {
+          target.write(transBuf);
+        }
+        transferred += bytesRead;
+      }
+      if (transferred > 0)
+        return transferred;
+    }
+
     transBuf.clear();
     bytesRead = startRead(position, count, transBuf, true);
     if (bytesRead == -1)
@@ -640,6 +712,27 @@ public class RemoteFileChannel extends FileChannel implements SageFileChannel
     if (length == 0)
       return -1;
 
+    if (readAhead != null)
+    {
+      int oldLimit = dst.limit();
+      dst.limit(dst.position() + length);
+      try
+      {
+        int readBytes = readAhead.read(position, dst, maxRemoteSize);
+        if (readBytes > 0)
+          return readBytes;
+      }
+      catch (IOException e)
+      {
+        // Read it directly on a new connection.
+        reconnect();
+      }
+      finally
+      {
+        dst.limit(oldLimit);
+      }
+    }
+
     // This will read into the buffer the full length.
     length = startRead(position, length, dst, true);
 
@@ -723,6 +816,9 @@ public class RemoteFileChannel extends FileChannel implements SageFileChannel
     int position = command.position();
     try
     {
+      // The replies to any reads that are still outstanding come first.
+      if (readAhead != null)
+        readAhead.receiveAll();
       socket.write(command);
       command.clear();
       return IOUtils.readLineBytes(socket, commBuf, TIMEOUT, null);
@@ -0,0 +1,193 @@
+package sage;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.testng.Assert.*;
+
+public class AgentIndexTest
+{
+  private static final long HOUR = Sage.MILLIS_PER_HR;
+  private static final String[] TITLES = { "Star Trek", "STAR TREK", "Doctor Who", "The News", "Formula One Racing" };
+  private static final String[] CATEGORIES = { "News", "Drama", "Sports", "Science Fiction" };
+  private static final String[] PEOPLE = { "Alice Actor", "Bob Actor", "Carol Actor", "carol actor" };
+  private static final String[] CHANNELS = { "KAAA", "KBBB", "KCCC", "KDDD" };
+  private static final String[] NETWORKS = { "NetA", "NetB" };
+  private static final String[] KEYWORDS = { "star trek", "TITLE: Doctor Who", "\"formula one\"", "alice", "kccc",
+      "captain", "rac*" };
+  private static final String[] KINDS = { "keyword", "title", "person", "category", "subcategory", "channel",
+      "network", "title+channel" };
+
+  private Wizard wiz;
+
+  @BeforeClass
+  public void setUp() throws Throwable
+  {
+    TestUtils.initializeSageTVForTesting();
+    wiz = Wizard.primeInMemory();
+    for (int i = 0; i < CHANNELS.length; i++)
+      wiz.addChannel(CHANNELS[i], "Channel " + CHANNELS[i], NETWORKS[i % NETWORKS.length], 9101 + i, 0, null);
+  }
+
+  @Test
+  public void testFoldCase()
+  {
+    assertEquals(AgentIndex.foldCase("The Simpsons"), AgentIndex.foldCase("THE SIMPSONS"));
+    assertEquals(AgentIndex.foldCase("news"), "news");
+    assertNotEquals(AgentIndex.foldCase("News"), AgentIndex.foldCase("Newt"));
+  }
+
+  @Test
+  public void testKeywordTerm()
+  {
+    assertEquals(AgentIndex.getKeywordTerm("star trek"), "star");
+    assertEquals(AgentIndex.getKeywordTerm("TITLE: Doctor Who"), "doctor");
+    assertEquals(AgentIndex.getKeywordTerm("\"Formula One\" race*"), "formula");
+    // Wildcards and regular expressions can't be looked up
+    assertNull(AgentIndex.getKeywordTerm("trek*"));
+    assertNull(AgentIndex.getKeywordTerm("bas(e|ket)ball"));
+    assertNull(AgentIndex.getKeywordTerm(""));
+    assertNull(AgentIndex.getKeywordTerm("  \"\" "));
+  }
+
+  @Test
+  public void testTermsMatchWholeWords()
+  {
+    Set<String> terms = new HashSet<String>();
+    AgentIndex.addTerms("Star Trek: Voyager|Captain's log|2001|Sci-Fi", terms);
+    assertTrue(terms.contains("star"));
+    assertTrue(terms.contains("trek"));
+    assertTrue(terms.contains("captain"));
+    assertTrue(terms.contains("2001"));
+    assertTrue(terms.contains("sci"));
+    assertTrue(terms.contains("fi"));
+    assertFalse(terms.contains("Star"));
+    assertFalse(terms.contains("voyage"));
+  }
+
+  private static <T> T pick(Random rand, T[] values)
+  {
+    return values[rand.nextInt(values.length)];
+  }
+
+  private Agent newAgent(Random rand, int id, int kind)
+  {
+    Agent bond = new Agent(id);
+    switch (kind)
+    {
+      case 0:
+        bond.agentMask = Agent.KEYWORD_MASK;
+        bond.keyword = pick(rand, KEYWORDS);
+        break;
+      case 1:
+        bond.agentMask = Agent.TITLE_MASK;
+        bond.title = wiz.getTitleForName(pick(rand, TITLES));
+        break;
+      case 2:
+        bond.agentMask = Agent.ACTOR_MASK;
+        bond.person = wiz.getPersonForName(pick(rand, PEOPLE));
+        break;
+      case 3:
+        bond.agentMask = Agent.CATEGORY_MASK;
+        bond.category = wiz.getCategoryForName(pick(rand, CATEGORIES));
+        break;
+      case 4:
+        bond.agentMask = Agent.CATEGORY_MASK;
+        bond.subCategory = wiz.getSubCategoryForName(pick(rand, CATEGORIES));
+        break;
+      case 5:
+        bond.agentMask = Agent.CHANNEL_MASK;
+        bond.setChannelName(rand.nextBoolean() ? pick(rand, CHANNELS) : pick(rand, CHANNELS) + ";" + pick(rand, CHANNELS));
+        break;
+      case 6:
+        bond.agentMask = Agent.NETWORK_MASK;
+        bond.network = wiz.getNetworkForName(pick(rand, NETWORKS));
+        break;
+      default:
+        bond.agentMask = Agent.TITLE_MASK | Agent.CHANNEL_MASK;
+        bond.title = wiz.getTitleForName(pick(rand, TITLES));
+        bond.setChannelName(pick(rand, CHANNELS));
+        break;
+    }
+    return bond;
+  }
+
+  // These aren't put in the DB, only their Shows are
+  private Airing newAiring(Random rand, int id)
+  {
+    List<String> cats = new ArrayList<String>();
+    for (int i = rand.nextInt(3); i > 0; i--)
+      cats.add(pick(rand, CATEGORIES));
+    String[] people = new String[rand.nextInt(3)];
+    byte[] roles = new byte[people.length];
+    for (int i = 0; i < people.length; i++)
+    {
+      people[i] = pick(rand, PEOPLE);
+      roles[i] = Show.ACTOR_ROLE;
+    }
+    String desc = rand.nextBoolean() ? "The captain's log" : "Racing from Monza";
+    Show show = wiz.addShow(pick(rand, TITLES), "Episode " + id, desc, HOUR, cats.toArray(new String[cats.size()]),
+        people, roles, null, null, null, null, null, "EP" + (300000 + id), null, 0, DBObject.MEDIA_MASK_TV, (short) 0,
+        (short) 0, false, 0, null);
+    Airing air = new Airing(id);
+    air.showID = show.id;
+    air.stationID = 9101 + rand.nextInt(CHANNELS.length);
+    air.time = id * HOUR;
+    air.duration = HOUR;
+    return air;
+  }
+
+  @Test
+  public void testCandidatesHaveAllMatchesInAgentOrder()
+  {
+    Random rand = new Random(29);
+    int[] kinds = new int[60];
+    Agent[] agents = new Agent[kinds.length];
+    Map<Agent, Integer> agentOrder = new IdentityHashMap<Agent, Integer>();
+    for (int i = 0; i < agents.length; i++)
+    {
+      kinds[i] = rand.nextInt(KINDS.length);
+      agents[i] = newAgent(rand, 700000 + i, kinds[i]);
+      agentOrder.put(agents[i], i);
+    }
+    AgentIndex index = new AgentIndex(agents);
+    StringBuilder sbCache = new StringBuilder();
+    int[] kindMatches = new int[KINDS.length];
+    int numCandidates = 0;
+    for (int a = 0; a < 300; a++)
+    {
+      Airing air = newAiring(rand, a + 1);
+      Agent[] candidates = index.getCandidates(air, sbCache);
+      numCandidates += candidates.length;
+      for (int i = 1; i < candidates.length; i++)
+        assertTrue(agentOrder.get(candidates[i - 1]) < agentOrder.get(candidates[i]), "airing " + a);
+      Set<Agent> candidateSet = new HashSet<Agent>(Arrays.asList(candidates));
+      List<Agent> matches = new ArrayList<Agent>();
+      for (int i = 0; i < agents.length; i++)
+      {
+        if (agents[i].followsTrend(air, false, sbCache, false, true))
+        {
+          assertTrue(candidateSet.contains(agents[i]), "airing " + a + " " + air.getShow().getTitle() +
+              " wasn't a candidate for " + agents[i]);
+          matches.add(agents[i]);
+          kindMatches[kinds[i]]++;
+        }
+      }
+      assertEquals(index.getMatches(air, false, sbCache, false, true), matches, "airing " + a);
+      assertEquals(index.getFirstMatch(air, false, sbCache), matches.isEmpty() ? null : matches.get(0));
+    }
+    // Every kind of Agent has to have been tested, and the index has to have left some out
+    for (int i = 0; i < KINDS.length; i++)
+      assertTrue(kindMatches[i] > 0, KINDS[i] + " agents never matched");
+    assertTrue(numCandidates < 300 * agents.length / 2, "numCandidates=" + numCandidates);
+  }
+}
@@ -0,0 +1,252 @@
+package sage;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.testng.Assert.*;
+
+public class CarnyDeltaTest
+{
+  private static final long HOUR = Sage.MILLIS_PER_HR;
+  private static final int[] STATIONS = { 9001, 9002, 9003 };
+  private static final String[] CATEGORIES = { "News", "Drama", "Comedy" };
+  private static final String[] PEOPLE = { "Alice Actor", "Bob Actor", "Carol Actor" };
+
+  private Wizard wiz;
+  private Carny carny;
+  private Random rand;
+  private int nextEpisode;
+
+  @BeforeClass
+  public void setUp() throws Throwable
+  {
+    TestUtils.initializeSageTVForTesting();
+    wiz = Wizard.primeInMemory();
+    carny = Carny.getInstance();
+    EPG.getInstance().setViewableStations(STATIONS);
+    for (int i = 0; i < STATIONS.length; i++)
+      wiz.addChannel("CH" + i, "Channel " + i, "Network " + (i % 2), STATIONS[i], 0, null);
+  }
+
+  private Show newShow()
+  {
+    int title = rand.nextInt(6);
+    int episode = nextEpisode++;
+    return wiz.addShow("Title " + title, "Episode " + episode, "", HOUR,
+        new String[] { CATEGORIES[title % CATEGORIES.length] }, new String[] { PEOPLE[rand.nextInt(PEOPLE.length)] },
+        new byte[] { Show.ACTOR_ROLE }, null, null, null, null, null, "EP" + (100000 + episode), null, 0,
+        DBObject.MEDIA_MASK_TV, (short) 0, (short) 0, false, 0, null);
+  }
+
+  // Adds the Show, or updates it like a guide update would if there's already one with that external ID
+  private Show addShow(String title, String category, String extID)
+  {
+    // Nobody the other tests' favorites could be for
+    return wiz.addShow(title, "Pilot", "", HOUR, new String[] { category }, new String[] { "Dana Host" },
+        new byte[] { Show.ACTOR_ROLE }, null, null, null, null, null, extID, null, 0, DBObject.MEDIA_MASK_TV,
+        (short) 0, (short) 0, false, 0, null);
+  }
+
+  // Fills the next free hour on a station with a new episode
+  private Airing newAiring(int station, long time)
+  {
+    return wiz.addAiring(newShow(), STATIONS[station], time, HOUR, (byte) 0, 0, (byte) 0, DBObject.MEDIA_MASK_TV);
+  }
+
+  private void watch(Airing air)
+  {
+    wiz.addWatched(air, air.getStartTime(), air.getEndTime(), 0, 0);
+    carny.submitJob(new Object[] { Carny.WATCH_REAL_JOB, air });
+  }
+
+  private List<Airing> getAirings(boolean past)
+  {
+    List<Airing> rv = new ArrayList<Airing>();
+    for (DBObject obj : wiz.getRawAccess(Wizard.AIRING_CODE, Wizard.AIRINGS_BY_CT_CODE))
+    {
+      if (obj != null && (((Airing) obj).getEndTime() < Sage.time()) == past)
+        rv.add((Airing) obj);
+    }
+    return rv;
+  }
+
+  private List<Agent> getFavorites()
+  {
+    List<Agent> rv = new ArrayList<Agent>();
+    for (DBObject obj : wiz.getRawAccess(Wizard.AGENT_CODE, Wizard.AGENTS_BY_CARNY_CODE))
+    {
+      if (obj != null && ((Agent) obj).isFavorite())
+        rv.add((Agent) obj);
+    }
+    return rv;
+  }
+
+  // Everything the profile says about each Airing
+  private Map<Integer, String> getProfile()
+  {
+    Map<Integer, String> rv = new TreeMap<Integer, String>();
+    for (DBObject obj : wiz.getRawAccess(Wizard.AIRING_CODE, Wizard.AIRINGS_BY_CT_CODE))
+    {
+      if (obj == null)
+        continue;
+      Airing air = (Airing) obj;
+      Agent cause = carny.getCauseAgent(air);
+      rv.put(air.id, "wp=" + carny.getWP(air) + " cause=" + (cause == null ? 0 : cause.id) +
+          " love=" + carny.isLoveAir(air) + " mustSee=" + carny.isMustSee(air));
+    }
+    int[] potIDs = new int[carny.getPots().length];
+    for (int i = 0; i < potIDs.length; i++)
+      potIDs[i] = carny.getPots()[i].id;
+    Arrays.sort(potIDs);
+    rv.put(0, "pots=" + Arrays.toString(potIDs));
+    return rv;
+  }
+
+  private void addFavorite(int kind)
+  {
+    int title = rand.nextInt(6);
+    switch (kind)
+    {
+      case 0:
+        carny.addFavorite(Agent.LOVE_MASK | Agent.TITLE_MASK, "Title " + title, null, null, null, 0, null, null,
+            null, null, null, 0, null, null);
+        break;
+      case 1:
+        carny.addFavorite(Agent.LOVE_MASK | Agent.CATEGORY_MASK, null, CATEGORIES[rand.nextInt(CATEGORIES.length)],
+            null, null, 0, null, null, null, null, null, 0, null, null);
+        break;
+      case 2:
+        carny.addFavorite(Agent.LOVE_MASK | Agent.ACTOR_MASK, null, null, null,
+            wiz.getPersonForName(PEOPLE[rand.nextInt(PEOPLE.length)]), Show.ACTOR_ROLE, null, null, null, null, null,
+            0, null, null);
+        break;
+      default:
+        carny.addFavorite(Agent.LOVE_MASK | Agent.CHANNEL_MASK | Agent.TITLE_MASK, "Title " + title, null, null,
+            null, 0, null, null, null, null, "CH" + rand.nextInt(STATIONS.length), 0, null, null);
+        break;
+    }
+  }
+
+  @Test
+  public void testDeltaProfileMatchesFullProfile()
+  {
+    rand = new Random(23);
+    long baseTime = (Sage.time() / HOUR) * HOUR;
+    // Two days of guide data that's already aired and three days coming up
+    long nextTime = baseTime - 48 * HOUR;
+    for (; nextTime < baseTime + 72 * HOUR; nextTime += HOUR)
+    {
+      for (int s = 0; s < STATIONS.length; s++)
+        newAiring(s, nextTime);
+    }
+    addFavorite(0);
+    addFavorite(1);
+    List<Airing> past = getAirings(true);
+    for (int i = 0; i < 15; i++)
+      watch(past.get(rand.nextInt(past.size())));
+    // The deltas are checked against a full profile; whether this one is incremental depends on what the other
+    // tests did before
+    carny.processJobsNow();
+    carny.processFullProfileNow();
+
+    for (int step = 0; step < 12; step++)
+    {
+      int numChanges = 1 + rand.nextInt(4);
+      for (int i = 0; i < numChanges; i++)
+      {
+        switch (rand.nextInt(6))
+        {
+          case 0:
+            past = getAirings(true);
+            watch(past.get(rand.nextInt(past.size())));
+            break;
+          case 1:
+            addFavorite(rand.nextInt(4));
+            break;
+          case 2:
+            List<Agent> favs = getFavorites();
+            if (!favs.isEmpty())
+              carny.removeFavorite(favs.get(rand.nextInt(favs.size())));
+            break;
+          case 3:
+            List<Airing> future = getAirings(false);
+            carny.addDontLike(future.get(rand.nextInt(future.size())), true);
+            break;
+          case 4:
+            // A guide update that adds more data on the end
+            for (int s = 0; s < STATIONS.length; s++)
+              newAiring(s, nextTime);
+            nextTime += HOUR;
+            break;
+          default:
+            // Or one that replaces an upcoming airing with a different show
+            future = getAirings(false);
+            Airing replaced = future.get(rand.nextInt(future.size()));
+            newAiring(Arrays.binarySearch(STATIONS, replaced.getStationID()), replaced.getStartTime());
+            assertFalse(wiz.ok(replaced));
+            break;
+        }
+      }
+      carny.kickDelta();
+      assertTrue(carny.processJobsNow(), "step " + step + " wasn't done incrementally");
+      Map<Integer, String> delta = getProfile();
+      carny.processFullProfileNow();
+      Map<Integer, String> full = getProfile();
+      for (Map.Entry<Integer, String> ent : full.entrySet())
+        assertEquals(delta.get(ent.getKey()), ent.getValue(), "step " + step + " airing " + ent.getKey());
+      assertEquals(delta, full, "step " + step);
+    }
+  }
+
+  @Test
+  public void testShowChangesAreAppliedIncrementally()
+  {
+    // After anything the other tests put in the guide, but still within the scheduling lookahead
+    long startTime = (Sage.time() / HOUR) * HOUR + 120 * HOUR;
+    Show show = addShow("Before Title", "Cooking", "EP900001");
+    Airing air = wiz.addAiring(show, STATIONS[0], startTime, HOUR, (byte) 0, 0, (byte) 0, DBObject.MEDIA_MASK_TV);
+    Airing rerun = wiz.addAiring(show, STATIONS[1], startTime + 24 * HOUR, HOUR, (byte) 0, 0, (byte) 0,
+        DBObject.MEDIA_MASK_TV);
+    Agent titleFav = carny.addFavorite(Agent.LOVE_MASK | Agent.TITLE_MASK, "After Title", null, null, null, 0, null,
+        null, null, null, null, 0, null, null);
+    Agent categoryFav = carny.addFavorite(Agent.LOVE_MASK | Agent.CATEGORY_MASK, null, "Gardening", null, null, 0,
+        null, null, null, null, null, 0, null, null);
+    carny.processFullProfileNow();
+    assertFalse(carny.isLoveAir(air));
+    assertFalse(carny.isLoveAir(rerun));
+
+    // The title changes so the title favorite now matches both of its Airings
+    assertSame(addShow("After Title", "Cooking", "EP900001"), show);
+    assertEquals(show.getTitle(), "After Title");
+    carny.kickDelta();
+    assertTrue(carny.processJobsNow(), "the title change wasn't done incrementally");
+    assertTrue(carny.isLoveAir(air));
+    assertTrue(carny.isLoveAir(rerun));
+    assertSame(carny.getCauseAgent(air), titleFav);
+
+    // Then the title goes back and the category changes, so it's the category favorite that matches now
+    addShow("Before Title", "Gardening", "EP900001");
+    carny.kickDelta();
+    assertTrue(carny.processJobsNow(), "the category change wasn't done incrementally");
+    assertTrue(carny.isLoveAir(air));
+    assertSame(carny.getCauseAgent(air), categoryFav);
+    assertSame(carny.getCauseAgent(rerun), categoryFav);
+
+    // And without either of them it's not a favorite anymore
+    addShow("Before Title", "Cooking", "EP900001");
+    carny.kickDelta();
+    assertTrue(carny.processJobsNow(), "the second category change wasn't done incrementally");
+    assertFalse(carny.isLoveAir(air));
+    assertFalse(carny.isLoveAir(rerun));
+    Map<Integer, String> delta = getProfile();
+    carny.processFullProfileNow();
+    assertEquals(getProfile(), delta);
+  }
+}
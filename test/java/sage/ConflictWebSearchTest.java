@@ -0,0 +1,118 @@
+package sage;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.Vector;
+
+import static org.testng.Assert.*;
+
+public class ConflictWebSearchTest
+{
+  private static final long HOUR = 60 * 60 * 1000L;
+
+  private int nextID = 1;
+
+  @BeforeClass
+  public void setUp() throws Throwable
+  {
+    TestUtils.initializeSageTVForTesting();
+    Wizard.primeInMemory();
+  }
+
+  private Airing newAiring(Random rand)
+  {
+    Airing air = new Airing(nextID++);
+    air.stationID = 1 + rand.nextInt(4);
+    air.time = rand.nextInt(12) * HOUR / 2;
+    air.duration = (1 + rand.nextInt(3)) * HOUR / 2;
+    return air;
+  }
+
+  // Picks one of the encoders that can receive the airing
+  private static String pickEncoder(Random rand, Map<String, Set<Integer>> encoders, Airing air)
+  {
+    List<String> names = new ArrayList<String>();
+    for (Map.Entry<String, Set<Integer>> ent : encoders.entrySet())
+    {
+      if (ent.getValue().contains(air.stationID))
+        names.add(ent.getKey());
+    }
+    return names.get(rand.nextInt(names.size()));
+  }
+
+  @Test
+  public void testParallelAndCachedSearchesMatchSequential()
+  {
+    Map<String, Set<Integer>> encoders = new LinkedHashMap<String, Set<Integer>>();
+    // The first two have the same stations so they're searched as one
+    encoders.put("A", new HashSet<Integer>(Arrays.asList(1, 2, 3)));
+    encoders.put("B", new HashSet<Integer>(Arrays.asList(1, 2, 3)));
+    encoders.put("C", new HashSet<Integer>(Arrays.asList(2, 3, 4)));
+    Random rand = new Random(17);
+    int schedulable = 0;
+    long sequentialPerms = 0;
+    for (int run = 0; run < 40; run++)
+    {
+      Map<Airing, Vector<Airing>> mutableAirs = new HashMap<Airing, Vector<Airing>>();
+      Map<Airing, String> scheduledEncoders = new HashMap<Airing, String>();
+      int numShows = 4 + rand.nextInt(5);
+      for (int i = 0; i < numShows; i++)
+      {
+        Vector<Airing> showAirs = new Vector<Airing>();
+        int numAirs = 1 + rand.nextInt(3);
+        for (int j = 0; j < numAirs; j++)
+          showAirs.add(newAiring(rand));
+        Airing scheduled = showAirs.get(rand.nextInt(numAirs));
+        mutableAirs.put(scheduled, showAirs);
+        scheduledEncoders.put(scheduled, pickEncoder(rand, encoders, scheduled));
+      }
+      List<Airing> immutableAirs = new ArrayList<Airing>();
+      for (int i = rand.nextInt(3); i > 0; i--)
+      {
+        Airing mr = newAiring(rand);
+        immutableAirs.add(mr);
+        scheduledEncoders.put(mr, pickEncoder(rand, encoders, mr));
+      }
+      List<Vector<Airing>> optionLists = new ArrayList<Vector<Airing>>();
+      for (int i = 0; i < 5; i++)
+      {
+        Vector<Airing> options = new Vector<Airing>();
+        for (int j = 1 + rand.nextInt(6); j > 0; j--)
+          options.add(newAiring(rand));
+        optionLists.add(options);
+      }
+
+      long[] perms = new long[1];
+      List<String> sequential = Scheduler.searchConflictWebs(encoders, mutableAirs, immutableAirs, scheduledEncoders,
+          optionLists, new int[] { 1 }, perms).get(0);
+      sequentialPerms += perms[0];
+      // Then in parallel, and then one at a time again with the webs from the parallel search in the cache
+      long[] parallelPerms = new long[2];
+      List<List<String>> parallel = Scheduler.searchConflictWebs(encoders, mutableAirs, immutableAirs,
+          scheduledEncoders, optionLists, new int[] { 4, 1 }, parallelPerms);
+      assertEquals(parallel.get(0), sequential, "run " + run);
+      assertTrue(parallelPerms[0] >= perms[0], "run " + run);
+      assertEquals(parallel.get(1), sequential, "run " + run);
+      // Nothing had to be searched again
+      assertEquals(parallelPerms[1], 0, "run " + run);
+      for (String result : sequential)
+      {
+        if (!"none".equals(result))
+          schedulable++;
+      }
+    }
+    // Make sure there were webs that could be scheduled and ones that couldn't
+    assertTrue(schedulable > 0 && schedulable < 200, "schedulable=" + schedulable);
+    assertTrue(sequentialPerms > 0);
+  }
+}
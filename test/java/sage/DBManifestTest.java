@@ -0,0 +1,89 @@
+package sage;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class DBManifestTest
+{
+  @Test
+  public void testSaveAndLoad() throws Exception
+  {
+    File dir = createTempDir();
+    assertNull(DBManifest.load(dir));
+
+    DBManifest manifest = new DBManifest(dir);
+    long gen = manifest.nextGeneration();
+    manifest.setSegment((byte) 3, new File(dir, "table3-" + gen + ".seg"));
+    manifest.setSegment((byte) 7, new File(dir, "table7-" + gen + ".seg"));
+    manifest.addTail(new File(dir, "tail-1.log"));
+    manifest.addTail(new File(dir, "tail-2.log"));
+    manifest.save();
+    assertFalse(new File(dir, DBManifest.MANIFEST_NAME + ".tmp").exists());
+
+    DBManifest loaded = DBManifest.load(dir);
+    assertNotNull(loaded);
+    assertEquals(loaded.getSegment((byte) 3), new File(dir, "table3-1.seg"));
+    assertEquals(loaded.getSegment((byte) 7), new File(dir, "table7-1.seg"));
+    assertNull(loaded.getSegment((byte) 4));
+    List<File> tails = loaded.getTails();
+    assertEquals(tails.size(), 2);
+    assertEquals(tails.get(0), new File(dir, "tail-1.log"));
+    assertEquals(loaded.getCurrentTail(), new File(dir, "tail-2.log"));
+    // Generations have to keep increasing across restarts so file names don't get reused
+    assertEquals(loaded.nextGeneration(), gen + 1);
+
+    // Replacing the manifest with a modified copy shouldn't change the original
+    DBManifest next = loaded.copy();
+    next.setSegment((byte) 3, new File(dir, "table3-2.seg"));
+    next.clearTails();
+    next.addTail(new File(dir, "tail-2.log"));
+    next.save();
+    assertEquals(loaded.getSegment((byte) 3), new File(dir, "table3-1.seg"));
+    loaded = DBManifest.load(dir);
+    assertEquals(loaded.getSegment((byte) 3), new File(dir, "table3-2.seg"));
+    assertEquals(loaded.getTails().size(), 1);
+
+    loaded.deleteAll();
+    assertFalse(dir.exists());
+  }
+
+  @Test
+  public void testDeleteUnreferencedFiles() throws Exception
+  {
+    File dir = createTempDir();
+    DBManifest manifest = new DBManifest(dir);
+    manifest.setSegment((byte) 1, touch(new File(dir, "table1-2.seg")));
+    manifest.addTail(touch(new File(dir, "tail-2.log")));
+    manifest.save();
+    File oldSegment = touch(new File(dir, "table1-1.seg"));
+    File oldTail = touch(new File(dir, "tail-1.log"));
+
+    manifest.deleteUnreferencedFiles();
+    assertFalse(oldSegment.exists());
+    assertFalse(oldTail.exists());
+    assertTrue(new File(dir, "table1-2.seg").exists());
+    assertTrue(new File(dir, "tail-2.log").exists());
+    assertTrue(new File(dir, DBManifest.MANIFEST_NAME).exists());
+    manifest.deleteAll();
+  }
+
+  private static File createTempDir() throws IOException
+  {
+    File dir = File.createTempFile("dbmanifest", "");
+    dir.delete();
+    assertTrue(dir.mkdirs());
+    return dir;
+  }
+
+  private static File touch(File f) throws IOException
+  {
+    new FileWriter(f).close();
+    return f;
+  }
+}
@@ -0,0 +1,70 @@
+package sage;
+
+import org.testng.annotations.Test;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.testng.Assert.*;
+
+public class DisplayListDiffTest
+{
+  private static final Rectangle2D.Float SCREEN = new Rectangle2D.Float(0, 0, 720, 480);
+
+  private static RenderingOp shape(float x, float y, float w, float h, Color c)
+  {
+    return new RenderingOp(new SageRenderer.ShapeDescription(w, h, c), 1.0f, SCREEN, x, y);
+  }
+
+  private static ArrayList<RenderingOp> list(RenderingOp... ops)
+  {
+    return new ArrayList<RenderingOp>(Arrays.asList(ops));
+  }
+
+  @Test
+  public void testSameListsHaveNoChanges()
+  {
+    ArrayList<RenderingOp> oldOps = list(shape(0, 0, 720, 480, Color.black), shape(10, 10, 100, 20, Color.white));
+    ArrayList<RenderingOp> newOps = list(shape(0, 0, 720, 480, Color.black), shape(10, 10, 100, 20, Color.white));
+    Rectangle area = DisplayListDiff.getChangedArea(oldOps, newOps);
+    assertNotNull(area);
+    assertTrue(area.isEmpty());
+  }
+
+  @Test
+  public void testChangedOpsInTheMiddle()
+  {
+    ArrayList<RenderingOp> oldOps = list(shape(0, 0, 720, 480, Color.black), shape(10, 10, 100, 20, Color.white),
+        shape(600, 400, 50, 50, Color.red));
+    ArrayList<RenderingOp> newOps = list(shape(0, 0, 720, 480, Color.black), shape(10, 10, 100, 20, Color.blue),
+        shape(600, 400, 50, 50, Color.red));
+    assertEquals(DisplayListDiff.getChangedArea(oldOps, newOps), new Rectangle(9, 9, 102, 22));
+
+    // Both where it was and where it is now need to be redrawn when it moves
+    newOps = list(shape(0, 0, 720, 480, Color.black), shape(200.5f, 10, 100, 20, Color.white),
+        shape(600, 400, 50, 50, Color.red));
+    assertEquals(DisplayListDiff.getChangedArea(oldOps, newOps), new Rectangle(9, 9, 293, 22));
+  }
+
+  @Test
+  public void testAddedAndRemovedOps()
+  {
+    ArrayList<RenderingOp> oldOps = list(shape(0, 0, 720, 480, Color.black), shape(600, 400, 50, 50, Color.red));
+    ArrayList<RenderingOp> newOps = list(shape(0, 0, 720, 480, Color.black), shape(10, 10, 100, 20, Color.white),
+        shape(600, 400, 50, 50, Color.red));
+    assertEquals(DisplayListDiff.getChangedArea(oldOps, newOps), new Rectangle(9, 9, 102, 22));
+    assertEquals(DisplayListDiff.getChangedArea(newOps, oldOps), new Rectangle(9, 9, 102, 22));
+  }
+
+  @Test
+  public void testEffectsAreNotDiffable()
+  {
+    ArrayList<RenderingOp> oldOps = list(shape(0, 0, 720, 480, Color.black));
+    ArrayList<RenderingOp> newOps = list(shape(0, 0, 720, 480, Color.black), new RenderingOp((EffectTracker) null));
+    assertNull(DisplayListDiff.getChangedArea(oldOps, newOps));
+    assertNull(DisplayListDiff.getChangedArea(null, oldOps));
+  }
+}
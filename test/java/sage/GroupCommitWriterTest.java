@@ -0,0 +1,277 @@
+package sage;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import sage.io.LocalSageFile;
+import sage.io.SageDataFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class GroupCommitWriterTest
+{
+  // Writes to whatever file the test says to
+  static class TestWriter extends GroupCommitWriter
+  {
+    volatile SageDataFile logFile;
+
+    TestWriter(Object outLock, int maxBatch, int queueSize)
+    {
+      super(outLock, 5, maxBatch, queueSize);
+    }
+
+    @Override
+    SageDataFile getLogFile()
+    {
+      return logFile;
+    }
+
+    void start()
+    {
+      Thread t = new Thread(this, "GroupCommitWriterTest");
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  // A file that starts failing writes once it gets to a certain size, like when the disk fills up
+  static class FailingFile extends LocalSageFile
+  {
+    volatile long failAt = Long.MAX_VALUE;
+
+    FailingFile(File file) throws IOException
+    {
+      super(file, "rw");
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      if (position() + len > failAt)
+      {
+        int fits = (int) Math.max(0, failAt - position());
+        super.write(b, off, fits);
+        throw new IOException("No space left on device");
+      }
+      super.write(b, off, len);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException
+    {
+      write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+  }
+
+  @BeforeClass
+  public void setUp() throws Throwable
+  {
+    TestUtils.initializeSageTVForTesting();
+  }
+
+  private static byte[] xct(int seq)
+  {
+    return ByteBuffer.allocate(10).put(Wizard.UPDATE).put(Wizard.YEAR_CODE).putInt(seq).putInt(~seq).array();
+  }
+
+  private static File tempFile() throws IOException
+  {
+    File f = File.createTempFile("GroupCommitWriterTest", ".log");
+    f.deleteOnExit();
+    return f;
+  }
+
+  // Reads the records back the same way the DB is loaded; stopping at one that goes past the end of the file
+  private static List<Integer> readXcts(File f) throws IOException
+  {
+    List<Integer> rv = new ArrayList<Integer>();
+    RandomAccessFile raf = new RandomAccessFile(f, "r");
+    try
+    {
+      long fileLength = raf.length();
+      while (raf.getFilePointer() + 4 <= fileLength)
+      {
+        long fp = raf.getFilePointer();
+        int cmdLength = raf.readInt();
+        if (fp + cmdLength > fileLength)
+          break;
+        assertEquals(cmdLength, 14);
+        assertEquals(raf.readByte(), Wizard.UPDATE);
+        assertEquals(raf.readByte(), Wizard.YEAR_CODE);
+        int seq = raf.readInt();
+        assertEquals(raf.readInt(), ~seq, "Torn record for " + seq);
+        rv.add(seq);
+      }
+    }
+    finally
+    {
+      raf.close();
+    }
+    return rv;
+  }
+
+  private static void assertSequence(List<Integer> seqs, int count)
+  {
+    assertEquals(seqs.size(), count);
+    for (int i = 0; i < count; i++)
+      assertEquals(seqs.get(i).intValue(), i);
+  }
+
+  @Test
+  public void testXctsAreWrittenInOrder() throws Exception
+  {
+    Object outLock = new Object();
+    final TestWriter writer = new TestWriter(outLock, 16, 64);
+    File f = tempFile();
+    writer.logFile = new SageDataFile(new LocalSageFile(f, "rw"), Sage.I18N_CHARSET);
+    writer.start();
+
+    // Several threads logging at once; the lock stands in for the pendingWriteXcts lock that orders them
+    final Object logLock = new Object();
+    final int[] nextSeq = new int[1];
+    Thread[] loggers = new Thread[4];
+    for (int i = 0; i < loggers.length; i++)
+    {
+      loggers[i] = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          for (int j = 0; j < 2500; j++)
+          {
+            synchronized (logLock)
+            {
+              writer.queue(xct(nextSeq[0]++));
+            }
+          }
+        }
+      };
+      loggers[i].start();
+    }
+    for (Thread t : loggers)
+      t.join();
+    writer.flush();
+    writer.logFile.close();
+    assertSequence(readXcts(f), 10000);
+  }
+
+  @Test
+  public void testQueueingNeverWaitsForRoom() throws Exception
+  {
+    Object outLock = new Object();
+    final TestWriter writer = new TestWriter(outLock, 4, 8);
+    File f = tempFile();
+    writer.logFile = new SageDataFile(new LocalSageFile(f, "rw"), Sage.I18N_CHARSET);
+    // The writer isn't running yet so nothing is taken off the queue; this would block if queue waited for room
+    for (int i = 0; i < 20; i++)
+      writer.queue(xct(i));
+
+    final boolean[] gotRoom = new boolean[1];
+    Thread waiter = new Thread()
+    {
+      @Override
+      public void run()
+      {
+        writer.waitForRoom();
+        gotRoom[0] = true;
+      }
+    };
+    waiter.start();
+    waiter.join(300);
+    assertTrue(waiter.isAlive());
+
+    writer.start();
+    waiter.join(10000);
+    assertTrue(gotRoom[0]);
+    writer.flush();
+    writer.logFile.close();
+    assertSequence(readXcts(f), 20);
+  }
+
+  @Test
+  public void testXctsAreKeptWithoutLogFile() throws Exception
+  {
+    Object outLock = new Object();
+    TestWriter writer = new TestWriter(outLock, 8, 32);
+    writer.start();
+    for (int i = 0; i < 100; i++)
+      writer.queue(xct(i));
+    writer.flush();
+
+    // Once there's a file again the ones that couldn't be written go in first
+    File f = tempFile();
+    SageDataFile out = new SageDataFile(new LocalSageFile(f, "rw"), Sage.I18N_CHARSET);
+    writer.logFile = out;
+    for (int i = 100; i < 150; i++)
+      writer.queue(xct(i));
+    writer.flush();
+    out.close();
+    assertSequence(readXcts(f), 150);
+
+    // Or when the file is being replaced they're taken so they can be written some other way
+    writer.logFile = null;
+    for (int i = 0; i < 20; i++)
+      writer.queue(xct(i));
+    writer.flush();
+    List<byte[]> unwritten;
+    synchronized (outLock)
+    {
+      unwritten = writer.takeUnwritten();
+    }
+    assertEquals(unwritten.size(), 20);
+    for (int i = 0; i < unwritten.size(); i++)
+      assertEquals(unwritten.get(i), xct(i));
+    synchronized (outLock)
+    {
+      assertTrue(writer.takeUnwritten().isEmpty());
+    }
+  }
+
+  @Test
+  public void testFailedWritesLeaveNoTornRecords() throws Exception
+  {
+    Object outLock = new Object();
+    TestWriter writer = new TestWriter(outLock, 8, 32);
+    File f = tempFile();
+    FailingFile failing = new FailingFile(f);
+    // Fail partway through the 11th record
+    failing.failAt = 10 * 14 + 9;
+    SageDataFile out = new SageDataFile(failing, Sage.I18N_CHARSET);
+    writer.logFile = out;
+    writer.start();
+    for (int i = 0; i < 40; i++)
+      writer.queue(xct(i));
+    writer.flush();
+
+    // If we crashed now everything before the failure can be recovered and the partial record is ignored
+    synchronized (outLock)
+    {
+      out.flush();
+      assertSequence(readXcts(f), 10);
+    }
+
+    // And once writes work again everything else is written out in order over the partial record
+    failing.failAt = Long.MAX_VALUE;
+    for (int i = 40; i < 50; i++)
+      writer.queue(xct(i));
+    writer.flush();
+    synchronized (outLock)
+    {
+      out.flush();
+      assertSequence(readXcts(f), 50);
+    }
+    out.close();
+  }
+}
@@ -0,0 +1,230 @@
+package sage;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.testng.Assert.*;
+
+public class IndexTreeTest
+{
+  static class KeyedObject extends DBObject
+  {
+    int key;
+
+    KeyedObject(int id, int key)
+    {
+      super(id);
+      this.key = key;
+    }
+  }
+
+  static final Comparator KEY_COMPARATOR = new Comparator()
+  {
+    public int compare(Object o1, Object o2)
+    {
+      return ((KeyedObject) o1).key - ((KeyedObject) o2).key;
+    }
+  };
+
+  @BeforeClass
+  public void setUp() throws Throwable
+  {
+    TestUtils.initializeSageTVForTesting();
+  }
+
+  @Test
+  public void testRandomOperationsMatchSortedList()
+  {
+    IndexTree tree = new IndexTree(KEY_COMPARATOR);
+    List<DBObject> expected = new ArrayList<DBObject>();
+    Random rand = new Random(42);
+    int nextID = 1;
+    for (int i = 0; i < 20000; i++)
+    {
+      int op = rand.nextInt(10);
+      if (op < 6 || expected.isEmpty())
+      {
+        // Use a small key range so we get lots of duplicate keys
+        KeyedObject obj = new KeyedObject(nextID++, rand.nextInt(500));
+        int pos = tree.add(obj);
+        expected.add(obj);
+        Collections.sort(expected, tree.getOrder());
+        assertSame(expected.get(pos), obj);
+      }
+      else
+      {
+        DBObject obj = expected.remove(rand.nextInt(expected.size()));
+        assertTrue(tree.remove(obj));
+        assertFalse(tree.remove(obj));
+      }
+      assertEquals(tree.size(), expected.size());
+    }
+    verifyContents(tree, expected);
+    // Now remove everything to make sure the tree collapses correctly
+    while (!expected.isEmpty())
+    {
+      DBObject obj = expected.remove(rand.nextInt(expected.size()));
+      assertTrue(tree.remove(obj));
+    }
+    assertEquals(tree.size(), 0);
+    tree.add(new KeyedObject(nextID, 1));
+    assertEquals(tree.size(), 1);
+  }
+
+  @Test
+  public void testAppendsAndSearches()
+  {
+    IndexTree tree = new IndexTree(DBObject.ID_COMPARATOR);
+    List<DBObject> expected = new ArrayList<DBObject>();
+    for (int i = 1; i <= 10000; i++)
+    {
+      KeyedObject obj = new KeyedObject(i * 2, 0);
+      assertEquals(tree.add(obj), i - 1);
+      expected.add(obj);
+    }
+    verifyContents(tree, expected);
+    assertEquals(tree.binarySearch(2), 0);
+    assertEquals(tree.binarySearch(20000), 9999);
+    assertEquals(tree.binarySearch(1), -1);
+    assertEquals(tree.binarySearch(5), -3);
+    assertEquals(tree.binarySearch(20001), -10001);
+    assertEquals(tree.binarySearch((Object) expected.get(500)), 500);
+  }
+
+  @Test
+  public void testBuildAndUpdate()
+  {
+    IndexTree tree = new IndexTree(KEY_COMPARATOR);
+    DBObject[] sorted = new DBObject[1000];
+    for (int i = 0; i < sorted.length; i++)
+      sorted[i] = new KeyedObject(i + 1, i * 10);
+    tree.build(sorted, sorted.length);
+    List<DBObject> expected = new ArrayList<DBObject>();
+    Collections.addAll(expected, sorted);
+    verifyContents(tree, expected);
+
+    // Move an object to a new position the same way Index.update does; the object gets its new key afterwards
+    KeyedObject moveMe = (KeyedObject) sorted[10];
+    KeyedObject newValues = new KeyedObject(moveMe.id, 5005);
+    assertTrue(tree.remove(moveMe));
+    assertEquals(tree.insert(moveMe, newValues), 500);
+    moveMe.key = newValues.key;
+    expected.remove(moveMe);
+    expected.add(500, moveMe);
+    verifyContents(tree, expected);
+
+    // Searches return the first match when there are duplicates
+    assertEquals(tree.binarySearch((Object) new KeyedObject(5000, 5000)), 499);
+    assertEquals(tree.binarySearch((Object) new KeyedObject(5001, 5001)), -501);
+  }
+
+  @Test
+  public void testSnapshotsDoNotChange()
+  {
+    IndexTree tree = new IndexTree(KEY_COMPARATOR);
+    List<DBObject> expected = new ArrayList<DBObject>();
+    Random rand = new Random(7);
+    for (int i = 1; i <= 5000; i++)
+    {
+      KeyedObject obj = new KeyedObject(i, rand.nextInt(1000));
+      tree.add(obj);
+      expected.add(obj);
+    }
+    Collections.sort(expected, tree.getOrder());
+    IndexTree.Snapshot snap = tree.snapshot();
+    assertSame(tree.snapshot(), snap);
+    DBObject[] before = snap.toArray();
+
+    // Modify the tree heavily and take more snapshots along the way
+    List<DBObject> current = new ArrayList<DBObject>(expected);
+    IndexTree.Snapshot midSnap = null;
+    DBObject[] midContents = null;
+    for (int i = 0; i < 3000; i++)
+    {
+      if (rand.nextBoolean())
+      {
+        KeyedObject obj = new KeyedObject(10000 + i, rand.nextInt(1000));
+        tree.add(obj);
+        current.add(obj);
+        Collections.sort(current, tree.getOrder());
+      }
+      else
+        assertTrue(tree.remove(current.remove(rand.nextInt(current.size()))));
+      if (i == 1500)
+      {
+        midSnap = tree.snapshot();
+        midContents = current.toArray(new DBObject[current.size()]);
+      }
+    }
+    verifyContents(tree, current);
+
+    assertEquals(snap.size(), expected.size());
+    DBObject[] after = new DBObject[snap.size()];
+    snap.copyInto(0, after, 0, after.length);
+    assertEquals(after, before);
+    for (int i = 0; i < expected.size(); i++)
+    {
+      assertSame(snap.get(i), expected.get(i));
+      // The first match for the key will be at or before this one
+      int pos = snap.binarySearch((Object) expected.get(i));
+      assertTrue(pos >= 0 && pos <= i);
+      assertEquals(KEY_COMPARATOR.compare(snap.get(pos), expected.get(i)), 0);
+    }
+    assertEquals(midSnap.toArray(), midContents);
+  }
+
+  @Test
+  public void testIndexDataIsReusedUntilModified()
+  {
+    Index index = new Index(KEY_COMPARATOR);
+    Table table = new Table(Wizard.YEAR_CODE, index);
+    table.setWizard(Wizard.getInstance());
+    table.setTreeIndices(true);
+    List<DBObject> expected = new ArrayList<DBObject>();
+    for (int i = 1; i <= 2000; i++)
+    {
+      KeyedObject obj = new KeyedObject(i, (i * 37) % 500);
+      table.add(obj, false);
+      expected.add(obj);
+    }
+    Collections.sort(expected, new IndexTree(KEY_COMPARATOR).getOrder());
+    DBObject[] data = index.getData();
+    assertEquals(data, expected.toArray());
+    // Nothing's copied again until it changes
+    assertSame(index.getData(), data);
+    KeyedObject added = new KeyedObject(5000, 250);
+    table.add(added, false);
+    DBObject[] newData = index.getData();
+    assertNotSame(newData, data);
+    assertEquals(newData.length, data.length + 1);
+    assertSame(index.getData(), newData);
+    // The array that was handed out before doesn't change
+    assertEquals(data, expected.toArray());
+  }
+
+  private void verifyContents(IndexTree tree, List<DBObject> expected)
+  {
+    assertEquals(tree.size(), expected.size());
+    DBObject[] all = new DBObject[tree.size()];
+    tree.copyInto(0, all, 0, all.length);
+    for (int i = 0; i < all.length; i++)
+    {
+      assertSame(all[i], expected.get(i));
+      assertSame(tree.get(i), expected.get(i));
+      assertEquals(tree.indexOf(all[i]), i);
+    }
+    if (all.length > 10)
+    {
+      DBObject[] range = new DBObject[5];
+      tree.copyInto(all.length - 7, range, 0, 5);
+      for (int i = 0; i < range.length; i++)
+        assertSame(range[i], all[all.length - 7 + i]);
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package sage;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.testng.Assert.*;
+
+public class IntervalTreeTest
+{
+  @Test
+  public void testOverlapsMatchLinearScan()
+  {
+    Random r = new Random(42);
+    int num = 2000;
+    long[] starts = new long[num];
+    long[] ends = new long[num];
+    for (int i = 0; i < num; i++)
+    {
+      starts[i] = r.nextInt(100000);
+      ends[i] = starts[i] + 1 + r.nextInt(i % 10 == 0 ? 20000 : 500);
+    }
+    IntervalTree tree = new IntervalTree(starts, ends);
+    assertEquals(tree.size(), num);
+    for (int q = 0; q < 500; q++)
+    {
+      long start = r.nextInt(110000) - 5000;
+      long end = start + 1 + r.nextInt(2000);
+      List<Integer> expected = new ArrayList<Integer>();
+      for (int i = 0; i < num; i++)
+      {
+        if (ends[i] > start && starts[i] < end)
+          expected.add(i);
+      }
+      int[] found = tree.getOverlaps(start, end);
+      assertEquals(found.length, expected.size());
+      for (int i = 0; i < found.length; i++)
+        assertEquals(found[i], expected.get(i).intValue());
+      assertEquals(tree.hasOverlap(start, end), !expected.isEmpty());
+    }
+  }
+
+  @Test
+  public void testEdges()
+  {
+    IntervalTree tree = new IntervalTree(new long[] { 10, 20, 20 }, new long[] { 20, 30, 25 });
+    // Touching intervals don't overlap
+    assertEquals(tree.getOverlaps(0, 10).length, 0);
+    assertEquals(tree.getOverlaps(30, 40).length, 0);
+    assertTrue(Arrays.equals(tree.getStabbed(20), new int[] { 1, 2 }));
+    assertTrue(Arrays.equals(tree.getStabbed(19), new int[] { 0 }));
+    assertTrue(Arrays.equals(tree.getOverlaps(15, 22), new int[] { 0, 1, 2 }));
+
+    IntervalTree empty = new IntervalTree(new long[0], new long[0]);
+    assertFalse(empty.hasOverlap(Long.MIN_VALUE, Long.MAX_VALUE));
+    assertEquals(empty.getOverlaps(0, 100).length, 0);
+  }
+}
@@ -0,0 +1,120 @@
+package sage;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.testng.Assert.*;
+
+public class LibraryWatcherTest
+{
+  // How long to wait for an event before failing; nothing waits this long unless the watcher is broken
+  private static final long EVENT_TIMEOUT = 30000;
+
+  // Collects everything that was reported so the test can wait for the changes it expects, however they're batched
+  private static class Changes implements LibraryWatcher.Listener
+  {
+    public synchronized void filesChanged(Set<File> changed, Set<File> deleted)
+    {
+      this.changed.addAll(changed);
+      this.changed.removeAll(deleted);
+      this.deleted.removeAll(changed);
+      this.deleted.addAll(deleted);
+      notifyAll();
+    }
+
+    public synchronized void eventsLost()
+    {
+      lost = true;
+      notifyAll();
+    }
+
+    synchronized void awaitChanged(File f) throws InterruptedException
+    {
+      long deadline = System.currentTimeMillis() + EVENT_TIMEOUT;
+      while (!changed.contains(f) && System.currentTimeMillis() < deadline)
+        wait(deadline - System.currentTimeMillis());
+      assertTrue(changed.contains(f), f + " wasn't reported as changed, changed=" + changed);
+    }
+
+    synchronized void awaitDeleted(File f) throws InterruptedException
+    {
+      long deadline = System.currentTimeMillis() + EVENT_TIMEOUT;
+      while (!deleted.contains(f) && System.currentTimeMillis() < deadline)
+        wait(deadline - System.currentTimeMillis());
+      assertTrue(deleted.contains(f), f + " wasn't reported as deleted, deleted=" + deleted);
+    }
+
+    final Set<File> changed = new HashSet<File>();
+    final Set<File> deleted = new HashSet<File>();
+    boolean lost;
+  }
+
+  private static void touch(File f) throws IOException
+  {
+    FileOutputStream os = new FileOutputStream(f);
+    os.write(1);
+    os.close();
+  }
+
+  @Test
+  public void testChangesInNewDirectories() throws Exception
+  {
+    File root = Files.createTempDirectory("libwatch").toFile();
+    File outside = Files.createTempDirectory("libwatch").toFile();
+    Changes changes = new Changes();
+    LibraryWatcher watcher = new LibraryWatcher(changes, 300);
+    try
+    {
+      File existingDir = new File(root, "Movies");
+      assertTrue(existingDir.mkdir());
+      assertTrue(watcher.setRoots(new File[] { root }));
+      assertEquals(watcher.getNumWatchedDirs(), 2);
+      watcher.start();
+
+      // This is done first so it would be reported before the movie is if it was being watched
+      File other = new File(outside, "other.mkv");
+      touch(other);
+      File movie = new File(existingDir, "movie.mkv");
+      touch(movie);
+      changes.awaitChanged(movie);
+
+      // Directories created after it started are watched too
+      File newDir = new File(root, "Shows");
+      assertTrue(newDir.mkdir());
+      changes.awaitChanged(newDir);
+      File episode = new File(newDir, "episode.mkv");
+      touch(episode);
+      changes.awaitChanged(episode);
+
+      assertTrue(movie.delete());
+      changes.awaitDeleted(movie);
+      synchronized (changes)
+      {
+        assertFalse(changes.changed.contains(other));
+        assertFalse(changes.changed.contains(movie));
+        assertTrue(changes.changed.contains(episode));
+        assertFalse(changes.deleted.contains(episode));
+        assertFalse(changes.lost);
+      }
+    }
+    finally
+    {
+      watcher.close();
+    }
+  }
+
+  @Test
+  public void testLocalFileSystem() throws Exception
+  {
+    File dir = Files.createTempDirectory("libwatch").toFile();
+    assertTrue(LibraryWatcher.isLocalFileSystem(dir));
+    // If it can't be checked then it has to be scanned
+    assertFalse(LibraryWatcher.isLocalFileSystem(new File(dir, "missing")));
+  }
+}
@@ -0,0 +1,163 @@
+package sage;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.testng.Assert.*;
+
+public class ListenerXctQueueTest
+{
+  @BeforeClass
+  public void setUp() throws Throwable
+  {
+    TestUtils.initializeSageTVForTesting();
+  }
+
+  private static byte[] xct(byte op, int id, int value)
+  {
+    return ByteBuffer.allocate(10).put(op).put(Wizard.AIRING_CODE).putInt(id).putInt(value).array();
+  }
+
+  // Applies an xct to the client's copy of the objects the same way the client DB would
+  private static void apply(Map<Integer, Integer> db, byte[] xctData)
+  {
+    ByteBuffer buf = ByteBuffer.wrap(xctData);
+    byte op = buf.get();
+    buf.get();
+    int id = buf.getInt();
+    int value = buf.getInt();
+    if (op == Wizard.ADD)
+      assertNull(db.put(id, value), "Object " + id + " was added twice");
+    else if (op == Wizard.REMOVE)
+      assertNotNull(db.remove(id), "Object " + id + " was removed when it wasn't there");
+    else
+      assertNotNull(db.put(id, value), "Object " + id + " was updated when it wasn't there");
+  }
+
+  private static SageTVConnection.ListenerMsg takeMsg(SageTVConnection.ParallelListenerSharedData share)
+  {
+    synchronized (share.queue)
+    {
+      while (!share.queue.isEmpty())
+      {
+        SageTVConnection.ListenerMsg msg = share.pollMsg();
+        if (msg != null)
+          return msg;
+      }
+      return null;
+    }
+  }
+
+  @Test
+  public void testCoalescedUpdatesAreCreditedWhenSent()
+  {
+    SageTVConnection.ParallelListenerSharedData share = new SageTVConnection.ParallelListenerSharedData();
+    synchronized (share.queue)
+    {
+      assertTrue(share.offerXct(xct(Wizard.UPDATE, 1, 1)));
+      assertTrue(share.offerXct(xct(Wizard.UPDATE, 2, 1)));
+      assertTrue(share.offerXct(xct(Wizard.UPDATE, 1, 2)));
+    }
+    assertEquals(share.coalescedXcts, 1);
+    assertEquals(share.sentXcts, 0);
+
+    SageTVConnection.ListenerMsg msg = takeMsg(share);
+    assertEquals(msg.data, xct(Wizard.UPDATE, 2, 1));
+    share.xctSent(msg);
+    assertEquals(share.sentXcts, 1);
+
+    // The client disconnects before the update that replaced the first one gets to it
+    msg = takeMsg(share);
+    assertEquals(msg.data, xct(Wizard.UPDATE, 1, 2));
+    assertEquals(msg.xctCount, 2);
+    assertEquals(share.sentXcts, 1);
+    assertNull(takeMsg(share));
+  }
+
+  @Test
+  public void testUpdatesAreNotCoalescedAcrossAddsAndRemoves()
+  {
+    SageTVConnection.ParallelListenerSharedData share = new SageTVConnection.ParallelListenerSharedData();
+    synchronized (share.queue)
+    {
+      assertTrue(share.offerXct(xct(Wizard.UPDATE, 1, 1)));
+      assertTrue(share.offerXct(xct(Wizard.ADD, 2, 1)));
+      assertTrue(share.offerXct(xct(Wizard.UPDATE, 1, 2)));
+      assertTrue(share.offerXct(xct(Wizard.REMOVE, 3, 0)));
+      assertTrue(share.offerXct(xct(Wizard.UPDATE, 1, 3)));
+      assertTrue(share.offerXct(xct(Wizard.UPDATE, 1, 4)));
+    }
+    assertEquals(share.coalescedXcts, 1);
+    assertEquals(takeMsg(share).data, xct(Wizard.UPDATE, 1, 1));
+    assertEquals(takeMsg(share).data, xct(Wizard.ADD, 2, 1));
+    assertEquals(takeMsg(share).data, xct(Wizard.UPDATE, 1, 2));
+    assertEquals(takeMsg(share).data, xct(Wizard.REMOVE, 3, 0));
+    SageTVConnection.ListenerMsg last = takeMsg(share);
+    assertEquals(last.data, xct(Wizard.UPDATE, 1, 4));
+    assertEquals(last.xctCount, 2);
+    assertNull(takeMsg(share));
+  }
+
+  @Test
+  public void testResumeAfterDisconnectWithCoalescedUpdatesPending()
+  {
+    Random rand = new Random(11);
+    for (int run = 0; run < 200; run++)
+    {
+      // The server's log of xcts and its objects after each one
+      List<byte[]> log = new ArrayList<byte[]>();
+      Map<Integer, Integer> serverDB = new HashMap<Integer, Integer>();
+      Map<Integer, Integer> clientDB = new HashMap<Integer, Integer>();
+      int nextID = 1;
+      for (int i = 0; i < 5; i++)
+      {
+        byte[] add = xct(Wizard.ADD, nextID++, 0);
+        apply(serverDB, add);
+        apply(clientDB, add);
+      }
+
+      SageTVConnection.ParallelListenerSharedData share = new SageTVConnection.ParallelListenerSharedData();
+      int numXcts = 20 + rand.nextInt(40);
+      for (int i = 0; i < numXcts; i++)
+      {
+        List<Integer> ids = new ArrayList<Integer>(serverDB.keySet());
+        int op = rand.nextInt(10);
+        byte[] xctData;
+        if (op == 0 || ids.isEmpty())
+          xctData = xct(Wizard.ADD, nextID++, i);
+        else if (op == 1)
+          xctData = xct(Wizard.REMOVE, ids.get(rand.nextInt(ids.size())), 0);
+        else
+          // Mostly updates to a few objects so lots of them get coalesced
+          xctData = xct(Wizard.UPDATE, ids.get(rand.nextInt(Math.min(3, ids.size()))), i);
+        apply(serverDB, xctData);
+        log.add(xctData);
+        synchronized (share.queue)
+        {
+          assertTrue(share.offerXct(xctData));
+        }
+      }
+
+      // Send some of them and then the client disconnects
+      int numSent = rand.nextInt(numXcts);
+      SageTVConnection.ListenerMsg msg;
+      for (int i = 0; i < numSent && (msg = takeMsg(share)) != null; i++)
+      {
+        apply(clientDB, msg.data);
+        share.xctSent(msg);
+      }
+
+      // When it reconnects it gets everything after what it acknowledged from the xct history
+      for (int i = (int) share.sentXcts; i < log.size(); i++)
+        apply(clientDB, log.get(i));
+      assertEquals(clientDB, serverDB, "run " + run);
+    }
+  }
+}
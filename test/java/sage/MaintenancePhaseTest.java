@@ -0,0 +1,52 @@
+package sage;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class MaintenancePhaseTest
+{
+  // A clock that only moves when the test says so
+  static class TestClock implements MaintenancePhase.Clock
+  {
+    long now = 1000;
+
+    public long millis()
+    {
+      return now;
+    }
+  }
+
+  @Test
+  public void testUnitBudget() throws Exception
+  {
+    TestClock clock = new TestClock();
+    MaintenancePhase phase = new MaintenancePhase("Test", 50, clock);
+    MaintenancePhase.Unit unit = phase.newUnit();
+    clock.now += 49;
+    assertFalse(unit.itemDone());
+    clock.now += 1;
+    // Out of time now, so it has to yield
+    assertTrue(unit.itemDone());
+    clock.now += 10;
+    unit.yielded(10);
+    // A new budget after yielding
+    clock.now += 49;
+    assertFalse(unit.itemDone());
+    unit.done();
+
+    MaintenancePhase.Unit other = phase.newUnit();
+    other.itemDone();
+    other.done();
+    clock.now += 1;
+    phase.finish();
+    // It's not counted after it's finished
+    clock.now += 100;
+    assertEquals(phase.getItems(), 4);
+    assertEquals(phase.getUnits(), 2);
+    assertEquals(phase.getYields(), 1);
+    assertEquals(phase.getYieldTime(), 10);
+    assertEquals(phase.getDuration(), 110);
+    assertTrue(phase.toString().startsWith("MaintenceMetric(Test): 110ms for 4 items in 2 units"));
+  }
+}
@@ -0,0 +1,97 @@
+package sage;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class MappedTextStoreTest
+{
+  @BeforeClass
+  public void setUp() throws Throwable
+  {
+    TestUtils.initializeSageTVForTesting();
+  }
+
+  @Test
+  public void testAddAndGet() throws Exception
+  {
+    File f = File.createTempFile("mappedtext", ".text");
+    MappedTextStore store = new MappedTextStore(f, 10);
+    try
+    {
+      List<MappedTextStore.Ref> refs = new ArrayList<MappedTextStore.Ref>();
+      List<String> strs = new ArrayList<String>();
+      // Enough data to span multiple mapped chunks
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < 200; i++)
+        sb.append("Description text \u00e9\u00e8 ");
+      String base = sb.toString();
+      for (int i = 0; i < 10000; i++)
+      {
+        String str = i + base;
+        strs.add(str);
+        refs.add(store.add(str.getBytes(Sage.I18N_CHARSET)));
+      }
+      for (int i = 0; i < refs.size(); i++)
+      {
+        assertEquals(refs.get(i).getString(), strs.get(i));
+        assertEquals(refs.get(i).getBytes(), strs.get(i).getBytes(Sage.I18N_CHARSET));
+      }
+      // Cached Strings should come back the same
+      String cached = refs.get(refs.size() - 1).getString();
+      assertSame(refs.get(refs.size() - 1).getString(), cached);
+      assertEquals(store.add(new byte[0]).getBytes().length, 0);
+    }
+    finally
+    {
+      store.close();
+      f.delete();
+    }
+  }
+
+  @Test
+  public void testShowDescriptionMovesToNewStore() throws Exception
+  {
+    File f1 = File.createTempFile("mappedtext", ".text");
+    File f2 = File.createTempFile("mappedtext", ".text2");
+    MappedTextStore oldStore = new MappedTextStore(f1, 10);
+    MappedTextStore newStore = new MappedTextStore(f2, 10);
+    try
+    {
+      Show s = new Show(1);
+      s.descStr = "A description \u00e9";
+      s.storeDesc(oldStore);
+      assertNull(s.descStr);
+      assertSame(s.descRef.store, oldStore);
+      assertEquals(s.getDesc(), "A description \u00e9");
+
+      // Compacting copies it to the new store; anything that got the old reference can still read it after the
+      // old store is gone
+      MappedTextStore.Ref oldRef = s.descRef;
+      s.storeDesc(newStore);
+      oldStore.close();
+      f1.delete();
+      assertSame(s.descRef.store, newStore);
+      assertEquals(s.getDesc(), "A description \u00e9");
+      assertEquals(oldRef.getString(), "A description \u00e9");
+      assertEquals(newStore.getTotalBytes(), s.descRef.length);
+
+      // Storing it in the store it's already in doesn't do anything
+      MappedTextStore.Ref newRef = s.descRef;
+      s.storeDesc(newStore);
+      assertSame(s.descRef, newRef);
+    }
+    finally
+    {
+      oldStore.close();
+      newStore.close();
+      f1.delete();
+      f2.delete();
+    }
+  }
+}
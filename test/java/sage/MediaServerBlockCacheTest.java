@@ -0,0 +1,229 @@
+package sage;
+
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import static org.testng.Assert.*;
+
+public class MediaServerBlockCacheTest
+{
+  private static byte[] data(int size)
+  {
+    byte[] rv = new byte[size];
+    for (int i = 0; i < size; i++)
+      rv[i] = (byte) (i * 7 + i / 256);
+    return rv;
+  }
+
+  private static byte[] read(MediaServerBlockCache cache, File f, long offset, long length, long availSize)
+      throws Exception
+  {
+    RandomAccessFile raf = new RandomAccessFile(f, "r");
+    try
+    {
+      return read(cache, f.getAbsolutePath(), raf.getChannel(), offset, length, availSize);
+    }
+    finally
+    {
+      raf.close();
+    }
+  }
+
+  private static byte[] read(MediaServerBlockCache cache, String key, FileChannel fileChannel, long offset,
+      long length, long availSize) throws Exception
+  {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    WritableByteChannel out = Channels.newChannel(bos);
+    long sent = cache.transfer(key, fileChannel, offset, length, availSize, out);
+    assertEquals(sent, bos.size());
+    return bos.toByteArray();
+  }
+
+  @Test
+  public void testReadsAcrossBlocks() throws Exception
+  {
+    File f = File.createTempFile("blockcache", ".ts");
+    f.deleteOnExit();
+    byte[] contents = data(20000);
+    FileOutputStream os = new FileOutputStream(f);
+    os.write(contents);
+    os.close();
+    MediaServerBlockCache cache = new MediaServerBlockCache(4096, 1024*1024);
+    cache.openFile(f.getAbsolutePath(), f.lastModified(), f.length(), false);
+    assertTrue(Arrays.equals(read(cache, f, 1000, 9000, f.length()), Arrays.copyOfRange(contents, 1000, 10000)));
+    // Now it comes from the cache
+    assertTrue(Arrays.equals(read(cache, f, 4096, 4096, f.length()), Arrays.copyOfRange(contents, 4096, 8192)));
+    // Stops at the end of the file
+    assertTrue(Arrays.equals(read(cache, f, 19000, 4096, f.length()), Arrays.copyOfRange(contents, 19000, 20000)));
+    assertEquals(read(cache, f, 20000, 100, f.length()).length, 0);
+  }
+
+  @Test
+  public void testGrowingFile() throws Exception
+  {
+    File f = File.createTempFile("blockcache", ".ts");
+    f.deleteOnExit();
+    byte[] contents = data(10000);
+    FileOutputStream os = new FileOutputStream(f);
+    os.write(contents, 0, 5000);
+    os.flush();
+    MediaServerBlockCache cache = new MediaServerBlockCache(4096, 1024*1024);
+    cache.openFile(f.getAbsolutePath(), f.lastModified(), f.length(), true);
+    assertTrue(Arrays.equals(read(cache, f, 4000, 2000, 5000), Arrays.copyOfRange(contents, 4000, 5000)));
+    os.write(contents, 5000, 5000);
+    os.close();
+    // The partly filled block gets the rest of its data
+    assertTrue(Arrays.equals(read(cache, f, 5000, 5000, 10000), Arrays.copyOfRange(contents, 5000, 10000)));
+    // Another client with an older size doesn't lose anything
+    assertTrue(Arrays.equals(read(cache, f, 0, 5000, 5000), Arrays.copyOfRange(contents, 0, 5000)));
+  }
+
+  @Test
+  public void testReplacedFile() throws Exception
+  {
+    File f = File.createTempFile("blockcache", ".ts");
+    f.deleteOnExit();
+    byte[] contents = data(8192);
+    FileOutputStream os = new FileOutputStream(f);
+    os.write(contents);
+    os.close();
+    MediaServerBlockCache cache = new MediaServerBlockCache(4096, 1024*1024);
+    cache.openFile(f.getAbsolutePath(), f.lastModified(), f.length(), false);
+    read(cache, f, 0, 8192, f.length());
+
+    byte[] newContents = new byte[6000];
+    Arrays.fill(newContents, (byte) 3);
+    os = new FileOutputStream(f);
+    os.write(newContents);
+    os.close();
+    assertTrue(Arrays.equals(read(cache, f, 0, 6000, f.length()), newContents));
+  }
+
+  @Test
+  public void testMemoryLimit() throws Exception
+  {
+    File f = File.createTempFile("blockcache", ".ts");
+    f.deleteOnExit();
+    byte[] contents = data(64*1024);
+    FileOutputStream os = new FileOutputStream(f);
+    os.write(contents);
+    os.close();
+    MediaServerBlockCache cache = new MediaServerBlockCache(4096, 4*4096);
+    cache.openFile(f.getAbsolutePath(), f.lastModified(), f.length(), false);
+    assertTrue(Arrays.equals(read(cache, f, 0, contents.length, f.length()), contents));
+    assertEquals(cache.getCachedBytes(), 4*4096);
+    assertTrue(Arrays.equals(read(cache, f, 0, contents.length, f.length()), contents));
+  }
+
+  @Test
+  public void testRecreatedRecording() throws Exception
+  {
+    File f = File.createTempFile("blockcache", ".ts");
+    f.deleteOnExit();
+    byte[] contents = data(8192);
+    FileOutputStream os = new FileOutputStream(f);
+    os.write(contents);
+    os.close();
+    MediaServerBlockCache cache = new MediaServerBlockCache(4096, 1024*1024);
+    String oldKey = MediaServerBlockCache.getFileKey(f);
+    cache.openFile(oldKey, f.lastModified(), f.length(), true);
+    RandomAccessFile oldRaf = new RandomAccessFile(f, "r");
+    try
+    {
+      assertTrue(Arrays.equals(read(cache, oldKey, oldRaf.getChannel(), 0, 8192, 8192), contents));
+
+      // It's deleted and recorded again while a client is still reading the old one
+      assertTrue(f.delete());
+      byte[] newContents = new byte[6000];
+      Arrays.fill(newContents, (byte) 3);
+      os = new FileOutputStream(f);
+      os.write(newContents);
+      os.flush();
+      String newKey = MediaServerBlockCache.getFileKey(f);
+      assertNotEquals(newKey, oldKey);
+      cache.openFile(newKey, f.lastModified(), f.length(), true);
+      RandomAccessFile newRaf = new RandomAccessFile(f, "r");
+      try
+      {
+        assertTrue(Arrays.equals(read(cache, newKey, newRaf.getChannel(), 0, 6000, 6000), newContents));
+        assertTrue(Arrays.equals(read(cache, oldKey, oldRaf.getChannel(), 0, 8192, 8192), contents));
+      }
+      finally
+      {
+        newRaf.close();
+        os.close();
+      }
+    }
+    finally
+    {
+      oldRaf.close();
+    }
+  }
+
+  @Test
+  public void testShrunkGrowingFile() throws Exception
+  {
+    File f = File.createTempFile("blockcache", ".ts");
+    f.deleteOnExit();
+    byte[] contents = data(8192);
+    FileOutputStream os = new FileOutputStream(f);
+    os.write(contents);
+    os.close();
+    // The same key is used even if the file is replaced, like when the OS has no file identity or reuses it
+    MediaServerBlockCache cache = new MediaServerBlockCache(4096, 1024*1024);
+    cache.openFile("recording", f.lastModified(), f.length(), true);
+    RandomAccessFile raf = new RandomAccessFile(f, "r");
+    try
+    {
+      assertTrue(Arrays.equals(read(cache, "recording", raf.getChannel(), 0, 8192, 8192), contents));
+    }
+    finally
+    {
+      raf.close();
+    }
+    cache.closeFile("recording");
+
+    byte[] newContents = new byte[6000];
+    Arrays.fill(newContents, (byte) 3);
+    os = new FileOutputStream(f);
+    os.write(newContents);
+    os.close();
+    // A growing file never gets smaller, so it has to be a new one
+    cache.openFile("recording", f.lastModified(), f.length(), true);
+    raf = new RandomAccessFile(f, "r");
+    try
+    {
+      assertTrue(Arrays.equals(read(cache, "recording", raf.getChannel(), 0, 6000, 6000), newContents));
+    }
+    finally
+    {
+      raf.close();
+    }
+  }
+
+  @Test
+  public void testSharedOnlyWithMoreThanOneReader() throws Exception
+  {
+    MediaServerBlockCache cache = new MediaServerBlockCache(4096, 1024*1024);
+    cache.openFile("file", 1, 100, false);
+    assertFalse(cache.isShared("file"));
+    cache.openFile("file", 1, 100, false);
+    assertTrue(cache.isShared("file"));
+    // Replacing the file doesn't lose track of who has it open
+    cache.openFile("file", 2, 50, false);
+    assertTrue(cache.isShared("file"));
+    cache.closeFile("file");
+    cache.closeFile("file");
+    assertFalse(cache.isShared("file"));
+    cache.closeFile("file");
+    assertFalse(cache.isShared("file"));
+  }
+}
@@ -0,0 +1,220 @@
+package sage;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class MediaServerEventLoopTest
+{
+  // Only to keep a broken server from hanging the test
+  private static final int CLIENT_TIMEOUT = 30000;
+
+  private MediaServer server;
+  private ServerSocketChannel serverChannel;
+  private File smallFile;
+  private File bigFile;
+
+  @BeforeClass
+  public void setUp() throws Throwable
+  {
+    TestUtils.initializeSageTVForTesting();
+    Wizard.primeInMemory();
+    server = new MediaServer();
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+
+    smallFile = File.createTempFile("mediaserver", ".mpg");
+    smallFile.deleteOnExit();
+    byte[] data = new byte[64 * 1024];
+    for (int i = 0; i < data.length; i++)
+      data[i] = (byte) i;
+    FileOutputStream os = new FileOutputStream(smallFile);
+    os.write(data);
+    os.close();
+    assertTrue(server.addAuthorizedFile(smallFile));
+
+    // Much more than the socket buffers can hold
+    bigFile = File.createTempFile("mediaserver", ".mpg");
+    bigFile.deleteOnExit();
+    RandomAccessFile raf = new RandomAccessFile(bigFile, "rw");
+    raf.setLength(256 * 1024 * 1024);
+    raf.close();
+    assertTrue(server.addAuthorizedFile(bigFile));
+  }
+
+  @AfterClass
+  public void tearDown() throws Exception
+  {
+    serverChannel.close();
+    smallFile.delete();
+    bigFile.delete();
+  }
+
+  private Socket connect(MediaServerEventLoop eventLoop, int receiveBufferSize) throws IOException
+  {
+    Socket rv = new Socket();
+    if (receiveBufferSize > 0)
+      rv.setReceiveBufferSize(receiveBufferSize);
+    rv.setSoTimeout(CLIENT_TIMEOUT);
+    rv.connect(serverChannel.socket().getLocalSocketAddress());
+    eventLoop.addConnection(server.new Connection(serverChannel.accept()));
+    return rv;
+  }
+
+  private static void send(Socket client, String lines) throws IOException
+  {
+    OutputStream os = client.getOutputStream();
+    os.write(lines.getBytes("ISO-8859-1"));
+    os.flush();
+  }
+
+  private static String readLine(InputStream is) throws IOException
+  {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int c;
+    while ((c = is.read()) != '\n')
+    {
+      if (c < 0)
+        throw new IOException("Connection closed");
+      if (c != '\r')
+        line.write(c);
+    }
+    return line.toString("ISO-8859-1");
+  }
+
+  @Test
+  public void testPipelinedCommands() throws Exception
+  {
+    MediaServerEventLoop eventLoop = new MediaServerEventLoop(1, 1, 4);
+    try
+    {
+      Socket client = connect(eventLoop, 0);
+      // All of them in one write, so they're all buffered before the first one is run
+      send(client, "OPEN " + smallFile.getAbsolutePath() + "\r\nSIZE\r\nREAD 100 1000\r\nREAD 60000 8000\r\n" +
+          "CLOSE\r\nSIZE\r\nQUIT\r\n");
+      DataInputStream is = new DataInputStream(client.getInputStream());
+      assertEquals(readLine(is), "OK");
+      assertEquals(readLine(is), "65536 65536");
+      byte[] data = new byte[1000];
+      is.readFully(data);
+      for (int i = 0; i < data.length; i++)
+        assertEquals(data[i], (byte) (100 + i), "byte " + i);
+      // Past the end of the file is padded
+      data = new byte[8000];
+      is.readFully(data);
+      for (int i = 0; i < 65536 - 60000; i++)
+        assertEquals(data[i], (byte) (60000 + i), "byte " + i);
+      assertEquals(readLine(is), "OK");
+      assertEquals(readLine(is), "-1 -1");
+      // And then it closes the connection for the QUIT
+      assertEquals(is.read(), -1);
+      client.close();
+    }
+    finally
+    {
+      eventLoop.close();
+    }
+  }
+
+  @Test
+  public void testSlowClientsDontBlockOthers() throws Exception
+  {
+    MediaServerEventLoop eventLoop = new MediaServerEventLoop(1, 2, 8);
+    List<Socket> slowClients = new ArrayList<Socket>();
+    try
+    {
+      // These never read what they asked for, so each one holds an I/O thread waiting to write to it
+      for (int i = 0; i < 6; i++)
+      {
+        Socket slow = connect(eventLoop, 4096);
+        send(slow, "OPEN " + bigFile.getAbsolutePath() + "\r\nREAD 0 " + bigFile.length() + "\r\n");
+        assertEquals(readLine(slow.getInputStream()), "OK");
+        slowClients.add(slow);
+      }
+
+      // There's more of them than the I/O threads it started with, but the others still get served right away
+      Socket fast = connect(eventLoop, 0);
+      send(fast, "OPEN " + smallFile.getAbsolutePath() + "\r\nSIZE\r\n");
+      InputStream is = fast.getInputStream();
+      assertEquals(readLine(is), "OK");
+      assertEquals(readLine(is), "65536 65536");
+      assertTrue(eventLoop.getNumIOThreads() > 2, "threads=" + eventLoop.getNumIOThreads());
+
+      // Saturate the pool; then the next command has to wait until one of the slow ones goes away
+      for (int i = 0; i < 2; i++)
+      {
+        Socket slow = connect(eventLoop, 4096);
+        send(slow, "OPEN " + bigFile.getAbsolutePath() + "\r\nREAD 0 " + bigFile.length() + "\r\n");
+        assertEquals(readLine(slow.getInputStream()), "OK");
+        slowClients.add(slow);
+      }
+      assertEquals(eventLoop.getNumIOThreads(), 8);
+      send(fast, "SIZE\r\n");
+      slowClients.remove(0).close();
+      assertEquals(readLine(is), "65536 65536");
+      fast.close();
+    }
+    finally
+    {
+      for (Socket slow : slowClients)
+        slow.close();
+      eventLoop.close();
+    }
+  }
+
+  @Test
+  public void testCacheDisabledWhileFileIsOpen() throws Exception
+  {
+    MediaServerEventLoop eventLoop = new MediaServerEventLoop(1, 1, 4);
+    List<Socket> clients = new ArrayList<Socket>();
+    try
+    {
+      // Two of them so the reads go through the shared cache
+      for (int i = 0; i < 2; i++)
+      {
+        Socket client = connect(eventLoop, 0);
+        send(client, "OPEN " + smallFile.getAbsolutePath() + "\r\n");
+        assertEquals(readLine(client.getInputStream()), "OK");
+        clients.add(client);
+      }
+      Sage.put("media_server/shared_read_cache_size", "0");
+      Socket other = connect(eventLoop, 0);
+      clients.add(other);
+      send(other, "OPEN " + smallFile.getAbsolutePath() + "\r\n");
+      assertEquals(readLine(other.getInputStream()), "OK");
+
+      // The ones that opened it before still use the cache they opened it with
+      for (int i = 0; i < 3; i++)
+      {
+        send(clients.get(i), "READ 1000 3000\r\n");
+        byte[] data = new byte[3000];
+        new DataInputStream(clients.get(i).getInputStream()).readFully(data);
+        for (int j = 0; j < data.length; j++)
+          assertEquals(data[j], (byte) (1000 + j), "client " + i + " byte " + j);
+      }
+    }
+    finally
+    {
+      Sage.remove("media_server/shared_read_cache_size");
+      for (Socket client : clients)
+        client.close();
+      eventLoop.close();
+    }
+  }
+}
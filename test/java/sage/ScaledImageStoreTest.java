@@ -0,0 +1,199 @@
+package sage;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.*;
+
+public class ScaledImageStoreTest
+{
+  private static File newBaseFile() throws Exception
+  {
+    return new File(Files.createTempDirectory("scaledimages").toFile(), "scaledimages");
+  }
+
+  private static byte[] imageData(int seed, int length)
+  {
+    byte[] rv = new byte[length];
+    for (int i = 0; i < length; i++)
+      rv[i] = (byte) (seed + i);
+    return rv;
+  }
+
+  private static ScaledImageStore.Key key(int i)
+  {
+    return new ScaledImageStore.Key("file-/pics/image" + i + ".jpg-1000-320-240|0|jpg");
+  }
+
+  @Test
+  public void testImagesPersist() throws Exception
+  {
+    File baseFile = newBaseFile();
+    ScaledImageStore store = new ScaledImageStore(baseFile, 1024*1024);
+    assertNull(store.get(key(1)));
+    store.put(key(1), imageData(1, 5000));
+    assertEquals(store.get(key(1)), imageData(1, 5000));
+    store.close();
+
+    store = new ScaledImageStore(baseFile, 1024*1024);
+    // Nothing's there until it's loaded
+    assertNull(store.get(key(1)));
+    store.waitForBackgroundWork();
+    assertEquals(store.get(key(1)), imageData(1, 5000));
+    assertNull(store.get(key(2)));
+    assertEquals(store.size(), 1);
+    store.close();
+  }
+
+  @Test
+  public void testRecordsAfterTheIndexAreLoaded() throws Exception
+  {
+    File baseFile = newBaseFile();
+    ScaledImageStore store = new ScaledImageStore(baseFile, 1024*1024);
+    // The index gets written after every 32 of them; the rest are only in the pack since it's not closed
+    for (int i = 0; i < 40; i++)
+      store.put(key(i), imageData(i, 1000));
+    store.waitForBackgroundWork();
+    assertTrue(new File(baseFile.getPath() + ".idx").isFile());
+
+    store = new ScaledImageStore(baseFile, 1024*1024);
+    store.waitForBackgroundWork();
+    assertEquals(store.size(), 40);
+    for (int i = 0; i < 40; i++)
+      assertEquals(store.get(key(i)), imageData(i, 1000));
+    store.close();
+  }
+
+  @Test
+  public void testLeastRecentlyUsedAreDropped() throws Exception
+  {
+    File baseFile = newBaseFile();
+    ScaledImageStore store = new ScaledImageStore(baseFile, 10000);
+    for (int i = 0; i < 4; i++)
+      store.put(key(i), imageData(i, 2000));
+    assertNotNull(store.get(key(0)));
+    store.put(key(4), imageData(4, 2000));
+    store.put(key(5), imageData(5, 2000));
+    store.waitForBackgroundWork();
+    assertTrue(store.getTotalSize() <= 10000);
+    assertNotNull(store.get(key(0)));
+    assertNull(store.get(key(1)));
+    store.close();
+
+    // The order they were used in is kept
+    store = new ScaledImageStore(baseFile, 10000);
+    store.waitForBackgroundWork();
+    store.put(key(6), imageData(6, 2000));
+    assertNotNull(store.get(key(0)));
+    store.waitForBackgroundWork();
+    assertNull(store.get(key(2)));
+    store.close();
+  }
+
+  @Test
+  public void testDamagedRecordIsDropped() throws Exception
+  {
+    File baseFile = newBaseFile();
+    ScaledImageStore store = new ScaledImageStore(baseFile, 1024*1024);
+    store.put(key(1), imageData(1, 3000));
+    store.put(key(2), imageData(2, 3000));
+    store.close();
+    new File(baseFile.getPath() + ".idx").delete();
+    File packFile = new File(baseFile.getPath() + ".pack");
+    RandomAccessFile raf = new RandomAccessFile(packFile, "rw");
+    raf.setLength(raf.length() - 100);
+    raf.close();
+
+    store = new ScaledImageStore(baseFile, 1024*1024);
+    store.waitForBackgroundWork();
+    assertEquals(store.get(key(1)), imageData(1, 3000));
+    assertNull(store.get(key(2)));
+    store.put(key(3), imageData(3, 3000));
+    store.close();
+
+    store = new ScaledImageStore(baseFile, 1024*1024);
+    store.waitForBackgroundWork();
+    assertEquals(store.get(key(3)), imageData(3, 3000));
+    assertEquals(store.size(), 2);
+    store.close();
+  }
+
+  @Test
+  public void testReadsWhileThePackIsRewritten() throws Exception
+  {
+    File baseFile = newBaseFile();
+    File packFile = new File(baseFile.getPath() + ".pack");
+    final ScaledImageStore store = new ScaledImageStore(baseFile, 4*1024*1024);
+    // Enough of them that there's always a lot in the pack to read while more are added and it's rewritten
+    final int imageSize = 64*1024;
+    final int numImages = 600;
+    final AtomicReference<Throwable> readError = new AtomicReference<Throwable>();
+    final boolean[] done = new boolean[1];
+    // Reads whatever's there as it's being written and compacted; it has to be a miss or the right data
+    Thread reader = new Thread("TestScaledImageReader")
+    {
+      public void run()
+      {
+        try
+        {
+          while (true)
+          {
+            synchronized (done)
+            {
+              if (done[0])
+                return;
+            }
+            for (int i = 0; i < numImages; i++)
+            {
+              byte[] data = store.get(key(i));
+              if (data != null)
+                assertEquals(data, imageData(i, imageSize), "image " + i);
+            }
+          }
+        }
+        catch (Throwable t)
+        {
+          readError.set(t);
+        }
+      }
+    };
+    reader.start();
+    long totalWritten = 0;
+    try
+    {
+      for (int i = 0; i < numImages; i++)
+      {
+        store.put(key(i), imageData(i, imageSize));
+        totalWritten += imageSize;
+        // Don't let it drop any of them
+        if (i % 8 == 7)
+          store.waitForBackgroundWork();
+      }
+      store.waitForBackgroundWork();
+    }
+    finally
+    {
+      synchronized (done)
+      {
+        done[0] = true;
+      }
+      reader.join();
+    }
+    assertNull(readError.get());
+    // It was rewritten without the ones that were dropped
+    assertTrue(packFile.length() < totalWritten / 2, "pack=" + packFile.length());
+    assertTrue(store.getTotalSize() <= 4*1024*1024);
+    assertEquals(store.get(key(numImages - 1)), imageData(numImages - 1, imageSize));
+    store.close();
+
+    ScaledImageStore reopened = new ScaledImageStore(baseFile, 4*1024*1024);
+    reopened.waitForBackgroundWork();
+    assertEquals(reopened.size(), store.size());
+    assertEquals(reopened.get(key(numImages - 1)), imageData(numImages - 1, imageSize));
+    reopened.close();
+  }
+}
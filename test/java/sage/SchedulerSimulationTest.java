@@ -0,0 +1,69 @@
+package sage;
+
+import org.testng.annotations.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.testng.Assert.*;
+
+public class SchedulerSimulationTest
+{
+  @Test
+  public void testReadExportChannels() throws Exception
+  {
+    String export = "Encoder\tStart Time\tStop Time\tDuration\tChannelName\tChannelNum\tTitle\tManualRecord\tFavorite\n" +
+        "Tuner B\t1/1 8:00\t1/1 9:00\t1h\tKABC\t7\tNews\tfalse\ttrue\n" +
+        "Tuner A\t1/1 8:00\t1/1 9:00\t1h\tKNBC\t4\tShow\ttrue\tfalse\n" +
+        "Tuner B\t1/1 9:00\t1/1 10:00\t1h\tKCBS\t2\tMovie\tfalse\ttrue\n" +
+        "Tuner B\t1/1 10:00\t1/1 11:00\t1h\tNA\t0\tOther\tfalse\ttrue\n" +
+        "\n";
+    Map<String, Set<String>> chans = SchedulerSimulation.readExportChannels(new BufferedReader(new StringReader(export)));
+    assertEquals(chans.keySet().toArray(), new Object[] { "Tuner B", "Tuner A" });
+    assertEquals(chans.get("Tuner B"), new HashSet<String>(Arrays.asList("KABC", "KCBS")));
+    assertEquals(chans.get("Tuner A"), new HashSet<String>(Arrays.asList("KNBC")));
+  }
+
+  @Test
+  public void testScaleEncoders()
+  {
+    Map<String, Set<Integer>> base = new LinkedHashMap<String, Set<Integer>>();
+    base.put("A", new HashSet<Integer>(Arrays.asList(1, 2)));
+    base.put("B", new HashSet<Integer>(Arrays.asList(3)));
+    Map<String, Set<Integer>> scaled = SchedulerSimulation.scaleEncoders(base, 5);
+    assertEquals(scaled.size(), 5);
+    int i = 0;
+    for (Map.Entry<String, Set<Integer>> ent : scaled.entrySet())
+    {
+      String baseName = (i % 2 == 0) ? "A" : "B";
+      assertEquals(ent.getKey(), "Simulated " + (i + 1) + " (" + baseName + ")");
+      assertEquals(ent.getValue(), base.get(baseName));
+      i++;
+    }
+    assertTrue(SchedulerSimulation.scaleEncoders(new LinkedHashMap<String, Set<Integer>>(), 4).isEmpty());
+  }
+
+  @Test
+  public void testParseTunerCounts()
+  {
+    assertTrue(Arrays.equals(SchedulerSimulation.parseTunerCounts("4, 8,x,-1,16"), new int[] { 4, 8, 16 }));
+    assertEquals(SchedulerSimulation.parseTunerCounts("").length, 0);
+  }
+
+  @Test
+  public void testReportLine()
+  {
+    SchedulerSimulation.Result result = new SchedulerSimulation.Result("8 Tuners", 2, 8, 1234, 10, 7, 5000, 3, 1,
+        120, 4, true, 5, 9);
+    String[] cols = result.toReportLine().split("\t");
+    assertEquals(cols.length, SchedulerSimulation.Result.getReportHeader().split("\t").length);
+    assertEquals(cols[0], "8 Tuners");
+    assertEquals(cols[3], "1234");
+    assertEquals(cols[8], "1");
+  }
+}
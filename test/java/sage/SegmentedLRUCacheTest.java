@@ -0,0 +1,89 @@
+package sage;
+
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class SegmentedLRUCacheTest
+{
+  @Test
+  public void testBoundedSize()
+  {
+    SegmentedLRUCache<Integer, String> cache = new SegmentedLRUCache<Integer, String>(4, 100);
+    for (int i = 0; i < 1000; i++)
+      assertNull(cache.putIfAbsent(i, "value" + i));
+    assertTrue(cache.size() <= 100, "size=" + cache.size());
+    assertEquals(cache.getEvictions(), 1000 - cache.size());
+  }
+
+  @Test
+  public void testUsedEntriesAreProtected()
+  {
+    SegmentedLRUCache<Integer, String> cache = new SegmentedLRUCache<Integer, String>(1, 10);
+    for (int i = 0; i < 5; i++)
+    {
+      cache.put(i, "value" + i);
+      cache.get(i);
+    }
+    // A scan through entries that are only used once doesn't push out the ones that were used again
+    for (int i = 100; i < 200; i++)
+      cache.put(i, "value" + i);
+    System.gc();
+    for (int i = 0; i < 5; i++)
+      assertEquals(cache.get(i), "value" + i);
+    assertFalse(cache.containsKey(100) && cache.containsKey(101) && cache.containsKey(102));
+  }
+
+  @Test
+  public void testNonEvictableEntriesStay()
+  {
+    SegmentedLRUCache<Integer, String> cache = new SegmentedLRUCache<Integer, String>(1, 10)
+    {
+      protected boolean isEvictable(String value)
+      {
+        return !value.startsWith("keep");
+      }
+    };
+    for (int i = 0; i < 5; i++)
+      cache.put(i, "keep" + i);
+    for (int i = 100; i < 200; i++)
+      cache.put(i, "value" + i);
+    assertEquals(cache.size(), 10);
+    for (int i = 0; i < 5; i++)
+      assertEquals(cache.get(i), "keep" + i);
+  }
+
+  @Test
+  public void testEvictedValuesInUseAreFound()
+  {
+    SegmentedLRUCache<Integer, Object> cache = new SegmentedLRUCache<Integer, Object>(1, 10);
+    Object inUse = new Object();
+    cache.put(0, inUse);
+    for (int i = 1; i < 100; i++)
+      cache.put(i, new Object());
+    assertEquals(cache.size(), 10);
+    // It's still referenced here, so it has to be the one that's returned and not a second copy
+    List<Object> values = cache.values();
+    assertTrue(values.contains(inUse));
+    assertTrue(cache.containsKey(0));
+    assertSame(cache.putIfAbsent(0, new Object()), inUse);
+    assertSame(cache.get(0), inUse);
+  }
+
+  @Test
+  public void testNullKeyAndStats()
+  {
+    SegmentedLRUCache<String, String> cache = new SegmentedLRUCache<String, String>(2, 4);
+    cache.put(null, "null");
+    for (int i = 0; i < 20; i++)
+      cache.put("key" + i, "value" + i);
+    assertEquals(cache.get(null), "null");
+    assertNull(cache.get("missing"));
+    assertEquals(cache.getHits(), 1);
+    assertEquals(cache.getMisses(), 1);
+    assertEquals(cache.remove(null), "null");
+    assertFalse(cache.containsKey(null));
+  }
+}
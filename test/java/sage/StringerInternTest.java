@@ -0,0 +1,77 @@
+package sage;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.*;
+
+public class StringerInternTest
+{
+  private static Stringer newStringer(int id, String name)
+  {
+    Stringer rv = new Stringer(id);
+    rv.name = name;
+    return rv;
+  }
+
+  @Test
+  public void testAddGetRemove()
+  {
+    StringerIntern intern = new StringerIntern();
+    List<Stringer> all = new ArrayList<Stringer>();
+    for (int i = 1; i <= 5000; i++)
+    {
+      Stringer s = newStringer(i, "Name" + i);
+      all.add(s);
+      intern.add(s);
+    }
+    assertEquals(intern.size(), 5000);
+    for (Stringer s : all)
+      assertSame(intern.get(new String(s.name)), s);
+    assertNull(intern.get("Missing"));
+
+    // Remove every other one; the rest still need to be found past the removed slots
+    for (int i = 0; i < all.size(); i += 2)
+      intern.remove(all.get(i));
+    assertEquals(intern.size(), 2500);
+    for (int i = 0; i < all.size(); i++)
+    {
+      if (i % 2 == 0)
+        assertNull(intern.get(all.get(i).name));
+      else
+        assertSame(intern.get(all.get(i).name), all.get(i));
+    }
+    assertTrue(intern.isComplete());
+
+    // Adding them back reuses the removed slots
+    for (int i = 0; i < all.size(); i += 2)
+      intern.add(all.get(i));
+    for (Stringer s : all)
+      assertSame(intern.get(s.name), s);
+
+    intern.clear();
+    assertEquals(intern.size(), 0);
+    assertNull(intern.get(all.get(0).name));
+  }
+
+  @Test
+  public void testDuplicateNames()
+  {
+    StringerIntern intern = new StringerIntern();
+    Stringer first = newStringer(1, "Drama");
+    Stringer second = newStringer(2, "Drama");
+    intern.add(first);
+    intern.add(second);
+    // The first one added wins
+    assertSame(intern.get("Drama"), first);
+    assertEquals(intern.size(), 1);
+    assertTrue(intern.isComplete());
+
+    // Now the other one is only in the table
+    intern.remove(first);
+    assertNull(intern.get("Drama"));
+    assertFalse(intern.isComplete());
+  }
+}
@@ -0,0 +1,175 @@
+package sage;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.testng.Assert.*;
+
+public class TableSnapshotReadTest
+{
+  private static final int NUM_OBJECTS = 500;
+  private static final int NUM_READERS = 3;
+  private static final int NUM_PASSES = 200;
+  private static final byte VALUE_INDEX_CODE = 1;
+
+  // Sorts the objects by their key value; so updating the value moves them in that index
+  private static final Comparator<DBObject> VALUE_COMPARATOR = new Comparator<DBObject>()
+  {
+    public int compare(DBObject o1, DBObject o2)
+    {
+      int v1 = ((WizardSaveTest.PairObject) o1).first;
+      int v2 = ((WizardSaveTest.PairObject) o2).first;
+      if (v1 != v2)
+        return (v1 < v2) ? -1 : 1;
+      return o1.id - o2.id;
+    }
+  };
+
+  @BeforeClass
+  public void setUp() throws Throwable
+  {
+    TestUtils.initializeSageTVForTesting();
+  }
+
+  @Test
+  public void testPinnedReadsWhileKeysAreUpdated() throws Exception
+  {
+    final Table table = new Table(Wizard.YEAR_CODE, new Index(DBObject.ID_COMPARATOR),
+        new Index[] { new Index(VALUE_INDEX_CODE, VALUE_COMPARATOR) });
+    table.setWizard(Wizard.getInstance());
+    table.setSnapshotReads(true);
+    final WizardSaveTest.PairObject[] objects = new WizardSaveTest.PairObject[NUM_OBJECTS];
+    for (int i = 0; i < objects.length; i++)
+    {
+      objects[i] = new WizardSaveTest.PairObject(i + 1, i);
+      table.add(objects[i], false);
+    }
+    final Index valueIndex = table.getIndex(VALUE_INDEX_CODE);
+
+    final AtomicBoolean done = new AtomicBoolean();
+    Thread updater = new Thread("TableSnapshotReadTest-updater")
+    {
+      @Override
+      public void run()
+      {
+        Random rand = new Random(7);
+        while (!done.get())
+        {
+          WizardSaveTest.PairObject obj = objects[rand.nextInt(objects.length)];
+          table.update(obj, new WizardSaveTest.PairObject(obj.id, rand.nextInt(NUM_OBJECTS * 4)), false);
+        }
+      }
+    };
+    updater.start();
+
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] readers = new Thread[NUM_READERS];
+    for (int r = 0; r < readers.length; r++)
+    {
+      readers[r] = new Thread("TableSnapshotReadTest-reader" + r)
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            for (int pass = 0; pass < NUM_PASSES && failure.get() == null; pass++)
+            {
+              try {
+                table.acquireReadLock();
+                assertEquals(table.size(), NUM_OBJECTS);
+                DBObject last = null;
+                for (int i = 0; i < NUM_OBJECTS; i++)
+                {
+                  WizardSaveTest.PairObject obj = (WizardSaveTest.PairObject) valueIndex.get(i);
+                  assertEquals(obj.second, obj.first, "Object " + obj.id + " was read during an update");
+                  if (last != null)
+                    assertTrue(VALUE_COMPARATOR.compare(last, obj) < 0, "Index out of order at " + i);
+                  last = obj;
+                }
+                for (int i = 0; i < objects.length; i++)
+                {
+                  int index = valueIndex.binarySearch(objects[i]);
+                  assertTrue(index >= 0, "Object " + objects[i].id + " was not found");
+                  assertSame(valueIndex.get(index), objects[i]);
+                  assertSame(table.primary.getSingle(objects[i].id), objects[i]);
+                }
+              } finally {
+                table.releaseReadLock();
+              }
+            }
+          }
+          catch (Throwable t)
+          {
+            failure.compareAndSet(null, t);
+          }
+        }
+      };
+      readers[r].start();
+    }
+
+    try
+    {
+      for (int r = 0; r < readers.length; r++)
+        readers[r].join();
+    }
+    finally
+    {
+      done.set(true);
+      updater.join();
+    }
+    if (failure.get() != null)
+      throw new AssertionError(failure.get());
+  }
+
+  @Test
+  public void testUnpinnedSearchesWhileKeysAreUpdated() throws Exception
+  {
+    final Table table = new Table(Wizard.YEAR_CODE, new Index(DBObject.ID_COMPARATOR),
+        new Index[] { new Index(VALUE_INDEX_CODE, VALUE_COMPARATOR) });
+    table.setWizard(Wizard.getInstance());
+    table.setSnapshotReads(true);
+    final WizardSaveTest.PairObject[] objects = new WizardSaveTest.PairObject[NUM_OBJECTS];
+    for (int i = 0; i < objects.length; i++)
+    {
+      objects[i] = new WizardSaveTest.PairObject(i + 1, i);
+      table.add(objects[i], false);
+    }
+    final Index valueIndex = table.getIndex(VALUE_INDEX_CODE);
+
+    final AtomicBoolean done = new AtomicBoolean();
+    Thread updater = new Thread("TableSnapshotReadTest-updater")
+    {
+      @Override
+      public void run()
+      {
+        Random rand = new Random(11);
+        while (!done.get())
+        {
+          WizardSaveTest.PairObject obj = objects[rand.nextInt(objects.length)];
+          table.update(obj, new WizardSaveTest.PairObject(obj.id, rand.nextInt(NUM_OBJECTS * 4)), false);
+        }
+      }
+    };
+    updater.start();
+    try
+    {
+      // Each search uses whatever version is current when it starts; the object must be in it where its key says
+      for (int pass = 0; pass < NUM_PASSES; pass++)
+      {
+        for (int i = 0; i < objects.length; i++)
+          assertTrue(valueIndex.binarySearch(objects[i]) >= 0, "Object " + objects[i].id + " was not found");
+      }
+    }
+    finally
+    {
+      done.set(true);
+      updater.join();
+    }
+  }
+}
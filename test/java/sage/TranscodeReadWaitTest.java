@@ -0,0 +1,228 @@
+package sage;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+
+import static org.testng.Assert.*;
+
+public class TranscodeReadWaitTest
+{
+  private static final int BUFFER_SIZE = 32768;
+  // Reads that are supposed to be woken up get this long, so they only get near it if nothing signals them
+  private static final long LONG_WAIT = 30000;
+  private static final long SHORT_WAIT = 300;
+  // How long the data shows up after the read starts waiting for it
+  private static final long PRODUCE_DELAY = 200;
+
+  @BeforeClass
+  public void setUp() throws Throwable
+  {
+    TestUtils.initializeSageTVForTesting();
+  }
+
+  private static byte[] newData(int length, int seed)
+  {
+    byte[] rv = new byte[length];
+    for (int i = 0; i < length; i++)
+      rv[i] = (byte) (seed + i * 7);
+    return rv;
+  }
+
+  private static void pause(long millis)
+  {
+    try
+    {
+      Thread.sleep(millis);
+    }
+    catch (InterruptedException e){}
+  }
+
+  private static void assertPadded(byte[] buf, int offset, int length)
+  {
+    for (int i = offset; i < offset + length; i++)
+      assertEquals(buf[i], (byte) 0xFF, "byte " + i);
+  }
+
+  // Writes the data to the remuxer's output after a delay, like the buffer filler would
+  private static Thread writeLater(final OutputStream out, final byte[] data)
+  {
+    Thread rv = new Thread("TestRemuxOutput")
+    {
+      public void run()
+      {
+        pause(PRODUCE_DELAY);
+        try
+        {
+          out.write(data);
+        }
+        catch (java.io.IOException e)
+        {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    rv.start();
+    return rv;
+  }
+
+  private static RemuxTranscodeEngine newRemuxer(long dataWaitTime)
+  {
+    RemuxTranscodeEngine rv = new RemuxTranscodeEngine();
+    rv.initBuffers();
+    rv.dataWaitTime = dataWaitTime;
+    return rv;
+  }
+
+  @Test
+  public void testRemuxReadWakesWhenBufferFills() throws Exception
+  {
+    RemuxTranscodeEngine engine = newRemuxer(LONG_WAIT);
+    byte[] data = newData(BUFFER_SIZE, 3);
+    Thread producer = writeLater(engine.muxyBuffer, data);
+    byte[] buf = new byte[BUFFER_SIZE];
+    long start = System.currentTimeMillis();
+    engine.readFullyTranscodedData(buf, 0, buf.length);
+    long waited = System.currentTimeMillis() - start;
+    assertEquals(buf, data);
+    assertTrue(waited < LONG_WAIT / 2, "waited=" + waited);
+    producer.join();
+  }
+
+  @Test
+  public void testRemuxReadWakesWhenDone() throws Exception
+  {
+    final RemuxTranscodeEngine engine = newRemuxer(LONG_WAIT);
+    Thread stopper = new Thread("TestRemuxStop")
+    {
+      public void run()
+      {
+        pause(PRODUCE_DELAY);
+        engine.stopTranscode();
+      }
+    };
+    stopper.start();
+    byte[] buf = new byte[BUFFER_SIZE];
+    long start = System.currentTimeMillis();
+    engine.readFullyTranscodedData(buf, 0, buf.length);
+    long waited = System.currentTimeMillis() - start;
+    // There's nothing more coming so all of it is padding
+    assertPadded(buf, 0, buf.length);
+    assertTrue(waited < LONG_WAIT / 2, "waited=" + waited);
+    stopper.join();
+  }
+
+  @Test
+  public void testRemuxReadPaddedAfterDeadline() throws Exception
+  {
+    RemuxTranscodeEngine engine = newRemuxer(SHORT_WAIT);
+    byte[] data = newData(BUFFER_SIZE, 5);
+    engine.muxyBuffer.write(data);
+    // Only the first buffer is ever filled
+    ByteBuffer bb = ByteBuffer.allocate(2 * BUFFER_SIZE);
+    long start = System.currentTimeMillis();
+    engine.readFullyTranscodedData(bb);
+    long waited = System.currentTimeMillis() - start;
+    assertFalse(bb.hasRemaining());
+    byte[] buf = bb.array();
+    for (int i = 0; i < BUFFER_SIZE; i++)
+      assertEquals(buf[i], data[i], "byte " + i);
+    assertPadded(buf, BUFFER_SIZE, BUFFER_SIZE);
+    assertTrue(waited >= SHORT_WAIT, "waited=" + waited);
+  }
+
+  // Buffers the transcoder's output from a pipe the test writes to instead of an FFMPEG process
+  private static FFMPEGTranscoder newTranscoder(Pipe pipe, long dataWaitTime)
+  {
+    FFMPEGTranscoder rv = new FFMPEGTranscoder();
+    rv.setEnableOutputBuffering(true);
+    rv.xcodeBuffer = new byte[16][BUFFER_SIZE];
+    rv.xcodeStdout = Channels.newInputStream(pipe.source());
+    rv.dataWaitTime = dataWaitTime;
+    rv.startDataConsumer();
+    return rv;
+  }
+
+  @Test
+  public void testFFMPEGReadWakesWhenBufferFills() throws Exception
+  {
+    Pipe pipe = Pipe.open();
+    FFMPEGTranscoder xcoder = newTranscoder(pipe, LONG_WAIT);
+    try
+    {
+      byte[] data = newData(BUFFER_SIZE, 11);
+      Thread producer = writeLater(Channels.newOutputStream(pipe.sink()), data);
+      byte[] buf = new byte[BUFFER_SIZE];
+      long start = System.currentTimeMillis();
+      xcoder.readFullyTranscodedData(buf, 0, buf.length);
+      long waited = System.currentTimeMillis() - start;
+      assertEquals(buf, data);
+      assertTrue(waited < LONG_WAIT / 2, "waited=" + waited);
+      producer.join();
+    }
+    finally
+    {
+      pipe.sink().close();
+    }
+  }
+
+  @Test
+  public void testFFMPEGReadWakesWhenDone() throws Exception
+  {
+    final Pipe pipe = Pipe.open();
+    FFMPEGTranscoder xcoder = newTranscoder(pipe, LONG_WAIT);
+    // The transcoder exiting closes its output
+    Thread stopper = new Thread("TestFFMPEGStop")
+    {
+      public void run()
+      {
+        pause(PRODUCE_DELAY);
+        try
+        {
+          pipe.sink().close();
+        }
+        catch (java.io.IOException e){}
+      }
+    };
+    stopper.start();
+    byte[] buf = new byte[BUFFER_SIZE];
+    long start = System.currentTimeMillis();
+    xcoder.readFullyTranscodedData(buf, 0, buf.length);
+    long waited = System.currentTimeMillis() - start;
+    assertTrue(xcoder.isTranscodeDone());
+    assertPadded(buf, 0, buf.length);
+    assertTrue(waited < LONG_WAIT / 2, "waited=" + waited);
+    stopper.join();
+  }
+
+  @Test
+  public void testFFMPEGReadPaddedAfterDeadline() throws Exception
+  {
+    Pipe pipe = Pipe.open();
+    FFMPEGTranscoder xcoder = newTranscoder(pipe, SHORT_WAIT);
+    try
+    {
+      byte[] data = newData(BUFFER_SIZE, 13);
+      Channels.newOutputStream(pipe.sink()).write(data);
+      ByteBuffer bb = ByteBuffer.allocate(2 * BUFFER_SIZE);
+      long start = System.currentTimeMillis();
+      xcoder.readFullyTranscodedData(bb);
+      long waited = System.currentTimeMillis() - start;
+      assertFalse(bb.hasRemaining());
+      byte[] buf = bb.array();
+      for (int i = 0; i < BUFFER_SIZE; i++)
+        assertEquals(buf[i], data[i], "byte " + i);
+      assertPadded(buf, BUFFER_SIZE, BUFFER_SIZE);
+      assertFalse(xcoder.isTranscodeDone());
+      assertTrue(waited >= SHORT_WAIT, "waited=" + waited);
+    }
+    finally
+    {
+      pipe.sink().close();
+    }
+  }
+}
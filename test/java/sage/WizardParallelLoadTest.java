@@ -0,0 +1,186 @@
+package sage;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.Assert.*;
+
+public class WizardParallelLoadTest
+{
+  private static final long HOUR = Sage.MILLIS_PER_HR;
+  private static final int[] STATIONS = { 9101, 9102, 9103, 9104 };
+  private static final String[] CATEGORIES = { "News", "Drama", "Comedy", "Sports", "Documentary" };
+  private static final String[] PEOPLE = { "Alice Actor", "Bob Actor", "Carol Actor", "Dave Director" };
+  private static final byte[] TABLE_CODES = { Wizard.YEAR_CODE, Wizard.NETWORK_CODE, Wizard.TITLE_CODE,
+    Wizard.CHANNEL_CODE, Wizard.BONUS_CODE, Wizard.PEOPLE_CODE, Wizard.SUBCATEGORY_CODE, Wizard.RATED_CODE,
+    Wizard.PR_CODE, Wizard.ER_CODE, Wizard.CATEGORY_CODE, Wizard.PRIME_TITLE_CODE, Wizard.SHOW_CODE,
+    Wizard.AIRING_CODE, Wizard.MANUAL_CODE, Wizard.MEDIAFILE_CODE, Wizard.WATCH_CODE, Wizard.AGENT_CODE,
+    Wizard.WASTED_CODE, Wizard.PLAYLIST_CODE, Wizard.TVEDITORIAL_CODE, Wizard.SERIESINFO_CODE,
+    Wizard.USERRECORD_CODE };
+
+  private Wizard wiz;
+
+  @BeforeClass
+  public void setUp() throws Throwable
+  {
+    TestUtils.initializeSageTVForTesting();
+    wiz = Wizard.primeInMemory();
+    EPG.getInstance().setViewableStations(STATIONS);
+    for (int i = 0; i < STATIONS.length; i++)
+      wiz.addChannel("PL" + i, "Load Channel " + i, "Load Network " + (i % 2), STATIONS[i], 0, null);
+    Carny carny = Carny.getInstance();
+    long baseTime = (Sage.time() / HOUR) * HOUR - 24 * HOUR;
+    int episode = 0;
+    List<Airing> airs = new ArrayList<Airing>();
+    // Enough of everything that the tables the Shows refer to are still loading when the Shows are, if they
+    // weren't loaded first
+    for (long time = baseTime; time < baseTime + 2000 * HOUR; time += HOUR)
+    {
+      for (int s = 0; s < STATIONS.length; s++)
+      {
+        int title = episode % 2000;
+        Show show = wiz.addShow("Load Title " + title, "Episode " + episode, "Description of episode " + episode, HOUR,
+            new String[] { CATEGORIES[title % CATEGORIES.length], CATEGORIES[(title + 1) % CATEGORIES.length] },
+            new String[] { PEOPLE[episode % PEOPLE.length], "Guest " + episode },
+            new byte[] { Show.ACTOR_ROLE, Show.DIRECTOR_ROLE }, "TV-PG", new String[] { "V", "L" },
+            Integer.toString(1990 + title), "PG", new String[] { "Bonus " + (title % 3) }, "EP" + (200000 + episode),
+            null, 0, DBObject.MEDIA_MASK_TV, (short) 0, (short) 0, false, 0, null);
+        airs.add(wiz.addAiring(show, STATIONS[s], time, HOUR, (byte) 0, 0, (byte) 0, DBObject.MEDIA_MASK_TV));
+        episode++;
+      }
+    }
+    for (int i = 0; i < airs.size(); i += 7)
+    {
+      Airing air = airs.get(i);
+      if (air.getEndTime() < Sage.time())
+        wiz.addWatched(air, air.getStartTime(), air.getEndTime(), 0, 0);
+    }
+    carny.addFavorite(Agent.LOVE_MASK | Agent.TITLE_MASK, "Load Title 3", null, null, null, 0, null, null, null, null,
+        null, 0, null, null);
+    carny.addFavorite(Agent.LOVE_MASK | Agent.CATEGORY_MASK, null, "Sports", null, null, 0, null, null, null, null,
+        null, 0, null, null);
+    carny.addFavorite(Agent.LOVE_MASK | Agent.ACTOR_MASK, null, null, null, wiz.getPersonForName(PEOPLE[1]),
+        Show.ACTOR_ROLE, null, null, null, null, null, 0, null, null);
+  }
+
+  private static String tableName(byte code)
+  {
+    return "table " + code;
+  }
+
+  // Everything about the tables that loading them could get wrong: the objects as they'd be saved, which includes
+  // the IDs of everything they refer to, and the order of each of the indices
+  private Map<String, List<String>> describeTables() throws Exception
+  {
+    Map<String, List<String>> rv = new LinkedHashMap<String, List<String>>();
+    for (byte code : TABLE_CODES)
+    {
+      Table table = wiz.getTable(code);
+      List<String> objects = new ArrayList<String>();
+      DBObject[] data = table.primary.getData();
+      for (int i = 0; i < table.size(); i++)
+      {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        data[i].write(new DataOutputStream(bytes), 0);
+        objects.add(data[i].getClass().getSimpleName() + Arrays.toString(bytes.toByteArray()));
+        if (table.primary.comp == DBObject.ID_COMPARATOR)
+          assertSame(table.primary.getSingle(data[i].id), data[i]);
+      }
+      rv.put(tableName(code), objects);
+      for (Index index : table.others)
+      {
+        List<String> ids = new ArrayList<String>();
+        DBObject[] indexData = index.getData();
+        for (int i = 0; i < table.size(); i++)
+          ids.add(Integer.toString(indexData[i].id));
+        rv.put(tableName(code) + " index " + index.indexCode, ids);
+      }
+    }
+    return rv;
+  }
+
+  private DBObject findByID(byte code, int id)
+  {
+    Table table = wiz.getTable(code);
+    if (table.primary.comp == DBObject.ID_COMPARATOR)
+      return table.primary.getSingle(id);
+    DBObject[] data = table.primary.getData();
+    for (int i = 0; i < table.size(); i++)
+    {
+      if (data[i].id == id)
+        return data[i];
+    }
+    return null;
+  }
+
+  // The Shows and Airings refer to the objects in the other tables; those have to be the ones that were loaded and
+  // not just ones with the same IDs
+  private void checkReferences()
+  {
+    Table showTable = wiz.getTable(Wizard.SHOW_CODE);
+    DBObject[] shows = showTable.primary.getData();
+    for (int i = 0; i < showTable.size(); i++)
+    {
+      Show show = (Show) shows[i];
+      assertSame(findByID(Wizard.TITLE_CODE, show.title.id), show.title);
+      // The second category is the subcategory
+      for (int j = 0; j < show.categories.length; j++)
+        assertSame(findByID((j == 0) ? Wizard.CATEGORY_CODE : Wizard.SUBCATEGORY_CODE, show.categories[j].id),
+            show.categories[j]);
+      for (Person person : show.people)
+        assertSame(findByID(Wizard.PEOPLE_CODE, person.id), person);
+    }
+    Table airTable = wiz.getTable(Wizard.AIRING_CODE);
+    DBObject[] airs = airTable.primary.getData();
+    for (int i = 0; i < airTable.size(); i++)
+    {
+      Airing air = (Airing) airs[i];
+      assertSame(air.getShow(), findByID(Wizard.SHOW_CODE, air.showID));
+    }
+  }
+
+  @Test
+  public void testParallelLoadMatchesSequentialLoad() throws Throwable
+  {
+    File dbFile = File.createTempFile("WizardParallelLoadTest", ".bin");
+    dbFile.deleteOnExit();
+    wiz.writeDBFile(dbFile);
+
+    Sage.putBoolean("wizard/parallel_load", false);
+    wiz.loadDBFile(dbFile);
+    // Loading drops anything that fails validation, like objects other tests left behind, so what gets compared
+    // is the two loads of the same file and not what was saved
+    Map<String, List<String>> sequential = describeTables();
+    assertFalse(sequential.get(tableName(Wizard.SHOW_CODE)).isEmpty());
+    assertFalse(sequential.get(tableName(Wizard.AIRING_CODE)).isEmpty());
+    assertFalse(sequential.get(tableName(Wizard.WATCH_CODE)).isEmpty());
+    assertFalse(sequential.get(tableName(Wizard.AGENT_CODE)).isEmpty());
+    checkReferences();
+
+    Sage.putBoolean("wizard/parallel_load", true);
+    Sage.putInt("wizard/parallel_load_threads", 4);
+    try
+    {
+      wiz.loadDBFile(dbFile);
+    }
+    finally
+    {
+      Sage.putBoolean("wizard/parallel_load", false);
+    }
+    Map<String, List<String>> parallel = describeTables();
+    checkReferences();
+
+    assertEquals(parallel.keySet(), sequential.keySet());
+    for (String table : sequential.keySet())
+      assertEquals(parallel.get(table), sequential.get(table), table + " loaded in parallel");
+  }
+}
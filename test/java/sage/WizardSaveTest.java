@@ -0,0 +1,120 @@
+package sage;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import sage.io.LocalSageFile;
+import sage.io.SageDataFile;
+
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.testng.Assert.*;
+
+public class WizardSaveTest
+{
+  private static final int NUM_OBJECTS = 200;
+
+  // An object whose two values are always the same when it isn't in the middle of an update
+  static class PairObject extends DBObject
+  {
+    volatile int first;
+    volatile int second;
+
+    PairObject(int id, int value)
+    {
+      super(id);
+      first = second = value;
+    }
+
+    @Override
+    void write(DataOutput out, int flags) throws IOException
+    {
+      super.write(out, flags);
+      out.writeInt(first);
+      out.writeInt(second);
+    }
+
+    @Override
+    void update(DBObject fromMe)
+    {
+      super.update(fromMe);
+      first = ((PairObject) fromMe).first;
+      // Make it likely that anything reading the object at the same time catches it half done
+      Thread.yield();
+      second = ((PairObject) fromMe).second;
+    }
+  }
+
+  @BeforeClass
+  public void setUp() throws Throwable
+  {
+    TestUtils.initializeSageTVForTesting();
+  }
+
+  @Test
+  public void testSaveDuringUpdatesIsNotTorn() throws Exception
+  {
+    final Wizard wiz = Wizard.getInstance();
+    final Table table = new Table(Wizard.YEAR_CODE, new Index(DBObject.ID_COMPARATOR));
+    table.setWizard(wiz);
+    table.setSnapshotReads(true);
+    final PairObject[] objects = new PairObject[NUM_OBJECTS];
+    for (int i = 0; i < objects.length; i++)
+    {
+      objects[i] = new PairObject(i + 1, 0);
+      table.add(objects[i], false);
+    }
+
+    final AtomicBoolean done = new AtomicBoolean();
+    Thread updater = new Thread("WizardSaveTest-updater")
+    {
+      @Override
+      public void run()
+      {
+        int value = 0;
+        while (!done.get())
+        {
+          value++;
+          for (int i = 0; i < objects.length; i++)
+            table.update(objects[i], new PairObject(objects[i].id, value), false);
+        }
+      }
+    };
+    updater.start();
+
+    File saveFile = File.createTempFile("WizardSaveTest", ".bin");
+    saveFile.deleteOnExit();
+    try
+    {
+      for (int save = 0; save < 100; save++)
+      {
+        SageDataFile out = new SageDataFile(new LocalSageFile(saveFile, "rw"), Sage.I18N_CHARSET);
+        try
+        {
+          out.setLength(0);
+          wiz.writeFullTable(out, table);
+          // Skip the SIZE record and the header of the FULL_DATA record
+          out.seek(16);
+          for (int i = 0; i < NUM_OBJECTS; i++)
+          {
+            assertEquals(out.readInt(), i + 1);
+            out.readInt();
+            int first = out.readInt();
+            assertEquals(out.readInt(), first, "Record for " + (i + 1) + " was written during an update");
+          }
+        }
+        finally
+        {
+          out.close();
+        }
+      }
+    }
+    finally
+    {
+      done.set(true);
+      updater.join();
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package sage;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.testng.Assert.*;
+
+public class XctHistoryTest
+{
+  private static final long EPOCH = 1234;
+
+  @BeforeClass
+  public void setUp() throws Throwable
+  {
+    TestUtils.initializeSageTVForTesting();
+  }
+
+  private static byte[] xct(byte op, int id, int value)
+  {
+    return ByteBuffer.allocate(10).put(op).put(Wizard.AIRING_CODE).putInt(id).putInt(value).array();
+  }
+
+  private static void apply(Map<Integer, Integer> db, byte[] xctData)
+  {
+    ByteBuffer buf = ByteBuffer.wrap(xctData);
+    byte op = buf.get();
+    buf.get();
+    int id = buf.getInt();
+    int value = buf.getInt();
+    if (op == Wizard.ADD)
+      assertNull(db.put(id, value), "Object " + id + " was added twice");
+    else if (op == Wizard.REMOVE)
+      assertNotNull(db.remove(id), "Object " + id + " was removed when it wasn't there");
+    else
+      assertNotNull(db.put(id, value), "Object " + id + " was updated when it wasn't there");
+  }
+
+  @Test
+  public void testResumeFromMiddleOfHistory()
+  {
+    XctHistory history = new XctHistory(EPOCH, 1000, Long.MAX_VALUE);
+    for (int i = 1; i <= 100; i++)
+      history.add(xct(Wizard.UPDATE, 1, i));
+    assertEquals(history.getSeq(), 100);
+
+    List<byte[]> missed = history.getSince(EPOCH, 40);
+    assertEquals(missed.size(), 60);
+    for (int i = 0; i < missed.size(); i++)
+      assertEquals(missed.get(i), xct(Wizard.UPDATE, 1, 41 + i));
+    assertTrue(history.getSince(EPOCH, 100).isEmpty());
+  }
+
+  @Test
+  public void testResumeFromSeqNoLongerInHistory()
+  {
+    XctHistory history = new XctHistory(EPOCH, 50, Long.MAX_VALUE);
+    for (int i = 1; i <= 100; i++)
+      history.add(xct(Wizard.UPDATE, 1, i));
+
+    // These all have to fall back to sending the whole DB
+    assertNull(history.getSince(EPOCH, 10));
+    assertNull(history.getSince(EPOCH, 49));
+    assertNull(history.getSince(EPOCH + 1, 90));
+    assertNull(history.getSince(EPOCH, 101));
+    List<byte[]> missed = history.getSince(EPOCH, 50);
+    assertEquals(missed.size(), 50);
+    assertEquals(missed.get(0), xct(Wizard.UPDATE, 1, 51));
+
+    // The byte limit trims it too; each of these is 10 bytes
+    history = new XctHistory(EPOCH, 1000, 200);
+    for (int i = 1; i <= 100; i++)
+      history.add(xct(Wizard.UPDATE, 1, i));
+    assertNull(history.getSince(EPOCH, 79));
+    assertEquals(history.getSince(EPOCH, 80).size(), 20);
+  }
+
+  @Test
+  public void testResumeAfterCoalescedUpdates()
+  {
+    Random rand = new Random(5);
+    int fullSyncs = 0;
+    for (int run = 0; run < 200; run++)
+    {
+      XctHistory history = new XctHistory(EPOCH, 20 + rand.nextInt(60), Long.MAX_VALUE);
+      Map<Integer, Integer> serverDB = new HashMap<Integer, Integer>();
+      int nextID = 1;
+      // What the server had before the client connected; the client got all of this in its initial sync
+      for (int i = 0; i < 10; i++)
+      {
+        byte[] xctData = xct(Wizard.ADD, nextID++, 0);
+        apply(serverDB, xctData);
+        history.add(xctData);
+      }
+      Map<Integer, Integer> clientDB = new HashMap<Integer, Integer>(serverDB);
+      long clientSeq = history.getSeq();
+
+      SageTVConnection.ParallelListenerSharedData share = new SageTVConnection.ParallelListenerSharedData();
+      int numXcts = 20 + rand.nextInt(60);
+      for (int i = 0; i < numXcts; i++)
+      {
+        List<Integer> ids = new ArrayList<Integer>(serverDB.keySet());
+        int op = rand.nextInt(10);
+        byte[] xctData;
+        if (op == 0 || ids.isEmpty())
+          xctData = xct(Wizard.ADD, nextID++, i);
+        else if (op == 1)
+          xctData = xct(Wizard.REMOVE, ids.get(rand.nextInt(ids.size())), 0);
+        else
+          xctData = xct(Wizard.UPDATE, ids.get(rand.nextInt(Math.min(3, ids.size()))), i);
+        apply(serverDB, xctData);
+        // The same order as Wizard.distributeOp
+        history.add(xctData);
+        synchronized (share.queue)
+        {
+          assertTrue(share.offerXct(xctData));
+        }
+      }
+
+      // Part of the queue goes out and then the connection drops
+      int numSent = rand.nextInt(numXcts);
+      for (int i = 0; i < numSent; i++)
+      {
+        SageTVConnection.ListenerMsg msg;
+        synchronized (share.queue)
+        {
+          if (share.queue.isEmpty())
+            break;
+          msg = share.pollMsg();
+        }
+        if (msg == null)
+          continue;
+        apply(clientDB, msg.data);
+        // This is what the client adds to its sync seq, see Wizard.clientXctApplied
+        clientSeq += msg.xctCount;
+        share.xctSent(msg);
+      }
+      assertEquals(clientSeq, 10 + share.sentXcts);
+
+      List<byte[]> missed = history.getSince(EPOCH, clientSeq);
+      if (missed == null)
+      {
+        // Too far behind so it gets the whole DB again
+        fullSyncs++;
+        clientDB = new HashMap<Integer, Integer>(serverDB);
+      }
+      else
+      {
+        for (byte[] xctData : missed)
+          apply(clientDB, xctData);
+      }
+      assertEquals(clientDB, serverDB, "run " + run);
+    }
+    // Make sure both ways got tested
+    assertTrue(fullSyncs > 0 && fullSyncs < 200, "fullSyncs=" + fullSyncs);
+  }
+}
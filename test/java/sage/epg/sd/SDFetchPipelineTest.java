@@ -0,0 +1,343 @@
+/*
+ * Copyright 2015 The SageTV Authors. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sage.epg.sd;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import sage.epg.sd.gson.JsonArray;
+import sage.epg.sd.gson.JsonElement;
+import sage.epg.sd.gson.JsonParser;
+import sage.epg.sd.json.programs.SDProgram;
+import sage.epg.sd.json.schedules.SDStationSchedule;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.*;
+
+public class SDFetchPipelineTest
+{
+  private HttpServer server;
+  private final AtomicInteger programRequests = new AtomicInteger();
+  private final Set<String> softFailed = Collections.synchronizedSet(new HashSet<String>());
+
+  // Stands in for Schedules Direct. Programs ending in 6001 aren't ready the first time they are
+  // requested.
+  @BeforeClass
+  public void startServer() throws IOException
+  {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext("/20141201/token", new HttpHandler()
+    {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException
+      {
+        reply(exchange, "{\"code\":0,\"message\":\"OK\",\"token\":\"localtoken\"}");
+      }
+    });
+    server.createContext("/20141201/programs", new HttpHandler()
+    {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException
+      {
+        programRequests.incrementAndGet();
+        StringBuilder response = new StringBuilder("[");
+        for (JsonElement program : readArray(exchange))
+        {
+          String programID = program.getAsString();
+          if (response.length() > 1) response.append(',');
+          if (programID.endsWith("6001") && softFailed.add(programID))
+            response.append("{\"programID\":\"").append(programID).append("\",\"code\":6001,\"message\":\"Queued\"}");
+          else
+            response.append("{\"programID\":\"").append(programID).append("\",\"titles\":[{\"title120\":\"Title ").append(programID).append("\"}]}");
+        }
+        reply(exchange, response.append(']').toString());
+      }
+    });
+    server.createContext("/20141201/schedules", new HttpHandler()
+    {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException
+      {
+        StringBuilder response = new StringBuilder("[");
+        for (JsonElement station : readArray(exchange))
+        {
+          String stationID = station.getAsJsonObject().get("stationID").getAsString();
+          if (response.length() > 1) response.append(',');
+          response.append("{\"stationID\":\"").append(stationID).append("\",\"programs\":[{\"programID\":\"EP0000")
+            .append(stationID).append("0001\",\"airDateTime\":\"2016-01-01T00:00:00Z\",\"duration\":1800}]}");
+        }
+        reply(exchange, response.append(']').toString());
+      }
+    });
+    server.start();
+  }
+
+  @AfterClass
+  public void stopServer()
+  {
+    server.stop(0);
+  }
+
+  private static JsonArray readArray(HttpExchange exchange) throws IOException
+  {
+    InputStreamReader reader = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8);
+    try
+    {
+      return new JsonParser().parse(reader).getAsJsonArray();
+    }
+    finally
+    {
+      reader.close();
+    }
+  }
+
+  private static void reply(HttpExchange exchange, String response) throws IOException
+  {
+    byte bytes[] = response.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().add("Content-Type", "application/json");
+    exchange.sendResponseHeaders(200, bytes.length);
+    OutputStream outStream = exchange.getResponseBody();
+    outStream.write(bytes);
+    outStream.close();
+  }
+
+  private static List<String> programIDs(String prefix, int count)
+  {
+    List<String> returnValue = new ArrayList<String>();
+    for (int i = 0; i < count; i++)
+      returnValue.add(String.format("%s%08d0001", prefix, i));
+    return returnValue;
+  }
+
+  @Test(groups = {"gson", "schedulesDirect", "program" })
+  public void testProgramsAreStreamedAndRetried() throws Exception
+  {
+    SDSession session = new LocalSession(server.getAddress().getPort());
+    int requests = programRequests.get();
+    final List<SDProgram> programs = new ArrayList<SDProgram>();
+    session.getPrograms(Arrays.asList("EP000000010001", "EP000000026001", "EP000000030001"), new SDSession.ArrayConsumer<SDProgram>()
+    {
+      @Override
+      public void accept(SDProgram element)
+      {
+        programs.add(element);
+      }
+    });
+
+    assertEquals(programs.size(), 3);
+    // The one that wasn't ready is asked for again after the others were received.
+    assertEquals(programs.get(0).getProgramID(), "EP000000010001");
+    assertEquals(programs.get(1).getProgramID(), "EP000000030001");
+    assertEquals(programs.get(2).getProgramID(), "EP000000026001");
+    for (SDProgram program : programs)
+      assertEquals(program.getCode(), 0);
+    assertEquals(programRequests.get() - requests, 2);
+  }
+
+  @Test(groups = {"gson", "schedulesDirect", "schedule" })
+  public void testSchedulesAreStreamed() throws Exception
+  {
+    SDSession session = new LocalSession(server.getAddress().getPort());
+    final List<SDStationSchedule> schedules = new ArrayList<SDStationSchedule>();
+    session.getSchedules(Arrays.asList(10001, 10002, 10003), new String[] { "2016-01-01" }, new SDSession.ArrayConsumer<SDStationSchedule>()
+    {
+      @Override
+      public void accept(SDStationSchedule element)
+      {
+        schedules.add(element);
+      }
+    });
+
+    assertEquals(schedules.size(), 3);
+    assertEquals(schedules.get(0).getStationID(), 10001);
+    assertEquals(schedules.get(2).getStationID(), 10003);
+    assertEquals(schedules.get(1).getPrograms().length, 1);
+    assertEquals(schedules.get(1).getPrograms()[0].getProgramID(), "EP0000100020001");
+  }
+
+  @Test(groups = {"gson", "schedulesDirect", "program" })
+  public void testFetchAllReturnsEverything() throws Exception
+  {
+    final SDSession session = new LocalSession(server.getAddress().getPort());
+    SDFetchPipeline pipeline = new SDFetchPipeline(3, 10);
+    try
+    {
+      List<SDFetchPipeline.Fetch<SDProgram>> fetches = new ArrayList<SDFetchPipeline.Fetch<SDProgram>>();
+      for (int i = 0; i < 8; i++)
+      {
+        final List<String> programs = programIDs("MV" + i, 100);
+        fetches.add(new SDFetchPipeline.Fetch<SDProgram>()
+        {
+          @Override
+          public void run(SDSession.ArrayConsumer<SDProgram> sink) throws IOException, SDException
+          {
+            session.getPrograms(programs, sink);
+          }
+        });
+      }
+
+      // The queue only holds 10, so this also checks that the requests wait to be taken from.
+      SDFetchPipeline.Results<SDProgram> results = pipeline.fetchAll(fetches);
+      Set<String> received = new HashSet<String>();
+      SDProgram program;
+      while ((program = results.take()) != null)
+        assertTrue(received.add(program.getProgramID()), program.getProgramID());
+
+      assertEquals(received.size(), 800);
+      assertTrue(received.containsAll(programIDs("MV7", 100)));
+      assertNull(results.take());
+    }
+    finally
+    {
+      pipeline.close();
+    }
+  }
+
+  @Test(groups = {"gson", "schedulesDirect" })
+  public void testFailuresAreThrown() throws Exception
+  {
+    SDFetchPipeline pipeline = new SDFetchPipeline(2, 10);
+    try
+    {
+      List<SDFetchPipeline.Fetch<String>> fetches = new ArrayList<SDFetchPipeline.Fetch<String>>();
+      fetches.add(new SDFetchPipeline.Fetch<String>()
+      {
+        @Override
+        public void run(SDSession.ArrayConsumer<String> sink) throws IOException, SDException
+        {
+          sink.accept("first");
+          throw new SDException(SDErrors.SAGETV_COMMUNICATION_ERROR);
+        }
+      });
+
+      SDFetchPipeline.Results<String> results = pipeline.fetchAll(fetches);
+      assertEquals(results.take(), "first");
+      try
+      {
+        results.take();
+        fail("The request's exception wasn't thrown");
+      }
+      catch (SDException e)
+      {
+        assertEquals(e.ERROR, SDErrors.SAGETV_COMMUNICATION_ERROR);
+      }
+      assertNull(results.take());
+
+      assertEquals(SDFetchPipeline.get(pipeline.submit(new Callable<String>()
+      {
+        @Override
+        public String call()
+        {
+          return "done";
+        }
+      })), "done");
+
+      try
+      {
+        SDFetchPipeline.get(pipeline.submit(new Callable<String>()
+        {
+          @Override
+          public String call() throws IOException
+          {
+            throw new IOException("expected");
+          }
+        }));
+        fail("The request's exception wasn't thrown");
+      }
+      catch (IOException e)
+      {
+        assertEquals(e.getMessage(), "expected");
+      }
+    }
+    finally
+    {
+      pipeline.close();
+    }
+  }
+
+  // Sends everything to the local server instead of Schedules Direct.
+  private static class LocalSession extends SDSession
+  {
+    private final int port;
+
+    private LocalSession(int port) throws SDException
+    {
+      super("user", "0000000000000000000000000000000000000000");
+      this.port = port;
+    }
+
+    private InputStreamReader send(String method, URL url, byte sendBytes[], int off, int len) throws IOException, SDException
+    {
+      HttpURLConnection connection = (HttpURLConnection) new URL("http", "127.0.0.1", port, url.getFile()).openConnection();
+      connection.setRequestMethod(method);
+      connection.setRequestProperty("Accept", "application/json");
+      if (token != null)
+        connection.setRequestProperty("token", token);
+      if (sendBytes != null)
+      {
+        connection.setDoOutput(true);
+        OutputStream outStream = connection.getOutputStream();
+        outStream.write(sendBytes, off, len);
+        outStream.close();
+      }
+      return SDUtils.getStream(connection);
+    }
+
+    @Override
+    public InputStreamReader put(URL url, byte[] sendBytes, int off, int len) throws IOException, SDException
+    {
+      return send("PUT", url, sendBytes, off, len);
+    }
+
+    @Override
+    public InputStreamReader post(URL url, byte[] sendBytes, int off, int len) throws IOException, SDException
+    {
+      return send("POST", url, sendBytes, off, len);
+    }
+
+    @Override
+    public InputStreamReader get(URL url) throws IOException, SDException
+    {
+      return send("GET", url, null, 0, 0);
+    }
+
+    @Override
+    public InputStreamReader delete(URL url) throws IOException, SDException
+    {
+      return send("DELETE", url, null, 0, 0);
+    }
+  }
+}
@@ -0,0 +1,137 @@
+package sage.io;
+
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import static org.testng.Assert.*;
+
+public class RemoteReadAheadTest
+{
+  // Answers READ commands in order with the low byte of each file position
+  private static class FakeServer implements RemoteReadAhead.Connection
+  {
+    public void send(byte[] command) throws IOException
+    {
+      for (String line : new String(command, "ISO8859_1").split("\r\n"))
+      {
+        String[] parts = line.split(" ");
+        assertEquals(parts[0], "READ");
+        pending.addLast(new long[] { Long.parseLong(parts[1]), Long.parseLong(parts[2]) });
+        numRequests++;
+      }
+      maxPending = Math.max(maxPending, pending.size());
+    }
+
+    public void receive(byte[] b, int off, int len) throws IOException
+    {
+      while (len > 0)
+      {
+        long[] request = pending.peekFirst();
+        assertNotNull(request, "Received more than was requested");
+        int numBytes = (int) Math.min(len, request[1]);
+        for (int i = 0; i < numBytes; i++)
+          b[off + i] = (byte) (request[0] + i);
+        request[0] += numBytes;
+        request[1] -= numBytes;
+        if (request[1] == 0)
+          pending.removeFirst();
+        off += numBytes;
+        len -= numBytes;
+      }
+    }
+
+    final ArrayDeque<long[]> pending = new ArrayDeque<long[]>();
+    int numRequests;
+    int maxPending;
+  }
+
+  private static void checkData(ByteBuffer buf, long position)
+  {
+    buf.flip();
+    while (buf.hasRemaining())
+      assertEquals(buf.get(), (byte) position++);
+  }
+
+  @Test
+  public void testSequentialReads() throws IOException
+  {
+    FakeServer server = new FakeServer();
+    RemoteReadAhead readAhead = new RemoteReadAhead(server, 8192, 4);
+    long fileSize = 1000000;
+    ByteBuffer buf = ByteBuffer.allocate(3000);
+    long position = 0;
+    int directReads = 0;
+    while (position < fileSize)
+    {
+      buf.clear();
+      buf.limit((int) Math.min(buf.capacity(), fileSize - position));
+      int numRead = readAhead.read(position, buf, fileSize);
+      if (numRead == -1)
+      {
+        // The caller reads these itself
+        assertFalse(readAhead.isActive());
+        directReads++;
+        numRead = buf.remaining();
+      }
+      else
+      {
+        assertTrue(numRead > 0);
+        checkData(buf, position);
+      }
+      position += numRead;
+    }
+    assertEquals(directReads, 2);
+    assertEquals(server.maxPending, 4);
+    // Nothing past the end of the file is asked for
+    assertFalse(readAhead.isActive());
+    assertTrue(server.pending.isEmpty());
+    assertEquals(server.numRequests, (int) ((fileSize - 6000 + 8191) / 8192));
+  }
+
+  @Test
+  public void testSeeks() throws IOException
+  {
+    FakeServer server = new FakeServer();
+    RemoteReadAhead readAhead = new RemoteReadAhead(server, 8192, 4);
+    ByteBuffer buf = ByteBuffer.allocate(1000);
+    for (int i = 0; i < 3; i++)
+    {
+      buf.clear();
+      readAhead.read(i * 1000, buf, 1000000);
+    }
+    assertTrue(readAhead.isActive());
+
+    // Skipping forward within what's been requested keeps the rest of it
+    buf.clear();
+    assertEquals(readAhead.read(20000, buf, 1000000), 1000);
+    checkData(buf, 20000);
+    assertTrue(readAhead.isActive());
+
+    // Going back drops all of it and isn't sequential
+    buf.clear();
+    assertEquals(readAhead.read(5000, buf, 1000000), -1);
+    assertFalse(readAhead.isActive());
+    assertTrue(server.pending.isEmpty());
+  }
+
+  @Test
+  public void testReceiveAllKeepsData() throws IOException
+  {
+    FakeServer server = new FakeServer();
+    RemoteReadAhead readAhead = new RemoteReadAhead(server, 4096, 2);
+    ByteBuffer buf = ByteBuffer.allocate(100);
+    for (int i = 0; i < 3; i++)
+    {
+      buf.clear();
+      readAhead.read(i * 100, buf, 1000000);
+    }
+    readAhead.receiveAll();
+    assertTrue(server.pending.isEmpty());
+    buf.clear();
+    assertEquals(readAhead.read(300, buf, 1000000), 100);
+    checkData(buf, 300);
+  }
+}
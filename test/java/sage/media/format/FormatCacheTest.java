@@ -0,0 +1,110 @@
+package sage.media.format;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import static org.testng.Assert.*;
+
+public class FormatCacheTest
+{
+  private static final String INFO = "Input #0, matroska, from 'movie.mkv':\n  Duration: 01:42:13.25, bitrate: 8000 kb/s\n";
+
+  private static File newStoreFile() throws Exception
+  {
+    return new File(Files.createTempDirectory("formatcache").toFile(), "formatcache.bin");
+  }
+
+  @Test
+  public void testEntriesPersist() throws Exception
+  {
+    File storeFile = newStoreFile();
+    FormatCache cache = new FormatCache(storeFile, 100);
+    FormatCache.Key key = new FormatCache.Key("/tv/movie.mkv", 1000, 5000);
+    assertNull(cache.get(key));
+    cache.put(key, INFO);
+    assertEquals(cache.get(key), INFO);
+    cache.close();
+
+    cache = new FormatCache(storeFile, 100);
+    assertEquals(cache.get(key), INFO);
+    assertEquals(cache.size(), 1);
+    cache.close();
+  }
+
+  @Test
+  public void testChangedFilesMiss() throws Exception
+  {
+    FormatCache cache = new FormatCache(newStoreFile(), 100);
+    cache.put(new FormatCache.Key("/tv/movie.mkv", 1000, 5000), INFO);
+    assertNull(cache.get(new FormatCache.Key("/tv/movie.mkv", 1001, 5000)));
+    assertNull(cache.get(new FormatCache.Key("/tv/movie.mkv", 1000, 5001)));
+    cache.put(new FormatCache.Key("/tv/movie.mkv", 1001, 6000), INFO + "more");
+    assertEquals(cache.get(new FormatCache.Key("/tv/movie.mkv", 1001, 6000)), INFO + "more");
+    assertEquals(cache.size(), 1);
+    cache.close();
+  }
+
+  @Test
+  public void testOldestEntriesAreDropped() throws Exception
+  {
+    File storeFile = newStoreFile();
+    FormatCache cache = new FormatCache(storeFile, 3);
+    for (int i = 0; i < 5; i++)
+      cache.put(new FormatCache.Key("/tv/" + i + ".mkv", 1000, 5000), INFO + i);
+    assertEquals(cache.size(), 3);
+    assertNull(cache.get(new FormatCache.Key("/tv/1.mkv", 1000, 5000)));
+    assertEquals(cache.get(new FormatCache.Key("/tv/4.mkv", 1000, 5000)), INFO + 4);
+    cache.close();
+
+    // It's rewritten with only the live entries when it's loaded again
+    long oldLength = storeFile.length();
+    cache = new FormatCache(storeFile, 3);
+    assertEquals(cache.get(new FormatCache.Key("/tv/2.mkv", 1000, 5000)), INFO + 2);
+    assertEquals(cache.size(), 3);
+    assertTrue(storeFile.length() < oldLength);
+    cache.close();
+  }
+
+  @Test
+  public void testTruncatedStore() throws Exception
+  {
+    File storeFile = newStoreFile();
+    FormatCache cache = new FormatCache(storeFile, 100);
+    cache.put(new FormatCache.Key("/tv/a.mkv", 1000, 5000), INFO);
+    long goodLength = storeFile.length();
+    cache.put(new FormatCache.Key("/tv/b.mkv", 1000, 5000), INFO);
+    cache.close();
+    RandomAccessFile raf = new RandomAccessFile(storeFile, "rw");
+    raf.setLength(goodLength + 10);
+    raf.close();
+
+    cache = new FormatCache(storeFile, 100);
+    assertEquals(cache.get(new FormatCache.Key("/tv/a.mkv", 1000, 5000)), INFO);
+    assertNull(cache.get(new FormatCache.Key("/tv/b.mkv", 1000, 5000)));
+    assertEquals(storeFile.length(), goodLength);
+    cache.put(new FormatCache.Key("/tv/c.mkv", 1000, 5000), INFO);
+    cache.close();
+
+    cache = new FormatCache(storeFile, 100);
+    assertEquals(cache.get(new FormatCache.Key("/tv/c.mkv", 1000, 5000)), INFO);
+    cache.close();
+  }
+
+  @Test
+  public void testUnreadableStoreIsReplaced() throws Exception
+  {
+    File storeFile = newStoreFile();
+    FileOutputStream os = new FileOutputStream(storeFile);
+    os.write("not a cache".getBytes());
+    os.close();
+    FormatCache cache = new FormatCache(storeFile, 100);
+    assertEquals(cache.size(), 0);
+    cache.put(new FormatCache.Key("/tv/a.mkv", 1000, 5000), INFO);
+    assertEquals(cache.get(new FormatCache.Key("/tv/a.mkv", 1000, 5000)), INFO);
+    cache.close();
+  }
+}